@@ -40,7 +40,8 @@ import org.apache.directory.server.xdbm.Index;
  * )
  * </pre>
  * There is one more parameter, the 'factory', which can be used to declare
- * a specific kind of Index. It defaults to JdbmIndex.
+ * a specific kind of Index. It defaults to JdbmIndex. The 'substring' parameter
+ * adds a trigram index used by the substring filters on the attribute.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -59,4 +60,8 @@ public @interface CreateIndex
 
     /** @return The indexed attribute */
     String attribute();
+
+
+    /** @return true if the substring filters on the attribute use a trigram index */
+    boolean substring() default false;
 }
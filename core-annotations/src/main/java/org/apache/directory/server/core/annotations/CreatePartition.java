@@ -78,4 +78,8 @@ public @interface CreatePartition
 
     /** @return The cache size */
     int cacheSize() default 1000;
+
+
+    /** @return true if the index statistics used by the cost based optimizer are maintained */
+    boolean statisticsEnabled() default false;
 }
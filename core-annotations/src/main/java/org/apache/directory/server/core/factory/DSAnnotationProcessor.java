@@ -56,6 +56,7 @@ import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartit
 import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmIndex;
 import org.apache.directory.server.core.partition.impl.btree.mavibot.MavibotIndex;
 import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.Index;
 import org.junit.runner.Description;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -237,12 +238,22 @@ public final class DSAnnotationProcessor
 
                 partition.setCacheService( service.getCacheService() );
 
+                if ( partition instanceof AbstractBTreePartition )
+                {
+                    ( ( AbstractBTreePartition ) partition ).setStatisticsEnabled( createPartition.statisticsEnabled() );
+                }
+
                 CreateIndex[] indexes = createPartition.indexes();
 
                 for ( CreateIndex createIndex : indexes )
                 {
                     partitionFactory.addIndex( partition,
                         createIndex.attribute(), createIndex.cacheSize() );
+
+                    if ( createIndex.substring() )
+                    {
+                        setSubstringIndexed( partition, createIndex.attribute() );
+                    }
                 }
 
                 partition.initialize();
@@ -263,6 +274,7 @@ public final class DSAnnotationProcessor
                     AbstractBTreePartition btreePartition = ( AbstractBTreePartition ) partition;
                     btreePartition.setCacheService( service.getCacheService() );
                     btreePartition.setCacheSize( createPartition.cacheSize() );
+                    btreePartition.setStatisticsEnabled( createPartition.statisticsEnabled() );
                     btreePartition.setPartitionPath( new File( service
                         .getInstanceLayout().getPartitionsDirectory(),
                         createPartition.name() ).toURI() );
@@ -276,6 +288,7 @@ public final class DSAnnotationProcessor
                         {
                             // Mavibot index
                             MavibotIndex index = new MavibotIndex( createIndex.attribute(), false );
+                            index.setSubstringIndexed( createIndex.substring() );
 
                             btreePartition.addIndexedAttributes( index );
                         }
@@ -285,6 +298,7 @@ public final class DSAnnotationProcessor
                             // type.
                             // We use the generic index implementation.
                             JdbmIndex index = new JdbmIndex( createIndex.attribute(), false );
+                            index.setSubstringIndexed( createIndex.substring() );
 
                             btreePartition.addIndexedAttributes( index );
                         }
@@ -361,6 +375,24 @@ public final class DSAnnotationProcessor
     }
 
 
+    /**
+     * Adds a trigram index to the index created by the partition factory for an attribute
+     */
+    private static void setSubstringIndexed( Partition partition, String attributeId )
+    {
+        if ( partition instanceof AbstractBTreePartition )
+        {
+            for ( Index<?, String> index : ( ( AbstractBTreePartition ) partition ).getIndexedAttributes() )
+            {
+                if ( index.getAttributeId().equalsIgnoreCase( attributeId ) )
+                {
+                    index.setSubstringIndexed( true );
+                }
+            }
+        }
+    }
+
+
     /**
      * injects an LDIF entry in the given DirectoryService
      * 
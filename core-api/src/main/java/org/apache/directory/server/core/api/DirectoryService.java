@@ -578,6 +578,21 @@ public interface DirectoryService extends ServerEntryFactory
     long getSyncPeriodMillis();
 
 
+    /**
+     * Sets the memory budget used to sort the search results in memory. Above it, the
+     * entries being sorted are spilled on disk.
+     * 
+     * @param sortMaxMemory the sort memory budget, in bytes
+     */
+    void setSortMaxMemory( long sortMaxMemory );
+
+
+    /**
+     * @return the sort memory budget, in bytes
+     */
+    long getSortMaxMemory();
+
+
     /**
      * @return the cache service
      */
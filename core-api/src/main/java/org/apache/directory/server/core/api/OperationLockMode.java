@@ -0,0 +1,49 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.api;
+
+
+/**
+ * The way the {@link OperationManager} protects the backends against concurrent
+ * operations.
+ * <ul>
+ *   <li>GLOBAL : a single server wide R/W lock is used. Any write operation blocks every
+ *   other operation, whatever the partition they are targeting</li>
+ *   <li>PARTITION : each partition has its own R/W lock, selected using the naming context
+ *   the operation's target Dn belongs to. Operations on distinct partitions don't block each
+ *   other. The server wide lock is still held in shared mode by every operation, so that an
+ *   operation spanning more than one partition (like a move from one naming context to another)
+ *   can take it exclusively</li>
+ * </ul>
+ * 
+ * Note that with the PARTITION mode, an Interceptor updating a partition while processing an
+ * operation on another partition must do so through the nexus, not through a new operation, 
+ * otherwise two such operations running concurrently could deadlock.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public enum OperationLockMode
+{
+    /** One single lock for the whole server */
+    GLOBAL,
+
+    /** One lock per partition */
+    PARTITION
+}
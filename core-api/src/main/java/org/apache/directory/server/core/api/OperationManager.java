@@ -38,6 +38,7 @@ import org.apache.directory.server.core.api.interceptor.context.MoveOperationCon
 import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.UnbindOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
 
 
 /**
@@ -198,4 +199,55 @@ public interface OperationManager
      * @return the OperationManager R/W lock
      */
     ReadWriteLock getRWLock();
+
+
+    /**
+     * Gets the R/W lock protecting a given partition. When the OperationManager uses a 
+     * {@link OperationLockMode#GLOBAL} lock mode, this is the server wide lock returned
+     * by {@link #getRWLock()}.
+     * 
+     * @param partition The partition we want the lock for
+     * @return the R/W lock protecting the partition
+     */
+    ReadWriteLock getRWLock( Partition partition );
+
+
+    /**
+     * Acquires the ReadLock protecting a given partition, following the lock protocol of
+     * the operations : the server wide lock is held in shared mode, and the partition locks
+     * are taken by increasing suffix order.
+     * 
+     * @param partition The partition to protect
+     * @return The acquired lock, to be released with {@link #unlockRead(ReadWriteLock)}
+     * @throws LdapException If the lock can't be acquired without risking a deadlock
+     */
+    ReadWriteLock lockRead( Partition partition ) throws LdapException;
+
+
+    /**
+     * Releases a lock acquired with {@link #lockRead(Partition)}
+     * 
+     * @param lock The lock to release
+     */
+    void unlockRead( ReadWriteLock lock );
+
+
+    /**
+     * Acquires the WriteLock protecting a given partition, following the lock protocol of
+     * the operations : the server wide lock is held in shared mode, and the partition locks
+     * are taken by increasing suffix order.
+     * 
+     * @param partition The partition to protect
+     * @return The acquired lock, to be released with {@link #unlockWrite(ReadWriteLock)}
+     * @throws LdapException If the lock can't be acquired without risking a deadlock
+     */
+    ReadWriteLock lockWrite( Partition partition ) throws LdapException;
+
+
+    /**
+     * Releases a lock acquired with {@link #lockWrite(Partition)}
+     * 
+     * @param lock The lock to release
+     */
+    void unlockWrite( ReadWriteLock lock );
 }
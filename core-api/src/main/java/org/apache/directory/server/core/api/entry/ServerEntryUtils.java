@@ -20,6 +20,7 @@ package org.apache.directory.server.core.api.entry;
 
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -749,6 +750,28 @@ public final class ServerEntryUtils
     }
 
 
+    /**
+     * Gets the types of the attributes of an entry, without decoding the attributes
+     * of a {@link LazyEntry}.
+     */
+    private static Collection<AttributeType> getAttributeTypes( Entry entry )
+    {
+        if ( entry instanceof LazyEntry )
+        {
+            return ( ( LazyEntry ) entry ).getAttributeTypes();
+        }
+
+        List<AttributeType> attributeTypes = new ArrayList<>( entry.size() );
+
+        for ( Attribute attribute : entry )
+        {
+            attributeTypes.add( attribute.getAttributeType() );
+        }
+
+        return attributeTypes;
+    }
+
+
     /**
      * Filters an entry accordingly to the requested Attribute list.
      * 
@@ -779,9 +802,8 @@ public final class ServerEntryUtils
         // First, remove all the attributes if we have the NoAttribute flag set to true
         if ( operationContext.isNoAttributes() )
         {
-            for ( Attribute attribute : originalEntry )
+            for ( AttributeType attributeType : getAttributeTypes( originalEntry ) )
             {
-                AttributeType attributeType = attribute.getAttributeType();
 
                 // Bypass the ref attribute, unless the ManageDSAIT control is present
                 if ( operationContext.isReferralThrown() && attributeType.equals( refType ) )
@@ -789,7 +811,7 @@ public final class ServerEntryUtils
                     continue;
                 }
 
-                entry.remove( entry.get( attributeType ) );
+                entry.removeAttributes( attributeType );
             }
 
             entry.removeAttributes( entryDnType );
@@ -801,9 +823,8 @@ public final class ServerEntryUtils
         // the USER attributes, plus the Operational attributes in the returning list 
         if ( operationContext.isAllUserAttributes() )
         {
-            for ( Attribute attribute : originalEntry )
+            for ( AttributeType attributeType : getAttributeTypes( originalEntry ) )
             {
-                AttributeType attributeType = attribute.getAttributeType();
 
                 // Bypass the ref attribute, unless the ManageDSAIT control is present
                 if ( operationContext.isReferralThrown() && attributeType.equals( refType ) )
@@ -841,9 +862,8 @@ public final class ServerEntryUtils
         // the OPERATIONAL attributes, plus the User attributes in the returning list 
         if ( operationContext.isAllOperationalAttributes() )
         {
-            for ( Attribute attribute : originalEntry )
+            for ( AttributeType attributeType : getAttributeTypes( originalEntry ) )
             {
-                AttributeType attributeType = attribute.getAttributeType();
 
                 if ( attributeType.isUser() )
                 {
@@ -877,9 +897,8 @@ public final class ServerEntryUtils
         // Last, not least, check if the attributes are in the returning list
         if ( operationContext.getReturningAttributes() != null )
         {
-            for ( Attribute attribute : originalEntry )
+            for ( AttributeType attributeType : getAttributeTypes( originalEntry ) )
             {
-                AttributeType attributeType = attribute.getAttributeType();
 
                 // Bypass the ref attribute, unless the ManageDSAIT control is present
                 if ( operationContext.isReferralThrown() && attributeType.equals( refType ) )
@@ -81,6 +81,15 @@ public interface DirectoryListener
      * @param moveAndRenameContext the move/rename operation context responsible for the change
      */
     void entryMovedAndRenamed( MoveAndRenameOperationContext moveAndRenameContext );
+
+
+    /**
+     * Called when the listener has been removed by the EventService because it does
+     * not keep up with the changes. No other notification will be received : the
+     * listener must release what it holds, and tell its client it won't get the
+     * following changes.
+     */
+    void listenerDropped();
     
     
     /**
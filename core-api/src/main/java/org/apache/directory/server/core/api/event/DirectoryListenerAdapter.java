@@ -73,6 +73,12 @@ public abstract class DirectoryListenerAdapter implements DirectoryListener
     }
 
 
+    @Override
+    public void listenerDropped()
+    {
+    }
+
+
     @Override
     public boolean isSynchronous()
     {
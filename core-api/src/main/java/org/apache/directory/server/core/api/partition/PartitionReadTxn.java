@@ -63,4 +63,21 @@ public class PartitionReadTxn implements PartitionTxn
     public void close() throws IOException
     {
     }
+
+
+    /**
+     * Tells if this transaction reads from a stable snapshot of the partition, taken
+     * when the transaction was started. Such a transaction never sees the changes done
+     * by concurrent writers, so it does not have to be protected against them. Backends
+     * providing MVCC reads should return <tt>true</tt>.<br>
+     * Only the LMDB partition provides such transactions : the JDBM and Mavibot read
+     * transactions don't isolate the reader from the writers, and keep taking the
+     * partition read lock.
+     * 
+     * @return <tt>true</tt> if the transaction reads from a snapshot
+     */
+    public boolean isSnapshot()
+    {
+        return false;
+    }
 }
@@ -20,19 +20,86 @@
 package org.apache.directory.server.core.api.partition;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * The Write Transaction interface
+ * The Write Transaction interface. Some actions, like the update of in-memory
+ * statistics, must only be done once the changes are committed : they can be
+ * registered with {@link #onCommit(Runnable)}, and the implementations call
+ * {@link #committed()} or {@link #aborted()} when the transaction ends. The disk flushes
+ * which don't need the partition lock can be delayed until {@link #awaitDurability()}.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
 public class PartitionWriteTxn implements PartitionTxn
 {
+    /** The actions to run once the transaction has been committed */
+    private List<Runnable> commitActions;
+
+
+    /**
+     * Registers an action to run once the transaction has been committed. The action is
+     * discarded if the transaction is aborted.
+     * 
+     * @param action The action to run
+     */
+    public void onCommit( Runnable action )
+    {
+        if ( commitActions == null )
+        {
+            commitActions = new ArrayList<>();
+        }
+
+        commitActions.add( action );
+    }
+
+
+    /**
+     * Runs the registered actions. Called once the changes have been committed.
+     */
+    protected void committed()
+    {
+        List<Runnable> actions = commitActions;
+        commitActions = null;
+
+        if ( actions != null )
+        {
+            for ( Runnable action : actions )
+            {
+                action.run();
+            }
+        }
+    }
+
+
+    /**
+     * Discards the registered actions. Called once the changes have been dropped.
+     */
+    protected void aborted()
+    {
+        commitActions = null;
+    }
+
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void commit() throws IOException
+    {
+        committed();
+    }
+
+
+    /**
+     * Waits until the changes committed by this transaction are as durable as the partition
+     * guarantees. It is called once the partition lock has been released, so that the
+     * concurrent writers can share the same disk flush. It does nothing by default.
+     * 
+     * @throws IOException If the changes can't be flushed
+     */
+    public void awaitDurability() throws IOException
     {
     }
 
@@ -43,6 +110,7 @@ public class PartitionWriteTxn implements PartitionTxn
     @Override
     public void abort() throws IOException
     {
+        aborted();
     }
 
 
@@ -20,18 +20,31 @@
 package org.apache.directory.server.core.api.subtree;
 
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.name.Rdn;
 import org.apache.directory.api.ldap.model.subtree.Subentry;
+import org.apache.directory.api.ldap.model.subtree.SubtreeSpecification;
 
 
 /**
  * A cache for subtree specifications. It associates a Subentry with a Dn,
  * representing its position in the DIT.<br>
+ * The subentries are also indexed in a Dn tree, by the base of their subtree
+ * specification (the AP Dn followed by the specification base), so that the
+ * subentries which may select an entry can be found without evaluating all of
+ * them.<br>
  * This cache has a size limit set to 1000 at the moment. We should add a configuration
  * parameter to manage its size.
  *
@@ -51,6 +64,32 @@ public class SubentryCache implements Iterable<Dn>
     /** The Subentry cache */
     private final Map<Dn, Subentry> cache;
 
+    /** The root of the subtree specifications index */
+    private final SubtreeNode root = new SubtreeNode();
+
+    /** The lock protecting the subtree specifications index */
+    private final ReadWriteLock indexLock = new ReentrantReadWriteLock();
+
+
+    /**
+     * A node in the subtree specifications index. Each node stands for a Dn, and holds
+     * the subentries whose subtree specification base is this Dn.
+     */
+    private static class SubtreeNode
+    {
+        /** The children nodes, one per Rdn */
+        private final Map<Rdn, SubtreeNode> children = new HashMap<>();
+
+        /** The subentries which subtree specification base is this node */
+        private final Map<Dn, SubtreeSpecification> subentries = new HashMap<>();
+
+
+        private boolean isEmpty()
+        {
+            return children.isEmpty() && subentries.isEmpty();
+        }
+    }
+
 
     /**
      * Creates a new instance of SubentryCache with a default maximum size.
@@ -101,6 +140,7 @@ public class SubentryCache implements Iterable<Dn>
         if ( oldSubentry != null )
         {
             cacheSize.decrementAndGet();
+            unindex( dn, oldSubentry );
         }
 
         return oldSubentry;
@@ -127,6 +167,12 @@ public class SubentryCache implements Iterable<Dn>
         {
             cacheSize.getAndIncrement();
         }
+        else
+        {
+            unindex( dn, oldSubentry );
+        }
+
+        index( dn, subentry );
 
         return oldSubentry;
     }
@@ -159,4 +205,253 @@ public class SubentryCache implements Iterable<Dn>
     {
         return cacheSize.get();
     }
+
+
+    /**
+     * Gets the subentries which may select an entry, based on its Dn : the subentries
+     * whose subtree specification base is a superior of the entry, and which distance
+     * and chop exclusions don't reject the entry. The refinement is not evaluated, so
+     * the returned subentries still have to be checked with the SubtreeEvaluator.
+     *
+     * @param entryDn The entry Dn
+     * @return The Dn of the candidate subentries
+     */
+    public List<Dn> getCandidates( Dn entryDn )
+    {
+        List<Dn> candidates = new ArrayList<>();
+        int size = entryDn.size();
+
+        indexLock.readLock().lock();
+
+        try
+        {
+            SubtreeNode node = root;
+
+            for ( int depth = 0; node != null; depth++ )
+            {
+                for ( Map.Entry<Dn, SubtreeSpecification> subentry : node.subentries.entrySet() )
+                {
+                    if ( mayBeSelected( subentry.getValue(), entryDn, depth ) )
+                    {
+                        candidates.add( subentry.getKey() );
+                    }
+                }
+
+                if ( depth == size )
+                {
+                    break;
+                }
+
+                node = node.children.get( entryDn.getRdn( size - 1 - depth ) );
+            }
+        }
+        finally
+        {
+            indexLock.readLock().unlock();
+        }
+
+        return candidates;
+    }
+
+
+    /**
+     * Gets the subentries which may select an entry under one of two names, before and
+     * after a rename or a move.
+     *
+     * @param oldDn The entry Dn before the operation
+     * @param newDn The entry Dn after the operation
+     * @return The Dn of the candidate subentries
+     */
+    public Set<Dn> getCandidates( Dn oldDn, Dn newDn )
+    {
+        Set<Dn> candidates = new LinkedHashSet<>( getCandidates( oldDn ) );
+        candidates.addAll( getCandidates( newDn ) );
+
+        return candidates;
+    }
+
+
+    /**
+     * Checks the distance and the chop exclusions of a subtree specification against an
+     * entry located below the specification base.
+     *
+     * @param ss The subtree specification
+     * @param entryDn The entry Dn
+     * @param baseSize The number of Rdns of the specification base
+     * @return <tt>false</tt> if the entry can't be selected by the subtree specification
+     */
+    private static boolean mayBeSelected( SubtreeSpecification ss, Dn entryDn, int baseSize )
+    {
+        int distance = entryDn.size() - baseSize;
+
+        if ( ( ss.getMaxBaseDistance() != SubtreeSpecification.UNBOUNDED_MAX )
+            && ( distance > ss.getMaxBaseDistance() ) )
+        {
+            return false;
+        }
+
+        if ( ( ss.getMinBaseDistance() > 0 ) && ( distance < ss.getMinBaseDistance() ) )
+        {
+            return false;
+        }
+
+        for ( Dn chopBeforeDn : ss.getChopBeforeExclusions() )
+        {
+            if ( isBelow( entryDn, baseSize, chopBeforeDn ) )
+            {
+                return false;
+            }
+        }
+
+        for ( Dn chopAfterDn : ss.getChopAfterExclusions() )
+        {
+            if ( ( distance > chopAfterDn.size() ) && isBelow( entryDn, baseSize, chopAfterDn ) )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Tells if the part of an entry Dn below a base is a descendant of, or equal to, a
+     * Dn relative to this base.
+     */
+    private static boolean isBelow( Dn entryDn, int baseSize, Dn relativeDn )
+    {
+        int relativeSize = relativeDn.size();
+        int entrySize = entryDn.size();
+
+        if ( entrySize - baseSize < relativeSize )
+        {
+            return false;
+        }
+
+        for ( int i = 0; i < relativeSize; i++ )
+        {
+            Rdn relativeRdn = relativeDn.getRdn( relativeSize - 1 - i );
+            Rdn entryRdn = entryDn.getRdn( entrySize - 1 - baseSize - i );
+
+            if ( !relativeRdn.equals( entryRdn ) )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * @return The Rdns of the subtree specification base of a subentry, from the root
+     */
+    private static List<Rdn> getBasePath( Dn subentryDn, SubtreeSpecification ss )
+    {
+        List<Rdn> path = new ArrayList<>();
+        Dn apDn = subentryDn.getParent();
+
+        for ( int i = apDn.size() - 1; i >= 0; i-- )
+        {
+            path.add( apDn.getRdn( i ) );
+        }
+
+        Dn base = ss.getBase();
+
+        for ( int i = base.size() - 1; i >= 0; i-- )
+        {
+            path.add( base.getRdn( i ) );
+        }
+
+        return path;
+    }
+
+
+    /**
+     * Adds a subentry into the subtree specifications index
+     */
+    private void index( Dn dn, Subentry subentry )
+    {
+        SubtreeSpecification ss = subentry.getSubtreeSpecification();
+
+        if ( ss == null )
+        {
+            return;
+        }
+
+        indexLock.writeLock().lock();
+
+        try
+        {
+            SubtreeNode node = root;
+
+            for ( Rdn rdn : getBasePath( dn, ss ) )
+            {
+                SubtreeNode child = node.children.get( rdn );
+
+                if ( child == null )
+                {
+                    child = new SubtreeNode();
+                    node.children.put( rdn, child );
+                }
+
+                node = child;
+            }
+
+            node.subentries.put( dn, ss );
+        }
+        finally
+        {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Removes a subentry from the subtree specifications index, and the nodes which
+     * are not used anymore
+     */
+    private void unindex( Dn dn, Subentry subentry )
+    {
+        SubtreeSpecification ss = subentry.getSubtreeSpecification();
+
+        if ( ss == null )
+        {
+            return;
+        }
+
+        indexLock.writeLock().lock();
+
+        try
+        {
+            List<Rdn> path = getBasePath( dn, ss );
+            List<SubtreeNode> nodes = new ArrayList<>( path.size() + 1 );
+            SubtreeNode node = root;
+            nodes.add( node );
+
+            for ( Rdn rdn : path )
+            {
+                node = node.children.get( rdn );
+
+                if ( node == null )
+                {
+                    return;
+                }
+
+                nodes.add( node );
+            }
+
+            node.subentries.remove( dn );
+
+            for ( int i = path.size(); ( i > 0 ) && nodes.get( i ).isEmpty(); i-- )
+            {
+                nodes.get( i - 1 ).children.remove( path.get( i - 1 ) );
+            }
+        }
+        finally
+        {
+            indexLock.writeLock().unlock();
+        }
+    }
 }
@@ -73,7 +73,7 @@ public class SubentryUtils
         SubentryCache subentryCache = directoryService.getSubentryCache();
         SubtreeEvaluator evaluator = directoryService.getEvaluator();
 
-        for ( Dn subentryDn : subentryCache )
+        for ( Dn subentryDn : subentryCache.getCandidates( dn ) )
         {
             Dn apDn = subentryDn.getParent();
             Subentry subentry = subentryCache.getSubentry( subentryDn );
@@ -476,6 +476,17 @@ public class MockDirectoryService implements DirectoryService
     }
 
 
+    public long getSortMaxMemory()
+    {
+        return 0;
+    }
+
+
+    public void setSortMaxMemory( long sortMaxMemory )
+    {
+    }
+
+
     public CacheService getCacheService()
     {
         return null;
@@ -156,4 +156,47 @@ public class MockOperationManager implements OperationManager
     {
         return new ReentrantReadWriteLock();
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public ReadWriteLock getRWLock( Partition partition )
+    {
+        return new ReentrantReadWriteLock();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public ReadWriteLock lockRead( Partition partition )
+    {
+        return new ReentrantReadWriteLock();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void unlockRead( ReadWriteLock lock )
+    {
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public ReadWriteLock lockWrite( Partition partition )
+    {
+        return new ReentrantReadWriteLock();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void unlockWrite( ReadWriteLock lock )
+    {
+    }
 }
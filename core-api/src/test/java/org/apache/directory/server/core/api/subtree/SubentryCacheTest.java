@@ -0,0 +1,118 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.api.subtree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.subtree.Subentry;
+import org.apache.directory.api.ldap.model.subtree.SubtreeSpecificationModifier;
+import org.junit.Test;
+
+
+/**
+ * Tests the subtree specifications index of the SubentryCache.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SubentryCacheTest
+{
+    private static Subentry createSubentry( SubtreeSpecificationModifier modifier )
+    {
+        Subentry subentry = new Subentry();
+        subentry.setSubtreeSpecification( modifier.getSubtreeSpecification() );
+
+        return subentry;
+    }
+
+
+    @Test
+    public void testCandidatesByBase() throws Exception
+    {
+        SubentryCache cache = new SubentryCache();
+        Dn systemSubentry = new Dn( "cn=all,ou=system" );
+        Dn usersSubentry = new Dn( "cn=users,ou=system" );
+        Dn otherSubentry = new Dn( "cn=other,dc=example,dc=com" );
+
+        cache.addSubentry( systemSubentry, createSubentry( new SubtreeSpecificationModifier() ) );
+
+        SubtreeSpecificationModifier modifier = new SubtreeSpecificationModifier();
+        modifier.setBase( new Dn( "ou=users" ) );
+        cache.addSubentry( usersSubentry, createSubentry( modifier ) );
+
+        cache.addSubentry( otherSubentry, createSubentry( new SubtreeSpecificationModifier() ) );
+
+        List<Dn> candidates = cache.getCandidates( new Dn( "uid=admin,ou=users,ou=system" ) );
+        assertEquals( 2, candidates.size() );
+        assertTrue( candidates.contains( systemSubentry ) );
+        assertTrue( candidates.contains( usersSubentry ) );
+
+        candidates = cache.getCandidates( new Dn( "ou=groups,ou=system" ) );
+        assertEquals( 1, candidates.size() );
+        assertTrue( candidates.contains( systemSubentry ) );
+
+        assertTrue( cache.getCandidates( new Dn( "ou=schema" ) ).isEmpty() );
+
+        cache.removeSubentry( systemSubentry );
+        candidates = cache.getCandidates( new Dn( "uid=admin,ou=users,ou=system" ) );
+        assertEquals( 1, candidates.size() );
+        assertTrue( candidates.contains( usersSubentry ) );
+
+        cache.removeSubentry( usersSubentry );
+        assertTrue( cache.getCandidates( new Dn( "uid=admin,ou=users,ou=system" ) ).isEmpty() );
+        assertEquals( 1, cache.getCacheSize() );
+    }
+
+
+    @Test
+    public void testCandidatesWithMinMaxAndChops() throws Exception
+    {
+        SubentryCache cache = new SubentryCache();
+        Dn subentryDn = new Dn( "cn=users,ou=system" );
+
+        SubtreeSpecificationModifier modifier = new SubtreeSpecificationModifier();
+        Set<Dn> chopBefore = new HashSet<>();
+        chopBefore.add( new Dn( "uid=excluded" ) );
+        Set<Dn> chopAfter = new HashSet<>();
+        chopAfter.add( new Dn( "uid=leaf" ) );
+        modifier.setChopBeforeExclusions( chopBefore );
+        modifier.setChopAfterExclusions( chopAfter );
+        modifier.setMinBaseDistance( 1 );
+        modifier.setMaxBaseDistance( 2 );
+        modifier.setBase( new Dn( "ou=users" ) );
+        cache.addSubentry( subentryDn, createSubentry( modifier ) );
+
+        assertFalse( cache.getCandidates( new Dn( "ou=users,ou=system" ) ).contains( subentryDn ) );
+        assertTrue( cache.getCandidates( new Dn( "uid=admin,ou=users,ou=system" ) ).contains( subentryDn ) );
+        assertTrue( cache.getCandidates( new Dn( "ou=a,uid=admin,ou=users,ou=system" ) ).contains( subentryDn ) );
+        assertFalse( cache.getCandidates( new Dn( "ou=b,ou=a,uid=admin,ou=users,ou=system" ) ).contains(
+            subentryDn ) );
+        assertFalse( cache.getCandidates( new Dn( "uid=excluded,ou=users,ou=system" ) ).contains( subentryDn ) );
+        assertTrue( cache.getCandidates( new Dn( "uid=leaf,ou=users,ou=system" ) ).contains( subentryDn ) );
+        assertFalse( cache.getCandidates( new Dn( "ou=a,uid=leaf,ou=users,ou=system" ) ).contains( subentryDn ) );
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.operations.add;
+
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.DefaultOperationManager;
+import org.apache.directory.server.core.annotations.ContextEntry;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.annotations.CreateIndex;
+import org.apache.directory.server.core.annotations.CreatePartition;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.OperationLockMode;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.FrameworkRunner;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Stress the add operation with concurrent writers, each of them targeting its own
+ * partition, using the GLOBAL and PARTITION lock modes.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@RunWith(FrameworkRunner.class)
+@CreateDS(
+    name = "ConcurrentPartitionAddPerfDS",
+    partitions =
+        {
+            @CreatePartition(
+                name = "p0",
+                suffix = "dc=p0,dc=com",
+                contextEntry = @ContextEntry(
+                    entryLdif =
+                    "dn: dc=p0,dc=com\n" +
+                        "dc: p0\n" +
+                        "objectClass: top\n" +
+                        "objectClass: domain\n\n"),
+                indexes =
+                    {
+                        @CreateIndex(attribute = "objectClass"),
+                        @CreateIndex(attribute = "cn")
+                }),
+            @CreatePartition(
+                name = "p1",
+                suffix = "dc=p1,dc=com",
+                contextEntry = @ContextEntry(
+                    entryLdif =
+                    "dn: dc=p1,dc=com\n" +
+                        "dc: p1\n" +
+                        "objectClass: top\n" +
+                        "objectClass: domain\n\n"),
+                indexes =
+                    {
+                        @CreateIndex(attribute = "objectClass"),
+                        @CreateIndex(attribute = "cn")
+                }),
+            @CreatePartition(
+                name = "p2",
+                suffix = "dc=p2,dc=com",
+                contextEntry = @ContextEntry(
+                    entryLdif =
+                    "dn: dc=p2,dc=com\n" +
+                        "dc: p2\n" +
+                        "objectClass: top\n" +
+                        "objectClass: domain\n\n"),
+                indexes =
+                    {
+                        @CreateIndex(attribute = "objectClass"),
+                        @CreateIndex(attribute = "cn")
+                }),
+            @CreatePartition(
+                name = "p3",
+                suffix = "dc=p3,dc=com",
+                contextEntry = @ContextEntry(
+                    entryLdif =
+                    "dn: dc=p3,dc=com\n" +
+                        "dc: p3\n" +
+                        "objectClass: top\n" +
+                        "objectClass: domain\n\n"),
+                indexes =
+                    {
+                        @CreateIndex(attribute = "objectClass"),
+                        @CreateIndex(attribute = "cn")
+                })
+    },
+    enableChangeLog = false)
+public class ConcurrentPartitionAddPerfIT extends AbstractLdapTestUnit
+{
+    /** The number of entries each thread adds */
+    private static final int NB_ENTRIES = 2000;
+
+    /** The number of partitions */
+    private static final int NB_PARTITIONS = 4;
+
+    /** The number of measures for each lock mode, the best one being kept */
+    private static final int NB_RUNS = 3;
+
+    private static final Logger LOG = LoggerFactory.getLogger( ConcurrentPartitionAddPerfIT.class );
+
+    /** Used to get distinct entry names for each run */
+    private static final AtomicInteger RUN = new AtomicInteger();
+
+
+    @After
+    public void resetLockMode()
+    {
+        getOperationManager().setLockMode( OperationLockMode.GLOBAL );
+    }
+
+
+    private DefaultOperationManager getOperationManager()
+    {
+        return ( DefaultOperationManager ) getService().getOperationManager();
+    }
+
+
+    /**
+     * Starts one thread per partition, each one adding NB_ENTRIES entries in its own partition
+     *
+     * @param nbPartitions The number of partitions (and threads) to use
+     * @return the number of additions per second
+     */
+    private long addConcurrently( int nbPartitions ) throws Exception
+    {
+        final int run = RUN.incrementAndGet();
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final List<Throwable> failures = new CopyOnWriteArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+
+        for ( int p = 0; p < nbPartitions; p++ )
+        {
+            final String suffix = "dc=p" + p + ",dc=com";
+
+            Thread thread = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        CoreSession session = getService().getAdminSession();
+                        start.await();
+
+                        for ( int i = 0; i < NB_ENTRIES; i++ )
+                        {
+                            String cn = "test" + run + "-" + i;
+                            Entry entry = new DefaultEntry( getService().getSchemaManager(),
+                                new Dn( "cn=" + cn + "," + suffix ),
+                                "ObjectClass: top",
+                                "ObjectClass: person",
+                                "sn: TEST",
+                                "cn", cn );
+
+                            session.add( entry );
+                        }
+                    }
+                    catch ( Exception e )
+                    {
+                        failures.add( e );
+                    }
+                }
+            };
+
+            threads.add( thread );
+            thread.start();
+        }
+
+        long t0 = System.currentTimeMillis();
+        start.countDown();
+
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+
+        long delta = Math.max( 1L, System.currentTimeMillis() - t0 );
+
+        if ( !failures.isEmpty() )
+        {
+            for ( Throwable failure : failures )
+            {
+                LOG.error( "A writer thread failed", failure );
+            }
+
+            throw new AssertionError( failures.size() + " writer thread(s) failed", failures.get( 0 ) );
+        }
+
+        return ( nbPartitions * NB_ENTRIES * 1000L ) / delta;
+    }
+
+
+    /**
+     * Check that the write throughput is higher with a per partition lock than with the
+     * server wide lock, when each writer targets its own partition.
+     */
+    @Test
+    public void testConcurrentAddPerf() throws Exception
+    {
+        // Warm up
+        addConcurrently( NB_PARTITIONS );
+
+        Map<OperationLockMode, Long> throughputs = new EnumMap<>( OperationLockMode.class );
+
+        for ( OperationLockMode lockMode : OperationLockMode.values() )
+        {
+            getOperationManager().setLockMode( lockMode );
+
+            long best = 0L;
+
+            for ( int i = 0; i < NB_RUNS; i++ )
+            {
+                best = Math.max( best, addConcurrently( NB_PARTITIONS ) );
+            }
+
+            LOG.info( "{} lock, {} partitions : {} additions per second", lockMode, NB_PARTITIONS, best );
+            throughputs.put( lockMode, best );
+        }
+
+        // Check that all the entries have been added
+        for ( int p = 0; p < NB_PARTITIONS; p++ )
+        {
+            assertTrue( getService().getAdminSession().exists( "cn=test1-" + ( NB_ENTRIES - 1 ) + ",dc=p" + p + ",dc=com" ) );
+        }
+
+        // The writers can only run in parallel with several processors
+        assumeTrue( Runtime.getRuntime().availableProcessors() > 1 );
+
+        assertTrue( "The PARTITION lock mode does not scale : " + throughputs,
+            throughputs.get( OperationLockMode.PARTITION ) > throughputs.get( OperationLockMode.GLOBAL ) );
+    }
+}
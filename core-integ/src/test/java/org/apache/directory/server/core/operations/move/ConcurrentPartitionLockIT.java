@@ -0,0 +1,318 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.operations.move;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.exception.LdapServiceUnavailableException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.DefaultOperationManager;
+import org.apache.directory.server.core.annotations.ContextEntry;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.annotations.CreatePartition;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.OperationLockMode;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.FrameworkRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Checks that the operations impacting two partitions don't deadlock when using the
+ * PARTITION lock mode.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@RunWith(FrameworkRunner.class)
+@CreateDS(
+    name = "ConcurrentPartitionLockDS",
+    partitions =
+        {
+            @CreatePartition(
+                name = "p0",
+                suffix = "dc=p0,dc=com",
+                contextEntry = @ContextEntry(
+                    entryLdif =
+                    "dn: dc=p0,dc=com\n" +
+                        "dc: p0\n" +
+                        "objectClass: top\n" +
+                        "objectClass: domain\n\n")),
+            @CreatePartition(
+                name = "p1",
+                suffix = "dc=p1,dc=com",
+                contextEntry = @ContextEntry(
+                    entryLdif =
+                    "dn: dc=p1,dc=com\n" +
+                        "dc: p1\n" +
+                        "objectClass: top\n" +
+                        "objectClass: domain\n\n"))
+    },
+    enableChangeLog = false)
+public class ConcurrentPartitionLockIT extends AbstractLdapTestUnit
+{
+    /** The number of moves each thread does */
+    private static final int NB_MOVES = 200;
+
+    /** The maximum time we wait for the threads, in milliseconds */
+    private static final long TIMEOUT = 60000L;
+
+    private static final Logger LOG = LoggerFactory.getLogger( ConcurrentPartitionLockIT.class );
+
+    /** The failures of the worker threads */
+    private final List<Throwable> failures = new CopyOnWriteArrayList<>();
+
+
+    @Before
+    public void setLockMode()
+    {
+        getOperationManager().setLockMode( OperationLockMode.PARTITION );
+    }
+
+
+    @After
+    public void resetLockMode()
+    {
+        getOperationManager().setLockMode( OperationLockMode.GLOBAL );
+    }
+
+
+    private DefaultOperationManager getOperationManager()
+    {
+        return ( DefaultOperationManager ) getService().getOperationManager();
+    }
+
+
+    private Partition getPartition( String suffix ) throws Exception
+    {
+        return getService().getPartitionNexus().getPartition( new Dn( getService().getSchemaManager(), suffix ) );
+    }
+
+
+    private void joinAll( List<Thread> threads ) throws Exception
+    {
+        for ( Thread thread : threads )
+        {
+            thread.join( TIMEOUT );
+
+            if ( thread.isAlive() )
+            {
+                fail( "Deadlock : " + thread.getName() + " is still running" );
+            }
+        }
+
+        if ( !failures.isEmpty() )
+        {
+            for ( Throwable failure : failures )
+            {
+                LOG.error( "A worker thread failed", failure );
+            }
+
+            throw new AssertionError( failures.size() + " worker thread(s) failed", failures.get( 0 ) );
+        }
+    }
+
+
+    /**
+     * Two threads take the locks of the two partitions in opposite orders. The thread
+     * breaking the suffix order must give up instead of waiting forever.
+     */
+    @Test
+    public void testLocksInOppositeOrder() throws Exception
+    {
+        final Partition p0 = getPartition( "dc=p0,dc=com" );
+        final Partition p1 = getPartition( "dc=p1,dc=com" );
+        final CountDownLatch firstLocks = new CountDownLatch( 2 );
+        final AtomicInteger nbBusy = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+
+        for ( final boolean ordered : new boolean[]
+            { true, false } )
+        {
+            Thread thread = new Thread( ordered ? "ordered" : "reversed" )
+            {
+                public void run()
+                {
+                    DefaultOperationManager operationManager = getOperationManager();
+
+                    try
+                    {
+                        ReadWriteLock first = operationManager.lockWrite( ordered ? p0 : p1 );
+
+                        try
+                        {
+                            firstLocks.countDown();
+                            firstLocks.await();
+
+                            ReadWriteLock second = operationManager.lockRead( ordered ? p1 : p0 );
+                            operationManager.unlockRead( second );
+                        }
+                        finally
+                        {
+                            operationManager.unlockWrite( first );
+                        }
+                    }
+                    catch ( LdapServiceUnavailableException suee )
+                    {
+                        nbBusy.incrementAndGet();
+                    }
+                    catch ( Exception e )
+                    {
+                        failures.add( e );
+                    }
+                }
+            };
+
+            threads.add( thread );
+            thread.start();
+        }
+
+        joinAll( threads );
+
+        assertEquals( 1, nbBusy.get() );
+    }
+
+
+    /**
+     * Moves entries back and forth between two partitions, while other threads modify
+     * entries in both partitions.
+     */
+    @Test
+    public void testConcurrentCrossPartitionMoves() throws Exception
+    {
+        final CoreSession session = getService().getAdminSession();
+        final CountDownLatch start = new CountDownLatch( 1 );
+        List<Thread> threads = new ArrayList<>();
+
+        for ( int p = 0; p < 2; p++ )
+        {
+            final String suffix = "dc=p" + p + ",dc=com";
+            final String otherSuffix = "dc=p" + ( 1 - p ) + ",dc=com";
+            final String cn = "mover" + p;
+
+            session.add( new DefaultEntry( getService().getSchemaManager(), "cn=" + cn + "," + suffix,
+                "ObjectClass: top",
+                "ObjectClass: person",
+                "sn: TEST",
+                "cn", cn ) );
+            session.add( new DefaultEntry( getService().getSchemaManager(), "cn=modified," + suffix,
+                "ObjectClass: top",
+                "ObjectClass: person",
+                "sn: TEST",
+                "cn: modified" ) );
+
+            threads.add( new Thread( "mover" + p )
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+
+                        for ( int i = 0; i < NB_MOVES; i++ )
+                        {
+                            boolean even = ( i % 2 ) == 0;
+                            session.move( new Dn( "cn=" + cn + "," + ( even ? suffix : otherSuffix ) ),
+                                new Dn( even ? otherSuffix : suffix ) );
+                        }
+                    }
+                    catch ( Exception e )
+                    {
+                        failures.add( e );
+                    }
+                }
+            } );
+
+            threads.add( new Thread( "modifier" + p )
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+
+                        for ( int i = 0; i < NB_MOVES; i++ )
+                        {
+                            session.modify( new Dn( "cn=modified," + suffix ),
+                                new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, "sn", "TEST" + i ) );
+                            assertTrue( session.exists( "cn=modified," + otherSuffix ) );
+                        }
+                    }
+                    catch ( Throwable t )
+                    {
+                        failures.add( t );
+                    }
+                }
+            } );
+        }
+
+        for ( Thread thread : threads )
+        {
+            thread.start();
+        }
+
+        start.countDown();
+        joinAll( threads );
+
+        // NB_MOVES is even : the entries are back in their partition
+        assertTrue( session.exists( "cn=mover0,dc=p0,dc=com" ) );
+        assertTrue( session.exists( "cn=mover1,dc=p1,dc=com" ) );
+        assertFalse( session.exists( "cn=mover0,dc=p1,dc=com" ) );
+    }
+
+
+    /**
+     * The lock mode can't be changed while the current thread holds a lock
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testSetLockModeFromOperation() throws Exception
+    {
+        DefaultOperationManager operationManager = getOperationManager();
+        ReadWriteLock lock = operationManager.lockRead( getPartition( "dc=p0,dc=com" ) );
+
+        try
+        {
+            operationManager.setLockMode( OperationLockMode.GLOBAL );
+        }
+        finally
+        {
+            operationManager.unlockRead( lock );
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.operations.search;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.model.cursor.EntryCursor;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.directory.server.core.annotations.ContextEntry;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.annotations.CreateIndex;
+import org.apache.directory.server.core.annotations.CreatePartition;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.factory.LmdbPartitionFactory;
+import org.apache.directory.server.core.factory.PartitionFactory;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.FrameworkRunner;
+import org.apache.directory.server.core.integ.IntegrationUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A load test running subtree searches concurrently with modifications, to measure
+ * how much the writers slow down the readers (and the reverse). The same load is run
+ * against a JDBM partition, whose readers take the partition lock, and against a LMDB
+ * partition, whose readers use lock free snapshots.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@RunWith(FrameworkRunner.class)
+@CreateDS(
+    name = "MixedSearchModifyPerfDS",
+    partitions =
+        {
+            @CreatePartition(
+                name = "jdbm",
+                suffix = "dc=jdbm,dc=com",
+                contextEntry = @ContextEntry(
+                    entryLdif =
+                    "dn: dc=jdbm,dc=com\n" +
+                        "dc: jdbm\n" +
+                        "objectClass: top\n" +
+                        "objectClass: domain\n\n"),
+                indexes =
+                    {
+                        @CreateIndex(attribute = "objectClass"),
+                        @CreateIndex(attribute = "sn"),
+                        @CreateIndex(attribute = "cn")
+                })
+
+    },
+    enableChangeLog = false)
+public class MixedSearchModifyPerfIT extends AbstractLdapTestUnit
+{
+    /** The number of entries in the partition */
+    private static final int NB_ENTRIES = 2000;
+
+    /** How long each measure lasts */
+    private static final long DURATION = 5000L;
+
+    /** The number of concurrent searchers */
+    private static final int NB_SEARCHERS = 4;
+
+    private static final Logger LOG = LoggerFactory.getLogger( MixedSearchModifyPerfIT.class );
+
+
+    /**
+     * Creates the LMDB partition, the only backend reading from snapshots
+     */
+    private void createLmdbPartition() throws Exception
+    {
+        PartitionFactory partitionFactory = new LmdbPartitionFactory();
+        Partition partition = partitionFactory.createPartition( getService().getSchemaManager(),
+            getService().getDnFactory(), "lmdb", "dc=lmdb,dc=com", 1000,
+            new File( getService().getInstanceLayout().getPartitionsDirectory(), "lmdb" ) );
+        partition.setCacheService( getService().getCacheService() );
+
+        for ( String attribute : new String[]
+            { "objectClass", "sn", "cn" } )
+        {
+            partitionFactory.addIndex( partition, attribute, 100 );
+        }
+
+        getService().addPartition( partition );
+
+        getService().getAdminSession().add( new DefaultEntry( getService().getSchemaManager(),
+            "dc=lmdb,dc=com",
+            "objectClass: top",
+            "objectClass: domain",
+            "dc: lmdb" ) );
+    }
+
+
+    private void createEntries( String suffix ) throws Exception
+    {
+        LdapConnection connection = IntegrationUtils.getAdminConnection( getService() );
+
+        for ( int i = 0; i < NB_ENTRIES; i++ )
+        {
+            String cn = "test" + i;
+            Entry entry = new DefaultEntry( getService().getSchemaManager(),
+                new Dn( "cn=" + cn + "," + suffix ),
+                "ObjectClass: top",
+                "ObjectClass: person",
+                "sn", cn.toUpperCase(),
+                "cn", cn );
+
+            connection.add( entry );
+        }
+
+        connection.close();
+    }
+
+
+    /**
+     * Runs the searchers and the modifiers for DURATION ms.
+     *
+     * @param suffix The suffix of the partition to use
+     * @param nbModifiers The number of concurrent modifiers
+     * @return the number of searches and modifications done per second
+     */
+    private long[] run( final String suffix, int nbModifiers ) throws Exception
+    {
+        final AtomicBoolean done = new AtomicBoolean( false );
+        final AtomicLong nbSearches = new AtomicLong();
+        final AtomicLong nbModifications = new AtomicLong();
+        final List<Throwable> failures = new CopyOnWriteArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+
+        for ( int i = 0; i < NB_SEARCHERS; i++ )
+        {
+            threads.add( new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        LdapConnection connection = IntegrationUtils.getAdminConnection( getService() );
+
+                        while ( !done.get() )
+                        {
+                            EntryCursor cursor = connection.search( suffix, "(objectClass=person)",
+                                SearchScope.SUBTREE, "cn" );
+                            int nbFound = 0;
+
+                            while ( cursor.next() )
+                            {
+                                cursor.get();
+                                nbFound++;
+                            }
+
+                            cursor.close();
+
+                            assertEquals( NB_ENTRIES, nbFound );
+
+                            nbSearches.incrementAndGet();
+                        }
+
+                        connection.close();
+                    }
+                    catch ( Throwable t )
+                    {
+                        failures.add( t );
+                    }
+                }
+            } );
+        }
+
+        for ( int i = 0; i < nbModifiers; i++ )
+        {
+            threads.add( new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        LdapConnection connection = IntegrationUtils.getAdminConnection( getService() );
+                        Random random = new Random();
+
+                        while ( !done.get() )
+                        {
+                            int n = random.nextInt( NB_ENTRIES );
+
+                            connection.modify( "cn=test" + n + "," + suffix,
+                                new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, "sn",
+                                    "SN" + random.nextInt() ) );
+
+                            nbModifications.incrementAndGet();
+                        }
+
+                        connection.close();
+                    }
+                    catch ( Throwable t )
+                    {
+                        failures.add( t );
+                    }
+                }
+            } );
+        }
+
+        for ( Thread thread : threads )
+        {
+            thread.start();
+        }
+
+        Thread.sleep( DURATION );
+        done.set( true );
+
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+
+        if ( !failures.isEmpty() )
+        {
+            for ( Throwable failure : failures )
+            {
+                LOG.error( "A worker thread failed", failure );
+            }
+
+            throw new AssertionError( failures.size() + " worker thread(s) failed", failures.get( 0 ) );
+        }
+
+        return new long[]
+            { ( nbSearches.get() * 1000L ) / DURATION, ( nbModifications.get() * 1000L ) / DURATION };
+    }
+
+
+    /**
+     * Measure the search throughput alone, then with 1 and 4 concurrent modifiers, on the
+     * JDBM partition (locked reads) and on the LMDB partition (snapshot reads)
+     */
+    @Test
+    public void testMixedSearchModifyPerf() throws Exception
+    {
+        createLmdbPartition();
+
+        for ( String suffix : new String[]
+            { "dc=jdbm,dc=com", "dc=lmdb,dc=com" } )
+        {
+            createEntries( suffix );
+
+            // Warm up
+            run( suffix, 1 );
+
+            for ( int nbModifiers : new int[]
+                { 0, 1, 4 } )
+            {
+                long[] result = run( suffix, nbModifiers );
+
+                LOG.info( "{} : {} searchers, {} modifiers : {} searches/s, {} modifications/s", suffix,
+                    NB_SEARCHERS, nbModifiers, result[0], result[1] );
+
+                // The searchers are never starved by the modifiers
+                assertTrue( result[0] > 0 );
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.subtree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.annotations.ApplyLdifs;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.InterceptorEnum;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.FrameworkRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+
+/**
+ * Tests the background propagation of the subentries, and its recovery when the server
+ * stops before it's done.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@RunWith(FrameworkRunner.class)
+@CreateDS(name = "SubentryPropagationIT-class")
+@ApplyLdifs(
+    {
+        "dn: dc=AP,ou=system",
+        "objectClass: top",
+        "objectClass: domain",
+        "administrativeRole: collectiveAttributeSpecificArea",
+        "dc: AP",
+        "",
+        "dn: cn=E1,dc=AP,ou=system",
+        "objectClass: top",
+        "objectClass: person",
+        "cn: E1",
+        "sn: e1",
+        "",
+        "dn: cn=E2,dc=AP,ou=system",
+        "objectClass: top",
+        "objectClass: person",
+        "cn: E2",
+        "sn: e2",
+        ""
+})
+public class SubentryPropagationIT extends AbstractLdapTestUnit
+{
+    /** The subentry interceptor */
+    private SubentryInterceptor interceptor;
+
+    /** The admin session */
+    private CoreSession session;
+
+    /** Set when a test stops the propagations */
+    private boolean stopped;
+
+
+    @Before
+    public void setAsyncPropagation()
+    {
+        interceptor = ( SubentryInterceptor ) getService().getInterceptor(
+            InterceptorEnum.SUBENTRY_INTERCEPTOR.getName() );
+        interceptor.setAsyncPropagation( true );
+        interceptor.setPropagationBatchSize( 1 );
+        session = getService().getAdminSession();
+    }
+
+
+    @After
+    public void resetAsyncPropagation() throws Exception
+    {
+        if ( stopped )
+        {
+            interceptor.resumePropagations();
+        }
+
+        waitForPropagations();
+        interceptor.setAsyncPropagation( false );
+    }
+
+
+    private void waitForPropagations() throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 10000L;
+
+        while ( interceptor.hasPendingPropagations() && ( System.currentTimeMillis() < deadline ) )
+        {
+            Thread.sleep( 10L );
+        }
+
+        assertFalse( interceptor.hasPendingPropagations() );
+    }
+
+
+    private boolean isSelected( String dn, String subentryDn ) throws Exception
+    {
+        Entry entry = session.lookup( new Dn( getService().getSchemaManager(), dn ), "+" );
+        Attribute subentries = entry.get( "collectiveAttributeSubentries" );
+
+        return ( subentries != null )
+            && subentries.contains( new Dn( getService().getSchemaManager(), subentryDn ).getNormName() );
+    }
+
+
+    private void addSubentry() throws Exception
+    {
+        session.add( new DefaultEntry( getService().getSchemaManager(),
+            "cn=testsubentry,dc=AP,ou=system",
+            "objectClass: top",
+            "objectClass: subentry",
+            "objectClass: collectiveAttributeSubentry",
+            "c-ou: configuration",
+            "subtreeSpecification: { }",
+            "cn: testsubentry" ) );
+    }
+
+
+    @Test
+    public void testPropagation() throws Exception
+    {
+        addSubentry();
+        waitForPropagations();
+
+        assertTrue( isSelected( "cn=E1,dc=AP,ou=system", "cn=testsubentry,dc=AP,ou=system" ) );
+        assertTrue( isSelected( "cn=E2,dc=AP,ou=system", "cn=testsubentry,dc=AP,ou=system" ) );
+        assertEquals( 0, interceptor.getRecordedPropagationCount() );
+
+        session.delete( new Dn( getService().getSchemaManager(), "cn=testsubentry,dc=AP,ou=system" ) );
+        waitForPropagations();
+
+        assertFalse( isSelected( "cn=E1,dc=AP,ou=system", "cn=testsubentry,dc=AP,ou=system" ) );
+        assertEquals( 0, interceptor.getRecordedPropagationCount() );
+    }
+
+
+    @Test
+    public void testAdditionResumedAfterStop() throws Exception
+    {
+        // The server stops before the propagation is run
+        interceptor.destroy();
+        stopped = true;
+        addSubentry();
+
+        assertEquals( 1, interceptor.getRecordedPropagationCount() );
+        assertFalse( isSelected( "cn=E1,dc=AP,ou=system", "cn=testsubentry,dc=AP,ou=system" ) );
+
+        // It's done when the server restarts
+        interceptor.resumePropagations();
+        stopped = false;
+        waitForPropagations();
+
+        assertTrue( isSelected( "cn=E1,dc=AP,ou=system", "cn=testsubentry,dc=AP,ou=system" ) );
+        assertTrue( isSelected( "cn=E2,dc=AP,ou=system", "cn=testsubentry,dc=AP,ou=system" ) );
+        assertEquals( 0, interceptor.getRecordedPropagationCount() );
+
+        session.delete( new Dn( getService().getSchemaManager(), "cn=testsubentry,dc=AP,ou=system" ) );
+    }
+
+
+    @Test
+    public void testRemovalResumedAfterStop() throws Exception
+    {
+        addSubentry();
+        waitForPropagations();
+
+        // The server stops before the removal is propagated
+        interceptor.destroy();
+        stopped = true;
+        session.delete( new Dn( getService().getSchemaManager(), "cn=testsubentry,dc=AP,ou=system" ) );
+
+        assertEquals( 1, interceptor.getRecordedPropagationCount() );
+        assertTrue( isSelected( "cn=E1,dc=AP,ou=system", "cn=testsubentry,dc=AP,ou=system" ) );
+
+        interceptor.resumePropagations();
+        stopped = false;
+        waitForPropagations();
+
+        assertFalse( isSelected( "cn=E1,dc=AP,ou=system", "cn=testsubentry,dc=AP,ou=system" ) );
+        assertFalse( isSelected( "cn=E2,dc=AP,ou=system", "cn=testsubentry,dc=AP,ou=system" ) );
+        assertEquals( 0, interceptor.getRecordedPropagationCount() );
+    }
+}
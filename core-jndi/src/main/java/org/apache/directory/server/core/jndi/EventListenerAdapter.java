@@ -21,6 +21,7 @@ package org.apache.directory.server.core.jndi;
 
 
 import javax.naming.Binding;
+import javax.naming.LimitExceededException;
 import javax.naming.NamingException;
 import javax.naming.directory.SearchControls;
 import javax.naming.event.NamespaceChangeListener;
@@ -235,6 +236,17 @@ public class EventListenerAdapter implements DirectoryListener
     }
 
 
+    /**
+     * The JNDI listener is told it won't receive the following changes.
+     */
+    public void listenerDropped()
+    {
+        LOG.warn( "The naming listener {} does not keep up with the changes, it has been removed", listener );
+        NamingException ne = new LimitExceededException( "The listener does not keep up with the changes" );
+        listener.namingExceptionThrown( new NamingExceptionEvent( source, ne ) );
+    }
+
+
     /* (non-Javadoc)
      * @see org.apache.directory.server.core.event.DirectoryListener#entryRenamed(org.apache.directory.server.core.interceptor.context.RenameOperationContext)
      */
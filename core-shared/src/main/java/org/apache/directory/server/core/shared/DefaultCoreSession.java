@@ -20,7 +20,6 @@
 package org.apache.directory.server.core.shared;
 
 
-import java.io.File;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.text.ParseException;
@@ -32,8 +31,6 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 
-import jdbm.recman.BaseRecordManager;
-
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncRequest.SyncRequestValue;
 import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
@@ -94,6 +91,7 @@ import org.apache.directory.server.core.api.interceptor.context.SearchOperationC
 import org.apache.directory.server.core.api.interceptor.context.UnbindOperationContext;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.api.partition.PartitionWriteTxn;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.mina.core.session.IoSession;
 import org.slf4j.Logger;
@@ -1208,7 +1206,8 @@ public class DefaultCoreSession implements CoreSession
 
             if ( ( sortRespCtrl != null ) && ( sortRespCtrl.getSortResult() == SortResultCode.SUCCESS ) )
             {
-                cursor = sortResults( cursor, sortControl, getDirectoryService().getSchemaManager() );
+                cursor = sortResults( cursor, sortControl, searchRequest.getSizeLimit(),
+                    getDirectoryService().getSchemaManager() );
             }
 
             // the below condition is to satisfy the scenario 6 in section 2 of rfc2891
@@ -1378,36 +1377,25 @@ public class DefaultCoreSession implements CoreSession
 
 
     /**
-     * Sorts the entries based on the given sortkey and returns the cursor
+     * Sorts the entries based on the given sortkey and returns the cursor. The entries
+     * are sorted in memory, unless they exceed the DirectoryService sort memory budget.
+     * When a size limit is set, only the entries which can be returned are kept, plus
+     * one to let the caller know the limit has been exceeded.
      * 
      * @param unsortedEntries the cursor containing un-sorted entries
      * @param control the sort control
+     * @param sizeLimit the search size limit, 0 if none
      * @param schemaManager schema manager
      * @return a cursor containing sorted entries
      * @throws CursorException
      * @throws LdapException
      * @throws IOException
-     * @throws KeyNotFoundException 
      */
-    private Cursor<Entry> sortResults( Cursor<Entry> unsortedEntries, SortRequest control, SchemaManager schemaManager )
-        throws CursorException, LdapException, IOException
+    private Cursor<Entry> sortResults( Cursor<Entry> unsortedEntries, SortRequest control, long sizeLimit,
+        SchemaManager schemaManager ) throws CursorException, LdapException, IOException
     {
         unsortedEntries.beforeFirst();
 
-        Entry first = null;
-
-        if ( unsortedEntries.next() )
-        {
-            first = unsortedEntries.get();
-        }
-
-        if ( !unsortedEntries.next() )
-        {
-            unsortedEntries.beforeFirst();
-
-            return unsortedEntries;
-        }
-
         SortKey sk = control.getSortKeys().get( 0 );
 
         AttributeType at = schemaManager.getAttributeType( sk.getAttributeTypeDesc() );
@@ -1415,42 +1403,31 @@ public class DefaultCoreSession implements CoreSession
         SortedEntryComparator comparator = new SortedEntryComparator( at, sk.getMatchingRuleId(), sk.isReverseOrder(),
             schemaManager );
 
-        SortedEntrySerializer keySerializer = new SortedEntrySerializer();
         SortedEntrySerializer.setSchemaManager( schemaManager );
-        
-        File file = null;
-        
-        try 
+
+        long limit = ( sizeLimit > 0 ) && ( sizeLimit < Long.MAX_VALUE ) ? sizeLimit + 1 : 0L;
+        EntrySorter sorter = new EntrySorter( comparator, directoryService.getSortMaxMemory(), limit );
+
+        try
         {
-            file = File.createTempFile( "replica", ".sorted-data" );    // see DIRSERVER-2007
-        } 
-        catch ( IOException e ) 
+            while ( unsortedEntries.next() )
+            {
+                sorter.add( unsortedEntries.get() );
+            }
+
+            sorter.sort();
+        }
+        catch ( IOException | CursorException | LdapException | RuntimeException e )
         {
-            // see DIRSERVER-2091
-            LOG.error( "Error creating temp file in directory {} for sorting: {}",  
-                System.getProperty( "java.io.tmpdir" ),  e.getMessage(), e );
+            sorter.close();
             throw e;
         }
-
-        BaseRecordManager recMan = new BaseRecordManager( file.getAbsolutePath() );
-
-        jdbm.btree.BTree<Entry, String> btree = new jdbm.btree.BTree<>( recMan, comparator, keySerializer, NullStringSerializer.INSTANCE );
-        
-
-        btree.insert( first, "", false );
-
-        // at this stage the cursor will be _on_ the next element, so read it
-        btree.insert( unsortedEntries.get(), "", false );
-
-        while ( unsortedEntries.next() )
+        finally
         {
-            Entry entry = unsortedEntries.get();
-            btree.insert( entry, "", false );
+            unsortedEntries.close();
         }
 
-        unsortedEntries.close();
-
-        return new SortedEntryCursor( btree, recMan, file );
+        return new SortedEntryCursor( sorter );
     }
 
 
@@ -1508,6 +1485,14 @@ public class DefaultCoreSession implements CoreSession
             {
                 partitionTxn.getValue().commit();
             }
+
+            for ( Map.Entry<String, PartitionTxn> partitionTxn : transactionMap.entrySet() )
+            {
+                if ( partitionTxn.getValue() instanceof PartitionWriteTxn )
+                {
+                    ( ( PartitionWriteTxn ) partitionTxn.getValue() ).awaitDurability();
+                }
+            }
         }
         else
         {
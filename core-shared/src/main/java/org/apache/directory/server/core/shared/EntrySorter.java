@@ -0,0 +1,692 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.shared;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.util.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Sorts the entries returned by a search carrying a server side sort control.<br>
+ * The entries are sorted in memory as long as their estimated size stays below a
+ * byte budget. Above it, the entries are appended to a temporary data file, and
+ * sorted runs of their sort keys and offsets in this file are written. The runs are
+ * merged at the end into an index of the sorted offsets, and the entries are read
+ * back from the data file one at a time when the cursor reaches them.<br>
+ * When a size limit is given, only the first entries are kept, using a bounded heap.
+ * Entries with equal sort keys are returned in the order they were added.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class EntrySorter implements Closeable
+{
+    private static final Logger LOG = LoggerFactory.getLogger( EntrySorter.class );
+
+    /** The default memory budget, in bytes : 8Mb */
+    static final long DEFAULT_MAX_MEMORY = 8L * 1024L * 1024L;
+
+    /** The maximum number of runs merged at once */
+    static final int MAX_FAN_IN = 64;
+
+    /** The estimated size of a record in memory, without its key and entry */
+    private static final int RECORD_OVERHEAD = 48;
+
+    /** The estimated size of an attribute in memory, without its values */
+    private static final int ATTRIBUTE_OVERHEAD = 64;
+
+    /** The estimated size of a value in memory, without its content */
+    private static final int VALUE_OVERHEAD = 48;
+
+    /** The key tags used in the runs */
+    private static final byte NULL_KEY = 0;
+    private static final byte STRING_KEY = 1;
+    private static final byte BINARY_KEY = 2;
+
+    /** The comparator used to extract and compare the sort keys */
+    private final SortedEntryComparator comparator;
+
+    /** The memory budget, in bytes */
+    private final long maxMemory;
+
+    /** The maximum number of sorted entries to keep */
+    private final long limit;
+
+    /** The directory containing the temporary files, or null for the default temporary directory */
+    private final File tempDirectory;
+
+    /** The serializer used to write the entries in the data file */
+    private final SortedEntrySerializer serializer = new SortedEntrySerializer();
+
+    /** The records sorted in memory, when the size limit is not set */
+    private List<SortRecord> records = new ArrayList<>();
+
+    /** The records sorted in memory, the last one on top, when the size limit is set */
+    private PriorityQueue<SortRecord> topRecords;
+
+    /** The estimated size of the records in memory */
+    private long memory;
+
+    /** The number of added entries */
+    private long count;
+
+    /** The data file, created on the first spill */
+    private File dataFile;
+
+    /** The stream used to append the entries to the data file */
+    private DataOutputStream dataOut;
+
+    /** The current data file size */
+    private long dataSize;
+
+    /** The sorted runs, not yet merged */
+    private List<File> runs = new ArrayList<>();
+
+    /** The sorted entries, when they have been sorted in memory */
+    private Entry[] sortedEntries;
+
+    /** The index of the sorted entries offsets, when they have been spilled */
+    private File indexFile;
+
+    /** The sorted entries count */
+    private int size;
+
+    /** The files used to read the spilled entries back */
+    private RandomAccessFile index;
+    private RandomAccessFile data;
+
+    /** The records comparator : by sort key, then in the order of arrival */
+    private final Comparator<SortRecord> recordComparator = new Comparator<SortRecord>()
+    {
+        @Override
+        public int compare( SortRecord record1, SortRecord record2 )
+        {
+            int c = comparator.compareKeys( record1.key, record2.key );
+
+            if ( c == 0 )
+            {
+                return Long.compare( record1.id, record2.id );
+            }
+
+            return c;
+        }
+    };
+
+    /**
+     * A sort key with the entry it belongs to. The identifier is the arrival order
+     * of the entry, or its offset in the data file once it has been spilled.
+     */
+    private static class SortRecord
+    {
+        Object key;
+        long id;
+        Entry entry;
+        long weight;
+
+
+        private SortRecord( Object key, long id, Entry entry, long weight )
+        {
+            this.key = key;
+            this.id = id;
+            this.entry = entry;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * A reader on a sorted run, positioned on its current record.
+     */
+    private static final class RunReader extends SortRecord implements Closeable
+    {
+        private final DataInputStream in;
+
+
+        private RunReader( File run ) throws IOException
+        {
+            super( null, 0L, null, 0L );
+            in = new DataInputStream( new BufferedInputStream( new FileInputStream( run ) ) );
+        }
+
+
+        private boolean next() throws IOException
+        {
+            int tag = in.read();
+
+            if ( tag < 0 )
+            {
+                return false;
+            }
+
+            key = readKey( in, ( byte ) tag );
+            id = in.readLong();
+
+            return true;
+        }
+
+
+        @Override
+        public void close() throws IOException
+        {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Creates a new instance of EntrySorter.
+     *
+     * @param comparator The comparator used to extract and compare the sort keys
+     * @param maxMemory The memory budget, in bytes. The default budget is used if not positive
+     * @param limit The maximum number of entries to keep, or 0 to keep all of them
+     */
+    EntrySorter( SortedEntryComparator comparator, long maxMemory, long limit )
+    {
+        this( comparator, maxMemory, limit, null );
+    }
+
+
+    /**
+     * Creates a new instance of EntrySorter.
+     *
+     * @param comparator The comparator used to extract and compare the sort keys
+     * @param maxMemory The memory budget, in bytes. The default budget is used if not positive
+     * @param limit The maximum number of entries to keep, or 0 to keep all of them
+     * @param tempDirectory The directory containing the temporary files, or null for the
+     * default temporary directory
+     */
+    EntrySorter( SortedEntryComparator comparator, long maxMemory, long limit, File tempDirectory )
+    {
+        this.comparator = comparator;
+        this.tempDirectory = tempDirectory;
+        this.maxMemory = maxMemory > 0 ? maxMemory : DEFAULT_MAX_MEMORY;
+        this.limit = ( limit > 0 ) && ( limit < Integer.MAX_VALUE ) ? limit : Integer.MAX_VALUE;
+
+        if ( limit > 0 )
+        {
+            topRecords = new PriorityQueue<>( 11, Collections.reverseOrder( recordComparator ) );
+        }
+    }
+
+
+    /**
+     * Adds an entry to sort.
+     *
+     * @param entry The entry
+     * @throws IOException If the entries can't be spilled on disk
+     */
+    void add( Entry entry ) throws IOException
+    {
+        Object key = comparator.getSortKey( entry );
+        SortRecord record;
+
+        if ( dataOut == null )
+        {
+            record = new SortRecord( key, count, entry, estimateKeySize( key ) + estimateEntrySize( entry ) );
+        }
+        else
+        {
+            record = new SortRecord( key, append( entry ), null, estimateKeySize( key ) );
+        }
+
+        count++;
+
+        if ( topRecords != null )
+        {
+            topRecords.add( record );
+            memory += record.weight;
+
+            if ( topRecords.size() > limit )
+            {
+                memory -= topRecords.poll().weight;
+            }
+        }
+        else
+        {
+            records.add( record );
+            memory += record.weight;
+        }
+
+        if ( memory > maxMemory )
+        {
+            spill();
+        }
+    }
+
+
+    /**
+     * Sorts the added entries. Once done, the sorted entries can be read using
+     * {@link #get(int)}.
+     *
+     * @return The sorted entries count
+     * @throws IOException If the spilled entries can't be merged
+     */
+    int sort() throws IOException
+    {
+        List<SortRecord> sorted = drain();
+
+        if ( dataOut == null )
+        {
+            sortedEntries = new Entry[( int ) Math.min( sorted.size(), limit )];
+
+            for ( int i = 0; i < sortedEntries.length; i++ )
+            {
+                sortedEntries[i] = sorted.get( i ).entry;
+            }
+
+            size = sortedEntries.length;
+
+            return size;
+        }
+
+        if ( !sorted.isEmpty() )
+        {
+            writeRun( sorted );
+        }
+
+        dataOut.close();
+
+        // Merge the runs, MAX_FAN_IN at a time, until only one pass is needed
+        while ( runs.size() > MAX_FAN_IN )
+        {
+            List<File> merged = new ArrayList<>( runs.subList( 0, MAX_FAN_IN ) );
+            runs.subList( 0, MAX_FAN_IN ).clear();
+            runs.add( merge( merged, false ) );
+        }
+
+        indexFile = merge( runs, true );
+        runs.clear();
+
+        index = new RandomAccessFile( indexFile, "r" );
+        data = new RandomAccessFile( dataFile, "r" );
+        size = ( int ) ( index.length() / 8 );
+
+        LOG.debug( "Sorted {} entries using {} bytes on disk", count, dataSize );
+
+        return size;
+    }
+
+
+    /**
+     * @return The sorted entries count
+     */
+    int size()
+    {
+        return size;
+    }
+
+
+    /**
+     * Gets a sorted entry.
+     *
+     * @param position The entry position, between 0 and size - 1
+     * @return The entry
+     * @throws IOException If the entry can't be read back from disk
+     */
+    Entry get( int position ) throws IOException
+    {
+        if ( sortedEntries != null )
+        {
+            return sortedEntries[position];
+        }
+
+        index.seek( position * 8L );
+        data.seek( index.readLong() );
+        byte[] serialized = new byte[data.readInt()];
+        data.readFully( serialized );
+
+        return ( Entry ) serializer.deserialize( serialized );
+    }
+
+
+    /**
+     * Releases the sorted entries and deletes the temporary files.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        records = null;
+        topRecords = null;
+        sortedEntries = null;
+
+        closeQuietly( dataOut );
+        closeQuietly( index );
+        closeQuietly( data );
+
+        for ( File run : runs )
+        {
+            delete( run );
+        }
+
+        delete( indexFile );
+        delete( dataFile );
+    }
+
+
+    /**
+     * Empties the records kept in memory, returning them sorted.
+     */
+    private List<SortRecord> drain()
+    {
+        List<SortRecord> sorted;
+
+        if ( topRecords != null )
+        {
+            sorted = new ArrayList<>( topRecords );
+            topRecords.clear();
+        }
+        else
+        {
+            sorted = records;
+            records = new ArrayList<>();
+        }
+
+        Collections.sort( sorted, recordComparator );
+        memory = 0L;
+
+        return sorted;
+    }
+
+
+    /**
+     * Writes the records kept in memory in a sorted run. On the first spill, the data
+     * file is created and the entries still in memory are written in it.
+     */
+    private void spill() throws IOException
+    {
+        if ( dataOut == null )
+        {
+            try
+            {
+                dataFile = File.createTempFile( "sort", ".sorted-data", tempDirectory );    // see DIRSERVER-2007
+            }
+            catch ( IOException e )
+            {
+                // see DIRSERVER-2091
+                LOG.error( "Error creating temp file in directory {} for sorting: {}",
+                    System.getProperty( "java.io.tmpdir" ), e.getMessage(), e );
+                throw e;
+            }
+
+            dataOut = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( dataFile ) ) );
+
+            LOG.debug( "The sorted entries exceed {} bytes, spilling them in {}", maxMemory, dataFile );
+        }
+
+        List<SortRecord> sorted = drain();
+
+        writeRun( sorted );
+    }
+
+
+    /**
+     * Writes a sorted run. The entries which have not been written in the data file
+     * are written in the run order, so that their offsets keep the order of arrival of
+     * the entries having the same sort key.
+     */
+    private void writeRun( List<SortRecord> sorted ) throws IOException
+    {
+        File run = File.createTempFile( "sort", ".sorted-run", tempDirectory );
+        runs.add( run );
+
+        try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( run ) ) ) )
+        {
+            long written = 0L;
+
+            for ( SortRecord record : sorted )
+            {
+                if ( written++ == limit )
+                {
+                    break;
+                }
+
+                if ( record.entry != null )
+                {
+                    record.id = append( record.entry );
+                    record.entry = null;
+                }
+
+                writeKey( out, record.key );
+                out.writeLong( record.id );
+            }
+        }
+    }
+
+
+    /**
+     * Merges some sorted runs in a new run, or in the index of the sorted offsets.
+     */
+    private File merge( List<File> sortedRuns, boolean offsetsOnly ) throws IOException
+    {
+        File merged = File.createTempFile( "sort", offsetsOnly ? ".sorted-index" : ".sorted-run", tempDirectory );
+        PriorityQueue<SortRecord> readers = new PriorityQueue<>( sortedRuns.size() + 1, recordComparator );
+
+        try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( merged ) ) ) )
+        {
+            for ( File run : sortedRuns )
+            {
+                RunReader reader = new RunReader( run );
+
+                if ( reader.next() )
+                {
+                    readers.add( reader );
+                }
+                else
+                {
+                    reader.close();
+                }
+            }
+
+            long written = 0L;
+
+            while ( !readers.isEmpty() && ( written < limit ) )
+            {
+                RunReader reader = ( RunReader ) readers.poll();
+
+                if ( !offsetsOnly )
+                {
+                    writeKey( out, reader.key );
+                }
+
+                out.writeLong( reader.id );
+                written++;
+
+                if ( reader.next() )
+                {
+                    readers.add( reader );
+                }
+                else
+                {
+                    reader.close();
+                }
+            }
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            // The caller does not know about a partially merged file
+            delete( merged );
+
+            throw e;
+        }
+        finally
+        {
+            for ( SortRecord reader : readers )
+            {
+                closeQuietly( ( RunReader ) reader );
+            }
+
+            for ( File run : sortedRuns )
+            {
+                delete( run );
+            }
+        }
+
+        return merged;
+    }
+
+
+    /**
+     * Appends an entry to the data file.
+     *
+     * @return The entry offset in the data file
+     */
+    private long append( Entry entry ) throws IOException
+    {
+        byte[] serialized = serializer.serialize( entry );
+        long offset = dataSize;
+
+        dataOut.writeInt( serialized.length );
+        dataOut.write( serialized );
+        dataSize += 4 + serialized.length;
+
+        return offset;
+    }
+
+
+    private static void writeKey( DataOutputStream out, Object key ) throws IOException
+    {
+        if ( key == null )
+        {
+            out.writeByte( NULL_KEY );
+
+            return;
+        }
+
+        byte[] bytes;
+
+        if ( key instanceof String )
+        {
+            out.writeByte( STRING_KEY );
+            bytes = Strings.getBytesUtf8( ( String ) key );
+        }
+        else
+        {
+            out.writeByte( BINARY_KEY );
+            bytes = ( byte[] ) key;
+        }
+
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+
+    private static Object readKey( DataInputStream in, byte tag ) throws IOException
+    {
+        if ( tag == NULL_KEY )
+        {
+            return null;
+        }
+
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully( bytes );
+
+        if ( tag == STRING_KEY )
+        {
+            return Strings.utf8ToString( bytes );
+        }
+
+        return bytes;
+    }
+
+
+    private static long estimateKeySize( Object key )
+    {
+        if ( key instanceof String )
+        {
+            return RECORD_OVERHEAD + 40L + ( ( String ) key ).length() * 2L;
+        }
+        else if ( key instanceof byte[] )
+        {
+            return RECORD_OVERHEAD + 16L + ( ( byte[] ) key ).length;
+        }
+
+        return RECORD_OVERHEAD;
+    }
+
+
+    private static long estimateEntrySize( Entry entry )
+    {
+        long estimate = ATTRIBUTE_OVERHEAD + entry.getDn().getName().length() * 4L;
+
+        for ( Attribute attribute : entry )
+        {
+            estimate += ATTRIBUTE_OVERHEAD;
+
+            for ( Value value : attribute )
+            {
+                if ( value.isHumanReadable() )
+                {
+                    // The user provided and the normalized values
+                    estimate += VALUE_OVERHEAD + value.getString().length() * 4L;
+                }
+                else
+                {
+                    estimate += VALUE_OVERHEAD + value.getBytes().length;
+                }
+            }
+        }
+
+        return estimate;
+    }
+
+
+    private static void closeQuietly( Closeable closeable )
+    {
+        if ( closeable != null )
+        {
+            try
+            {
+                closeable.close();
+            }
+            catch ( IOException ioe )
+            {
+                LOG.warn( "Failed to close {}", closeable, ioe );
+            }
+        }
+    }
+
+
+    private static void delete( File file )
+    {
+        if ( ( file != null ) && file.exists() && !file.delete() )
+        {
+            LOG.warn( "Failed to delete the sort file {}", file );
+        }
+    }
+}
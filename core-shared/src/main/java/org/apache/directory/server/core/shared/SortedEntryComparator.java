@@ -20,9 +20,7 @@
 package org.apache.directory.server.core.shared;
 
 
-import java.io.Serializable;
 import java.util.Comparator;
-import java.util.TreeSet;
 
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Attribute;
@@ -36,18 +34,20 @@ import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.ldap.model.schema.comparators.ParsedDnComparator;
 
 /**
- * A comparator to sort the entries as per <a href="http://tools.ietf.org/html/rfc2891">RFC 2891</a>
+ * A comparator to sort the entries as per <a href="http://tools.ietf.org/html/rfc2891">RFC 2891</a>.
+ * The comparison is done on the sort key of each entry, which can be extracted once
+ * using {@link #getSortKey(Entry)} and then compared with {@link #compareKeys(Object, Object)}.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
-class SortedEntryComparator implements Comparator<Entry>, Serializable
+class SortedEntryComparator implements Comparator<Entry>
 {
 
     /** the attribute's type */
-    private transient AttributeType type;
+    private AttributeType type;
 
     /** comparator used for comparing the values of the given attribute type */
-    private transient LdapComparator comparator;
+    private LdapComparator comparator;
 
     /** flag to indicate if the attribute type is multivalued */
     private boolean multivalued;
@@ -113,97 +113,112 @@ class SortedEntryComparator implements Comparator<Entry>, Serializable
     @Override
     public int compare( Entry entry1, Entry entry2 )
     {
-        Attribute at1 = entry1.get( type );
+        return compareKeys( getSortKey( entry1 ), getSortKey( entry2 ) );
+    }
 
-        Attribute at2 = entry2.get( type );
 
-        // as per section 2.2 of the spec null values are considered larger
-        if ( at1 == null )
-        {
-            return reverse ? -1 : 1;
-        }
-        else if ( at2 == null )
+    /**
+     * @return <tt>true</tt> if the sort keys are normalized Strings, <tt>false</tt> if they
+     * are byte[]
+     */
+    boolean isHumanReadable()
+    {
+        return hr;
+    }
+
+
+    /**
+     * Extracts the sort key of an entry : the normalized value of the sorted attribute,
+     * or its least value if the attribute is multi-valued.
+     * 
+     * @param entry the entry
+     * @return the sort key, a String or a byte[], or null if the entry does not have the attribute
+     */
+    Object getSortKey( Entry entry )
+    {
+        Attribute attribute = entry.get( type );
+
+        if ( ( attribute == null ) || ( attribute.size() == 0 ) )
         {
-            return reverse ? 1 : -1;
+            return null;
         }
 
-        Object o1;
-        Object o2;
-
-        if ( multivalued )
+        if ( !multivalued )
         {
-            TreeSet ts = new TreeSet( comparator );
+            return getKey( attribute.get() );
+        }
 
-            o1 = sortAndGetFirst( at1, ts );
+        Object least = null;
 
-            ts.clear();
-            o2 = sortAndGetFirst( at2, ts );
-        }
-        else
+        for ( Value value : attribute )
         {
-            Value v1 = at1.get();
-            Value v2 = at2.get();
+            Object key = getKey( value );
 
-            if ( hr )
+            if ( ( least == null ) || ( compare( key, least ) < 0 ) )
             {
-                o1 = v1.getString();
-                o2 = v2.getString();
-            }
-            else
-            {
-                o1 = v1.getBytes();
-                o2 = v2.getBytes();
+                least = key;
             }
         }
 
-        int c;
+        return least;
+    }
 
-        try
+
+    /**
+     * Compares two sort keys, in the requested order. As per section 2.2 of the spec
+     * the missing values are considered larger than any other value.
+     * 
+     * @param key1 the first sort key, possibly null
+     * @param key2 the second sort key, possibly null
+     * @return a negative value if the first key goes first, a positive value if it goes last, 0 if
+     * the keys are equal
+     */
+    int compareKeys( Object key1, Object key2 )
+    {
+        if ( key1 == null )
         {
-            if ( reverse )
+            if ( key2 == null )
             {
-                c = comparator.compare( comparator.getNormalizer().normalize( ( String ) o2 ), o1 );
-            }
-            else
-            {
-                c = comparator.compare( comparator.getNormalizer().normalize( ( String ) o1 ), o2 );
-            }
-    
-            if ( c == 0 )
-            {
-                return 1;
+                return 0;
             }
 
-            return c;
+            return reverse ? -1 : 1;
         }
-        catch ( LdapException le )
+        else if ( key2 == null )
         {
-            return 0;
+            return reverse ? 1 : -1;
         }
+
+        int c = compare( key1, key2 );
+
+        return reverse ? -c : c;
     }
 
 
-    /**
-     * sorts the values of an attribute and picks the least value
-     * 
-     * @param at the attribute
-     * @param ts the TreeSet for sorting 
-     * @return the least value among the values of the attribute
-     */
-    private Object sortAndGetFirst( Attribute at, TreeSet ts )
+    private Object getKey( Value value )
     {
-        for ( Value v : at )
+        if ( hr )
         {
-            if ( hr )
-            {
-                ts.add( v.getNormalized() );
-            }
-            else
-            {
-                ts.add( v.getBytes() );
-            }
+            return value.getNormalized();
+        }
+        else
+        {
+            return value.getBytes();
         }
+    }
+
 
-        return ts.first();
+    @SuppressWarnings("unchecked")
+    private int compare( Object key1, Object key2 )
+    {
+        try
+        {
+            return comparator.compare( key1, key2 );
+        }
+        catch ( RuntimeException re )
+        {
+            // Values the comparator can't deal with are considered equal
+            return 0;
+        }
     }
-}
\ No newline at end of file
+}
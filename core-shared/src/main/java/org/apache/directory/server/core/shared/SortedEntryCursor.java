@@ -20,15 +20,8 @@
 package org.apache.directory.server.core.shared;
 
 
-import java.io.File;
 import java.io.IOException;
 import java.util.List;
-import java.util.NoSuchElementException;
-
-import jdbm.RecordManager;
-import jdbm.btree.BTree;
-import jdbm.helper.Tuple;
-import jdbm.helper.TupleBrowser;
 
 import org.apache.directory.api.ldap.model.cursor.AbstractCursor;
 import org.apache.directory.api.ldap.model.cursor.CursorException;
@@ -43,10 +36,8 @@ import org.slf4j.LoggerFactory;
 
 
 /**
- * Cursor for sorted entries.
- * 
- * Note: This currently uses JDBM, but will be migrated to use Mavibot
- *       when ready.
+ * Cursor for sorted entries. The entries are read from an {@link EntrySorter}, which
+ * is closed when the cursor is closed.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -54,31 +45,27 @@ public class SortedEntryCursor extends AbstractCursor<Entry> implements EntryFil
 {
 
     private static final Logger LOG = LoggerFactory.getLogger( SortedEntryCursor.class );
-    
-    private TupleBrowser browser;
 
-    private final Tuple tuple = new Tuple();
+    /** The sorted entries */
+    private EntrySorter sorter;
+
+    /** The current position, -1 before the first entry, size after the last one */
+    private int position = -1;
 
-    private RecordManager recMan;
+    /** The entry at the current position, once read */
+    private Entry entry;
 
-    private File dataFile;
-    
-    private BTree<Entry, String> btree;
-    
 
-    public SortedEntryCursor( BTree<Entry, String> btree, RecordManager recMan, File dataFile ) throws IOException
+    SortedEntryCursor( EntrySorter sorter )
     {
-        this.recMan = recMan;
-        this.dataFile = dataFile;
-        this.btree = btree;
-        browser = btree.browse();
+        this.sorter = sorter;
     }
 
 
     @Override
     public boolean available()
     {
-        return tuple.getKey() != null;
+        return ( position >= 0 ) && ( position < sorter.size() );
     }
 
 
@@ -99,31 +86,14 @@ public class SortedEntryCursor extends AbstractCursor<Entry> implements EntryFil
     @Override
     public void beforeFirst() throws LdapException, CursorException
     {
-        try
-        {
-            clearValue();
-            browser = btree.browse();
-        }
-        catch ( IOException e )
-        {
-            throw new CursorException( e );
-        }
+        moveTo( -1 );
     }
 
 
     @Override
     public void afterLast() throws LdapException, CursorException
     {
-        try
-        {
-            clearValue();
-            browser = btree.browse( null );
-        }
-        catch ( IOException e )
-        {
-            throw new CursorException( e );
-        }
-
+        moveTo( sorter.size() );
     }
 
 
@@ -146,80 +116,55 @@ public class SortedEntryCursor extends AbstractCursor<Entry> implements EntryFil
     @Override
     public boolean previous() throws LdapException, CursorException
     {
-        try
-        {
-
-            if ( browser == null )
-            {
-                browser = btree.browse( null );
-            }
-            
-            if ( browser.getPrevious( tuple ) )
-            {
-                return true;
-            }
-        }
-        catch ( IOException e )
-        {
-            throw new CursorException( e );
-        }
-        catch ( NoSuchElementException e )
+        if ( position >= 0 )
         {
-            // ignore this is due to the call wrapped.prev()
-            // instead of doing a check like if(wrapped.hasPrev())
+            moveTo( position - 1 );
         }
 
-        clearValue();
-        return false;
+        return available();
     }
 
 
     @Override
     public boolean next() throws LdapException, CursorException
     {
-        try
+        if ( position < sorter.size() )
         {
-            if ( browser == null )
-            {
-                browser = btree.browse();
-            }
-            
-            if ( browser.getNext( tuple ) )
-            {
-                return true;
-            }
-        }
-        catch ( IOException e )
-        {
-            throw new CursorException( e );
-        }
-        catch ( NoSuchElementException e )
-        {
-            // ignore, this is due to the call wrapped.prev()
-            // instead of doing a check like if(wrapped.hasNext())
+            moveTo( position + 1 );
         }
 
-        clearValue();
-        return false;
+        return available();
     }
 
 
     @Override
     public Entry get() throws CursorException
     {
-        if ( tuple.getKey() == null )
+        if ( !available() )
         {
             throw new InvalidCursorPositionException();
         }
 
-        return ( Entry ) tuple.getKey();
+        if ( entry == null )
+        {
+            try
+            {
+                entry = sorter.get( position );
+            }
+            catch ( IOException e )
+            {
+                throw new CursorException( e );
+            }
+        }
+
+        return entry;
     }
 
 
     @Override
     public void close() throws IOException
     {
-        deleteFile();
+        closeSorter();
         super.close();
     }
 
@@ -227,7 +172,7 @@ public class SortedEntryCursor extends AbstractCursor<Entry> implements EntryFil
     @Override
     public void close( Exception cause ) throws IOException
     {
-        deleteFile();
+        closeSorter();
         super.close( cause );
     }
 
@@ -252,29 +197,23 @@ public class SortedEntryCursor extends AbstractCursor<Entry> implements EntryFil
         return null;
     }
 
-    
-    private void clearValue()
+
+    private void moveTo( int newPosition )
     {
-        tuple.setKey( null );
-        tuple.setValue( null );
+        position = newPosition;
+        entry = null;
     }
 
-    
-    private void deleteFile()
-    {
-        if ( recMan == null )
-        {
-            return;
-        }
 
+    private void closeSorter()
+    {
         try
         {
-            recMan.close();
-            dataFile.delete();
+            sorter.close();
         }
         catch ( IOException e )
         {
-            LOG.warn( "Failed to delete the sorted entry data file {}", dataFile, e );
+            LOG.warn( "Failed to delete the sorted entry files", e );
         }
     }
 }
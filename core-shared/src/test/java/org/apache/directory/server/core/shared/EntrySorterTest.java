@@ -0,0 +1,413 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.shared;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.FileUtils;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link EntrySorter}, sorting in memory or spilling the entries on disk.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EntrySorterTest
+{
+    /** A memory budget large enough for all the tested entries */
+    private static final long LARGE_MEMORY = 64L * 1024L * 1024L;
+
+    /** A memory budget exceeded by each entry : each entry is spilled in its own run */
+    private static final long TINY_MEMORY = 1L;
+
+    /** The SchemaManager instance */
+    private static SchemaManager schemaManager;
+
+    /** The directory containing the temporary files */
+    private File tempDirectory;
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = EntrySorterTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        SortedEntrySerializer.setSchemaManager( schemaManager );
+    }
+
+
+    @Before
+    public void createTempDirectory() throws Exception
+    {
+        tempDirectory = Files.createTempDirectory( getClass().getSimpleName() ).toFile();
+    }
+
+
+    @After
+    public void deleteTempDirectory() throws Exception
+    {
+        FileUtils.deleteDirectory( tempDirectory );
+    }
+
+
+    private static SortedEntryComparator comparator( String attribute, boolean reverse ) throws Exception
+    {
+        return new SortedEntryComparator( schemaManager.getAttributeType( attribute ), null, reverse, schemaManager );
+    }
+
+
+    private static Entry entry( int id, String sn ) throws Exception
+    {
+        return new DefaultEntry( schemaManager,
+            "cn=user" + id + ",ou=system",
+            "objectClass: person",
+            "cn: user" + id,
+            "sn", sn );
+    }
+
+
+    /**
+     * Creates entries having distinct surnames, in a random order
+     */
+    private static List<Entry> shuffledEntries( int count ) throws Exception
+    {
+        List<Entry> entries = new ArrayList<>();
+
+        for ( int i = 0; i < count; i++ )
+        {
+            entries.add( entry( i, String.format( "sn%05d", i ) ) );
+        }
+
+        Collections.shuffle( entries, new Random( 42L ) );
+
+        return entries;
+    }
+
+
+    private EntrySorter sort( SortedEntryComparator comparator, long maxMemory, long limit, List<Entry> entries )
+        throws Exception
+    {
+        EntrySorter sorter = new EntrySorter( comparator, maxMemory, limit, tempDirectory );
+
+        for ( Entry entry : entries )
+        {
+            sorter.add( entry );
+        }
+
+        sorter.sort();
+
+        return sorter;
+    }
+
+
+    private static List<String> surnames( EntrySorter sorter ) throws Exception
+    {
+        List<String> surnames = new ArrayList<>();
+
+        for ( int i = 0; i < sorter.size(); i++ )
+        {
+            surnames.add( sorter.get( i ).get( "sn" ).getString() );
+        }
+
+        return surnames;
+    }
+
+
+    private static List<String> expectedSurnames( int from, int to, boolean reverse )
+    {
+        List<String> surnames = new ArrayList<>();
+
+        for ( int i = from; i < to; i++ )
+        {
+            surnames.add( String.format( "sn%05d", i ) );
+        }
+
+        if ( reverse )
+        {
+            Collections.reverse( surnames );
+        }
+
+        return surnames;
+    }
+
+
+    private int countTempFiles()
+    {
+        String[] files = tempDirectory.list();
+
+        return files == null ? 0 : files.length;
+    }
+
+
+    @Test
+    public void testInMemorySort() throws Exception
+    {
+        try ( EntrySorter sorter = sort( comparator( "sn", false ), LARGE_MEMORY, 0L, shuffledEntries( 500 ) ) )
+        {
+            assertEquals( 500, sorter.size() );
+            assertEquals( expectedSurnames( 0, 500, false ), surnames( sorter ) );
+
+            // Nothing has been written on disk
+            assertEquals( 0, countTempFiles() );
+        }
+    }
+
+
+    @Test
+    public void testSpilledSort() throws Exception
+    {
+        // A few entries fit in memory : several runs are written, and merged in one pass
+        EntrySorter sorter = sort( comparator( "sn", false ), 16L * 1024L, 0L, shuffledEntries( 500 ) );
+
+        try
+        {
+            assertEquals( 500, sorter.size() );
+            assertTrue( countTempFiles() > 0 );
+            assertEquals( expectedSurnames( 0, 500, false ), surnames( sorter ) );
+        }
+        finally
+        {
+            sorter.close();
+        }
+
+        assertEquals( 0, countTempFiles() );
+    }
+
+
+    @Test
+    public void testMergeAboveMaxFanIn() throws Exception
+    {
+        // Each entry is spilled in its own run : the runs are merged in several passes
+        int count = EntrySorter.MAX_FAN_IN * 3 + 7;
+        EntrySorter sorter = sort( comparator( "sn", false ), TINY_MEMORY, 0L, shuffledEntries( count ) );
+
+        try
+        {
+            // Only the data file and the index of the sorted offsets are left
+            assertEquals( 2, countTempFiles() );
+            assertEquals( count, sorter.size() );
+            assertEquals( expectedSurnames( 0, count, false ), surnames( sorter ) );
+        }
+        finally
+        {
+            sorter.close();
+        }
+
+        assertEquals( 0, countTempFiles() );
+    }
+
+
+    @Test
+    public void testReverseOrder() throws Exception
+    {
+        try ( EntrySorter sorter = sort( comparator( "sn", true ), LARGE_MEMORY, 0L, shuffledEntries( 200 ) ) )
+        {
+            assertEquals( expectedSurnames( 0, 200, true ), surnames( sorter ) );
+        }
+
+        try ( EntrySorter sorter = sort( comparator( "sn", true ), TINY_MEMORY, 0L, shuffledEntries( 200 ) ) )
+        {
+            assertEquals( expectedSurnames( 0, 200, true ), surnames( sorter ) );
+        }
+    }
+
+
+    @Test
+    public void testSizeLimit() throws Exception
+    {
+        // The search size limit is 10 : the session keeps one more entry, to detect the limit is exceeded
+        long limit = 11L;
+
+        try ( EntrySorter sorter = sort( comparator( "sn", false ), LARGE_MEMORY, limit, shuffledEntries( 500 ) ) )
+        {
+            assertEquals( limit, sorter.size() );
+            assertEquals( expectedSurnames( 0, ( int ) limit, false ), surnames( sorter ) );
+        }
+
+        try ( EntrySorter sorter = sort( comparator( "sn", false ), TINY_MEMORY, limit, shuffledEntries( 500 ) ) )
+        {
+            assertEquals( limit, sorter.size() );
+            assertEquals( expectedSurnames( 0, ( int ) limit, false ), surnames( sorter ) );
+        }
+
+        try ( EntrySorter sorter = sort( comparator( "sn", true ), TINY_MEMORY, limit, shuffledEntries( 500 ) ) )
+        {
+            assertEquals( expectedSurnames( 500 - ( int ) limit, 500, true ), surnames( sorter ) );
+        }
+
+        // Less entries than the limit
+        try ( EntrySorter sorter = sort( comparator( "sn", false ), TINY_MEMORY, limit, shuffledEntries( 5 ) ) )
+        {
+            assertEquals( expectedSurnames( 0, 5, false ), surnames( sorter ) );
+        }
+    }
+
+
+    @Test
+    public void testDuplicateKeysKeepArrivalOrder() throws Exception
+    {
+        // 4 surnames shared by 50 entries each, added in a random order
+        List<Entry> entries = new ArrayList<>();
+        Random random = new Random( 7L );
+
+        for ( int i = 0; i < 200; i++ )
+        {
+            entries.add( entry( i, "sn" + random.nextInt( 4 ) ) );
+        }
+
+        for ( long maxMemory : new long[]
+            { LARGE_MEMORY, 8L * 1024L, TINY_MEMORY } )
+        {
+            try ( EntrySorter sorter = sort( comparator( "sn", false ), maxMemory, 0L, entries ) )
+            {
+                assertEquals( entries.size(), sorter.size() );
+
+                String previousSn = null;
+                int previousIndex = -1;
+
+                for ( int i = 0; i < sorter.size(); i++ )
+                {
+                    Entry sorted = sorter.get( i );
+                    String sn = sorted.get( "sn" ).getString();
+                    int index = Integer.parseInt( sorted.get( "cn" ).getString().substring( 4 ) );
+
+                    if ( sn.equals( previousSn ) )
+                    {
+                        assertTrue( "The entries with the same key must keep their order", index > previousIndex );
+                    }
+                    else if ( previousSn != null )
+                    {
+                        assertTrue( sn.compareTo( previousSn ) > 0 );
+                    }
+
+                    previousSn = sn;
+                    previousIndex = index;
+                }
+            }
+        }
+    }
+
+
+    @Test
+    public void testTempFilesDeletedOnAbandon() throws Exception
+    {
+        EntrySorter sorter = sort( comparator( "sn", false ), TINY_MEMORY, 0L, shuffledEntries( 100 ) );
+        assertTrue( countTempFiles() > 0 );
+
+        // The search is abandoned after a few entries
+        SortedEntryCursor cursor = new SortedEntryCursor( sorter );
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            assertTrue( cursor.next() );
+            cursor.get();
+        }
+
+        cursor.close();
+
+        assertEquals( 0, countTempFiles() );
+    }
+
+
+    @Test
+    public void testTempFilesDeletedOnFailure() throws Exception
+    {
+        // The sort key extraction fails once the entries have been spilled
+        SortedEntryComparator failing = new SortedEntryComparator( schemaManager.getAttributeType( "sn" ), null,
+            false, schemaManager )
+        {
+            private int calls;
+
+
+            @Override
+            Object getSortKey( Entry entry )
+            {
+                if ( ++calls == 50 )
+                {
+                    throw new IllegalStateException( "Broken entry" );
+                }
+
+                return super.getSortKey( entry );
+            }
+        };
+
+        EntrySorter sorter = new EntrySorter( failing, TINY_MEMORY, 0L, tempDirectory );
+
+        try
+        {
+            for ( Entry entry : shuffledEntries( 100 ) )
+            {
+                sorter.add( entry );
+            }
+
+            fail();
+        }
+        catch ( IllegalStateException ise )
+        {
+            // Expected : the session closes the sorter
+            assertTrue( countTempFiles() > 0 );
+            sorter.close();
+        }
+
+        assertEquals( 0, countTempFiles() );
+    }
+}
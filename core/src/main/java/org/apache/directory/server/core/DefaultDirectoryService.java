@@ -202,6 +202,12 @@ public class DefaultDirectoryService implements DirectoryService
     /** The default delay to wait between sync on disk : 15 seconds */
     private static final long DEFAULT_SYNC_PERIOD = 15000;
 
+    /** The memory budget used to sort the search results, in bytes */
+    private long sortMaxMemory = DEFAULT_SORT_MAX_MEMORY;
+
+    /** The default sort memory budget : 8Mb */
+    private static final long DEFAULT_SORT_MAX_MEMORY = 8L * 1024L * 1024L;
+
     /** The default timeLimit : 100 entries */
     public static final int MAX_SIZE_LIMIT_DEFAULT = 100;
 
@@ -2323,6 +2329,24 @@ public class DefaultDirectoryService implements DirectoryService
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    public long getSortMaxMemory()
+    {
+        return sortMaxMemory;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setSortMaxMemory( long sortMaxMemory )
+    {
+        this.sortMaxMemory = sortMaxMemory;
+    }
+
+
     /**
      * checks if the working directory is already in use by some other directory service, if yes
      * then throws a runtime exception else will obtain the lock on the working directory
@@ -23,6 +23,10 @@ package org.apache.directory.server.core;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -47,6 +51,7 @@ import org.apache.directory.api.ldap.model.name.Rdn;
 import org.apache.directory.api.ldap.model.url.LdapUrl;
 import org.apache.directory.server.core.api.CoreSession;
 import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.OperationLockMode;
 import org.apache.directory.server.core.api.OperationManager;
 import org.apache.directory.server.core.api.ReferralManager;
 import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
@@ -66,7 +71,9 @@ import org.apache.directory.server.core.api.interceptor.context.RenameOperationC
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.UnbindOperationContext;
 import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionReadTxn;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.api.partition.PartitionWriteTxn;
 import org.apache.directory.server.i18n.I18n;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -97,7 +104,48 @@ public class DefaultOperationManager implements OperationManager
     private final DirectoryService directoryService;
 
     /** A lock used to protect against concurrent operations */
-    private ReadWriteLock rwLock = new ReentrantReadWriteLock( true );
+    private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock( true );
+
+    /** The way we protect the backends against concurrent operations */
+    private volatile OperationLockMode lockMode = OperationLockMode.GLOBAL;
+
+    /** The per partition locks, used in PARTITION lock mode. The key is the partition's normalized suffix */
+    private final Map<String, PartitionLock> partitionLocks = new ConcurrentHashMap<>();
+
+    /** Incremented each time the lock mode is changed */
+    private volatile int lockModeVersion;
+
+    /** The partition locks held by the current thread, in acquisition order */
+    private final ThreadLocal<List<PartitionLock>> heldLocks = new ThreadLocal<List<PartitionLock>>()
+    {
+        @Override
+        protected List<PartitionLock> initialValue()
+        {
+            return new ArrayList<>();
+        }
+    };
+
+    /** The maximum time we wait for a partition lock taken out of order, in milliseconds */
+    private static final long LOCK_ORDER_TIMEOUT = 1000L;
+
+    /**
+     * A partition lock. The partition locks are ordered by their suffix.
+     */
+    private static final class PartitionLock extends ReentrantReadWriteLock
+    {
+        private static final long serialVersionUID = 1L;
+
+        /** The partition's normalized suffix */
+        private final String suffix;
+
+
+        private PartitionLock( String suffix )
+        {
+            super( true );
+            this.suffix = suffix;
+        }
+    }
+
 
     public DefaultOperationManager( DirectoryService directoryService )
     {
@@ -114,6 +162,92 @@ public class DefaultOperationManager implements OperationManager
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    public ReadWriteLock getRWLock( Partition partition )
+    {
+        if ( ( lockMode == OperationLockMode.GLOBAL ) || ( partition == null ) )
+        {
+            return rwLock;
+        }
+
+        Dn suffixDn = partition.getSuffixDn();
+
+        if ( ( suffixDn == null ) || suffixDn.isRootDse() )
+        {
+            // The RootDSE does not belong to any naming context
+            return rwLock;
+        }
+
+        String suffix = suffixDn.getNormName();
+        PartitionLock partitionLock = partitionLocks.get( suffix );
+
+        if ( partitionLock == null )
+        {
+            partitionLock = new PartitionLock( suffix );
+            PartitionLock existingLock = partitionLocks.putIfAbsent( suffix, partitionLock );
+
+            if ( existingLock != null )
+            {
+                partitionLock = existingLock;
+            }
+        }
+
+        return partitionLock;
+    }
+
+
+    /**
+     * @return the lock mode used to protect the backends against concurrent operations
+     */
+    public OperationLockMode getLockMode()
+    {
+        return lockMode;
+    }
+
+
+    /**
+     * Sets the lock mode used to protect the backends against concurrent operations. 
+     * The switch waits for the server to be idle : all the operations hold the server wide
+     * lock, so once we hold it exclusively, no partition lock is held anymore. The operations
+     * waiting for a lock check the lock mode has not changed once they get it.
+     * 
+     * @param lockMode the lock mode to use
+     * @throws IllegalStateException If the current thread is itself running an operation
+     */
+    public void setLockMode( OperationLockMode lockMode )
+    {
+        if ( ( rwLock.getReadHoldCount() > 0 ) || rwLock.isWriteLockedByCurrentThread()
+            || !heldLocks.get().isEmpty() )
+        {
+            throw new IllegalStateException( "The lock mode can't be changed from within an operation" );
+        }
+
+        rwLock.writeLock().lock();
+
+        try
+        {
+            for ( PartitionLock partitionLock : partitionLocks.values() )
+            {
+                if ( partitionLock.isWriteLocked() || ( partitionLock.getReadLockCount() > 0 ) )
+                {
+                    throw new IllegalStateException( "The partition " + partitionLock.suffix
+                        + " is locked outside of an operation" );
+                }
+            }
+
+            this.lockMode = lockMode;
+            lockModeVersion++;
+            partitionLocks.clear();
+        }
+        finally
+        {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+
     /**
      * Acquires a ReadLock
      */
@@ -150,6 +284,302 @@ public class DefaultOperationManager implements OperationManager
     }
 
 
+    /**
+     * Waits for the changes committed by an operation to be durable. It is called once the
+     * partition lock has been released : the changes committed within a session transaction
+     * are only durable once the session transaction is ended.
+     * 
+     * @param opContext The operation context
+     * @param transaction The operation write transaction
+     * @throws LdapException If the changes can't be flushed
+     */
+    private static void awaitDurability( OperationContext opContext, PartitionTxn transaction ) throws LdapException
+    {
+        if ( opContext.getSession().hasSessionTransaction() || !( transaction instanceof PartitionWriteTxn ) )
+        {
+            return;
+        }
+
+        try
+        {
+            ( ( PartitionWriteTxn ) transaction ).awaitDurability();
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * Tells if a transaction reads from a snapshot of the partition. Such a transaction
+     * does not need to be protected against concurrent writes.
+     * 
+     * @param transaction The transaction to check
+     * @return <tt>true</tt> if the transaction reads from a snapshot
+     */
+    private static boolean isSnapshot( PartitionTxn transaction )
+    {
+        return ( transaction instanceof PartitionReadTxn ) && ( ( PartitionReadTxn ) transaction ).isSnapshot();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public ReadWriteLock lockRead( Partition partition ) throws LdapException
+    {
+        return lock( partition, null, false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void unlockRead( ReadWriteLock lock )
+    {
+        release( lock, false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public ReadWriteLock lockWrite( Partition partition ) throws LdapException
+    {
+        return lock( partition, null, true );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void unlockWrite( ReadWriteLock lock )
+    {
+        release( lock, true );
+    }
+
+
+    /**
+     * Acquires the ReadLock protecting a partition. Nothing is locked if the transaction 
+     * reads from a snapshot.
+     * 
+     * @param partition The partition to protect
+     * @param transaction The read transaction
+     * @return The acquired lock, or <tt>null</tt> for a snapshot transaction
+     * @throws LdapException If the lock can't be acquired without breaking the lock order
+     */
+    private ReadWriteLock lockRead( Partition partition, PartitionTxn transaction ) throws LdapException
+    {
+        if ( isSnapshot( transaction ) )
+        {
+            return null;
+        }
+
+        return lock( partition, null, false );
+    }
+
+
+    /**
+     * Releases a ReadLock acquired with {@link #lockRead(Partition, PartitionTxn)}
+     * 
+     * @param lock The lock to release, <tt>null</tt> for a snapshot transaction
+     */
+    private void unlockRead( ReadWriteLock lock, PartitionTxn transaction )
+    {
+        if ( lock != null )
+        {
+            release( lock, false );
+        }
+    }
+
+
+    /**
+     * Acquires the WriteLock protecting an operation impacting one or two partitions. 
+     * 
+     * @param partition The partition containing the entry
+     * @param targetDn The Dn the entry is moved under, if any
+     * @return The acquired lock
+     * @throws LdapException If the lock can't be acquired without breaking the lock order
+     */
+    private ReadWriteLock lockWrite( Partition partition, Dn targetDn ) throws LdapException
+    {
+        return lock( partition, targetDn, true );
+    }
+
+
+    /**
+     * Acquires a lock. The server wide lock is always taken first : exclusively in GLOBAL mode, 
+     * or for a cross partition operation, in shared mode otherwise. The partition locks are then
+     * taken by increasing suffix order. A thread already holding the lock of a partition ordered
+     * after the requested one (a nested operation) does not wait forever for it, as another thread 
+     * may hold the locks in the opposite order : it gives up after {@link #LOCK_ORDER_TIMEOUT} ms.
+     * <br>
+     * As the lock mode can only be changed while no lock is held, we check that the lock mode 
+     * has not been changed while we were waiting for the lock. Otherwise, we try again.
+     * 
+     * @param partition The partition containing the entry
+     * @param targetDn The Dn the entry is moved under, if any
+     * @param write If we want the WriteLock
+     * @return The acquired lock
+     * @throws LdapException If the lock can't be acquired without breaking the lock order
+     */
+    private ReadWriteLock lock( Partition partition, Dn targetDn, boolean write ) throws LdapException
+    {
+        while ( true )
+        {
+            int version = lockModeVersion;
+            ReadWriteLock lock = ( targetDn == null ) ? getRWLock( partition ) : getRWLock( partition, targetDn );
+
+            if ( lock == rwLock )
+            {
+                Lock globalLock = write ? rwLock.writeLock() : rwLock.readLock();
+                globalLock.lock();
+
+                if ( version == lockModeVersion )
+                {
+                    return lock;
+                }
+
+                globalLock.unlock();
+                continue;
+            }
+
+            rwLock.readLock().lock();
+
+            if ( version != lockModeVersion )
+            {
+                rwLock.readLock().unlock();
+                continue;
+            }
+
+            try
+            {
+                acquire( ( PartitionLock ) lock, write );
+            }
+            catch ( LdapException le )
+            {
+                rwLock.readLock().unlock();
+                throw le;
+            }
+
+            return lock;
+        }
+    }
+
+
+    /**
+     * Acquires a partition lock, checking the lock order.
+     */
+    private void acquire( PartitionLock partitionLock, boolean write ) throws LdapException
+    {
+        List<PartitionLock> locks = heldLocks.get();
+        Lock lock = write ? partitionLock.writeLock() : partitionLock.readLock();
+        boolean ordered = true;
+
+        for ( PartitionLock heldLock : locks )
+        {
+            if ( ( heldLock != partitionLock ) && ( heldLock.suffix.compareTo( partitionLock.suffix ) > 0 ) )
+            {
+                ordered = false;
+                break;
+            }
+        }
+
+        if ( ordered )
+        {
+            lock.lock();
+        }
+        else
+        {
+            boolean acquired = false;
+
+            try
+            {
+                acquired = lock.tryLock( LOCK_ORDER_TIMEOUT, TimeUnit.MILLISECONDS );
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            if ( !acquired )
+            {
+                String message = "Cannot lock the partition " + partitionLock.suffix
+                    + " while holding the lock of a partition ordered after it";
+                OPERATION_LOG.warn( message );
+                throw new LdapServiceUnavailableException( ResultCodeEnum.BUSY, message );
+            }
+        }
+
+        locks.add( partitionLock );
+    }
+
+
+    /**
+     * Releases a lock acquired with {@link #lock(Partition, Dn, boolean)}
+     */
+    private void release( ReadWriteLock lock, boolean write )
+    {
+        if ( lock == rwLock )
+        {
+            if ( write )
+            {
+                rwLock.writeLock().unlock();
+            }
+            else
+            {
+                rwLock.readLock().unlock();
+            }
+
+            return;
+        }
+
+        if ( write )
+        {
+            lock.writeLock().unlock();
+        }
+        else
+        {
+            lock.readLock().unlock();
+        }
+
+        List<PartitionLock> locks = heldLocks.get();
+        locks.remove( locks.lastIndexOf( lock ) );
+        rwLock.readLock().unlock();
+    }
+
+
+    /**
+     * Gets the lock to use for an operation impacting two partitions. If both partitions 
+     * are the same, this is the partition lock, otherwise this is the server wide lock.
+     * 
+     * @param partition The partition containing the entry
+     * @param targetDn The Dn the entry is moved under
+     * @return The lock to use
+     * @throws LdapException If the target partition can't be found
+     */
+    private ReadWriteLock getRWLock( Partition partition, Dn targetDn ) throws LdapException
+    {
+        ReadWriteLock lock = getRWLock( partition );
+
+        if ( lock == rwLock )
+        {
+            return lock;
+        }
+
+        Partition targetPartition = directoryService.getPartitionNexus().getPartition( targetDn );
+
+        if ( lock != getRWLock( targetPartition ) )
+        {
+            // Cross partition operation : we need an exclusive access to the whole server
+            return rwLock;
+        }
+
+        return lock;
+    }
+
+
     /**
      * Eagerly populates fields of operation contexts so multiple Interceptors
      * in the processing pathway can reuse this value without performing a
@@ -398,7 +828,7 @@ public class DefaultOperationManager implements OperationManager
         // Call the Add method
         Interceptor head = directoryService.getInterceptor( addContext.getNextInterceptor() );
 
-        lockWrite();
+        ReadWriteLock lock = lockWrite( partition, null );
 
         // Start a Write transaction right away
         PartitionTxn transaction = addContext.getSession().getTransaction( partition ); 
@@ -455,9 +885,11 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            unlockWrite( lock );
         }
 
+        awaitDurability( addContext, transaction );
+
         if ( IS_DEBUG )
         {
             OPERATION_LOG.debug( "<< AddOperation successful" );
@@ -501,27 +933,26 @@ public class DefaultOperationManager implements OperationManager
             bindContext.setDn( dn );
         }
 
-        lockRead();
+        Partition partition = directoryService.getPartitionNexus().getPartition( dn );
 
-        try
+        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
         {
-            Partition partition = directoryService.getPartitionNexus().getPartition( dn );
-            
-            try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+            bindContext.setPartition( partition );
+            bindContext.setTransaction( partitionTxn );
+            ReadWriteLock lock = lockRead( partition, partitionTxn );
+
+            try
             {
-                bindContext.setPartition( partition );
-                bindContext.setTransaction( partitionTxn );
-                
                 head.bind( bindContext );
             }
-            catch ( IOException ioe )
+            finally
             {
-                throw new LdapOtherException( ioe.getMessage(), ioe );
+                unlockRead( lock, partitionTxn );
             }
         }
-        finally
+        catch ( IOException ioe )
         {
-            unlockRead();
+            throw new LdapOtherException( ioe.getMessage(), ioe );
         }
 
         if ( IS_DEBUG )
@@ -616,27 +1047,26 @@ public class DefaultOperationManager implements OperationManager
 
         boolean result = false;
 
-        lockRead();
+        Partition partition = directoryService.getPartitionNexus().getPartition( dn );
 
-        try
+        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
         {
-            Partition partition = directoryService.getPartitionNexus().getPartition( dn );
-            
-            try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+            compareContext.setPartition( partition );
+            compareContext.setTransaction( partitionTxn );
+            ReadWriteLock lock = lockRead( partition, partitionTxn );
+
+            try
             {
-                compareContext.setPartition( partition );
-                compareContext.setTransaction( partitionTxn );
-                
                 result = head.compare( compareContext );
             }
-            catch ( IOException ioe )
+            finally
             {
-                throw new LdapOtherException( ioe.getMessage(), ioe );
+                unlockRead( lock, partitionTxn );
             }
         }
-        finally
+        catch ( IOException ioe )
         {
-            unlockRead();
+            throw new LdapOtherException( ioe.getMessage(), ioe );
         }
 
         if ( IS_DEBUG )
@@ -729,7 +1159,7 @@ public class DefaultOperationManager implements OperationManager
         }
 
         // populate the context with the old entry
-        lockWrite();
+        ReadWriteLock lock = lockWrite( partition, null );
 
         // Start a Write transaction right away
         PartitionTxn transaction = deleteContext.getSession().getTransaction( partition ); 
@@ -791,9 +1221,11 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            unlockWrite( lock );
         }
 
+        awaitDurability( deleteContext, transaction );
+
         if ( IS_DEBUG )
         {
             OPERATION_LOG.debug( "<< DeleteOperation successful" );
@@ -827,28 +1259,26 @@ public class DefaultOperationManager implements OperationManager
 
         Interceptor head = directoryService.getInterceptor( getRootDseContext.getNextInterceptor() );
         Entry root;
+        Partition partition = directoryService.getPartitionNexus().getPartition( Dn.ROOT_DSE );
 
-        try
+        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
         {
-            lockRead();
-            
-            Partition partition = directoryService.getPartitionNexus().getPartition( Dn.ROOT_DSE );
-            
-            try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+            getRootDseContext.setPartition( partition );
+            getRootDseContext.setTransaction( partitionTxn );
+            ReadWriteLock lock = lockRead( partition, partitionTxn );
+
+            try
             {
-                getRootDseContext.setPartition( partition );
-                getRootDseContext.setTransaction( partitionTxn );
-                
                 root = head.getRootDse( getRootDseContext );
             }
-            catch ( IOException ioe )
+            finally
             {
-                throw new LdapOtherException( ioe.getMessage(), ioe );
+                unlockRead( lock, partitionTxn );
             }
         }
-        finally
+        catch ( IOException ioe )
         {
-            unlockRead();
+            throw new LdapOtherException( ioe.getMessage(), ioe );
         }
 
         if ( IS_DEBUG )
@@ -888,8 +1318,6 @@ public class DefaultOperationManager implements OperationManager
 
         boolean result = false;
 
-        lockRead();
-
         // Normalize the addContext Dn
         Dn dn = hasEntryContext.getDn();
         
@@ -899,25 +1327,26 @@ public class DefaultOperationManager implements OperationManager
             hasEntryContext.setDn( dn );
         }
 
-        try
+        Partition partition = directoryService.getPartitionNexus().getPartition( dn );
+
+        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
         {
-            Partition partition = directoryService.getPartitionNexus().getPartition( dn );
+            hasEntryContext.setPartition( partition );
+            hasEntryContext.setTransaction( partitionTxn );
+            ReadWriteLock lock = lockRead( partition, partitionTxn );
 
-            try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+            try
             {
-                hasEntryContext.setPartition( partition );
-                hasEntryContext.setTransaction( partitionTxn );
-
                 result = head.hasEntry( hasEntryContext );
             }
-            catch ( IOException ioe )
+            finally
             {
-                throw new LdapOtherException( ioe.getMessage(), ioe );
+                unlockRead( lock, partitionTxn );
             }
         }
-        finally
+        catch ( IOException ioe )
         {
-            unlockRead();
+            throw new LdapOtherException( ioe.getMessage(), ioe );
         }
 
         if ( IS_DEBUG )
@@ -974,7 +1403,7 @@ public class DefaultOperationManager implements OperationManager
         {
             lookupContext.setTransaction( transaction );
 
-            lockRead();
+            ReadWriteLock lock = lockRead( partition, transaction );
     
             try
             {
@@ -982,7 +1411,7 @@ public class DefaultOperationManager implements OperationManager
             }
             finally
             {
-                unlockRead();
+                unlockRead( lock, transaction );
             }
         }
         catch ( IOException ioe )
@@ -1089,7 +1518,7 @@ public class DefaultOperationManager implements OperationManager
         Partition partition = directoryService.getPartitionNexus().getPartition( dn );
         modifyContext.setPartition( partition );
         
-        lockWrite();
+        ReadWriteLock lock = lockWrite( partition, null );
         
         // Start a Write transaction right away
         PartitionTxn transaction = modifyContext.getSession().getTransaction( partition ); 
@@ -1152,9 +1581,11 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            unlockWrite( lock );
         }
 
+        awaitDurability( modifyContext, transaction );
+
         if ( IS_DEBUG )
         {
             OPERATION_LOG.debug( "<< ModifyOperation successful" );
@@ -1260,12 +1691,12 @@ public class DefaultOperationManager implements OperationManager
             directoryService.getReferralManager().unlock();
         }
 
-        lockWrite();
-        
         // Find the working partition
         Partition partition = directoryService.getPartitionNexus().getPartition( dn );
         moveContext.setPartition( partition );
 
+        ReadWriteLock lock = lockWrite( partition, newSuperiorDn );
+
         // Start a Write transaction right away
         PartitionTxn transaction = moveContext.getSession().getTransaction( partition ); 
         
@@ -1330,9 +1761,11 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            unlockWrite( lock );
         }
 
+        awaitDurability( moveContext, transaction );
+
         if ( IS_DEBUG )
         {
             OPERATION_LOG.debug( "<< MoveOperation successful" );
@@ -1443,7 +1876,7 @@ public class DefaultOperationManager implements OperationManager
         Partition partition = directoryService.getPartitionNexus().getPartition( dn );
         moveAndRenameContext.setPartition( partition );
 
-        lockWrite();
+        ReadWriteLock lock = lockWrite( partition, moveAndRenameContext.getNewSuperiorDn() );
         
         // Start a Write transaction right away
         PartitionTxn transaction = moveAndRenameContext.getSession().getTransaction( partition ); 
@@ -1505,9 +1938,11 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            unlockWrite( lock );
         }
 
+        awaitDurability( moveAndRenameContext, transaction );
+
         if ( IS_DEBUG )
         {
             OPERATION_LOG.debug( "<< MoveAndRenameOperation successful" );
@@ -1611,26 +2046,14 @@ public class DefaultOperationManager implements OperationManager
             directoryService.getReferralManager().unlock();
         }
 
-        lockWrite();
-
         Partition partition = directoryService.getPartitionNexus().getPartition( dn );
+        ReadWriteLock lock = lockWrite( partition, null );
 
-        // Start a Write transaction right away
-        PartitionTxn transaction = renameContext.getSession().getTransaction( partition ); 
+        PartitionTxn transaction = null;
         
         // Call the rename method
         try
         {
-            if ( transaction == null )
-            {
-                transaction = partition.beginWriteTransaction();
-                
-                if ( renameContext.getSession().hasSessionTransaction() )
-                {
-                    renameContext.getSession().addTransaction( partition, transaction );
-                }
-            }
-
             renameContext.setPartition( partition );
 
             // populate the context with the old entry
@@ -1725,9 +2148,11 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            unlockWrite( lock );
         }
 
+        awaitDurability( renameContext, transaction );
+
         if ( IS_DEBUG )
         {
             OPERATION_LOG.debug( "<< RenameOperation successful" );
@@ -1824,7 +2249,7 @@ public class DefaultOperationManager implements OperationManager
         {
             searchContext.setPartition( partition );
             searchContext.setTransaction( partitionTxn );
-            lockRead();
+            ReadWriteLock lock = lockRead( partition, partitionTxn );
     
             try
             {
@@ -1832,7 +2257,7 @@ public class DefaultOperationManager implements OperationManager
             }
             finally
             {
-                unlockRead();
+                unlockRead( lock, partitionTxn );
             }
         }
         catch ( IOException ioe )
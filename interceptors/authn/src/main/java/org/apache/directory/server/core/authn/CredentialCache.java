@@ -0,0 +1,427 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authn;
+
+
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.model.password.PasswordDetails;
+import org.apache.directory.api.ldap.model.password.PasswordUtil;
+
+
+/**
+ * A concurrent cache of the stored credentials of the users, used by the
+ * {@link SimpleAuthenticator}. The lookups don't take any lock : they just flag the
+ * found entry as recently used. The cache is bounded by an estimation of its size
+ * in bytes, and the entries are evicted with a second chance (CLOCK) policy, the
+ * recently used entries being kept for one more round.<br>
+ * The cached credentials hold the algorithm, salt and hash of each stored password,
+ * already split, so that a bind only has to hash the submitted password.<br>
+ * Each removal bumps a generation. A bind reads the generation before looking up the
+ * stored password, and its credentials are not cached if a removal happened meanwhile :
+ * they may have been read before a concurrent password modification.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CredentialCache
+{
+    /** The default cache size, in bytes */
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024L * 1024L;
+
+    /** The estimated size of a cached entry, without the Dn and the passwords */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    /** The cached credentials, by normalized Dn */
+    private final ConcurrentHashMap<String, Credentials> cache = new ConcurrentHashMap<>();
+
+    /** The cached credentials, in insertion order, for the eviction */
+    private final Queue<Credentials> clock = new ConcurrentLinkedQueue<>();
+
+    /** The number of elements in the clock queue, including the replaced or removed credentials */
+    private final AtomicInteger clockSize = new AtomicInteger();
+
+    /** The maximum cache size, in bytes */
+    private final long maxBytes;
+
+    /** The current cache size, in bytes */
+    private final AtomicLong bytes = new AtomicLong();
+
+    /** The number of lookups which found the credentials */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** The number of lookups which didn't find the credentials */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** The number of evicted credentials */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /** The number of removals, used to detect the credentials read before a modification */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * The stored passwords of a user.
+     */
+    public static final class Credentials
+    {
+        /** The user normalized Dn */
+        private final String normName;
+
+        /** The stored passwords */
+        private final byte[][] passwords;
+
+        /** The split passwords, or null for the passwords stored in clear text */
+        private final PasswordDetails[] details;
+
+        /** The estimated size, in bytes */
+        private final int weight;
+
+        /** Tells if the credentials have been used since the last eviction round */
+        private volatile boolean referenced;
+
+
+        /**
+         * Creates a new instance of Credentials, splitting the hashed passwords.
+         *
+         * @param normName The user normalized Dn
+         * @param passwords The stored passwords
+         */
+        public Credentials( String normName, byte[][] passwords )
+        {
+            this.normName = normName;
+            this.passwords = passwords;
+            details = new PasswordDetails[passwords.length];
+            int size = ENTRY_OVERHEAD + normName.length() * 2;
+
+            for ( int i = 0; i < passwords.length; i++ )
+            {
+                if ( PasswordUtil.findAlgorithm( passwords[i] ) != null )
+                {
+                    details[i] = PasswordUtil.splitCredentials( passwords[i] );
+                }
+
+                size += passwords[i].length * 2;
+            }
+
+            weight = size;
+        }
+
+
+        /**
+         * @return The stored passwords
+         */
+        public byte[][] getPasswords()
+        {
+            return passwords;
+        }
+
+
+        /**
+         * Checks the submitted credentials against each stored password.
+         *
+         * @param credentials The submitted credentials
+         * @return <tt>true</tt> if one of the stored passwords matches
+         */
+        public boolean matches( byte[] credentials )
+        {
+            for ( int i = 0; i < passwords.length; i++ )
+            {
+                PasswordDetails passwordDetails = details[i];
+
+                if ( passwordDetails == null )
+                {
+                    if ( PasswordUtil.compareCredentials( credentials, passwords[i] ) )
+                    {
+                        return true;
+                    }
+                }
+                else
+                {
+                    byte[] hash = PasswordUtil.encryptPassword( credentials, passwordDetails.getAlgorithm(),
+                        passwordDetails.getSalt() );
+
+                    if ( MessageDigest.isEqual( hash, passwordDetails.getPassword() ) )
+                    {
+                        return true;
+                    }
+                }
+            }
+
+            return false;
+        }
+    }
+
+
+    /**
+     * Creates a new instance of CredentialCache.
+     *
+     * @param maxBytes The maximum cache size, in bytes
+     */
+    public CredentialCache( long maxBytes )
+    {
+        this.maxBytes = maxBytes > 0 ? maxBytes : DEFAULT_MAX_BYTES;
+    }
+
+
+    /**
+     * Gets the cached credentials of a user.
+     *
+     * @param normName The user normalized Dn
+     * @return The credentials, or null if they are not cached
+     */
+    public Credentials get( String normName )
+    {
+        Credentials credentials = cache.get( normName );
+
+        if ( credentials == null )
+        {
+            misses.incrementAndGet();
+
+            return null;
+        }
+
+        credentials.referenced = true;
+        hits.incrementAndGet();
+
+        return credentials;
+    }
+
+
+    /**
+     * @return The current generation, to read before looking up the credentials to cache
+     */
+    public long getGeneration()
+    {
+        return generation.get();
+    }
+
+
+    /**
+     * Caches the credentials of a user, evicting the least recently used credentials
+     * if the cache is full. The credentials are dropped if some credentials have been
+     * removed since they were read.
+     *
+     * @param credentials The user credentials
+     * @param readGeneration The generation read before looking up the credentials
+     * @return <tt>true</tt> if the credentials have been cached
+     */
+    public boolean put( Credentials credentials, long readGeneration )
+    {
+        if ( generation.get() != readGeneration )
+        {
+            return false;
+        }
+
+        Credentials old = cache.put( credentials.normName, credentials );
+
+        if ( old != null )
+        {
+            bytes.addAndGet( -old.weight );
+        }
+
+        bytes.addAndGet( credentials.weight );
+
+        // A removal may have happened between the check and the put
+        if ( generation.get() != readGeneration )
+        {
+            if ( cache.remove( credentials.normName, credentials ) )
+            {
+                bytes.addAndGet( -credentials.weight );
+            }
+
+            return false;
+        }
+
+        clock.add( credentials );
+        int queued = clockSize.incrementAndGet();
+
+        if ( bytes.get() > maxBytes )
+        {
+            evict();
+        }
+        else if ( queued > 2 * cache.size() + 64 )
+        {
+            purge();
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Removes the credentials of a user, when they are modified.
+     *
+     * @param normName The user normalized Dn
+     */
+    public void remove( String normName )
+    {
+        generation.incrementAndGet();
+        Credentials old = cache.remove( normName );
+
+        if ( old != null )
+        {
+            bytes.addAndGet( -old.weight );
+        }
+    }
+
+
+    /**
+     * Evicts the credentials until the cache size is below its limit. The credentials
+     * used since the previous round get a second chance.
+     */
+    private synchronized void evict()
+    {
+        while ( bytes.get() > maxBytes )
+        {
+            Credentials candidate = clock.poll();
+
+            if ( candidate == null )
+            {
+                return;
+            }
+
+            clockSize.decrementAndGet();
+
+            if ( cache.get( candidate.normName ) != candidate )
+            {
+                // Already replaced or removed
+                continue;
+            }
+
+            if ( candidate.referenced )
+            {
+                candidate.referenced = false;
+                clock.add( candidate );
+                clockSize.incrementAndGet();
+
+                continue;
+            }
+
+            if ( cache.remove( candidate.normName, candidate ) )
+            {
+                bytes.addAndGet( -candidate.weight );
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+
+    /**
+     * Removes the replaced or removed credentials from the clock queue, when the cache
+     * is not full enough for the eviction to do it.
+     */
+    private synchronized void purge()
+    {
+        Iterator<Credentials> iterator = clock.iterator();
+
+        while ( iterator.hasNext() )
+        {
+            Credentials credentials = iterator.next();
+
+            if ( cache.get( credentials.normName ) != credentials )
+            {
+                iterator.remove();
+                clockSize.decrementAndGet();
+            }
+        }
+    }
+
+
+    /**
+     * @return The number of cached credentials
+     */
+    public int size()
+    {
+        return cache.size();
+    }
+
+
+    /**
+     * @return The estimated cache size, in bytes
+     */
+    public long getBytes()
+    {
+        return bytes.get();
+    }
+
+
+    /**
+     * @return The maximum cache size, in bytes
+     */
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+
+    /**
+     * @return The number of lookups which found the credentials
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+
+    /**
+     * @return The number of lookups which didn't find the credentials
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+
+    /**
+     * @return The number of evicted credentials
+     */
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+
+    /**
+     * @return The ratio of the lookups which found the credentials, between 0 and 1
+     */
+    public double getHitRate()
+    {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+
+        return total == 0 ? 0d : ( double ) hitCount / total;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "CredentialCache [" + cache.size() + " entries, " + bytes.get() + "/" + maxBytes + " bytes, hits "
+            + hits.get() + ", misses " + misses.get() + ", evictions " + evictions.get() + "]";
+    }
+}
@@ -24,7 +24,6 @@ import java.net.SocketAddress;
 
 import javax.naming.Context;
 
-import org.apache.commons.collections4.map.LRUMap;
 import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Attribute;
@@ -33,7 +32,6 @@ import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapAuthenticationException;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.name.Dn;
-import org.apache.directory.api.ldap.model.password.PasswordUtil;
 import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.InterceptorEnum;
 import org.apache.directory.server.core.api.LdapPrincipal;
@@ -75,12 +73,12 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      * just have to offer an access to refresh the local cache.
      *
      * We need to be sure that frequently used passwords be always in cache, and not discarded.
-     * We will use a LRU cache for this purpose.
+     * The cache evicts the least recently used credentials first, and is bounded in bytes.
      */
-    private final LRUMap credentialCache;
+    private final CredentialCache credentialCache;
 
-    /** Declare a default for this cache. 100 entries seems to be enough */
-    private static final int DEFAULT_CACHE_SIZE = 100;
+    /** The estimated size of a cached credential, to convert a number of entries to bytes */
+    private static final int ESTIMATED_CREDENTIAL_SIZE = 256;
 
 
     /**
@@ -89,7 +87,7 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     public SimpleAuthenticator()
     {
         super( AuthenticationLevel.SIMPLE );
-        credentialCache = new LRUMap( DEFAULT_CACHE_SIZE );
+        credentialCache = new CredentialCache( CredentialCache.DEFAULT_MAX_BYTES );
     }
 
 
@@ -102,62 +100,83 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     public SimpleAuthenticator( Dn baseDn )
     {
         super( AuthenticationLevel.SIMPLE, baseDn );
-        credentialCache = new LRUMap( DEFAULT_CACHE_SIZE );
+        credentialCache = new CredentialCache( CredentialCache.DEFAULT_MAX_BYTES );
+    }
+
+
+    /**
+     * Creates a new instance, with a credential cache size in bytes
+     *
+     * @param baseDn The base Dn
+     * @param cacheMaxBytes the maximum size of the credential cache, in bytes
+     */
+    public SimpleAuthenticator( Dn baseDn, long cacheMaxBytes )
+    {
+        super( AuthenticationLevel.SIMPLE, baseDn );
+        credentialCache = new CredentialCache( cacheMaxBytes );
     }
 
 
     /**
      * Creates a new instance, with an initial cache size
-     * @param cacheSize the size of the credential cache
+     * @param cacheSize the number of credentials the cache should be able to hold
      */
     public SimpleAuthenticator( int cacheSize )
     {
         super( AuthenticationLevel.SIMPLE, Dn.ROOT_DSE );
 
-        credentialCache = new LRUMap( cacheSize > 0 ? cacheSize : DEFAULT_CACHE_SIZE );
+        credentialCache = new CredentialCache( ( long ) cacheSize * ESTIMATED_CREDENTIAL_SIZE );
     }
 
 
     /**
      * Creates a new instance, with an initial cache size
      *
-     * @param cacheSize the size of the credential cache
+     * @param cacheSize the number of credentials the cache should be able to hold
      * @param baseDn The base Dn
      */
     public SimpleAuthenticator( int cacheSize, Dn baseDn )
     {
         super( AuthenticationLevel.SIMPLE, baseDn );
 
-        credentialCache = new LRUMap( cacheSize > 0 ? cacheSize : DEFAULT_CACHE_SIZE );
+        credentialCache = new CredentialCache( ( long ) cacheSize * ESTIMATED_CREDENTIAL_SIZE );
+    }
+
+
+    /**
+     * @return The credential cache, giving access to its hit rate
+     */
+    public CredentialCache getCredentialCache()
+    {
+        return credentialCache;
     }
 
 
     /**
      * Get the password either from cache or from backend.
-     * @param principalDN The Dn from which we want the password
-     * @return A byte array which can be empty if the password was not found
+     * @param bindContext The Bind operation context
+     * @return The stored credentials, which can be empty if the password was not found
      * @throws Exception If we have a problem during the lookup operation
      */
-    private LdapPrincipal getStoredPassword( BindOperationContext bindContext ) throws LdapException
+    private CredentialCache.Credentials getStoredPassword( BindOperationContext bindContext ) throws LdapException
     {
-        LdapPrincipal principal = null;
+        CredentialCache.Credentials credentials = null;
+        String normName = bindContext.getDn().getNormName();
 
         // use cache only if pwdpolicy is not enabled
         if ( !getDirectoryService().isPwdPolicyEnabled() )
         {
-            synchronized ( credentialCache )
-            {
-                principal = ( LdapPrincipal ) credentialCache.get( bindContext.getDn() );
-            }
+            credentials = credentialCache.get( normName );
         }
 
-        byte[][] storedPasswords;
-
-        if ( principal == null )
+        if ( credentials == null )
         {
+            // Read before the lookup, so that a password modified meanwhile is not cached
+            long generation = credentialCache.getGeneration();
+
             // Not found in the cache
             // Get the user password from the backend
-            storedPasswords = lookupUserPassword( bindContext );
+            byte[][] storedPasswords = lookupUserPassword( bindContext );
 
             // Deal with the special case where the user didn't enter a password
             // We will compare the empty array with the credentials. Sometime,
@@ -169,22 +188,16 @@ public class SimpleAuthenticator extends AbstractAuthenticator
                     {};
             }
 
-            // Create the new principal before storing it in the cache
-            principal = new LdapPrincipal( getDirectoryService().getSchemaManager(), bindContext.getDn(),
-                AuthenticationLevel.SIMPLE );
-            principal.setUserPassword( storedPasswords );
+            credentials = new CredentialCache.Credentials( normName, storedPasswords );
 
             // Now, update the local cache ONLY if pwdpolicy is not enabled.
             if ( !getDirectoryService().isPwdPolicyEnabled() )
             {
-                synchronized ( credentialCache )
-                {
-                    credentialCache.put( bindContext.getDn().getNormName(), principal );
-                }
+                credentialCache.put( credentials, generation );
             }
         }
 
-        return principal;
+        return credentials;
     }
 
 
@@ -206,7 +219,13 @@ public class SimpleAuthenticator extends AbstractAuthenticator
         // ---- extract password from JNDI environment
         byte[] credentials = bindContext.getCredentials();
 
-        LdapPrincipal principal = getStoredPassword( bindContext );
+        // Get the stored password, either from cache or from backend
+        CredentialCache.Credentials storedCredentials = getStoredPassword( bindContext );
+
+        // The cached credentials are shared, but each bind gets its own principal
+        LdapPrincipal principal = new LdapPrincipal( getDirectoryService().getSchemaManager(), bindContext.getDn(),
+            AuthenticationLevel.SIMPLE );
+        principal.setUserPassword( storedCredentials.getPasswords() );
 
         IoSession session = bindContext.getIoSession();
 
@@ -218,9 +237,6 @@ public class SimpleAuthenticator extends AbstractAuthenticator
             principal.setServerAddress( serverAddress );
         }
 
-        // Get the stored password, either from cache or from backend
-        byte[][] storedPasswords = principal.getUserPasswords();
-
         PasswordPolicyException ppe = null;
         try
         {
@@ -232,23 +248,20 @@ public class SimpleAuthenticator extends AbstractAuthenticator
         }
 
         // Now, compare the passwords.
-        for ( byte[] storedPassword : storedPasswords )
+        if ( storedCredentials.matches( credentials ) )
         {
-            if ( PasswordUtil.compareCredentials( credentials, storedPassword ) )
+            if ( ppe != null )
+            {
+                LOG.debug( "{} Authentication failed: {}", bindContext.getDn(), ppe.getMessage() );
+                throw ppe;
+            }
+
+            if ( IS_DEBUG )
             {
-                if ( ppe != null )
-                {
-                    LOG.debug( "{} Authentication failed: {}", bindContext.getDn(), ppe.getMessage() );
-                    throw ppe;
-                }
-
-                if ( IS_DEBUG )
-                {
-                    LOG.debug( "{} Authenticated", bindContext.getDn() );
-                }
-
-                return principal;
+                LOG.debug( "{} Authenticated", bindContext.getDn() );
             }
+
+            return principal;
         }
 
         // Bad password ...
@@ -349,9 +362,6 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     @Override
     public void invalidateCache( Dn bindDn )
     {
-        synchronized ( credentialCache )
-        {
-            credentialCache.remove( bindDn.getNormName() );
-        }
+        credentialCache.remove( bindDn.getNormName() );
     }
 }
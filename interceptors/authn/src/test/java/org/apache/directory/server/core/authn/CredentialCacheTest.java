@@ -0,0 +1,207 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authn;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.directory.api.ldap.model.constants.LdapSecurityConstants;
+import org.apache.directory.api.ldap.model.password.PasswordUtil;
+import org.apache.directory.api.util.Strings;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link CredentialCache}.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CredentialCacheTest
+{
+    private static CredentialCache.Credentials credentials( String normName, String password )
+    {
+        return new CredentialCache.Credentials( normName, new byte[][]
+            { Strings.getBytesUtf8( password ) } );
+    }
+
+
+    @Test
+    public void testMatches()
+    {
+        byte[] secret = Strings.getBytesUtf8( "secret" );
+        byte[] hashed = PasswordUtil.createStoredPassword( secret, LdapSecurityConstants.HASH_METHOD_SSHA256 );
+
+        CredentialCache.Credentials credentials = new CredentialCache.Credentials( "uid=user,ou=system",
+            new byte[][]
+                { Strings.getBytesUtf8( "clear" ), hashed } );
+
+        assertTrue( credentials.matches( secret ) );
+        assertTrue( credentials.matches( Strings.getBytesUtf8( "clear" ) ) );
+        assertFalse( credentials.matches( Strings.getBytesUtf8( "wrong" ) ) );
+        assertFalse( new CredentialCache.Credentials( "uid=nopassword", new byte[][]
+            {} ).matches( secret ) );
+    }
+
+
+    @Test
+    public void testHitsAndInvalidation()
+    {
+        CredentialCache cache = new CredentialCache( CredentialCache.DEFAULT_MAX_BYTES );
+
+        assertNull( cache.get( "uid=user,ou=system" ) );
+        cache.put( credentials( "uid=user,ou=system", "secret" ), cache.getGeneration() );
+        assertNotNull( cache.get( "uid=user,ou=system" ) );
+        assertNotNull( cache.get( "uid=user,ou=system" ) );
+
+        assertEquals( 2, cache.getHits() );
+        assertEquals( 1, cache.getMisses() );
+        assertEquals( 2d / 3d, cache.getHitRate(), 0.001d );
+
+        cache.remove( "uid=user,ou=system" );
+        assertNull( cache.get( "uid=user,ou=system" ) );
+        assertEquals( 0, cache.size() );
+        assertEquals( 0, cache.getBytes() );
+    }
+
+
+    @Test
+    public void testEvictionKeepsRecentlyUsed()
+    {
+        CredentialCache cache = new CredentialCache( 2048 );
+        cache.put( credentials( "uid=hot", "secret" ), cache.getGeneration() );
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            assertNotNull( cache.get( "uid=hot" ) );
+            cache.put( credentials( "uid=user" + i, "secret" ), cache.getGeneration() );
+        }
+
+        assertTrue( cache.getBytes() <= cache.getMaxBytes() );
+        assertTrue( cache.getEvictions() > 0 );
+        assertNotNull( cache.get( "uid=hot" ) );
+    }
+
+
+    @Test
+    public void testCredentialsReadBeforeModificationNotCached()
+    {
+        CredentialCache cache = new CredentialCache( CredentialCache.DEFAULT_MAX_BYTES );
+
+        // A bind reads the old password
+        long generation = cache.getGeneration();
+        CredentialCache.Credentials old = credentials( "uid=user,ou=system", "old" );
+
+        // The password is modified, and the cache invalidated, before the bind caches it
+        cache.remove( "uid=user,ou=system" );
+
+        assertFalse( cache.put( old, generation ) );
+        assertNull( cache.get( "uid=user,ou=system" ) );
+        assertEquals( 0, cache.getBytes() );
+
+        // The next bind reads the new password
+        assertTrue( cache.put( credentials( "uid=user,ou=system", "new" ), cache.getGeneration() ) );
+        assertTrue( cache.get( "uid=user,ou=system" ).matches( Strings.getBytesUtf8( "new" ) ) );
+    }
+
+
+    @Test
+    public void testConcurrentBindAndModify() throws Exception
+    {
+        final CredentialCache cache = new CredentialCache( CredentialCache.DEFAULT_MAX_BYTES );
+        final AtomicReference<String> storedPassword = new AtomicReference<>( "password0" );
+        final AtomicInteger modifications = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final int nbModifications = 2000;
+
+        // The binds read the stored password, then cache it, the way the SimpleAuthenticator does
+        Thread[] binders = new Thread[4];
+
+        for ( int i = 0; i < binders.length; i++ )
+        {
+            binders[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch ( InterruptedException ie )
+                    {
+                        return;
+                    }
+
+                    while ( modifications.get() < nbModifications )
+                    {
+                        if ( cache.get( "uid=user,ou=system" ) == null )
+                        {
+                            long generation = cache.getGeneration();
+                            String password = storedPassword.get();
+                            Thread.yield();
+                            cache.put( credentials( "uid=user,ou=system", password ), generation );
+                        }
+                    }
+                }
+            };
+
+            binders[i].start();
+        }
+
+        start.countDown();
+
+        // The modifications store the new password, then invalidate the cache
+        for ( int i = 1; i <= nbModifications; i++ )
+        {
+            storedPassword.set( "password" + i );
+            cache.remove( "uid=user,ou=system" );
+            modifications.incrementAndGet();
+            Thread.yield();
+
+            // The old password never matches once the modification is done
+            CredentialCache.Credentials cached = cache.get( "uid=user,ou=system" );
+
+            if ( cached != null )
+            {
+                assertTrue( cached.matches( Strings.getBytesUtf8( "password" + i ) ) );
+            }
+        }
+
+        for ( Thread binder : binders )
+        {
+            binder.join();
+        }
+
+        CredentialCache.Credentials cached = cache.get( "uid=user,ou=system" );
+
+        if ( cached != null )
+        {
+            assertTrue( cached.matches( Strings.getBytesUtf8( "password" + nbModifications ) ) );
+        }
+    }
+}
@@ -54,6 +54,7 @@ import org.apache.directory.api.ldap.model.message.SearchScope;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.AttributeType;
 import org.apache.directory.api.ldap.model.schema.normalizers.ConcreteNameComponentNormalizer;
+import org.apache.directory.api.util.Strings;
 import org.apache.directory.server.constants.ServerDNConstants;
 import org.apache.directory.server.core.api.CoreSession;
 import org.apache.directory.server.core.api.DirectoryService;
@@ -113,6 +114,9 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
     private static final Collection<MicroOperation> IMPORT_PERMS;
     private static final Collection<MicroOperation> MOVERENAME_PERMS;
 
+    /** The operation the cached decisions are taken for */
+    private static final String SEARCH_OPERATION = "search";
+
     static
     {
         Set<MicroOperation> set = new HashSet<>( 2 );
@@ -152,6 +156,9 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
     /** a groupCache that responds to add, delete, and modify attempts */
     private GroupCache groupCache;
 
+    /** the decisions taken on the search results */
+    private AciDecisionCache decisionCache;
+
     /** a normalizing ACIItem parser */
     private ACIItemParser aciParser;
 
@@ -296,6 +303,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
         // Create the caches
         tupleCache = new TupleCache( adminSession );
         groupCache = new GroupCache( directoryService );
+        decisionCache = new AciDecisionCache();
 
         // Iitialize the ACI PARSER and ACDF engine
         aciParser = new ACIItemParser( new ConcreteNameComponentNormalizer( schemaManager ), schemaManager );
@@ -1343,32 +1351,109 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
     }
 
 
-    private boolean filter( OperationContext opContext, Dn normName, Entry clonedEntry ) throws LdapException
+    /**
+     * Gets the cached decisions for a search result. The decisions are shared by the
+     * entries which have the same access control subentries and objectClasses, as long
+     * as the applicable tuples don't depend on the entry itself.
+     *
+     * @return The decision, or null if the entry has its own tuples
+     */
+    private AciDecisionCache.Decision getDecision( OperationContext opContext, Dn normName, Entry entry,
+        Dn userDn, LdapPrincipal principal, Set<String> userGroups ) throws LdapException
+    {
+        // The entryACI and subentryACI tuples are specific to the entry
+        if ( entry.containsAttribute( directoryService.getAtProvider().getEntryACI() )
+            || entry.contains( directoryService.getAtProvider().getObjectClass(), SchemaConstants.SUBENTRY_OC ) )
+        {
+            return null;
+        }
+
+        Set<String> subentries = new HashSet<>();
+        Attribute subentriesAttr = entry.get( directoryService.getAtProvider().getAccessControlSubentries() );
+
+        if ( subentriesAttr != null )
+        {
+            for ( Value value : subentriesAttr )
+            {
+                subentries.add( dnFactory.create( value.getString() ).getNormName() );
+            }
+        }
+
+        Set<String> objectClasses = new HashSet<>();
+        Attribute objectClassAttr = entry.get( directoryService.getAtProvider().getObjectClass() );
+
+        if ( objectClassAttr != null )
+        {
+            for ( Value value : objectClassAttr )
+            {
+                objectClasses.add( Strings.toLowerCaseAscii( value.getString() ) );
+            }
+        }
+
+        AciDecisionCache.Key key = new AciDecisionCache.Key( userDn.getNormName(),
+            principal.getAuthenticationLevel(), userGroups, subentries, objectClasses, SEARCH_OPERATION );
+        long generation = tupleCache.getGeneration();
+        AciDecisionCache.Decision decision = decisionCache.get( key, generation );
+
+        if ( decision == null )
+        {
+            Collection<ACITuple> tuples = new HashSet<>();
+            addPerscriptiveAciTuples( opContext, tuples, normName, entry );
+            decision = decisionCache.put( key, tuples, generation );
+        }
+
+        return decision.isCacheable() ? decision : null;
+    }
+
+
+    private boolean filter( OperationContext opContext, Dn normName, Entry clonedEntry, Dn userDn,
+        LdapPrincipal principal, Set<String> userGroups, Entry userEntry ) throws LdapException
     {
         /*
          * First call hasPermission() for entry level "Browse" and "ReturnDN" perm
          * tests.  If we hasPermission() returns false we immediately short the
          * process and return false.
          */
+        Entry originalEntry = ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry();
+        AciDecisionCache.Decision decision = getDecision( opContext, normName, originalEntry, userDn, principal,
+            userGroups );
+        Collection<ACITuple> tuples;
 
-        LdapPrincipal principal = opContext.getSession().getEffectivePrincipal();
-        Dn userDn = principal.getDn();
-        Set<String> userGroups = groupCache.getGroups( userDn.getNormName() );
-        Collection<ACITuple> tuples = new HashSet<>();
-        addPerscriptiveAciTuples( opContext, tuples, normName, clonedEntry );
-        addEntryAciTuples( tuples, ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry() );
-        addSubentryAciTuples( opContext, tuples, normName, ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry() );
+        if ( decision != null )
+        {
+            tuples = decision.getTuples();
+        }
+        else
+        {
+            tuples = new HashSet<>();
+            addPerscriptiveAciTuples( opContext, tuples, normName, clonedEntry );
+            addEntryAciTuples( tuples, originalEntry );
+            addSubentryAciTuples( opContext, tuples, normName, originalEntry );
+        }
 
-        AciContext aciContext = new AciContext( schemaManager, opContext );
-        aciContext.setUserGroupNames( userGroups );
-        aciContext.setUserDn( userDn );
-        aciContext.setAuthenticationLevel( principal.getAuthenticationLevel() );
-        aciContext.setEntryDn( normName );
-        aciContext.setMicroOperations( SEARCH_ENTRY_PERMS );
-        aciContext.setAciTuples( tuples );
-        aciContext.setEntry( ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry() );
+        Boolean allowed = ( decision == null ) ? null : decision.getEntryPermission();
 
-        if ( !engine.hasPermission( aciContext ) )
+        if ( allowed == null )
+        {
+            AciContext aciContext = new AciContext( schemaManager, opContext );
+            aciContext.setUserGroupNames( userGroups );
+            aciContext.setUserDn( userDn );
+            aciContext.setUserEntry( userEntry );
+            aciContext.setAuthenticationLevel( principal.getAuthenticationLevel() );
+            aciContext.setEntryDn( normName );
+            aciContext.setMicroOperations( SEARCH_ENTRY_PERMS );
+            aciContext.setAciTuples( tuples );
+            aciContext.setEntry( originalEntry );
+
+            allowed = engine.hasPermission( aciContext );
+
+            if ( decision != null )
+            {
+                decision.setEntryPermission( allowed );
+            }
+        }
+
+        if ( !allowed )
         {
             return false;
         }
@@ -1388,17 +1473,8 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
             AttributeType attributeType = attribute.getAttributeType();
             Attribute attr = clonedEntry.get( attributeType );
 
-            aciContext = new AciContext( schemaManager, opContext );
-            aciContext.setUserGroupNames( userGroups );
-            aciContext.setUserDn( userDn );
-            aciContext.setAuthenticationLevel( principal.getAuthenticationLevel() );
-            aciContext.setEntryDn( normName );
-            aciContext.setAttributeType( attributeType );
-            aciContext.setMicroOperations( SEARCH_ATTRVAL_PERMS );
-            aciContext.setAciTuples( tuples );
-            aciContext.setEntry( clonedEntry );
-
-            if ( !engine.hasPermission( aciContext ) )
+            if ( !hasAttributePermission( opContext, normName, clonedEntry, userDn, principal, userGroups,
+                userEntry, tuples, decision, attributeType, null ) )
             {
                 attributeToRemove.add( attributeType );
 
@@ -1410,18 +1486,8 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
             // attribute type scope is ok now let's determine value level scope
             for ( Value value : attr )
             {
-                aciContext = new AciContext( schemaManager, opContext );
-                aciContext.setUserGroupNames( userGroups );
-                aciContext.setUserDn( userDn );
-                aciContext.setAuthenticationLevel( principal.getAuthenticationLevel() );
-                aciContext.setEntryDn( normName );
-                aciContext.setAttributeType( attr.getAttributeType() );
-                aciContext.setAttrValue( value );
-                aciContext.setMicroOperations( SEARCH_ATTRVAL_PERMS );
-                aciContext.setAciTuples( tuples );
-                aciContext.setEntry( clonedEntry );
-
-                if ( !engine.hasPermission( aciContext ) )
+                if ( !hasAttributePermission( opContext, normName, clonedEntry, userDn, principal, userGroups,
+                    userEntry, tuples, decision, attr.getAttributeType(), value ) )
                 {
                     valueToRemove.add( value );
                 }
@@ -1446,11 +1512,62 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
         return true;
     }
 
+
+    /**
+     * Checks the attribute type or attribute value level permission, using the cached
+     * decision if any. The cached decisions don't depend on the value.
+     */
+    private boolean hasAttributePermission( OperationContext opContext, Dn normName, Entry clonedEntry,
+        Dn userDn, LdapPrincipal principal, Set<String> userGroups, Entry userEntry, Collection<ACITuple> tuples,
+        AciDecisionCache.Decision decision, AttributeType attributeType, Value value ) throws LdapException
+    {
+        boolean withValue = value != null;
+
+        if ( decision != null )
+        {
+            Boolean allowed = decision.getAttributePermission( attributeType.getOid(), withValue );
+
+            if ( allowed != null )
+            {
+                return allowed;
+            }
+        }
+
+        AciContext aciContext = new AciContext( schemaManager, opContext );
+        aciContext.setUserGroupNames( userGroups );
+        aciContext.setUserDn( userDn );
+        aciContext.setUserEntry( userEntry );
+        aciContext.setAuthenticationLevel( principal.getAuthenticationLevel() );
+        aciContext.setEntryDn( normName );
+        aciContext.setAttributeType( attributeType );
+        aciContext.setAttrValue( value );
+        aciContext.setMicroOperations( SEARCH_ATTRVAL_PERMS );
+        aciContext.setAciTuples( tuples );
+        aciContext.setEntry( clonedEntry );
+
+        boolean allowed = engine.hasPermission( aciContext );
+
+        if ( decision != null )
+        {
+            decision.setAttributePermission( attributeType.getOid(), withValue, allowed );
+        }
+
+        return allowed;
+    }
+
     /**
      * WARNING: create one of these filters fresh every time for each new search.
+     * The user, its groups and its entry are read once, when the first entry is
+     * filtered.
      */
     private class AuthorizationFilter implements EntryFilter
     {
+        private LdapPrincipal principal;
+        private Dn userDn;
+        private Set<String> userGroups;
+        private Entry userEntry;
+
+
         /**
          * {@inheritDoc}
          */
@@ -1462,7 +1579,18 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
                 entry.setDn(  new Dn( schemaManager, entry.getDn() ) );
             }
 
-            return filter( searchContext, entry.getDn(), entry );
+            if ( principal == null )
+            {
+                principal = searchContext.getSession().getEffectivePrincipal();
+                userDn = principal.getDn();
+                userGroups = groupCache.getGroups( userDn.getNormName() );
+
+                AciContext userContext = new AciContext( schemaManager, searchContext );
+                userContext.setUserDn( userDn );
+                userEntry = engine.lookupUserEntry( userContext );
+            }
+
+            return filter( searchContext, entry.getDn(), entry, userDn, principal, userGroups, userEntry );
         }
 
 
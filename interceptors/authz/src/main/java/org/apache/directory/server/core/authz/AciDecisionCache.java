@@ -0,0 +1,377 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authz;
+
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.directory.api.ldap.aci.ACITuple;
+import org.apache.directory.api.ldap.aci.ProtectedItem;
+import org.apache.directory.api.ldap.aci.UserClass;
+import org.apache.directory.api.ldap.aci.protectedItem.AllAttributeValuesItem;
+import org.apache.directory.api.ldap.aci.protectedItem.AttributeTypeItem;
+import org.apache.directory.api.ldap.aci.protectedItem.ClassesItem;
+import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
+import org.apache.directory.api.ldap.model.subtree.SubtreeSpecification;
+
+
+/**
+ * A cache for the access control decisions taken on search results. When none of the
+ * ACI tuples applying to an entry depend on the entry name or on its values, the
+ * decisions only depend on the user, on the access control subentries referenced by
+ * the entry, on its objectClasses and on the operation, so they can be reused for all
+ * the entries sharing those properties.<br>
+ * The cache is invalidated when the {@link TupleCache} changes. The group changes don't
+ * need to be tracked, as the user's groups are part of the key.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class AciDecisionCache
+{
+    /** The default number of decisions kept in the cache */
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    /** A decision standing for the tuple sets which depend on the entry */
+    private static final Decision NOT_CACHEABLE = new Decision( Collections.<ACITuple> emptySet(), false );
+
+    /** The cached decisions, the least recently used being evicted first */
+    private final Map<Key, Decision> decisions;
+
+    /** The TupleCache generation the cached decisions have been computed with */
+    private long generation;
+
+
+    /**
+     * Creates a new instance of AciDecisionCache with a default maximum size.
+     */
+    public AciDecisionCache()
+    {
+        this( DEFAULT_MAX_SIZE );
+    }
+
+
+    /**
+     * Creates a new instance of AciDecisionCache.
+     *
+     * @param maxSize The maximum number of decisions kept in the cache
+     */
+    public AciDecisionCache( final int maxSize )
+    {
+        decisions = new LinkedHashMap<Key, Decision>( 16, 0.75f, true )
+        {
+            private static final long serialVersionUID = 1L;
+
+
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<Key, Decision> eldest )
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+
+    /**
+     * Gets the decision associated with a key.
+     *
+     * @param key The decision key
+     * @param currentGeneration The current TupleCache generation
+     * @return The decision, or null if there is none
+     */
+    public synchronized Decision get( Key key, long currentGeneration )
+    {
+        if ( currentGeneration != generation )
+        {
+            decisions.clear();
+            generation = currentGeneration;
+
+            return null;
+        }
+
+        return decisions.get( key );
+    }
+
+
+    /**
+     * Stores a decision for a set of tuples. If the tuples depend on the entry, a
+     * non cacheable decision is stored, so that the tuples are not inspected again.
+     *
+     * @param key The decision key
+     * @param tuples The ACI tuples applying to the entries
+     * @param tuplesGeneration The TupleCache generation the tuples have been read with
+     * @return The stored decision
+     */
+    public synchronized Decision put( Key key, Collection<ACITuple> tuples, long tuplesGeneration )
+    {
+        Decision decision = isEntryIndependent( tuples ) ? new Decision( tuples, true ) : NOT_CACHEABLE;
+
+        // Don't store a decision computed with obsolete tuples
+        if ( tuplesGeneration == generation )
+        {
+            decisions.put( key, decision );
+        }
+
+        return decision;
+    }
+
+
+    /**
+     * @return The number of cached decisions
+     */
+    public synchronized int size()
+    {
+        return decisions.size();
+    }
+
+
+    /**
+     * Tells if the ACDF engine result for a set of tuples only depends on the user,
+     * the entry objectClasses, the attribute type and the operation. The tuples must
+     * not use the thisEntry and parentOfEntry user classes, nor a refined user subtree,
+     * and must only protect the entry, attribute types, or classes of entries.
+     *
+     * @param tuples The tuples to check
+     * @return <tt>true</tt> if the tuples don't depend on the entry name and values
+     */
+    public static boolean isEntryIndependent( Collection<ACITuple> tuples )
+    {
+        for ( ACITuple tuple : tuples )
+        {
+            for ( UserClass userClass : tuple.getUserClasses() )
+            {
+                if ( ( userClass == UserClass.THIS_ENTRY ) || ( userClass == UserClass.PARENT_OF_ENTRY ) )
+                {
+                    return false;
+                }
+
+                if ( userClass instanceof UserClass.Subtree )
+                {
+                    for ( SubtreeSpecification subtreeSpec : ( ( UserClass.Subtree ) userClass )
+                        .getSubtreeSpecifications() )
+                    {
+                        if ( subtreeSpec.getRefinement() != null )
+                        {
+                            return false;
+                        }
+                    }
+                }
+            }
+
+            for ( ProtectedItem item : tuple.getProtectedItems() )
+            {
+                if ( ( item != ProtectedItem.ENTRY )
+                    && ( item != ProtectedItem.ALL_USER_ATTRIBUTE_TYPES )
+                    && ( item != ProtectedItem.ALL_USER_ATTRIBUTE_TYPES_AND_VALUES )
+                    && !( item instanceof AllAttributeValuesItem )
+                    && !( item instanceof AttributeTypeItem )
+                    && !( item instanceof ClassesItem ) )
+                {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * The key of a cached decision.
+     */
+    public static final class Key
+    {
+        private final String userDn;
+        private final AuthenticationLevel authenticationLevel;
+        private final Set<String> userGroups;
+        private final Set<String> subentries;
+        private final Set<String> objectClasses;
+        private final String operation;
+        private final int hashCode;
+
+
+        /**
+         * Creates a new instance of Key.
+         *
+         * @param userDn The normalized user Dn
+         * @param authenticationLevel The user authentication level
+         * @param userGroups The normalized Dn of the user's groups
+         * @param subentries The normalized Dn of the access control subentries applying to the entry
+         * @param objectClasses The entry objectClasses
+         * @param operation The operation the decision is taken for
+         */
+        public Key( String userDn, AuthenticationLevel authenticationLevel, Set<String> userGroups,
+            Set<String> subentries, Set<String> objectClasses, String operation )
+        {
+            this.userDn = userDn;
+            this.authenticationLevel = authenticationLevel;
+            this.userGroups = userGroups;
+            this.subentries = subentries;
+            this.objectClasses = objectClasses;
+            this.operation = operation;
+
+            int h = 37;
+            h = h * 17 + userDn.hashCode();
+            h = h * 17 + authenticationLevel.hashCode();
+            h = h * 17 + userGroups.hashCode();
+            h = h * 17 + subentries.hashCode();
+            h = h * 17 + objectClasses.hashCode();
+            h = h * 17 + operation.hashCode();
+            hashCode = h;
+        }
+
+
+        /**
+         * @see Object#hashCode()
+         */
+        @Override
+        public int hashCode()
+        {
+            return hashCode;
+        }
+
+
+        /**
+         * @see Object#equals(Object)
+         */
+        @Override
+        public boolean equals( Object obj )
+        {
+            if ( this == obj )
+            {
+                return true;
+            }
+
+            if ( !( obj instanceof Key ) )
+            {
+                return false;
+            }
+
+            Key that = ( Key ) obj;
+
+            return ( hashCode == that.hashCode )
+                && userDn.equals( that.userDn )
+                && ( authenticationLevel == that.authenticationLevel )
+                && operation.equals( that.operation )
+                && subentries.equals( that.subentries )
+                && objectClasses.equals( that.objectClasses )
+                && userGroups.equals( that.userGroups );
+        }
+    }
+
+    /**
+     * The decisions taken for the entries sharing a key : the entry level permission,
+     * and the attribute type and value level permissions, per attribute type OID. They
+     * are filled in lazily, as the entries are evaluated.
+     */
+    public static final class Decision
+    {
+        /** The tuples applying to the entries */
+        private final Collection<ACITuple> tuples;
+
+        /** Tells if the decisions can be stored */
+        private final boolean cacheable;
+
+        /** The entry level permission */
+        private volatile Boolean entryPermission;
+
+        /** The attribute type level permissions */
+        private final Map<String, Boolean> attributePermissions = new ConcurrentHashMap<>();
+
+        /** The attribute value level permissions */
+        private final Map<String, Boolean> valuePermissions = new ConcurrentHashMap<>();
+
+
+        private Decision( Collection<ACITuple> tuples, boolean cacheable )
+        {
+            this.tuples = tuples;
+            this.cacheable = cacheable;
+        }
+
+
+        /**
+         * @return <tt>false</tt> if the tuples depend on the entry, and have to be computed
+         * and evaluated for each entry
+         */
+        public boolean isCacheable()
+        {
+            return cacheable;
+        }
+
+
+        /**
+         * @return The tuples applying to the entries
+         */
+        public Collection<ACITuple> getTuples()
+        {
+            return tuples;
+        }
+
+
+        /**
+         * @return The entry level permission, or null if it has not been evaluated yet
+         */
+        public Boolean getEntryPermission()
+        {
+            return entryPermission;
+        }
+
+
+        /**
+         * @param entryPermission The entry level permission
+         */
+        public void setEntryPermission( boolean entryPermission )
+        {
+            this.entryPermission = entryPermission;
+        }
+
+
+        /**
+         * @param oid The attribute type OID
+         * @param withValue <tt>true</tt> for the value level permission
+         * @return The permission, or null if it has not been evaluated yet
+         */
+        public Boolean getAttributePermission( String oid, boolean withValue )
+        {
+            return withValue ? valuePermissions.get( oid ) : attributePermissions.get( oid );
+        }
+
+
+        /**
+         * @param oid The attribute type OID
+         * @param withValue <tt>true</tt> for the value level permission
+         * @param permission The permission
+         */
+        public void setAttributePermission( String oid, boolean withValue, boolean permission )
+        {
+            if ( withValue )
+            {
+                valuePermissions.put( oid, permission );
+            }
+            else
+            {
+                attributePermissions.put( oid, permission );
+            }
+        }
+    }
+}
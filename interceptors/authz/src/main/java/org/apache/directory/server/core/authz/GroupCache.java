@@ -21,14 +21,11 @@ package org.apache.directory.server.core.authz;
 
 
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
 import javax.naming.directory.SearchControls;
 
-import org.ehcache.Cache;
-
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Attribute;
 import org.apache.directory.api.ldap.model.entry.Entry;
@@ -45,7 +42,6 @@ import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.AttributeType;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.server.constants.ServerDNConstants;
-import org.apache.directory.server.core.api.CacheService;
 import org.apache.directory.server.core.api.CoreSession;
 import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.DnFactory;
@@ -59,7 +55,9 @@ import org.slf4j.LoggerFactory;
 
 
 /**
- * A cache for tracking static group membership.
+ * A cache for tracking static group membership. The memberships are stored in a
+ * {@link GroupMembershipIndex}, so the groups of a user include the groups its
+ * groups are members of.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -91,11 +89,8 @@ public class GroupCache
     /** The Admin user DN */
     private Dn adminSystemDn;
 
-    private static final Set<String> EMPTY_GROUPS = new HashSet<>();
-
-    /** String key for the Dn of a group to a Set (HashSet) for the Strings of member DNs */
-    private Cache< String, Set > groupCache;
-
+    /** The members of each group, and the groups of each member */
+    private final GroupMembershipIndex groupCache = new GroupMembershipIndex();
 
 
     /**
@@ -114,8 +109,6 @@ public class GroupCache
         // stuff for dealing with the admin group
         administratorsGroupDn = parseNormalized( ServerDNConstants.ADMINISTRATORS_GROUP_DN );
 
-        groupCache = dirService.getCacheService().getCache( "groupCache", String.class, Set.class );
-
         initialize( dirService.getAdminSession() );
     }
 
@@ -179,7 +172,7 @@ public class GroupCache
                         Set<String> memberSet = new HashSet<>( members.size() );
                         addMembers( memberSet, members );
 
-                        groupCache.put( groupDn.getNormName(), memberSet );
+                        groupCache.setMembers( groupDn.getNormName(), memberSet );
                     }
                     else
                     {
@@ -200,8 +193,7 @@ public class GroupCache
 
         if ( IS_DEBUG )
         {
-            LOG.debug( "group cache contents on startup:\n {}", 
-                CacheService.dumpCacheContentsToString( groupCache ) );
+            LOG.debug( "group cache contents on startup:\n {}", groupCache );
         }
     }
 
@@ -264,36 +256,6 @@ public class GroupCache
     }
 
 
-    /**
-     * Removes a set of member names from an existing set.
-     *
-     * @param memberSet the set of normalized member DNs
-     * @param members the set of member values
-     * @throws LdapException if there are problems accessing the attr values
-     */
-    private void removeMembers( Set<String> memberSet, Attribute members ) throws LdapException
-    {
-        for ( Value value : members )
-        {
-            // get and normalize the Dn of the member
-            String member = value.getString();
-            Dn memberDn = null;
-
-            try
-            {
-                memberDn = parseNormalized( member );
-            }
-            catch ( LdapException e )
-            {
-                LOG.warn( "Malformed member Dn in groupOf[Unique]Names entry.  Member not removed from GroupCache.", e );
-                continue;
-            }
-
-            memberSet.remove( memberDn.getNormName() );
-        }
-    }
-
-
     /**
      * Adds a groups members to the cache.  Called by interceptor to account for new
      * group additions.
@@ -314,12 +276,11 @@ public class GroupCache
         Set<String> memberSet = new HashSet<>( members.size() );
         addMembers( memberSet, members );
 
-        groupCache.put( name, memberSet );
+        groupCache.setMembers( name, memberSet );
 
         if ( IS_DEBUG )
         {
-            LOG.debug( "group cache contents after adding '{}' :\n {}", name,
-                CacheService.dumpCacheContentsToString( groupCache ) );
+            LOG.debug( "group cache contents after adding '{}' :\n {}", name, groupCache );
         }
     }
 
@@ -341,46 +302,53 @@ public class GroupCache
             return;
         }
 
-        groupCache.remove( name.getNormName() );
+        groupCache.removeGroup( name.getNormName() );
 
         if ( IS_DEBUG )
         {
-            LOG.debug( "group cache contents after deleting '{}' :\n {}", name.getName(),
-                CacheService.dumpCacheContentsToString( groupCache ) );
+            LOG.debug( "group cache contents after deleting '{}' :\n {}", name.getName(), groupCache );
         }
     }
 
 
     /**
-     * Utility method to modify a set of member names based on a modify operation
+     * Utility method to modify the members of a cached group based on a modify operation
      * that changes the members of a group.
      *
-     * @param memberSet the set of members to be altered
+     * @param group the normalized name of the group to be altered
      * @param modOp the type of modify operation being performed
      * @param members the members being added, removed or replaced
      * @throws LdapException if there are problems accessing attribute values
      */
-    private void modify( Set<String> memberSet, ModificationOperation modOp, Attribute members )
+    private void modify( String group, ModificationOperation modOp, Attribute members )
         throws LdapException
     {
+        if ( !groupCache.hasGroup( group ) )
+        {
+            return;
+        }
+
+        Set<String> memberSet = new HashSet<>( members.size() );
 
         switch ( modOp )
         {
             case ADD_ATTRIBUTE:
                 addMembers( memberSet, members );
+                groupCache.addMembers( group, memberSet );
                 break;
 
             case REPLACE_ATTRIBUTE:
                 if ( members.size() > 0 )
                 {
-                    memberSet.clear();
                     addMembers( memberSet, members );
+                    groupCache.setMembers( group, memberSet );
                 }
 
                 break;
 
             case REMOVE_ATTRIBUTE:
-                removeMembers( memberSet, members );
+                addMembers( memberSet, members );
+                groupCache.removeMembers( group, memberSet );
                 break;
 
             default:
@@ -427,12 +395,7 @@ public class GroupCache
         {
             if ( memberAttr.getOid() == modification.getAttribute().getId() )
             {
-                Set<String> memberSet = groupCache.get( name.getNormName() );
-                
-                if ( memberSet != null )
-                {
-                    modify( memberSet, modification.getOperation(), modification.getAttribute() );
-                }
+                modify( name.getNormName(), modification.getOperation(), modification.getAttribute() );
 
                 break;
             }
@@ -440,8 +403,7 @@ public class GroupCache
 
         if ( IS_DEBUG )
         {
-            LOG.debug( "group cache contents after modifying '{}' :\n {}", name.getName(),
-                CacheService.dumpCacheContentsToString( groupCache ) );
+            LOG.debug( "group cache contents after modifying '{}' :\n {}", name.getName(), groupCache );
         }
     }
 
@@ -464,17 +426,11 @@ public class GroupCache
             return;
         }
 
-        Set<String> memberSet = groupCache.get( name.getNormName() );
-
-        if ( memberSet != null )
-        {
-            modify( memberSet, modOp, members );
-        }
+        modify( name.getNormName(), modOp, members );
 
         if ( IS_DEBUG )
         {
-            LOG.debug( "group cache contents after modifying '{}' :\n {}", name.getName(),
-                CacheService.dumpCacheContentsToString( groupCache ) );
+            LOG.debug( "group cache contents after modifying '{}' :\n {}", name.getName(), groupCache );
         }
     }
 
@@ -493,78 +449,42 @@ public class GroupCache
             return true;
         }
 
-        Set<String> members = groupCache.get( administratorsGroupDn.getNormName() );
-        
-        if ( members == null )
+        if ( groupCache.isMember( principalDn, administratorsGroupDn.getNormName() ) )
         {
-            LOG.warn( "What do you mean there is no administrators group? This is bad news." );
-            return false;
+            return true;
         }
-        else
+
+        if ( !groupCache.hasGroup( administratorsGroupDn.getNormName() ) )
         {
-            return members.contains( principalDn );
+            LOG.warn( "What do you mean there is no administrators group? This is bad news." );
         }
+
+        return false;
     }
 
 
     /**
-     * Gets the set of groups a user is a member of.  The groups are returned
-     * as normalized Name objects within the set.
+     * Gets the set of groups a user is a member of, directly or through nested
+     * groups.  The groups are returned as normalized Dn strings within the set,
+     * which is shared and must not be modified.
      *
      * @param memberDn the member (user) to get the groups for
-     * @return a Set of Name objects representing the groups
+     * @return an unmodifiable Set of Strings representing the groups
      * @throws LdapException if there are problems accessing attribute  values
      */
     public Set<String> getGroups( String memberDn ) throws LdapException
     {
-        Set<String> memberGroups = null;
-
-        Iterator<Cache.Entry<String, Set>> iterator = groupCache.iterator();
-        while ( iterator.hasNext() )
-        {
-            Cache.Entry<String, Set> next = iterator.next();
-            String group = next.getKey();
-            Set<String> members = next.getValue();
-
-            if ( members == null )
-            {
-                continue;
-            }
-
-            if ( members.contains( memberDn ) )
-            {
-                if ( memberGroups == null )
-                {
-                    memberGroups = new HashSet<>();
-                }
-
-                memberGroups.add( group );
-            }
-        }
-
-        if ( memberGroups == null )
-        {
-            return EMPTY_GROUPS;
-        }
-
-        return memberGroups;
+        return groupCache.getGroups( memberDn );
     }
 
 
     public boolean groupRenamed( Dn oldName, Dn newName )
     {
-        Set<String> members = groupCache.get( oldName.getNormName() );
-
-        if ( members != null )
+        if ( groupCache.renameGroup( oldName.getNormName(), newName.getNormName() ) )
         {
-            groupCache.remove( oldName.getNormName() );
-
-            groupCache.put( newName.getNormName(), members );
-
             if ( IS_DEBUG )
             {
-                LOG.debug( "group cache contents after renaming '{}' :\n{}", oldName.getName(),
-                    CacheService.dumpCacheContentsToString( groupCache ) );
+                LOG.debug( "group cache contents after renaming '{}' :\n{}", oldName.getName(), groupCache );
             }
 
             return true;
@@ -0,0 +1,563 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authz;
+
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * An inverted index of static group memberships. Each group gets a dense ordinal, and
+ * each member is associated with a bitmap of the ordinals of the groups it directly
+ * belongs to. A group being itself a member of other groups, the groups of a member
+ * are the transitive closure of its direct groups.<br>
+ * The closures are computed on demand and kept until the next membership change, so
+ * that looking up the groups of a member does not allocate anything once computed. At
+ * most maxMemberships closures are kept, the least recently used ones being evicted.
+ * All the names are normalized Dns.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class GroupMembershipIndex
+{
+    /** The default maximum number of closures kept */
+    public static final int DEFAULT_MAX_MEMBERSHIPS = 10000;
+
+    /** The ordinal of each group */
+    private final Map<String, Integer> ordinals = new HashMap<>();
+
+    /** The group names, by ordinal. A null name is a free ordinal */
+    private final List<String> groupNames = new ArrayList<>();
+
+    /** The direct members of each group, by ordinal */
+    private final List<Set<String>> groupMembers = new ArrayList<>();
+
+    /** The ordinals freed by the group removals, reused first */
+    private final Deque<Integer> freeOrdinals = new ArrayDeque<>();
+
+    /** The ordinals of the groups each member directly belongs to */
+    private final Map<String, BitSet> directGroups = new HashMap<>();
+
+    /** The transitive closures already computed */
+    private final Map<String, Membership> memberships;
+
+    /** The lock protecting the index. The closures are computed with the read lock */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** The membership of the members which don't belong to any group */
+    private static final Membership NO_MEMBERSHIP = new Membership( new BitSet(),
+        Collections.<String> emptySet() );
+
+    /**
+     * The groups a member belongs to, directly or through nested groups.
+     */
+    private static final class Membership
+    {
+        private final BitSet ordinals;
+        private final Set<String> names;
+
+
+        private Membership( BitSet ordinals, Set<String> names )
+        {
+            this.ordinals = ordinals;
+            this.names = names;
+        }
+    }
+
+
+    /**
+     * Creates a new instance of GroupMembershipIndex with a default maximum number of closures.
+     */
+    public GroupMembershipIndex()
+    {
+        this( DEFAULT_MAX_MEMBERSHIPS );
+    }
+
+
+    /**
+     * Creates a new instance of GroupMembershipIndex.
+     *
+     * @param maxMemberships The maximum number of closures kept
+     */
+    public GroupMembershipIndex( final int maxMemberships )
+    {
+        memberships = Collections.synchronizedMap( new LinkedHashMap<String, Membership>( 16, 0.75f, true )
+        {
+            private static final long serialVersionUID = 1L;
+
+
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String, Membership> eldest )
+            {
+                return size() > maxMemberships;
+            }
+        } );
+    }
+
+
+    /**
+     * Sets the members of a group, creating the group if needed.
+     *
+     * @param group The group name
+     * @param members The group members
+     */
+    public void setMembers( String group, Collection<String> members )
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            int ordinal = getOrCreateOrdinal( group );
+            Set<String> currentMembers = groupMembers.get( ordinal );
+
+            for ( String member : currentMembers )
+            {
+                unlink( member, ordinal );
+            }
+
+            currentMembers.clear();
+
+            for ( String member : members )
+            {
+                link( currentMembers, member, ordinal );
+            }
+
+            memberships.clear();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Adds members to an existing group.
+     *
+     * @param group The group name
+     * @param members The added members
+     * @return <tt>false</tt> if the group is unknown
+     */
+    public boolean addMembers( String group, Collection<String> members )
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            Integer ordinal = ordinals.get( group );
+
+            if ( ordinal == null )
+            {
+                return false;
+            }
+
+            Set<String> currentMembers = groupMembers.get( ordinal );
+
+            for ( String member : members )
+            {
+                link( currentMembers, member, ordinal );
+            }
+
+            memberships.clear();
+
+            return true;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Removes members from an existing group.
+     *
+     * @param group The group name
+     * @param members The removed members
+     * @return <tt>false</tt> if the group is unknown
+     */
+    public boolean removeMembers( String group, Collection<String> members )
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            Integer ordinal = ordinals.get( group );
+
+            if ( ordinal == null )
+            {
+                return false;
+            }
+
+            Set<String> currentMembers = groupMembers.get( ordinal );
+
+            for ( String member : members )
+            {
+                if ( currentMembers.remove( member ) )
+                {
+                    unlink( member, ordinal );
+                }
+            }
+
+            memberships.clear();
+
+            return true;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Removes a group. Its ordinal will be reused by the next created group.
+     *
+     * @param group The group name
+     * @return <tt>false</tt> if the group is unknown
+     */
+    public boolean removeGroup( String group )
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            Integer ordinal = ordinals.remove( group );
+
+            if ( ordinal == null )
+            {
+                return false;
+            }
+
+            Set<String> currentMembers = groupMembers.get( ordinal );
+
+            for ( String member : currentMembers )
+            {
+                unlink( member, ordinal );
+            }
+
+            currentMembers.clear();
+            groupNames.set( ordinal, null );
+            freeOrdinals.push( ordinal );
+            memberships.clear();
+
+            return true;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Renames a group, keeping its members. The groups it belongs to reference its new
+     * name as a member, so that the nested memberships through it are kept.
+     *
+     * @param oldName The group old name
+     * @param newName The group new name
+     * @return <tt>false</tt> if the group is unknown
+     */
+    public boolean renameGroup( String oldName, String newName )
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            Integer ordinal = ordinals.remove( oldName );
+
+            if ( ordinal == null )
+            {
+                return false;
+            }
+
+            ordinals.put( newName, ordinal );
+            groupNames.set( ordinal, newName );
+
+            // The parent groups now contain the new name
+            BitSet parents = directGroups.remove( oldName );
+
+            if ( parents != null )
+            {
+                for ( int parent = parents.nextSetBit( 0 ); parent >= 0; parent = parents.nextSetBit( parent + 1 ) )
+                {
+                    Set<String> parentMembers = groupMembers.get( parent );
+                    parentMembers.remove( oldName );
+                    link( parentMembers, newName, parent );
+                }
+            }
+
+            memberships.clear();
+
+            return true;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * @param group The group name
+     * @return <tt>true</tt> if the group is known
+     */
+    public boolean hasGroup( String group )
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            return ordinals.containsKey( group );
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Gets the groups a member belongs to, directly or through nested groups.
+     *
+     * @param member The member name
+     * @return The unmodifiable set of the group names
+     */
+    public Set<String> getGroups( String member )
+    {
+        return getMembership( member ).names;
+    }
+
+
+    /**
+     * Tells if a member belongs to a group, directly or through nested groups.
+     *
+     * @param member The member name
+     * @param group The group name
+     * @return <tt>true</tt> if the member belongs to the group
+     */
+    public boolean isMember( String member, String group )
+    {
+        Membership membership = getMembership( member );
+
+        if ( membership == NO_MEMBERSHIP )
+        {
+            return false;
+        }
+
+        lock.readLock().lock();
+
+        try
+        {
+            Integer ordinal = ordinals.get( group );
+
+            return ( ordinal != null ) && membership.ordinals.get( ordinal );
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * @return The number of groups
+     */
+    public int size()
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            return ordinals.size();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Gets the cached closure of a member groups, computing it if needed.
+     */
+    private Membership getMembership( String member )
+    {
+        Membership membership = memberships.get( member );
+
+        if ( membership != null )
+        {
+            return membership;
+        }
+
+        lock.readLock().lock();
+
+        try
+        {
+            BitSet direct = directGroups.get( member );
+
+            if ( direct == null )
+            {
+                membership = NO_MEMBERSHIP;
+            }
+            else
+            {
+                BitSet closure = ( BitSet ) direct.clone();
+                Deque<Integer> pending = new ArrayDeque<>();
+
+                for ( int ordinal = direct.nextSetBit( 0 ); ordinal >= 0; ordinal = direct.nextSetBit( ordinal + 1 ) )
+                {
+                    pending.push( ordinal );
+                }
+
+                // The groups of the groups, which may contain cycles
+                while ( !pending.isEmpty() )
+                {
+                    BitSet parents = directGroups.get( groupNames.get( pending.pop() ) );
+
+                    if ( parents == null )
+                    {
+                        continue;
+                    }
+
+                    for ( int ordinal = parents.nextSetBit( 0 ); ordinal >= 0; ordinal = parents
+                        .nextSetBit( ordinal + 1 ) )
+                    {
+                        if ( !closure.get( ordinal ) )
+                        {
+                            closure.set( ordinal );
+                            pending.push( ordinal );
+                        }
+                    }
+                }
+
+                Set<String> names = new HashSet<>( closure.cardinality() * 2 );
+
+                for ( int ordinal = closure.nextSetBit( 0 ); ordinal >= 0; ordinal = closure.nextSetBit( ordinal + 1 ) )
+                {
+                    names.add( groupNames.get( ordinal ) );
+                }
+
+                membership = new Membership( closure, Collections.unmodifiableSet( names ) );
+            }
+
+            // Stored with the read lock held, so that a concurrent change can't be missed
+            memberships.put( member, membership );
+
+            return membership;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    private int getOrCreateOrdinal( String group )
+    {
+        Integer ordinal = ordinals.get( group );
+
+        if ( ordinal != null )
+        {
+            return ordinal;
+        }
+
+        if ( freeOrdinals.isEmpty() )
+        {
+            ordinal = groupNames.size();
+            groupNames.add( group );
+            groupMembers.add( new HashSet<String>() );
+        }
+        else
+        {
+            ordinal = freeOrdinals.pop();
+            groupNames.set( ordinal, group );
+        }
+
+        ordinals.put( group, ordinal );
+
+        return ordinal;
+    }
+
+
+    private void link( Set<String> currentMembers, String member, int ordinal )
+    {
+        if ( currentMembers.add( member ) )
+        {
+            BitSet groups = directGroups.get( member );
+
+            if ( groups == null )
+            {
+                groups = new BitSet();
+                directGroups.put( member, groups );
+            }
+
+            groups.set( ordinal );
+        }
+    }
+
+
+    private void unlink( String member, int ordinal )
+    {
+        BitSet groups = directGroups.get( member );
+
+        if ( groups != null )
+        {
+            groups.clear( ordinal );
+
+            if ( groups.isEmpty() )
+            {
+                directGroups.remove( member );
+            }
+        }
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            return "GroupMembershipIndex [" + ordinals.size() + " groups, " + directGroups.size() + " members]";
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+}
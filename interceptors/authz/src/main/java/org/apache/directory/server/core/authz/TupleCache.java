@@ -27,6 +27,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.naming.directory.SearchControls;
 
@@ -89,6 +90,9 @@ public class TupleCache
     /** a normalizing ACIItem parser */
     private final ACIItemParser aciParser;
 
+    /** a counter incremented each time the cached tuples change */
+    private final AtomicLong generation = new AtomicLong();
+
 
     /**
      * Creates a ACITuple cache.
@@ -235,6 +239,7 @@ public class TupleCache
         }
 
         tuples.put( dn.getNormName(), entryTuples );
+        generation.incrementAndGet();
     }
 
 
@@ -246,6 +251,7 @@ public class TupleCache
         }
 
         tuples.remove( dn.getNormName() );
+        generation.incrementAndGet();
     }
 
 
@@ -297,6 +303,21 @@ public class TupleCache
 
     public void subentryRenamed( Dn oldName, Dn newName )
     {
-        tuples.put( newName.getNormName(), tuples.remove( oldName.getNormName() ) );
+        List<ACITuple> renamedTuples = tuples.remove( oldName.getNormName() );
+        tuples.put( newName.getNormName(), renamedTuples );
+
+        if ( renamedTuples != null )
+        {
+            generation.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * @return A counter incremented each time the cached tuples change
+     */
+    public long getGeneration()
+    {
+        return generation.get();
     }
 }
@@ -123,13 +123,12 @@ public class ACDFEngine
             throw new IllegalArgumentException( "entryName" );
         }
 
-        CoreSession session = aciContext.getOperationContext().getSession();
-        LookupOperationContext lookupContext = new LookupOperationContext( session, aciContext.getUserDn(),
-            SchemaConstants.ALL_ATTRIBUTES_ARRAY );
-        lookupContext.setPartition( aciContext.getOperationContext().getPartition() );
-        lookupContext.setTransaction( aciContext.getOperationContext().getTransaction() );
-        
-        Entry userEntry = session.getDirectoryService().getPartitionNexus().lookup( lookupContext );
+        Entry userEntry = aciContext.getUserEntry();
+
+        if ( userEntry == null )
+        {
+            userEntry = lookupUserEntry( aciContext );
+        }
 
         // Determine the scope of the requested operation.
         OperationScope scope;
@@ -181,4 +180,23 @@ public class ACDFEngine
 
         return true;
     }
+
+
+    /**
+     * Reads the entry of the user requesting the access.
+     *
+     * @param aciContext the container for ACI items
+     * @return the user entry
+     * @throws LdapException if the entry can't be read
+     */
+    public Entry lookupUserEntry( AciContext aciContext ) throws LdapException
+    {
+        CoreSession session = aciContext.getOperationContext().getSession();
+        LookupOperationContext lookupContext = new LookupOperationContext( session, aciContext.getUserDn(),
+            SchemaConstants.ALL_ATTRIBUTES_ARRAY );
+        lookupContext.setPartition( aciContext.getOperationContext().getPartition() );
+        lookupContext.setTransaction( aciContext.getOperationContext().getTransaction() );
+
+        return session.getDirectoryService().getPartitionNexus().lookup( lookupContext );
+    }
 }
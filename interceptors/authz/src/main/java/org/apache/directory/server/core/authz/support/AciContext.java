@@ -77,6 +77,9 @@ public class AciContext
     /** ??? */
     private Entry entryView;
 
+    /** The user entry, if already known */
+    private Entry userEntry;
+
 
     /**
      * Creates a new instance of AciContext.
@@ -305,4 +308,22 @@ public class AciContext
     {
         this.entryView = entryView;
     }
+
+
+    /**
+     * @return the user entry, or null if it has to be read
+     */
+    public Entry getUserEntry()
+    {
+        return userEntry;
+    }
+
+
+    /**
+     * @param userEntry the user entry to set, when it is shared by many evaluations
+     */
+    public void setUserEntry( Entry userEntry )
+    {
+        this.userEntry = userEntry;
+    }
 }
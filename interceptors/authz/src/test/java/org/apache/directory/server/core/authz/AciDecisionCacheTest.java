@@ -0,0 +1,118 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authz;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.aci.ACITuple;
+import org.apache.directory.api.ldap.aci.MicroOperation;
+import org.apache.directory.api.ldap.aci.ProtectedItem;
+import org.apache.directory.api.ldap.aci.UserClass;
+import org.apache.directory.api.ldap.aci.protectedItem.MaxImmSubItem;
+import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
+import org.junit.Test;
+
+
+/**
+ * Tests {@link AciDecisionCache}.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class AciDecisionCacheTest
+{
+    private static final Set<MicroOperation> OPERATIONS = Collections.singleton( MicroOperation.BROWSE );
+
+
+    private static Collection<ACITuple> createTuples( UserClass userClass, ProtectedItem item )
+    {
+        Collection<ACITuple> tuples = new HashSet<>();
+        tuples.add( new ACITuple( Collections.singleton( userClass ), AuthenticationLevel.NONE,
+            Collections.singleton( item ), OPERATIONS, true, 0 ) );
+
+        return tuples;
+    }
+
+
+    private static AciDecisionCache.Key createKey( String subentry )
+    {
+        return new AciDecisionCache.Key( "uid=user", AuthenticationLevel.SIMPLE, Collections.<String> emptySet(),
+            Collections.singleton( subentry ), Collections.singleton( "person" ), "search" );
+    }
+
+
+    @Test
+    public void testEntryIndependence()
+    {
+        assertTrue( AciDecisionCache.isEntryIndependent( createTuples( UserClass.ALL_USERS,
+            ProtectedItem.ENTRY ) ) );
+        assertTrue( AciDecisionCache.isEntryIndependent( createTuples( UserClass.ALL_USERS,
+            ProtectedItem.ALL_USER_ATTRIBUTE_TYPES_AND_VALUES ) ) );
+        assertFalse( AciDecisionCache.isEntryIndependent( createTuples( UserClass.THIS_ENTRY,
+            ProtectedItem.ENTRY ) ) );
+        assertFalse( AciDecisionCache.isEntryIndependent( createTuples( UserClass.ALL_USERS,
+            new MaxImmSubItem( 2 ) ) ) );
+    }
+
+
+    @Test
+    public void testDecisions()
+    {
+        AciDecisionCache cache = new AciDecisionCache();
+        AciDecisionCache.Key key = createKey( "cn=acsubentry,ou=system" );
+
+        assertNull( cache.get( key, 0L ) );
+
+        AciDecisionCache.Decision decision = cache.put( key,
+            createTuples( UserClass.ALL_USERS, ProtectedItem.ENTRY ), 0L );
+        assertTrue( decision.isCacheable() );
+        assertNull( decision.getEntryPermission() );
+        decision.setEntryPermission( true );
+        decision.setAttributePermission( "2.5.4.3", false, false );
+
+        assertSame( decision, cache.get( createKey( "cn=acsubentry,ou=system" ), 0L ) );
+        assertTrue( decision.getEntryPermission() );
+        assertFalse( decision.getAttributePermission( "2.5.4.3", false ) );
+        assertNull( decision.getAttributePermission( "2.5.4.3", true ) );
+
+        // Entry dependent tuples are not evaluated once for all
+        AciDecisionCache.Key otherKey = createKey( "cn=other,ou=system" );
+        assertFalse( cache.put( otherKey, createTuples( UserClass.THIS_ENTRY, ProtectedItem.ENTRY ), 0L )
+            .isCacheable() );
+        assertFalse( cache.get( otherKey, 0L ).isCacheable() );
+
+        // A TupleCache change clears the cache
+        assertNull( cache.get( key, 1L ) );
+        assertEquals( 0, cache.size() );
+
+        // Decisions computed with obsolete tuples are not stored
+        cache.put( key, createTuples( UserClass.ALL_USERS, ProtectedItem.ENTRY ), 0L );
+        assertEquals( 0, cache.size() );
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authz;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+
+/**
+ * Tests {@link GroupMembershipIndex}.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class GroupMembershipIndexTest
+{
+    private static Set<String> set( String... values )
+    {
+        return new HashSet<>( Arrays.asList( values ) );
+    }
+
+
+    @Test
+    public void testDirectMembership()
+    {
+        GroupMembershipIndex index = new GroupMembershipIndex();
+        index.setMembers( "cn=a", set( "uid=1", "uid=2" ) );
+        index.setMembers( "cn=b", set( "uid=2" ) );
+
+        assertEquals( set( "cn=a" ), index.getGroups( "uid=1" ) );
+        assertEquals( set( "cn=a", "cn=b" ), index.getGroups( "uid=2" ) );
+        assertTrue( index.getGroups( "uid=3" ).isEmpty() );
+        assertTrue( index.isMember( "uid=2", "cn=b" ) );
+        assertFalse( index.isMember( "uid=1", "cn=b" ) );
+
+        // The closures are kept until the next change
+        assertSame( index.getGroups( "uid=2" ), index.getGroups( "uid=2" ) );
+
+        assertTrue( index.addMembers( "cn=b", set( "uid=1" ) ) );
+        assertTrue( index.removeMembers( "cn=a", set( "uid=2" ) ) );
+        assertFalse( index.addMembers( "cn=unknown", set( "uid=1" ) ) );
+        assertEquals( set( "cn=a", "cn=b" ), index.getGroups( "uid=1" ) );
+        assertEquals( set( "cn=b" ), index.getGroups( "uid=2" ) );
+
+        index.setMembers( "cn=a", Collections.singleton( "uid=3" ) );
+        assertEquals( set( "cn=b" ), index.getGroups( "uid=1" ) );
+        assertEquals( set( "cn=a" ), index.getGroups( "uid=3" ) );
+    }
+
+
+    @Test
+    public void testNestedGroups()
+    {
+        GroupMembershipIndex index = new GroupMembershipIndex();
+        index.setMembers( "cn=admins", set( "cn=operators" ) );
+        index.setMembers( "cn=operators", set( "cn=oncall", "uid=1" ) );
+        index.setMembers( "cn=oncall", set( "uid=2", "cn=admins" ) );
+
+        assertEquals( set( "cn=operators", "cn=admins", "cn=oncall" ), index.getGroups( "uid=1" ) );
+        assertEquals( set( "cn=oncall", "cn=operators", "cn=admins" ), index.getGroups( "uid=2" ) );
+        assertTrue( index.isMember( "uid=2", "cn=admins" ) );
+
+        index.removeMembers( "cn=operators", set( "cn=oncall" ) );
+        assertEquals( set( "cn=oncall" ), index.getGroups( "uid=2" ) );
+    }
+
+
+    @Test
+    public void testRemoveAndRename()
+    {
+        GroupMembershipIndex index = new GroupMembershipIndex();
+        index.setMembers( "cn=a", set( "uid=1" ) );
+        index.setMembers( "cn=b", set( "uid=1" ) );
+
+        assertTrue( index.removeGroup( "cn=a" ) );
+        assertFalse( index.removeGroup( "cn=a" ) );
+        assertEquals( set( "cn=b" ), index.getGroups( "uid=1" ) );
+
+        // The freed ordinal is reused
+        index.setMembers( "cn=c", set( "uid=2" ) );
+        assertEquals( set( "cn=b" ), index.getGroups( "uid=1" ) );
+        assertEquals( set( "cn=c" ), index.getGroups( "uid=2" ) );
+
+        assertTrue( index.renameGroup( "cn=b", "cn=d" ) );
+        assertEquals( set( "cn=d" ), index.getGroups( "uid=1" ) );
+        assertFalse( index.hasGroup( "cn=b" ) );
+        assertEquals( 2, index.size() );
+    }
+
+
+    @Test
+    public void testRenameNestedGroup()
+    {
+        GroupMembershipIndex index = new GroupMembershipIndex();
+        index.setMembers( "cn=admins", set( "cn=operators" ) );
+        index.setMembers( "cn=operators", set( "uid=1", "cn=oncall" ) );
+        index.setMembers( "cn=oncall", set( "uid=2" ) );
+
+        assertTrue( index.isMember( "uid=2", "cn=admins" ) );
+
+        // Rename the group in the middle of the chain
+        assertTrue( index.renameGroup( "cn=operators", "cn=ops" ) );
+
+        assertEquals( set( "cn=ops", "cn=admins" ), index.getGroups( "uid=1" ) );
+        assertEquals( set( "cn=oncall", "cn=ops", "cn=admins" ), index.getGroups( "uid=2" ) );
+        assertTrue( index.isMember( "uid=1", "cn=admins" ) );
+        assertEquals( set( "cn=admins" ), index.getGroups( "cn=ops" ) );
+        assertTrue( index.getGroups( "cn=operators" ).isEmpty() );
+
+        // The parent group members use the new name
+        assertTrue( index.removeMembers( "cn=admins", set( "cn=ops" ) ) );
+        assertFalse( index.isMember( "uid=1", "cn=admins" ) );
+        assertEquals( set( "cn=oncall", "cn=ops" ), index.getGroups( "uid=2" ) );
+    }
+
+
+    @Test
+    public void testBoundedMemberships()
+    {
+        GroupMembershipIndex index = new GroupMembershipIndex( 2 );
+        index.setMembers( "cn=a", set( "uid=1", "uid=2", "uid=3" ) );
+
+        Set<String> groups = index.getGroups( "uid=1" );
+        assertSame( groups, index.getGroups( "uid=1" ) );
+
+        // uid=1 is evicted by the two other closures
+        index.getGroups( "uid=2" );
+        index.getGroups( "uid=3" );
+
+        Set<String> recomputed = index.getGroups( "uid=1" );
+        assertEquals( groups, recomputed );
+        assertNotSame( groups, recomputed );
+    }
+}
@@ -20,10 +20,15 @@
 package org.apache.directory.server.core.event;
 
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
+import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
@@ -48,6 +53,27 @@ class DefaultEventService implements EventService
     /** The list of RegistrationEntries being registered */
     private List<RegistrationEntry> registrations = new CopyOnWriteArrayList<>();
 
+    /** The registrations, indexed by base, scope and required objectClass */
+    private RegistrationIndex registrationIndex = new RegistrationIndex();
+
+    /** The mailboxes of the asynchronous listeners */
+    private Map<DirectoryListener, ListenerMailbox> mailboxes = new ConcurrentHashMap<>();
+
+    /** The executor delivering the events to the asynchronous listeners */
+    private Executor executor;
+
+    /** The maximum number of pending events per asynchronous listener */
+    private int mailboxCapacity;
+
+    /** The maximum number of events delivered to a listener in a row */
+    private int mailboxBatchSize;
+
+    /** What to do when a mailbox is full */
+    private MailboxOverflowPolicy overflowPolicy;
+
+    /** How long an operation waits for some room in a full mailbox, in ms */
+    private long blockTimeout;
+
     /** The DirectoryService instance */
     private DirectoryService directoryService;
 
@@ -58,11 +84,21 @@ class DefaultEventService implements EventService
     /**
      * Create an instance of EventService
      * @param directoryService The associated DirectoryService
-     * @param registrations The list of Registrations
+     * @param executor The executor delivering the events to the asynchronous listeners
+     * @param mailboxCapacity The maximum number of pending events per asynchronous listener
+     * @param mailboxBatchSize The maximum number of events delivered to a listener in a row
+     * @param overflowPolicy What to do when a mailbox is full
+     * @param blockTimeout How long an operation waits for some room in a full mailbox, in ms
      */
-    DefaultEventService( DirectoryService directoryService )
+    DefaultEventService( DirectoryService directoryService, Executor executor, int mailboxCapacity,
+        int mailboxBatchSize, MailboxOverflowPolicy overflowPolicy, long blockTimeout )
     {
         this.directoryService = directoryService;
+        this.executor = executor;
+        this.mailboxCapacity = mailboxCapacity;
+        this.mailboxBatchSize = mailboxBatchSize;
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeout = blockTimeout;
         SchemaManager schemaManager = directoryService.getSchemaManager();
         NameComponentNormalizer ncn = new ConcreteNameComponentNormalizer( schemaManager );
         filterNormalizer = new FilterNormalizingVisitor( ncn, schemaManager );
@@ -82,7 +118,16 @@ class DefaultEventService implements EventService
 
         ExprNode result = ( ExprNode ) criteria.getFilter().accept( filterNormalizer );
         criteria.setFilter( result );
-        registrations.add( new RegistrationEntry( listener, criteria ) );
+        RegistrationEntry registration = new RegistrationEntry( listener, criteria );
+
+        if ( !listener.isSynchronous() && !mailboxes.containsKey( listener ) )
+        {
+            mailboxes.put( listener, new ListenerMailbox( listener, this, executor, mailboxCapacity,
+                mailboxBatchSize, overflowPolicy, blockTimeout ) );
+        }
+
+        registrationIndex.add( registration );
+        registrations.add( registration );
     }
 
 
@@ -97,8 +142,16 @@ class DefaultEventService implements EventService
             if ( entry.getListener() == listener )
             {
                 registrations.remove( entry );
+                registrationIndex.remove( entry );
             }
         }
+
+        ListenerMailbox mailbox = mailboxes.remove( listener );
+
+        if ( mailbox != null )
+        {
+            mailbox.close();
+        }
     }
 
 
@@ -110,4 +163,45 @@ class DefaultEventService implements EventService
     {
         return Collections.unmodifiableList( registrations );
     }
+
+
+    /**
+     * Gets the registrations which may be interested by a change done on an entry. The
+     * entry is in the scope of all the returned registrations, but their filter still has
+     * to be evaluated.
+     *
+     * @param name The entry DN
+     * @param entry The entry
+     * @return The candidate registrations, in registration order
+     */
+    List<RegistrationEntry> getCandidateRegistrations( Dn name, Entry entry )
+    {
+        if ( registrations.isEmpty() )
+        {
+            return Collections.emptyList();
+        }
+
+        return registrationIndex.getCandidates( name, entry );
+    }
+
+
+    /**
+     * Gets the mailbox of an asynchronous listener.
+     *
+     * @param listener The listener
+     * @return The listener's mailbox, or null if the listener is not registered anymore
+     */
+    ListenerMailbox getMailbox( DirectoryListener listener )
+    {
+        return mailboxes.get( listener );
+    }
+
+
+    /**
+     * @return The mailboxes of all the asynchronous listeners
+     */
+    List<ListenerMailbox> getMailboxes()
+    {
+        return new ArrayList<>( mailboxes.values() );
+    }
 }
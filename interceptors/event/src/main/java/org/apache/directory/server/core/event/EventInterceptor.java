@@ -20,16 +20,12 @@
 package org.apache.directory.server.core.event;
 
 
-import static org.apache.directory.api.ldap.model.message.SearchScope.OBJECT;
-import static org.apache.directory.api.ldap.model.message.SearchScope.ONELEVEL;
-import static org.apache.directory.api.ldap.model.message.SearchScope.SUBTREE;
-
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -37,7 +33,6 @@ import java.util.concurrent.TimeUnit;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
-import org.apache.directory.api.ldap.model.message.SearchScope;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.server.core.api.CoreSession;
 import org.apache.directory.server.core.api.DirectoryService;
@@ -72,9 +67,36 @@ public class EventInterceptor extends BaseInterceptor
     /** A logger for this class */
     private static final Logger LOG = LoggerFactory.getLogger( EventInterceptor.class );
 
+    /** The number of threads delivering the events to the asynchronous listeners */
+    private static final int DELIVERY_THREADS = 10;
+
+    /** The default maximum number of pending events per asynchronous listener */
+    public static final int DEFAULT_MAILBOX_CAPACITY = 1000;
+
+    /** The default maximum number of events delivered to a listener in a row */
+    public static final int DEFAULT_MAILBOX_BATCH_SIZE = 32;
+
+    /** The default time an operation waits for some room in a full mailbox, in ms */
+    public static final long DEFAULT_BLOCK_TIMEOUT = 1000L;
+
     private Evaluator evaluator;
     private ExecutorService executor;
 
+    /** The maximum number of pending events per asynchronous listener */
+    private int mailboxCapacity = DEFAULT_MAILBOX_CAPACITY;
+
+    /** The maximum number of events delivered to a listener in a row */
+    private int mailboxBatchSize = DEFAULT_MAILBOX_BATCH_SIZE;
+
+    /** What to do when the mailbox of a listener is full */
+    private MailboxOverflowPolicy overflowPolicy = MailboxOverflowPolicy.BLOCK;
+
+    /** How long an operation waits for some room in a full mailbox, in ms */
+    private long blockTimeout = DEFAULT_BLOCK_TIMEOUT;
+
+    /** The EventService, which holds the registrations */
+    private DefaultEventService eventService;
+
 
     /**
      * Creates a new instance of a EventInterceptor.
@@ -87,7 +109,7 @@ public class EventInterceptor extends BaseInterceptor
 
     /**
      * Initialize the event interceptor. It creates a pool of executor which will be used
-     * to call the listeners in separate threads.
+     * to call the asynchronous listeners in separate threads.
      */
     @Override
     public void init( DirectoryService directoryService ) throws LdapException
@@ -96,8 +118,7 @@ public class EventInterceptor extends BaseInterceptor
         super.init( directoryService );
 
         evaluator = new ExpressionEvaluator( schemaManager );
-        executor = new ThreadPoolExecutor( 1, 10, 1000, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>( 100 ) );
-        
+
         ThreadFactory threadFactory = new ThreadFactory() 
         {
             @Override
@@ -110,137 +131,38 @@ public class EventInterceptor extends BaseInterceptor
             }
         };
         
-        executor = new ThreadPoolExecutor( 1, 10, 1000, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>( 100 ),
-            threadFactory );
-
-        this.directoryService.setEventService( new DefaultEventService( directoryService ) );
+        // The mailboxes are bounded, and each of them has at most one pending task
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor( DELIVERY_THREADS, DELIVERY_THREADS, 1000,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory );
+        threadPool.allowCoreThreadTimeOut( true );
+        executor = threadPool;
+
+        eventService = new DefaultEventService( directoryService, executor, mailboxCapacity, mailboxBatchSize,
+            overflowPolicy, blockTimeout );
+        this.directoryService.setEventService( eventService );
         LOG.info( "Initialization complete." );
     }
 
 
     /**
-     * Call the listener passing it the context.
+     * Call the listener passing it the context. The asynchronous listeners get the
+     * event through their mailbox.
      */
-    private void fire( final OperationContext opContext, EventType type, final DirectoryListener listener )
+    private void fire( OperationContext opContext, EventType type, DirectoryListener listener )
     {
-        switch ( type )
+        if ( listener.isSynchronous() )
         {
-            case ADD:
-                if ( listener.isSynchronous() )
-                {
-                    listener.entryAdded( ( AddOperationContext ) opContext );
-                }
-                else
-                {
-                    executor.execute( new Runnable()
-                    {
-                        @Override
-                        public void run()
-                        {
-                            listener.entryAdded( ( AddOperationContext ) opContext );
-                        }
-                    } );
-                }
-
-                break;
-
-            case DELETE:
-                if ( listener.isSynchronous() )
-                {
-                    listener.entryDeleted( ( DeleteOperationContext ) opContext );
-                }
-                else
-                {
-                    executor.execute( new Runnable()
-                    {
-                        @Override
-                        public void run()
-                        {
-                            listener.entryDeleted( ( DeleteOperationContext ) opContext );
-                        }
-                    } );
-                }
-
-                break;
-
-            case MODIFY:
-                if ( listener.isSynchronous() )
-                {
-                    listener.entryModified( ( ModifyOperationContext ) opContext );
-                }
-                else
-                {
-                    executor.execute( new Runnable()
-                    {
-                        @Override
-                        public void run()
-                        {
-                            listener.entryModified( ( ModifyOperationContext ) opContext );
-                        }
-                    } );
-                }
-
-                break;
-
-            case MOVE:
-                if ( listener.isSynchronous() )
-                {
-                    listener.entryMoved( ( MoveOperationContext ) opContext );
-                }
-                else
-                {
-                    executor.execute( new Runnable()
-                    {
-                        @Override
-                        public void run()
-                        {
-                            listener.entryMoved( ( MoveOperationContext ) opContext );
-                        }
-                    } );
-                }
-
-                break;
-
-            case RENAME:
-                if ( listener.isSynchronous() )
-                {
-                    listener.entryRenamed( ( RenameOperationContext ) opContext );
-                }
-                else
-                {
-                    executor.execute( new Runnable()
-                    {
-                        @Override
-                        public void run()
-                        {
-                            listener.entryRenamed( ( RenameOperationContext ) opContext );
-                        }
-                    } );
-                }
-
-                break;
-
-            case MOVE_AND_RENAME:
-                if ( listener.isSynchronous() )
-                {
-                    listener.entryMovedAndRenamed( ( MoveAndRenameOperationContext ) opContext );
-                }
-                else
-                {
-                    executor.execute( new Runnable()
-                    {
-                        @Override
-                        public void run()
-                        {
-                            listener.entryMovedAndRenamed( ( MoveAndRenameOperationContext ) opContext );
-                        }
-                    } );
-                }
-
-                break;
-
-            default:
-                throw new IllegalArgumentException( "Unexpected event type " + type );
+            ListenerMailbox.deliver( listener, type, opContext );
+        }
+        else
+        {
+            ListenerMailbox mailbox = eventService.getMailbox( listener );
+
+            // The listener may have been removed in the meantime
+            if ( mailbox != null )
+            {
+                mailbox.post( type, opContext );
+            }
         }
     }
 
@@ -427,35 +349,26 @@ public class EventInterceptor extends BaseInterceptor
 
 
     /**
-     * Find a list of registrationEntries given an entry and a name. We check against
-     * the criteria for each registrationEntry
+     * Find a list of registrationEntries given an entry and a name. The EventService
+     * index gives us the registrations having the entry in scope, and which may match
+     * it : we check their filter against the entry.
      */
     private List<RegistrationEntry> getSelectingRegistrations( Dn name, Entry entry ) throws LdapException
     {
-        List<RegistrationEntry> registrations = directoryService.getEventService().getRegistrationEntries();
+        List<RegistrationEntry> candidates = eventService.getCandidateRegistrations( name, entry );
 
-        if ( registrations.isEmpty() )
+        if ( candidates.isEmpty() )
         {
             return Collections.emptyList();
         }
 
-        List<RegistrationEntry> selecting = new ArrayList<>();
+        List<RegistrationEntry> selecting = new ArrayList<>( candidates.size() );
 
-        for ( RegistrationEntry registration : registrations )
+        for ( RegistrationEntry registration : candidates )
         {
             NotificationCriteria criteria = registration.getCriteria();
 
-            Dn base = criteria.getBase();
-
-            SearchScope scope = criteria.getScope();
-            
-            // fix for DIRSERVER-1502
-            boolean inscope =
-                    ( ( ( scope == OBJECT ) && name.equals( base ) )
-                    || ( ( scope == ONELEVEL ) && name.getParent().equals( base ) )
-                    || ( ( scope == SUBTREE ) && ( name.isDescendantOf( base ) || name.equals( base ) ) ) );
-            
-            if ( inscope && evaluator.evaluate( criteria.getFilter(), base, entry ) )
+            if ( evaluator.evaluate( criteria.getFilter(), criteria.getBase(), entry ) )
             {
                 selecting.add( registration );
             }
@@ -465,6 +378,118 @@ public class EventInterceptor extends BaseInterceptor
     }
 
     
+    /**
+     * @return The maximum number of pending events per asynchronous listener
+     */
+    public int getMailboxCapacity()
+    {
+        return mailboxCapacity;
+    }
+
+
+    /**
+     * Sets the maximum number of pending events per asynchronous listener. This must
+     * be done before the interceptor is initialized.
+     *
+     * @param mailboxCapacity The maximum number of pending events
+     */
+    public void setMailboxCapacity( int mailboxCapacity )
+    {
+        if ( mailboxCapacity <= 0 )
+        {
+            throw new IllegalArgumentException( "The mailbox capacity must be above 0 : " + mailboxCapacity );
+        }
+
+        this.mailboxCapacity = mailboxCapacity;
+    }
+
+
+    /**
+     * @return The maximum number of events delivered to a listener in a row
+     */
+    public int getMailboxBatchSize()
+    {
+        return mailboxBatchSize;
+    }
+
+
+    /**
+     * Sets the maximum number of events delivered to a listener before the thread is
+     * given back to the other listeners. This must be done before the interceptor is
+     * initialized.
+     *
+     * @param mailboxBatchSize The maximum number of events delivered in a row
+     */
+    public void setMailboxBatchSize( int mailboxBatchSize )
+    {
+        if ( mailboxBatchSize <= 0 )
+        {
+            throw new IllegalArgumentException( "The mailbox batch size must be above 0 : " + mailboxBatchSize );
+        }
+
+        this.mailboxBatchSize = mailboxBatchSize;
+    }
+
+
+    /**
+     * @return What to do when the mailbox of a listener is full
+     */
+    public MailboxOverflowPolicy getOverflowPolicy()
+    {
+        return overflowPolicy;
+    }
+
+
+    /**
+     * Sets what to do when the mailbox of a listener is full. This must be done before
+     * the interceptor is initialized.
+     *
+     * @param overflowPolicy The overflow policy
+     */
+    public void setOverflowPolicy( MailboxOverflowPolicy overflowPolicy )
+    {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+
+    /**
+     * @return How long an operation waits for some room in a full mailbox, in ms
+     */
+    public long getBlockTimeout()
+    {
+        return blockTimeout;
+    }
+
+
+    /**
+     * Sets how long an operation waits for some room in a full mailbox before the
+     * listener is dropped. This must be done before the interceptor is initialized.
+     *
+     * @param blockTimeout The timeout, in ms
+     */
+    public void setBlockTimeout( long blockTimeout )
+    {
+        this.blockTimeout = blockTimeout;
+    }
+
+
+    /**
+     * Gets the mailboxes of the asynchronous listeners, which expose the number of
+     * pending events and the delivery lag of each listener.
+     *
+     * @return The mailboxes of the registered asynchronous listeners
+     */
+    public List<ListenerMailbox> getListenerMailboxes()
+    {
+        if ( eventService == null )
+        {
+            return Collections.emptyList();
+        }
+
+        return eventService.getMailboxes();
+    }
+
+
     /**
      * {@inheritDoc}
      */
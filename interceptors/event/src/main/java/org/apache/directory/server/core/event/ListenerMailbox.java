@@ -0,0 +1,611 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.event;
+
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.directory.server.core.api.event.DirectoryListener;
+import org.apache.directory.server.core.api.event.EventService;
+import org.apache.directory.server.core.api.event.EventType;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.OperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The bounded queue of events waiting to be delivered to an asynchronous listener.
+ * <p>
+ * Each asynchronous listener has its own mailbox. At most one task is running or
+ * scheduled for a given mailbox, so the events are delivered in the order they have
+ * been posted. The task delivers up to <code>batchSize</code> events, then gives the
+ * thread back to the executor if more events are pending, so that one busy listener
+ * does not starve the others.
+ * <p>
+ * When the mailbox is full, the {@link MailboxOverflowPolicy} tells what to do with
+ * the posted event.
+ * <p>
+ * The mailbox also keeps a few statistics : the number of pending events, the number of
+ * events delivered, dropped or coalesced, and the time the events spent in the mailbox.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ListenerMailbox implements Runnable
+{
+    /** A logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( ListenerMailbox.class );
+
+    /** The listener the events are delivered to */
+    private final DirectoryListener listener;
+
+    /** The EventService the listener is registered in */
+    private final EventService eventService;
+
+    /** The executor running the delivery tasks */
+    private final Executor executor;
+
+    /** The maximum number of pending events */
+    private final int capacity;
+
+    /** The maximum number of events delivered by one task */
+    private final int batchSize;
+
+    /** What to do when the mailbox is full */
+    private final MailboxOverflowPolicy overflowPolicy;
+
+    /** How long we wait for some room in the mailbox, in ms */
+    private final long blockTimeout;
+
+    /** The pending events */
+    private final ArrayDeque<PendingEvent> events;
+
+    /** Protects the pending events and the mailbox state */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signaled when some events have been removed from the mailbox */
+    private final Condition notFull = lock.newCondition();
+
+    /** Tells if a delivery task is running or scheduled */
+    private boolean scheduled;
+
+    /** Set when the mailbox does not accept events anymore */
+    private volatile boolean closed;
+
+    /** The thread delivering the events, if any */
+    private volatile Thread deliveryThread;
+
+    /** The highest number of pending events */
+    private volatile int maxQueueDepth;
+
+    /** The number of delivered events */
+    private volatile long deliveredCount;
+
+    /** The number of events which have been discarded */
+    private volatile long droppedCount;
+
+    /** The number of events which have been replaced by a more recent one */
+    private volatile long coalescedCount;
+
+    /** The time the last delivered event spent in the mailbox, in ns */
+    private volatile long lastLag;
+
+    /** The longest time an event spent in the mailbox, in ns */
+    private volatile long maxLag;
+
+
+    /**
+     * An event waiting to be delivered
+     */
+    private static final class PendingEvent
+    {
+        /** The event type */
+        private final EventType type;
+
+        /** The operation which triggered the event */
+        private final OperationContext opContext;
+
+        /** When the event was posted */
+        private final long postTime;
+
+
+        private PendingEvent( EventType type, OperationContext opContext )
+        {
+            this.type = type;
+            this.opContext = opContext;
+            this.postTime = System.nanoTime();
+        }
+    }
+
+
+    /**
+     * Creates a new ListenerMailbox
+     *
+     * @param listener The listener the events are delivered to
+     * @param eventService The EventService the listener is registered in
+     * @param executor The executor running the delivery tasks
+     * @param capacity The maximum number of pending events
+     * @param batchSize The maximum number of events delivered by one task
+     * @param overflowPolicy What to do when the mailbox is full
+     * @param blockTimeout How long we wait for some room in the mailbox, in ms
+     */
+    ListenerMailbox( DirectoryListener listener, EventService eventService, Executor executor, int capacity,
+        int batchSize, MailboxOverflowPolicy overflowPolicy, long blockTimeout )
+    {
+        this.listener = listener;
+        this.eventService = eventService;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeout = blockTimeout;
+        events = new ArrayDeque<>( Math.min( capacity, 64 ) );
+    }
+
+
+    /**
+     * Calls the listener method associated with the event type.
+     *
+     * @param listener The listener to call
+     * @param type The event type
+     * @param opContext The operation which triggered the event
+     */
+    static void deliver( DirectoryListener listener, EventType type, OperationContext opContext )
+    {
+        switch ( type )
+        {
+            case ADD:
+                listener.entryAdded( ( AddOperationContext ) opContext );
+                break;
+
+            case DELETE:
+                listener.entryDeleted( ( DeleteOperationContext ) opContext );
+                break;
+
+            case MODIFY:
+                listener.entryModified( ( ModifyOperationContext ) opContext );
+                break;
+
+            case MOVE:
+                listener.entryMoved( ( MoveOperationContext ) opContext );
+                break;
+
+            case RENAME:
+                listener.entryRenamed( ( RenameOperationContext ) opContext );
+                break;
+
+            case MOVE_AND_RENAME:
+                listener.entryMovedAndRenamed( ( MoveAndRenameOperationContext ) opContext );
+                break;
+
+            default:
+                throw new IllegalArgumentException( "Unexpected event type " + type );
+        }
+    }
+
+
+    /**
+     * Posts an event in the mailbox. If the mailbox is full, the overflow policy is applied.
+     *
+     * @param type The event type
+     * @param opContext The operation which triggered the event
+     */
+    void post( EventType type, OperationContext opContext )
+    {
+        PendingEvent event = new PendingEvent( type, opContext );
+        boolean schedule = false;
+        boolean drop = false;
+
+        lock.lock();
+
+        try
+        {
+            if ( closed )
+            {
+                return;
+            }
+
+            if ( ( events.size() >= capacity ) && !makeRoom( event ) )
+            {
+                droppedCount++;
+                drop = true;
+            }
+            else
+            {
+                events.addLast( event );
+
+                if ( events.size() > maxQueueDepth )
+                {
+                    maxQueueDepth = events.size();
+                }
+
+                if ( !scheduled )
+                {
+                    scheduled = true;
+                    schedule = true;
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if ( drop )
+        {
+            LOG.warn( "The listener {} does not keep up with the changes, it is removed", listener );
+            eventService.removeListener( listener );
+
+            // Tell the listener it won't get the following changes
+            try
+            {
+                listener.listenerDropped();
+            }
+            catch ( Exception e )
+            {
+                LOG.error( "The dropped listener {} failed to handle its removal", listener, e );
+            }
+        }
+        else if ( schedule )
+        {
+            schedule();
+        }
+    }
+
+
+    /**
+     * Called with the lock held when the mailbox is full. Returns true if the event
+     * can be added, false if the listener has to be dropped.
+     */
+    private boolean makeRoom( PendingEvent event )
+    {
+        // A listener generating events for itself would wait forever
+        if ( Thread.currentThread() == deliveryThread )
+        {
+            return true;
+        }
+
+        switch ( overflowPolicy )
+        {
+            case DROP_LISTENER:
+                return false;
+
+            case COALESCE:
+                return coalesce( event );
+
+            case BLOCK:
+            default:
+                return waitForRoom();
+        }
+    }
+
+
+    /**
+     * Removes a pending modification of the entry modified by the given event. The new
+     * event is added at the end of the mailbox, so an entry which has been deleted
+     * and added back in the meantime is still notified in the right order.
+     */
+    private boolean coalesce( PendingEvent event )
+    {
+        if ( event.type != EventType.MODIFY )
+        {
+            return false;
+        }
+
+        Iterator<PendingEvent> iterator = events.iterator();
+
+        while ( iterator.hasNext() )
+        {
+            PendingEvent pending = iterator.next();
+
+            if ( ( pending.type == EventType.MODIFY ) && pending.opContext.getDn().equals( event.opContext.getDn() ) )
+            {
+                iterator.remove();
+                coalescedCount++;
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Waits until the mailbox has some room, or until the block timeout expires.
+     */
+    private boolean waitForRoom()
+    {
+        long remaining = TimeUnit.MILLISECONDS.toNanos( blockTimeout );
+
+        try
+        {
+            while ( events.size() >= capacity )
+            {
+                if ( closed || ( remaining <= 0L ) )
+                {
+                    return false;
+                }
+
+                remaining = notFull.awaitNanos( remaining );
+            }
+
+            return !closed;
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+
+            return false;
+        }
+    }
+
+
+    /**
+     * Delivers a batch of pending events.
+     */
+    @Override
+    public void run()
+    {
+        PendingEvent[] batch = new PendingEvent[batchSize];
+        int count = 0;
+
+        lock.lock();
+
+        try
+        {
+            while ( ( count < batchSize ) && !events.isEmpty() )
+            {
+                batch[count++] = events.pollFirst();
+            }
+
+            notFull.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        deliveryThread = Thread.currentThread();
+
+        try
+        {
+            for ( int i = 0; ( i < count ) && !closed; i++ )
+            {
+                PendingEvent event = batch[i];
+                long lag = System.nanoTime() - event.postTime;
+                lastLag = lag;
+
+                if ( lag > maxLag )
+                {
+                    maxLag = lag;
+                }
+
+                try
+                {
+                    deliver( listener, event.type, event.opContext );
+                    deliveredCount++;
+                }
+                catch ( RuntimeException re )
+                {
+                    LOG.error( "The listener {} failed to handle the {} event on {}", listener, event.type,
+                        event.opContext.getDn(), re );
+                }
+            }
+        }
+        finally
+        {
+            deliveryThread = null;
+            boolean reschedule = false;
+
+            lock.lock();
+
+            try
+            {
+                if ( events.isEmpty() || closed )
+                {
+                    scheduled = false;
+                }
+                else
+                {
+                    reschedule = true;
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            if ( reschedule )
+            {
+                schedule();
+            }
+        }
+    }
+
+
+    /**
+     * Submits the delivery task to the executor.
+     */
+    private void schedule()
+    {
+        try
+        {
+            executor.execute( this );
+        }
+        catch ( RejectedExecutionException ree )
+        {
+            // The server is being stopped
+            LOG.debug( "Cannot deliver the events to {}", listener, ree );
+
+            lock.lock();
+
+            try
+            {
+                scheduled = false;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * Discards the pending events. The mailbox won't accept any event anymore.
+     */
+    void close()
+    {
+        lock.lock();
+
+        try
+        {
+            closed = true;
+            droppedCount += events.size();
+            events.clear();
+            notFull.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return The listener the events are delivered to
+     */
+    public DirectoryListener getListener()
+    {
+        return listener;
+    }
+
+
+    /**
+     * @return The number of events waiting to be delivered
+     */
+    public int getQueueDepth()
+    {
+        lock.lock();
+
+        try
+        {
+            return events.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return The highest number of events which have been waiting to be delivered
+     */
+    public int getMaxQueueDepth()
+    {
+        return maxQueueDepth;
+    }
+
+
+    /**
+     * @return The number of events delivered to the listener
+     */
+    public long getDeliveredCount()
+    {
+        return deliveredCount;
+    }
+
+
+    /**
+     * @return The number of events which have been discarded when the listener was removed
+     */
+    public long getDroppedCount()
+    {
+        return droppedCount;
+    }
+
+
+    /**
+     * @return The number of events which have been replaced by a more recent modification
+     */
+    public long getCoalescedCount()
+    {
+        return coalescedCount;
+    }
+
+
+    /**
+     * @return The time the last delivered event spent in the mailbox, in milliseconds
+     */
+    public long getLastDispatchLag()
+    {
+        return TimeUnit.NANOSECONDS.toMillis( lastLag );
+    }
+
+
+    /**
+     * @return The longest time an event spent in the mailbox, in milliseconds
+     */
+    public long getMaxDispatchLag()
+    {
+        return TimeUnit.NANOSECONDS.toMillis( maxLag );
+    }
+
+
+    /**
+     * @return true if the mailbox has been closed
+     */
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append( "Mailbox for " ).append( listener );
+        sb.append( " : " ).append( getQueueDepth() ).append( '/' ).append( capacity ).append( " pending, " );
+        sb.append( deliveredCount ).append( " delivered, " );
+        sb.append( droppedCount ).append( " dropped, " );
+        sb.append( coalescedCount ).append( " coalesced, max lag " );
+        sb.append( getMaxDispatchLag() ).append( "ms" );
+
+        return sb.toString();
+    }
+}
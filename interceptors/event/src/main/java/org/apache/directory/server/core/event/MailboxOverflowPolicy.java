@@ -0,0 +1,52 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.event;
+
+
+/**
+ * What to do when an event is posted to an asynchronous listener whose
+ * {@link ListenerMailbox} is full.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public enum MailboxOverflowPolicy
+{
+    /**
+     * The listener is removed from the EventService, and its pending events are discarded.
+     * The operation which posted the event never waits. The listener is told it has been
+     * dropped, a persistent search being ended with an adminLimitExceeded result.
+     */
+    DROP_LISTENER,
+
+    /**
+     * The operation waits until some room is available in the mailbox. If the listener
+     * does not catch up before the block timeout expires, it is dropped. The operation
+     * may hold the partition locks while waiting, so a slow listener slows down all the
+     * writers. This is the default policy.
+     */
+    BLOCK,
+
+    /**
+     * A pending modification of the same entry is replaced by the new one, as the
+     * listener only needs the latest state of the entry. If there is no such event
+     * in the mailbox, the listener is dropped as with the DROP_LISTENER policy.
+     */
+    COALESCE
+}
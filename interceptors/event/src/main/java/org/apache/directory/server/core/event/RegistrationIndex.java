@@ -0,0 +1,542 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.event;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.filter.AndNode;
+import org.apache.directory.api.ldap.model.filter.EqualityNode;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.GreaterEqNode;
+import org.apache.directory.api.ldap.model.filter.LessEqNode;
+import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.filter.SubstringNode;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.core.api.event.NotificationCriteria;
+import org.apache.directory.server.core.api.event.RegistrationEntry;
+
+
+/**
+ * An index of the {@link RegistrationEntry} instances known by the {@link DefaultEventService},
+ * used to select the listeners which may be interested by a change without evaluating
+ * all of them.
+ * <p>
+ * The registrations are stored in a tree of normalized RDNs : each node holds the
+ * registrations whose base is the DN leading to this node, split by scope. Finding the
+ * registrations having an entry in scope is then done by walking down the entry's DN,
+ * which costs one lookup per RDN whatever the number of listeners.
+ * <p>
+ * In each node, the registrations whose filter requires a given objectClass (an
+ * <code>(objectClass=xxx)</code> assertion, alone or in a top level AND) are stored
+ * under this objectClass, and are only selected when the entry has it. The attributes
+ * the filter asserts at the top level are also checked before the registration is
+ * returned. The selected registrations still have to be evaluated against the filter :
+ * this index only removes those which can't possibly match.
+ * <p>
+ * The criteria (base, scope and filter) are read when the registration is added : they
+ * must not be modified afterward.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class RegistrationIndex
+{
+    /** The node associated with the RootDSE */
+    private final Node root = new Node();
+
+    /** The indexed registrations, used to find them back when they are removed */
+    private final Map<RegistrationEntry, IndexedRegistration> indexed = new HashMap<>();
+
+    /** A counter used to keep the registration order when selecting the listeners */
+    private long sequence;
+
+    /** Used to sort the selected registrations by registration order */
+    private static final Comparator<IndexedRegistration> ORDER_COMPARATOR = new Comparator<IndexedRegistration>()
+    {
+        @Override
+        public int compare( IndexedRegistration reg1, IndexedRegistration reg2 )
+        {
+            return Long.compare( reg1.order, reg2.order );
+        }
+    };
+
+
+    /**
+     * A registration, with the elements extracted from its filter
+     */
+    private static final class IndexedRegistration
+    {
+        /** The registration */
+        private final RegistrationEntry registration;
+
+        /** The registration order */
+        private final long order;
+
+        /** The objectClass the entry must have, if any */
+        private final String objectClass;
+
+        /** The attributes the entry must have */
+        private final AttributeType[] requiredAttributes;
+
+
+        private IndexedRegistration( RegistrationEntry registration, long order, String objectClass,
+            AttributeType[] requiredAttributes )
+        {
+            this.registration = registration;
+            this.order = order;
+            this.objectClass = objectClass;
+            this.requiredAttributes = requiredAttributes;
+        }
+    }
+
+
+    /**
+     * The registrations sharing the same base and scope
+     */
+    private static final class Bucket
+    {
+        /** The registrations which don't require a specific objectClass */
+        private final List<IndexedRegistration> unkeyed = new CopyOnWriteArrayList<>();
+
+        /** The registrations requiring an objectClass, per objectClass */
+        private final Map<String, List<IndexedRegistration>> byObjectClass = new ConcurrentHashMap<>();
+
+
+        private void add( IndexedRegistration registration )
+        {
+            if ( registration.objectClass == null )
+            {
+                unkeyed.add( registration );
+            }
+            else
+            {
+                List<IndexedRegistration> registrations = byObjectClass.get( registration.objectClass );
+
+                if ( registrations == null )
+                {
+                    registrations = new CopyOnWriteArrayList<>();
+                    byObjectClass.put( registration.objectClass, registrations );
+                }
+
+                registrations.add( registration );
+            }
+        }
+
+
+        private void remove( IndexedRegistration registration )
+        {
+            if ( registration.objectClass == null )
+            {
+                unkeyed.remove( registration );
+            }
+            else
+            {
+                List<IndexedRegistration> registrations = byObjectClass.get( registration.objectClass );
+
+                if ( registrations != null )
+                {
+                    registrations.remove( registration );
+
+                    if ( registrations.isEmpty() )
+                    {
+                        byObjectClass.remove( registration.objectClass );
+                    }
+                }
+            }
+        }
+
+
+        private boolean isEmpty()
+        {
+            return unkeyed.isEmpty() && byObjectClass.isEmpty();
+        }
+
+
+        /**
+         * Adds the registrations which may select an entry having the given objectClasses.
+         * If the objectClasses are unknown (null), all the registrations are added.
+         */
+        private void collect( Set<String> objectClasses, List<IndexedRegistration> selected )
+        {
+            selected.addAll( unkeyed );
+
+            if ( byObjectClass.isEmpty() )
+            {
+                return;
+            }
+
+            if ( objectClasses == null )
+            {
+                for ( List<IndexedRegistration> registrations : byObjectClass.values() )
+                {
+                    selected.addAll( registrations );
+                }
+            }
+            else
+            {
+                for ( String objectClass : objectClasses )
+                {
+                    List<IndexedRegistration> registrations = byObjectClass.get( objectClass );
+
+                    if ( registrations != null )
+                    {
+                        selected.addAll( registrations );
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * A node in the RDN tree
+     */
+    private static final class Node
+    {
+        /** The children, per normalized RDN */
+        private final Map<String, Node> children = new ConcurrentHashMap<>();
+
+        /** The registrations using this node DN as a base with the OBJECT scope */
+        private final Bucket object = new Bucket();
+
+        /** The registrations using this node DN as a base with the ONELEVEL scope */
+        private final Bucket oneLevel = new Bucket();
+
+        /** The registrations using this node DN as a base with the SUBTREE scope */
+        private final Bucket subtree = new Bucket();
+
+
+        private Bucket getBucket( NotificationCriteria criteria )
+        {
+            switch ( criteria.getScope() )
+            {
+                case OBJECT:
+                    return object;
+
+                case ONELEVEL:
+                    return oneLevel;
+
+                case SUBTREE:
+                    return subtree;
+
+                default:
+                    throw new IllegalArgumentException( "Unexpected scope " + criteria.getScope() );
+            }
+        }
+
+
+        private boolean isEmpty()
+        {
+            return children.isEmpty() && object.isEmpty() && oneLevel.isEmpty() && subtree.isEmpty();
+        }
+    }
+
+
+    /**
+     * Adds a registration in the index. Its criteria base must be schema aware,
+     * and its filter must have been normalized.
+     *
+     * @param registration The registration to add
+     */
+    synchronized void add( RegistrationEntry registration )
+    {
+        NotificationCriteria criteria = registration.getCriteria();
+        ExprNode filter = criteria.getFilter();
+        List<AttributeType> requiredAttributes = new ArrayList<>();
+        String objectClass = null;
+
+        if ( filter instanceof AndNode )
+        {
+            for ( ExprNode child : ( ( AndNode ) filter ).getChildren() )
+            {
+                String childObjectClass = analyze( child, requiredAttributes );
+
+                if ( objectClass == null )
+                {
+                    objectClass = childObjectClass;
+                }
+            }
+        }
+        else if ( filter != null )
+        {
+            objectClass = analyze( filter, requiredAttributes );
+        }
+
+        IndexedRegistration indexedRegistration = new IndexedRegistration( registration, sequence++, objectClass,
+            requiredAttributes.toArray( new AttributeType[requiredAttributes.size()] ) );
+
+        Dn base = criteria.getBase();
+        Node node = root;
+
+        for ( int i = base.size() - 1; i >= 0; i-- )
+        {
+            String rdn = base.getRdn( i ).getNormName();
+            Node child = node.children.get( rdn );
+
+            if ( child == null )
+            {
+                child = new Node();
+                node.children.put( rdn, child );
+            }
+
+            node = child;
+        }
+
+        node.getBucket( criteria ).add( indexedRegistration );
+        indexed.put( registration, indexedRegistration );
+    }
+
+
+    /**
+     * Removes a registration from the index.
+     *
+     * @param registration The registration to remove
+     */
+    synchronized void remove( RegistrationEntry registration )
+    {
+        IndexedRegistration indexedRegistration = indexed.remove( registration );
+
+        if ( indexedRegistration == null )
+        {
+            return;
+        }
+
+        NotificationCriteria criteria = registration.getCriteria();
+        Dn base = criteria.getBase();
+        Node[] path = new Node[base.size() + 1];
+        String[] rdns = new String[base.size() + 1];
+        path[0] = root;
+
+        for ( int depth = 1; depth <= base.size(); depth++ )
+        {
+            rdns[depth] = base.getRdn( base.size() - depth ).getNormName();
+            path[depth] = path[depth - 1].children.get( rdns[depth] );
+
+            if ( path[depth] == null )
+            {
+                return;
+            }
+        }
+
+        path[base.size()].getBucket( criteria ).remove( indexedRegistration );
+
+        // Get rid of the nodes which are not used anymore
+        for ( int depth = base.size(); depth > 0; depth-- )
+        {
+            if ( !path[depth].isEmpty() )
+            {
+                break;
+            }
+
+            path[depth - 1].children.remove( rdns[depth] );
+        }
+    }
+
+
+    /**
+     * Gets the registrations which may select an entry : the entry must be in
+     * their scope, have the objectClass and the attributes their filter requires.
+     * The registrations are returned in the order they have been added.
+     *
+     * @param name The entry DN
+     * @param entry The entry
+     * @return The candidate registrations, which filter has to be evaluated
+     */
+    List<RegistrationEntry> getCandidates( Dn name, Entry entry )
+    {
+        Set<String> objectClasses = getObjectClasses( entry );
+        List<IndexedRegistration> selected = new ArrayList<>();
+        int size = name.size();
+        Node node = root;
+
+        for ( int depth = 0; depth <= size; depth++ )
+        {
+            if ( depth > 0 )
+            {
+                node = node.children.get( name.getRdn( size - depth ).getNormName() );
+
+                if ( node == null )
+                {
+                    break;
+                }
+            }
+
+            node.subtree.collect( objectClasses, selected );
+
+            if ( depth == size )
+            {
+                node.object.collect( objectClasses, selected );
+            }
+            else if ( depth == size - 1 )
+            {
+                node.oneLevel.collect( objectClasses, selected );
+            }
+        }
+
+        if ( selected.isEmpty() )
+        {
+            return Collections.emptyList();
+        }
+
+        if ( selected.size() > 1 )
+        {
+            Collections.sort( selected, ORDER_COMPARATOR );
+        }
+
+        List<RegistrationEntry> candidates = new ArrayList<>( selected.size() );
+
+        for ( IndexedRegistration registration : selected )
+        {
+            if ( hasRequiredAttributes( registration, entry ) )
+            {
+                candidates.add( registration.registration );
+            }
+        }
+
+        return candidates;
+    }
+
+
+    /**
+     * Stores the attribute asserted by a filter node in the required attributes, and
+     * returns the objectClass it requires, if any.
+     */
+    private String analyze( ExprNode node, List<AttributeType> requiredAttributes )
+    {
+        AttributeType attributeType = null;
+
+        if ( node instanceof PresenceNode )
+        {
+            attributeType = ( ( PresenceNode ) node ).getAttributeType();
+        }
+        else if ( node instanceof EqualityNode )
+        {
+            EqualityNode<?> equalityNode = ( EqualityNode<?> ) node;
+            attributeType = equalityNode.getAttributeType();
+
+            if ( ( attributeType != null ) && SchemaConstants.OBJECT_CLASS_AT_OID.equals( attributeType.getOid() )
+                && ( equalityNode.getValue() != null ) )
+            {
+                return normalize( equalityNode.getValue() );
+            }
+        }
+        else if ( node instanceof GreaterEqNode )
+        {
+            attributeType = ( ( GreaterEqNode<?> ) node ).getAttributeType();
+        }
+        else if ( node instanceof LessEqNode )
+        {
+            attributeType = ( ( LessEqNode<?> ) node ).getAttributeType();
+        }
+        else if ( node instanceof SubstringNode )
+        {
+            attributeType = ( ( SubstringNode ) node ).getAttributeType();
+        }
+
+        if ( attributeType != null )
+        {
+            requiredAttributes.add( attributeType );
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Gets the normalized objectClasses of an entry, or null if we can't tell.
+     */
+    private Set<String> getObjectClasses( Entry entry )
+    {
+        if ( entry == null )
+        {
+            return null;
+        }
+
+        Attribute objectClass = entry.get( SchemaConstants.OBJECT_CLASS_AT );
+
+        if ( objectClass == null )
+        {
+            return Collections.emptySet();
+        }
+
+        Set<String> objectClasses = new HashSet<>();
+
+        for ( Value value : objectClass )
+        {
+            objectClasses.add( normalize( value ) );
+        }
+
+        return objectClasses;
+    }
+
+
+    /**
+     * Checks that the entry has all the attributes the registration's filter requires
+     */
+    private boolean hasRequiredAttributes( IndexedRegistration registration, Entry entry )
+    {
+        if ( entry == null )
+        {
+            return true;
+        }
+
+        for ( AttributeType attributeType : registration.requiredAttributes )
+        {
+            if ( entry.get( attributeType ) == null )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * The objectClass values are compared using their normalized form. We lowercase
+     * it so that a value which has not been normalized is still found.
+     */
+    private String normalize( Value value )
+    {
+        String normalized = value.getNormalized();
+
+        if ( normalized == null )
+        {
+            normalized = value.getString();
+        }
+
+        return Strings.toLowerCaseAscii( Strings.trim( normalized ) );
+    }
+}
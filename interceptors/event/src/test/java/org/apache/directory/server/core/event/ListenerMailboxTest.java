@@ -0,0 +1,343 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.event;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.event.DirectoryListener;
+import org.apache.directory.server.core.api.event.EventService;
+import org.apache.directory.server.core.api.event.EventType;
+import org.apache.directory.server.core.api.event.NotificationCriteria;
+import org.apache.directory.server.core.api.event.RegistrationEntry;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.OperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link ListenerMailbox} ordering and overflow policies.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ListenerMailboxTest
+{
+    /** The delivery tasks, run on demand */
+    private ArrayDeque<Runnable> tasks;
+
+    /** An executor queuing the delivery tasks */
+    private Executor executor;
+
+    /** The listener receiving the events */
+    private RecordingListener listener;
+
+    /** The mailbox being tested */
+    private ListenerMailbox mailbox;
+
+    /** The number of times the listener has been removed */
+    private int removals;
+
+
+    /**
+     * A listener recording the DN of the notified entries
+     */
+    private static class RecordingListener implements DirectoryListener
+    {
+        private final List<String> received = new ArrayList<>();
+
+        /** The number of times the listener has been told it was dropped */
+        private int dropped;
+
+
+        @Override
+        public void entryAdded( AddOperationContext addContext )
+        {
+            received.add( "add " + addContext.getDn() );
+        }
+
+
+        @Override
+        public void entryDeleted( DeleteOperationContext deleteContext )
+        {
+            received.add( "delete " + deleteContext.getDn() );
+        }
+
+
+        @Override
+        public void entryModified( ModifyOperationContext modifyContext )
+        {
+            received.add( "modify " + modifyContext.getDn() );
+        }
+
+
+        @Override
+        public void entryRenamed( RenameOperationContext renameContext )
+        {
+            received.add( "rename " + renameContext.getDn() );
+        }
+
+
+        @Override
+        public void entryMoved( MoveOperationContext moveContext )
+        {
+            received.add( "move " + moveContext.getDn() );
+        }
+
+
+        @Override
+        public void entryMovedAndRenamed( MoveAndRenameOperationContext moveAndRenameContext )
+        {
+            received.add( "moveAndRename " + moveAndRenameContext.getDn() );
+        }
+
+
+        @Override
+        public void listenerDropped()
+        {
+            dropped++;
+        }
+
+
+        @Override
+        public boolean isSynchronous()
+        {
+            return false;
+        }
+    }
+
+
+    /**
+     * An EventService closing the mailbox when the listener is removed, as the
+     * DefaultEventService does
+     */
+    private class StubEventService implements EventService
+    {
+        @Override
+        public void addListener( DirectoryListener listener, NotificationCriteria criteria ) throws Exception
+        {
+        }
+
+
+        @Override
+        public void removeListener( DirectoryListener listener )
+        {
+            removals++;
+            mailbox.close();
+        }
+
+
+        @Override
+        public List<RegistrationEntry> getRegistrationEntries()
+        {
+            return Collections.emptyList();
+        }
+    }
+
+
+    @Before
+    public void init()
+    {
+        tasks = new ArrayDeque<>();
+        executor = new Executor()
+        {
+            @Override
+            public void execute( Runnable command )
+            {
+                tasks.add( command );
+            }
+        };
+
+        listener = new RecordingListener();
+        removals = 0;
+    }
+
+
+    private void createMailbox( int capacity, int batchSize, MailboxOverflowPolicy policy, long blockTimeout )
+    {
+        mailbox = new ListenerMailbox( listener, new StubEventService(), executor, capacity, batchSize, policy,
+            blockTimeout );
+    }
+
+
+    private void runTasks()
+    {
+        while ( !tasks.isEmpty() )
+        {
+            tasks.poll().run();
+        }
+    }
+
+
+    private static OperationContext modify( String dn ) throws Exception
+    {
+        return new ModifyOperationContext( null, new Dn( dn ), null );
+    }
+
+
+    private static OperationContext add( String dn ) throws Exception
+    {
+        return new AddOperationContext( null, new Dn( dn ) );
+    }
+
+
+    @Test
+    public void testEventsDeliveredInOrder() throws Exception
+    {
+        createMailbox( 100, 2, MailboxOverflowPolicy.DROP_LISTENER, 0L );
+
+        mailbox.post( EventType.ADD, add( "cn=a" ) );
+        mailbox.post( EventType.MODIFY, modify( "cn=a" ) );
+        mailbox.post( EventType.ADD, add( "cn=b" ) );
+        mailbox.post( EventType.MODIFY, modify( "cn=b" ) );
+        mailbox.post( EventType.MODIFY, modify( "cn=a" ) );
+
+        // Only one task is scheduled at a time
+        assertEquals( 1, tasks.size() );
+        assertEquals( 5, mailbox.getQueueDepth() );
+
+        // The first task delivers a batch, then reschedules itself
+        tasks.poll().run();
+        assertEquals( 2, listener.received.size() );
+        assertEquals( 1, tasks.size() );
+
+        runTasks();
+
+        assertEquals( 5, mailbox.getDeliveredCount() );
+        assertEquals( 0, mailbox.getQueueDepth() );
+        assertEquals( 5, mailbox.getMaxQueueDepth() );
+        assertEquals( "add cn=a", listener.received.get( 0 ) );
+        assertEquals( "modify cn=a", listener.received.get( 1 ) );
+        assertEquals( "add cn=b", listener.received.get( 2 ) );
+        assertEquals( "modify cn=b", listener.received.get( 3 ) );
+        assertEquals( "modify cn=a", listener.received.get( 4 ) );
+    }
+
+
+    @Test
+    public void testDefaultPolicyBlocks()
+    {
+        EventInterceptor interceptor = new EventInterceptor();
+
+        assertEquals( MailboxOverflowPolicy.BLOCK, interceptor.getOverflowPolicy() );
+    }
+
+
+    @Test
+    public void testDropListenerWhenFull() throws Exception
+    {
+        createMailbox( 2, 32, MailboxOverflowPolicy.DROP_LISTENER, 10000L );
+
+        mailbox.post( EventType.ADD, add( "cn=a" ) );
+        mailbox.post( EventType.ADD, add( "cn=b" ) );
+
+        long start = System.currentTimeMillis();
+        mailbox.post( EventType.ADD, add( "cn=c" ) );
+
+        // The operation posting the event does not wait for the listener
+        assertTrue( System.currentTimeMillis() - start < 5000L );
+        assertEquals( 1, removals );
+        assertEquals( 1, listener.dropped );
+        assertTrue( mailbox.isClosed() );
+        assertEquals( 3, mailbox.getDroppedCount() );
+
+        // The pending events are discarded, and the new ones ignored
+        mailbox.post( EventType.ADD, add( "cn=d" ) );
+        runTasks();
+
+        assertTrue( listener.received.isEmpty() );
+        assertEquals( 1, removals );
+        assertEquals( 1, listener.dropped );
+    }
+
+
+    @Test
+    public void testCoalesceModifications() throws Exception
+    {
+        createMailbox( 2, 32, MailboxOverflowPolicy.COALESCE, 10000L );
+
+        mailbox.post( EventType.MODIFY, modify( "cn=a" ) );
+        mailbox.post( EventType.MODIFY, modify( "cn=b" ) );
+        mailbox.post( EventType.MODIFY, modify( "cn=a" ) );
+
+        assertEquals( 0, removals );
+        assertEquals( 0, listener.dropped );
+        assertEquals( 1, mailbox.getCoalescedCount() );
+        assertEquals( 2, mailbox.getQueueDepth() );
+
+        runTasks();
+
+        assertEquals( 2, listener.received.size() );
+        assertEquals( "modify cn=b", listener.received.get( 0 ) );
+        assertEquals( "modify cn=a", listener.received.get( 1 ) );
+    }
+
+
+    @Test
+    public void testCoalesceDropsListenerWhenNothingToReplace() throws Exception
+    {
+        createMailbox( 2, 32, MailboxOverflowPolicy.COALESCE, 10000L );
+
+        mailbox.post( EventType.MODIFY, modify( "cn=a" ) );
+        mailbox.post( EventType.MODIFY, modify( "cn=b" ) );
+
+        long start = System.currentTimeMillis();
+        mailbox.post( EventType.ADD, add( "cn=c" ) );
+
+        // An addition can't replace a pending event : the listener is dropped without waiting
+        assertTrue( System.currentTimeMillis() - start < 5000L );
+        assertEquals( 1, removals );
+        assertEquals( 1, listener.dropped );
+        assertTrue( mailbox.isClosed() );
+    }
+
+
+    @Test
+    public void testBlockTimeout() throws Exception
+    {
+        createMailbox( 1, 32, MailboxOverflowPolicy.BLOCK, 50L );
+
+        mailbox.post( EventType.ADD, add( "cn=a" ) );
+        assertFalse( mailbox.isClosed() );
+
+        // Nobody delivers the pending event : the operation waits for the timeout, then drops the listener
+        long start = System.currentTimeMillis();
+        mailbox.post( EventType.ADD, add( "cn=b" ) );
+
+        assertTrue( System.currentTimeMillis() - start >= 40L );
+        assertEquals( 1, removals );
+        assertEquals( 1, listener.dropped );
+        assertTrue( mailbox.isClosed() );
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.event;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.model.schema.normalizers.ConcreteNameComponentNormalizer;
+import org.apache.directory.api.ldap.schema.loader.JarLdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.event.DirectoryListener;
+import org.apache.directory.server.core.api.event.NotificationCriteria;
+import org.apache.directory.server.core.api.event.RegistrationEntry;
+import org.apache.directory.server.core.api.normalization.FilterNormalizingVisitor;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link RegistrationIndex} selection of the registrations, by scope and
+ * objectClass, and checks it selects the same registrations, in the same order, as
+ * a linear scan of all the registrations.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class RegistrationIndexTest
+{
+    /** The SchemaManager */
+    private static SchemaManager schemaManager;
+
+    /** The filter normalizer */
+    private static FilterNormalizingVisitor filterNormalizer;
+
+    /** The index being tested */
+    private RegistrationIndex index;
+
+    /** The registrations, in registration order */
+    private List<RegistrationEntry> registrations;
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        schemaManager = new DefaultSchemaManager( new JarLdifSchemaLoader() );
+
+        if ( !schemaManager.loadAllEnabled() )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        filterNormalizer = new FilterNormalizingVisitor( new ConcreteNameComponentNormalizer( schemaManager ),
+            schemaManager );
+    }
+
+
+    @Before
+    public void setup()
+    {
+        index = new RegistrationIndex();
+        registrations = new ArrayList<>();
+    }
+
+
+    /**
+     * Creates a listener which does nothing
+     */
+    private DirectoryListener createListener( final String name )
+    {
+        return ( DirectoryListener ) Proxy.newProxyInstance( getClass().getClassLoader(),
+            new Class<?>[]
+                { DirectoryListener.class }, new InvocationHandler()
+            {
+                @Override
+                public Object invoke( Object proxy, Method method, Object[] args )
+                {
+                    switch ( method.getName() )
+                    {
+                        case "toString":
+                            return name;
+
+                        case "hashCode":
+                            return System.identityHashCode( proxy );
+
+                        case "equals":
+                            return proxy == args[0];
+
+                        default:
+                            return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+                    }
+                }
+            } );
+    }
+
+
+    /**
+     * Registers a listener, normalizing its filter as the DefaultEventService does
+     */
+    private RegistrationEntry register( String base, SearchScope scope, String filter ) throws Exception
+    {
+        NotificationCriteria criteria = new NotificationCriteria( schemaManager );
+        criteria.setBase( new Dn( schemaManager, base ) );
+        criteria.setScope( scope );
+        criteria.setFilter( filter );
+        criteria.setFilter( ( ExprNode ) criteria.getFilter().accept( filterNormalizer ) );
+
+        RegistrationEntry registration = new RegistrationEntry(
+            createListener( scope + " " + base + " " + filter ), criteria );
+        index.add( registration );
+        registrations.add( registration );
+
+        return registration;
+    }
+
+
+    private Entry createEntry( String dn, String... objectClasses ) throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager, dn );
+        entry.add( "objectClass", objectClasses );
+
+        return entry;
+    }
+
+
+    private Entry createPerson( String dn ) throws Exception
+    {
+        Entry entry = createEntry( dn, "top", "person" );
+        entry.add( "cn", "test" );
+        entry.add( "sn", "test" );
+
+        return entry;
+    }
+
+
+    private List<RegistrationEntry> getCandidates( Entry entry )
+    {
+        return index.getCandidates( entry.getDn(), entry );
+    }
+
+
+    @Test
+    public void testObjectScope() throws Exception
+    {
+        RegistrationEntry registration = register( "ou=people,ou=system", SearchScope.OBJECT, "(objectClass=*)" );
+
+        assertEquals( Arrays.asList( registration ), getCandidates( createPerson( "ou=people,ou=system" ) ) );
+        assertTrue( getCandidates( createPerson( "cn=child,ou=people,ou=system" ) ).isEmpty() );
+        assertTrue( getCandidates( createPerson( "ou=system" ) ).isEmpty() );
+    }
+
+
+    @Test
+    public void testOneLevelScope() throws Exception
+    {
+        RegistrationEntry registration = register( "ou=people,ou=system", SearchScope.ONELEVEL,
+            "(objectClass=*)" );
+
+        assertEquals( Arrays.asList( registration ), getCandidates( createPerson( "cn=child,ou=people,ou=system" ) ) );
+        assertTrue( getCandidates( createPerson( "ou=people,ou=system" ) ).isEmpty() );
+        assertTrue( getCandidates( createPerson( "cn=grandChild,cn=child,ou=people,ou=system" ) ).isEmpty() );
+        assertTrue( getCandidates( createPerson( "cn=child,ou=groups,ou=system" ) ).isEmpty() );
+    }
+
+
+    @Test
+    public void testSubtreeScope() throws Exception
+    {
+        RegistrationEntry registration = register( "ou=people,ou=system", SearchScope.SUBTREE,
+            "(objectClass=*)" );
+
+        assertEquals( Arrays.asList( registration ), getCandidates( createPerson( "ou=people,ou=system" ) ) );
+        assertEquals( Arrays.asList( registration ), getCandidates( createPerson( "cn=child,ou=people,ou=system" ) ) );
+        assertEquals( Arrays.asList( registration ),
+            getCandidates( createPerson( "cn=grandChild,cn=child,ou=people,ou=system" ) ) );
+        assertTrue( getCandidates( createPerson( "ou=system" ) ).isEmpty() );
+        assertTrue( getCandidates( createPerson( "cn=child,ou=groups,ou=system" ) ).isEmpty() );
+    }
+
+
+    @Test
+    public void testNormalizedBase() throws Exception
+    {
+        RegistrationEntry registration = register( "OU=People, ou=SYSTEM", SearchScope.SUBTREE, "(objectClass=*)" );
+
+        assertEquals( Arrays.asList( registration ), getCandidates( createPerson( "cn=child,ou=people,ou=system" ) ) );
+    }
+
+
+    @Test
+    public void testObjectClassBuckets() throws Exception
+    {
+        RegistrationEntry persons = register( "ou=system", SearchScope.SUBTREE, "(objectClass=PERSON)" );
+        RegistrationEntry groups = register( "ou=system", SearchScope.SUBTREE, "(objectClass=groupOfNames)" );
+        RegistrationEntry andPersons = register( "ou=system", SearchScope.SUBTREE,
+            "(&(cn=*)(objectClass=person))" );
+        RegistrationEntry all = register( "ou=system", SearchScope.SUBTREE, "(|(objectClass=person)(cn=test))" );
+
+        assertEquals( Arrays.asList( persons, andPersons, all ),
+            getCandidates( createPerson( "cn=test,ou=system" ) ) );
+
+        Entry group = createEntry( "cn=group,ou=system", "top", "groupOfNames" );
+        group.add( "cn", "group" );
+        group.add( "member", "uid=admin,ou=system" );
+        assertEquals( Arrays.asList( groups, all ), getCandidates( group ) );
+
+        // When the entry is unknown, all the registrations in scope are candidates
+        assertEquals( Arrays.asList( persons, groups, andPersons, all ),
+            index.getCandidates( new Dn( schemaManager, "cn=test,ou=system" ), null ) );
+    }
+
+
+    @Test
+    public void testRequiredAttributes() throws Exception
+    {
+        RegistrationEntry described = register( "ou=system", SearchScope.SUBTREE,
+            "(&(objectClass=person)(description=*))" );
+        RegistrationEntry named = register( "ou=system", SearchScope.SUBTREE, "(cn=test*)" );
+
+        Entry person = createPerson( "cn=test,ou=system" );
+        assertEquals( Arrays.asList( named ), getCandidates( person ) );
+
+        person.add( "description", "described" );
+        assertEquals( Arrays.asList( described, named ), getCandidates( person ) );
+    }
+
+
+    @Test
+    public void testRemove() throws Exception
+    {
+        RegistrationEntry subtree = register( "ou=people,ou=system", SearchScope.SUBTREE, "(objectClass=person)" );
+        RegistrationEntry oneLevel = register( "ou=people,ou=system", SearchScope.ONELEVEL,
+            "(objectClass=person)" );
+        RegistrationEntry deep = register( "cn=child,ou=people,ou=system", SearchScope.OBJECT, "(objectClass=*)" );
+        Entry child = createPerson( "cn=child,ou=people,ou=system" );
+
+        assertEquals( Arrays.asList( subtree, oneLevel, deep ), getCandidates( child ) );
+
+        index.remove( oneLevel );
+        assertEquals( Arrays.asList( subtree, deep ), getCandidates( child ) );
+
+        index.remove( deep );
+        assertEquals( Arrays.asList( subtree ), getCandidates( child ) );
+
+        // Removing twice does nothing
+        index.remove( deep );
+        assertEquals( Arrays.asList( subtree ), getCandidates( child ) );
+
+        index.remove( subtree );
+        assertTrue( getCandidates( child ).isEmpty() );
+
+        // The index is still usable once emptied
+        RegistrationEntry again = register( "ou=people,ou=system", SearchScope.SUBTREE, "(objectClass=*)" );
+        assertEquals( Arrays.asList( again ), getCandidates( child ) );
+    }
+
+
+    /**
+     * Selects the registrations the way the EventInterceptor did before the index : by
+     * checking the scope of each registration, in registration order. The filters used
+     * here are only objectClass assertions, so the index has no false candidate.
+     */
+    private List<RegistrationEntry> linearScan( Entry entry, List<String> filterObjectClasses )
+    {
+        List<RegistrationEntry> selected = new ArrayList<>();
+        Dn name = entry.getDn();
+
+        for ( int i = 0; i < registrations.size(); i++ )
+        {
+            RegistrationEntry registration = registrations.get( i );
+            NotificationCriteria criteria = registration.getCriteria();
+            Dn base = criteria.getBase();
+            SearchScope scope = criteria.getScope();
+
+            boolean inScope = ( ( scope == SearchScope.OBJECT ) && name.equals( base ) )
+                || ( ( scope == SearchScope.ONELEVEL ) && name.getParent().equals( base ) )
+                || ( ( scope == SearchScope.SUBTREE ) && ( name.isDescendantOf( base ) || name.equals( base ) ) );
+
+            String objectClass = filterObjectClasses.get( i );
+
+            if ( inScope && ( ( objectClass == null ) || entry.hasObjectClass( objectClass ) ) )
+            {
+                selected.add( registration );
+            }
+        }
+
+        return selected;
+    }
+
+
+    @Test
+    public void testSameSelectionAsLinearScan() throws Exception
+    {
+        String[] bases =
+            { "ou=system", "ou=people,ou=system", "ou=groups,ou=system", "cn=a,ou=people,ou=system",
+                "cn=b,cn=a,ou=people,ou=system" };
+        SearchScope[] scopes =
+            { SearchScope.OBJECT, SearchScope.ONELEVEL, SearchScope.SUBTREE };
+        String[] objectClasses =
+            { null, "person", "organizationalPerson", "groupOfNames" };
+        List<String> filterObjectClasses = new ArrayList<>();
+        List<RegistrationEntry> removed = new ArrayList<>();
+        Random random = new Random( 42L );
+
+        for ( int i = 0; i < 200; i++ )
+        {
+            String objectClass = objectClasses[random.nextInt( objectClasses.length )];
+            String filter = ( objectClass == null ) ? "(objectClass=*)" : "(objectClass=" + objectClass + ")";
+            RegistrationEntry registration = register( bases[random.nextInt( bases.length )],
+                scopes[random.nextInt( scopes.length )], filter );
+            filterObjectClasses.add( objectClass );
+
+            if ( random.nextInt( 4 ) == 0 )
+            {
+                removed.add( registration );
+            }
+        }
+
+        for ( RegistrationEntry registration : removed )
+        {
+            int pos = registrations.indexOf( registration );
+            registrations.remove( pos );
+            filterObjectClasses.remove( pos );
+            index.remove( registration );
+        }
+
+        String[] names =
+            { "ou=system", "ou=people,ou=system", "cn=a,ou=people,ou=system", "cn=b,cn=a,ou=people,ou=system",
+                "cn=c,cn=b,cn=a,ou=people,ou=system", "cn=d,ou=groups,ou=system", "cn=e,ou=other,ou=system" };
+
+        for ( String name : names )
+        {
+            Entry person = createEntry( name, "top", "person", "organizationalPerson" );
+            Entry group = createEntry( name, "top", "groupOfNames" );
+
+            for ( Entry entry : new Entry[]
+                { person, group } )
+            {
+                assertEquals( name, linearScan( entry, filterObjectClasses ), getCandidates( entry ) );
+            }
+        }
+    }
+}
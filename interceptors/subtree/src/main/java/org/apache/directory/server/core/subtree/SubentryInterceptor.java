@@ -20,10 +20,18 @@
 package org.apache.directory.server.core.subtree;
 
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReadWriteLock;
 
 import javax.naming.directory.SearchControls;
 
@@ -61,6 +69,7 @@ import org.apache.directory.server.constants.ApacheSchemaConstants;
 import org.apache.directory.server.core.api.CoreSession;
 import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.InterceptorEnum;
+import org.apache.directory.server.core.api.OperationManager;
 import org.apache.directory.server.core.api.entry.ClonedServerEntry;
 import org.apache.directory.server.core.api.filtering.EntryFilter;
 import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
@@ -76,6 +85,7 @@ import org.apache.directory.server.core.api.interceptor.context.RenameOperationC
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionNexus;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.core.api.subtree.SubentryCache;
 import org.apache.directory.server.core.api.subtree.SubtreeEvaluator;
 import org.apache.directory.server.i18n.I18n;
@@ -113,6 +123,30 @@ public class SubentryInterceptor extends BaseInterceptor
         REPLACE
     }
 
+    /** The default number of entries updated in a single transaction by the background propagation */
+    public static final int DEFAULT_PROPAGATION_BATCH_SIZE = 500;
+
+    /** Tells if the entries selected by an added or removed subentry are updated in the background */
+    private boolean asyncPropagation = false;
+
+    /** The number of entries updated in a single transaction by the background propagation */
+    private int propagationBatchSize = DEFAULT_PROPAGATION_BATCH_SIZE;
+
+    /** The name of the file containing the pending propagations, in the partitions directory */
+    public static final String PROPAGATION_JOURNAL_NAME = "subentryPropagations";
+
+    /** The thread running the background propagations, one at a time */
+    private ExecutorService propagationExecutor;
+
+    /** Set when the interceptor is destroyed : the new propagations are recorded, but not run */
+    private boolean propagationStopped;
+
+    /** The pending propagations, resumed when the server starts */
+    private SubentryPropagationJournal propagationJournal;
+
+    /** The last propagation of each subentry */
+    private final Map<Dn, SubentryPropagation> propagations = new ConcurrentHashMap<>();
+
 
     /**
      * Creates a new instance of SubentryInterceptor
@@ -282,6 +316,176 @@ public class SubentryInterceptor extends BaseInterceptor
                 }
             }
         }
+
+        // Resume the propagations interrupted by the last shutdown
+        propagationJournal = new SubentryPropagationJournal( new File( directoryService.getInstanceLayout()
+            .getPartitionsDirectory(), PROPAGATION_JOURNAL_NAME ), schemaManager );
+        resumePropagations();
+    }
+
+
+    /**
+     * Stops the background propagation thread. The pending propagations are resumed when
+     * the server starts again.
+     */
+    @Override
+    public void destroy()
+    {
+        synchronized ( propagations )
+        {
+            propagationStopped = true;
+
+            if ( propagationExecutor != null )
+            {
+                propagationExecutor.shutdownNow();
+                propagationExecutor = null;
+            }
+        }
+    }
+
+
+    /**
+     * Runs the propagations recorded in the journal. The subentry cache tells if the
+     * subentry operation has been committed : a propagation whose operation is not visible
+     * is dropped.
+     *
+     * @throws LdapException If the journal can't be read
+     */
+    void resumePropagations() throws LdapException
+    {
+        List<SubentryPropagation> pending;
+
+        synchronized ( propagations )
+        {
+            propagationStopped = false;
+        }
+
+        try
+        {
+            pending = propagationJournal.load();
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( "Cannot read the pending subentry propagations", ioe );
+        }
+
+        for ( SubentryPropagation propagation : pending )
+        {
+            Dn subentryDn = propagation.getSubentryDn();
+            Dn apDn = subentryDn.getParent();
+            Subentry subentry = directoryService.getSubentryCache().getSubentry( subentryDn );
+
+            if ( propagation.isAdded() == ( subentry == null ) )
+            {
+                LOG.info( "The subentry operation of the propagation {} has not been done, dropping it",
+                    propagation );
+                forgetPropagation( propagation );
+
+                continue;
+            }
+
+            LOG.info( "Resuming the propagation {}", propagation );
+
+            if ( propagation.isAdded() )
+            {
+                SubtreeSpecification ss = subentry.getSubtreeSpecification();
+
+                runPropagation( propagation, OperationEnum.ADD, apDn, ss, apDn.add( ss.getBase() ),
+                    getSubentryOperationalAttributes( subentryDn, subentry ) );
+            }
+            else
+            {
+                // The subtree specification of a removed subentry is not known anymore : we
+                // check all the entries below its AP
+                runPropagation( propagation, OperationEnum.REMOVE, apDn, null, apDn, null );
+            }
+        }
+    }
+
+
+    /**
+     * @return The number of propagations recorded in the journal, which are not done yet
+     */
+    int getRecordedPropagationCount()
+    {
+        return propagationJournal.size();
+    }
+
+
+    /**
+     * @return <tt>true</tt> if the entries selected by an added or removed subentry are updated
+     * in the background
+     */
+    public boolean isAsyncPropagation()
+    {
+        return asyncPropagation;
+    }
+
+
+    /**
+     * Tells the interceptor to update the entries selected by an added or removed subentry
+     * in the background, by batches, instead of updating all of them in the transaction of
+     * the subentry operation. The other operations can be done between two batches, but
+     * the entries don't reference an added subentry until the propagation reaches them.
+     *
+     * @param asyncPropagation <tt>true</tt> to update the entries in the background
+     */
+    public void setAsyncPropagation( boolean asyncPropagation )
+    {
+        this.asyncPropagation = asyncPropagation;
+    }
+
+
+    /**
+     * @return The number of entries updated in a single transaction by the background propagation
+     */
+    public int getPropagationBatchSize()
+    {
+        return propagationBatchSize;
+    }
+
+
+    /**
+     * @param propagationBatchSize The number of entries updated in a single transaction by
+     * the background propagation
+     */
+    public void setPropagationBatchSize( int propagationBatchSize )
+    {
+        if ( propagationBatchSize <= 0 )
+        {
+            throw new IllegalArgumentException( "The propagation batch size must be positive" );
+        }
+
+        this.propagationBatchSize = propagationBatchSize;
+    }
+
+
+    /**
+     * Gets the progress of the last background propagation of a subentry addition or removal.
+     *
+     * @param subentryDn The subentry Dn
+     * @return The propagation, or null if there was none
+     */
+    public SubentryPropagation getPropagation( Dn subentryDn )
+    {
+        return propagations.get( subentryDn );
+    }
+
+
+    /**
+     * @return <tt>true</tt> if some background propagations are not done yet
+     */
+    public boolean hasPendingPropagations()
+    {
+        for ( SubentryPropagation propagation : propagations.values() )
+        {
+            if ( propagation.isPending() )
+            {
+                return true;
+            }
+        }
+
+        return false;
     }
 
 
@@ -430,6 +634,294 @@ public class SubentryInterceptor extends BaseInterceptor
     }
 
 
+    /**
+     * Schedules the update of the entries under an AP, after a subentry addition or removal.
+     * The updates are done by a single background thread, in the order the subentries were
+     * added or removed. As the calling operation holds the partition write lock until it
+     * commits, the propagation can't see the DIT before the subentry operation is done.
+     * The propagation is recorded in the journal first, so that it's resumed if the server
+     * stops before it's done.
+     */
+    private void schedulePropagation( OperationEnum operation, Dn subentryDn, Dn apDn, SubtreeSpecification ss,
+        Dn baseDn, List<Attribute> operationalAttributes ) throws LdapException
+    {
+        SubentryPropagation propagation = new SubentryPropagation( subentryDn, operation == OperationEnum.ADD );
+
+        try
+        {
+            propagationJournal.add( propagation );
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( "Cannot record the propagation of the subentry " + subentryDn, ioe );
+        }
+
+        runPropagation( propagation, operation, apDn, ss, baseDn, operationalAttributes );
+    }
+
+
+    /**
+     * Runs a recorded propagation in the background thread. It's removed from the journal
+     * once done, or cancelled.
+     */
+    private void runPropagation( final SubentryPropagation propagation, final OperationEnum operation,
+        final Dn apDn, final SubtreeSpecification ss, final Dn baseDn, final List<Attribute> operationalAttributes )
+    {
+        final Dn subentryDn = propagation.getSubentryDn();
+
+        synchronized ( propagations )
+        {
+            propagations.put( subentryDn, propagation );
+
+            if ( propagationStopped )
+            {
+                LOG.info( "The propagation {} will be done when the server restarts", propagation );
+
+                return;
+            }
+
+            if ( propagationExecutor == null )
+            {
+                propagationExecutor = Executors.newSingleThreadExecutor( new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread( Runnable runnable )
+                    {
+                        Thread thread = new Thread( runnable, "subentryPropagation" );
+                        thread.setDaemon( true );
+
+                        return thread;
+                    }
+                } );
+            }
+
+            propagationExecutor.execute( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        propagate( propagation, operation, apDn, ss, baseDn, operationalAttributes );
+                    }
+                    catch ( Exception e )
+                    {
+                        // Kept in the journal : it will be tried again when the server restarts
+                        LOG.error( "Failed to propagate the subentry {} : {}", subentryDn, e.getMessage(), e );
+                        propagation.setFailure( e );
+
+                        return;
+                    }
+
+                    forgetPropagation( propagation );
+                }
+            } );
+        }
+
+        LOG.debug( "Scheduled the propagation {}", propagation );
+    }
+
+
+    /**
+     * Removes a propagation from the journal
+     */
+    private void forgetPropagation( SubentryPropagation propagation )
+    {
+        try
+        {
+            propagationJournal.remove( propagation );
+        }
+        catch ( IOException ioe )
+        {
+            LOG.warn( "Failed to remove the propagation {} from the journal, it will be done again",
+                propagation, ioe );
+        }
+    }
+
+
+    /**
+     * Updates the entries under an AP in the background. The selected entries are first
+     * collected, then they are updated by batches, each batch in its own transaction. The
+     * partition write lock is released between two batches, so the other operations can
+     * proceed. When the subtree specification is null, all the entries below the base are
+     * checked.
+     */
+    private void propagate( SubentryPropagation propagation, OperationEnum operation, Dn apDn,
+        SubtreeSpecification ss, Dn baseDn, List<Attribute> operationalAttributes ) throws Exception
+    {
+        Dn subentryDn = propagation.getSubentryDn();
+        CoreSession adminSession = directoryService.getAdminSession();
+        Partition partition = nexus.getPartition( baseDn );
+        OperationManager operationManager = directoryService.getOperationManager();
+
+        // Collect the selected entries. The writes are blocked during the scan, but it's way
+        // faster than updating the entries.
+        propagation.setState( SubentryPropagation.State.SCANNING );
+        List<Dn> candidates = new ArrayList<>();
+
+        ExprNode filter = ObjectClassNode.OBJECT_CLASS_NODE; // (objectClass=*)
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope( SearchControls.SUBTREE_SCOPE );
+        controls.setReturningAttributes( new String[]
+            { SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES, SchemaConstants.ALL_USER_ATTRIBUTES } );
+
+        ReadWriteLock readLock = operationManager.lockRead( partition );
+
+        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+        {
+            SearchOperationContext searchOperationContext = new SearchOperationContext( adminSession,
+                baseDn, filter, controls );
+            searchOperationContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
+            searchOperationContext.setPartition( partition );
+            searchOperationContext.setTransaction( partitionTxn );
+
+            EntryFilteringCursor cursor = nexus.search( searchOperationContext );
+
+            try
+            {
+                while ( cursor.next() )
+                {
+                    Entry candidate = cursor.get();
+
+                    if ( ( ss == null )
+                        || directoryService.getEvaluator().evaluate( ss, apDn, candidate.getDn(), candidate ) )
+                    {
+                        candidates.add( candidate.getDn() );
+                    }
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+        }
+        finally
+        {
+            operationManager.unlockRead( readLock );
+        }
+
+        propagation.setTotal( candidates.size() );
+        propagation.setState( SubentryPropagation.State.RUNNING );
+        LOG.debug( "{} entries to update for the propagation {}", candidates.size(), propagation );
+
+        for ( int start = 0; start < candidates.size(); start += propagationBatchSize )
+        {
+            if ( ( operation == OperationEnum.ADD )
+                && ( directoryService.getSubentryCache().getSubentry( subentryDn ) == null ) )
+            {
+                // The subentry has been removed meanwhile : its removal will clean up the entries
+                propagation.setState( SubentryPropagation.State.CANCELLED );
+                LOG.info( "The propagation {} has been cancelled", propagation );
+
+                return;
+            }
+
+            int end = Math.min( start + propagationBatchSize, candidates.size() );
+
+            ReadWriteLock writeLock = operationManager.lockWrite( partition );
+
+            try ( PartitionTxn partitionTxn = partition.beginWriteTransaction() )
+            {
+                try
+                {
+                    for ( Dn candidateDn : candidates.subList( start, end ) )
+                    {
+                        propagate( adminSession, partition, partitionTxn, operation, subentryDn, apDn, ss,
+                            candidateDn, operationalAttributes );
+                    }
+
+                    partitionTxn.commit();
+                }
+                catch ( LdapException | IOException e )
+                {
+                    partitionTxn.abort();
+
+                    throw e;
+                }
+            }
+            finally
+            {
+                operationManager.unlockWrite( writeLock );
+            }
+
+            propagation.setProcessed( end );
+        }
+
+        propagation.setState( SubentryPropagation.State.DONE );
+        LOG.info( "The propagation {} is done", propagation );
+    }
+
+
+    /**
+     * Updates one entry selected by a subentry. The entry is read again, as it may have been
+     * modified, moved or deleted since the scan.
+     */
+    private void propagate( CoreSession adminSession, Partition partition, PartitionTxn partitionTxn,
+        OperationEnum operation, Dn subentryDn, Dn apDn, SubtreeSpecification ss, Dn candidateDn,
+        List<Attribute> operationalAttributes ) throws LdapException
+    {
+        LookupOperationContext lookupContext = new LookupOperationContext( adminSession, candidateDn,
+            SchemaConstants.ALL_ATTRIBUTES_ARRAY );
+        lookupContext.setPartition( partition );
+        lookupContext.setTransaction( partitionTxn );
+
+        Entry candidate = nexus.lookup( lookupContext );
+
+        if ( ( candidate == null )
+            || ( ( ss != null ) && !directoryService.getEvaluator().evaluate( ss, apDn, candidateDn, candidate ) ) )
+        {
+            return;
+        }
+
+        List<Modification> modifications;
+
+        if ( operation == OperationEnum.ADD )
+        {
+            if ( referencesSubentry( candidate, subentryDn, operationalAttributes ) )
+            {
+                // The entry has been added after the subentry
+                return;
+            }
+
+            modifications = getOperationalModsForAdd( candidate, operationalAttributes );
+        }
+        else
+        {
+            modifications = getOperationalModsForRemove( subentryDn, candidate );
+        }
+
+        if ( modifications.isEmpty() )
+        {
+            return;
+        }
+
+        ModifyOperationContext modifyContext = new ModifyOperationContext( adminSession, candidateDn, modifications );
+        modifyContext.setPartition( partition );
+        modifyContext.setTransaction( partitionTxn );
+
+        nexus.modify( modifyContext );
+    }
+
+
+    /**
+     * Tells if an entry already contains all the references to a subentry
+     */
+    private boolean referencesSubentry( Entry entry, Dn subentryDn, List<Attribute> operationalAttributes )
+    {
+        for ( Attribute operationalAttribute : operationalAttributes )
+        {
+            Attribute opAttrInEntry = entry.get( operationalAttribute.getAttributeType() );
+
+            if ( ( opAttrInEntry == null ) || !opAttrInEntry.contains( subentryDn.getName() ) )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
     /**
      * Checks if the given Dn is a namingContext
      */
@@ -560,7 +1052,7 @@ public class SubentryInterceptor extends BaseInterceptor
         SubentryCache subentryCache = directoryService.getSubentryCache();
         SubtreeEvaluator evaluator = directoryService.getEvaluator();
 
-        for ( Dn subentryDn : subentryCache )
+        for ( Dn subentryDn : subentryCache.getCandidates( oldName, newName ) )
         {
             Dn apDn = subentryDn.getParent();
             SubtreeSpecification ss = subentryCache.getSubentry( subentryDn ).getSubtreeSpecification();
@@ -833,7 +1325,7 @@ public class SubentryInterceptor extends BaseInterceptor
     {
         List<Modification> modList = new ArrayList<>();
 
-        for ( Dn subentryDn : directoryService.getSubentryCache() )
+        for ( Dn subentryDn : directoryService.getSubentryCache().getCandidates( name ) )
         {
             Dn apDn = subentryDn.getParent();
             SubtreeSpecification ss = directoryService.getSubentryCache().getSubentry( subentryDn )
@@ -969,8 +1461,16 @@ public class SubentryInterceptor extends BaseInterceptor
             Dn baseDn = apDn;
             baseDn = baseDn.add( subentry.getSubtreeSpecification().getBase() );
 
-            updateEntries( addContext, OperationEnum.ADD, apDn, subentry.getSubtreeSpecification(),
-                baseDn, operationalAttributes );
+            if ( asyncPropagation )
+            {
+                schedulePropagation( OperationEnum.ADD, dn, apDn, subentry.getSubtreeSpecification(),
+                    baseDn, operationalAttributes );
+            }
+            else
+            {
+                updateEntries( addContext, OperationEnum.ADD, apDn, subentry.getSubtreeSpecification(),
+                    baseDn, operationalAttributes );
+            }
 
             // Store the newly modified entry into the context for later use in interceptor
             // just in case
@@ -981,10 +1481,9 @@ public class SubentryInterceptor extends BaseInterceptor
             // The added entry is not a Subentry.
             // Nevertheless, we have to check if the entry is added into an AdministrativePoint
             // and is associated with some SubtreeSpecification
-            // We brutally check *all* the subentries, as we don't hold a hierarchy
-            // of AP
-            // TODO : add a hierarchy of subentries
-            for ( Dn subentryDn : directoryService.getSubentryCache() )
+            // Only the subentries which subtree base is a superior of the entry,
+            // and which chop exclusions and distances don't reject it, are evaluated
+            for ( Dn subentryDn : directoryService.getSubentryCache().getCandidates( dn ) )
             {
                 Dn apDn = subentryDn.getParent();
 
@@ -1063,6 +1562,19 @@ public class SubentryInterceptor extends BaseInterceptor
             Dn baseDn = apDn;
             baseDn = baseDn.add( removedSubentry.getSubtreeSpecification().getBase() );
 
+            if ( asyncPropagation )
+            {
+                // Update the cache, and delete the subentry itself
+                directoryService.getSubentryCache().removeSubentry( dn );
+                next( deleteContext );
+
+                // The references will be removed in the background
+                schedulePropagation( OperationEnum.REMOVE, dn, apDn, removedSubentry.getSubtreeSpecification(),
+                    baseDn, null );
+
+                return;
+            }
+
             // Remove all the references to this removed subentry from all the selected entries
             updateEntries( deleteContext, OperationEnum.REMOVE, apDn,
                 removedSubentry.getSubtreeSpecification(), baseDn, null );
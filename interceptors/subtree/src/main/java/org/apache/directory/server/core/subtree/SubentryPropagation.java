@@ -0,0 +1,184 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.subtree;
+
+
+import org.apache.directory.api.ldap.model.name.Dn;
+
+
+/**
+ * The progress of the background update of the entries selected by a subentry, when
+ * the subentry has been added or deleted.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SubentryPropagation
+{
+    /** The propagation states */
+    public enum State
+    {
+        /** Waiting for the previous propagations to be done */
+        PENDING,
+
+        /** Looking for the entries to update */
+        SCANNING,
+
+        /** Updating the entries */
+        RUNNING,
+
+        /** All the entries have been updated */
+        DONE,
+
+        /** The subentry has been removed before its addition was propagated */
+        CANCELLED,
+
+        /** The propagation has failed */
+        FAILED
+    }
+
+    /** The added or removed subentry */
+    private final Dn subentryDn;
+
+    /** Tells if the subentry has been added or removed */
+    private final boolean added;
+
+    /** The current state */
+    private volatile State state = State.PENDING;
+
+    /** The number of entries selected by the subentry */
+    private volatile long total;
+
+    /** The number of entries already processed */
+    private volatile long processed;
+
+    /** The cause of the failure, if any */
+    private volatile Exception failure;
+
+
+    /**
+     * Creates a new instance of SubentryPropagation.
+     *
+     * @param subentryDn The added or removed subentry
+     * @param added <tt>true</tt> if the subentry has been added
+     */
+    SubentryPropagation( Dn subentryDn, boolean added )
+    {
+        this.subentryDn = subentryDn;
+        this.added = added;
+    }
+
+
+    /**
+     * @return The added or removed subentry
+     */
+    public Dn getSubentryDn()
+    {
+        return subentryDn;
+    }
+
+
+    /**
+     * @return <tt>true</tt> if the subentry has been added, <tt>false</tt> if it has been removed
+     */
+    public boolean isAdded()
+    {
+        return added;
+    }
+
+
+    /**
+     * @return The current state
+     */
+    public State getState()
+    {
+        return state;
+    }
+
+
+    void setState( State state )
+    {
+        this.state = state;
+    }
+
+
+    /**
+     * @return <tt>true</tt> if the propagation is not done, cancelled or failed
+     */
+    public boolean isPending()
+    {
+        return ( state == State.PENDING ) || ( state == State.SCANNING ) || ( state == State.RUNNING );
+    }
+
+
+    /**
+     * @return The number of entries selected by the subentry, known once the scan is done
+     */
+    public long getTotal()
+    {
+        return total;
+    }
+
+
+    void setTotal( long total )
+    {
+        this.total = total;
+    }
+
+
+    /**
+     * @return The number of entries already processed
+     */
+    public long getProcessed()
+    {
+        return processed;
+    }
+
+
+    void setProcessed( long processed )
+    {
+        this.processed = processed;
+    }
+
+
+    /**
+     * @return The cause of the failure, if any
+     */
+    public Exception getFailure()
+    {
+        return failure;
+    }
+
+
+    void setFailure( Exception failure )
+    {
+        this.failure = failure;
+        this.state = State.FAILED;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return ( added ? "add " : "remove " ) + subentryDn + " : " + state + " " + processed + "/" + total;
+    }
+}
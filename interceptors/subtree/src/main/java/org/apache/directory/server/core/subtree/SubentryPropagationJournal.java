@@ -0,0 +1,191 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.subtree;
+
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+
+
+/**
+ * The background propagations which are not done yet. They are stored in a file, so that
+ * the propagations interrupted by a shutdown or a crash can be resumed when the server
+ * starts. The file is rewritten each time a propagation is added or removed : there are
+ * only a few pending propagations at a time.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class SubentryPropagationJournal
+{
+    /** The file version */
+    private static final int VERSION = 1;
+
+    /** The file containing the pending propagations */
+    private final File file;
+
+    /** The SchemaManager, used to parse the subentries Dn */
+    private final SchemaManager schemaManager;
+
+    /** The pending propagations, in the order they were scheduled */
+    private final List<SubentryPropagation> pending = new ArrayList<>();
+
+
+    /**
+     * Creates a new instance of SubentryPropagationJournal.
+     *
+     * @param file The file containing the pending propagations
+     * @param schemaManager The SchemaManager
+     */
+    SubentryPropagationJournal( File file, SchemaManager schemaManager )
+    {
+        this.file = file;
+        this.schemaManager = schemaManager;
+    }
+
+
+    /**
+     * Reads the pending propagations stored in the file.
+     *
+     * @return The pending propagations, in the order they were scheduled
+     * @throws IOException If the file can't be read
+     */
+    synchronized List<SubentryPropagation> load() throws IOException
+    {
+        pending.clear();
+
+        if ( !file.exists() )
+        {
+            return new ArrayList<>( pending );
+        }
+
+        try ( DataInputStream in = new DataInputStream( new FileInputStream( file ) ) )
+        {
+            int version = in.readInt();
+
+            if ( version != VERSION )
+            {
+                throw new IOException( "Unexpected version " + version + " of the file " + file );
+            }
+
+            int count = in.readInt();
+
+            for ( int i = 0; i < count; i++ )
+            {
+                boolean added = in.readBoolean();
+                String subentryDn = in.readUTF();
+
+                pending.add( new SubentryPropagation( new Dn( schemaManager, subentryDn ), added ) );
+            }
+        }
+        catch ( LdapInvalidDnException lide )
+        {
+            throw new IOException( "Invalid subentry Dn in the file " + file, lide );
+        }
+
+        return new ArrayList<>( pending );
+    }
+
+
+    /**
+     * Records a new propagation.
+     *
+     * @param propagation The propagation
+     * @throws IOException If the file can't be written
+     */
+    synchronized void add( SubentryPropagation propagation ) throws IOException
+    {
+        pending.add( propagation );
+
+        try
+        {
+            write();
+        }
+        catch ( IOException ioe )
+        {
+            pending.remove( propagation );
+
+            throw ioe;
+        }
+    }
+
+
+    /**
+     * Removes a propagation which is done, or not needed anymore.
+     *
+     * @param propagation The propagation
+     * @throws IOException If the file can't be written
+     */
+    synchronized void remove( SubentryPropagation propagation ) throws IOException
+    {
+        if ( pending.remove( propagation ) )
+        {
+            write();
+        }
+    }
+
+
+    /**
+     * @return The number of pending propagations
+     */
+    synchronized int size()
+    {
+        return pending.size();
+    }
+
+
+    /**
+     * Writes the pending propagations in a temporary file, then replaces the file with it
+     */
+    private void write() throws IOException
+    {
+        File tmpFile = new File( file.getPath() + ".tmp" );
+
+        try ( FileOutputStream fos = new FileOutputStream( tmpFile );
+            DataOutputStream out = new DataOutputStream( fos ) )
+        {
+            out.writeInt( VERSION );
+            out.writeInt( pending.size() );
+
+            for ( SubentryPropagation propagation : pending )
+            {
+                out.writeBoolean( propagation.isAdded() );
+                out.writeUTF( propagation.getSubentryDn().getName() );
+            }
+
+            out.flush();
+            fos.getFD().sync();
+        }
+
+        Files.move( tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE );
+    }
+}
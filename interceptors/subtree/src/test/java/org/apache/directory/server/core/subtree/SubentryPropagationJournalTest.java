@@ -0,0 +1,182 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.subtree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.FileUtils;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the storage of the pending subentry propagations.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SubentryPropagationJournalTest
+{
+    /** The SchemaManager instance */
+    private static SchemaManager schemaManager;
+
+    /** The directory containing the journal */
+    private File directory;
+
+    /** The journal file */
+    private File file;
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = SubentryPropagationJournalTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+    }
+
+
+    @Before
+    public void createDirectory() throws Exception
+    {
+        directory = Files.createTempDirectory( getClass().getSimpleName() ).toFile();
+        file = new File( directory, SubentryInterceptor.PROPAGATION_JOURNAL_NAME );
+    }
+
+
+    @After
+    public void deleteDirectory() throws Exception
+    {
+        FileUtils.deleteDirectory( directory );
+    }
+
+
+    private static SubentryPropagation propagation( String dn, boolean added ) throws Exception
+    {
+        return new SubentryPropagation( new Dn( schemaManager, dn ), added );
+    }
+
+
+    @Test
+    public void testNoFile() throws Exception
+    {
+        SubentryPropagationJournal journal = new SubentryPropagationJournal( file, schemaManager );
+
+        assertTrue( journal.load().isEmpty() );
+        assertEquals( 0, journal.size() );
+        assertFalse( file.exists() );
+    }
+
+
+    @Test
+    public void testReloadPendingPropagations() throws Exception
+    {
+        SubentryPropagationJournal journal = new SubentryPropagationJournal( file, schemaManager );
+        journal.load();
+
+        SubentryPropagation first = propagation( "cn=first,dc=AP,ou=system", true );
+        SubentryPropagation second = propagation( "cn=second,dc=AP,ou=system", false );
+        SubentryPropagation third = propagation( "cn=first,dc=AP,ou=system", false );
+
+        journal.add( first );
+        journal.add( second );
+        journal.add( third );
+        assertEquals( 3, journal.size() );
+
+        // The second one is done
+        journal.remove( second );
+        assertEquals( 2, journal.size() );
+
+        // The server restarts
+        List<SubentryPropagation> pending = new SubentryPropagationJournal( file, schemaManager ).load();
+
+        assertEquals( 2, pending.size() );
+        assertEquals( first.getSubentryDn(), pending.get( 0 ).getSubentryDn() );
+        assertTrue( pending.get( 0 ).isAdded() );
+        assertEquals( third.getSubentryDn(), pending.get( 1 ).getSubentryDn() );
+        assertFalse( pending.get( 1 ).isAdded() );
+    }
+
+
+    @Test
+    public void testRemoveLoadedPropagation() throws Exception
+    {
+        SubentryPropagationJournal journal = new SubentryPropagationJournal( file, schemaManager );
+        journal.load();
+        journal.add( propagation( "cn=first,dc=AP,ou=system", true ) );
+
+        journal = new SubentryPropagationJournal( file, schemaManager );
+        List<SubentryPropagation> pending = journal.load();
+
+        // A resumed propagation is done
+        journal.remove( pending.get( 0 ) );
+
+        assertEquals( 0, journal.size() );
+        assertTrue( new SubentryPropagationJournal( file, schemaManager ).load().isEmpty() );
+    }
+
+
+    @Test
+    public void testRemoveUnknownPropagation() throws Exception
+    {
+        SubentryPropagationJournal journal = new SubentryPropagationJournal( file, schemaManager );
+        journal.load();
+        journal.add( propagation( "cn=first,dc=AP,ou=system", true ) );
+
+        // Another instance with the same Dn is not the recorded propagation
+        journal.remove( propagation( "cn=first,dc=AP,ou=system", true ) );
+
+        assertEquals( 1, journal.size() );
+    }
+}
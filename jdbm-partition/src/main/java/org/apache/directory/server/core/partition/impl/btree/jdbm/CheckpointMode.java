@@ -0,0 +1,51 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+/**
+ * The moments at which the JDBM transaction log of a {@link JdbmPartition} is checkpointed,
+ * i.e. written into the database file and emptied. The mode does not change the commit
+ * durability : in every mode, the JDBM commit forces the transaction to the log before
+ * returning, while the partition write lock is held, so a committed change survives a crash
+ * and is recovered from the log when the partition is opened. Checkpointing bounds the log
+ * size and the recovery time.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public enum CheckpointMode
+{
+    /**
+     * Each commit checkpoints the log, while the partition lock is held. This is what the
+     * syncOnWrite flag does
+     */
+    IMMEDIATE,
+
+    /**
+     * The log is checkpointed once the partition lock has been released. The writers waiting
+     * for a checkpoint at the same time share it
+     */
+    GROUP,
+
+    /**
+     * The log is only checkpointed by the sync thread
+     */
+    PERIODIC
+}
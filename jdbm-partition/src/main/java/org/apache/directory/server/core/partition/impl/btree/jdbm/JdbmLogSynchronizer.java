@@ -0,0 +1,249 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jdbm.RecordManager;
+import jdbm.recman.BaseRecordManager;
+import jdbm.recman.CacheRecordManager;
+
+
+/**
+ * Checkpoints the JDBM transaction log of a partition : the committed transactions are written
+ * from the log into the database file, and the log is emptied. The transactions are already
+ * forced to the log by the JDBM commit, so a checkpoint does not make them more durable, it
+ * bounds the log size and the recovery time. The concurrent writers can share the same
+ * checkpoint (group checkpoint).<br>
+ * A writer requesting a checkpoint while none is running becomes the leader : it waits for
+ * the group window to expire, or for enough writers to join, then checkpoints the log for
+ * all of them. The other writers wait for a checkpoint started after their commit to complete.
+ * The writers must not hold the partition lock while waiting, otherwise no other writer can
+ * commit and join the group.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class JdbmLogSynchronizer
+{
+    /** The record manager owning the log */
+    private final BaseRecordManager baseRecordManager;
+
+    /** The maximum time the leader waits for other writers, in nanoseconds */
+    private final long groupCheckpointWindow;
+
+    /** The number of waiting writers triggering the checkpoint before the end of the window */
+    private final int groupCheckpointSize;
+
+    /** The checkpoints durations */
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    /** The number of checkpoint requests */
+    private final AtomicLong requests = new AtomicLong();
+
+    /** The number of the last checkpoint request */
+    private long requested;
+
+    /** The number of the last checkpoint request covered by a completed checkpoint */
+    private long checkpointed;
+
+    /** Tells if a leader is currently checkpointing, or waiting for the other writers */
+    private boolean checkpointing;
+
+
+    /**
+     * Creates a new instance of JdbmLogSynchronizer.
+     *
+     * @param recordManager The partition record manager
+     * @param groupCheckpointWindow The maximum time the leader waits for other writers, in milliseconds
+     * @param groupCheckpointSize The number of waiting writers triggering the checkpoint
+     */
+    JdbmLogSynchronizer( RecordManager recordManager, long groupCheckpointWindow, int groupCheckpointSize )
+    {
+        this.baseRecordManager = getBaseRecordManager( recordManager );
+        this.groupCheckpointWindow = TimeUnit.MILLISECONDS.toNanos( groupCheckpointWindow );
+        this.groupCheckpointSize = groupCheckpointSize;
+    }
+
+
+    /**
+     * Gets the BaseRecordManager, which owns the transaction manager.
+     */
+    static BaseRecordManager getBaseRecordManager( RecordManager recordManager )
+    {
+        if ( recordManager instanceof CacheRecordManager )
+        {
+            return ( BaseRecordManager ) ( ( CacheRecordManager ) recordManager ).getRecordManager();
+        }
+
+        return ( BaseRecordManager ) recordManager;
+    }
+
+
+    /**
+     * Checkpoints the log immediately.
+     *
+     * @throws IOException If the log can't be checkpointed
+     */
+    void checkpoint() throws IOException
+    {
+        requests.incrementAndGet();
+
+        long start = System.nanoTime();
+
+        synchronizeLog();
+
+        histogram.record( System.nanoTime() - start );
+    }
+
+
+    /**
+     * Waits until a checkpoint started after this call has completed, sharing the checkpoint
+     * with the concurrent writers.
+     *
+     * @throws IOException If the log can't be checkpointed
+     */
+    void groupCheckpoint() throws IOException
+    {
+        requests.incrementAndGet();
+
+        long ticket;
+        long target;
+
+        synchronized ( this )
+        {
+            ticket = ++requested;
+
+            // Wake up the leader, if the group is complete
+            notifyAll();
+
+            try
+            {
+                while ( checkpointed < ticket )
+                {
+                    if ( !checkpointing )
+                    {
+                        break;
+                    }
+
+                    wait();
+                }
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException( "Interrupted while waiting for the log checkpoint" );
+            }
+
+            if ( checkpointed >= ticket )
+            {
+                return;
+            }
+
+            // We are the leader : wait for the other writers to join
+            checkpointing = true;
+            long deadline = System.nanoTime() + groupCheckpointWindow;
+
+            try
+            {
+                while ( requested - checkpointed < groupCheckpointSize )
+                {
+                    long remaining = deadline - System.nanoTime();
+
+                    if ( remaining <= 0 )
+                    {
+                        break;
+                    }
+
+                    TimeUnit.NANOSECONDS.timedWait( this, remaining );
+                }
+            }
+            catch ( InterruptedException ie )
+            {
+                // Checkpoint now
+                Thread.currentThread().interrupt();
+            }
+
+            target = requested;
+        }
+
+        boolean done = false;
+
+        try
+        {
+            long start = System.nanoTime();
+
+            synchronizeLog();
+
+            histogram.record( System.nanoTime() - start );
+            done = true;
+        }
+        finally
+        {
+            synchronized ( this )
+            {
+                if ( done )
+                {
+                    checkpointed = target;
+                }
+
+                // If the checkpoint failed, one of the waiting writers will try again
+                checkpointing = false;
+                notifyAll();
+            }
+        }
+    }
+
+
+    /**
+     * Writes the committed transactions from the log to the database file, and empties the log.
+     *
+     * @throws IOException If the log can't be checkpointed
+     */
+    protected void synchronizeLog() throws IOException
+    {
+        synchronized ( baseRecordManager )
+        {
+            baseRecordManager.getTransactionManager().synchronizeLog();
+        }
+    }
+
+
+    /**
+     * @return The checkpoints durations
+     */
+    LatencyHistogram getHistogram()
+    {
+        return histogram;
+    }
+
+
+    /**
+     * @return The number of checkpoint requests, which is greater than the number of checkpoints
+     * when the writers share them
+     */
+    long getRequests()
+    {
+        return requests.get();
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import org.apache.directory.server.xdbm.NGrams;
+
+
+/**
+ * The trigram index associated with a substring indexed attribute. It maps each
+ * trigram found in the attribute values to the entries holding such a value, and
+ * is stored next to the attribute index in the partition record manager.
+ * 
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class JdbmNGramIndex extends JdbmIndex<String>
+{
+    /**
+     * Creates a JdbmNGramIndex instance for a give AttributeId
+     * 
+     * @param attributeId The Attribute ID
+     */
+    public JdbmNGramIndex( String attributeId )
+    {
+        super( attributeId, false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String getTableName()
+    {
+        return attributeType.getOid() + NGrams.INDEX_SUFFIX;
+    }
+}
@@ -63,8 +63,10 @@ import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.core.api.partition.PartitionWriteTxn;
 import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
 import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.CompactEntryCodec;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.ParentIdAndRdn;
+import org.apache.directory.server.xdbm.search.impl.CostBasedOptimizer;
 import org.apache.directory.server.xdbm.search.impl.CursorBuilder;
 import org.apache.directory.server.xdbm.search.impl.DefaultOptimizer;
 import org.apache.directory.server.xdbm.search.impl.DefaultSearchEngine;
@@ -110,6 +112,33 @@ public class JdbmPartition extends AbstractBTreePartition
     /** the entry cache */
     private Cache< String, Entry > entryCache;
 
+    /** The name of the record storing the master table entries format version */
+    private static final String ENTRY_FORMAT_RECORD = "entryFormatVersion";
+
+    /** The number of entries rewritten in each transaction by the entry format migration */
+    private static final int MIGRATION_BATCH_SIZE = 1000;
+
+    /** Tells if the entries stored in the previous format are rewritten when the partition starts */
+    private boolean migrateEntryFormat = false;
+
+    /** The default group checkpoint window, in milliseconds */
+    public static final long DEFAULT_GROUP_CHECKPOINT_WINDOW = 5L;
+
+    /** The default number of waiting writers triggering a group checkpoint */
+    public static final int DEFAULT_GROUP_CHECKPOINT_SIZE = 32;
+
+    /** When the log is checkpointed. When not set, it depends on the syncOnWrite flag */
+    private CheckpointMode checkpointMode;
+
+    /** The maximum time a group checkpoint waits for other writers, in milliseconds */
+    private long groupCheckpointWindow = DEFAULT_GROUP_CHECKPOINT_WINDOW;
+
+    /** The number of waiting writers triggering a group checkpoint before the end of the window */
+    private int groupCheckpointSize = DEFAULT_GROUP_CHECKPOINT_SIZE;
+
+    /** The transaction log synchronizer */
+    private JdbmLogSynchronizer logSynchronizer;
+
 
     /**
      * Creates a store based on JDBM B+Trees.
@@ -404,6 +433,10 @@ public class JdbmPartition extends AbstractBTreePartition
             {
                 setOptimizer( new NoOpOptimizer() );
             }
+            else if ( statisticsEnabled )
+            {
+                setOptimizer( new CostBasedOptimizer( this ) );
+            }
             else
             {
                 setOptimizer( new DefaultOptimizer( this ) );
@@ -446,6 +479,14 @@ public class JdbmPartition extends AbstractBTreePartition
                 throw new LdapOtherException( ioe.getMessage(), ioe );
             }
 
+            logSynchronizer = new JdbmLogSynchronizer( recMan, groupCheckpointWindow, groupCheckpointSize );
+
+            if ( checkpointMode != null )
+            {
+                // The operations checkpoint the log themselves only in IMMEDIATE mode
+                isSyncOnWrite.set( checkpointMode == CheckpointMode.IMMEDIATE );
+            }
+
             // Iterate on the declared indexes
             List<String> allIndices = new ArrayList<>();
             List<Index<?, String>> indexToBuild = new ArrayList<>();
@@ -528,11 +569,20 @@ public class JdbmPartition extends AbstractBTreePartition
                 throw new LdapOtherException( ioe.getMessage(), ioe );
             }
 
+            if ( migrateEntryFormat )
+            {
+                migrateEntryFormat();
+            }
+
             if ( !indexToBuild.isEmpty() )
             {
                 buildUserIndex( beginReadTransaction(), indexToBuild );
             }
 
+            buildNGramIndices( beginReadTransaction() );
+
+            setupStatistics( beginReadTransaction() );
+
             if ( cacheService != null )
             {
                 entryCache = cacheService.getCache( getId(), String.class, Entry.class );
@@ -649,6 +699,126 @@ public class JdbmPartition extends AbstractBTreePartition
     }
 
 
+    /**
+     * @return When the log is checkpointed. When it has not been set, it is IMMEDIATE if the
+     * partition is synced on write, PERIODIC otherwise
+     */
+    public CheckpointMode getCheckpointMode()
+    {
+        if ( checkpointMode != null )
+        {
+            return checkpointMode;
+        }
+
+        return isSyncOnWrite() ? CheckpointMode.IMMEDIATE : CheckpointMode.PERIODIC;
+    }
+
+
+    /**
+     * Sets the moment at which the transaction log is checkpointed into the database file. It
+     * takes precedence over the syncOnWrite flag. The commits are forced to the log in every mode.
+     *
+     * @param checkpointMode The checkpoint mode
+     */
+    public void setCheckpointMode( CheckpointMode checkpointMode )
+    {
+        checkInitialized( "checkpointMode" );
+        this.checkpointMode = checkpointMode;
+    }
+
+
+    /**
+     * @return The maximum time a group checkpoint waits for other writers, in milliseconds
+     */
+    public long getGroupCheckpointWindow()
+    {
+        return groupCheckpointWindow;
+    }
+
+
+    /**
+     * @param groupCheckpointWindow The maximum time a group checkpoint waits for other writers, in milliseconds
+     */
+    public void setGroupCheckpointWindow( long groupCheckpointWindow )
+    {
+        checkInitialized( "groupCheckpointWindow" );
+
+        if ( groupCheckpointWindow < 0 )
+        {
+            throw new IllegalArgumentException( "group checkpoint window should not be negative" );
+        }
+
+        this.groupCheckpointWindow = groupCheckpointWindow;
+    }
+
+
+    /**
+     * @return The number of waiting writers triggering a group checkpoint before the end of the window
+     */
+    public int getGroupCheckpointSize()
+    {
+        return groupCheckpointSize;
+    }
+
+
+    /**
+     * @param groupCheckpointSize The number of waiting writers triggering a group checkpoint before
+     * the end of the window
+     */
+    public void setGroupCheckpointSize( int groupCheckpointSize )
+    {
+        checkInitialized( "groupCheckpointSize" );
+
+        if ( groupCheckpointSize <= 0 )
+        {
+            throw new IllegalArgumentException( "group checkpoint size should be more than zero" );
+        }
+
+        this.groupCheckpointSize = groupCheckpointSize;
+    }
+
+
+    /**
+     * @return The transaction log checkpoints durations, or null if the partition is not initialized
+     */
+    public LatencyHistogram getCheckpointHistogram()
+    {
+        return logSynchronizer == null ? null : logSynchronizer.getHistogram();
+    }
+
+
+    /**
+     * @return The number of transaction log checkpoint requests. It is greater than the number
+     * of checkpoints when the concurrent writers share them
+     */
+    public long getCheckpointRequests()
+    {
+        return logSynchronizer == null ? 0L : logSynchronizer.getRequests();
+    }
+
+
+    /**
+     * @return <tt>true</tt> if the entries stored in the previous format are rewritten
+     * when the partition starts
+     */
+    public boolean isMigrateEntryFormat()
+    {
+        return migrateEntryFormat;
+    }
+
+
+    /**
+     * Tells the partition to rewrite the entries stored in the previous format when it
+     * starts. The migration is done only once.
+     *
+     * @param migrateEntryFormat <tt>true</tt> to migrate the entries
+     */
+    public void setMigrateEntryFormat( boolean migrateEntryFormat )
+    {
+        this.migrateEntryFormat = migrateEntryFormat;
+    }
+
+
     /**
      * {@inheritDoc}}
      */
@@ -687,23 +857,14 @@ public class JdbmPartition extends AbstractBTreePartition
             recMan.commit();
     
             // And flush the journal
-            BaseRecordManager baseRecordManager = null;
-    
-            if ( recMan instanceof CacheRecordManager )
-            {
-                baseRecordManager = ( ( BaseRecordManager ) ( ( CacheRecordManager ) recMan ).getRecordManager() );
-            }
-            else
-            {
-                baseRecordManager = ( ( BaseRecordManager ) recMan );
-            }
-    
-            baseRecordManager.getTransactionManager().synchronizeLog();
+            logSynchronizer.checkpoint();
         }
         catch ( IOException ioe )
         {
             throw new LdapOtherException( ioe.getMessage(), ioe );
         }
+
+        checkpointStatistics();
     }
 
 
@@ -769,6 +930,94 @@ public class JdbmPartition extends AbstractBTreePartition
     }
 
 
+    /**
+     * Rewrites the master table entries using the {@link CompactEntryCodec} format. The
+     * entries are rewritten by batches, each batch being committed, so that an interrupted
+     * migration is resumed on the next start. The entries written in the previous format
+     * are still readable, and each modified entry is written in the new format anyway.
+     */
+    private void migrateEntryFormat() throws LdapException
+    {
+        try
+        {
+            long recId = recMan.getNamedObject( ENTRY_FORMAT_RECORD );
+
+            if ( ( recId != 0 ) && ( ( Integer ) recMan.fetch( recId ) >= CompactEntryCodec.VERSION ) )
+            {
+                return;
+            }
+
+            LOG.info( "Migrating the entries of the {} partition to the format version {}", id,
+                CompactEntryCodec.VERSION );
+
+            String lastId = null;
+            int migrated = 0;
+
+            while ( true )
+            {
+                // Read a batch of entries, then rewrite them once the cursor is closed
+                List<Tuple<String, Entry>> batch = new ArrayList<>( MIGRATION_BATCH_SIZE );
+                Cursor<Tuple<String, Entry>> cursor = master.cursor();
+
+                try
+                {
+                    if ( lastId == null )
+                    {
+                        cursor.beforeFirst();
+                    }
+                    else
+                    {
+                        cursor.after( new Tuple<String, Entry>( lastId, null ) );
+                    }
+
+                    while ( ( batch.size() < MIGRATION_BATCH_SIZE ) && cursor.next() )
+                    {
+                        batch.add( cursor.get() );
+                    }
+                }
+                finally
+                {
+                    cursor.close();
+                }
+
+                if ( batch.isEmpty() )
+                {
+                    break;
+                }
+
+                PartitionTxn partitionTxn = beginWriteTransaction();
+
+                for ( Tuple<String, Entry> tuple : batch )
+                {
+                    master.put( partitionTxn, tuple.getKey(), tuple.getValue() );
+                }
+
+                partitionTxn.commit();
+                migrated += batch.size();
+                lastId = batch.get( batch.size() - 1 ).getKey();
+                LOG.debug( "{} entries migrated", migrated );
+            }
+
+            if ( recId == 0 )
+            {
+                recId = recMan.insert( Integer.valueOf( CompactEntryCodec.VERSION ) );
+                recMan.setNamedObject( ENTRY_FORMAT_RECORD, recId );
+            }
+            else
+            {
+                recMan.update( recId, Integer.valueOf( CompactEntryCodec.VERSION ) );
+            }
+
+            recMan.commit();
+            LOG.info( "{} entries of the {} partition migrated", migrated, id );
+        }
+        catch ( CursorException | IOException e )
+        {
+            throw new LdapOtherException( e.getMessage(), e );
+        }
+    }
+
+
     /**
      * removes any unused/removed attribute index files present under the partition's
      * working directory
@@ -847,6 +1096,28 @@ public class JdbmPartition extends AbstractBTreePartition
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Index<String, String> createNGramIndex( AttributeType attributeType ) throws LdapException
+    {
+        JdbmNGramIndex ngramIndex = new JdbmNGramIndex( attributeType.getOid() );
+        ngramIndex.setNumDupLimit( JdbmIndex.DEFAULT_DUPLICATE_LIMIT );
+
+        try
+        {
+            ngramIndex.init( recMan, schemaManager, attributeType );
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+
+        return ngramIndex;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -1010,6 +1281,6 @@ public class JdbmPartition extends AbstractBTreePartition
     @Override
     public PartitionWriteTxn beginWriteTransaction()
     {
-        return new JdbmPartitionWriteTxn( recMan, isSyncOnWrite() );
+        return new JdbmPartitionWriteTxn( recMan, logSynchronizer, getCheckpointMode() );
     }
 }
@@ -24,8 +24,6 @@ import java.io.IOException;
 import org.apache.directory.server.core.api.partition.PartitionWriteTxn;
 
 import jdbm.RecordManager;
-import jdbm.recman.BaseRecordManager;
-import jdbm.recman.CacheRecordManager;
 
 /**
  * The JDBM partition write transaction
@@ -36,9 +34,15 @@ public class JdbmPartitionWriteTxn extends PartitionWriteTxn
 {
     /** The associated record manager */
     private RecordManager recordManager;
-    
-    /** A flag used to flush data immediately or not */
-    private boolean syncOnWrite = false;
+
+    /** The log synchronizer, checkpointing the log after the commits */
+    private JdbmLogSynchronizer synchronizer;
+
+    /** When the log is checkpointed */
+    private CheckpointMode checkpointMode;
+
+    /** Tells if a committed transaction still waits for the log to be checkpointed */
+    private boolean checkpointPending = false;
     
     /**
      * Create an instance of JdbmPartitionWriteTxn
@@ -49,34 +53,77 @@ public class JdbmPartitionWriteTxn extends PartitionWriteTxn
     public JdbmPartitionWriteTxn( RecordManager recordManager, boolean syncOnWrite )
     {
         this.recordManager = recordManager;
-        this.syncOnWrite = syncOnWrite;
+        this.checkpointMode = syncOnWrite ? CheckpointMode.IMMEDIATE : CheckpointMode.PERIODIC;
+    }
+    
+    
+    /**
+     * Create an instance of JdbmPartitionWriteTxn
+     * 
+     * @param recordManager The RecordManager instance
+     * @param synchronizer The partition log synchronizer
+     * @param checkpointMode When the log is checkpointed
+     */
+    JdbmPartitionWriteTxn( RecordManager recordManager, JdbmLogSynchronizer synchronizer,
+        CheckpointMode checkpointMode )
+    {
+        this.recordManager = recordManager;
+        this.synchronizer = synchronizer;
+        this.checkpointMode = checkpointMode;
     }
     
     
     /**
      * {@inheritDoc}
+     * The JDBM commit writes the transaction to the log and forces it to disk, in every mode.
+     * In IMMEDIATE mode, the log is then checkpointed into the database file. In GROUP mode,
+     * the checkpoint is delayed until {@link #awaitDurability()}, so that it happens outside
+     * of the partition lock.
      */
     @Override
     public void commit() throws IOException
     {
         recordManager.commit();
-        
-        // And flush the journal
-        BaseRecordManager baseRecordManager = null;
+        committed();
 
-        if ( recordManager instanceof CacheRecordManager )
-        {
-            baseRecordManager = ( ( BaseRecordManager ) ( ( CacheRecordManager ) recordManager ).getRecordManager() );
-        }
-        else
+        switch ( checkpointMode )
         {
-            baseRecordManager = ( ( BaseRecordManager ) recordManager );
+            case IMMEDIATE:
+                if ( synchronizer == null )
+                {
+                    // And flush the journal
+                    JdbmLogSynchronizer.getBaseRecordManager( recordManager ).getTransactionManager()
+                        .synchronizeLog();
+                }
+                else
+                {
+                    synchronizer.checkpoint();
+                }
+
+                break;
+
+            case GROUP:
+                checkpointPending = true;
+                break;
+
+            default:
+                // The log will be checkpointed by the sync thread
+                break;
         }
+    }
 
 
-        if ( syncOnWrite )
+    /**
+     * {@inheritDoc}
+     * In GROUP mode, waits for a log checkpoint shared with the concurrent writers.
+     */
+    @Override
+    public void awaitDurability() throws IOException
+    {
+        if ( checkpointPending )
         {
-            baseRecordManager.getTransactionManager().synchronizeLog();
+            checkpointPending = false;
+            synchronizer.groupCheckpoint();
         }
     }
 
@@ -87,6 +134,7 @@ public class JdbmPartitionWriteTxn extends PartitionWriteTxn
     @Override
     public void abort() throws IOException
     {
+        aborted();
         recordManager.rollback();
     }
 
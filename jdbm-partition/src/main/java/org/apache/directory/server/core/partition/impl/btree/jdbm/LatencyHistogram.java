@@ -0,0 +1,167 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A latency histogram with power of two buckets : the bucket <i>n</i> counts the durations
+ * between 2<sup>n-1</sup> and 2<sup>n</sup> microseconds. The recording does not take any lock.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LatencyHistogram
+{
+    /** The number of buckets, the last one holding all the durations above 2^62 microseconds */
+    public static final int NB_BUCKETS = 64;
+
+    /** The number of recorded durations, by bucket */
+    private final AtomicLongArray buckets = new AtomicLongArray( NB_BUCKETS );
+
+    /** The number of recorded durations */
+    private final AtomicLong count = new AtomicLong();
+
+    /** The sum of the recorded durations, in nanoseconds */
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    /** The longest recorded duration, in nanoseconds */
+    private final AtomicLong maxNanos = new AtomicLong();
+
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos The duration, in nanoseconds
+     */
+    public void record( long nanos )
+    {
+        long micros = Math.max( 0L, nanos / 1000L );
+        int bucket = Math.min( NB_BUCKETS - 1, 64 - Long.numberOfLeadingZeros( micros ) );
+
+        buckets.incrementAndGet( bucket );
+        count.incrementAndGet();
+        totalNanos.addAndGet( nanos );
+
+        long max = maxNanos.get();
+
+        while ( ( nanos > max ) && !maxNanos.compareAndSet( max, nanos ) )
+        {
+            max = maxNanos.get();
+        }
+    }
+
+
+    /**
+     * @return The number of recorded durations
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+
+
+    /**
+     * @return The mean duration, in microseconds
+     */
+    public long getMeanMicros()
+    {
+        long nb = count.get();
+
+        return nb == 0 ? 0L : totalNanos.get() / nb / 1000L;
+    }
+
+
+    /**
+     * @return The longest recorded duration, in microseconds
+     */
+    public long getMaxMicros()
+    {
+        return maxNanos.get() / 1000L;
+    }
+
+
+    /**
+     * Gives an upper bound of a percentile of the recorded durations.
+     *
+     * @param percentile The percentile, between 0 and 100
+     * @return The upper bound of the bucket containing the percentile, in microseconds
+     */
+    public long getPercentileMicros( double percentile )
+    {
+        long[] counts = getBuckets();
+        long total = 0L;
+
+        for ( long bucketCount : counts )
+        {
+            total += bucketCount;
+        }
+
+        if ( total == 0 )
+        {
+            return 0L;
+        }
+
+        long threshold = ( long ) Math.ceil( total * percentile / 100d );
+        long seen = 0L;
+
+        for ( int i = 0; i < NB_BUCKETS; i++ )
+        {
+            seen += counts[i];
+
+            if ( seen >= threshold )
+            {
+                return 1L << i;
+            }
+        }
+
+        return Long.MAX_VALUE;
+    }
+
+
+    /**
+     * @return A copy of the number of recorded durations by bucket
+     */
+    public long[] getBuckets()
+    {
+        long[] counts = new long[NB_BUCKETS];
+
+        for ( int i = 0; i < NB_BUCKETS; i++ )
+        {
+            counts[i] = buckets.get( i );
+        }
+
+        return counts;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "LatencyHistogram [count " + getCount() + ", mean " + getMeanMicros() + "us, p50 "
+            + getPercentileMicros( 50d ) + "us, p99 " + getPercentileMicros( 99d ) + "us, max " + getMaxMicros()
+            + "us]";
+    }
+}
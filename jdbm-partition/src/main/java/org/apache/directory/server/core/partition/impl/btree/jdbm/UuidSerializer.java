@@ -26,7 +26,11 @@ import jdbm.helper.Serializer;
 
 
 /**
- * A {@link Serializer} for UUIDs
+ * A {@link Serializer} for UUIDs. The canonical UUIDs (36 lower case hexadecimal characters
+ * and dashes) are stored as a marker byte followed by the 16 bytes of the UUID, instead
+ * of the 72 bytes used by the {@link StringSerializer}. This form has an odd length, so
+ * it can't be confused with the values written by the previous versions, which are
+ * still read.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -35,6 +39,18 @@ public class UuidSerializer implements Serializer
     private static final long serialVersionUID = 237756689544852128L;
     public static final UuidSerializer INSTANCE = new UuidSerializer();
 
+    /** The length of a canonical UUID */
+    private static final int UUID_LENGTH = 36;
+
+    /** The first byte of a compact UUID */
+    private static final byte COMPACT_MARKER = 0x01;
+
+    /** The length of a compact UUID */
+    private static final int COMPACT_LENGTH = 17;
+
+    /** The hexadecimal digits */
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
 
     /**
      * {@inheritDoc}
@@ -42,6 +58,12 @@ public class UuidSerializer implements Serializer
     public byte[] serialize( Object o ) throws IOException
     {
         String uuid = ( String ) o;
+        byte[] compact = toCompact( uuid );
+
+        if ( compact != null )
+        {
+            return compact;
+        }
 
         return StringSerializer.INSTANCE.serialize( uuid );
     }
@@ -52,6 +74,123 @@ public class UuidSerializer implements Serializer
      */
     public Object deserialize( byte[] bytes ) throws IOException
     {
+        if ( ( bytes.length == COMPACT_LENGTH ) && ( bytes[0] == COMPACT_MARKER ) )
+        {
+            return fromCompact( bytes );
+        }
+
         return StringSerializer.INSTANCE.deserialize( bytes );
     }
+
+
+    /**
+     * Tells if a char is at a position where a canonical UUID has a dash
+     */
+    private static boolean isDashPosition( int pos )
+    {
+        return ( pos == 8 ) || ( pos == 13 ) || ( pos == 18 ) || ( pos == 23 );
+    }
+
+
+    /**
+     * Gets the value of a lower case hexadecimal char, or -1
+     */
+    private static int hexValue( char c )
+    {
+        if ( ( c >= '0' ) && ( c <= '9' ) )
+        {
+            return c - '0';
+        }
+        else if ( ( c >= 'a' ) && ( c <= 'f' ) )
+        {
+            return c - 'a' + 10;
+        }
+        else
+        {
+            return -1;
+        }
+    }
+
+
+    /**
+     * Encodes a canonical UUID, or returns null if the given String can't be encoded
+     * without loss.
+     */
+    private static byte[] toCompact( String uuid )
+    {
+        if ( ( uuid == null ) || ( uuid.length() != UUID_LENGTH ) )
+        {
+            return null;
+        }
+
+        byte[] bytes = new byte[COMPACT_LENGTH];
+        bytes[0] = COMPACT_MARKER;
+        int pos = 1;
+        int high = -1;
+
+        for ( int i = 0; i < UUID_LENGTH; i++ )
+        {
+            char c = uuid.charAt( i );
+
+            if ( isDashPosition( i ) )
+            {
+                if ( c != '-' )
+                {
+                    return null;
+                }
+
+                continue;
+            }
+
+            int value = hexValue( c );
+
+            if ( value < 0 )
+            {
+                return null;
+            }
+
+            if ( high < 0 )
+            {
+                high = value;
+            }
+            else
+            {
+                bytes[pos++] = ( byte ) ( ( high << 4 ) | value );
+                high = -1;
+            }
+        }
+
+        return bytes;
+    }
+
+
+    /**
+     * Decodes a compact UUID
+     */
+    private static String fromCompact( byte[] bytes )
+    {
+        char[] chars = new char[UUID_LENGTH];
+        int pos = 1;
+        boolean high = true;
+
+        for ( int i = 0; i < UUID_LENGTH; i++ )
+        {
+            if ( isDashPosition( i ) )
+            {
+                chars[i] = '-';
+            }
+            else if ( high )
+            {
+                chars[i] = HEX_CHARS[( bytes[pos] >> 4 ) & 0x0F];
+                high = false;
+            }
+            else
+            {
+                chars[i] = HEX_CHARS[bytes[pos++] & 0x0F];
+                high = true;
+            }
+        }
+
+        return new String( chars );
+    }
 }
@@ -0,0 +1,276 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import jdbm.RecordManager;
+
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link JdbmLogSynchronizer} group checkpoint, and the {@link LatencyHistogram}.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class JdbmLogSynchronizerTest
+{
+    /**
+     * A synchronizer counting the checkpoints instead of checkpointing a JDBM log
+     */
+    private static class CountingSynchronizer extends JdbmLogSynchronizer
+    {
+        private final AtomicInteger checkpoints = new AtomicInteger();
+
+
+        CountingSynchronizer( long groupCheckpointWindow, int groupCheckpointSize )
+        {
+            super( null, groupCheckpointWindow, groupCheckpointSize );
+        }
+
+
+        @Override
+        protected void synchronizeLog() throws IOException
+        {
+            checkpoints.incrementAndGet();
+
+            try
+            {
+                Thread.sleep( 2 );
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    @Test
+    public void testCheckpoint() throws Exception
+    {
+        CountingSynchronizer synchronizer = new CountingSynchronizer( 5L, 32 );
+
+        synchronizer.checkpoint();
+        synchronizer.checkpoint();
+
+        assertEquals( 2, synchronizer.checkpoints.get() );
+        assertEquals( 2, synchronizer.getRequests() );
+        assertEquals( 2, synchronizer.getHistogram().getCount() );
+    }
+
+
+    @Test
+    public void testGroupCheckpointSharedByConcurrentWriters() throws Exception
+    {
+        final CountingSynchronizer synchronizer = new CountingSynchronizer( 50L, 16 );
+        final int nbWriters = 16;
+        final int nbCommits = 20;
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final CountDownLatch done = new CountDownLatch( nbWriters );
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        for ( int i = 0; i < nbWriters; i++ )
+        {
+            new Thread( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+
+                        for ( int j = 0; j < nbCommits; j++ )
+                        {
+                            synchronizer.groupCheckpoint();
+                        }
+                    }
+                    catch ( Throwable t )
+                    {
+                        failure.set( t );
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            } ).start();
+        }
+
+        start.countDown();
+        done.await();
+
+        if ( failure.get() != null )
+        {
+            throw new AssertionError( failure.get() );
+        }
+
+        assertEquals( nbWriters * nbCommits, synchronizer.getRequests() );
+        assertTrue( synchronizer.checkpoints.get() < nbWriters * nbCommits );
+        assertEquals( synchronizer.checkpoints.get(), synchronizer.getHistogram().getCount() );
+    }
+
+
+    @Test
+    public void testGroupCheckpointAlone() throws Exception
+    {
+        // A single writer does not wait for the window once alone in the group
+        CountingSynchronizer synchronizer = new CountingSynchronizer( 0L, 32 );
+
+        synchronizer.groupCheckpoint();
+        synchronizer.groupCheckpoint();
+
+        assertEquals( 2, synchronizer.checkpoints.get() );
+    }
+
+
+    @Test
+    public void testGroupCheckpointAfterTheWriteLock() throws Exception
+    {
+        final int nbWriters = 8;
+        final ReentrantLock partitionLock = new ReentrantLock();
+        final AtomicBoolean checkpointedUnderLock = new AtomicBoolean( false );
+
+        // The checkpoint only starts once all the writers have joined the group
+        final CountingSynchronizer synchronizer = new CountingSynchronizer( 60000L, nbWriters )
+        {
+            @Override
+            protected void synchronizeLog() throws IOException
+            {
+                if ( partitionLock.isLocked() )
+                {
+                    checkpointedUnderLock.set( true );
+                }
+
+                super.synchronizeLog();
+            }
+        };
+
+        // A record manager whose commit does nothing
+        final RecordManager recordManager = ( RecordManager ) Proxy.newProxyInstance( getClass().getClassLoader(),
+            new Class<?>[]
+                { RecordManager.class }, new InvocationHandler()
+            {
+                @Override
+                public Object invoke( Object proxy, Method method, Object[] args )
+                {
+                    return null;
+                }
+            } );
+
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final CountDownLatch done = new CountDownLatch( nbWriters );
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        for ( int i = 0; i < nbWriters; i++ )
+        {
+            new Thread( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+
+                        JdbmPartitionWriteTxn transaction = new JdbmPartitionWriteTxn( recordManager,
+                            synchronizer, CheckpointMode.GROUP );
+
+                        // The operation commits under the partition lock...
+                        partitionLock.lock();
+
+                        try
+                        {
+                            transaction.commit();
+                        }
+                        finally
+                        {
+                            partitionLock.unlock();
+                        }
+
+                        // ... and waits for the checkpoint once it has released it
+                        transaction.awaitDurability();
+                    }
+                    catch ( Throwable t )
+                    {
+                        failure.set( t );
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            } ).start();
+        }
+
+        start.countDown();
+
+        // The writers don't wait for the end of the window
+        assertTrue( done.await( 30, TimeUnit.SECONDS ) );
+
+        if ( failure.get() != null )
+        {
+            throw new AssertionError( failure.get() );
+        }
+
+        assertEquals( 1, synchronizer.checkpoints.get() );
+        assertEquals( nbWriters, synchronizer.getRequests() );
+        assertFalse( checkpointedUnderLock.get() );
+    }
+
+
+    @Test
+    public void testHistogram()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals( 0, histogram.getPercentileMicros( 99d ) );
+
+        for ( int i = 0; i < 99; i++ )
+        {
+            histogram.record( 100000L );
+        }
+
+        histogram.record( 10000000L );
+
+        assertEquals( 100, histogram.getCount() );
+        assertEquals( 128, histogram.getPercentileMicros( 50d ) );
+        assertEquals( 128, histogram.getPercentileMicros( 99d ) );
+        assertEquals( 16384, histogram.getPercentileMicros( 100d ) );
+        assertEquals( 10000, histogram.getMaxMicros() );
+        assertEquals( 199, histogram.getMeanMicros() );
+    }
+}
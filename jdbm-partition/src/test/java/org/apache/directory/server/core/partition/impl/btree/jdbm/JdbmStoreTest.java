@@ -48,6 +48,7 @@ import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.entry.ModificationOperation;
 import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
 import org.apache.directory.api.ldap.model.exception.LdapSchemaViolationException;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.name.Rdn;
@@ -703,6 +704,83 @@ public class JdbmStoreTest
     }
 
 
+    @Test
+    public void testSnapshotRestore() throws Exception
+    {
+        // The partition directory is replaced on restore, the snapshot can't be stored in it
+        File snapshotDir = Files.createTempDirectory( JdbmStoreTest.class.getSimpleName() + "_snapshot" ).toFile();
+
+        try
+        {
+            partition.snapshot( snapshotDir );
+
+            Dn dn = new Dn( schemaManager, "cn=Private Ryan,ou=Engineering,o=Good Times Co." );
+            Entry entry = new DefaultEntry( schemaManager, dn,
+                "objectClass: top",
+                "objectClass: person",
+                "objectClass: organizationalPerson",
+                "ou: Engineering",
+                "cn: Private Ryan",
+                "entryCSN", new CsnFactory( 1 ).newInstance().toString(),
+                "entryUUID", UUID.randomUUID().toString() );
+
+            AddOperationContext addContext = new AddOperationContext( null, entry );
+            addContext.setPartition( partition );
+
+            try ( PartitionTxn partitionTxn = partition.beginWriteTransaction() )
+            {
+                addContext.setTransaction( partitionTxn );
+                partition.add( addContext );
+            }
+
+            assertEquals( 12, partition.count( partitionTxn ) );
+
+            // Back to the content we had when the snapshot was taken
+            partition.restore( snapshotDir );
+
+            assertTrue( partition.isInitialized() );
+            assertEquals( 11, partition.count( partitionTxn ) );
+
+            LookupOperationContext lookupContext = new LookupOperationContext( session, dn );
+            lookupContext.setPartition( partition );
+
+            try ( PartitionTxn partitionTxn2 = partition.beginReadTransaction() )
+            {
+                lookupContext.setTransaction( partitionTxn2 );
+
+                assertNull( partition.lookup( lookupContext ) );
+            }
+        }
+        finally
+        {
+            FileUtils.deleteDirectory( snapshotDir );
+        }
+    }
+
+
+    @Test
+    public void testFailedRestoreKeepsPartition() throws Exception
+    {
+        File missingDir = new File( tempDir.toFile().getParentFile(), tempDir.toFile().getName() + "_missing" );
+        File restoredDir = new File( tempDir.toFile().getParentFile(), tempDir.toFile().getName() + ".restore" );
+
+        try
+        {
+            partition.restore( missingDir );
+            fail();
+        }
+        catch ( LdapOtherException loe )
+        {
+            // expected
+        }
+
+        // The partition is still running, with its previous content
+        assertTrue( partition.isInitialized() );
+        assertEquals( 11, partition.count( partitionTxn ) );
+        assertFalse( restoredDir.exists() );
+    }
+
+
     @Test
     public void testRenameEscaped() throws Exception
     {
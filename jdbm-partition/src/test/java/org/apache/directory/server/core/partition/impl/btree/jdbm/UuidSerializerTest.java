@@ -0,0 +1,87 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.mycila.junit.concurrent.Concurrency;
+import com.mycila.junit.concurrent.ConcurrentJunitRunner;
+
+
+/**
+ * Tests the UuidSerializer compact form.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@RunWith(ConcurrentJunitRunner.class)
+@Concurrency()
+public class UuidSerializerTest
+{
+    @Test
+    public void testCanonicalUuid() throws IOException
+    {
+        UuidSerializer serializer = UuidSerializer.INSTANCE;
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            String uuid = UUID.randomUUID().toString();
+            byte[] serialized = serializer.serialize( uuid );
+
+            assertEquals( 17, serialized.length );
+            assertEquals( uuid, serializer.deserialize( serialized ) );
+        }
+
+        String root = "00000000-0000-0000-0000-000000000000";
+        assertEquals( root, serializer.deserialize( serializer.serialize( root ) ) );
+    }
+
+
+    @Test
+    public void testNonCanonicalUuid() throws IOException
+    {
+        UuidSerializer serializer = UuidSerializer.INSTANCE;
+        String[] values = { "ABCDEF01-0000-0000-0000-000000000001", "00000000-0000-0000-0000-00000000000", "foo", "" };
+
+        for ( String value : values )
+        {
+            byte[] serialized = serializer.serialize( value );
+
+            assertEquals( value.length() * 2, serialized.length );
+            assertEquals( value, serializer.deserialize( serialized ) );
+        }
+    }
+
+
+    @Test
+    public void testLegacyForm() throws IOException
+    {
+        String uuid = UUID.randomUUID().toString();
+        byte[] legacy = StringSerializer.INSTANCE.serialize( uuid );
+
+        assertEquals( uuid, UuidSerializer.INSTANCE.deserialize( legacy ) );
+    }
+}
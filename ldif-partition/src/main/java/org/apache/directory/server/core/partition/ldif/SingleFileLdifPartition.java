@@ -21,22 +21,37 @@
 package org.apache.directory.server.core.partition.ldif;
 
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Iterator;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.entry.Attribute;
 import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
 import org.apache.directory.api.ldap.model.exception.LdapOperationException;
 import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.ldif.ChangeType;
 import org.apache.directory.api.ldap.model.ldif.LdifEntry;
 import org.apache.directory.api.ldap.model.ldif.LdifReader;
 import org.apache.directory.api.ldap.model.ldif.LdifUtils;
@@ -45,6 +60,7 @@ import org.apache.directory.api.ldap.model.name.Rdn;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.util.Strings;
 import org.apache.directory.server.core.api.DnFactory;
+import org.apache.directory.server.core.api.entry.ServerEntryUtils;
 import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
@@ -60,6 +76,13 @@ import org.slf4j.LoggerFactory;
 
 /**
  * A Partition implementation backed by a single LDIF file.
+ * <br><br>
+ * By default, the whole file is rewritten after each modification. In journal mode, the
+ * modifications are instead appended as LDIF change records to a journal file, stored next
+ * to the LDIF file. The journal is replayed when the partition is loaded, and compacted into
+ * a new LDIF file in the background when it grows bigger than {@link #getJournalMaxSize()},
+ * or periodically if a compaction interval is set. The LDIF file and the journal start with
+ * a generation comment, so that a journal already merged into the LDIF file is not replayed.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -77,6 +100,45 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
     /** lock for serializing the operations on the backing LDIF file */
     private Object lock = new Object();
 
+    /** The default journal size triggering a compaction, in bytes */
+    public static final long DEFAULT_JOURNAL_MAX_SIZE = 1024L * 1024L;
+
+    /** The journal file extension */
+    private static final String JOURNAL_EXTENSION = ".journal";
+
+    /** The extension of the file the LDIF file is rewritten into, before replacing it */
+    private static final String TMP_EXTENSION = ".tmp";
+
+    /** The comment storing the generation at the beginning of the LDIF file and of the journal */
+    private static final String GENERATION_HEADER = "# generation: ";
+
+    /** flag to enable/disable the journal mode, default is set to false */
+    private boolean journalMode = false;
+
+    /** The journal size triggering a compaction, in bytes */
+    private long journalMaxSize = DEFAULT_JOURNAL_MAX_SIZE;
+
+    /** The delay between two periodic compactions, in milliseconds. 0 disables them */
+    private long compactionInterval = 0L;
+
+    /** The journal, when the journal mode is enabled */
+    private RandomAccessFile journalFile;
+
+    /** The journal file path */
+    private File journalPath;
+
+    /** The generation of the LDIF file, and of the journal holding the following changes */
+    private long generation = 0L;
+
+    /** The size of the changes appended to the journal since the last compaction */
+    private long journalSize = 0L;
+
+    /** The executor running the compactions */
+    private ScheduledExecutorService compactor;
+
+    /** Tells if a compaction has already been requested */
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean( false );
+
     private static final Logger LOG = LoggerFactory.getLogger( SingleFileLdifPartition.class );
 
 
@@ -109,6 +171,9 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
                 throw new IllegalArgumentException( "Partition path must be a LDIF file" );
             }
 
+            // A rewrite interrupted by a crash : the LDIF file has not been replaced
+            deleteTmpFile( new File( partitionFile.getPath() + TMP_EXTENSION ) );
+
             try
             {
                 ldifFile = new RandomAccessFile( partitionFile, "rws" );
@@ -136,7 +201,206 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
 
             super.doInit();
 
+            generation = readGeneration( ldifFile );
+
             loadEntries();
+
+            journalPath = new File( partitionFile.getPath() + JOURNAL_EXTENSION );
+
+            if ( journalMode || journalPath.exists() )
+            {
+                openJournal();
+            }
+        }
+    }
+
+
+    /**
+     * Opens the journal, replaying the changes it contains. When the journal mode is
+     * disabled, the LDIF file is rewritten and the journal is deleted.
+     */
+    private void openJournal() throws LdapException
+    {
+        try
+        {
+            journalFile = new RandomAccessFile( journalPath, "rws" );
+
+            if ( readGeneration( journalFile ) == generation )
+            {
+                journalSize = replayJournal();
+            }
+            else
+            {
+                // The journal has already been merged into the LDIF file
+                resetJournal();
+            }
+
+            if ( !journalMode )
+            {
+                try ( PartitionTxn partitionTxn = beginReadTransaction() )
+                {
+                    dirty = true;
+                    rewritePartitionData( partitionTxn );
+                }
+
+                journalFile.close();
+                journalFile = null;
+
+                if ( !journalPath.delete() )
+                {
+                    LOG.warn( "Unable to delete the {} journal", journalPath );
+                }
+
+                return;
+            }
+
+            journalFile.seek( journalFile.length() );
+
+            compactor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+            {
+                @Override
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable, "ldifCompactor-" + getId() );
+                    thread.setDaemon( true );
+
+                    return thread;
+                }
+            } );
+
+            if ( compactionInterval > 0 )
+            {
+                compactor.scheduleWithFixedDelay( new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        compact();
+                    }
+                }, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS );
+            }
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * Reads the generation stored at the beginning of a file, and rewinds it.
+     *
+     * @return the generation, 0 if the file does not contain one
+     */
+    private long readGeneration( RandomAccessFile file ) throws LdapException
+    {
+        try
+        {
+            file.seek( 0 );
+            String line = file.readLine();
+            file.seek( 0 );
+
+            if ( ( line != null ) && line.startsWith( GENERATION_HEADER ) )
+            {
+                return Long.parseLong( line.substring( GENERATION_HEADER.length() ).trim() );
+            }
+
+            return 0L;
+        }
+        catch ( IOException | NumberFormatException e )
+        {
+            throw new LdapOtherException( e.getMessage(), e );
+        }
+    }
+
+
+    /**
+     * Applies the changes stored in the journal to the partition.
+     *
+     * @return the size of the replayed changes
+     */
+    private long replayJournal() throws LdapException, IOException
+    {
+        try ( RandomAccessLdifReader parser = new RandomAccessLdifReader( journalFile, schemaManager ) )
+        {
+            for ( LdifEntry change : parser )
+            {
+                replay( change );
+            }
+        }
+
+        long size = journalFile.length();
+
+        LOG.debug( "Replayed {} bytes of changes from the {} journal", size, journalPath );
+
+        return size;
+    }
+
+
+    /**
+     * Applies a change read from the journal, without journaling it again.
+     */
+    private void replay( LdifEntry change ) throws LdapException
+    {
+        PartitionTxn partitionTxn = beginWriteTransaction();
+        Dn dn = change.getDn();
+
+        if ( !dn.isSchemaAware() )
+        {
+            dn = new Dn( schemaManager, dn );
+        }
+
+        switch ( change.getChangeType().getChangeType() )
+        {
+            case ChangeType.ADD_ORDINAL:
+                Entry entry = new DefaultEntry( schemaManager, change.getEntry() );
+                entry.setDn( dn );
+
+                AddOperationContext addContext = new AddOperationContext( null, entry );
+                addContext.setPartition( this );
+                addContext.setTransaction( partitionTxn );
+
+                super.add( addContext );
+                break;
+
+            case ChangeType.DELETE_ORDINAL:
+                String id = getEntryId( partitionTxn, dn );
+
+                if ( id != null )
+                {
+                    super.delete( partitionTxn, id );
+                }
+
+                break;
+
+            case ChangeType.MODIFY_ORDINAL:
+                List<Modification> modifications = change.getModifications();
+                List<Modification> mods = ServerEntryUtils.toServerModification(
+                    modifications.toArray( new Modification[modifications.size()] ), schemaManager );
+
+                super.modify( partitionTxn, dn, mods.toArray( new Modification[mods.size()] ) );
+                break;
+
+            case ChangeType.MODDN_ORDINAL:
+            case ChangeType.MODRDN_ORDINAL:
+                Rdn newRdn = new Rdn( schemaManager, change.getNewRdn() );
+
+                if ( !newRdn.equals( dn.getRdn() ) )
+                {
+                    rename( partitionTxn, dn, newRdn, change.isDeleteOldRdn(), null );
+                    dn = dn.getParent().add( newRdn );
+                }
+
+                if ( change.getNewSuperior() != null )
+                {
+                    Dn newSuperior = new Dn( schemaManager, change.getNewSuperior() );
+                    move( partitionTxn, dn, newSuperior, newSuperior.add( dn.getRdn() ), null );
+                }
+
+                break;
+
+            default:
+                throw new LdapOtherException( "Unexpected change in the journal " + journalPath + " : " + change );
         }
     }
 
@@ -220,8 +484,22 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
                 }
             }
 
-            dirty = true;
-            rewritePartitionData( addContext.getTransaction() );
+            if ( isJournaling() )
+            {
+                Entry entry = addContext.getEntry().clone();
+
+                // Don't write the EntryDN attribute
+                entry.removeAttributes( entryDnAT );
+
+                LdifEntry change = new LdifEntry( entry );
+                change.setChangeType( ChangeType.Add );
+                appendJournal( change );
+            }
+            else
+            {
+                dirty = true;
+                rewritePartitionData( addContext.getTransaction() );
+            }
         }
     }
 
@@ -252,8 +530,24 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
                 throw new LdapOperationException( e.getMessage(), e );
             }
 
-            dirty = true;
-            rewritePartitionData( partitionTxn );
+            if ( isJournaling() )
+            {
+                LdifEntry change = new LdifEntry();
+                change.setChangeType( ChangeType.Modify );
+                change.setDn( modifyContext.getDn() );
+
+                for ( Modification modification : modifyContext.getModItems() )
+                {
+                    change.addModification( modification );
+                }
+
+                appendJournal( change );
+            }
+            else
+            {
+                dirty = true;
+                rewritePartitionData( partitionTxn );
+            }
         }
     }
 
@@ -267,8 +561,22 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
         synchronized ( lock )
         {
             super.rename( renameContext );
-            dirty = true;
-            rewritePartitionData( renameContext.getTransaction() );
+
+            if ( isJournaling() )
+            {
+                LdifEntry change = new LdifEntry();
+                change.setChangeType( ChangeType.ModRdn );
+                change.setDn( renameContext.getDn() );
+                change.setNewRdn( renameContext.getNewRdn().getName() );
+                change.setDeleteOldRdn( renameContext.getDeleteOldRdn() );
+                appendJournal( change );
+                appendOperationalAttributes( renameContext.getNewDn(), renameContext.getModifiedEntry() );
+            }
+            else
+            {
+                dirty = true;
+                rewritePartitionData( renameContext.getTransaction() );
+            }
         }
     }
 
@@ -282,8 +590,23 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
         synchronized ( lock )
         {
             super.move( moveContext );
-            dirty = true;
-            rewritePartitionData( moveContext.getTransaction() );
+
+            if ( isJournaling() )
+            {
+                LdifEntry change = new LdifEntry();
+                change.setChangeType( ChangeType.ModDn );
+                change.setDn( moveContext.getDn() );
+                change.setNewRdn( moveContext.getDn().getRdn().getName() );
+                change.setDeleteOldRdn( false );
+                change.setNewSuperior( moveContext.getNewSuperior().getName() );
+                appendJournal( change );
+                appendOperationalAttributes( moveContext.getNewDn(), moveContext.getModifiedEntry() );
+            }
+            else
+            {
+                dirty = true;
+                rewritePartitionData( moveContext.getTransaction() );
+            }
         }
     }
 
@@ -297,8 +620,23 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
         synchronized ( lock )
         {
             super.moveAndRename( opContext );
-            dirty = true;
-            rewritePartitionData( opContext.getTransaction() );
+
+            if ( isJournaling() )
+            {
+                LdifEntry change = new LdifEntry();
+                change.setChangeType( ChangeType.ModDn );
+                change.setDn( opContext.getDn() );
+                change.setNewRdn( opContext.getNewRdn().getName() );
+                change.setDeleteOldRdn( opContext.getDeleteOldRdn() );
+                change.setNewSuperior( opContext.getNewSuperiorDn().getName() );
+                appendJournal( change );
+                appendOperationalAttributes( opContext.getNewDn(), opContext.getModifiedEntry() );
+            }
+            else
+            {
+                dirty = true;
+                rewritePartitionData( opContext.getTransaction() );
+            }
         }
     }
 
@@ -308,18 +646,170 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
     {
         synchronized ( lock )
         {
+            Dn dn = null;
+
+            if ( isJournaling() )
+            {
+                dn = buildEntryDn( partitionTxn, id );
+            }
+
             Entry deletedEntry = super.delete( partitionTxn, id );
-            dirty = true;
-            rewritePartitionData( partitionTxn );
+
+            if ( dn != null )
+            {
+                LdifEntry change = new LdifEntry();
+                change.setChangeType( ChangeType.Delete );
+                change.setDn( dn );
+                appendJournal( change );
+            }
+            else
+            {
+                dirty = true;
+                rewritePartitionData( partitionTxn );
+            }
 
             return deletedEntry;
         }
     }
 
 
+    /**
+     * @return <tt>true</tt> if the changes are appended to the journal
+     */
+    private boolean isJournaling()
+    {
+        return ( journalFile != null ) && enableRewriting;
+    }
+
+
+    /**
+     * Appends a change to the journal, and requests a compaction if the journal has
+     * grown too big.
+     *
+     * @param change the change to append
+     * @throws LdapException If the change can't be written
+     */
+    private void appendJournal( LdifEntry change ) throws LdapException
+    {
+        synchronized ( lock )
+        {
+            try
+            {
+                byte[] data = Strings.getBytesUtf8( LdifUtils.convertToLdif( change ) + "\n" );
+                journalFile.write( data );
+                journalSize += data.length;
+            }
+            catch ( IOException ioe )
+            {
+                throw new LdapOtherException( ioe.getMessage(), ioe );
+            }
+
+            if ( ( journalSize >= journalMaxSize ) && compactionScheduled.compareAndSet( false, true ) )
+            {
+                compactor.execute( new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        compact();
+                    }
+                } );
+            }
+        }
+    }
+
+
+    /**
+     * Appends the operational attributes modified by a rename or a move to the journal, as
+     * the replay of the rename or move does not update them.
+     *
+     * @param dn the entry's new Dn
+     * @param modifiedEntry the modified entry, if any
+     * @throws LdapException If the change can't be written
+     */
+    private void appendOperationalAttributes( Dn dn, Entry modifiedEntry ) throws LdapException
+    {
+        if ( modifiedEntry == null )
+        {
+            return;
+        }
+
+        LdifEntry change = new LdifEntry();
+        change.setChangeType( ChangeType.Modify );
+        change.setDn( dn );
+
+        for ( String attributeType : new String[]
+            { SchemaConstants.ENTRY_CSN_AT, SchemaConstants.MODIFIERS_NAME_AT, SchemaConstants.MODIFY_TIMESTAMP_AT } )
+        {
+            Attribute attribute = modifiedEntry.get( attributeType );
+
+            if ( attribute != null )
+            {
+                change.addModification( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
+                    attribute ) );
+            }
+        }
+
+        if ( !change.getModifications().isEmpty() )
+        {
+            appendJournal( change );
+        }
+    }
+
+
+    /**
+     * Merges the journal into a new LDIF file.
+     */
+    private void compact()
+    {
+        compactionScheduled.set( false );
+
+        synchronized ( lock )
+        {
+            if ( ( journalFile == null ) || ( journalSize == 0 ) )
+            {
+                return;
+            }
+
+            LOG.debug( "Compacting {} bytes of changes from the {} journal", journalSize, journalPath );
+
+            try ( PartitionTxn partitionTxn = beginReadTransaction() )
+            {
+                dirty = true;
+                rewritePartitionData( partitionTxn );
+            }
+            catch ( LdapException | IOException e )
+            {
+                LOG.error( "Failed to compact the {} journal", journalPath, e );
+            }
+        }
+    }
+
+
+    /**
+     * Empties the journal, writing the current generation at its beginning.
+     */
+    private void resetJournal() throws IOException
+    {
+        if ( journalFile == null )
+        {
+            return;
+        }
+
+        journalFile.setLength( 0 );
+        journalFile.write( Strings.getBytesUtf8( GENERATION_HEADER + generation + "\n" ) );
+        journalSize = 0L;
+    }
+
+
     /**
      * writes the partition's data to the file if {@link #enableRewriting} is set to true
-     * and partition was modified since the last write or {@link #dirty} data. 
+     * and partition was modified since the last write or {@link #dirty} data.
+     * <br>
+     * The data are written in a temporary file, which is synced and then renamed over the
+     * LDIF file : a crash during the rewrite leaves the previous LDIF file, and its journal,
+     * untouched. The generation is only bumped and the journal only reset once the new LDIF
+     * file is in place.
      * 
      * @throws LdapException
      */
@@ -332,49 +822,95 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
                 return;
             }
 
+            File partitionFile = new File( getPartitionPath() );
+            File tmpFile = new File( partitionFile.getPath() + TMP_EXTENSION );
+
+            // The changes stored in the journal are now part of the LDIF file
+            long newGeneration = ( journalFile != null ) ? generation + 1 : generation;
+
             try
             {
-                ldifFile.setLength( 0 ); // wipe the file clean
+                try ( FileOutputStream fos = new FileOutputStream( tmpFile );
+                    OutputStream out = new BufferedOutputStream( fos ) )
+                {
+                    if ( journalFile != null )
+                    {
+                        out.write( Strings.getBytesUtf8( GENERATION_HEADER + newGeneration + "\n" ) );
+                    }
 
-                String suffixId = getEntryId( partitionTxn, suffixDn );
+                    String suffixId = getEntryId( partitionTxn, suffixDn );
 
-                if ( suffixId == null )
-                {
-                    contextEntry = null;
-                    return;
-                }
+                    if ( suffixId == null )
+                    {
+                        contextEntry = null;
+                    }
+                    else
+                    {
+                        ParentIdAndRdn suffixEntry = rdnIdx.reverseLookup( partitionTxn, suffixId );
 
-                ParentIdAndRdn suffixEntry = rdnIdx.reverseLookup( partitionTxn, suffixId );
+                        if ( suffixEntry != null )
+                        {
+                            Entry entry = master.get( partitionTxn, suffixId );
 
-                if ( suffixEntry != null )
-                {
-                    Entry entry = master.get( partitionTxn, suffixId );
+                            // Don't write the EntryDN attribute
+                            entry.removeAttributes( entryDnAT );
 
-                    // Don't write the EntryDN attribute
-                    entry.removeAttributes( entryDnAT );
+                            entry.setDn( suffixDn );
 
-                    entry.setDn( suffixDn );
+                            appendLdif( out, entry );
 
-                    appendLdif( entry );
+                            appendRecursive( partitionTxn, out, suffixId, suffixEntry.getNbChildren() );
+                        }
+                    }
 
-                    appendRecursive( partitionTxn, suffixId, suffixEntry.getNbChildren() );
+                    out.flush();
+                    fos.getFD().sync();
                 }
 
+                ldifFile.close();
+
+                try
+                {
+                    Files.move( tmpFile.toPath(), partitionFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE );
+                }
+                finally
+                {
+                    ldifFile = new RandomAccessFile( partitionFile, "rws" );
+                }
+
+                generation = newGeneration;
+                resetJournal();
                 dirty = false;
             }
             catch ( LdapException e )
             {
+                deleteTmpFile( tmpFile );
                 throw e;
             }
             catch ( Exception e )
             {
+                deleteTmpFile( tmpFile );
                 throw new LdapException( e );
             }
         }
     }
 
 
-    private void appendRecursive( PartitionTxn partitionTxn, String id, int nbSibbling ) throws Exception
+    /**
+     * Deletes the temporary file left by a failed or interrupted rewrite.
+     */
+    private void deleteTmpFile( File tmpFile )
+    {
+        if ( tmpFile.exists() && !tmpFile.delete() )
+        {
+            LOG.warn( "Unable to delete the {} file", tmpFile );
+        }
+    }
+
+
+    private void appendRecursive( PartitionTxn partitionTxn, OutputStream out, String id, int nbSibbling )
+        throws Exception
     {
         // Start with the root
         Cursor<IndexEntry<ParentIdAndRdn, String>> cursor = rdnIdx.forwardCursor( partitionTxn );
@@ -393,7 +929,7 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
             // Remove the EntryDn
             entry.removeAttributes( SchemaConstants.ENTRY_DN_AT );
 
-            appendLdif( entry );
+            appendLdif( out, entry );
 
             countChildren++;
 
@@ -402,7 +938,7 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
 
             if ( nbChildren > 0 )
             {
-                appendRecursive( partitionTxn, childId, nbChildren );
+                appendRecursive( partitionTxn, out, childId, nbChildren );
             }
         }
 
@@ -411,18 +947,16 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
 
 
     /**
-     * append data to the LDIF file
+     * append data to the rewritten LDIF file
      *
+     * @param out the stream writing the new LDIF file
      * @param entry the entry to be written
      * @throws LdapException
      */
-    private void appendLdif( Entry entry ) throws IOException
+    private void appendLdif( OutputStream out, Entry entry ) throws IOException
     {
-        synchronized ( lock )
-        {
-            String ldif = LdifUtils.convertToLdif( entry );
-            ldifFile.write( Strings.getBytesUtf8( ldif + "\n" ) );
-        }
+        String ldif = LdifUtils.convertToLdif( entry );
+        out.write( Strings.getBytesUtf8( ldif + "\n" ) );
     }
 
     /**
@@ -432,6 +966,9 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
     {
         private long len;
 
+        /** The file being read */
+        private RandomAccessFile file = ldifFile;
+
 
         RandomAccessLdifReader() throws LdapException
         {
@@ -468,6 +1005,22 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
         }
 
 
+        RandomAccessLdifReader( RandomAccessFile file, SchemaManager schemaManager ) throws LdapException
+        {
+            try
+            {
+                this.schemaManager = schemaManager;
+                this.file = file;
+                len = file.length();
+                super.init();
+            }
+            catch ( IOException e )
+            {
+                throw new LdapOtherException( e.getMessage(), e );
+            }
+        }
+
+
         @Override
         protected String getLine() throws IOException
         {
@@ -476,7 +1029,7 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
                 return null;
             }
 
-            return ldifFile.readLine();
+            return file.readLine();
         }
     }
 
@@ -505,11 +1058,31 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
     @Override
     protected void doDestroy( PartitionTxn partitionTxn ) throws LdapException
     {
+        if ( compactor != null )
+        {
+            compactor.shutdownNow();
+        }
+
+        synchronized ( lock )
+        {
+            if ( ( journalFile != null ) && ( journalSize > 0 ) )
+            {
+                // Leave a clean LDIF file
+                dirty = true;
+                rewritePartitionData( partitionTxn );
+            }
+        }
+
         super.doDestroy( partitionTxn );
         
         try
         {
             ldifFile.close();
+
+            if ( journalFile != null )
+            {
+                journalFile.close();
+            }
         }
         catch ( IOException ioe )
         {
@@ -533,4 +1106,66 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
         // save data if found dirty 
         rewritePartitionData( partitionTxn );
     }
+
+
+    /**
+     * @return <tt>true</tt> if the changes are appended to a journal instead of rewriting the LDIF file
+     */
+    public boolean isJournalMode()
+    {
+        return journalMode;
+    }
+
+
+    /**
+     * Enables the journal mode, in which the changes are appended to a journal instead of
+     * rewriting the whole LDIF file. Must be set before the partition is initialized.
+     *
+     * @param journalMode <tt>true</tt> to enable the journal mode
+     */
+    public void setJournalMode( boolean journalMode )
+    {
+        checkInitialized( "journalMode" );
+        this.journalMode = journalMode;
+    }
+
+
+    /**
+     * @return the journal size triggering a compaction, in bytes
+     */
+    public long getJournalMaxSize()
+    {
+        return journalMaxSize;
+    }
+
+
+    /**
+     * @param journalMaxSize the journal size triggering a compaction, in bytes
+     */
+    public void setJournalMaxSize( long journalMaxSize )
+    {
+        this.journalMaxSize = journalMaxSize > 0 ? journalMaxSize : DEFAULT_JOURNAL_MAX_SIZE;
+    }
+
+
+    /**
+     * @return the delay between two periodic compactions of the journal, in milliseconds
+     */
+    public long getCompactionInterval()
+    {
+        return compactionInterval;
+    }
+
+
+    /**
+     * Sets the delay between two periodic compactions of the journal. Must be set before
+     * the partition is initialized.
+     *
+     * @param compactionInterval the delay, in milliseconds. 0 disables the periodic compactions
+     */
+    public void setCompactionInterval( long compactionInterval )
+    {
+        checkInitialized( "compactionInterval" );
+        this.compactionInterval = compactionInterval;
+    }
 }
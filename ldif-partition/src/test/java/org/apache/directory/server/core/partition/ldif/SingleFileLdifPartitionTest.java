@@ -228,6 +228,22 @@ public class SingleFileLdifPartitionTest
      * @throws Exception
      */
     private SingleFileLdifPartition createPartition( String fileName, boolean truncate ) throws Exception
+    {
+        return createPartition( fileName, truncate, false );
+    }
+
+
+    /**
+     * creates a partition from the given ldif file, with or without the journal mode
+     *
+     * @param fileName the full path to the ldif file to be loaded
+     * @param truncate the flag to determine to truncate the file or not
+     * @param journalMode the flag enabling the journal mode
+     * @return the ldif partition after loading all the data
+     * @throws Exception
+     */
+    private SingleFileLdifPartition createPartition( String fileName, boolean truncate, boolean journalMode )
+        throws Exception
     {
         if ( fileName == null )
         {
@@ -248,6 +264,7 @@ public class SingleFileLdifPartitionTest
         partition.setSuffixDn( new Dn( schemaManager, "ou=test,ou=system" ) );
         partition.setSchemaManager( schemaManager );
         partition.setCacheService( cacheService );
+        partition.setJournalMode( journalMode );
         partition.initialize();
 
         return partition;
@@ -1135,6 +1152,173 @@ public class SingleFileLdifPartitionTest
     }
 
 
+    @Test
+    public void testJournalMode() throws Exception
+    {
+        SingleFileLdifPartition partition = createPartition( null, true, true );
+        AddOperationContext addCtx = new AddOperationContext( mockSession );
+        addCtx.setEntry( contextEntry );
+        addCtx.setPartition( partition );
+        addCtx.setTransaction( partition.beginWriteTransaction() );
+
+        partition.add( addCtx );
+
+        Entry childEntry1 = createEntry( "cn=child1,ou=test,ou=system" );
+        childEntry1.put( "ObjectClass", "top", "person" );
+        childEntry1.put( "cn", "child1" );
+        childEntry1.put( "sn", "child1" );
+        addCtx.setEntry( childEntry1 );
+
+        partition.add( addCtx );
+
+        Entry childEntry2 = createEntry( "cn=child2,ou=test,ou=system" );
+        childEntry2.put( "ObjectClass", "top", "person" );
+        childEntry2.put( "cn", "child2" );
+        childEntry2.put( "sn", "child2" );
+        addCtx.setEntry( childEntry2 );
+
+        partition.add( addCtx );
+
+        Entry grandChild11 = createEntry( "cn=grandChild11,cn=child1,ou=test,ou=system" );
+        grandChild11.put( "ObjectClass", "top", "person" );
+        grandChild11.put( "cn", "grandChild11" );
+        grandChild11.put( "sn", "grandChild11" );
+        addCtx.setEntry( grandChild11 );
+
+        partition.add( addCtx );
+
+        // The changes are only written in the journal
+        File journal = new File( ldifFileInUse.getAbsolutePath() + ".journal" );
+        assertEquals( 0, ldifFileInUse.length() );
+        assertTrue( journal.length() > 0 );
+
+        ModifyOperationContext modOpCtx = new ModifyOperationContext( mockSession );
+
+        List<Modification> modItems = new ArrayList<Modification>();
+
+        Attribute attribute = new DefaultAttribute( schemaManager.lookupAttributeTypeRegistry( "description" ) );
+        attribute.add( "modified" );
+        modItems.add( new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, attribute ) );
+
+        modOpCtx.setModItems( modItems );
+        modOpCtx.setDn( childEntry2.getDn() );
+        modOpCtx.setPartition( partition );
+        modOpCtx.setTransaction( partition.beginWriteTransaction() );
+
+        partition.modify( modOpCtx );
+
+        Rdn newRdn = new Rdn( SchemaConstants.CN_AT + "=" + "renamedChild1" );
+        RenameOperationContext renameOpCtx = new RenameOperationContext( mockSession, childEntry1.getDn(), newRdn,
+            true );
+        renameOpCtx.setPartition( partition );
+        renameOpCtx.setTransaction( partition.beginWriteTransaction() );
+
+        partition.rename( renameOpCtx );
+
+        MoveOperationContext moveOpCtx = new MoveOperationContext( mockSession, new Dn( schemaManager,
+            "cn=grandChild11,cn=renamedChild1,ou=test,ou=system" ), childEntry2.getDn() );
+        moveOpCtx.setPartition( partition );
+        moveOpCtx.setTransaction( partition.beginWriteTransaction() );
+
+        partition.move( moveOpCtx );
+
+        Entry childEntry3 = createEntry( "cn=child3,ou=test,ou=system" );
+        childEntry3.put( "ObjectClass", "top", "person" );
+        childEntry3.put( "cn", "child3" );
+        childEntry3.put( "sn", "child3" );
+        addCtx.setEntry( childEntry3 );
+
+        partition.add( addCtx );
+
+        PartitionTxn partitionTxn = partition.beginWriteTransaction();
+        partition.delete( partitionTxn, partition.getEntryId( partitionTxn, childEntry3.getDn() ) );
+
+        // Replay the journal
+        partition = createPartition( ldifFileInUse.getAbsolutePath(), false, true );
+        assertExists( partition, contextEntry );
+        assertExists( partition, "cn=renamedChild1,ou=test,ou=system" );
+        assertExists( partition, "cn=grandChild11,cn=child2,ou=test,ou=system" );
+        assertNotExists( partition, childEntry1 );
+        assertNotExists( partition, grandChild11 );
+        assertNotExists( partition, childEntry3 );
+
+        Entry modified = partition.fetch( partition.beginReadTransaction(),
+            partition.getEntryId( partition.beginReadTransaction(), childEntry2.getDn() ) );
+        assertTrue( modified.contains( "description", "modified" ) );
+
+        // Disabling the journal mode merges the journal into the LDIF file
+        partition = reloadPartition();
+        assertFalse( journal.exists() );
+        assertTrue( ldifFileInUse.length() > 0 );
+        assertExists( partition, "cn=renamedChild1,ou=test,ou=system" );
+        assertExists( partition, "cn=grandChild11,cn=child2,ou=test,ou=system" );
+        assertNotExists( partition, childEntry3 );
+    }
+
+
+    @Test
+    public void testCrashDuringCompaction() throws Exception
+    {
+        SingleFileLdifPartition partition = createPartition( null, true, true );
+        AddOperationContext addCtx = new AddOperationContext( mockSession );
+        addCtx.setEntry( contextEntry );
+        addCtx.setPartition( partition );
+        addCtx.setTransaction( partition.beginWriteTransaction() );
+
+        partition.add( addCtx );
+
+        Entry childEntry1 = createEntry( "cn=child1,ou=test,ou=system" );
+        childEntry1.put( "ObjectClass", "top", "person" );
+        childEntry1.put( "cn", "child1" );
+        childEntry1.put( "sn", "child1" );
+        addCtx.setEntry( childEntry1 );
+
+        partition.add( addCtx );
+
+        File journal = new File( ldifFileInUse.getAbsolutePath() + ".journal" );
+        long journalLength = journal.length();
+        File tmpFile = new File( ldifFileInUse.getAbsolutePath() + ".tmp" );
+
+        // The new LDIF file can't be written : the compaction fails
+        assertTrue( tmpFile.mkdir() );
+
+        try
+        {
+            partition.destroy( partition.beginWriteTransaction() );
+            fail();
+        }
+        catch ( LdapException le )
+        {
+            // Expected
+        }
+
+        // The LDIF file and the journal are left untouched
+        assertEquals( 0, ldifFileInUse.length() );
+        assertEquals( journalLength, journal.length() );
+        assertTrue( tmpFile.delete() );
+
+        // A crash in the middle of the compaction leaves a truncated new LDIF file
+        RandomAccessFile truncated = new RandomAccessFile( tmpFile, "rws" );
+        truncated.write( Strings.getBytesUtf8( "# generation: 1\ndn: ou=test,ou=sys" ) );
+        truncated.close();
+
+        // The journal is replayed on the untouched LDIF file
+        partition = createPartition( ldifFileInUse.getAbsolutePath(), false, true );
+        assertFalse( tmpFile.exists() );
+        assertExists( partition, contextEntry );
+        assertExists( partition, childEntry1 );
+
+        // A successful compaction replaces the LDIF file
+        partition.destroy( partition.beginWriteTransaction() );
+        assertFalse( tmpFile.exists() );
+        assertTrue( ldifFileInUse.length() > 0 );
+
+        partition = createPartition( ldifFileInUse.getAbsolutePath(), false, true );
+        assertExists( partition, contextEntry );
+        assertExists( partition, childEntry1 );
+    }
+
+
     /**
      * An important test to check the stability of the partition
      * under high concurrency
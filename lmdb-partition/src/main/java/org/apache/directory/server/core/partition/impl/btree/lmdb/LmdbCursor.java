@@ -0,0 +1,607 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.directory.api.ldap.model.cursor.AbstractCursor;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.cursor.InvalidCursorPositionException;
+import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.lmdbjava.GetOp;
+import org.lmdbjava.LmdbException;
+import org.lmdbjava.SeekOp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Cursor over the Tuples of a LMDB table. If the table allows duplicate values,
+ * we will browse each value and return a Tuple for each one of them. The cursor
+ * can also be restricted to the values of a single key.
+ * <br>
+ * The cursor reads a snapshot of the table, which is released when the cursor
+ * is closed.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class LmdbCursor<K, V> extends AbstractCursor<Tuple<K, V>>
+{
+    /** A dedicated log for cursors */
+    private static final Logger LOG_CURSOR = LoggerFactory.getLogger( "CURSOR" );
+
+    /** The possible positions of the cursor */
+    private enum Position
+    {
+        /** Before the first element */
+        BEFORE_FIRST,
+
+        /** After the last element */
+        AFTER_LAST,
+
+        /** On the current element, which has been returned */
+        ON,
+
+        /** Before the current element of the LMDB cursor, which has not been returned yet */
+        BEFORE_CURRENT,
+
+        /** After the current element of the LMDB cursor, which has not been returned yet */
+        AFTER_CURRENT
+    }
+
+    /** The table we are building a cursor over */
+    private final LmdbTable<K, V> table;
+
+    /** The snapshot of the table */
+    private final LmdbSnapshot snapshot;
+
+    /** The key the cursor is restricted to, if any */
+    private final K fixedKey;
+
+    /** The LMDB cursor, created on the first move */
+    private org.lmdbjava.Cursor<ByteBuffer> browser;
+
+    /** The cursor position */
+    private Position position = Position.BEFORE_FIRST;
+
+    /** The tuple which will be returned */
+    private Tuple<K, V> returnedTuple = new Tuple<>();
+
+
+    /**
+     * Creates a Cursor over all the tuples of a LMDB table.
+     *
+     * @param table the LMDB Table to build a Cursor over
+     * @param snapshot the snapshot to read
+     */
+    LmdbCursor( LmdbTable<K, V> table, LmdbSnapshot snapshot )
+    {
+        this( table, snapshot, null );
+    }
+
+
+    /**
+     * Creates a Cursor over the tuples of a single key of a LMDB table.
+     *
+     * @param table the LMDB Table to build a Cursor over
+     * @param snapshot the snapshot to read
+     * @param fixedKey the key to browse, or null to browse all the keys
+     */
+    LmdbCursor( LmdbTable<K, V> table, LmdbSnapshot snapshot, K fixedKey )
+    {
+        LOG_CURSOR.debug( "Creating LmdbCursor {}", this );
+        this.table = table;
+        this.snapshot = snapshot;
+        this.fixedKey = fixedKey;
+    }
+
+
+    /**
+     * @return The LMDB cursor, opening it if needed
+     */
+    private org.lmdbjava.Cursor<ByteBuffer> getBrowser()
+    {
+        if ( browser == null )
+        {
+            browser = table.getDbi().openCursor( snapshot.getTxn() );
+        }
+
+        return browser;
+    }
+
+
+    /**
+     * Cleanup the returned tuple before reusing it.
+     */
+    private void clearValue()
+    {
+        returnedTuple.setKey( null );
+        returnedTuple.setValue( null );
+    }
+
+
+    /**
+     * Moves the LMDB cursor on the first value of the fixed key
+     */
+    private boolean seekFixedKey() throws LdapException
+    {
+        return getBrowser().get( table.keyBuffer( fixedKey ), GetOp.MDB_SET_KEY );
+    }
+
+
+    /**
+     * Moves the LMDB cursor on the first value of a key greater or equal to the given
+     * value, tells if it's on the given value.
+     */
+    private boolean seekValue( K key, V value ) throws LdapException
+    {
+        ByteBuffer keyBuffer = table.keyBuffer( key );
+
+        return getBrowser().get( keyBuffer, table.valueBuffer( value ), SeekOp.MDB_GET_BOTH_RANGE );
+    }
+
+
+    /**
+     * Tells if the LMDB cursor is on a given value
+     */
+    private boolean isOnValue( V value ) throws LdapException
+    {
+        return LmdbTable.compareBytes( browser.val(), table.valueBuffer( value ) ) == 0;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean available()
+    {
+        return position == Position.ON;
+    }
+
+
+    /**
+     * Sets the position before a given key and value. The value is ignored if it's
+     * null, or if the table does not allow duplicate values.
+     *
+     * @param key The key we want to start with
+     * @param value The value we want to start with, may be null
+     * @throws CursorException If the cursor can't be moved
+     */
+    private void beforeTuple( K key, V value ) throws LdapException, CursorException
+    {
+        checkNotClosed();
+        clearValue();
+
+        try
+        {
+            if ( fixedKey != null )
+            {
+                if ( value == null )
+                {
+                    position = Position.BEFORE_FIRST;
+                }
+                else
+                {
+                    position = seekValue( fixedKey, value ) ? Position.BEFORE_CURRENT : Position.AFTER_LAST;
+                }
+
+                return;
+            }
+
+            if ( ( value != null ) && table.isDupsEnabled() && seekValue( key, value ) )
+            {
+                position = Position.BEFORE_CURRENT;
+
+                return;
+            }
+
+            if ( !getBrowser().get( table.keyBuffer( key ), GetOp.MDB_SET_RANGE ) )
+            {
+                position = Position.AFTER_LAST;
+            }
+            else if ( ( value != null ) && table.isDupsEnabled() && table.isKey( browser.key(), key ) )
+            {
+                // All the values of the key are lower than the given value
+                position = browser.seek( SeekOp.MDB_NEXT_NODUP ) ? Position.BEFORE_CURRENT : Position.AFTER_LAST;
+            }
+            else
+            {
+                position = Position.BEFORE_CURRENT;
+            }
+        }
+        catch ( LmdbException le )
+        {
+            throw new CursorException( le );
+        }
+    }
+
+
+    /**
+     * Sets the position after a given key and value. The value is ignored if it's
+     * null, or if the table does not allow duplicate values.
+     *
+     * @param key The key we want to start with
+     * @param value The value we want to start with, may be null
+     * @throws CursorException If the cursor can't be moved
+     */
+    private void afterTuple( K key, V value ) throws LdapException, CursorException
+    {
+        checkNotClosed();
+        clearValue();
+
+        try
+        {
+            if ( fixedKey != null )
+            {
+                if ( value == null )
+                {
+                    position = Position.AFTER_LAST;
+                }
+                else if ( seekValue( fixedKey, value ) )
+                {
+                    position = isOnValue( value ) ? Position.AFTER_CURRENT : Position.BEFORE_CURRENT;
+                }
+                else
+                {
+                    position = Position.AFTER_LAST;
+                }
+
+                return;
+            }
+
+            if ( ( value != null ) && table.isDupsEnabled() && seekValue( key, value ) )
+            {
+                position = isOnValue( value ) ? Position.AFTER_CURRENT : Position.BEFORE_CURRENT;
+
+                return;
+            }
+
+            if ( !getBrowser().get( table.keyBuffer( key ), GetOp.MDB_SET_RANGE ) )
+            {
+                position = Position.AFTER_LAST;
+            }
+            else if ( table.isKey( browser.key(), key ) )
+            {
+                if ( table.isDupsEnabled() )
+                {
+                    browser.seek( SeekOp.MDB_LAST_DUP );
+                }
+
+                position = Position.AFTER_CURRENT;
+            }
+            else
+            {
+                position = Position.BEFORE_CURRENT;
+            }
+        }
+        catch ( LmdbException le )
+        {
+            throw new CursorException( le );
+        }
+    }
+
+
+    /**
+     * Sets the position before a given key
+     * @param key The key we want to start with
+     * @throws LdapException If the key can't be serialized
+     * @throws CursorException If the cursor can't be moved
+     */
+    public void beforeKey( K key ) throws LdapException, CursorException
+    {
+        beforeTuple( key, null );
+    }
+
+
+    /**
+     * Sets the position after a given key
+     * @param key The key we want to start with
+     * @throws LdapException If the key can't be serialized
+     * @throws CursorException If the cursor can't be moved
+     */
+    public void afterKey( K key ) throws LdapException, CursorException
+    {
+        afterTuple( key, null );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void before( Tuple<K, V> element ) throws LdapException, CursorException
+    {
+        beforeTuple( element.getKey(), element.getValue() );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void after( Tuple<K, V> element ) throws LdapException, CursorException
+    {
+        afterTuple( element.getKey(), element.getValue() );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void beforeFirst() throws LdapException, CursorException
+    {
+        checkNotClosed();
+        clearValue();
+        position = Position.BEFORE_FIRST;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterLast() throws LdapException, CursorException
+    {
+        checkNotClosed();
+        clearValue();
+        position = Position.AFTER_LAST;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean first() throws LdapException, CursorException
+    {
+        beforeFirst();
+
+        return next();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean last() throws LdapException, CursorException
+    {
+        afterLast();
+
+        return previous();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean previous() throws LdapException, CursorException
+    {
+        checkNotClosed();
+
+        try
+        {
+            boolean found;
+
+            switch ( position )
+            {
+                case BEFORE_FIRST:
+                    return false;
+
+                case AFTER_LAST:
+                    if ( fixedKey != null )
+                    {
+                        found = seekFixedKey() && getBrowser().seek( SeekOp.MDB_LAST_DUP );
+                    }
+                    else
+                    {
+                        found = getBrowser().last();
+                    }
+
+                    break;
+
+                case AFTER_CURRENT:
+                    found = true;
+                    break;
+
+                default:
+                    if ( fixedKey != null )
+                    {
+                        found = browser.seek( SeekOp.MDB_PREV_DUP );
+                    }
+                    else
+                    {
+                        found = browser.prev();
+                    }
+
+                    break;
+            }
+
+            return setTuple( found, Position.BEFORE_FIRST );
+        }
+        catch ( LmdbException le )
+        {
+            throw new CursorException( le );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean next() throws LdapException, CursorException
+    {
+        checkNotClosed();
+
+        try
+        {
+            boolean found;
+
+            switch ( position )
+            {
+                case AFTER_LAST:
+                    return false;
+
+                case BEFORE_FIRST:
+                    if ( fixedKey != null )
+                    {
+                        found = seekFixedKey();
+                    }
+                    else
+                    {
+                        found = getBrowser().first();
+                    }
+
+                    break;
+
+                case BEFORE_CURRENT:
+                    found = true;
+                    break;
+
+                default:
+                    if ( fixedKey != null )
+                    {
+                        found = browser.seek( SeekOp.MDB_NEXT_DUP );
+                    }
+                    else
+                    {
+                        found = browser.next();
+                    }
+
+                    break;
+            }
+
+            return setTuple( found, Position.AFTER_LAST );
+        }
+        catch ( LmdbException le )
+        {
+            throw new CursorException( le );
+        }
+    }
+
+
+    /**
+     * Reads the tuple the LMDB cursor is on, if it has been moved on an element
+     */
+    private boolean setTuple( boolean found, Position notFoundPosition ) throws LdapException
+    {
+        if ( !found )
+        {
+            clearValue();
+            position = notFoundPosition;
+
+            return false;
+        }
+
+        if ( fixedKey != null )
+        {
+            returnedTuple.setKey( fixedKey );
+        }
+        else
+        {
+            returnedTuple.setKey( table.readKey( browser.key() ) );
+        }
+
+        returnedTuple.setValue( table.readValue( browser.val() ) );
+        position = Position.ON;
+
+        return true;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Tuple<K, V> get() throws CursorException
+    {
+        checkNotClosed();
+
+        if ( position == Position.ON )
+        {
+            return returnedTuple;
+        }
+
+        throw new InvalidCursorPositionException();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+        LOG_CURSOR.debug( "Closing LmdbCursor {}", this );
+
+        if ( !isClosed() )
+        {
+            super.close();
+            closeBrowser();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close( Exception cause ) throws IOException
+    {
+        LOG_CURSOR.debug( "Closing LmdbCursor {}", this );
+
+        if ( !isClosed() )
+        {
+            super.close( cause );
+            closeBrowser();
+        }
+    }
+
+
+    /**
+     * Close the LMDB cursor, and release the snapshot
+     */
+    private void closeBrowser()
+    {
+        try
+        {
+            if ( browser != null )
+            {
+                browser.close();
+            }
+        }
+        catch ( LmdbException le )
+        {
+            // The write transaction has already been committed, which has closed the cursor
+            LOG_CURSOR.debug( "The LMDB cursor has already been closed : {}", le.getMessage() );
+        }
+        finally
+        {
+            snapshot.release();
+        }
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import java.io.File;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.DbiFlags;
+import org.lmdbjava.Env;
+import org.lmdbjava.EnvFlags;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The LMDB environment of a partition : the memory mapped file containing the
+ * master table and all the indexes, and the transactions reading and writing it.
+ * It plays the same role as the RecordManager for the JDBM partition.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LmdbEnvironment
+{
+    /** static logger */
+    private static final Logger LOG = LoggerFactory.getLogger( LmdbEnvironment.class );
+
+    /** The default maximum size of the database, 1 GB */
+    public static final long DEFAULT_MAP_SIZE = 1024L * 1024L * 1024L;
+
+    /** The default maximum number of concurrent read transactions */
+    public static final int DEFAULT_MAX_READERS = 512;
+
+    /** The maximum number of databases (the master table and two per index) */
+    private static final int MAX_DBS = 512;
+
+    /** The LMDB environment */
+    private final Env<ByteBuffer> env;
+
+    /** The write transaction each thread is currently running */
+    private final ThreadLocal<LmdbPartitionWriteTxn> activeWriteTxn = new ThreadLocal<>();
+
+    /** The read transactions not yet closed, tracked so that the leaked ones can be released */
+    private final Map<LmdbSnapshot, SnapshotReference> openSnapshots = new ConcurrentHashMap<>();
+
+    /** The read transactions which have been garbage collected without having been closed */
+    private final ReferenceQueue<LmdbPartitionReadTxn> leakedReadTxns = new ReferenceQueue<>();
+
+
+    /**
+     * A weak reference on a read transaction, used to release its snapshot when the
+     * transaction is garbage collected without having been closed.
+     */
+    private static class SnapshotReference extends WeakReference<LmdbPartitionReadTxn>
+    {
+        /** The snapshot to release */
+        private final LmdbSnapshot snapshot;
+
+
+        SnapshotReference( LmdbPartitionReadTxn readTxn, ReferenceQueue<LmdbPartitionReadTxn> queue )
+        {
+            super( readTxn, queue );
+            this.snapshot = readTxn.getSnapshot();
+        }
+    }
+
+
+    /**
+     * Opens the LMDB environment stored in a directory, creating it if needed.
+     *
+     * @param directory The directory containing the database files
+     * @param mapSize The maximum size of the database
+     * @param maxReaders The maximum number of concurrent read transactions
+     * @param syncOnWrite If the data should be flushed on disk on each commit
+     */
+    public LmdbEnvironment( File directory, long mapSize, int maxReaders, boolean syncOnWrite )
+    {
+        List<EnvFlags> flags = new ArrayList<>();
+
+        // The read transactions are not tied to a thread : a search cursor may be
+        // consumed by another thread than the one which created it
+        flags.add( EnvFlags.MDB_NOTLS );
+
+        if ( !syncOnWrite )
+        {
+            // The data will be flushed by the sync() calls
+            flags.add( EnvFlags.MDB_NOSYNC );
+        }
+
+        env = Env.create()
+            .setMapSize( mapSize )
+            .setMaxDbs( MAX_DBS )
+            .setMaxReaders( maxReaders )
+            .open( directory, flags.toArray( new EnvFlags[flags.size()] ) );
+
+        LOG.debug( "Opened the LMDB environment in {}", directory );
+    }
+
+
+    /**
+     * Opens a database, creating it if needed.
+     *
+     * @param name The database name
+     * @param comparator The comparator ordering the keys, or null to order them byte per byte
+     * @param allowDuplicates If the database can store more than one value per key
+     * @return The database handle
+     */
+    Dbi<ByteBuffer> openDbi( String name, Comparator<ByteBuffer> comparator, boolean allowDuplicates )
+    {
+        DbiFlags[] flags;
+
+        if ( allowDuplicates )
+        {
+            flags = new DbiFlags[]
+                { DbiFlags.MDB_CREATE, DbiFlags.MDB_DUPSORT };
+        }
+        else
+        {
+            flags = new DbiFlags[]
+                { DbiFlags.MDB_CREATE };
+        }
+
+        if ( comparator == null )
+        {
+            return env.openDbi( name, flags );
+        }
+        else
+        {
+            // The comparator must be called back by LMDB itself to order the keys
+            return env.openDbi( name, comparator, true, flags );
+        }
+    }
+
+
+    /**
+     * Tells if a database exists in the environment
+     *
+     * @param name The database name
+     * @return <tt>true</tt> if the database has already been created
+     */
+    public boolean hasDbi( String name )
+    {
+        byte[] nameBytes = Strings.getBytesUtf8( name );
+
+        for ( byte[] dbiName : env.getDbiNames() )
+        {
+            if ( Arrays.equals( nameBytes, dbiName ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * @return The maximum size of a key, or of a value in a database allowing duplicates
+     */
+    int getMaxKeySize()
+    {
+        return env.getMaxKeySize();
+    }
+
+
+    /**
+     * Starts a read transaction, reading the last committed version of the database.
+     *
+     * @return The read transaction
+     */
+    public LmdbPartitionReadTxn beginReadTransaction()
+    {
+        releaseLeakedSnapshots();
+
+        LmdbPartitionReadTxn readTxn = new LmdbPartitionReadTxn( this, new LmdbSnapshot( env.txnRead(), true ) );
+        openSnapshots.put( readTxn.getSnapshot(), new SnapshotReference( readTxn, leakedReadTxns ) );
+
+        return readTxn;
+    }
+
+
+    /**
+     * Starts a write transaction. If the current thread is already running one, the
+     * returned transaction joins it.
+     *
+     * @return The write transaction
+     */
+    public LmdbPartitionWriteTxn beginWriteTransaction()
+    {
+        LmdbPartitionWriteTxn current = activeWriteTxn.get();
+
+        if ( current != null )
+        {
+            return new LmdbPartitionWriteTxn( this, current.getTxn(), current );
+        }
+
+        LmdbPartitionWriteTxn writeTxn = new LmdbPartitionWriteTxn( this, env.txnWrite(), null );
+        activeWriteTxn.set( writeTxn );
+
+        return writeTxn;
+    }
+
+
+    /**
+     * Gets a snapshot to read the database with. The partition transaction's own snapshot is
+     * used when there is one; the write transaction is read when the partition transaction,
+     * or the current thread, is writing, so that the pending changes are visible. Otherwise
+     * a new read transaction is started. The snapshot must be released once read.
+     *
+     * @param partitionTxn The partition transaction, may be null
+     * @return The snapshot to read
+     */
+    LmdbSnapshot acquireSnapshot( PartitionTxn partitionTxn )
+    {
+        if ( partitionTxn instanceof LmdbPartitionReadTxn )
+        {
+            LmdbSnapshot snapshot = ( ( LmdbPartitionReadTxn ) partitionTxn ).getSnapshot();
+
+            if ( snapshot.acquire() )
+            {
+                return snapshot;
+            }
+        }
+        else if ( ( partitionTxn instanceof LmdbPartitionWriteTxn ) && !partitionTxn.isClosed() )
+        {
+            return new LmdbSnapshot( ( ( LmdbPartitionWriteTxn ) partitionTxn ).getTxn(), false );
+        }
+
+        LmdbPartitionWriteTxn current = activeWriteTxn.get();
+
+        if ( current != null )
+        {
+            return new LmdbSnapshot( current.getTxn(), false );
+        }
+
+        return new LmdbSnapshot( env.txnRead(), true );
+    }
+
+
+    /**
+     * Gets a write transaction to update the database with. When the partition transaction,
+     * or the current thread, is already writing, the returned transaction joins it, otherwise
+     * a new write transaction is started. The returned transaction must be committed or
+     * aborted once the update is done : this is a no-op when it joined another one.
+     *
+     * @param partitionTxn The partition transaction, may be null
+     * @return The write transaction
+     */
+    LmdbPartitionWriteTxn joinWriteTransaction( PartitionTxn partitionTxn )
+    {
+        if ( ( partitionTxn instanceof LmdbPartitionWriteTxn ) && !partitionTxn.isClosed() )
+        {
+            LmdbPartitionWriteTxn joined = ( LmdbPartitionWriteTxn ) partitionTxn;
+
+            return new LmdbPartitionWriteTxn( this, joined.getTxn(), joined );
+        }
+
+        return beginWriteTransaction();
+    }
+
+
+    /**
+     * Called when a read transaction is closed
+     *
+     * @param snapshot The transaction snapshot
+     */
+    void releaseSnapshot( LmdbSnapshot snapshot )
+    {
+        if ( openSnapshots.remove( snapshot ) != null )
+        {
+            snapshot.release();
+        }
+    }
+
+
+    /**
+     * Called when a write transaction has been committed or aborted
+     *
+     * @param writeTxn The write transaction
+     */
+    void writeTransactionEnded( LmdbPartitionWriteTxn writeTxn )
+    {
+        if ( activeWriteTxn.get() == writeTxn )
+        {
+            activeWriteTxn.remove();
+        }
+    }
+
+
+    /**
+     * Releases the snapshots of the read transactions which have been garbage collected
+     * without having been closed. They would otherwise hold a reader slot forever, and
+     * prevent LMDB from reusing the pages they are reading.
+     */
+    private void releaseLeakedSnapshots()
+    {
+        SnapshotReference reference = ( SnapshotReference ) leakedReadTxns.poll();
+
+        while ( reference != null )
+        {
+            if ( openSnapshots.remove( reference.snapshot ) != null )
+            {
+                LOG.debug( "Releasing a read transaction which has not been closed" );
+                reference.snapshot.release();
+            }
+
+            reference = ( SnapshotReference ) leakedReadTxns.poll();
+        }
+    }
+
+
+    /**
+     * Flushes the data on disk.
+     */
+    public void sync()
+    {
+        env.sync( true );
+    }
+
+
+    /**
+     * Closes the environment. All the read transactions still opened are released.
+     */
+    public void close()
+    {
+        for ( LmdbSnapshot snapshot : openSnapshots.keySet() )
+        {
+            releaseSnapshot( snapshot );
+        }
+
+        env.close();
+    }
+}
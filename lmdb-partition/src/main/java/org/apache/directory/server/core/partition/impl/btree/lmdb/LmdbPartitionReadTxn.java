@@ -0,0 +1,119 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.directory.server.core.api.partition.PartitionReadTxn;
+
+
+/**
+ * The LMDB partition read transaction. It reads a snapshot of the partition,
+ * taken when the transaction is started.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LmdbPartitionReadTxn extends PartitionReadTxn
+{
+    /** The environment this transaction has been created by */
+    private final LmdbEnvironment environment;
+
+    /** The LMDB read transaction */
+    private final LmdbSnapshot snapshot;
+
+    /** A flag set when the transaction has been closed */
+    private final AtomicBoolean closed = new AtomicBoolean( false );
+
+
+    /**
+     * Create an instance of LmdbPartitionReadTxn
+     * 
+     * @param environment The LMDB environment
+     * @param snapshot The LMDB read transaction
+     */
+    LmdbPartitionReadTxn( LmdbEnvironment environment, LmdbSnapshot snapshot )
+    {
+        this.environment = environment;
+        this.snapshot = snapshot;
+    }
+
+
+    /**
+     * @return The LMDB read transaction
+     */
+    LmdbSnapshot getSnapshot()
+    {
+        return snapshot;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void commit()
+    {
+        close();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void abort()
+    {
+        close();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isClosed()
+    {
+        return closed.get();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+    {
+        if ( closed.compareAndSet( false, true ) )
+        {
+            environment.releaseSnapshot( snapshot );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isSnapshot()
+    {
+        return true;
+    }
+}
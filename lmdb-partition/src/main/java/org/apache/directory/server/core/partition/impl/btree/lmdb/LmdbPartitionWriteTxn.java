@@ -0,0 +1,188 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.directory.server.core.api.partition.PartitionWriteTxn;
+import org.lmdbjava.LmdbException;
+import org.lmdbjava.Txn;
+
+
+/**
+ * The LMDB partition write transaction. LMDB allows only one writer at a time, and
+ * its write transactions can't be shared between threads : a write transaction
+ * started on a thread which already has one joins it, and leaves the commit or the
+ * abort to the transaction it joined.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LmdbPartitionWriteTxn extends PartitionWriteTxn
+{
+    /** The environment this transaction has been created by */
+    private final LmdbEnvironment environment;
+
+    /** The LMDB write transaction */
+    private final Txn<ByteBuffer> txn;
+
+    /** The transaction in charge of ending the LMDB transaction, null if it's this instance */
+    private final LmdbPartitionWriteTxn owner;
+
+    /** A flag set when the transaction has been committed or aborted */
+    private boolean closed = false;
+
+
+    /**
+     * Create an instance of LmdbPartitionWriteTxn
+     * 
+     * @param environment The LMDB environment
+     * @param txn The LMDB write transaction
+     * @param owner The transaction in charge of ending the LMDB transaction, null if it's this instance
+     */
+    LmdbPartitionWriteTxn( LmdbEnvironment environment, Txn<ByteBuffer> txn, LmdbPartitionWriteTxn owner )
+    {
+        this.environment = environment;
+        this.txn = txn;
+        this.owner = ( owner == null ) ? null : owner.getOwner();
+    }
+
+
+    /**
+     * @return The transaction in charge of ending the LMDB transaction
+     */
+    private LmdbPartitionWriteTxn getOwner()
+    {
+        return ( owner == null ) ? this : owner;
+    }
+
+
+    /**
+     * Registers the action on the transaction which ends the LMDB transaction, so that
+     * it runs when the changes are actually committed.
+     */
+    @Override
+    public void onCommit( Runnable action )
+    {
+        if ( owner == null )
+        {
+            super.onCommit( action );
+        }
+        else
+        {
+            owner.onCommit( action );
+        }
+    }
+
+
+    /**
+     * @return The LMDB write transaction
+     */
+    Txn<ByteBuffer> getTxn()
+    {
+        return txn;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void commit() throws IOException
+    {
+        if ( closed || ( owner != null ) )
+        {
+            return;
+        }
+
+        try
+        {
+            txn.commit();
+            committed();
+        }
+        catch ( LmdbException le )
+        {
+            throw new IOException( le.getMessage(), le );
+        }
+        finally
+        {
+            end();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void abort() throws IOException
+    {
+        if ( closed || ( owner != null ) )
+        {
+            return;
+        }
+
+        try
+        {
+            aborted();
+            txn.abort();
+        }
+        catch ( LmdbException le )
+        {
+            throw new IOException( le.getMessage(), le );
+        }
+        finally
+        {
+            end();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+        commit();
+    }
+
+
+    /**
+     * Releases the LMDB transaction and lets the thread start a new one.
+     */
+    private void end()
+    {
+        closed = true;
+        txn.close();
+        environment.writeTransactionEnded( this );
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lmdbjava.Txn;
+
+
+/**
+ * A LMDB transaction shared by the table operations and the cursors reading it.
+ * The server closes a search transaction as soon as the cursor has been created,
+ * so the LMDB transaction is reference counted : it is only released when the
+ * partition transaction and all the cursors using it have been closed.
+ * <br>
+ * A snapshot may also borrow a write transaction, in which case it never ends it.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+final class LmdbSnapshot
+{
+    /** The underlying LMDB transaction */
+    private final Txn<ByteBuffer> txn;
+
+    /** Tells if the snapshot has to close the transaction when it's not used anymore */
+    private final boolean owner;
+
+    /** The number of users of this snapshot */
+    private final AtomicInteger references = new AtomicInteger( 1 );
+
+
+    /**
+     * Creates a new instance of LmdbSnapshot
+     * 
+     * @param txn The LMDB transaction
+     * @param owner If the snapshot has to close the transaction
+     */
+    LmdbSnapshot( Txn<ByteBuffer> txn, boolean owner )
+    {
+        this.txn = txn;
+        this.owner = owner;
+    }
+
+
+    /**
+     * @return The LMDB transaction
+     */
+    Txn<ByteBuffer> getTxn()
+    {
+        return txn;
+    }
+
+
+    /**
+     * Registers a new user of this snapshot.
+     * 
+     * @return <tt>true</tt> if the snapshot can still be used
+     */
+    boolean acquire()
+    {
+        while ( true )
+        {
+            int current = references.get();
+
+            if ( current == 0 )
+            {
+                return false;
+            }
+
+            if ( references.compareAndSet( current, current + 1 ) )
+            {
+                return true;
+            }
+        }
+    }
+
+
+    /**
+     * Unregisters a user of this snapshot, closing the LMDB transaction if it was
+     * the last one.
+     */
+    void release()
+    {
+        if ( ( references.decrementAndGet() == 0 ) && owner )
+        {
+            txn.close();
+        }
+    }
+}
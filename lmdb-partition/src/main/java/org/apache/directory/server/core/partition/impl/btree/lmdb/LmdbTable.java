@@ -0,0 +1,946 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.EmptyCursor;
+import org.apache.directory.api.ldap.model.cursor.SingletonCursor;
+import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.AbstractTable;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.GetOp;
+import org.lmdbjava.LmdbException;
+import org.lmdbjava.PutFlags;
+import org.lmdbjava.SeekOp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A LMDB Table. It extends the default Apache DS Table, when LMDB is the
+ * underlying database. Tables allowing duplicate values are stored in a
+ * MDB_DUPSORT database, where the values of a key are sorted byte per byte.
+ * <br>
+ * LMDB limits the size of the keys, and of the values of a database allowing
+ * duplicates, to 511 bytes.
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LmdbTable<K, V> extends AbstractTable<K, V>
+{
+    /** A logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( LmdbTable.class );
+
+    /** The direct buffer each thread serializes the keys into */
+    private static final ThreadLocal<ByteBuffer> KEY_BUFFER = new ThreadLocal<>();
+
+    /** The direct buffer each thread serializes the values into */
+    private static final ThreadLocal<ByteBuffer> VALUE_BUFFER = new ThreadLocal<>();
+
+    /** The environment containing the table */
+    protected final LmdbEnvironment environment;
+
+    /** The underlying database */
+    private final Dbi<ByteBuffer> dbi;
+
+    /** The key serializer */
+    private final ElementSerializer<K> keySerializer;
+
+    /** The value serializer */
+    private final ElementSerializer<V> valueSerializer;
+
+    /** Tells if LMDB calls back the key comparator to order the keys */
+    private final boolean comparatorOrdered;
+
+
+    /**
+     * Creates a new instance of LmdbTable.
+     *
+     * @param environment The LMDB environment
+     * @param schemaManager The SchemaManager
+     * @param name The Table name
+     * @param keySerializer The Key serializer
+     * @param valueSerializer The Value serializer
+     * @param allowDuplicates If the table allows duplicate values
+     */
+    public LmdbTable( LmdbEnvironment environment, SchemaManager schemaManager, String name,
+        ElementSerializer<K> keySerializer, ElementSerializer<V> valueSerializer, boolean allowDuplicates )
+    {
+        super( schemaManager, name, keySerializer.getComparator(), valueSerializer.getComparator() );
+        this.environment = environment;
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.allowsDuplicates = allowDuplicates;
+
+        comparatorOrdered = !keySerializer.isBytewiseOrdered();
+
+        if ( comparatorOrdered )
+        {
+            dbi = environment.openDbi( name, new KeyComparator(), allowDuplicates );
+        }
+        else
+        {
+            dbi = environment.openDbi( name, null, allowDuplicates );
+        }
+
+        // Initialize the count
+        LmdbSnapshot snapshot = environment.acquireSnapshot( null );
+
+        try
+        {
+            count = dbi.stat( snapshot.getTxn() ).entries;
+        }
+        finally
+        {
+            snapshot.release();
+        }
+    }
+
+
+    /**
+     * Orders the serialized keys using the key comparator. It is called by LMDB.
+     */
+    private class KeyComparator implements Comparator<ByteBuffer>
+    {
+        @Override
+        public int compare( ByteBuffer buffer1, ByteBuffer buffer2 )
+        {
+            try
+            {
+                return keyComparator.compare( keySerializer.deserialize( toBytes( buffer1 ) ),
+                    keySerializer.deserialize( toBytes( buffer2 ) ) );
+            }
+            catch ( IOException ioe )
+            {
+                // We can't throw an exception back to LMDB, keep the keys ordered anyway
+                LOG.error( "Cannot deserialize a key of the table {} : {}", name, ioe.getMessage() );
+
+                return compareBytes( buffer1, buffer2 );
+            }
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Serialization helpers
+    // ------------------------------------------------------------------------
+
+    /**
+     * Copies the content of a buffer returned by LMDB, which is only valid in the
+     * transaction it has been read with.
+     */
+    private static byte[] toBytes( ByteBuffer buffer )
+    {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get( bytes );
+
+        return bytes;
+    }
+
+
+    /**
+     * Compares the bytes of two buffers, the way LMDB does
+     */
+    static int compareBytes( ByteBuffer buffer1, ByteBuffer buffer2 )
+    {
+        int pos1 = buffer1.position();
+        int pos2 = buffer2.position();
+        int length = Math.min( buffer1.remaining(), buffer2.remaining() );
+
+        for ( int i = 0; i < length; i++ )
+        {
+            int diff = ( buffer1.get( pos1 + i ) & 0xFF ) - ( buffer2.get( pos2 + i ) & 0xFF );
+
+            if ( diff != 0 )
+            {
+                return diff;
+            }
+        }
+
+        return buffer1.remaining() - buffer2.remaining();
+    }
+
+
+    /**
+     * Copies some bytes into a thread's direct buffer, allocating a bigger one if needed.
+     */
+    private static ByteBuffer toBuffer( ThreadLocal<ByteBuffer> threadBuffer, byte[] bytes )
+    {
+        ByteBuffer buffer = threadBuffer.get();
+
+        if ( ( buffer == null ) || ( buffer.capacity() < bytes.length ) )
+        {
+            buffer = ByteBuffer.allocateDirect( Math.max( bytes.length, 512 ) );
+            threadBuffer.set( buffer );
+        }
+
+        buffer.clear();
+        buffer.put( bytes ).flip();
+
+        return buffer;
+    }
+
+
+    /**
+     * Serializes a key in the current thread's key buffer. The buffer is only valid until
+     * the next key is serialized.
+     *
+     * @param key The key to serialize
+     * @return The serialized key
+     * @throws LdapException If the key can't be serialized, or is too big
+     */
+    ByteBuffer keyBuffer( K key ) throws LdapException
+    {
+        return toBuffer( KEY_BUFFER, serializeKey( key ) );
+    }
+
+
+    /**
+     * Serializes a key, checking it's not too big to be stored
+     *
+     * @param key The key to serialize
+     * @return The serialized key
+     * @throws LdapException If the key can't be serialized, or is too big
+     */
+    byte[] serializeKey( K key ) throws LdapException
+    {
+        try
+        {
+            byte[] bytes = keySerializer.serialize( key );
+
+            if ( bytes.length > environment.getMaxKeySize() )
+            {
+                throw new LdapOtherException( "The key " + key + " is too big to be stored in the table " + name );
+            }
+
+            return bytes;
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * Serializes a value in the current thread's value buffer. The buffer is only valid until
+     * the next value is serialized.
+     *
+     * @param value The value to serialize
+     * @return The serialized value
+     * @throws LdapException If the value can't be serialized, or is too big
+     */
+    ByteBuffer valueBuffer( V value ) throws LdapException
+    {
+        return toBuffer( VALUE_BUFFER, serializeValue( value ) );
+    }
+
+
+    /**
+     * Serializes a value, checking it's not too big to be stored
+     *
+     * @param value The value to serialize
+     * @return The serialized value
+     * @throws LdapException If the value can't be serialized, or is too big
+     */
+    byte[] serializeValue( V value ) throws LdapException
+    {
+        try
+        {
+            byte[] bytes = valueSerializer.serialize( value );
+
+            if ( allowsDuplicates && ( bytes.length > environment.getMaxKeySize() ) )
+            {
+                throw new LdapOtherException( "The value " + value + " is too big to be stored in the table "
+                    + name );
+            }
+
+            return bytes;
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * Deserializes a key read from the database
+     *
+     * @param buffer The serialized key
+     * @return The key
+     * @throws LdapException If the key can't be deserialized
+     */
+    K readKey( ByteBuffer buffer ) throws LdapException
+    {
+        try
+        {
+            return keySerializer.deserialize( toBytes( buffer ) );
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * Deserializes a value read from the database
+     *
+     * @param buffer The serialized value
+     * @return The value
+     * @throws LdapException If the value can't be deserialized
+     */
+    V readValue( ByteBuffer buffer ) throws LdapException
+    {
+        try
+        {
+            return valueSerializer.deserialize( toBytes( buffer ) );
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * Tells if a key read from the database is equal to a given key
+     *
+     * @param buffer The serialized key read from the database
+     * @param key The key to compare
+     * @return <tt>true</tt> if both keys are equal
+     * @throws LdapException If the key can't be deserialized
+     */
+    boolean isKey( ByteBuffer buffer, K key ) throws LdapException
+    {
+        return keyComparator.compare( readKey( buffer ), key ) == 0;
+    }
+
+
+    /**
+     * @return The underlying database
+     */
+    Dbi<ByteBuffer> getDbi()
+    {
+        return dbi;
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Table operations
+    // ------------------------------------------------------------------------
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean has( PartitionTxn partitionTxn, K key ) throws LdapException
+    {
+        if ( key == null )
+        {
+            return false;
+        }
+
+        LmdbSnapshot snapshot = environment.acquireSnapshot( partitionTxn );
+
+        try
+        {
+            return dbi.get( snapshot.getTxn(), keyBuffer( key ) ) != null;
+        }
+        catch ( LmdbException le )
+        {
+            throw new LdapOtherException( le.getMessage(), le );
+        }
+        finally
+        {
+            snapshot.release();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean has( PartitionTxn partitionTxn, K key, V value ) throws LdapException
+    {
+        if ( key == null )
+        {
+            return false;
+        }
+
+        if ( !allowsDuplicates )
+        {
+            V storedValue = get( partitionTxn, key );
+
+            if ( storedValue == null )
+            {
+                return false;
+            }
+
+            if ( valueComparator == null )
+            {
+                return storedValue.equals( value );
+            }
+
+            return valueComparator.compare( storedValue, value ) == 0;
+        }
+
+        LmdbSnapshot snapshot = environment.acquireSnapshot( partitionTxn );
+
+        try ( org.lmdbjava.Cursor<ByteBuffer> cursor = dbi.openCursor( snapshot.getTxn() ) )
+        {
+            return cursor.get( keyBuffer( key ), valueBuffer( value ), SeekOp.MDB_GET_BOTH );
+        }
+        catch ( LmdbException le )
+        {
+            throw new LdapOtherException( le.getMessage(), le );
+        }
+        finally
+        {
+            snapshot.release();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasGreaterOrEqual( PartitionTxn partitionTxn, K key ) throws LdapException
+    {
+        if ( key == null )
+        {
+            return false;
+        }
+
+        LmdbSnapshot snapshot = environment.acquireSnapshot( partitionTxn );
+
+        try ( org.lmdbjava.Cursor<ByteBuffer> cursor = dbi.openCursor( snapshot.getTxn() ) )
+        {
+            return cursor.get( keyBuffer( key ), GetOp.MDB_SET_RANGE );
+        }
+        catch ( LmdbException le )
+        {
+            throw new LdapOtherException( le.getMessage(), le );
+        }
+        finally
+        {
+            snapshot.release();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasLessOrEqual( PartitionTxn partitionTxn, K key ) throws LdapException
+    {
+        if ( key == null )
+        {
+            return false;
+        }
+
+        LmdbSnapshot snapshot = environment.acquireSnapshot( partitionTxn );
+
+        try ( org.lmdbjava.Cursor<ByteBuffer> cursor = dbi.openCursor( snapshot.getTxn() ) )
+        {
+            if ( cursor.get( keyBuffer( key ), GetOp.MDB_SET_RANGE ) )
+            {
+                // Test for equality first since it satisfies both greater/less than
+                if ( isKey( cursor.key(), key ) )
+                {
+                    return true;
+                }
+
+                // The found key is greater, check if there is a key before it
+                return cursor.prev();
+            }
+
+            // All the keys are lower than the given key
+            return cursor.last();
+        }
+        catch ( LmdbException le )
+        {
+            throw new LdapOtherException( le.getMessage(), le );
+        }
+        finally
+        {
+            snapshot.release();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasGreaterOrEqual( PartitionTxn partitionTxn, K key, V value ) throws LdapException
+    {
+        if ( key == null )
+        {
+            return false;
+        }
+
+        if ( !allowsDuplicates )
+        {
+            throw new UnsupportedOperationException( I18n.err( I18n.ERR_593 ) );
+        }
+
+        LmdbSnapshot snapshot = environment.acquireSnapshot( partitionTxn );
+
+        try ( org.lmdbjava.Cursor<ByteBuffer> cursor = dbi.openCursor( snapshot.getTxn() ) )
+        {
+            return cursor.get( keyBuffer( key ), valueBuffer( value ), SeekOp.MDB_GET_BOTH_RANGE );
+        }
+        catch ( LmdbException le )
+        {
+            throw new LdapOtherException( le.getMessage(), le );
+        }
+        finally
+        {
+            snapshot.release();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasLessOrEqual( PartitionTxn partitionTxn, K key, V value ) throws LdapException
+    {
+        if ( key == null )
+        {
+            return false;
+        }
+
+        if ( !allowsDuplicates )
+        {
+            throw new UnsupportedOperationException( I18n.err( I18n.ERR_593 ) );
+        }
+
+        LmdbSnapshot snapshot = environment.acquireSnapshot( partitionTxn );
+
+        try ( org.lmdbjava.Cursor<ByteBuffer> cursor = dbi.openCursor( snapshot.getTxn() ) )
+        {
+            // The cursor is positioned on the smallest value of the key
+            if ( !cursor.get( keyBuffer( key ), GetOp.MDB_SET_KEY ) )
+            {
+                return false;
+            }
+
+            return compareBytes( cursor.val(), valueBuffer( value ) ) <= 0;
+        }
+        catch ( LmdbException le )
+        {
+            throw new LdapOtherException( le.getMessage(), le );
+        }
+        finally
+        {
+            snapshot.release();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V get( PartitionTxn partitionTxn, K key ) throws LdapException
+    {
+        if ( key == null )
+        {
+            return null;
+        }
+
+        LmdbSnapshot snapshot = environment.acquireSnapshot( partitionTxn );
+
+        try
+        {
+            // With duplicates, this is the smallest value of the key
+            ByteBuffer value = dbi.get( snapshot.getTxn(), keyBuffer( key ) );
+
+            if ( value == null )
+            {
+                return null;
+            }
+
+            return readValue( value );
+        }
+        catch ( LmdbException le )
+        {
+            throw new LdapOtherException( le.getMessage(), le );
+        }
+        finally
+        {
+            snapshot.release();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put( PartitionTxn partitionTxn, K key, V value ) throws LdapException
+    {
+        if ( ( value == null ) || ( key == null ) )
+        {
+            throw new IllegalArgumentException( I18n.err( I18n.ERR_594 ) );
+        }
+
+        LmdbPartitionWriteTxn writeTxn = environment.joinWriteTransaction( partitionTxn );
+
+        try
+        {
+            ByteBuffer keyBuffer = keyBuffer( key );
+
+            if ( allowsDuplicates )
+            {
+                dbi.put( writeTxn.getTxn(), keyBuffer, valueBuffer( value ), PutFlags.MDB_NODUPDATA );
+            }
+            else
+            {
+                if ( comparatorOrdered )
+                {
+                    // LMDB keeps the stored bytes of a key which compares equal to the new
+                    // one, while they may differ (the RDN index keys contain counters)
+                    dbi.delete( writeTxn.getTxn(), keyBuffer );
+                }
+
+                dbi.put( writeTxn.getTxn(), keyBuffer, valueBuffer( value ) );
+            }
+
+            writeTxn.commit();
+        }
+        catch ( LmdbException | IOException e )
+        {
+            LOG.error( I18n.err( I18n.ERR_131, key, name ), e );
+            abort( writeTxn );
+
+            throw new LdapOtherException( e.getMessage(), e );
+        }
+        catch ( LdapException le )
+        {
+            abort( writeTxn );
+
+            throw le;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void remove( PartitionTxn partitionTxn, K key ) throws LdapException
+    {
+        if ( key == null )
+        {
+            return;
+        }
+
+        LmdbPartitionWriteTxn writeTxn = environment.joinWriteTransaction( partitionTxn );
+
+        try
+        {
+            // This removes all the values of the key
+            dbi.delete( writeTxn.getTxn(), keyBuffer( key ) );
+            writeTxn.commit();
+        }
+        catch ( LmdbException | IOException e )
+        {
+            LOG.error( I18n.err( I18n.ERR_133, key, name ), e );
+            abort( writeTxn );
+
+            throw new LdapOtherException( e.getMessage(), e );
+        }
+        catch ( LdapException le )
+        {
+            abort( writeTxn );
+
+            throw le;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void remove( PartitionTxn partitionTxn, K key, V value ) throws LdapException
+    {
+        if ( key == null )
+        {
+            return;
+        }
+
+        if ( !allowsDuplicates && !has( partitionTxn, key, value ) )
+        {
+            // The key is not associated with this value
+            return;
+        }
+
+        LmdbPartitionWriteTxn writeTxn = environment.joinWriteTransaction( partitionTxn );
+
+        try
+        {
+            if ( allowsDuplicates )
+            {
+                dbi.delete( writeTxn.getTxn(), keyBuffer( key ), valueBuffer( value ) );
+            }
+            else
+            {
+                dbi.delete( writeTxn.getTxn(), keyBuffer( key ) );
+            }
+
+            writeTxn.commit();
+        }
+        catch ( LmdbException | IOException e )
+        {
+            LOG.error( I18n.err( I18n.ERR_132, key, value, name ), e );
+            abort( writeTxn );
+
+            throw new LdapOtherException( e.getMessage(), e );
+        }
+        catch ( LdapException le )
+        {
+            abort( writeTxn );
+
+            throw le;
+        }
+    }
+
+
+    /**
+     * Aborts a write transaction after a failure, keeping the original failure.
+     */
+    private void abort( LmdbPartitionWriteTxn writeTxn )
+    {
+        try
+        {
+            writeTxn.abort();
+        }
+        catch ( IOException ioe )
+        {
+            LOG.error( "Cannot abort the transaction on table {} : {}", name, ioe.getMessage() );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor<Tuple<K, V>> cursor()
+    {
+        return new LmdbCursor<>( this, environment.acquireSnapshot( null ) );
+    }
+
+
+    /**
+     * Creates a Cursor over all the tuples of the table, reading the given transaction.
+     *
+     * @param partitionTxn The transaction to use
+     * @return The cursor
+     */
+    public Cursor<Tuple<K, V>> cursor( PartitionTxn partitionTxn )
+    {
+        return new LmdbCursor<>( this, environment.acquireSnapshot( partitionTxn ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor<Tuple<K, V>> cursor( PartitionTxn partitionTxn, K key ) throws LdapException
+    {
+        if ( key == null )
+        {
+            return new EmptyCursor<>();
+        }
+
+        if ( !allowsDuplicates )
+        {
+            V value = get( partitionTxn, key );
+
+            if ( value == null )
+            {
+                return new EmptyCursor<>();
+            }
+
+            return new SingletonCursor<>( new Tuple<K, V>( key, value ) );
+        }
+
+        return new LmdbCursor<>( this, environment.acquireSnapshot( partitionTxn ), key );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor<V> valueCursor( PartitionTxn partitionTxn, K key ) throws LdapException
+    {
+        if ( key == null )
+        {
+            return new EmptyCursor<>();
+        }
+
+        if ( !allowsDuplicates )
+        {
+            V value = get( partitionTxn, key );
+
+            if ( value == null )
+            {
+                return new EmptyCursor<>();
+            }
+
+            return new SingletonCursor<>( value );
+        }
+
+        return new LmdbValueCursor<>( new LmdbCursor<>( this, environment.acquireSnapshot( partitionTxn ), key ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long count( PartitionTxn partitionTxn ) throws LdapException
+    {
+        LmdbSnapshot snapshot = environment.acquireSnapshot( partitionTxn );
+
+        try
+        {
+            count = dbi.stat( snapshot.getTxn() ).entries;
+
+            return count;
+        }
+        catch ( LmdbException le )
+        {
+            throw new LdapOtherException( le.getMessage(), le );
+        }
+        finally
+        {
+            snapshot.release();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long count( PartitionTxn partitionTxn, K key ) throws LdapException
+    {
+        if ( key == null )
+        {
+            return 0;
+        }
+
+        if ( !allowsDuplicates )
+        {
+            return has( partitionTxn, key ) ? 1 : 0;
+        }
+
+        LmdbSnapshot snapshot = environment.acquireSnapshot( partitionTxn );
+
+        try ( org.lmdbjava.Cursor<ByteBuffer> cursor = dbi.openCursor( snapshot.getTxn() ) )
+        {
+            if ( cursor.get( keyBuffer( key ), GetOp.MDB_SET_KEY ) )
+            {
+                return cursor.count();
+            }
+
+            return 0;
+        }
+        catch ( LmdbException le )
+        {
+            throw new LdapOtherException( le.getMessage(), le );
+        }
+        finally
+        {
+            snapshot.release();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long greaterThanCount( PartitionTxn partitionTxn, K key ) throws LdapException
+    {
+        // take a best guess
+        return Math.min( count( partitionTxn ), 10L );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long lessThanCount( PartitionTxn partitionTxn, K key ) throws LdapException
+    {
+        // take a best guess
+        return Math.min( count( partitionTxn ), 10L );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close( PartitionTxn partitionTxn ) throws LdapException
+    {
+        // The database handle is released when the environment is closed
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append( "LMDB table :\n" ).append( super.toString() );
+
+        return sb.toString();
+    }
+}
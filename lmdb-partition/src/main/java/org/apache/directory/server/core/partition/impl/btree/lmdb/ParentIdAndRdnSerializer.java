@@ -0,0 +1,211 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import java.io.IOException;
+import java.util.Comparator;
+
+import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
+import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.util.Serialize;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.ParentIdAndRdn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Serialize and deserialize a ParentIdAndRdn.
+ * <br><br>
+ * <b>This class must *not* be used outside of the server.</b>
+ *  
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ParentIdAndRdnSerializer implements ElementSerializer<ParentIdAndRdn>
+{
+    /** the logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( ParentIdAndRdnSerializer.class );
+
+    /** The number of RDNs we store for a search key, which has no RDN at all */
+    private static final int NO_RDNS = -1;
+
+    /** The schemaManager reference */
+    private final SchemaManager schemaManager;
+
+    /** The comparator used to order the elements */
+    private final Comparator<ParentIdAndRdn> comparator;
+
+
+    /**
+     * Creates a new instance of ParentIdAndRdnSerializer.
+     * 
+     * @param schemaManager The reference to the global schemaManager
+     * @param comparator The comparator used to order the elements
+     */
+    public ParentIdAndRdnSerializer( SchemaManager schemaManager, Comparator<ParentIdAndRdn> comparator )
+    {
+        this.schemaManager = schemaManager;
+        this.comparator = comparator;
+    }
+
+
+    /**
+     * This is the place where we serialize ParentIdAndRdn. The format is the following :<br>
+     * <ul>
+     * <li>the number of RDNs (-1 for a search key without RDN)</li>
+     * <li>the RDNs</li>
+     * <li>the parent ID</li>
+     * <li>Number of children</li>
+     * <li>Number of descendant</li>
+     * </ul>
+     */
+    @Override
+    public byte[] serialize( ParentIdAndRdn parentIdAndRdn ) throws IOException
+    {
+        int bufferSize = 1024;
+
+        while ( true )
+        {
+            // allocate a big enough buffer for most of the cases
+            byte[] buffer = new byte[bufferSize];
+
+            try
+            {
+                int pos = 0;
+                Rdn[] rdns = parentIdAndRdn.getRdns();
+
+                if ( rdns == null )
+                {
+                    pos = Serialize.serialize( NO_RDNS, buffer, pos );
+                }
+                else
+                {
+                    pos = Serialize.serialize( rdns.length, buffer, pos );
+
+                    for ( Rdn rdn : rdns )
+                    {
+                        pos = rdn.serialize( buffer, pos );
+                    }
+                }
+
+                // Then the parentId.
+                pos = Serialize.serialize( Strings.getBytesUtf8( parentIdAndRdn.getParentId() ), buffer, pos );
+
+                // The number of children
+                pos = Serialize.serialize( parentIdAndRdn.getNbChildren(), buffer, pos );
+
+                // The number of descendants
+                pos = Serialize.serialize( parentIdAndRdn.getNbDescendants(), buffer, pos );
+
+                byte[] result = new byte[pos];
+                System.arraycopy( buffer, 0, result, 0, pos );
+
+                return result;
+            }
+            catch ( ArrayIndexOutOfBoundsException aioobe )
+            {
+                // Bad luck, try with a bigger buffer
+                if ( bufferSize > Integer.MAX_VALUE / 2 )
+                {
+                    throw new IOException( aioobe.getMessage(), aioobe );
+                }
+
+                bufferSize += bufferSize;
+            }
+        }
+    }
+
+
+    /**
+     *  Deserialize a ParentIdAndRdn.
+     *  
+     *  @param bytes the byte array containing the serialized ParentIdAndRdn
+     *  @return An instance of a ParentIdAndRdn object 
+     *  @throws IOException if we can't deserialize the ParentIdAndRdn
+     */
+    @Override
+    public ParentIdAndRdn deserialize( byte[] bytes ) throws IOException
+    {
+        try
+        {
+            ParentIdAndRdn parentIdAndRdn = new ParentIdAndRdn();
+            int pos = 0;
+
+            // Read the number of rdns, if any
+            int nbRdns = Serialize.deserializeInt( bytes, pos );
+            pos += 4;
+
+            if ( nbRdns != NO_RDNS )
+            {
+                Rdn[] rdns = new Rdn[nbRdns];
+
+                for ( int i = 0; i < nbRdns; i++ )
+                {
+                    Rdn rdn = new Rdn( schemaManager );
+                    pos = rdn.deserialize( bytes, pos );
+                    rdns[i] = rdn;
+                }
+
+                parentIdAndRdn.setRdns( rdns );
+            }
+
+            // Read the parent ID
+            byte[] uuidBytes = Serialize.deserializeBytes( bytes, pos );
+            pos += 4 + uuidBytes.length;
+            parentIdAndRdn.setParentId( Strings.utf8ToString( uuidBytes ) );
+
+            // Read the number of children and descendants
+            parentIdAndRdn.setNbChildren( Serialize.deserializeInt( bytes, pos ) );
+            pos += 4;
+            parentIdAndRdn.setNbDescendants( Serialize.deserializeInt( bytes, pos ) );
+
+            return parentIdAndRdn;
+        }
+        catch ( LdapInvalidAttributeValueException liave )
+        {
+            LOG.error( I18n.err( I18n.ERR_134, liave.getLocalizedMessage() ) );
+            throw new IOException( liave.getLocalizedMessage(), liave );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Comparator<ParentIdAndRdn> getComparator()
+    {
+        return comparator;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isBytewiseOrdered()
+    {
+        // The children of a given parent must be grouped, we need the comparator
+        return false;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import java.util.Comparator;
+
+import org.apache.directory.api.util.Strings;
+
+
+/**
+ * Serialize and deserialize a String, using its UTF-8 encoding.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class StringSerializer implements ElementSerializer<String>
+{
+    /** A comparator sorting the Strings the way their UTF-8 bytes are sorted */
+    private static final Comparator<String> UTF8_COMPARATOR = new Comparator<String>()
+    {
+        @Override
+        public int compare( String string1, String string2 )
+        {
+            return string1.compareTo( string2 );
+        }
+    };
+
+    /** A static instance used for the entry IDs, which are sorted on their bytes */
+    public static final StringSerializer INSTANCE = new StringSerializer( UTF8_COMPARATOR );
+
+    /** The comparator used to order the Strings */
+    private final Comparator<String> comparator;
+
+
+    /**
+     * Creates a new instance of StringSerializer.
+     *
+     * @param comparator The comparator used to order the Strings
+     */
+    public StringSerializer( Comparator<String> comparator )
+    {
+        this.comparator = comparator;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] serialize( String element )
+    {
+        return Strings.getBytesUtf8( element );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String deserialize( byte[] bytes )
+    {
+        return Strings.utf8ToString( bytes );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Comparator<String> getComparator()
+    {
+        return comparator;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isBytewiseOrdered()
+    {
+        // The UTF-8 encoding preserves the order of the ASCII Strings we use as entry IDs
+        return comparator == UTF8_COMPARATOR;
+    }
+}
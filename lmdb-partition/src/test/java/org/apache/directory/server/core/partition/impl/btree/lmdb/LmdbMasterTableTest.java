@@ -0,0 +1,154 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.xdbm.MockPartitionReadTxn;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Test cases for LmdbMasterTable.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LmdbMasterTableTest
+{
+    private LmdbMasterTable table;
+
+    private static SchemaManager schemaManager = null;
+
+    private LmdbEnvironment environment;
+
+    private PartitionTxn partitionTxn;
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+
+    @BeforeClass
+    public static void loadSchema() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = LmdbMasterTableTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+    }
+
+
+    @Before
+    public void createTable() throws Exception
+    {
+        environment = new LmdbEnvironment( tmpDir.getRoot(), LmdbEnvironment.DEFAULT_MAP_SIZE,
+            LmdbEnvironment.DEFAULT_MAX_READERS, false );
+
+        table = new LmdbMasterTable( environment, schemaManager );
+
+        partitionTxn = new MockPartitionReadTxn();
+    }
+
+
+    @After
+    public void destroyTable() throws Exception
+    {
+        if ( table != null )
+        {
+            table.close( partitionTxn );
+        }
+
+        if ( environment != null )
+        {
+            environment.close();
+        }
+    }
+
+
+    @Test
+    public void testAll() throws Exception
+    {
+        assertNull( table.get( partitionTxn, Strings.getUUID( 0L ) ) );
+        assertEquals( 0, table.count( partitionTxn ) );
+    }
+
+
+    @Test
+    public void testPutGetRemove() throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager, "ou=test,ou=system",
+            "objectClass: top",
+            "objectClass: organizationalUnit",
+            "ou: test" );
+
+        String id = table.getNextId( entry );
+        assertNotNull( id );
+
+        table.put( partitionTxn, id, entry );
+        assertEquals( 1, table.count( partitionTxn ) );
+
+        Entry read = table.get( partitionTxn, id );
+        assertNotNull( read );
+        assertEquals( "test", read.get( "ou" ).getString() );
+        assertEquals( entry.getDn().getRdn(), read.getDn().getRdn() );
+
+        table.remove( partitionTxn, id );
+        assertNull( table.get( partitionTxn, id ) );
+        assertEquals( 0, table.count( partitionTxn ) );
+    }
+}
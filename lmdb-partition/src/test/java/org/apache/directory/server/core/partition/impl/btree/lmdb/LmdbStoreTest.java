@@ -0,0 +1,751 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.csn.CsnFactory;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
+import org.apache.directory.api.ldap.model.exception.LdapSchemaViolationException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.constants.ApacheSchemaConstants;
+import org.apache.directory.server.core.api.CacheService;
+import org.apache.directory.server.core.api.DnFactory;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModDnAva;
+import org.apache.directory.server.core.api.partition.PartitionReadTxn;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.api.partition.PartitionWriteTxn;
+import org.apache.directory.server.core.shared.DefaultDnFactory;
+import org.apache.directory.server.xdbm.Index;
+import org.apache.directory.server.xdbm.IndexNotFoundException;
+import org.apache.directory.server.xdbm.MockPartitionReadTxn;
+import org.apache.directory.server.xdbm.StoreUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Unit test cases for LmdbPartition
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LmdbStoreTest
+{
+    private File wkdir;
+
+    private LmdbPartition store;
+
+    private static SchemaManager schemaManager = null;
+    private static DnFactory dnFactory;
+    private static CacheService cacheService;
+
+    private PartitionTxn partitionTxn;
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = LmdbStoreTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        cacheService = new CacheService();
+        cacheService.initialize( null );
+        dnFactory = new DefaultDnFactory( schemaManager,
+            cacheService.getCache( "dnCache", String.class, Dn.class ) );
+    }
+
+
+    @Before
+    public void createStore() throws Exception
+    {
+        StoreUtils.createdExtraAttributes( schemaManager );
+
+        // setup the working directory for the store
+        wkdir = tmpDir.newFolder( getClass().getSimpleName() );
+
+        store = createStore( wkdir, "o=Good Times Co." );
+
+        StoreUtils.loadExampleData( store, schemaManager );
+
+        partitionTxn = new MockPartitionReadTxn();
+    }
+
+
+    private LmdbPartition createStore( File directory, String suffix ) throws Exception
+    {
+        LmdbPartition partition = new LmdbPartition( schemaManager, dnFactory );
+        partition.setId( "example" );
+        partition.setCacheSize( 10 );
+        partition.setPartitionPath( directory.toURI() );
+        partition.setSyncOnWrite( false );
+        partition.setMapSize( 64L * 1024L * 1024L );
+        partition.addIndex( new LmdbIndex<String>( SchemaConstants.OU_AT_OID, false ) );
+        partition.addIndex( new LmdbIndex<String>( SchemaConstants.UID_AT_OID, false ) );
+        partition.setSuffixDn( new Dn( schemaManager, suffix ) );
+        partition.setCacheService( cacheService );
+        partition.initialize();
+
+        return partition;
+    }
+
+
+    @After
+    public void destroyStore() throws Exception
+    {
+        if ( store != null )
+        {
+            store.destroy( partitionTxn );
+        }
+
+        store = null;
+        wkdir = null;
+    }
+
+
+    @Test
+    public void testFreshStore() throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "o=Good Times Co." );
+        assertEquals( Strings.getUUID( 1L ), store.getEntryId( partitionTxn, dn ) );
+        assertEquals( 11, store.count( partitionTxn ) );
+        assertEquals( "o=Good Times Co.", store.getEntryDn( partitionTxn, Strings.getUUID( 1L ) ).getName() );
+
+        // note that the suffix entry returns 0 for it's parent which does not exist
+        assertEquals( Strings.getUUID( 0L ), store.getParentId( partitionTxn, store.getEntryId( partitionTxn, dn ) ) );
+        assertNull( store.getParentId( partitionTxn, Strings.getUUID( 0L ) ) );
+
+        assertEquals( 3, store.getChildCount( partitionTxn, Strings.getUUID( 1L ) ) );
+        assertEquals( 2, store.getChildCount( partitionTxn, Strings.getUUID( 2L ) ) );
+    }
+
+
+    @Test
+    public void testTransactions() throws Exception
+    {
+        assertTrue( store.beginReadTransaction().isSnapshot() );
+
+        Dn dn = new Dn( schemaManager, "ou=Marketing,o=Good Times Co." );
+        Entry entry = new DefaultEntry( schemaManager, dn,
+            "objectClass: top",
+            "objectClass: organizationalUnit",
+            "ou: Marketing",
+            SchemaConstants.ENTRY_CSN_AT, new CsnFactory( 1 ).newInstance().toString(),
+            SchemaConstants.ENTRY_UUID_AT, Strings.getUUID( 12L ) );
+
+        PartitionReadTxn readTxn = store.beginReadTransaction();
+        PartitionWriteTxn writeTxn = store.beginWriteTransaction();
+
+        AddOperationContext addContext = new AddOperationContext( null, entry );
+        addContext.setPartition( store );
+        addContext.setTransaction( writeTxn );
+        store.add( addContext );
+
+        // The entry is visible in the write transaction only
+        assertEquals( Strings.getUUID( 12L ), store.getEntryId( writeTxn, dn ) );
+        assertNull( store.getEntryId( readTxn, dn ) );
+
+        writeTxn.abort();
+        assertNull( store.getEntryId( partitionTxn, dn ) );
+        assertEquals( 11, store.count( partitionTxn ) );
+
+        writeTxn = store.beginWriteTransaction();
+        addContext.setTransaction( writeTxn );
+        store.add( addContext );
+        writeTxn.commit();
+
+        // The snapshot started before the commit still does not see the entry
+        assertNull( store.getEntryId( readTxn, dn ) );
+        assertEquals( 11, store.count( readTxn ) );
+        readTxn.close();
+
+        assertEquals( Strings.getUUID( 12L ), store.getEntryId( partitionTxn, dn ) );
+        assertEquals( 12, store.count( partitionTxn ) );
+        assertEquals( 4, store.getChildCount( partitionTxn, Strings.getUUID( 1L ) ) );
+    }
+
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testReopen() throws Exception
+    {
+        store.destroy( partitionTxn );
+
+        store = createStore( wkdir, "o=Good Times Co." );
+
+        Dn dn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+        String id = store.getEntryId( partitionTxn, dn );
+        assertNotNull( id );
+
+        Entry entry = store.fetch( partitionTxn, id, dn );
+        assertNotNull( entry );
+        assertEquals( 11, store.count( partitionTxn ) );
+
+        // The user indexes have been reopened
+        Index<String, String> ouIndex = ( Index<String, String> ) store.getUserIndex( schemaManager
+            .getAttributeType( SchemaConstants.OU_AT ) );
+        assertTrue( ouIndex.forward( partitionTxn, "sales" ) );
+        assertFalse( ouIndex.forward( partitionTxn, "unknown" ) );
+    }
+
+
+    /**
+     * A snapshot read transaction does not wait for a writer holding the partition lock,
+     * while a plain read transaction (used by the JDBM and Mavibot partitions) does.
+     */
+    @Test
+    public void testSnapshotReadDoesNotWaitForWriters() throws Exception
+    {
+        final String id = Strings.getUUID( 1L );
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        // Simulate a writer
+        store.getReadWriteLock().writeLock().lock();
+        boolean locked = true;
+
+        try
+        {
+            final PartitionReadTxn snapshotTxn = store.beginReadTransaction();
+
+            Future<Entry> snapshotRead = executor.submit( new Callable<Entry>()
+            {
+                public Entry call() throws Exception
+                {
+                    return store.fetch( snapshotTxn, id );
+                }
+            } );
+
+            assertNotNull( snapshotRead.get( 10, TimeUnit.SECONDS ) );
+            snapshotTxn.close();
+
+            Future<Entry> lockedRead = executor.submit( new Callable<Entry>()
+            {
+                public Entry call() throws Exception
+                {
+                    return store.fetch( partitionTxn, id );
+                }
+            } );
+
+            try
+            {
+                lockedRead.get( 200, TimeUnit.MILLISECONDS );
+                fail( "A non snapshot read should wait for the writer" );
+            }
+            catch ( TimeoutException te )
+            {
+                // expected
+            }
+
+            store.getReadWriteLock().writeLock().unlock();
+            locked = false;
+            assertNotNull( lockedRead.get( 10, TimeUnit.SECONDS ) );
+        }
+        finally
+        {
+            if ( locked )
+            {
+                store.getReadWriteLock().writeLock().unlock();
+            }
+
+            executor.shutdownNow();
+        }
+    }
+
+
+    private void addEntry( Entry entry ) throws Exception
+    {
+        AddOperationContext addContext = new AddOperationContext( null, entry );
+        addContext.setPartition( store );
+
+        PartitionWriteTxn writeTxn = store.beginWriteTransaction();
+        addContext.setTransaction( writeTxn );
+
+        try
+        {
+            store.add( addContext );
+            writeTxn.commit();
+        }
+        catch ( Exception e )
+        {
+            writeTxn.abort();
+            throw e;
+        }
+    }
+
+
+    private Entry createPerson( String dn, String cn ) throws Exception
+    {
+        return new DefaultEntry( schemaManager, dn,
+            "objectClass: top",
+            "objectClass: person",
+            "objectClass: organizationalPerson",
+            "ou: Engineering",
+            "cn", cn,
+            "entryCSN", new CsnFactory( 1 ).newInstance().toString(),
+            "entryUUID", UUID.randomUUID().toString() );
+    }
+
+
+    /**
+     * Tests a suffix with two name components: dc=example,dc=com.
+     * When reading this entry back from the store the Dn must
+     * consist of two RDNs.
+     */
+    @Test
+    public void testTwoComponentSuffix() throws Exception
+    {
+        LmdbPartition store2 = createStore( tmpDir.newFolder( "db2" ), "dc=example,dc=com" );
+
+        try
+        {
+            Dn suffixDn = new Dn( schemaManager, "dc=example,dc=com" );
+            Entry entry = new DefaultEntry( schemaManager, suffixDn,
+                "objectClass: top",
+                "objectClass: domain",
+                "dc: example",
+                SchemaConstants.ENTRY_CSN_AT, new CsnFactory( 0 ).newInstance().toString(),
+                SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString() );
+
+            AddOperationContext addContext = new AddOperationContext( null, entry );
+            addContext.setPartition( store2 );
+
+            try ( PartitionTxn writeTxn = store2.beginWriteTransaction() )
+            {
+                addContext.setTransaction( writeTxn );
+                store2.add( addContext );
+            }
+
+            String id = store2.getEntryId( partitionTxn, suffixDn );
+            Entry lookup = store2.fetch( partitionTxn, id, suffixDn );
+            assertEquals( 2, lookup.getDn().size() );
+        }
+        finally
+        {
+            store2.destroy( partitionTxn );
+        }
+    }
+
+
+    @Test
+    public void testSimplePropertiesUnlocked() throws Exception
+    {
+        LmdbPartition lmdbPartition = new LmdbPartition( schemaManager, dnFactory );
+        lmdbPartition.setSyncOnWrite( true );
+
+        assertNull( lmdbPartition.getAliasIndex() );
+        lmdbPartition.addIndex( new LmdbIndex<Dn>( ApacheSchemaConstants.APACHE_ALIAS_AT_OID, true ) );
+        assertNotNull( lmdbPartition.getAliasIndex() );
+
+        assertEquals( LmdbPartition.DEFAULT_CACHE_SIZE, lmdbPartition.getCacheSize() );
+        lmdbPartition.setCacheSize( 24 );
+        assertEquals( 24, lmdbPartition.getCacheSize() );
+
+        assertNull( lmdbPartition.getPresenceIndex() );
+        lmdbPartition.addIndex( new LmdbIndex<String>( ApacheSchemaConstants.APACHE_PRESENCE_AT_OID, false ) );
+        assertNotNull( lmdbPartition.getPresenceIndex() );
+
+        assertNull( lmdbPartition.getId() );
+        lmdbPartition.setId( "foo" );
+        assertEquals( "foo", lmdbPartition.getId() );
+
+        assertNull( lmdbPartition.getRdnIndex() );
+        lmdbPartition.addIndex( new LmdbRdnIndex() );
+        assertNotNull( lmdbPartition.getRdnIndex() );
+
+        assertNull( lmdbPartition.getOneAliasIndex() );
+        lmdbPartition.addIndex( new LmdbIndex<Long>( ApacheSchemaConstants.APACHE_ONE_ALIAS_AT_OID, true ) );
+        assertNotNull( lmdbPartition.getOneAliasIndex() );
+
+        assertNull( lmdbPartition.getSubAliasIndex() );
+        lmdbPartition.addIndex( new LmdbIndex<Long>( ApacheSchemaConstants.APACHE_SUB_ALIAS_AT_OID, true ) );
+        assertNotNull( lmdbPartition.getSubAliasIndex() );
+
+        assertNull( lmdbPartition.getSuffixDn() );
+        lmdbPartition.setSuffixDn( new Dn( schemaManager, "dc=example,dc=com" ) );
+        assertEquals( "dc=example,dc=com", lmdbPartition.getSuffixDn().getName() );
+
+        assertFalse( lmdbPartition.getUserIndices().hasNext() );
+        lmdbPartition.addIndex( new LmdbIndex<Object>( "2.5.4.3", false ) );
+        assertTrue( lmdbPartition.getUserIndices().hasNext() );
+
+        assertNull( lmdbPartition.getPartitionPath() );
+        lmdbPartition.setPartitionPath( new File( "." ).toURI() );
+        assertEquals( new File( "." ).toURI(), lmdbPartition.getPartitionPath() );
+
+        assertFalse( lmdbPartition.isInitialized() );
+        assertTrue( lmdbPartition.isSyncOnWrite() );
+        lmdbPartition.setSyncOnWrite( false );
+        assertFalse( lmdbPartition.isSyncOnWrite() );
+
+        lmdbPartition.sync();
+        lmdbPartition.destroy( partitionTxn );
+    }
+
+
+    @Test
+    public void testSimplePropertiesLocked() throws Exception
+    {
+        AttributeType ouAt = schemaManager.getAttributeType( SchemaConstants.OU_AT );
+        AttributeType dcAt = schemaManager.getAttributeType( SchemaConstants.DC_AT );
+        AttributeType snAt = schemaManager.getAttributeType( SchemaConstants.SN_AT );
+        AttributeType aliasAt = schemaManager.getAttributeType( ApacheSchemaConstants.APACHE_ALIAS_AT );
+
+        assertNotNull( store.getAliasIndex() );
+
+        try
+        {
+            store.addIndex( new LmdbIndex<Dn>( ApacheSchemaConstants.APACHE_ALIAS_AT_OID, true ) );
+            fail();
+        }
+        catch ( IllegalStateException e )
+        {
+        }
+
+        assertNotNull( store.getRdnIndex() );
+
+        try
+        {
+            store.addIndex( new LmdbRdnIndex() );
+            fail();
+        }
+        catch ( IllegalStateException e )
+        {
+        }
+
+        try
+        {
+            store.setId( "foo" );
+            fail();
+        }
+        catch ( IllegalStateException e )
+        {
+        }
+
+        try
+        {
+            store.setSuffixDn( new Dn( schemaManager, "dc=example,dc=com" ) );
+            fail();
+        }
+        catch ( IllegalStateException e )
+        {
+        }
+
+        Iterator<String> systemIndices = store.getSystemIndices();
+
+        for ( int i = 0; i < 8; i++ )
+        {
+            assertTrue( systemIndices.hasNext() );
+            assertNotNull( systemIndices.next() );
+        }
+
+        assertFalse( systemIndices.hasNext() );
+        assertNotNull( store.getSystemIndex( aliasAt ) );
+
+        try
+        {
+            store.getSystemIndex( snAt );
+            fail();
+        }
+        catch ( IndexNotFoundException e )
+        {
+        }
+
+        Iterator<String> userIndices = store.getUserIndices();
+        int count = 0;
+
+        while ( userIndices.hasNext() )
+        {
+            userIndices.next();
+            count++;
+        }
+
+        assertEquals( 2, count );
+        assertFalse( store.hasUserIndexOn( dcAt ) );
+        assertTrue( store.hasUserIndexOn( ouAt ) );
+        assertTrue( store.hasSystemIndexOn( aliasAt ) );
+        assertNotNull( store.getUserIndex( ouAt ) );
+
+        try
+        {
+            store.getUserIndex( snAt );
+            fail();
+        }
+        catch ( IndexNotFoundException e )
+        {
+        }
+
+        try
+        {
+            store.setPartitionPath( new File( "." ).toURI() );
+            fail();
+        }
+        catch ( IllegalStateException e )
+        {
+        }
+
+        assertTrue( store.isInitialized() );
+        assertFalse( store.isSyncOnWrite() );
+
+        store.sync();
+    }
+
+
+    @Test(expected = LdapNoSuchObjectException.class)
+    public void testAddWithoutParentId() throws Exception
+    {
+        addEntry( new DefaultEntry( schemaManager, "cn=Marting King,ou=Not Present,o=Good Times Co.",
+            "objectClass: top",
+            "objectClass: person",
+            "objectClass: organizationalPerson",
+            "ou: Not Present",
+            "cn: Martin King" ) );
+    }
+
+
+    @Test(expected = LdapSchemaViolationException.class)
+    public void testAddWithoutObjectClass() throws Exception
+    {
+        addEntry( new DefaultEntry( schemaManager, "cn=Martin King,ou=Sales,o=Good Times Co.",
+            "ou: Sales",
+            "cn: Martin King" ) );
+    }
+
+
+    @Test
+    public void testRename() throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "cn=Private Ryan,ou=Engineering,o=Good Times Co." );
+        addEntry( createPerson( dn.getName(), "Private Ryan" ) );
+
+        store.rename( partitionTxn, dn, new Rdn( schemaManager, "sn=Ja\\+es" ), true, null );
+
+        Dn dn2 = new Dn( schemaManager, "sn=Ja\\+es,ou=Engineering,o=Good Times Co." );
+        String id = store.getEntryId( partitionTxn, dn2 );
+        assertNotNull( id );
+        assertNull( store.getEntryId( partitionTxn, dn ) );
+
+        Entry renamed = store.fetch( partitionTxn, id, dn2 );
+        assertEquals( "Ja+es", renamed.get( "sn" ).getString() );
+        assertEquals( dn2, store.getEntryDn( partitionTxn, id ) );
+    }
+
+
+    @Test
+    public void testMove() throws Exception
+    {
+        Dn childDn = new Dn( schemaManager, "cn=Private Ryan,ou=Engineering,o=Good Times Co." );
+        Entry childEntry = createPerson( childDn.getName(), "Private Ryan" );
+        addEntry( childEntry );
+
+        Dn parentDn = new Dn( schemaManager, "ou=Sales,o=Good Times Co." );
+        Rdn rdn = new Rdn( schemaManager, "cn=Ryan" );
+
+        // The cn=Ryan RDN that will be added. The cn=Private Ryan RDN will be removed
+        Map<String, List<ModDnAva>> modDnAvas = new HashMap<>();
+        List<ModDnAva> modAvas = new ArrayList<>();
+        modAvas.add( new ModDnAva( ModDnAva.ModDnType.ADD, rdn.getAva() ) );
+        modAvas.add( new ModDnAva( ModDnAva.ModDnType.DELETE, childDn.getRdn().getAva() ) );
+        modDnAvas.put( SchemaConstants.CN_AT_OID, modAvas );
+
+        store.moveAndRename( partitionTxn, childDn, parentDn, rdn, modDnAvas, childEntry );
+
+        assertNotNull( store.getEntryId( partitionTxn, new Dn( schemaManager, "cn=Ryan,ou=Sales,o=Good Times Co." ) ) );
+
+        // to drop the alias indices
+        childDn = new Dn( schemaManager, "commonName=Jim Bean,ou=Apache,ou=Board of Directors,o=Good Times Co." );
+        parentDn = new Dn( schemaManager, "ou=Engineering,o=Good Times Co." );
+
+        assertEquals( 3, store.getSubAliasIndex().count( partitionTxn ) );
+
+        store.move( partitionTxn, childDn, parentDn, parentDn.add( childDn.getRdn() ), null );
+
+        assertEquals( 3, store.getSubAliasIndex().count( partitionTxn ) );
+    }
+
+
+    @Test
+    public void testModifyReplace() throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+        AttributeType snAt = schemaManager.getAttributeType( SchemaConstants.SN_AT );
+
+        Entry lookedup = store.fetch( partitionTxn, store.getEntryId( partitionTxn, dn ), dn );
+        assertEquals( "WAlkeR", lookedup.get( "sn" ).get().getString() );
+
+        Attribute attrib = new DefaultAttribute( SchemaConstants.SN_AT, snAt );
+        attrib.add( "Johnny" );
+
+        lookedup = store.modify( partitionTxn, dn,
+            new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, attrib ) );
+        assertEquals( "Johnny", lookedup.get( "sn" ).get().getString() );
+
+        Modification replace = new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, snAt, "JWalker" );
+        lookedup = store.modify( partitionTxn, dn, replace );
+        assertEquals( "JWalker", lookedup.get( "sn" ).get().getString() );
+        assertEquals( 1, lookedup.get( "sn" ).size() );
+    }
+
+
+    @Test
+    public void testModifyRemove() throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+        AttributeType snAt = schemaManager.getAttributeType( SchemaConstants.SN_AT );
+
+        Entry lookedup = store.modify( partitionTxn, dn,
+            new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE, new DefaultAttribute( snAt ) ) );
+        assertNull( lookedup.get( "sn" ) );
+
+        lookedup = store.modify( partitionTxn, dn,
+            new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, snAt, "JWalker" ) );
+        assertNotNull( lookedup.get( "sn" ) );
+
+        lookedup = store.modify( partitionTxn, dn, new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE,
+            snAt ) );
+        assertNull( lookedup.get( "sn" ) );
+    }
+
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testModifyReplaceNonExistingIndexAttribute() throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "cn=Tim B,ou=Sales,o=Good Times Co." );
+        addEntry( new DefaultEntry( schemaManager, dn,
+            "objectClass: top",
+            "objectClass: person",
+            "objectClass: organizationalPerson",
+            "cn", "Tim B",
+            "entryCSN", new CsnFactory( 1 ).newInstance().toString(),
+            "entryUUID", UUID.randomUUID().toString() ) );
+
+        Entry lookedup = store.fetch( partitionTxn, store.getEntryId( partitionTxn, dn ), dn );
+        assertNull( lookedup.get( "ou" ) );
+
+        lookedup = store.modify( partitionTxn, dn, new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
+            schemaManager.getAttributeType( SchemaConstants.OU_AT ), "Marketing" ) );
+        assertEquals( "Marketing", lookedup.get( "ou" ).get().getString() );
+
+        Index<String, String> ouIndex = ( Index<String, String> ) store.getUserIndex( schemaManager
+            .getAttributeType( SchemaConstants.OU_AT ) );
+        assertTrue( ouIndex.forward( partitionTxn, "marketing" ) );
+    }
+
+
+    /**
+     * A reader on a snapshot taken before a rename must not put the old DN back
+     * in the shared DN cache.
+     */
+    @Test
+    public void testSnapshotReaderDoesNotCacheStaleDn() throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "cn=Private Ryan,ou=Engineering,o=Good Times Co." );
+        addEntry( createPerson( dn.getName(), "Private Ryan" ) );
+        String id = store.getEntryId( partitionTxn, dn );
+
+        PartitionReadTxn oldSnapshot = store.beginReadTransaction();
+
+        try
+        {
+            store.rename( partitionTxn, dn, new Rdn( schemaManager, "cn=Ryan" ), false, null );
+
+            // The old snapshot still sees the old DN
+            assertEquals( dn, store.getEntryDn( oldSnapshot, id ) );
+            assertEquals( dn, store.fetch( oldSnapshot, id ).getDn() );
+        }
+        finally
+        {
+            oldSnapshot.close();
+        }
+
+        // The new readers see the new DN, not the one read from the old snapshot
+        Dn newDn = new Dn( schemaManager, "cn=Ryan,ou=Engineering,o=Good Times Co." );
+
+        try ( PartitionTxn newSnapshot = store.beginReadTransaction() )
+        {
+            assertEquals( newDn, store.getEntryDn( newSnapshot, id ) );
+        }
+
+        assertEquals( newDn, store.getEntryDn( partitionTxn, id ) );
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.server.core.api.partition.PartitionReadTxn;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.api.partition.PartitionWriteTxn;
+import org.apache.directory.server.xdbm.MockPartitionReadTxn;
+import org.apache.directory.server.xdbm.MockPartitionWriteTxn;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the LmdbTable, with and without duplicate values, and for the
+ * transactions of the LMDB environment.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LmdbTableTest
+{
+    private LmdbEnvironment environment;
+
+    private LmdbTable<String, String> noDups;
+
+    private LmdbTable<String, String> dups;
+
+    private PartitionTxn partitionTxn;
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+
+    @Before
+    public void createTables() throws Exception
+    {
+        environment = new LmdbEnvironment( tmpDir.getRoot(), LmdbEnvironment.DEFAULT_MAP_SIZE,
+            LmdbEnvironment.DEFAULT_MAX_READERS, false );
+
+        noDups = new LmdbTable<>( environment, null, "noDups", StringSerializer.INSTANCE,
+            StringSerializer.INSTANCE, false );
+        dups = new LmdbTable<>( environment, null, "dups", StringSerializer.INSTANCE,
+            StringSerializer.INSTANCE, true );
+
+        partitionTxn = new MockPartitionWriteTxn();
+    }
+
+
+    @After
+    public void destroyTables() throws Exception
+    {
+        if ( environment != null )
+        {
+            environment.close();
+        }
+    }
+
+
+    @Test
+    public void testNoDups() throws Exception
+    {
+        assertEquals( 0, noDups.count( partitionTxn ) );
+        assertNull( noDups.get( partitionTxn, "a" ) );
+
+        noDups.put( partitionTxn, "a", "1" );
+        noDups.put( partitionTxn, "b", "2" );
+        noDups.put( partitionTxn, "a", "3" );
+
+        assertEquals( 2, noDups.count( partitionTxn ) );
+        assertEquals( "3", noDups.get( partitionTxn, "a" ) );
+        assertTrue( noDups.has( partitionTxn, "a", "3" ) );
+        assertFalse( noDups.has( partitionTxn, "a", "1" ) );
+        assertEquals( 1, noDups.count( partitionTxn, "b" ) );
+
+        // Removing a key with a value it's not associated with does nothing
+        noDups.remove( partitionTxn, "b", "1" );
+        assertTrue( noDups.has( partitionTxn, "b" ) );
+
+        noDups.remove( partitionTxn, "b", "2" );
+        assertFalse( noDups.has( partitionTxn, "b" ) );
+        assertEquals( 1, noDups.count( partitionTxn ) );
+    }
+
+
+    @Test
+    public void testDups() throws Exception
+    {
+        dups.put( partitionTxn, "a", "3" );
+        dups.put( partitionTxn, "a", "1" );
+        dups.put( partitionTxn, "a", "2" );
+        dups.put( partitionTxn, "a", "2" );
+        dups.put( partitionTxn, "c", "1" );
+
+        assertEquals( 4, dups.count( partitionTxn ) );
+        assertEquals( 3, dups.count( partitionTxn, "a" ) );
+        assertEquals( 0, dups.count( partitionTxn, "b" ) );
+
+        // The first value is returned
+        assertEquals( "1", dups.get( partitionTxn, "a" ) );
+        assertTrue( dups.has( partitionTxn, "a", "2" ) );
+        assertFalse( dups.has( partitionTxn, "a", "4" ) );
+
+        assertTrue( dups.hasGreaterOrEqual( partitionTxn, "b" ) );
+        assertFalse( dups.hasGreaterOrEqual( partitionTxn, "d" ) );
+        assertTrue( dups.hasLessOrEqual( partitionTxn, "b" ) );
+        assertFalse( dups.hasLessOrEqual( partitionTxn, "0" ) );
+        assertTrue( dups.hasGreaterOrEqual( partitionTxn, "a", "3" ) );
+        assertFalse( dups.hasGreaterOrEqual( partitionTxn, "a", "4" ) );
+        assertTrue( dups.hasLessOrEqual( partitionTxn, "a", "1" ) );
+        assertFalse( dups.hasLessOrEqual( partitionTxn, "a", "0" ) );
+
+        dups.remove( partitionTxn, "a", "2" );
+        assertEquals( 2, dups.count( partitionTxn, "a" ) );
+
+        dups.remove( partitionTxn, "a" );
+        assertFalse( dups.has( partitionTxn, "a" ) );
+        assertEquals( 1, dups.count( partitionTxn ) );
+    }
+
+
+    @Test
+    public void testCursor() throws Exception
+    {
+        dups.put( partitionTxn, "a", "1" );
+        dups.put( partitionTxn, "a", "2" );
+        dups.put( partitionTxn, "c", "1" );
+        dups.put( partitionTxn, "c", "2" );
+        dups.put( partitionTxn, "e", "1" );
+
+        try ( Cursor<Tuple<String, String>> cursor = dups.cursor() )
+        {
+            assertTrue( cursor.first() );
+            assertTuple( cursor, "a", "1" );
+            assertTrue( cursor.next() );
+            assertTuple( cursor, "a", "2" );
+            assertTrue( cursor.next() );
+            assertTuple( cursor, "c", "1" );
+
+            assertTrue( cursor.last() );
+            assertTuple( cursor, "e", "1" );
+            assertFalse( cursor.next() );
+            assertFalse( cursor.available() );
+            assertTrue( cursor.previous() );
+            assertTuple( cursor, "e", "1" );
+
+            // Positioning before a missing key
+            cursor.before( new Tuple<String, String>( "b", null ) );
+            assertTrue( cursor.next() );
+            assertTuple( cursor, "c", "1" );
+
+            cursor.before( new Tuple<String, String>( "b", null ) );
+            assertTrue( cursor.previous() );
+            assertTuple( cursor, "a", "2" );
+
+            // Positioning after all the values of a key
+            cursor.after( new Tuple<String, String>( "c", null ) );
+            assertTrue( cursor.next() );
+            assertTuple( cursor, "e", "1" );
+
+            cursor.after( new Tuple<String, String>( "c", null ) );
+            assertTrue( cursor.previous() );
+            assertTuple( cursor, "c", "2" );
+
+            // Positioning on a key and a value
+            cursor.before( new Tuple<String, String>( "c", "2" ) );
+            assertTrue( cursor.next() );
+            assertTuple( cursor, "c", "2" );
+
+            cursor.after( new Tuple<String, String>( "a", "1" ) );
+            assertTrue( cursor.next() );
+            assertTuple( cursor, "a", "2" );
+
+            cursor.after( new Tuple<String, String>( "f", null ) );
+            assertFalse( cursor.next() );
+            assertTrue( cursor.previous() );
+            assertTuple( cursor, "e", "1" );
+        }
+
+        try ( Cursor<Tuple<String, String>> cursor = dups.cursor( partitionTxn, "c" ) )
+        {
+            assertTrue( cursor.next() );
+            assertTuple( cursor, "c", "1" );
+            assertTrue( cursor.next() );
+            assertTuple( cursor, "c", "2" );
+            assertFalse( cursor.next() );
+            assertTrue( cursor.previous() );
+            assertTuple( cursor, "c", "2" );
+        }
+
+        try ( Cursor<String> cursor = dups.valueCursor( partitionTxn, "a" ) )
+        {
+            assertTrue( cursor.last() );
+            assertEquals( "2", cursor.get() );
+            assertTrue( cursor.previous() );
+            assertEquals( "1", cursor.get() );
+            assertFalse( cursor.previous() );
+        }
+    }
+
+
+    @Test
+    public void testReadTransactionIsASnapshot() throws Exception
+    {
+        noDups.put( partitionTxn, "a", "1" );
+
+        PartitionReadTxn readTxn = environment.beginReadTransaction();
+        assertTrue( readTxn.isSnapshot() );
+
+        try ( Cursor<Tuple<String, String>> cursor = noDups.cursor( readTxn ) )
+        {
+            // The changes done after the read transaction has started are not visible
+            noDups.put( partitionTxn, "b", "2" );
+
+            assertFalse( noDups.has( readTxn, "b" ) );
+            assertTrue( noDups.has( new MockPartitionReadTxn(), "b" ) );
+
+            // The cursor can be read after the transaction has been closed
+            readTxn.close();
+
+            assertTrue( cursor.next() );
+            assertTuple( cursor, "a", "1" );
+            assertFalse( cursor.next() );
+        }
+    }
+
+
+    @Test
+    public void testWriteTransaction() throws Exception
+    {
+        PartitionWriteTxn writeTxn = environment.beginWriteTransaction();
+        noDups.put( writeTxn, "a", "1" );
+
+        // Visible from the transaction, and from the thread which started it
+        assertTrue( noDups.has( writeTxn, "a" ) );
+        assertTrue( noDups.has( null, "a" ) );
+
+        // A nested transaction joins the running one
+        PartitionWriteTxn nested = environment.beginWriteTransaction();
+        noDups.put( nested, "b", "2" );
+        nested.commit();
+
+        writeTxn.abort();
+
+        assertFalse( noDups.has( partitionTxn, "a" ) );
+        assertFalse( noDups.has( partitionTxn, "b" ) );
+
+        writeTxn = environment.beginWriteTransaction();
+        noDups.put( writeTxn, "a", "1" );
+        writeTxn.commit();
+
+        assertTrue( noDups.has( partitionTxn, "a" ) );
+    }
+
+
+    @Test( expected = LdapException.class )
+    public void testKeyTooBig() throws Exception
+    {
+        StringBuilder key = new StringBuilder();
+
+        for ( int i = 0; i < 1024; i++ )
+        {
+            key.append( 'x' );
+        }
+
+        noDups.put( partitionTxn, key.toString(), "1" );
+    }
+
+
+    private static void assertTuple( Cursor<Tuple<String, String>> cursor, String key, String value )
+        throws Exception
+    {
+        Tuple<String, String> tuple = cursor.get();
+
+        assertEquals( key, tuple.getKey() );
+        assertEquals( value, tuple.getValue() );
+    }
+}
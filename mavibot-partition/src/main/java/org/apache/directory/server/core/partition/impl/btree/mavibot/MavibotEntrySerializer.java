@@ -21,11 +21,8 @@ package org.apache.directory.server.core.partition.impl.btree.mavibot;
 
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
 import java.nio.ByteBuffer;
 import java.util.Comparator;
 
@@ -42,6 +39,7 @@ import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.mavibot.btree.serializer.AbstractElementSerializer;
 import org.apache.directory.mavibot.btree.serializer.BufferHandler;
 import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.CompactEntryCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,6 +47,8 @@ import org.slf4j.LoggerFactory;
 /**
  * Serialize and deserialize a ServerEntry. There is a big difference with the standard
  * Entry serialization : we don't serialize the entry's Dn, we just serialize it's Rdn.
+ * The entries are written using the {@link CompactEntryCodec} format, the entries written
+ * by the previous versions with an ObjectOutputStream being still read.
  * <br><br>
  * <b>This class must *not* be used outside of the server.</b>
  *  
@@ -102,75 +102,14 @@ public class MavibotEntrySerializer extends AbstractElementSerializer<Entry>
 
 
     /**
-     * <p>
-     * 
-     * This is the place where we serialize entries, and all theirs
-     * elements. the reason why we don't call the underlying methods
-     * (<code>ServerAttribute.write(), Value.write()</code>) is that we need
-     * access to the registries to read back the values.
-     * <p>
-     * The structure used to store the entry is the following :
-     * <ul>
-     *   <li><b>[a byte]</b> : if the Dn is empty 0 will be written else 1</li>
-     *   <li><b>[Rdn]</b> : The entry's Rdn.</li>
-     *   <li><b>[numberAttr]</b> : the bumber of attributes. Can be 0</li>
-     *   <li>For each Attribute :
-     *     <ul>
-     *       <li><b>[attribute's oid]</b> : The attribute's OID to get back
-     *       the attributeType on deserialization</li>
-     *       <li><b>[Attribute]</b> The attribute</li>
-     *     </ul>
-     *   </li>
-     * </ul>
+     * Serializes an entry using the {@link CompactEntryCodec} format. We just
+     * serialize the entry's Rdn, not its full Dn.
      */
     public byte[] serialize( Entry entry )
     {
         try
         {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-            ObjectOutput out = new ObjectOutputStream( baos );
-
-            // First, the Dn
-            Dn dn = entry.getDn();
-
-            // Write the Rdn of the Dn
-            if ( dn.isEmpty() )
-            {
-                out.writeByte( 0 );
-            }
-            else
-            {
-                out.writeByte( 1 );
-                Rdn rdn = dn.getRdn();
-                rdn.writeExternal( out );
-            }
-
-            // Then the attributes.
-            out.writeInt( entry.getAttributes().size() );
-
-            // Iterate through the keys. We store the Attribute
-            // here, to be able to restore it in the readExternal :
-            // we need access to the registries, which are not available
-            // in the ServerAttribute class.
-            for ( Attribute attribute : entry.getAttributes() )
-            {
-                AttributeType attributeType = attribute.getAttributeType();
-
-                // Write the oid to be able to restore the AttributeType when deserializing
-                // the attribute
-                String oid = attributeType.getOid();
-
-                out.writeUTF( oid );
-
-                // Write the attribute
-                attribute.writeExternal( out );
-            }
-
-            out.flush();
-
-            // Note : we don't store the ObjectClassAttribute. It has already
-            // been stored as an attribute.
+            byte[] bytes = CompactEntryCodec.encode( entry );
 
             if ( IS_DEBUG )
             {
@@ -178,7 +117,7 @@ public class MavibotEntrySerializer extends AbstractElementSerializer<Entry>
                 LOG.debug( "Serialize {}", entry );
             }
 
-            return baos.toByteArray();
+            return bytes;
         }
         catch ( Exception e )
         {
@@ -188,7 +127,7 @@ public class MavibotEntrySerializer extends AbstractElementSerializer<Entry>
 
 
     /**
-     *  Deserialize a Entry.
+     *  Deserialize a Entry. Its attributes are only decoded when they are read.
      *  
      *  @param buffer The buffer containing the serialized entry
      *  @return An instance of a Entry object 
@@ -199,6 +138,14 @@ public class MavibotEntrySerializer extends AbstractElementSerializer<Entry>
         // read the length
         int len = buffer.limit();
 
+        if ( CompactEntryCodec.isCompact( buffer.array(), buffer.position() ) )
+        {
+            Entry entry = CompactEntryCodec.decodeLazily( schemaManager, buffer.array(), buffer.position() );
+            buffer.position( buffer.position() + len ); // previous position + length
+
+            return entry;
+        }
+
         ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( buffer.array(), buffer.position(), len ) );
 
         try
@@ -298,6 +245,11 @@ public class MavibotEntrySerializer extends AbstractElementSerializer<Entry>
     @Override
     public Entry fromBytes( byte[] buffer, int pos ) throws IOException
     {
+        if ( CompactEntryCodec.isCompact( buffer, pos ) )
+        {
+            return CompactEntryCodec.decodeLazily( schemaManager, buffer, pos );
+        }
+
         // read the length
         int len = buffer.length - pos;
 
@@ -131,6 +131,7 @@ class LdapProtocolHandler extends DemuxingIoHandler
 
         // Abandon all the requests
         ldapSession.abandonAllOutstandingRequests();
+        ldapSession.signalWriteQueue();
 
         if ( !ldapSession.getIoSession().isClosing() || ldapSession.getIoSession().isConnected() )
         {
@@ -152,6 +153,14 @@ class LdapProtocolHandler extends DemuxingIoHandler
     @Override
     public void messageSent( IoSession session, Object message ) throws Exception
     {
+        // Resume the search paused because the write queue was full, if any
+        LdapSession ldapSession = ldapServer.getLdapSessionManager().getLdapSession( session );
+
+        if ( ldapSession != null )
+        {
+            ldapSession.signalWriteQueue();
+        }
+
         // Do nothing : we have to ignore this message, otherwise we get an exception,
         // thanks to the way MINA 2 works ...
         if ( message instanceof IoBuffer )
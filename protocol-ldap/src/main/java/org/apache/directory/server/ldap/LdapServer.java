@@ -37,6 +37,10 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
 import javax.net.ssl.KeyManagerFactory;
 
@@ -153,6 +157,18 @@ public class LdapServer extends DirectoryBackedService
     /** The default maximum time limit. */
     private static final int MAX_TIME_LIMIT_DEFAULT = 10000;
 
+    /** The default number of bytes scheduled for writing above which a search is paused : 4Mb */
+    private static final long WRITE_HIGH_WATERMARK_DEFAULT = 4L * 1024L * 1024L;
+
+    /** The default number of bytes scheduled for writing below which a paused search resumes : 1Mb */
+    private static final long WRITE_LOW_WATERMARK_DEFAULT = 1024L * 1024L;
+
+    /** The default number of bytes scheduled for writing above which the notifications are dropped : 16Mb */
+    private static final long MAX_NOTIFICATION_WRITE_BYTES_DEFAULT = 16L * 1024L * 1024L;
+
+    /** The name of the filter running the requests on the executor threads */
+    static final String EXECUTOR_FILTER_NAME = "executor";
+
     /** The default service pid. */
     private static final String SERVICE_PID_DEFAULT = "org.apache.directory.server.ldap";
 
@@ -180,6 +196,24 @@ public class LdapServer extends DirectoryBackedService
     /** The maximum size for an incoming PDU */
     private int maxPDUSize = Integer.MAX_VALUE;
 
+    /** The number of bytes scheduled for writing above which a search is paused */
+    private long writeHighWatermark = WRITE_HIGH_WATERMARK_DEFAULT;
+
+    /** The number of bytes scheduled for writing below which a paused search resumes */
+    private long writeLowWatermark = WRITE_LOW_WATERMARK_DEFAULT;
+
+    /** The number of bytes scheduled for writing above which the notifications are dropped */
+    private long maxNotificationWriteBytes = MAX_NOTIFICATION_WRITE_BYTES_DEFAULT;
+
+    /** The statistics about the paused searches */
+    private final WriteBackpressureStats writeBackpressureStats = new WriteBackpressureStats();
+
+    /** The timer resuming the suspended searches when their time limit is reached */
+    private ScheduledExecutorService suspendedSearchTimer;
+
+    /** The threads running the resumed searches */
+    private ExecutorService resumedSearchExecutor;
+
     /** If LDAPS is activated : the external Keystore file, if defined */
     private String keystoreFile;
 
@@ -559,7 +593,7 @@ public class LdapServer extends DirectoryBackedService
             // Now inject an ExecutorFilter for the write operations
             // We use the same number of thread than the number of IoProcessor
             // (NOTE : this has to be double checked)
-            ( ( DefaultIoFilterChainBuilder ) chain ).addLast( "executor", new ExecutorFilter(
+            ( ( DefaultIoFilterChainBuilder ) chain ).addLast( EXECUTOR_FILTER_NAME, new ExecutorFilter(
                 new UnorderedThreadPoolExecutor( transport.getNbThreads() ), IoEventType.MESSAGE_RECEIVED ) );
 
             /*
@@ -681,6 +715,21 @@ public class LdapServer extends DirectoryBackedService
             LOG.warn( "Failed to sent NoD.", e );
         }
 
+        synchronized ( this )
+        {
+            if ( suspendedSearchTimer != null )
+            {
+                suspendedSearchTimer.shutdownNow();
+                suspendedSearchTimer = null;
+            }
+
+            if ( resumedSearchExecutor != null )
+            {
+                resumedSearchExecutor.shutdownNow();
+                resumedSearchExecutor = null;
+            }
+        }
+
         started = false;
         LOG.info( "Ldap service stopped." );
     }
@@ -1010,6 +1059,152 @@ public class LdapServer extends DirectoryBackedService
     }
 
 
+    /**
+     * Sets the number of bytes scheduled for writing on a session above which the
+     * searches of this session are suspended, until the client has read enough of the
+     * entries. A negative or zero value disables the flow control.
+     *
+     * @param writeHighWatermark the high watermark, in bytes
+     */
+    public void setWriteHighWatermark( long writeHighWatermark )
+    {
+        this.writeHighWatermark = writeHighWatermark;
+    }
+
+
+    /**
+     * @return the number of bytes scheduled for writing above which a search is paused
+     */
+    public long getWriteHighWatermark()
+    {
+        return writeHighWatermark;
+    }
+
+
+    /**
+     * Sets the number of bytes scheduled for writing on a session below which the
+     * paused searches of this session resume.
+     *
+     * @param writeLowWatermark the low watermark, in bytes
+     */
+    public void setWriteLowWatermark( long writeLowWatermark )
+    {
+        this.writeLowWatermark = writeLowWatermark;
+    }
+
+
+    /**
+     * @return the number of bytes scheduled for writing below which a paused search resumes
+     */
+    public long getWriteLowWatermark()
+    {
+        return writeLowWatermark;
+    }
+
+
+    /**
+     * Sets the number of bytes scheduled for writing on a session above which the
+     * persistent searches and the replication consumers of this session are considered
+     * too slow : the persistent searches are ended, and the replication connections are
+     * closed. A negative or zero value disables the limit.
+     *
+     * @param maxNotificationWriteBytes the limit, in bytes
+     */
+    public void setMaxNotificationWriteBytes( long maxNotificationWriteBytes )
+    {
+        this.maxNotificationWriteBytes = maxNotificationWriteBytes;
+    }
+
+
+    /**
+     * @return the number of bytes scheduled for writing above which the notifications are dropped
+     */
+    public long getMaxNotificationWriteBytes()
+    {
+        return maxNotificationWriteBytes;
+    }
+
+
+    /**
+     * @return the statistics about the searches paused because of a slow client
+     */
+    public WriteBackpressureStats getWriteBackpressureStats()
+    {
+        return writeBackpressureStats;
+    }
+
+
+    /**
+     * @return the timer used to resume the suspended searches when their time limit is reached
+     */
+    public synchronized ScheduledExecutorService getSuspendedSearchTimer()
+    {
+        if ( suspendedSearchTimer == null )
+        {
+            suspendedSearchTimer = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+            {
+                @Override
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable, "suspendedSearchTimer" );
+                    thread.setDaemon( true );
+
+                    return thread;
+                }
+            } );
+        }
+
+        return suspendedSearchTimer;
+    }
+
+
+    /**
+     * Gets the executor running the searches resumed once their client has read the
+     * pending entries. The MINA executor processing the requests only accepts I/O
+     * events, so the resumed searches have their own threads, as many as the I/O
+     * executor has.
+     *
+     * @return the executor running the resumed searches
+     */
+    public synchronized ExecutorService getResumedSearchExecutor()
+    {
+        if ( resumedSearchExecutor == null )
+        {
+            int nbThreads = 0;
+
+            if ( getTransports() != null )
+            {
+                for ( Transport transport : getTransports() )
+                {
+                    nbThreads = Math.max( nbThreads, transport.getNbThreads() );
+                }
+            }
+
+            if ( nbThreads <= 0 )
+            {
+                nbThreads = Runtime.getRuntime().availableProcessors();
+            }
+
+            resumedSearchExecutor = Executors.newFixedThreadPool( nbThreads, new ThreadFactory()
+            {
+                private int count;
+
+
+                @Override
+                public synchronized Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable, "resumedSearch-" + count++ );
+                    thread.setDaemon( true );
+
+                    return thread;
+                }
+            } );
+        }
+
+        return resumedSearchExecutor;
+    }
+
+
     /**
      * Gets the {@link ExtendedOperationHandler}s.
      *
@@ -22,8 +22,12 @@ package org.apache.directory.server.ldap;
 
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
@@ -96,6 +100,9 @@ public class LdapSession
     /** A map containing all the paged search context */
     private Map<Integer, PagedSearchContext> pagedSearchContexts;
 
+    /** The suspended searches, with the number of scheduled bytes each of them waits for */
+    private final Map<Runnable, Long> suspendedSearches = new LinkedHashMap<>();
+
 
     /**
      * Creates a new instance of LdapSession associated with the underlying
@@ -115,6 +122,146 @@ public class LdapSession
     }
 
 
+    /**
+     * Suspends a search until the number of bytes scheduled for writing on this session
+     * goes below the given low watermark, or the session is closing. The search is then
+     * resumed on the server executor, so that no thread waits for a slow client. It can
+     * also be resumed earlier using {@link #resumeSearch(Runnable)}.
+     *
+     * @param lowWatermark the number of scheduled bytes to wait for
+     * @param search the search to resume
+     */
+    public void suspendSearch( long lowWatermark, Runnable search )
+    {
+        synchronized ( suspendedSearches )
+        {
+            suspendedSearches.put( search, Math.max( lowWatermark, 0L ) );
+        }
+
+        // The queue may have drained before the search was registered
+        signalWriteQueue();
+    }
+
+
+    /**
+     * Resumes a suspended search now, when it has been abandoned or its time limit
+     * is reached. Nothing is done if the search is not suspended.
+     *
+     * @param search the search to resume
+     */
+    public void resumeSearch( Runnable search )
+    {
+        boolean suspended;
+
+        synchronized ( suspendedSearches )
+        {
+            suspended = suspendedSearches.remove( search ) != null;
+        }
+
+        if ( suspended )
+        {
+            execute( search );
+        }
+    }
+
+
+    /**
+     * Resumes the suspended searches if the write queue has drained enough, or if
+     * the session is closing. Called each time a message has been sent.
+     */
+    public void signalWriteQueue()
+    {
+        List<Runnable> resumed = null;
+
+        synchronized ( suspendedSearches )
+        {
+            if ( suspendedSearches.isEmpty() )
+            {
+                return;
+            }
+
+            long scheduledBytes = ioSession.getScheduledWriteBytes();
+            boolean closing = ioSession.isClosing();
+            Iterator<Map.Entry<Runnable, Long>> iterator = suspendedSearches.entrySet().iterator();
+
+            while ( iterator.hasNext() )
+            {
+                Map.Entry<Runnable, Long> suspended = iterator.next();
+
+                if ( closing || ( scheduledBytes <= suspended.getValue() ) )
+                {
+                    iterator.remove();
+
+                    if ( resumed == null )
+                    {
+                        resumed = new ArrayList<>();
+                    }
+
+                    resumed.add( suspended.getKey() );
+                }
+            }
+        }
+
+        if ( resumed != null )
+        {
+            for ( Runnable search : resumed )
+            {
+                execute( search );
+            }
+        }
+    }
+
+
+    /**
+     * @return the number of suspended searches
+     */
+    public int getSuspendedSearchCount()
+    {
+        synchronized ( suspendedSearches )
+        {
+            return suspendedSearches.size();
+        }
+    }
+
+
+    /**
+     * Runs a resumed search on the server executor dedicated to the resumed searches,
+     * as this method is generally called from an I/O thread. Without server, the
+     * search is run by the calling thread.
+     */
+    private void execute( Runnable search )
+    {
+        if ( ldapServer != null )
+        {
+            ldapServer.getResumedSearchExecutor().execute( search );
+        }
+        else
+        {
+            search.run();
+        }
+    }
+
+
+    /**
+     * Tells if the client does not read the notifications (persistent search entries or
+     * replicated changes) fast enough : the number of bytes scheduled for writing on this
+     * session is above the server limit.
+     *
+     * @return true if no more notification should be written on this session
+     */
+    public boolean isNotificationBacklogFull()
+    {
+        if ( ldapServer == null )
+        {
+            return false;
+        }
+
+        long maxBytes = ldapServer.getMaxNotificationWriteBytes();
+
+        return ( maxBytes > 0L ) && ( ioSession.getScheduledWriteBytes() > maxBytes );
+    }
+
+
     /**
      * Check if the session is authenticated. There are two conditions for
      * a session to be authenticated :<br>
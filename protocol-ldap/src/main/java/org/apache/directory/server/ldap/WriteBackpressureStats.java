@@ -0,0 +1,103 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap;
+
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * The statistics about the searches paused because the client does not read the
+ * results as fast as they are produced, and the session write queue is full.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class WriteBackpressureStats
+{
+    /** The number of searches currently suspended until their write queue drains */
+    private final AtomicInteger pausedSessions = new AtomicInteger();
+
+    /** The number of times a search has been paused */
+    private final AtomicLong pauses = new AtomicLong();
+
+    /** The total time the searches have been paused, in milliseconds */
+    private final AtomicLong pausedTime = new AtomicLong();
+
+
+    /**
+     * Records the beginning of a pause.
+     */
+    public void pauseStarted()
+    {
+        pausedSessions.incrementAndGet();
+        pauses.incrementAndGet();
+    }
+
+
+    /**
+     * Records the end of a pause.
+     *
+     * @param duration The pause duration, in milliseconds
+     */
+    public void pauseEnded( long duration )
+    {
+        pausedSessions.decrementAndGet();
+        pausedTime.addAndGet( duration );
+    }
+
+
+    /**
+     * @return The number of searches currently suspended until their write queue drains
+     */
+    public int getPausedSessions()
+    {
+        return pausedSessions.get();
+    }
+
+
+    /**
+     * @return The number of times a search has been paused
+     */
+    public long getPauses()
+    {
+        return pauses.get();
+    }
+
+
+    /**
+     * @return The total time the searches have been paused, in milliseconds
+     */
+    public long getPausedTime()
+    {
+        return pausedTime.get();
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "WriteBackpressureStats [" + pausedSessions.get() + " paused sessions, " + pauses.get()
+            + " pauses, " + pausedTime.get() + " ms]";
+    }
+}
@@ -24,8 +24,11 @@ import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.message.AbandonListener;
 import org.apache.directory.api.ldap.model.message.AbandonableRequest;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
 import org.apache.directory.api.ldap.model.message.SearchRequest;
 import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+import org.apache.directory.api.ldap.model.message.SearchResultDoneImpl;
 import org.apache.directory.api.ldap.model.message.SearchResultEntryImpl;
 import org.apache.directory.api.ldap.model.message.controls.ChangeType;
 import org.apache.directory.api.ldap.model.message.controls.EntryChange;
@@ -55,9 +58,11 @@ import org.slf4j.LoggerFactory;
  * persistent search implementation which uses the event notification scheme built into
  * the server core.  
  * 
- * This listener is disabled only when a session closes or when an abandon request 
- * cancels it.  Hence time and size limits in normal search operations do not apply
- * here.
+ * This listener is disabled only when a session closes, when an abandon request 
+ * cancels it, or when the client does not read the entries and too many bytes are
+ * waiting to be written on its session, or when the EventService drops it because
+ * its pending changes overflow.  Hence time and size limits in normal search
+ * operations do not apply here.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -71,6 +76,9 @@ public class PersistentSearchListener implements DirectoryListener, AbandonListe
     private LookupOperationContext filterCtx;
     private SchemaManager schemaManager;
 
+    /** Set when the persistent search has been ended because the client or the server was too slow */
+    private volatile boolean dropped;
+
     public PersistentSearchListener( LdapSession session, SearchRequest req )
     {
         this.session = session;
@@ -159,7 +167,7 @@ public class PersistentSearchListener implements DirectoryListener, AbandonListe
         respEntry.setEntry( entry );
         
         setECResponseControl( respEntry, addContext, ChangeType.ADD );
-        session.getIoSession().write( respEntry );
+        send( respEntry );
     }
 
 
@@ -175,7 +183,7 @@ public class PersistentSearchListener implements DirectoryListener, AbandonListe
         filterEntry( deleteContext.getEntry() );
         respEntry.setEntry( deleteContext.getEntry() );
         setECResponseControl( respEntry, deleteContext, ChangeType.DELETE );
-        session.getIoSession().write( respEntry );
+        send( respEntry );
     }
 
 
@@ -194,7 +202,7 @@ public class PersistentSearchListener implements DirectoryListener, AbandonListe
         respEntry.setEntry( entry );
 
         setECResponseControl( respEntry, modifyContext, ChangeType.MODIFY );
-        session.getIoSession().write( respEntry );
+        send( respEntry );
     }
 
 
@@ -213,7 +221,7 @@ public class PersistentSearchListener implements DirectoryListener, AbandonListe
         respEntry.setEntry( entry );
         
         setECResponseControl( respEntry, moveContext, ChangeType.MODDN );
-        session.getIoSession().write( respEntry );
+        send( respEntry );
     }
 
 
@@ -238,10 +246,70 @@ public class PersistentSearchListener implements DirectoryListener, AbandonListe
         respEntry.setEntry( entry );
         
         setECResponseControl( respEntry, renameContext, ChangeType.MODDN );
-        session.getIoSession().write( respEntry );
+        send( respEntry );
     }
     
     
+    /**
+     * Writes an entry to the client, unless the client does not read the entries fast
+     * enough. In this case, the persistent search is ended with an adminLimitExceeded
+     * result, instead of letting the entries pile up in the session write queue.
+     *
+     * @param respEntry The entry to send
+     */
+    private synchronized void send( SearchResultEntry respEntry )
+    {
+        if ( dropped )
+        {
+            return;
+        }
+
+        if ( session.isNotificationBacklogFull() )
+        {
+            LOG.warn( "The client of the persistent search {} does not read the changes, the search is ended", req );
+            abandon();
+            end( "The client does not read the persistent search changes" );
+
+            return;
+        }
+
+        session.getIoSession().write( respEntry );
+    }
+
+
+    /**
+     * The EventService has removed this listener because the changes were not
+     * processed fast enough : the persistent search is ended with an
+     * adminLimitExceeded result, so that the client knows it won't get the
+     * following changes.
+     */
+    public void listenerDropped()
+    {
+        LOG.warn( "The persistent search {} does not keep up with the changes, the search is ended", req );
+        end( "The server can't keep up with the persistent search changes" );
+    }
+
+
+    /**
+     * Sends the SearchResultDone ending the persistent search, only once.
+     */
+    private synchronized void end( String message )
+    {
+        if ( dropped )
+        {
+            return;
+        }
+
+        dropped = true;
+        session.unregisterOutstandingRequest( req );
+
+        SearchResultDone done = new SearchResultDoneImpl( req.getMessageId() );
+        done.getLdapResult().setResultCode( ResultCodeEnum.ADMIN_LIMIT_EXCEEDED );
+        done.getLdapResult().setDiagnosticMessage( message );
+        session.getIoSession().write( done );
+    }
+
+
     /**
      * A convenient method to filter the contents of an entry
      * 
@@ -26,6 +26,7 @@ import static org.apache.directory.server.ldap.LdapServer.NO_TIME_LIMIT;
 
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.exception.ExceptionUtils;
@@ -44,6 +45,8 @@ import org.apache.directory.api.ldap.model.filter.EqualityNode;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
 import org.apache.directory.api.ldap.model.filter.OrNode;
 import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.message.AbandonListener;
+import org.apache.directory.api.ldap.model.message.AbandonableRequest;
 import org.apache.directory.api.ldap.model.message.Control;
 import org.apache.directory.api.ldap.model.message.LdapResult;
 import org.apache.directory.api.ldap.model.message.MessageTypeEnum;
@@ -139,7 +142,13 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
          */
         if ( !psearch.isChangesOnly() )
         {
-            SearchResultDone done = doSimpleSearch( session, req );
+            SearchResultDone done = doSimpleSearch( session, req, psearch );
+
+            if ( done == null )
+            {
+                // The search has been suspended : it will start listening once done
+                return;
+            }
 
             // ok if normal search beforehand failed somehow quickly abandon psearch
             if ( done.getLdapResult().getResultCode() != ResultCodeEnum.SUCCESS )
@@ -155,6 +164,17 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
             return;
         }
 
+        startPersistentSearch( session, req, psearch );
+    }
+
+
+    /**
+     * Starts listening to the changes selected by a persistent search, once its initial
+     * search, if any, is done.
+     */
+    private void startPersistentSearch( LdapSession session, SearchRequest req, PersistentSearch psearch )
+        throws Exception
+    {
         // now we process entries forever as they change
         PersistentSearchListener persistentSearchListener = new PersistentSearchListener( session, req );
 
@@ -290,14 +310,15 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
      * @param req the {@link SearchRequest} issued
      * @param session the {@link LdapSession} on which search was requested
      * @param cursor the {@link EntryFilteringCursor} over the search results
+     * @return the time limit set on the cursor, in milliseconds, or NO_TIME_LIMIT if none
      */
-    private void setTimeLimitsOnCursor( SearchRequest req, LdapSession session,
+    private long setTimeLimitsOnCursor( SearchRequest req, LdapSession session,
         final Cursor<Entry> cursor )
     {
         // Don't bother setting time limits for administrators
         if ( session.getCoreSession().isAnAdministrator() && req.getTimeLimit() == NO_TIME_LIMIT )
         {
-            return;
+            return NO_TIME_LIMIT;
         }
 
         /*
@@ -307,7 +328,7 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
          */
         if ( ldapServer.getMaxTimeLimit() == NO_TIME_LIMIT && req.getTimeLimit() == NO_TIME_LIMIT )
         {
-            return;
+            return NO_TIME_LIMIT;
         }
 
         /*
@@ -318,7 +339,7 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
         if ( req.getTimeLimit() == 0 )
         {
             cursor.setClosureMonitor( new SearchTimeLimitingMonitor( ldapServer.getMaxTimeLimit(), TimeUnit.SECONDS ) );
-            return;
+            return ldapServer.getMaxTimeLimit() * 1000L;
         }
 
         /*
@@ -329,7 +350,7 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
         if ( ldapServer.getMaxTimeLimit() >= req.getTimeLimit() )
         {
             cursor.setClosureMonitor( new SearchTimeLimitingMonitor( req.getTimeLimit(), TimeUnit.SECONDS ) );
-            return;
+            return req.getTimeLimit() * 1000L;
         }
 
         /*
@@ -338,6 +359,8 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
          * the search to the configured limit
          */
         cursor.setClosureMonitor( new SearchTimeLimitingMonitor( ldapServer.getMaxTimeLimit(), TimeUnit.SECONDS ) );
+
+        return ldapServer.getMaxTimeLimit() * 1000L;
     }
 
 
@@ -371,100 +394,71 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
     }
 
 
-    private void writeResults( LdapSession session, SearchRequest req, LdapResult ldapResult,
-        Cursor<Entry> cursor, long sizeLimit ) throws Exception
+    /**
+     * Writes the entries of a search. When the client is too slow, the search is suspended,
+     * and it will write its SearchResultDone (or start listening to the changes, for a
+     * persistent search) itself once resumed.
+     *
+     * @return <tt>false</tt> if the search has been suspended
+     */
+    boolean writeResults( LdapSession session, SearchRequest req, LdapResult ldapResult,
+        Cursor<Entry> cursor, long sizeLimit, long timeLimit, PersistentSearch psearch ) throws Exception
     {
-        long count = 0;
+        SimpleResultsWriter writer = new SimpleResultsWriter( session, req, ldapResult, cursor, sizeLimit,
+            timeLimit, psearch );
 
-        while ( ( count < sizeLimit ) && cursor.next() )
+        if ( !writer.writeEntries() )
         {
-            // Handle closed session
-            if ( session.getIoSession().isClosing() )
-            {
-                // The client has closed the connection
-                if ( IS_DEBUG )
-                {
-                    LOG.debug( "Request terminated for message {}, the client has closed the session",
-                        req.getMessageId() );
-                }
-
-                break;
-            }
-
-            if ( req.isAbandoned() )
-            {
-                cursor.close( new OperationAbandonedException() );
-
-                // The cursor has been closed by an abandon request.
-                if ( IS_DEBUG )
-                {
-                    LOG.debug( "Request terminated by an AbandonRequest for message {}", req.getMessageId() );
-                }
-
-                break;
-            }
-
-            Entry entry = cursor.get();
-            session.getIoSession().write( generateResponse( session, req, entry ) );
-
-            if ( IS_DEBUG )
-            {
-                LOG.debug( "Sending {}", entry.getDn() );
-            }
-
-            count++;
+            return false;
         }
 
-        // check if the result code is not already set
-        // the result code might be set when sort control is present
-        if ( ldapResult.getResultCode() == null )
-        {
-            // DO NOT WRITE THE RESPONSE - JUST RETURN IT
-            ldapResult.setResultCode( ResultCodeEnum.SUCCESS );
-        }
+        writer.finishResults();
 
-        if ( ( count >= sizeLimit ) && ( cursor.next() ) )
-        {
-            // We have reached the limit
-            // Move backward on the cursor to restore the previous position, as we moved forward
-            // to check if there is one more entry available
-            cursor.previous();
-            // Special case if the user has requested more elements than the request size limit
-            ldapResult.setResultCode( ResultCodeEnum.SIZE_LIMIT_EXCEEDED );
-        }
+        return true;
     }
 
 
-    private void readPagedResults( LdapSession session, SearchRequest req, LdapResult ldapResult,
+    /**
+     * Writes the entries of a page.
+     *
+     * @return <tt>false</tt> if the search has been suspended, and will write its
+     * SearchResultDone itself once resumed
+     */
+    private boolean readPagedResults( LdapSession session, SearchRequest req, LdapResult ldapResult,
         Cursor<Entry> cursor, long sizeLimit, int pagedLimit, PagedSearchContext pagedContext,
         PagedResults pagedResultsControl ) throws Exception
     {
         req.addAbandonListener( new SearchAbandonListener( ldapServer, cursor ) );
-        setTimeLimitsOnCursor( req, session, cursor );
+        long timeLimit = setTimeLimitsOnCursor( req, session, cursor );
 
         if ( IS_DEBUG )
         {
             LOG.debug( "using <{},{}> for size limit", sizeLimit, pagedLimit );
         }
 
-        int cookieValue = 0;
+        PagedResultsWriter writer = new PagedResultsWriter( session, req, ldapResult, cursor, sizeLimit, timeLimit,
+            pagedLimit, pagedContext, pagedResultsControl );
 
-        int count = pagedContext.getCurrentPosition();
-        int pageCount = 0;
-
-        while ( ( count < sizeLimit ) && ( pageCount < pagedLimit ) && cursor.next() )
+        if ( !writer.writeEntries() )
         {
-            if ( session.getIoSession().isClosing() )
-            {
-                break;
-            }
-
-            Entry entry = cursor.get();
-            session.getIoSession().write( generateResponse( session, req, entry ) );
-            count++;
-            pageCount++;
+            return false;
         }
 
+        writer.finishResults();
+
+        return true;
+    }
+
+
+    /**
+     * Ends a page, once its entries have been written.
+     */
+    private void finishPagedResults( LdapSession session, SearchRequest req, LdapResult ldapResult,
+        Cursor<Entry> cursor, long count, int pageCount, PagedSearchContext pagedContext,
+        PagedResults pagedResultsControl, long sizeLimit ) throws Exception
+    {
+        int cookieValue = 0;
+
         // DO NOT WRITE THE RESPONSE - JUST RETURN IT
         ldapResult.setResultCode( ResultCodeEnum.SUCCESS );
 
@@ -528,6 +522,442 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
     }
 
 
+    /**
+     * Writes the entries of a search, suspending it when the number of bytes scheduled for
+     * writing on the session exceeds the server high watermark. The executor thread is
+     * released, and the search is resumed on the session executor once the client has read
+     * enough entries, the request is abandoned or its time limit is reached.
+     */
+    private abstract class SearchResultsWriter implements Runnable, AbandonListener
+    {
+        /** The session the entries are written to */
+        protected final LdapSession session;
+
+        /** The search request */
+        protected final SearchRequest req;
+
+        /** The cursor over the search results */
+        protected final Cursor<Entry> cursor;
+
+        /** The time after which the search fails, or 0 if it is not limited */
+        private final long deadline;
+
+        /** The time the search was last suspended at */
+        private long suspendedAt;
+
+        /** Tells if this writer listens to the abandon of the request */
+        private boolean listening;
+
+        /** The task resuming the search when its time limit is reached */
+        private ScheduledFuture<?> timeout;
+
+
+        protected SearchResultsWriter( LdapSession session, SearchRequest req, Cursor<Entry> cursor, long timeLimit )
+        {
+            this.session = session;
+            this.req = req;
+            this.cursor = cursor;
+            this.deadline = timeLimit > 0L ? System.currentTimeMillis() + timeLimit : 0L;
+        }
+
+
+        /**
+         * Writes the entries until a limit is reached or the search is suspended.
+         *
+         * @return <tt>false</tt> if the search has been suspended
+         */
+        boolean writeEntries() throws Exception
+        {
+            while ( hasRoom() && cursor.next() )
+            {
+                // Handle closed session
+                if ( session.getIoSession().isClosing() )
+                {
+                    // The client has closed the connection
+                    if ( IS_DEBUG )
+                    {
+                        LOG.debug( "Request terminated for message {}, the client has closed the session",
+                            req.getMessageId() );
+                    }
+
+                    break;
+                }
+
+                if ( req.isAbandoned() )
+                {
+                    cursor.close( new OperationAbandonedException() );
+
+                    // The cursor has been closed by an abandon request.
+                    if ( IS_DEBUG )
+                    {
+                        LOG.debug( "Request terminated by an AbandonRequest for message {}", req.getMessageId() );
+                    }
+
+                    break;
+                }
+
+                Entry entry = cursor.get();
+                session.getIoSession().write( generateResponse( session, req, entry ) );
+
+                if ( IS_DEBUG )
+                {
+                    LOG.debug( "Sending {}", entry.getDn() );
+                }
+
+                entryWritten();
+
+                // Don't read more entries if the client can't keep up
+                if ( suspend() )
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+
+        /**
+         * Suspends the search if the client can't keep up. Nothing must be done with
+         * the search once suspended, as it may be resumed at once by another thread.
+         *
+         * @return <tt>true</tt> if the search has been suspended
+         */
+        private boolean suspend()
+        {
+            long highWatermark = ldapServer.getWriteHighWatermark();
+
+            if ( ( highWatermark <= 0L ) || ( session.getIoSession().getScheduledWriteBytes() <= highWatermark ) )
+            {
+                return false;
+            }
+
+            long now = System.currentTimeMillis();
+
+            if ( ( deadline > 0L ) && ( now >= deadline ) )
+            {
+                // The next read will fail
+                return false;
+            }
+
+            if ( !listening )
+            {
+                req.addAbandonListener( this );
+                listening = true;
+            }
+
+            if ( req.isAbandoned() )
+            {
+                return false;
+            }
+
+            if ( IS_DEBUG )
+            {
+                LOG.debug( "Suspending the search {}, {} bytes are waiting to be written", req.getMessageId(),
+                    session.getIoSession().getScheduledWriteBytes() );
+            }
+
+            ldapServer.getWriteBackpressureStats().pauseStarted();
+            suspendedAt = now;
+
+            if ( deadline > 0L )
+            {
+                timeout = ldapServer.getSuspendedSearchTimer().schedule( new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        session.resumeSearch( SearchResultsWriter.this );
+                    }
+                }, deadline - now, TimeUnit.MILLISECONDS );
+            }
+
+            session.suspendSearch( Math.min( ldapServer.getWriteLowWatermark(), highWatermark ), this );
+
+            return true;
+        }
+
+
+        /**
+         * Resumes the suspended search.
+         */
+        @Override
+        public void run()
+        {
+            ldapServer.getWriteBackpressureStats().pauseEnded( System.currentTimeMillis() - suspendedAt );
+
+            if ( timeout != null )
+            {
+                timeout.cancel( false );
+                timeout = null;
+            }
+
+            try
+            {
+                if ( writeEntries() )
+                {
+                    if ( !req.isAbandoned() )
+                    {
+                        finishResults();
+                    }
+
+                    complete();
+                }
+            }
+            catch ( Exception e )
+            {
+                failed( e );
+            }
+        }
+
+
+        /**
+         * Resumes the search at once when the request is abandoned.
+         */
+        @Override
+        public void requestAbandoned( AbandonableRequest request )
+        {
+            session.resumeSearch( this );
+        }
+
+
+        /**
+         * @return <tt>true</tt> if more entries can be written
+         */
+        protected abstract boolean hasRoom();
+
+
+        /**
+         * Updates the counters once an entry has been written
+         */
+        protected abstract void entryWritten();
+
+
+        /**
+         * Sets the result of the search once all the entries have been written.
+         */
+        protected abstract void finishResults() throws Exception;
+
+
+        /**
+         * Ends a resumed search once its result is set.
+         */
+        protected abstract void complete() throws Exception;
+
+
+        /**
+         * Ends a resumed search which has failed.
+         *
+         * @param e the failure
+         */
+        protected abstract void failed( Exception e );
+
+
+        /**
+         * Sends the error for a resumed search which has failed, unless it has been
+         * abandoned : nothing must be sent back then.
+         */
+        protected void sendFailure( Exception e )
+        {
+            if ( !req.isAbandoned() && !( e instanceof OperationAbandonedException ) )
+            {
+                handleException( session, req, e );
+            }
+
+            session.unregisterOutstandingRequest( req );
+        }
+
+
+        /**
+         * Closes the cursor, logging the failures.
+         */
+        protected void closeCursor()
+        {
+            if ( !cursor.isClosed() )
+            {
+                try
+                {
+                    cursor.close();
+                }
+                catch ( Exception e )
+                {
+                    LOG.error( I18n.err( I18n.ERR_168 ), e );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Writes the entries of a regular or persistent search.
+     */
+    private class SimpleResultsWriter extends SearchResultsWriter
+    {
+        private final LdapResult ldapResult;
+        private final long sizeLimit;
+        private final PersistentSearch psearch;
+        private long count;
+
+
+        SimpleResultsWriter( LdapSession session, SearchRequest req, LdapResult ldapResult, Cursor<Entry> cursor,
+            long sizeLimit, long timeLimit, PersistentSearch psearch )
+        {
+            super( session, req, cursor, timeLimit );
+            this.ldapResult = ldapResult;
+            this.sizeLimit = sizeLimit;
+            this.psearch = psearch;
+        }
+
+
+        @Override
+        protected boolean hasRoom()
+        {
+            return count < sizeLimit;
+        }
+
+
+        @Override
+        protected void entryWritten()
+        {
+            count++;
+        }
+
+
+        @Override
+        protected void finishResults() throws Exception
+        {
+            // check if the result code is not already set
+            // the result code might be set when sort control is present
+            if ( ldapResult.getResultCode() == null )
+            {
+                // DO NOT WRITE THE RESPONSE - JUST RETURN IT
+                ldapResult.setResultCode( ResultCodeEnum.SUCCESS );
+            }
+
+            if ( ( count >= sizeLimit ) && ( cursor.next() ) )
+            {
+                // We have reached the limit
+                // Move backward on the cursor to restore the previous position, as we moved forward
+                // to check if there is one more entry available
+                cursor.previous();
+                // Special case if the user has requested more elements than the request size limit
+                ldapResult.setResultCode( ResultCodeEnum.SIZE_LIMIT_EXCEEDED );
+            }
+        }
+
+
+        @Override
+        protected void complete() throws Exception
+        {
+            closeCursor();
+
+            if ( req.isAbandoned() )
+            {
+                // Nothing is sent back for an abandoned search
+                if ( psearch == null )
+                {
+                    session.unregisterOutstandingRequest( req );
+                }
+
+                return;
+            }
+
+            if ( ( psearch != null ) && ( ldapResult.getResultCode() == ResultCodeEnum.SUCCESS ) )
+            {
+                // The persistent search now listens to the changes
+                startPersistentSearch( session, req, psearch );
+
+                return;
+            }
+
+            session.getIoSession().write( req.getResultResponse() );
+            session.unregisterOutstandingRequest( req );
+        }
+
+
+        @Override
+        protected void failed( Exception e )
+        {
+            closeCursor();
+            sendFailure( e );
+        }
+    }
+
+
+    /**
+     * Writes the entries of a page of a paged search.
+     */
+    private class PagedResultsWriter extends SearchResultsWriter
+    {
+        private final LdapResult ldapResult;
+        private final long sizeLimit;
+        private final int pagedLimit;
+        private final PagedSearchContext pagedContext;
+        private final PagedResults pagedResultsControl;
+        private int count;
+        private int pageCount;
+
+
+        PagedResultsWriter( LdapSession session, SearchRequest req, LdapResult ldapResult, Cursor<Entry> cursor,
+            long sizeLimit, long timeLimit, int pagedLimit, PagedSearchContext pagedContext,
+            PagedResults pagedResultsControl )
+        {
+            super( session, req, cursor, timeLimit );
+            this.ldapResult = ldapResult;
+            this.sizeLimit = sizeLimit;
+            this.pagedLimit = pagedLimit;
+            this.pagedContext = pagedContext;
+            this.pagedResultsControl = pagedResultsControl;
+            this.count = pagedContext.getCurrentPosition();
+        }
+
+
+        @Override
+        protected boolean hasRoom()
+        {
+            return ( count < sizeLimit ) && ( pageCount < pagedLimit );
+        }
+
+
+        @Override
+        protected void entryWritten()
+        {
+            count++;
+            pageCount++;
+        }
+
+
+        @Override
+        protected void finishResults() throws Exception
+        {
+            finishPagedResults( session, req, ldapResult, cursor, count, pageCount, pagedContext,
+                pagedResultsControl, sizeLimit );
+        }
+
+
+        @Override
+        protected void complete() throws Exception
+        {
+            // The cursor is kept in the paged search context for the next page
+            if ( !req.isAbandoned() )
+            {
+                session.getIoSession().write( req.getResultResponse() );
+            }
+
+            session.unregisterOutstandingRequest( req );
+        }
+
+
+        @Override
+        protected void failed( Exception e )
+        {
+            closeCursor();
+            removeContext( session, pagedContext );
+            sendFailure( e );
+        }
+    }
+
+
     /**
      * Manage the abandoned Paged Search (when paged size = 0). We have to
      * remove the cookie and its associated cursor from the session.
@@ -590,8 +1020,8 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
     /**
      * Handle a Paged Search request.
      */
-    private SearchResultDone doPagedSearch( LdapSession session, SearchRequest req, PagedResults control )
-        throws Exception
+    private SearchResultDone doPagedSearch( LdapSession session, SearchRequest req, PagedResults control,
+        PersistentSearch psearch ) throws Exception
     {
         PagedResults pagedSearchControl = control;
         PagedResults pagedResultsControl = null;
@@ -646,23 +1076,35 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
             if ( pagedLimit > sizeLimit )
             {
                 // Normal search : create the cursor, and set pagedControl to false
+                boolean suspended = false;
+
                 try
                 {
                     // And write the entries
-                    writeResults( session, req, ldapResult, cursor, sizeLimit );
+                    suspended = !writeResults( session, req, ldapResult, cursor, sizeLimit, NO_TIME_LIMIT,
+                        psearch );
                 }
                 finally
                 {
-                    try
+                    if ( !suspended )
                     {
-                        cursor.close();
-                    }
-                    catch ( Exception e )
-                    {
-                        LOG.error( I18n.err( I18n.ERR_168 ), e );
+                        try
+                        {
+                            cursor.close();
+                        }
+                        catch ( Exception e )
+                        {
+                            LOG.error( I18n.err( I18n.ERR_168 ), e );
+                        }
                     }
                 }
 
+                if ( suspended )
+                {
+                    // The search will send its SearchResultDone once resumed
+                    return null;
+                }
+
                 // If we had a cookie in the session, remove it
                 removeContext( session, pagedContext );
 
@@ -745,8 +1187,12 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
          */
         try
         {
-            readPagedResults( session, req, ldapResult, cursor, sizeLimit, pagedLimit, pagedContext,
-                pagedResultsControl );
+            if ( !readPagedResults( session, req, ldapResult, cursor, sizeLimit, pagedLimit, pagedContext,
+                pagedResultsControl ) )
+            {
+                // The search will send its SearchResultDone once resumed
+                return null;
+            }
         }
         catch ( Exception e )
         {
@@ -775,10 +1221,28 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
      * <br>
      * @param session the LDAP session object for this request
      * @param req the search request
-     * @return the result done
+     * @return the result done, or null if the search has been suspended
      * @throws Exception if there are failures while processing the request
      */
     private SearchResultDone doSimpleSearch( LdapSession session, SearchRequest req ) throws Exception
+    {
+        return doSimpleSearch( session, req, null );
+    }
+
+
+    /**
+     * Conducts a simple search, which may be the initial search of a persistent search.
+     * When the search is suspended, it sends its SearchResultDone, or starts listening
+     * to the changes for a persistent search, itself once resumed.
+     *
+     * @param session the LDAP session object for this request
+     * @param req the search request
+     * @param psearch the persistent search control, or null for a regular search
+     * @return the result done, or null if the search has been suspended
+     * @throws Exception if there are failures while processing the request
+     */
+    private SearchResultDone doSimpleSearch( LdapSession session, SearchRequest req, PersistentSearch psearch )
+        throws Exception
     {
         LdapResult ldapResult = req.getResultResponse().getLdapResult();
 
@@ -788,7 +1252,7 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
         if ( control != null )
         {
             // Let's deal with the pagedControl
-            return doPagedSearch( session, req, ( PagedResults ) control );
+            return doPagedSearch( session, req, ( PagedResults ) control, psearch );
         }
 
         // A normal search
@@ -802,6 +1266,8 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
         // Position the cursor at the beginning
         cursor.beforeFirst();
 
+        boolean suspended = false;
+
         /*
          * Iterate through all search results building and sending back responses
          * for each search result returned.
@@ -815,7 +1281,7 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
             long requestLimit = req.getSizeLimit() == 0L ? Long.MAX_VALUE : req.getSizeLimit();
 
             req.addAbandonListener( new SearchAbandonListener( ldapServer, cursor ) );
-            setTimeLimitsOnCursor( req, session, cursor );
+            long timeLimit = setTimeLimitsOnCursor( req, session, cursor );
 
             if ( IS_DEBUG )
             {
@@ -824,11 +1290,12 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
 
             long sizeLimit = min( requestLimit, serverLimit );
 
-            writeResults( session, req, ldapResult, cursor, sizeLimit );
+            suspended = !writeResults( session, req, ldapResult, cursor, sizeLimit, timeLimit, psearch );
         }
         finally
         {
-            if ( !cursor.isClosed() )
+            // A suspended search closes its cursor once done
+            if ( !suspended && !cursor.isClosed() )
             {
                 try
                 {
@@ -841,6 +1308,11 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
             }
         }
 
+        if ( suspended )
+        {
+            return null;
+        }
+
         return ( SearchResultDone ) req.getResultResponse();
     }
 
@@ -1096,6 +1568,10 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
         // persistent search
         boolean persistentSearchException = false;
 
+        // A flag set when the search has been suspended : it will remove
+        // itself from the session once done
+        boolean suspended = false;
+
         // add the search request to the registry of outstanding requests for this session
         session.registerOutstandingRequest( req );
 
@@ -1145,6 +1621,14 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
             }
 
             SearchResultDone done = doSimpleSearch( session, req );
+
+            if ( done == null )
+            {
+                suspended = true;
+
+                return;
+            }
+
             session.getIoSession().write( done );
 
             if ( isLogSearchTime )
@@ -1187,7 +1671,7 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
 
             // remove the request from the session, except if
             // we didn't got an exception for a Persistent search
-            if ( !isPersistentSearch || persistentSearchException )
+            if ( !suspended && ( !isPersistentSearch || persistentSearchException ) )
             {
                 session.unregisterOutstandingRequest( req );
             }
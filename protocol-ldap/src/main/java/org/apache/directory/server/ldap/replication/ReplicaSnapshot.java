@@ -0,0 +1,232 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+
+/**
+ * The description of a partition snapshot produced by a provider to bootstrap a consumer.
+ * A snapshot is a directory containing a copy of the partition files in its
+ * {@value #DATA_DIRECTORY} sub-directory, and a {@value #DESCRIPTOR_FILE} file storing the
+ * suffix of the partition and the cookie the consumer has to use to resume the
+ * replication from the snapshot.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaSnapshot
+{
+    /** The name of the file describing the snapshot */
+    public static final String DESCRIPTOR_FILE = "snapshot.properties";
+
+    /** The name of the directory containing the partition files */
+    public static final String DATA_DIRECTORY = "data";
+
+    private static final String PARTITION_ID_KEY = "partitionId";
+    private static final String SUFFIX_KEY = "suffix";
+    private static final String CONTEXT_CSN_KEY = "contextCsn";
+    private static final String COOKIE_KEY = "cookie";
+
+    /** The snapshot directory */
+    private final File directory;
+
+    /** The ID of the copied partition */
+    private String partitionId;
+
+    /** The suffix of the copied partition */
+    private String suffix;
+
+    /** The contextCSN of the partition when it was copied */
+    private String contextCsn;
+
+    /** The cookie to use to resume the replication */
+    private String cookie;
+
+
+    /**
+     * Creates a new instance of ReplicaSnapshot.
+     *
+     * @param directory The snapshot directory
+     */
+    public ReplicaSnapshot( File directory )
+    {
+        this.directory = directory;
+    }
+
+
+    /**
+     * Reads the snapshot description.
+     *
+     * @param directory The snapshot directory
+     * @return The snapshot
+     * @throws IOException If the descriptor can't be read, or is incomplete
+     */
+    public static ReplicaSnapshot read( File directory ) throws IOException
+    {
+        Properties properties = new Properties();
+
+        try ( InputStream in = new FileInputStream( new File( directory, DESCRIPTOR_FILE ) ) )
+        {
+            properties.load( in );
+        }
+
+        ReplicaSnapshot snapshot = new ReplicaSnapshot( directory );
+        snapshot.partitionId = properties.getProperty( PARTITION_ID_KEY );
+        snapshot.suffix = properties.getProperty( SUFFIX_KEY );
+        snapshot.contextCsn = properties.getProperty( CONTEXT_CSN_KEY );
+        snapshot.cookie = properties.getProperty( COOKIE_KEY );
+
+        if ( ( snapshot.suffix == null ) || ( snapshot.cookie == null ) )
+        {
+            throw new IOException( "Incomplete snapshot descriptor in " + directory );
+        }
+
+        return snapshot;
+    }
+
+
+    /**
+     * Writes the snapshot description. It is written last, once the partition files
+     * have been copied.
+     *
+     * @throws IOException If the descriptor can't be written
+     */
+    public void write() throws IOException
+    {
+        Properties properties = new Properties();
+        properties.setProperty( PARTITION_ID_KEY, partitionId );
+        properties.setProperty( SUFFIX_KEY, suffix );
+        properties.setProperty( CONTEXT_CSN_KEY, contextCsn );
+        properties.setProperty( COOKIE_KEY, cookie );
+
+        try ( OutputStream out = new FileOutputStream( new File( directory, DESCRIPTOR_FILE ) ) )
+        {
+            properties.store( out, "Replica snapshot" );
+        }
+    }
+
+
+    /**
+     * @return The snapshot directory
+     */
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+
+    /**
+     * @return The directory containing the partition files
+     */
+    public File getDataDirectory()
+    {
+        return new File( directory, DATA_DIRECTORY );
+    }
+
+
+    /**
+     * @return The ID of the copied partition
+     */
+    public String getPartitionId()
+    {
+        return partitionId;
+    }
+
+
+    /**
+     * @param partitionId The ID of the copied partition
+     */
+    public void setPartitionId( String partitionId )
+    {
+        this.partitionId = partitionId;
+    }
+
+
+    /**
+     * @return The suffix of the copied partition
+     */
+    public String getSuffix()
+    {
+        return suffix;
+    }
+
+
+    /**
+     * @param suffix The suffix of the copied partition
+     */
+    public void setSuffix( String suffix )
+    {
+        this.suffix = suffix;
+    }
+
+
+    /**
+     * @return The contextCSN of the partition when it was copied
+     */
+    public String getContextCsn()
+    {
+        return contextCsn;
+    }
+
+
+    /**
+     * @param contextCsn The contextCSN of the partition when it was copied
+     */
+    public void setContextCsn( String contextCsn )
+    {
+        this.contextCsn = contextCsn;
+    }
+
+
+    /**
+     * @return The cookie to use to resume the replication
+     */
+    public String getCookie()
+    {
+        return cookie;
+    }
+
+
+    /**
+     * @param cookie The cookie to use to resume the replication
+     */
+    public void setCookie( String cookie )
+    {
+        this.cookie = cookie;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "ReplicaSnapshot [" + directory + ", partition " + partitionId + " (" + suffix + "), cookie "
+            + cookie + "]";
+    }
+}
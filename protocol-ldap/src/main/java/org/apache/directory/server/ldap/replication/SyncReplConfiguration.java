@@ -58,6 +58,9 @@ import org.apache.directory.ldap.client.api.NoVerificationTrustManager;
  *   <li>useTls : the connection uses TLS, defaults to true</li>
  *   <li>strictCertVerification : strictly verify the certificate, defaults to true</li>
  *   <li>trustManager : the trustManager to use, defaults to @link{NoVerificationTrustManager}</li>
+ *   <li>cookieCommitBatchSize : the number of applied changes after which the cookie is stored, defaults to 1</li>
+ *   <li>cookieCommitInterval : the delay after which a pending cookie is stored, defaults to 0 (5 seconds)</li>
+ *   <li>snapshotDirectory : a provider snapshot installed before the first synchronization, defaults to none</li>
  *   <li></li>
  * </ul>
  * 
@@ -133,6 +136,15 @@ public class SyncReplConfiguration implements ReplicationConsumerConfig
     /** flag to indicate if this node is part of a MMR setup, default value is true */
     private boolean mmrMode = true;
 
+    /** the number of changes we apply before storing the cookie, default value is 1 */
+    private int cookieCommitBatchSize = 1;
+
+    /** the delay in milliseconds after which a pending cookie is stored, default value is 0 (none) */
+    private long cookieCommitInterval = 0L;
+
+    /** the directory of the provider snapshot to install when we have no cookie, default value is null */
+    private String snapshotDirectory;
+
 
     /**
      * Creates a new instance of SyncreplConfiguration
@@ -580,6 +592,80 @@ public class SyncReplConfiguration implements ReplicationConsumerConfig
     }
 
 
+    /**
+     * @return the number of changes applied before the cookie is stored
+     */
+    public int getCookieCommitBatchSize()
+    {
+        return cookieCommitBatchSize;
+    }
+
+
+    /**
+     * Sets the number of replicated changes we apply before storing the cookie. The cookie
+     * is always stored at the end of a refresh phase and when the consumer disconnects.
+     *
+     * @param cookieCommitBatchSize the number of changes, 1 to store the cookie after each change
+     */
+    public void setCookieCommitBatchSize( int cookieCommitBatchSize )
+    {
+        if ( cookieCommitBatchSize <= 0 )
+        {
+            throw new IllegalArgumentException( "cookie commit batch size should be more than zero" );
+        }
+
+        this.cookieCommitBatchSize = cookieCommitBatchSize;
+    }
+
+
+    /**
+     * @return the delay in milliseconds after which a pending cookie is stored
+     */
+    public long getCookieCommitInterval()
+    {
+        return cookieCommitInterval;
+    }
+
+
+    /**
+     * Sets the delay after which a pending cookie is stored, even if the batch is not
+     * complete, or if no more changes arrive.
+     *
+     * @param cookieCommitInterval the delay in milliseconds, 0 to store the pending cookie after 5 seconds
+     */
+    public void setCookieCommitInterval( long cookieCommitInterval )
+    {
+        if ( cookieCommitInterval < 0 )
+        {
+            throw new IllegalArgumentException( "cookie commit interval should not be negative" );
+        }
+
+        this.cookieCommitInterval = cookieCommitInterval;
+    }
+
+
+    /**
+     * @return the directory of the provider snapshot to install when we have no cookie
+     */
+    public String getSnapshotDirectory()
+    {
+        return snapshotDirectory;
+    }
+
+
+    /**
+     * Sets the directory of a snapshot created by the provider. When the consumer starts
+     * without a cookie, it installs the snapshot and resumes the replication from it,
+     * instead of fetching all the entries from the provider.
+     *
+     * @param snapshotDirectory the snapshot directory, or null to do a full refresh
+     */
+    public void setSnapshotDirectory( String snapshotDirectory )
+    {
+        this.snapshotDirectory = snapshotDirectory;
+    }
+
+
     public String toString()
     {
         StringBuilder sb = new StringBuilder();
@@ -20,11 +20,20 @@
 package org.apache.directory.server.ldap.replication.consumer;
 
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
 
 import org.apache.commons.collections4.map.LRUMap;
 import org.apache.directory.api.ldap.extras.controls.SynchronizationModeEnum;
@@ -49,6 +58,7 @@ import org.apache.directory.api.ldap.model.entry.ModificationOperation;
 import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
+import org.apache.directory.api.ldap.model.exception.LdapUnwillingToPerformException;
 import org.apache.directory.api.ldap.model.filter.AndNode;
 import org.apache.directory.api.ldap.model.filter.EqualityNode;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
@@ -91,7 +101,9 @@ import org.apache.directory.server.core.api.interceptor.context.MoveOperationCon
 import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
 import org.apache.directory.server.ldap.LdapProtocolUtils;
+import org.apache.directory.server.ldap.replication.ReplicaSnapshot;
 import org.apache.directory.server.ldap.replication.ReplicationConsumerConfig;
 import org.apache.directory.server.ldap.replication.SyncReplConfiguration;
 import org.slf4j.Logger;
@@ -150,6 +162,21 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     /** the cookie that was saved last time */
     private byte[] lastSavedCookie;
 
+    /** the cookie of the last applied change, not yet stored */
+    private byte[] pendingCookie;
+
+    /** the number of changes applied since the cookie was stored */
+    private int nbPendingChanges;
+
+    /** the delay after which a pending cookie is stored when no commit interval is configured */
+    private static final long DEFAULT_COOKIE_FLUSH_PERIOD = 5000L;
+
+    /** the task storing the pending cookie when no more changes arrive */
+    private ScheduledExecutorService cookieFlusher;
+
+    /** the last time we stored the cookie */
+    private long lastCookieStoreTime = System.currentTimeMillis();
+
     private volatile boolean reload = false;
 
     /** The (entrtyUuid=*) filter */
@@ -165,6 +192,9 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
     private static final Map<String, Object> UUID_LOCK_MAP = new LRUMap( 1000 );
 
+    /** The number of refreshPresent deletions we do between two progress reports */
+    private static final int REFRESH_PRESENT_BATCH_SIZE = 1000;
+
 
     /**
      * @return the config
@@ -199,6 +229,44 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         ridMod = new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, ridAttr );
 
         prepareSyncSearchRequest();
+
+        startCookieFlusher();
+    }
+
+
+    /**
+     * Starts the task storing the pending cookie once the commit interval has elapsed, so
+     * that the last changes are not lost on an idle link.
+     */
+    void startCookieFlusher()
+    {
+        if ( cookieFlusher != null )
+        {
+            cookieFlusher.shutdownNow();
+        }
+
+        cookieFlusher = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+        {
+            @Override
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable, "CookieFlusher-" + config.getReplicaId() );
+                thread.setDaemon( true );
+
+                return thread;
+            }
+        } );
+
+        long period = getCookieFlushPeriod();
+
+        cookieFlusher.scheduleWithFixedDelay( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                flushPendingCookie( false );
+            }
+        }, period, period, TimeUnit.MILLISECONDS );
     }
 
 
@@ -456,7 +524,7 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
                 // store the cookie only if the above operation was successful
                 if ( syncStateCtrl.getCookie() != null )
                 {
-                    storeCookie();
+                    groupCommitCookie( syncCookie );
                 }
             }
         }
@@ -567,6 +635,20 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         // read the cookie if persisted
         readCookie();
 
+        // bootstrap from a provider snapshot if we have one, unless the provider asked for a reload
+        if ( ( syncCookie == null ) && ( config.getSnapshotDirectory() != null ) && !reload )
+        {
+            try
+            {
+                installSnapshot( new File( config.getSnapshotDirectory() ) );
+            }
+            catch ( Exception e )
+            {
+                CONSUMER_LOG.error( "Failed to install the snapshot {}, the partition is unchanged, doing a full refresh",
+                    config.getSnapshotDirectory(), e );
+            }
+        }
+
         if ( config.isRefreshNPersist() )
         {
             try
@@ -715,6 +797,15 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         {
             disconnect();
         }
+
+        // the cookie of the last applied changes must survive the restart
+        flushPendingCookie( true );
+
+        if ( cookieFlusher != null )
+        {
+            cookieFlusher.shutdownNow();
+            cookieFlusher = null;
+        }
     }
 
 
@@ -911,42 +1002,136 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
 
     /**
-     * stores the cookie.
+     * Installs a partition snapshot created by the provider, and stores the cookie it comes
+     * with, so that the next synchronization only fetches the changes done on the provider
+     * after the snapshot was taken. The replicated base must be the suffix of the partition.
+     * <p>
+     * This is meant to bootstrap a new replica, before the first synchronization : the
+     * current content of the partition is replaced, and the caches of the interceptors
+     * (subentries, groups) are not updated.
+     *
+     * @param snapshotDir The snapshot directory
+     * @throws Exception If the snapshot can't be installed
      */
-    private void storeCookie()
+    public void installSnapshot( File snapshotDir ) throws Exception
     {
-        CONSUMER_LOG.debug( "Storing the cookie '{}'", Strings.utf8ToString( syncCookie ) );
+        ReplicaSnapshot snapshot = ReplicaSnapshot.read( snapshotDir );
+
+        Dn baseDn = new Dn( schemaManager, config.getBaseDn() );
+        Partition partition = directoryService.getPartitionNexus().getPartition( baseDn );
 
-        if ( syncCookie == null )
+        if ( !baseDn.equals( new Dn( schemaManager, snapshot.getSuffix() ) )
+            || !( partition instanceof AbstractBTreePartition ) || !partition.getSuffixDn().equals( baseDn ) )
         {
-            return;
+            throw new LdapUnwillingToPerformException( ResultCodeEnum.UNWILLING_TO_PERFORM,
+                "The snapshot of " + snapshot.getSuffix() + " cannot be installed in the replica of " + baseDn );
         }
 
-        if ( ( lastSavedCookie != null ) && Arrays.equals( syncCookie, lastSavedCookie ) )
+        CONSUMER_LOG.info( "Installing the snapshot {} for consumer {}", snapshot, config.getReplicaId() );
+
+        ReadWriteLock lock = directoryService.getOperationManager().lockWrite( partition );
+
+        try
         {
-            return;
+            ( ( AbstractBTreePartition ) partition ).restore( snapshot.getDataDirectory() );
+        }
+        finally
+        {
+            directoryService.getOperationManager().unlockWrite( lock );
         }
 
-        try
+        // resume from the snapshot CSN
+        syncCookie = Strings.getBytesUtf8( snapshot.getCookie() );
+        storeCookie();
+    }
+
+
+    /**
+     * Stores the cookie once enough changes have been applied, or once the commit interval
+     * has elapsed. Storing the cookie later is safe : after a crash, we will receive again
+     * the changes applied since the last stored cookie, and applying them again is harmless.
+     *
+     * @param cookie The cookie of the applied change
+     */
+    synchronized void groupCommitCookie( byte[] cookie )
+    {
+        pendingCookie = cookie;
+        nbPendingChanges++;
+
+        long interval = config.getCookieCommitInterval();
+
+        if ( ( nbPendingChanges >= config.getCookieCommitBatchSize() )
+            || ( ( interval > 0L ) && ( System.currentTimeMillis() - lastCookieStoreTime >= interval ) ) )
         {
-            Attribute attr = cookieMod.getAttribute();
-            attr.clear();
-            attr.add( syncCookie );
+            writeCookie( pendingCookie );
+        }
+    }
 
-            String cookieString = Strings.utf8ToString( syncCookie );
-            int replicaId = LdapProtocolUtils.getReplicaId( cookieString );
 
-            Attribute ridAt = ridMod.getAttribute();
-            ridAt.clear();
-            ridAt.add( String.valueOf( replicaId ) );
+    /**
+     * Stores the cookie of the last applied change, if it is still pending. This is done by
+     * the flush task once the commit interval has elapsed, and when the consumer stops.
+     *
+     * @param force Store the cookie even if the commit interval has not elapsed
+     */
+    synchronized void flushPendingCookie( boolean force )
+    {
+        if ( ( nbPendingChanges > 0 )
+            && ( force || ( System.currentTimeMillis() - lastCookieStoreTime >= getCookieFlushPeriod() ) ) )
+        {
+            CONSUMER_LOG.debug( "Flushing the cookie after {} pending changes", nbPendingChanges );
+            writeCookie( pendingCookie );
+        }
+    }
+
+
+    /**
+     * @return the delay after which a pending cookie is stored by the flush task
+     */
+    private long getCookieFlushPeriod()
+    {
+        long interval = config.getCookieCommitInterval();
+
+        return interval > 0L ? interval : DEFAULT_COOKIE_FLUSH_PERIOD;
+    }
+
+
+    /**
+     * stores the cookie.
+     */
+    private synchronized void storeCookie()
+    {
+        writeCookie( syncCookie );
+    }
+
+
+    /**
+     * Stores the given cookie, and resets the pending changes.
+     */
+    private void writeCookie( byte[] cookie )
+    {
+        CONSUMER_LOG.debug( "Storing the cookie '{}'", Strings.utf8ToString( cookie ) );
+
+        if ( cookie == null )
+        {
+            return;
+        }
+
+        nbPendingChanges = 0;
+        pendingCookie = null;
+        lastCookieStoreTime = System.currentTimeMillis();
 
-            CONSUMER_LOG.debug( "Storing the cookie in the DIT : {}", config.getConfigEntryDn() );
+        if ( ( lastSavedCookie != null ) && Arrays.equals( cookie, lastSavedCookie ) )
+        {
+            return;
+        }
 
-            session.modify( config.getConfigEntryDn(), cookieMod );
-            CONSUMER_LOG.debug( "stored the cookie in entry {}", config.getConfigEntryDn() );
+        try
+        {
+            writeCookieEntry( cookie );
 
-            lastSavedCookie = new byte[syncCookie.length];
-            System.arraycopy( syncCookie, 0, lastSavedCookie, 0, syncCookie.length );
+            lastSavedCookie = new byte[cookie.length];
+            System.arraycopy( cookie, 0, lastSavedCookie, 0, cookie.length );
         }
         catch ( Exception e )
         {
@@ -955,6 +1140,32 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     }
 
 
+    /**
+     * Writes the cookie in the consumer configuration entry.
+     *
+     * @param cookie The cookie to write
+     * @throws LdapException If the entry can't be modified
+     */
+    void writeCookieEntry( byte[] cookie ) throws LdapException
+    {
+        Attribute attr = cookieMod.getAttribute();
+        attr.clear();
+        attr.add( cookie );
+
+        String cookieString = Strings.utf8ToString( cookie );
+        int replicaId = LdapProtocolUtils.getReplicaId( cookieString );
+
+        Attribute ridAt = ridMod.getAttribute();
+        ridAt.clear();
+        ridAt.add( String.valueOf( replicaId ) );
+
+        CONSUMER_LOG.debug( "Storing the cookie in the DIT : {}", config.getConfigEntryDn() );
+
+        session.modify( config.getConfigEntryDn(), cookieMod );
+        CONSUMER_LOG.debug( "stored the cookie in entry {}", config.getConfigEntryDn() );
+    }
+
+
     /**
      * Read the cookie for a consumer
      */
@@ -1018,8 +1229,14 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
             CONSUMER_LOG.warn( "{}", e );
         }
 
-        syncCookie = null;
-        lastSavedCookie = null;
+        synchronized ( this )
+        {
+            // the flush task must not store the cookie we have just deleted
+            syncCookie = null;
+            lastSavedCookie = null;
+            pendingCookie = null;
+            nbPendingChanges = 0;
+        }
     }
 
 
@@ -1263,7 +1480,7 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         if ( isRefreshPresent )
         {
             CONSUMER_LOG.debug( "refresh present syncinfo list has {} UUIDs", uuidList.size() );
-            processDelete( uuidList, isRefreshPresent, replicaId );
+            processRefreshPresent( uuidList, replicaId );
             return;
         }
 
@@ -1390,6 +1607,141 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     }
 
 
+    /**
+     * Deletes the local entries which are not part of a refreshPresent UUID list. The present
+     * UUIDs are stored in a sorted array, and we check the entryUUID of each local entry against
+     * it, instead of evaluating a filter containing one clause per present UUID on each entry.
+     * The entries to delete are then removed by batches, the deepest ones first.
+     *
+     * @param uuidList The list of the UUIDs present on the producer
+     * @param replicaId The replica ID
+     * @throws Exception If the search or the deletions failed
+     */
+    void processRefreshPresent( List<byte[]> uuidList, int replicaId ) throws Exception
+    {
+        UUID[] presentUuids = new UUID[uuidList.size()];
+        int pos = 0;
+
+        for ( byte[] uuidBytes : uuidList )
+        {
+            presentUuids[pos++] = UUID.fromString( Strings.uuidToString( uuidBytes ) );
+        }
+
+        Arrays.sort( presentUuids );
+
+        List<Dn> doomed = new ArrayList<>();
+        long nbChecked = 0L;
+
+        Cursor<Entry> cursor = searchEntryUuids();
+
+        try
+        {
+            cursor.beforeFirst();
+
+            while ( cursor.next() )
+            {
+                Entry entry = cursor.get();
+                nbChecked++;
+
+                // The search filter guarantees that the entryUUID is present
+                String entryUuid = entry.get( SchemaConstants.ENTRY_UUID_AT ).getString();
+
+                if ( Arrays.binarySearch( presentUuids, UUID.fromString( entryUuid ) ) < 0 )
+                {
+                    doomed.add( entry.getDn() );
+                }
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        CONSUMER_LOG.info( "refreshPresent : {} local entries checked against {} present UUIDs, {} entries to delete",
+            nbChecked, presentUuids.length, doomed.size() );
+
+        if ( doomed.isEmpty() )
+        {
+            return;
+        }
+
+        // Delete the children before their parent
+        Collections.sort( doomed, new Comparator<Dn>()
+        {
+            @Override
+            public int compare( Dn dn1, Dn dn2 )
+            {
+                return dn2.size() - dn1.size();
+            }
+        } );
+
+        int nbDeleted = 0;
+
+        for ( Dn dn : doomed )
+        {
+            deleteEntry( dn, replicaId );
+            nbDeleted++;
+
+            if ( ( nbDeleted % REFRESH_PRESENT_BATCH_SIZE == 0 ) || ( nbDeleted == doomed.size() ) )
+            {
+                CONSUMER_LOG.info( "refreshPresent : {}/{} entries deleted", nbDeleted, doomed.size() );
+
+                if ( disconnected )
+                {
+                    // No need to continue, the next refresh will finish the job
+                    CONSUMER_LOG.warn( "refreshPresent interrupted, the consumer has been disconnected" );
+
+                    return;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Searches for the entryUUID of all the local entries under the replicated base.
+     *
+     * @return A cursor on the local entries, containing only their entryUUID
+     * @throws Exception If the search failed
+     */
+    Cursor<Entry> searchEntryUuids() throws Exception
+    {
+        SearchRequest req = new SearchRequestImpl();
+        req.setBase( new Dn( schemaManager, config.getBaseDn() ) );
+        req.setFilter( ENTRY_UUID_PRESENCE_FILTER );
+        req.setScope( SearchScope.SUBTREE );
+        req.setDerefAliases( AliasDerefMode.NEVER_DEREF_ALIASES );
+        req.addAttributes( SchemaConstants.ENTRY_UUID_AT );
+
+        return session.search( req );
+    }
+
+
+    /**
+     * Deletes a local entry which is not present on the producer anymore.
+     *
+     * @param dn The entry's Dn
+     * @param replicaId The replica ID
+     * @throws Exception If the deletion failed
+     */
+    void deleteEntry( Dn dn, int replicaId ) throws Exception
+    {
+        DeleteOperationContext ctx = new DeleteOperationContext( session );
+        ctx.setReplEvent( true );
+        ctx.setRid( replicaId );
+
+        // DO NOT generate replication event if this is being deleted as part of
+        // e_sync_refresh_required
+        if ( reload )
+        {
+            ctx.setGenerateNoReplEvt( true );
+        }
+
+        ctx.setDn( dn );
+        directoryService.getOperationManager().delete( ctx );
+    }
+
+
     private synchronized Object getLockFor( String uuid )
     {
         Object lock = UUID_LOCK_MAP.get( uuid );
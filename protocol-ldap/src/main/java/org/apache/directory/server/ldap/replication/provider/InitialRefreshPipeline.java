@@ -0,0 +1,631 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateTypeEnum;
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.Control;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.SortRequest;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.ldap.LdapSession;
+import org.apache.mina.core.future.IoFutureListener;
+import org.apache.mina.core.future.WriteFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Sends the initial content of a replica using a pool of workers. The base entry is sent
+ * first, then each subtree below the base is searched by a worker in its own read
+ * transaction. The workers build and write the responses, so the encoding is done on
+ * their thread too. The entries of a subtree are sent in the order of the initial refresh
+ * sort, so the parents are still received before their children.
+ * <p>
+ * The number of responses written but not yet sent to the consumer is bounded : a worker
+ * waits until the session has flushed enough responses before writing a new one.
+ * <p>
+ * The time spent in each phase (splitting the DIT, reading the entries, sending them and
+ * waiting for the consumer) is recorded, and can be read while the refresh is running.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class InitialRefreshPipeline
+{
+    /** A logger for the replication provider */
+    private static final Logger PROVIDER_LOG = LoggerFactory.getLogger( Loggers.PROVIDER_LOG.getName() );
+
+    /** The time we wait for a write permit before checking the session state, in ms */
+    private static final long WRITE_PERMIT_WAIT = 100L;
+
+    /** Used to name the worker threads */
+    private static final AtomicInteger REFRESH_COUNTER = new AtomicInteger( 0 );
+
+    /** The handler which builds the responses */
+    private final SyncReplRequestHandler handler;
+
+    /** The consumer session */
+    private final LdapSession session;
+
+    /** The initial refresh request */
+    private final SearchRequest request;
+
+    /** The CSN AttributeType instance */
+    private final AttributeType csnAT;
+
+    /** The ObjectClass AttributeType instance */
+    private final AttributeType objectClassAT;
+
+    /** The maximum number of entries to send */
+    private final long sizeLimit;
+
+    /** The number of workers */
+    private final int nbThreads;
+
+    /** The permits to write a response to the session */
+    private final Semaphore writePermits;
+
+    /** Releases a write permit when a response has been sent */
+    private final IoFutureListener<WriteFuture> permitReleaser = new IoFutureListener<WriteFuture>()
+    {
+        @Override
+        public void operationComplete( WriteFuture future )
+        {
+            writePermits.release();
+        }
+    };
+
+    /** Tells the workers to stop */
+    private volatile boolean stopped;
+
+    /** Set when we have reached the size limit */
+    private volatile boolean sizeLimitExceeded;
+
+    /** The highest CSN of the sent entries */
+    private String lastSentCsn;
+
+    /** The number of entries we have been allowed to send, used to check the size limit */
+    private final AtomicLong nbReserved = new AtomicLong( 0L );
+
+    /** The number of subtrees searched in parallel */
+    private volatile int nbSubtrees;
+
+    /** The counters */
+    private final AtomicLong entriesRead = new AtomicLong( 0L );
+    private final AtomicLong entriesSent = new AtomicLong( 0L );
+    private volatile long splitTime;
+    private final AtomicLong readTime = new AtomicLong( 0L );
+    private final AtomicLong sendTime = new AtomicLong( 0L );
+    private final AtomicLong waitTime = new AtomicLong( 0L );
+    private volatile long startTime;
+    private volatile long endTime;
+
+
+    /**
+     * Creates a new instance of InitialRefreshPipeline.
+     *
+     * @param handler The handler processing the syncrepl request
+     * @param session The consumer session
+     * @param request The initial refresh request, with its filter and sort control
+     * @param csnAT The entryCSN AttributeType
+     * @param objectClassAT The objectClass AttributeType
+     * @param sizeLimit The maximum number of entries to send
+     * @param nbThreads The number of workers
+     * @param maxPendingWrites The maximum number of responses waiting to be sent
+     */
+    InitialRefreshPipeline( SyncReplRequestHandler handler, LdapSession session, SearchRequest request,
+        AttributeType csnAT, AttributeType objectClassAT, long sizeLimit, int nbThreads, int maxPendingWrites )
+    {
+        this.handler = handler;
+        this.session = session;
+        this.request = request;
+        this.csnAT = csnAT;
+        this.objectClassAT = objectClassAT;
+        this.sizeLimit = sizeLimit;
+        this.nbThreads = nbThreads;
+        this.writePermits = new Semaphore( maxPendingWrites );
+    }
+
+
+    /**
+     * Tells if a request can be split in subtrees. Aliases may point outside of the
+     * subtree they are found in, so we don't split a request which dereferences them.
+     *
+     * @param request The initial refresh request
+     * @return <tt>true</tt> if the subtrees can be searched independently
+     */
+    static boolean canSplit( SearchRequest request )
+    {
+        return ( request.getScope() == SearchScope.SUBTREE )
+            && ( ( request.getDerefAliases() == AliasDerefMode.NEVER_DEREF_ALIASES )
+            || ( request.getDerefAliases() == AliasDerefMode.DEREF_FINDING_BASE_OBJ ) );
+    }
+
+
+    /**
+     * Sends all the entries.
+     *
+     * @return SUCCESS, or SIZE_LIMIT_EXCEEDED if we haven't sent all the entries
+     * @throws Exception If one of the searches failed
+     */
+    public ResultCodeEnum run() throws Exception
+    {
+        startTime = System.currentTimeMillis();
+
+        try
+        {
+            // The base entry must be sent before its children
+            sendEntries( request.getBase(), SearchScope.OBJECT );
+
+            long t0 = System.nanoTime();
+            List<Dn> subtrees = listChildren();
+            splitTime = System.nanoTime() - t0;
+            nbSubtrees = subtrees.size();
+
+            PROVIDER_LOG.debug( "Sending the initial content of {} subtrees using {} threads", nbSubtrees, nbThreads );
+
+            sendSubtrees( subtrees );
+        }
+        finally
+        {
+            endTime = System.currentTimeMillis();
+        }
+
+        PROVIDER_LOG.info( "Initial refresh done : {}", this );
+
+        if ( sizeLimitExceeded )
+        {
+            return ResultCodeEnum.SIZE_LIMIT_EXCEEDED;
+        }
+
+        return ResultCodeEnum.SUCCESS;
+    }
+
+
+    /**
+     * Searches the subtrees in parallel, and wait for all of them to be sent
+     */
+    private void sendSubtrees( List<Dn> subtrees ) throws Exception
+    {
+        final String threadPrefix = "initialRefresh-" + REFRESH_COUNTER.incrementAndGet() + "-";
+
+        ExecutorService executor = Executors.newFixedThreadPool( nbThreads, new ThreadFactory()
+        {
+            private final AtomicInteger threadCounter = new AtomicInteger( 0 );
+
+
+            @Override
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable, threadPrefix + threadCounter.incrementAndGet() );
+                thread.setDaemon( true );
+
+                return thread;
+            }
+        } );
+
+        Throwable failure = null;
+
+        try
+        {
+            List<Future<Void>> futures = new ArrayList<>( subtrees.size() );
+
+            for ( final Dn subtree : subtrees )
+            {
+                futures.add( executor.submit( new Callable<Void>()
+                {
+                    @Override
+                    public Void call() throws Exception
+                    {
+                        if ( !isStopped() )
+                        {
+                            sendEntries( subtree, SearchScope.SUBTREE );
+                        }
+
+                        return null;
+                    }
+                } ) );
+            }
+
+            for ( Future<Void> future : futures )
+            {
+                try
+                {
+                    future.get();
+                }
+                catch ( ExecutionException ee )
+                {
+                    // Stop the other workers, and report the first failure
+                    stopped = true;
+
+                    if ( failure == null )
+                    {
+                        failure = ee.getCause();
+                    }
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        if ( failure instanceof Exception )
+        {
+            throw ( Exception ) failure;
+        }
+        else if ( failure != null )
+        {
+            throw ( Error ) failure;
+        }
+    }
+
+
+    /**
+     * Gets the Dn of the entries right below the base. We get all of them, as an entry not
+     * matching the filter may have descendants that do.
+     */
+    private List<Dn> listChildren() throws Exception
+    {
+        SearchRequest listRequest = newSubRequest( request.getBase(), SearchScope.ONELEVEL,
+            new PresenceNode( objectClassAT ), false );
+        listRequest.addAttributes( SchemaConstants.NO_ATTRIBUTE );
+
+        List<Dn> children = new ArrayList<>();
+        Cursor<Entry> cursor = session.getCoreSession().search( listRequest );
+
+        try
+        {
+            cursor.beforeFirst();
+
+            while ( cursor.next() )
+            {
+                children.add( cursor.get().getDn() );
+            }
+        }
+        finally
+        {
+            closeCursor( cursor );
+        }
+
+        return children;
+    }
+
+
+    /**
+     * Searches the entries of a subtree, and send them in order
+     */
+    private void sendEntries( Dn base, SearchScope scope ) throws Exception
+    {
+        SearchRequest subRequest = newSubRequest( base, scope, request.getFilter(), true );
+        subRequest.addAttributes( request.getAttributes().toArray( new String[0] ) );
+
+        Cursor<Entry> cursor = session.getCoreSession().search( subRequest );
+
+        try
+        {
+            handler.setTimeLimitsOnCursor( request, session, cursor );
+            cursor.beforeFirst();
+
+            while ( !isStopped() )
+            {
+                long t0 = System.nanoTime();
+
+                if ( !cursor.next() )
+                {
+                    break;
+                }
+
+                Entry entry = cursor.get();
+                readTime.addAndGet( System.nanoTime() - t0 );
+                entriesRead.incrementAndGet();
+
+                if ( nbReserved.incrementAndGet() > sizeLimit )
+                {
+                    sizeLimitExceeded = true;
+                    stopped = true;
+                    break;
+                }
+
+                if ( !acquireWritePermit() )
+                {
+                    break;
+                }
+
+                t0 = System.nanoTime();
+                WriteFuture future;
+
+                try
+                {
+                    future = handler.sendSearchResultEntry( session, request, entry, SyncStateTypeEnum.ADD );
+                }
+                catch ( Exception e )
+                {
+                    writePermits.release();
+                    throw e;
+                }
+
+                future.addListener( permitReleaser );
+                sendTime.addAndGet( System.nanoTime() - t0 );
+                entriesSent.incrementAndGet();
+
+                Attribute csn = entry.get( csnAT );
+
+                if ( csn != null )
+                {
+                    updateLastSentCsn( csn.getString() );
+                }
+            }
+        }
+        finally
+        {
+            closeCursor( cursor );
+        }
+    }
+
+
+    /**
+     * Waits until the session has flushed enough responses
+     *
+     * @return <tt>false</tt> if the refresh has been stopped while waiting
+     */
+    private boolean acquireWritePermit() throws InterruptedException
+    {
+        long t0 = System.nanoTime();
+
+        try
+        {
+            while ( !writePermits.tryAcquire( WRITE_PERMIT_WAIT, TimeUnit.MILLISECONDS ) )
+            {
+                if ( isStopped() )
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+        finally
+        {
+            waitTime.addAndGet( System.nanoTime() - t0 );
+        }
+    }
+
+
+    /**
+     * Creates a request on a part of the DIT, keeping the original request controls
+     */
+    private SearchRequest newSubRequest( Dn base, SearchScope scope, ExprNode filter, boolean sorted )
+    {
+        SearchRequest subRequest = new SearchRequestImpl();
+        subRequest.setMessageId( request.getMessageId() );
+        subRequest.setBase( base );
+        subRequest.setScope( scope );
+        subRequest.setFilter( filter );
+        subRequest.setDerefAliases( request.getDerefAliases() );
+        subRequest.setTimeLimit( request.getTimeLimit() );
+        subRequest.setTypesOnly( request.getTypesOnly() );
+
+        for ( Control control : request.getControls().values() )
+        {
+            if ( sorted || !SortRequest.OID.equals( control.getOid() ) )
+            {
+                subRequest.addControl( control );
+            }
+        }
+
+        return subRequest;
+    }
+
+
+    private boolean isStopped()
+    {
+        return stopped || request.isAbandoned() || session.getIoSession().isClosing();
+    }
+
+
+    private synchronized void updateLastSentCsn( String csn )
+    {
+        if ( ( lastSentCsn == null ) || ( csn.compareTo( lastSentCsn ) > 0 ) )
+        {
+            lastSentCsn = csn;
+        }
+    }
+
+
+    private void closeCursor( Cursor<Entry> cursor )
+    {
+        try
+        {
+            cursor.close();
+        }
+        catch ( Exception e )
+        {
+            PROVIDER_LOG.error( I18n.err( I18n.ERR_168 ), e );
+        }
+    }
+
+
+    /**
+     * @return The highest CSN of the sent entries, or null if none was sent
+     */
+    public synchronized String getLastSentCsn()
+    {
+        return lastSentCsn;
+    }
+
+
+    /**
+     * @return The number of subtrees searched in parallel
+     */
+    public int getSubtreeCount()
+    {
+        return nbSubtrees;
+    }
+
+
+    /**
+     * @return The number of entries read from the partitions
+     */
+    public long getEntriesRead()
+    {
+        return entriesRead.get();
+    }
+
+
+    /**
+     * @return The number of entries written to the consumer session
+     */
+    public long getEntriesSent()
+    {
+        return entriesSent.get();
+    }
+
+
+    /**
+     * @return The time spent listing the subtrees, in ms
+     */
+    public long getSplitTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis( splitTime );
+    }
+
+
+    /**
+     * @return The time spent by all the workers reading the entries, in ms
+     */
+    public long getReadTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis( readTime.get() );
+    }
+
+
+    /**
+     * @return The time spent by all the workers building and encoding the responses, in ms
+     */
+    public long getSendTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis( sendTime.get() );
+    }
+
+
+    /**
+     * @return The time spent by all the workers waiting for the consumer, in ms
+     */
+    public long getWaitTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis( waitTime.get() );
+    }
+
+
+    /**
+     * @return The time elapsed since the refresh has started, in ms
+     */
+    public long getElapsedTime()
+    {
+        if ( startTime == 0L )
+        {
+            return 0L;
+        }
+
+        if ( endTime == 0L )
+        {
+            return System.currentTimeMillis() - startTime;
+        }
+
+        return endTime - startTime;
+    }
+
+
+    /**
+     * @return The number of entries read per second by a worker
+     */
+    public long getReadThroughput()
+    {
+        return throughput( entriesRead.get(), readTime.get() );
+    }
+
+
+    /**
+     * @return The number of entries sent per second by a worker
+     */
+    public long getSendThroughput()
+    {
+        return throughput( entriesSent.get(), sendTime.get() );
+    }
+
+
+    private static long throughput( long count, long nanos )
+    {
+        if ( nanos == 0L )
+        {
+            return 0L;
+        }
+
+        return count * TimeUnit.SECONDS.toNanos( 1L ) / nanos;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append( getEntriesSent() ).append( " entries sent in " ).append( getElapsedTime() ).append( " ms, " );
+        sb.append( getSubtreeCount() ).append( " subtrees, " ).append( nbThreads ).append( " threads" );
+        sb.append( " (split : " ).append( getSplitTime() ).append( " ms" );
+        sb.append( ", read : " ).append( getEntriesRead() ).append( " entries, " ).append( getReadTime() )
+            .append( " ms, " ).append( getReadThroughput() ).append( " entries/s" );
+        sb.append( ", send : " ).append( getSendTime() ).append( " ms, " ).append( getSendThroughput() )
+            .append( " entries/s" );
+        sb.append( ", flow control wait : " ).append( getWaitTime() ).append( " ms)" );
+
+        return sb.toString();
+    }
+}
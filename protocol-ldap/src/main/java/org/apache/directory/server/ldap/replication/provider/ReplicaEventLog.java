@@ -23,14 +23,16 @@ package org.apache.directory.server.ldap.replication.provider;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
-import jdbm.RecordManager;
 import jdbm.recman.BaseRecordManager;
-import jdbm.recman.TransactionManager;
 
 import org.apache.directory.api.ldap.model.constants.Loggers;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
-import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.Tuple;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.ldap.model.schema.comparators.SerializableComparator;
@@ -58,7 +60,9 @@ import org.slf4j.LoggerFactory;
  * <li></li>
  * </ul>
  * A separate log is maintained for each syncrepl consumer.<br>
- * We also associate a Queue with each structure, which will store the messages to send to the consumer.
+ * The messages themselves are stored once in the {@link ReplicaJournal} shared by all the consumers :
+ * the log of a consumer is an index file containing the journal positions of its messages, preceded
+ * by the number of messages which have already been removed from the head of the log.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -98,14 +102,26 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
     private int purgeThresholdCount = DEFAULT_PURGE_THRESHOLD_COUNT;
 
     // fields that won't be serialized
-    /** The Journal of modifications */
-    private JdbmTable<String, ReplicaEventMessage> journal;
+    /** The journal shared by all the consumers */
+    private ReplicaJournal journal;
 
-    /** the underlying file  */
-    private File journalFile;
+    /** the index file, containing the positions of the messages in the journal */
+    private File indexFile;
 
-    /** The record manager*/
-    private RecordManager recman;
+    /** The index file channel */
+    private FileChannel index;
+
+    /** The number of messages removed from the head of the log */
+    private long head;
+
+    /** The number of messages added to the log, including the removed ones */
+    private long size;
+
+    /** The journal position of the last message added to the log, -1 if none */
+    private long lastPosition = -1L;
+
+    /** The number of cursors opened on this log */
+    private int openCursors;
 
     /** A flag used to indicate that the consumer is not up to date */
     private volatile boolean dirty;
@@ -115,13 +131,22 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
 
     public static final String REPLICA_EVENT_LOG_NAME_PREFIX = "REPL_EVENT_LOG.";
 
+    /** The suffix of the index files */
+    public static final String INDEX_FILE_SUFFIX = ".idx";
+
+    /** The size of the index file header, containing the head of the log */
+    private static final int INDEX_HEADER_SIZE = 8;
+
+    /** The size of a message position in the index file */
+    private static final int POSITION_SIZE = 8;
+
+    /** The number of removed messages above which we may compact the index file */
+    private static final long COMPACT_THRESHOLD = 64L * 1024L;
+
     public static final int DEFAULT_PURGE_THRESHOLD_COUNT = 10000;
 
     /** The max delay for an idle replication log with no activity, by default the logs have no idle time period */
     public static final int DEFAULT_MAX_IDLE_PERIOD = -1;
-    
-    /** The partition transaction */
-    private PartitionTxn partitionTxn;
 
 
     /**
@@ -140,21 +165,153 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
         this.searchCriteria = new NotificationCriteria( schemaManager );
         this.searchCriteria.setEventMask( EventType.ALL_EVENT_TYPES_MASK );
 
-        // Create the journal file, or open if already exists
+        // Open the shared journal, and create the index file, or open if already exists
         File replDir = directoryService.getInstanceLayout().getReplDirectory();
-        journalFile = new File( replDir, REPLICA_EVENT_LOG_NAME_PREFIX + replicaId );
-        recman = new BaseRecordManager( journalFile.getAbsolutePath() );
-        TransactionManager transactionManager = ( ( BaseRecordManager ) recman ).getTransactionManager();
-        transactionManager.setMaximumTransactionsInLog( 200 );
+        journal = ReplicaJournal.acquire( directoryService );
+
+        try
+        {
+            indexFile = new File( replDir, getName() + INDEX_FILE_SUFFIX );
+            openIndex();
+
+            // Import the messages stored by the previous versions, if any
+            File legacyFile = new File( replDir, getName() + ".db" );
+
+            if ( legacyFile.exists() )
+            {
+                migrate( partitionTxn, schemaManager, new File( replDir, getName() ) );
+            }
+        }
+        catch ( IOException ioe )
+        {
+            journal.release();
+            throw ioe;
+        }
+    }
+
+
+    /**
+     * Opens the index file, and reads its header
+     */
+    private void openIndex() throws IOException
+    {
+        File tmpFile = new File( indexFile.getPath() + ".tmp" );
+
+        if ( !indexFile.exists() && tmpFile.exists() && !tmpFile.renameTo( indexFile ) )
+        {
+            // We crashed while compacting the index
+            throw new IOException( "Cannot restore the index file " + indexFile );
+        }
+
+        index = new RandomAccessFile( indexFile, "rw" ).getChannel();
+
+        if ( index.size() < INDEX_HEADER_SIZE )
+        {
+            head = 0L;
+            size = 0L;
+            writeLong( 0L, 0L );
+        }
+        else
+        {
+            head = readLong( 0L );
+            size = ( index.size() - INDEX_HEADER_SIZE ) / POSITION_SIZE;
+
+            // Remove a partially written position
+            index.truncate( INDEX_HEADER_SIZE + size * POSITION_SIZE );
+
+            if ( size > 0 )
+            {
+                lastPosition = readLong( INDEX_HEADER_SIZE + ( size - 1 ) * POSITION_SIZE );
+            }
+        }
+    }
+
+
+    /**
+     * Imports the messages stored in a JDBM based log, as created by the previous versions,
+     * and deletes it.
+     */
+    private void migrate( PartitionTxn partitionTxn, SchemaManager schemaManager, File legacyFile )
+        throws IOException
+    {
+        PROVIDER_LOG.info( "Importing the replication log {} in the replication journal", legacyFile );
 
-        SerializableComparator<String> comparator = new SerializableComparator<>(
-            SchemaConstants.CSN_ORDERING_MATCH_MR_OID );
-        comparator.setSchemaManager( schemaManager );
+        BaseRecordManager recman = new BaseRecordManager( legacyFile.getAbsolutePath() );
 
-        journal = new JdbmTable<>( schemaManager, journalFile.getName(), recman, comparator,
-            StringSerializer.INSTANCE, new ReplicaEventMessageSerializer( schemaManager ) );
-        
-        this.partitionTxn = partitionTxn;
+        try
+        {
+            SerializableComparator<String> comparator = new SerializableComparator<>(
+                SchemaConstants.CSN_ORDERING_MATCH_MR_OID );
+            comparator.setSchemaManager( schemaManager );
+
+            JdbmTable<String, ReplicaEventMessage> legacyJournal = new JdbmTable<>( schemaManager,
+                legacyFile.getName(), recman, comparator, StringSerializer.INSTANCE,
+                new ReplicaEventMessageSerializer( schemaManager ) );
+
+            Cursor<Tuple<String, ReplicaEventMessage>> cursor = legacyJournal.cursor();
+
+            try
+            {
+                while ( cursor.next() )
+                {
+                    log( cursor.get().getValue() );
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+
+            legacyJournal.close( partitionTxn );
+        }
+        catch ( Exception e )
+        {
+            throw new IOException( "Cannot import the replication log " + legacyFile, e );
+        }
+        finally
+        {
+            recman.close();
+        }
+
+        new File( legacyFile.getPath() + ".db" ).delete();
+        new File( legacyFile.getPath() + ".lg" ).delete();
+    }
+
+
+    private void writeLong( long offset, long value ) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( 8 );
+        buffer.putLong( value );
+        buffer.flip();
+        long pos = offset;
+
+        while ( buffer.hasRemaining() )
+        {
+            pos += index.write( buffer, pos );
+        }
+    }
+
+
+    private long readLong( long offset ) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( 8 );
+        long pos = offset;
+
+        while ( buffer.hasRemaining() )
+        {
+            int nbRead = index.read( buffer, pos );
+
+            if ( nbRead < 0 )
+            {
+                throw new IOException( "Unexpected end of the index file " + indexFile );
+            }
+
+            pos += nbRead;
+        }
+
+        buffer.flip();
+
+        return buffer.getLong();
     }
 
 
@@ -172,8 +329,10 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
             PROVIDER_LOG.debug( "logging entry with Dn {} with the event {}", message.getEntry().getDn(),
                 message.getChangeType() );
 
-            String entryCsn = message.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString();
-            journal.put( partitionTxn, entryCsn, message );
+            long position = journal.append( message, lastPosition );
+            writeLong( INDEX_HEADER_SIZE + size * POSITION_SIZE, position );
+            size++;
+            lastPosition = position;
         }
         catch ( Exception e )
         {
@@ -213,20 +372,35 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
     {
         PROVIDER_LOG.debug( "Stopping the EventLog for replicaId {}", replicaId );
 
-        // Close the producer and session, DO NOT close connection 
+        synchronized ( this )
+        {
+            if ( index != null )
+            {
+                index.force( false );
+                index.close();
+            }
+
+            index = null;
+        }
+
         if ( journal != null )
         {
-            journal.close( partitionTxn );
+            journal.release();
         }
 
         journal = null;
+    }
 
-        if ( recman != null )
+
+    /**
+     * Deletes the index file of a stopped EventLog
+     */
+    public void delete()
+    {
+        if ( !indexFile.delete() )
         {
-            recman.close();
+            PROVIDER_LOG.warn( "Failed to delete the replication event log index {}", indexFile );
         }
-
-        recman = null;
     }
 
 
@@ -441,7 +615,7 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
      */
     public ReplicaJournalCursor getCursor( String consumerCsn ) throws Exception
     {
-        return new ReplicaJournalCursor( partitionTxn, journal, consumerCsn );
+        return new ReplicaJournalCursor( this, consumerCsn );
     }
 
 
@@ -450,7 +624,7 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
      */
     public String getName()
     {
-        return journal.getName();
+        return REPLICA_EVENT_LOG_NAME_PREFIX + replicaId;
     }
 
 
@@ -459,17 +633,165 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
      */
     public synchronized long count()
     {
-        try
+        return size - head;
+    }
+
+
+    /**
+     * @return The shared journal
+     */
+    ReplicaJournal getJournal()
+    {
+        return journal;
+    }
+
+
+    /**
+     * @return The index of the first message of the log
+     */
+    synchronized long getHead()
+    {
+        return head;
+    }
+
+
+    /**
+     * @return The index after the last message of the log
+     */
+    synchronized long getSize()
+    {
+        return size;
+    }
+
+
+    /**
+     * Gets the journal position of a message
+     *
+     * @param messageIndex The message index
+     * @return The message position in the journal
+     * @throws IOException If the index file can't be read
+     */
+    synchronized long getPosition( long messageIndex ) throws IOException
+    {
+        return readLong( INDEX_HEADER_SIZE + messageIndex * POSITION_SIZE );
+    }
+
+
+    /**
+     * @return The journal position of the oldest message of this log, which is its first message
+     * as the positions of a log are increasing, or Long.MAX_VALUE if the log is empty
+     * @throws IOException If the index file can't be read
+     */
+    synchronized long getOldestPosition() throws IOException
+    {
+        if ( head >= size )
+        {
+            return Long.MAX_VALUE;
+        }
+
+        return getPosition( head );
+    }
+
+
+    /**
+     * Removes the messages located before the given index. As the log is append-only, we
+     * can only remove messages from its head.
+     *
+     * @param messageIndex The index of the first message to keep
+     * @throws IOException If the index file can't be updated
+     */
+    synchronized void removeUpTo( long messageIndex ) throws IOException
+    {
+        long newHead = Math.min( messageIndex, size );
+
+        if ( newHead <= head )
         {
-            return journal.count( partitionTxn );
+            return;
         }
-        catch ( LdapException e )
+
+        head = newHead;
+        writeLong( 0L, head );
+        compactIfNeeded();
+    }
+
+
+    /**
+     * Removes a message if it's the first message of the log
+     *
+     * @param messageIndex The message index
+     * @throws IOException If the index file can't be updated
+     */
+    synchronized void removeIfHead( long messageIndex ) throws IOException
+    {
+        if ( messageIndex == head )
         {
-            throw new RuntimeException( e );
+            removeUpTo( messageIndex + 1 );
         }
     }
 
 
+    synchronized void cursorOpened()
+    {
+        openCursors++;
+    }
+
+
+    synchronized void cursorClosed() throws IOException
+    {
+        openCursors--;
+        compactIfNeeded();
+    }
+
+
+    /**
+     * Rewrites the index file without the removed messages, if they use most of it. The
+     * cursors are using message indexes, so we don't compact while a cursor is opened.
+     */
+    private void compactIfNeeded() throws IOException
+    {
+        if ( ( openCursors > 0 ) || ( head < COMPACT_THRESHOLD ) || ( head * 2 < size ) )
+        {
+            return;
+        }
+
+        File tmpFile = new File( indexFile.getPath() + ".tmp" );
+
+        try ( FileChannel compacted = new RandomAccessFile( tmpFile, "rw" ).getChannel() )
+        {
+            compacted.truncate( 0L );
+            ByteBuffer header = ByteBuffer.allocate( INDEX_HEADER_SIZE );
+            header.putLong( 0L );
+            header.flip();
+            compacted.write( header );
+
+            long from = INDEX_HEADER_SIZE + head * POSITION_SIZE;
+            long length = ( size - head ) * POSITION_SIZE;
+            long transferred = 0L;
+
+            while ( transferred < length )
+            {
+                transferred += index.transferTo( from + transferred, length - transferred, compacted );
+            }
+
+            compacted.force( false );
+        }
+
+        index.close();
+
+        if ( indexFile.delete() && tmpFile.renameTo( indexFile ) )
+        {
+            PROVIDER_LOG.debug( "Compacted the replication event log index {}", indexFile );
+        }
+        else
+        {
+            PROVIDER_LOG.warn( "Failed to compact the replication event log index {}", indexFile );
+        }
+
+        // Either the compacted index, or the original one if it has not been deleted
+        openIndex();
+    }
+
+
     public long getMaxIdlePeriod()
     {
         return maxIdlePeriod;
@@ -522,7 +844,7 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
         return "ReplicaEventLog [hostName=" + hostName + ", searchFilter=" + searchFilter + ", lastSentCsn="
             + lastSentCsn + ", searchCriteria=" + searchCriteria + ", replicaId=" + replicaId
             + ", refreshNPersist=" + refreshNPersist + ", maxInactivePeriod=" + maxIdlePeriod
-            + ", purgeThresholdCount=" + purgeThresholdCount + ", journalFile=" + journalFile
+            + ", purgeThresholdCount=" + purgeThresholdCount + ", indexFile=" + indexFile
             + ", dirty=" + dirty + ", consumerEntryDn=" + consumerEntryDn + "]";
     }
 }
@@ -20,7 +20,6 @@
 package org.apache.directory.server.ldap.replication.provider;
 
 
-import java.io.File;
 import java.util.Map;
 
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
@@ -84,7 +83,7 @@ public class ReplicaEventLogJanitor extends Thread
                         if ( lastSentCsn == null )
                         {
                             LOG.debug( "last sent CSN is null for the replica {}, skipping cleanup", log.getName() );
-                            return;
+                            continue;
                         }
 
                         long now = DateUtils.getDate( DateUtils.getGeneralizedTime() ).getTime();
@@ -166,6 +165,8 @@ public class ReplicaEventLogJanitor extends Thread
                 }
             }
 
+            purgeJournal();
+
             try
             {
                 synchronized ( lock )
@@ -181,6 +182,54 @@ public class ReplicaEventLogJanitor extends Thread
     }
 
 
+    /**
+     * Deletes the journal segments which contain only messages that have been removed from
+     * all the consumer logs.
+     */
+    private void purgeJournal()
+    {
+        ReplicaJournal journal = null;
+        long oldestPosition = Long.MAX_VALUE;
+
+        try
+        {
+            for ( ReplicaEventLog log : replicaLogMap.values() )
+            {
+                synchronized ( log )
+                {
+                    if ( log.getJournal() == null )
+                    {
+                        // Stopped
+                        continue;
+                    }
+
+                    if ( journal == null )
+                    {
+                        journal = log.getJournal();
+
+                        // The messages appended from now on are after this position
+                        oldestPosition = journal.startPurge();
+                    }
+
+                    oldestPosition = Math.min( oldestPosition, log.getOldestPosition() );
+                }
+            }
+
+            if ( journal != null )
+            {
+                int nbPurged = journal.purge( oldestPosition );
+                journal.sync();
+
+                LOG.debug( "purged {} replication journal segments", nbPurged );
+            }
+        }
+        catch ( Exception e )
+        {
+            LOG.warn( "Failed to purge the replication journal", e );
+        }
+    }
+
+
     public synchronized void removeEventLog( ReplicaEventLog replicaEventLog )
     {
         directoryService.getEventService().removeListener( replicaEventLog.getPersistentListener() );
@@ -192,9 +241,7 @@ public class ReplicaEventLogJanitor extends Thread
         try
         {
             replicaEventLog.stop();
-
-            new File( directoryService.getInstanceLayout().getReplDirectory(), name + ".db" ).delete();
-            new File( directoryService.getInstanceLayout().getReplDirectory(), name + ".lg" ).delete();
+            replicaEventLog.delete();
             LOG.info( "successfully removed replication event log {}", name );
         }
         catch ( Exception e )
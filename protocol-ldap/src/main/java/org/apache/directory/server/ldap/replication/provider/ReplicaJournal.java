@@ -0,0 +1,582 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessageSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The replication journal shared by all the consumers of a provider. It's an append-only
+ * log of serialized {@link ReplicaEventMessage}s, split in segment files. A message is
+ * identified by its position, which is made of the segment number (high 32 bits) and of the
+ * offset of the message in the segment (low 32 bits).
+ * <p>
+ * A change is generally logged by all the consumers interested in it, one after the other.
+ * We keep the positions of the last appended messages, so that the same change is only
+ * written once : each {@link ReplicaEventLog} only stores the positions of its messages.
+ * A message is only shared if it's after the last message of the log, so that the positions
+ * of a log are always increasing, and the first message of a log is its oldest message.
+ * <p>
+ * The journal is purged by deleting the segments which are older than the oldest message
+ * still referenced by a consumer.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public final class ReplicaJournal
+{
+    /** A logger for the replication provider */
+    private static final Logger PROVIDER_LOG = LoggerFactory.getLogger( Loggers.PROVIDER_LOG.getName() );
+
+    /** The segment files name prefix */
+    public static final String SEGMENT_NAME_PREFIX = "REPL_JOURNAL.";
+
+    /** The default segment size */
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024L * 1024L;
+
+    /** The number of recently appended messages we remember */
+    private static final int RECENT_MESSAGES_SIZE = 1024;
+
+    /** The size of a message header (the message length) */
+    private static final int HEADER_SIZE = 4;
+
+    /** The opened journals, per replication directory */
+    private static final Map<File, ReplicaJournal> JOURNALS = new HashMap<>();
+
+    /** The directory containing the segments */
+    private final File directory;
+
+    /** The message serializer */
+    private final ReplicaEventMessageSerializer serializer;
+
+    /** The size above which we start a new segment */
+    private final long segmentSize;
+
+    /** The opened segments, per segment number */
+    private final TreeMap<Long, FileChannel> segments = new TreeMap<>();
+
+    /** The number of the segment we append to */
+    private long currentSegment;
+
+    /** The size of the segment we append to */
+    private long currentSize;
+
+    /** The positions of the last appended messages, per CSN and change type */
+    private final Map<String, Long> recentMessages = new LinkedHashMap<String, Long>()
+    {
+        private static final long serialVersionUID = 1L;
+
+
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<String, Long> eldest )
+        {
+            return size() > RECENT_MESSAGES_SIZE;
+        }
+    };
+
+    /** The messages written before this position can't be shared anymore, as a purge may delete them */
+    private long sharedFloor;
+
+    /** Prevents the segments from being closed while they are read */
+    private final ReadWriteLock purgeLock = new ReentrantReadWriteLock();
+
+    /** The number of event logs using this journal */
+    private int references;
+
+
+    /**
+     * Opens the journal stored in the given directory, and recovers from a partially written
+     * last message, if any.
+     *
+     * @param directory The directory containing the segments
+     * @param schemaManager The SchemaManager
+     * @param segmentSize The size above which we start a new segment
+     * @throws IOException If the segments can't be opened
+     */
+    ReplicaJournal( File directory, SchemaManager schemaManager, long segmentSize ) throws IOException
+    {
+        if ( ( segmentSize <= 0 ) || ( segmentSize > Integer.MAX_VALUE ) )
+        {
+            throw new IllegalArgumentException( "Invalid segment size " + segmentSize );
+        }
+
+        this.directory = directory;
+        this.serializer = new ReplicaEventMessageSerializer( schemaManager );
+        this.segmentSize = segmentSize;
+
+        File[] files = directory.listFiles( new FilenameFilter()
+        {
+            @Override
+            public boolean accept( File dir, String name )
+            {
+                return name.startsWith( SEGMENT_NAME_PREFIX );
+            }
+        } );
+
+        if ( files != null )
+        {
+            for ( File file : files )
+            {
+                try
+                {
+                    long number = Long.parseLong( file.getName().substring( SEGMENT_NAME_PREFIX.length() ), 16 );
+                    segments.put( number, openSegment( file ) );
+                }
+                catch ( NumberFormatException nfe )
+                {
+                    PROVIDER_LOG.warn( "Ignoring the unexpected file {} in the replication directory", file );
+                }
+            }
+        }
+
+        if ( segments.isEmpty() )
+        {
+            currentSegment = 0L;
+            currentSize = 0L;
+            segments.put( currentSegment, openSegment( getSegmentFile( currentSegment ) ) );
+        }
+        else
+        {
+            currentSegment = segments.lastKey();
+            currentSize = recover( segments.get( currentSegment ) );
+        }
+    }
+
+
+    /**
+     * Gets the journal associated with a DirectoryService, opening it if needed. It must be
+     * released when not used anymore.
+     *
+     * @param directoryService The DirectoryService
+     * @return The shared journal
+     * @throws IOException If the journal can't be opened
+     */
+    public static ReplicaJournal acquire( DirectoryService directoryService ) throws IOException
+    {
+        File directory = directoryService.getInstanceLayout().getReplDirectory();
+
+        synchronized ( JOURNALS )
+        {
+            ReplicaJournal journal = JOURNALS.get( directory );
+
+            if ( journal == null )
+            {
+                journal = new ReplicaJournal( directory, directoryService.getSchemaManager(), DEFAULT_SEGMENT_SIZE );
+                JOURNALS.put( directory, journal );
+            }
+
+            journal.references++;
+
+            return journal;
+        }
+    }
+
+
+    /**
+     * Releases the journal. It's closed when the last event log using it releases it.
+     *
+     * @throws IOException If the journal can't be closed
+     */
+    public void release() throws IOException
+    {
+        synchronized ( JOURNALS )
+        {
+            references--;
+
+            if ( references > 0 )
+            {
+                return;
+            }
+
+            JOURNALS.remove( directory );
+        }
+
+        close();
+    }
+
+
+    private File getSegmentFile( long number )
+    {
+        return new File( directory, SEGMENT_NAME_PREFIX + String.format( "%016x", number ) );
+    }
+
+
+    private static FileChannel openSegment( File file ) throws IOException
+    {
+        return new RandomAccessFile( file, "rw" ).getChannel();
+    }
+
+
+    /**
+     * Finds the end of the last complete message of a segment, and removes what follows.
+     */
+    private static long recover( FileChannel channel ) throws IOException
+    {
+        long size = channel.size();
+        long position = 0L;
+        ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+
+        while ( position + HEADER_SIZE <= size )
+        {
+            header.clear();
+            readFully( channel, header, position );
+            header.flip();
+            int length = header.getInt();
+
+            // A torn or corrupted header is the end of the log
+            if ( !isValidLength( length, position, size ) )
+            {
+                break;
+            }
+
+            position += HEADER_SIZE + length;
+        }
+
+        if ( position < size )
+        {
+            PROVIDER_LOG.warn( "Truncating a partially written replication journal message at {}", position );
+            channel.truncate( position );
+        }
+
+        return position;
+    }
+
+
+    /**
+     * Tells if a message length read in a header fits in what remains of the segment.
+     */
+    private static boolean isValidLength( int length, long position, long size )
+    {
+        return ( length > 0 ) && ( length <= size - position - HEADER_SIZE );
+    }
+
+
+    private static void readFully( FileChannel channel, ByteBuffer buffer, long position ) throws IOException
+    {
+        long pos = position;
+
+        while ( buffer.hasRemaining() )
+        {
+            int nbRead = channel.read( buffer, pos );
+
+            if ( nbRead < 0 )
+            {
+                throw new IOException( "Unexpected end of the replication journal at " + pos );
+            }
+
+            pos += nbRead;
+        }
+    }
+
+
+    /**
+     * Appends a message to the journal, unless the same message has just been appended after
+     * the last message of the log.
+     *
+     * @param message The message to append
+     * @param lastPosition The position of the last message of the log, or -1 if the log is empty
+     * @return The message position
+     * @throws IOException If the message can't be written
+     */
+    public synchronized long append( ReplicaEventMessage message, long lastPosition ) throws IOException
+    {
+        String key = message.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString() + '/'
+            + message.getChangeType();
+        Long known = recentMessages.get( key );
+
+        if ( ( known != null ) && ( known > lastPosition ) && ( known >= sharedFloor ) )
+        {
+            return known;
+        }
+
+        byte[] bytes = serializer.serialize( message );
+
+        if ( ( currentSize > 0L ) && ( currentSize + HEADER_SIZE + bytes.length > segmentSize ) )
+        {
+            roll();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate( HEADER_SIZE + bytes.length );
+        buffer.putInt( bytes.length );
+        buffer.put( bytes );
+        buffer.flip();
+
+        FileChannel channel = segments.get( currentSegment );
+        long pos = currentSize;
+
+        while ( buffer.hasRemaining() )
+        {
+            pos += channel.write( buffer, pos );
+        }
+
+        long position = ( currentSegment << 32 ) | currentSize;
+        currentSize = pos;
+        recentMessages.put( key, position );
+
+        return position;
+    }
+
+
+    /**
+     * Starts a new segment. The previous one is flushed to disk.
+     */
+    private void roll() throws IOException
+    {
+        segments.get( currentSegment ).force( false );
+        currentSegment++;
+        currentSize = 0L;
+        segments.put( currentSegment, openSegment( getSegmentFile( currentSegment ) ) );
+
+        PROVIDER_LOG.debug( "Starting the replication journal segment {}", currentSegment );
+    }
+
+
+    /**
+     * Reads the message stored at the given position.
+     *
+     * @param position The message position
+     * @return The message, or null if it has been purged, or if it's after the end of the
+     * segment or has an invalid header, which happens when a torn message has been truncated
+     * by the recovery
+     * @throws IOException If the message can't be read
+     */
+    public ReplicaEventMessage read( long position ) throws IOException
+    {
+        purgeLock.readLock().lock();
+
+        try
+        {
+            FileChannel channel;
+
+            synchronized ( this )
+            {
+                channel = segments.get( position >>> 32 );
+            }
+
+            if ( channel == null )
+            {
+                return null;
+            }
+
+            long offset = position & 0xFFFFFFFFL;
+            long size = channel.size();
+
+            if ( offset + HEADER_SIZE > size )
+            {
+                PROVIDER_LOG.warn( "The replication journal message {} is after the end of its segment",
+                    Long.toHexString( position ) );
+
+                return null;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+            readFully( channel, header, offset );
+            header.flip();
+            int length = header.getInt();
+
+            // Never trust the length before allocating the message buffer
+            if ( !isValidLength( length, offset, size ) )
+            {
+                PROVIDER_LOG.warn( "Invalid length {} for the replication journal message {}", length,
+                    Long.toHexString( position ) );
+
+                return null;
+            }
+
+            ByteBuffer bytes = ByteBuffer.allocate( length );
+            readFully( channel, bytes, offset + HEADER_SIZE );
+
+            return ( ReplicaEventMessage ) serializer.deserialize( bytes.array() );
+        }
+        finally
+        {
+            purgeLock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * @return The position the next message will be written at
+     */
+    public synchronized long getEndPosition()
+    {
+        return ( currentSegment << 32 ) | currentSize;
+    }
+
+
+    /**
+     * Starts a purge : the messages appended from now on won't share a message written before,
+     * so that they are all after the returned position, which the purge will keep.
+     *
+     * @return The position the next message will be written at
+     */
+    public synchronized long startPurge()
+    {
+        sharedFloor = getEndPosition();
+
+        return sharedFloor;
+    }
+
+
+    /**
+     * Deletes the segments containing only messages older than the given position. The
+     * segment we append to is never deleted. The position must be lower or equal to the
+     * position returned by {@link #startPurge()}, and to the position of the first message
+     * of every log.
+     *
+     * @param oldestPosition The position of the oldest message we must keep
+     * @return The number of deleted segments
+     */
+    public int purge( long oldestPosition )
+    {
+        // Wait for the reads in progress, as we are closing the segments
+        purgeLock.writeLock().lock();
+
+        try
+        {
+            synchronized ( this )
+            {
+                long oldestSegment = Math.min( oldestPosition >>> 32, currentSegment );
+                int nbDeleted = 0;
+                Iterator<Map.Entry<Long, FileChannel>> iterator = segments.headMap( oldestSegment ).entrySet()
+                    .iterator();
+
+                while ( iterator.hasNext() )
+                {
+                    Map.Entry<Long, FileChannel> segment = iterator.next();
+                    iterator.remove();
+
+                    try
+                    {
+                        segment.getValue().close();
+                    }
+                    catch ( IOException ioe )
+                    {
+                        PROVIDER_LOG.warn( "Failed to close the replication journal segment {}", segment.getKey(),
+                            ioe );
+                    }
+
+                    if ( !getSegmentFile( segment.getKey() ).delete() )
+                    {
+                        PROVIDER_LOG.warn( "Failed to delete the replication journal segment {}", segment.getKey() );
+                    }
+
+                    nbDeleted++;
+                }
+
+                if ( nbDeleted > 0 )
+                {
+                    // The remembered positions may reference a deleted segment
+                    recentMessages.clear();
+                    PROVIDER_LOG.debug( "Purged {} replication journal segments", nbDeleted );
+                }
+
+                return nbDeleted;
+            }
+        }
+        finally
+        {
+            purgeLock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Flushes the segment we append to on disk.
+     *
+     * @throws IOException If the segment can't be flushed
+     */
+    public synchronized void sync() throws IOException
+    {
+        segments.get( currentSegment ).force( false );
+    }
+
+
+    /**
+     * @return The number of segments
+     */
+    public synchronized int getSegmentCount()
+    {
+        return segments.size();
+    }
+
+
+    private void close() throws IOException
+    {
+        purgeLock.writeLock().lock();
+
+        try
+        {
+            closeSegments();
+        }
+        finally
+        {
+            purgeLock.writeLock().unlock();
+        }
+    }
+
+
+    private synchronized void closeSegments() throws IOException
+    {
+        IOException error = null;
+
+        for ( FileChannel channel : segments.values() )
+        {
+            try
+            {
+                channel.force( false );
+                channel.close();
+            }
+            catch ( IOException ioe )
+            {
+                error = ioe;
+            }
+        }
+
+        segments.clear();
+        recentMessages.clear();
+
+        if ( error != null )
+        {
+            throw error;
+        }
+    }
+}
@@ -25,22 +25,18 @@ import java.io.IOException;
 import java.util.Iterator;
 
 import org.apache.directory.api.ldap.model.constants.Loggers;
-import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.cursor.AbstractCursor;
-import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.cursor.CursorException;
-import org.apache.directory.api.ldap.model.cursor.Tuple;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.message.controls.ChangeType;
-import org.apache.directory.server.core.api.partition.PartitionTxn;
-import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmTable;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
- * Define a cursor on top of a replication journal.
+ * Define a cursor on top of a replication journal. The messages of a consumer log are read in
+ * the order they were logged, from the shared journal.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -55,11 +51,20 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
     /** Speedup for logs */
     private static final boolean IS_DEBUG = LOG_CURSOR.isDebugEnabled();
 
-    /** the underlying journal's cursor */
-    private Cursor<Tuple<String, ReplicaEventMessage>> tupleCursor;
+    /** the consumer event log */
+    private ReplicaEventLog log;
 
-    /** the event log journal */
-    private JdbmTable<String, ReplicaEventMessage> journal;
+    /** the shared journal */
+    private ReplicaJournal journal;
+
+    /** the index of the next message to read */
+    private long nextIndex;
+
+    /** the index of the current message */
+    private long currentIndex = -1L;
+
+    /** tells if the cursor has been closed */
+    private boolean closed;
 
     /** the consumer's CSN based on which messages will be qualified for sending */
     private String consumerCsn;
@@ -68,32 +73,27 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
 
     /** used while cleaning up the log */
     private boolean skipQualifying;
-    
-    /** The partition transaction */
-    private PartitionTxn partitionTxn;
-    
 
 
     /**
-     * Creates a cursor on top of the given journal
+     * Creates a cursor on top of the given consumer log
      * 
-     * @param partitionTxn The Transaction to use
-     * @param journal the log journal
+     * @param log the consumer event log
      * @param consumerCsn the consumer's CSN taken from cookie
      * @throws Exception If the cursor creation failed
      */
-    public ReplicaJournalCursor( PartitionTxn partitionTxn, JdbmTable<String, ReplicaEventMessage> journal, 
-            String consumerCsn ) throws Exception
+    public ReplicaJournalCursor( ReplicaEventLog log, String consumerCsn ) throws Exception
     {
         if ( IS_DEBUG )
         {
             LOG_CURSOR.debug( "Creating ReplicaJournalCursor {}", this );
         }
 
-        this.journal = journal;
-        this.tupleCursor = journal.cursor();
+        this.log = log;
+        this.journal = log.getJournal();
         this.consumerCsn = consumerCsn;
-        this.partitionTxn = partitionTxn;
+        this.nextIndex = log.getHead();
+        log.cursorOpened();
     }
 
 
@@ -164,7 +164,7 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
      * 
      * @throws Exception
      */
-    private boolean isQualified( String csn, ReplicaEventMessage evtMsg ) throws LdapException
+    private boolean isQualified( ReplicaEventMessage evtMsg ) throws LdapException
     {
         LOG.debug( "ReplicaEventMessage: {}", evtMsg );
 
@@ -205,33 +205,57 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
      */
     public boolean next() throws LdapException, CursorException
     {
-        while ( tupleCursor.next() )
+        try
         {
-            Tuple<String, ReplicaEventMessage> tuple = tupleCursor.get();
+            while ( true )
+            {
+                long messageIndex;
+                long position;
+                ReplicaEventMessage message;
 
-            String csn = tuple.getKey();
-            ReplicaEventMessage message = tuple.getValue();
+                // The journal is purged below the first message of the logs : we read the message
+                // while holding the log, so that it can't be removed in the mean time
+                synchronized ( log )
+                {
+                    // The messages removed from the head of the log have already been sent
+                    nextIndex = Math.max( nextIndex, log.getHead() );
 
-            if ( skipQualifying )
-            {
-                qualifiedEvtMsg = message;
-                return true;
-            }
+                    if ( nextIndex >= log.getSize() )
+                    {
+                        break;
+                    }
 
-            boolean qualified = isQualified( csn, message );
+                    messageIndex = nextIndex++;
+                    position = log.getPosition( messageIndex );
+                    message = journal.read( position );
+                }
 
-            if ( qualified )
-            {
-                qualifiedEvtMsg = message;
-                return true;
-            }
-            else
-            {
-                journal.remove( partitionTxn, csn );
+                if ( message == null )
+                {
+                    // Skipping it would lose a change : the consumer has to refresh its content
+                    throw new ReplicaMessageLostException( "The message " + Long.toHexString( position )
+                        + " of the log " + log.getName() + " has been purged from the replication journal" );
+                }
+
+                if ( skipQualifying || isQualified( message ) )
+                {
+                    qualifiedEvtMsg = message;
+                    currentIndex = messageIndex;
+                    return true;
+                }
+                else
+                {
+                    log.removeIfHead( messageIndex );
+                }
             }
         }
+        catch ( IOException ioe )
+        {
+            throw new CursorException( ioe.getMessage(), ioe );
+        }
 
         qualifiedEvtMsg = null;
+        currentIndex = -1L;
 
         return false;
     }
@@ -257,7 +281,7 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
             LOG_CURSOR.debug( "Closing ReplicaJournalCursor {}", this );
         }
 
-        tupleCursor.close();
+        release();
         super.close();
     }
 
@@ -273,11 +297,21 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
             LOG_CURSOR.debug( "Closing ReplicaJournalCursor {}", this );
         }
 
-        tupleCursor.close();
+        release();
         super.close( cause );
     }
 
 
+    private void release() throws IOException
+    {
+        if ( !closed )
+        {
+            closed = true;
+            log.cursorClosed();
+        }
+    }
+
+
     /**
      * sets the flag to skip CSN based checking while traversing
      * used for internal log cleanup ONLY 
@@ -298,11 +332,13 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
         {
             if ( qualifiedEvtMsg != null )
             {
-                journal.remove( partitionTxn, qualifiedEvtMsg.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString() );
+                // The log is append-only : only the messages at its head can be removed
+                log.removeIfHead( currentIndex );
             }
         }
         catch ( Exception e )
         {
+            LOG.warn( "Failed to remove a message from the log {}", log.getName(), e );
         }
     }
 
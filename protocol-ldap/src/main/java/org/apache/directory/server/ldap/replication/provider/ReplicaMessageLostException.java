@@ -0,0 +1,47 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+
+
+/**
+ * A {@link CursorException} thrown when a message of a consumer log can't be found in the
+ * replication journal anymore. The consumer can't be updated from its log, and has to do
+ * a full refresh.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaMessageLostException extends CursorException
+{
+    private static final long serialVersionUID = 1L;
+
+
+    /**
+     * Creates a ReplicaMessageLostException with a custom message.
+     *
+     * @param explanation String explanation of the lost message
+     */
+    public ReplicaMessageLostException( String explanation )
+    {
+        super( explanation );
+    }
+}
@@ -37,6 +37,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
 
 import org.apache.directory.api.ldap.extras.controls.SynchronizationModeEnum;
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncDone.SyncDoneValue;
@@ -58,6 +59,7 @@ import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
 import org.apache.directory.api.ldap.model.exception.LdapURLEncodingException;
+import org.apache.directory.api.ldap.model.exception.LdapUnwillingToPerformException;
 import org.apache.directory.api.ldap.model.filter.AndNode;
 import org.apache.directory.api.ldap.model.filter.EqualityNode;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
@@ -65,6 +67,7 @@ import org.apache.directory.api.ldap.model.filter.GreaterEqNode;
 import org.apache.directory.api.ldap.model.filter.LessEqNode;
 import org.apache.directory.api.ldap.model.filter.OrNode;
 import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
 import org.apache.directory.api.ldap.model.message.LdapResult;
 import org.apache.directory.api.ldap.model.message.ReferralImpl;
 import org.apache.directory.api.ldap.model.message.Response;
@@ -96,6 +99,7 @@ import org.apache.directory.server.core.api.interceptor.context.ModifyOperationC
 import org.apache.directory.server.core.api.interceptor.context.OperationContext;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.ldap.LdapProtocolUtils;
 import org.apache.directory.server.ldap.LdapServer;
@@ -103,6 +107,8 @@ import org.apache.directory.server.ldap.LdapSession;
 import org.apache.directory.server.ldap.handlers.SearchAbandonListener;
 import org.apache.directory.server.ldap.handlers.SearchTimeLimitingMonitor;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.directory.server.ldap.replication.ReplicaSnapshot;
+import org.apache.mina.core.future.WriteFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -151,6 +157,24 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     /** thread used for updating consumer infor */
     private Thread consumerInfoUpdateThread;
 
+    /** The number of threads used to send the initial content, 1 to send it sequentially */
+    private int refreshThreads = 1;
+
+    /** The maximum number of initial content responses waiting to be sent to the consumer */
+    private int refreshMaxPendingWrites = DEFAULT_REFRESH_MAX_PENDING_WRITES;
+
+    /** The last parallel initial refresh, kept for its statistics */
+    private volatile InitialRefreshPipeline lastInitialRefresh;
+
+    /** The directory the partition snapshots are created into when the provider starts, if any */
+    private String snapshotDirectory;
+
+    /** The default maximum number of initial content responses waiting to be sent */
+    public static final int DEFAULT_REFRESH_MAX_PENDING_WRITES = 1024;
+
+    /** The host name of the replica event logs created for the snapshots */
+    private static final String SNAPSHOT_HOST = "snapshot";
+
     /**
      * Create a SyncReplRequestHandler empty instance
      */
@@ -233,6 +257,8 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 throw new RuntimeException( "Cannot initialize the Provider replica listener" );
             }
 
+            createSnapshots();
+
             initialized = true;
             PROVIDER_LOG.debug( "syncrepl provider initialized successfully" );
         }
@@ -344,6 +370,12 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 }
             }
         }
+        catch ( ReplicaMessageLostException rmle )
+        {
+            PROVIDER_LOG.error( "Cannot send the changes from the log, the consumer has to refresh its content",
+                rmle );
+            sendESyncRefreshRequired( session, request );
+        }
         catch ( Exception e )
         {
             PROVIDER_LOG.error( "Failed to handle the syncrepl request", e );
@@ -569,7 +601,16 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         request.setFilter( initialContentFilter );
 
         // Now, do a search to get all the entries
-        SearchResultDone searchDoneResp = doSimpleSearch( session, request, replicaLog );
+        SearchResultDone searchDoneResp;
+
+        if ( ( refreshThreads > 1 ) && InitialRefreshPipeline.canSplit( request ) )
+        {
+            searchDoneResp = doParallelSearch( session, request, replicaLog );
+        }
+        else
+        {
+            searchDoneResp = doSimpleSearch( session, request, replicaLog );
+        }
 
         if ( searchDoneResp.getLdapResult().getResultCode() == ResultCodeEnum.SUCCESS )
         {
@@ -638,6 +679,147 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     }
 
 
+    /**
+     * Creates a snapshot of each file based partition, except the system one, in a
+     * sub-directory of the snapshot directory named after the partition id. An existing
+     * snapshot is kept : it has to be deleted to get a new one at the next start. A
+     * failed snapshot is only logged, the provider is started anyway.
+     */
+    private void createSnapshots() throws LdapException
+    {
+        if ( snapshotDirectory == null )
+        {
+            return;
+        }
+
+        for ( String suffix : dirService.getPartitionNexus().listSuffixes() )
+        {
+            Dn suffixDn = new Dn( dirService.getSchemaManager(), suffix );
+            Partition partition = dirService.getPartitionNexus().getPartition( suffixDn );
+
+            if ( !( partition instanceof AbstractBTreePartition ) || ( partition == dirService.getSystemPartition() ) )
+            {
+                continue;
+            }
+
+            File targetDir = new File( snapshotDirectory, partition.getId() );
+
+            if ( new File( targetDir, ReplicaSnapshot.DESCRIPTOR_FILE ).exists() )
+            {
+                PROVIDER_LOG.info( "The snapshot of {} already exists in {}", suffixDn, targetDir );
+                continue;
+            }
+
+            try
+            {
+                createSnapshot( partition.getSuffixDn(), SNAPSHOT_HOST, targetDir );
+            }
+            catch ( Exception e )
+            {
+                PROVIDER_LOG.error( "Failed to create the snapshot of {} in {}", suffixDn, targetDir, e );
+            }
+        }
+    }
+
+
+    /**
+     * Creates a snapshot of a partition, to bootstrap a new consumer without sending it all
+     * the entries. The partition files are copied while the partition is read locked, and a
+     * replica event log is created at the same time to record all the changes done after the
+     * copy. The snapshot descriptor contains the cookie the consumer will use to get
+     * these changes once it has installed the snapshot.
+     * <p>
+     * The consumer must replicate the whole partition, with a (objectClass=*) filter.
+     *
+     * @param baseDn The suffix of the partition to copy
+     * @param consumerHost The name of the host the snapshot is for
+     * @param targetDir The directory the snapshot is written into
+     * @return The snapshot description
+     * @throws Exception If the snapshot can't be created
+     */
+    public ReplicaSnapshot createSnapshot( Dn baseDn, String consumerHost, File targetDir ) throws Exception
+    {
+        Partition partition = dirService.getPartitionNexus().getPartition( baseDn );
+
+        if ( !( partition instanceof AbstractBTreePartition ) || !partition.getSuffixDn().equals( baseDn ) )
+        {
+            throw new LdapUnwillingToPerformException( ResultCodeEnum.UNWILLING_TO_PERFORM,
+                "Cannot create a snapshot of " + baseDn + ", it is not the suffix of a file based partition" );
+        }
+
+        ReplicaSnapshot snapshot = new ReplicaSnapshot( targetDir );
+        ExprNode filter = new PresenceNode( objectClassAT );
+        ReplicaEventLog replicaLog = null;
+        SyncReplSearchListener replicationListener = null;
+        String contextCsn;
+
+        // Block the writes on the partition until the files are copied : the changes done
+        // after the copy will all be caught by the listener
+        ReadWriteLock lock = dirService.getOperationManager().lockRead( partition );
+
+        try
+        {
+            try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+            {
+                contextCsn = partition.getContextCsn( partitionTxn );
+                replicaLog = createReplicaEventLog( partitionTxn, consumerHost, filter.toString() );
+            }
+
+            Value contexCsnValue = new Value( dirService.getAtProvider().getEntryCSN(), contextCsn );
+
+            NotificationCriteria criteria = new NotificationCriteria( dirService.getSchemaManager() );
+            criteria.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
+            criteria.setBase( baseDn );
+            criteria.setFilter( new AndNode( filter, new GreaterEqNode( csnAT, contexCsnValue ) ) );
+            criteria.setScope( SearchScope.SUBTREE );
+            criteria.setEventMask( EventType.ALL_EVENT_TYPES_MASK );
+
+            replicaLog.setSearchCriteria( criteria );
+            replicaLog.setLastSentCsn( contextCsn );
+
+            // The consumer is not connected yet : the changes are only logged
+            replicationListener = new SyncReplSearchListener( null, null, replicaLog, false );
+            replicaLog.setPersistentListener( replicationListener );
+            dirService.getEventService().addListener( replicationListener, criteria );
+
+            ( ( AbstractBTreePartition ) partition ).snapshot( snapshot.getDataDirectory() );
+        }
+        catch ( Exception e )
+        {
+            if ( replicationListener != null )
+            {
+                dirService.getEventService().removeListener( replicationListener );
+            }
+
+            if ( replicaLog != null )
+            {
+                replicaLog.stop();
+                replicaLog.delete();
+            }
+
+            throw e;
+        }
+        finally
+        {
+            dirService.getOperationManager().unlockRead( lock );
+        }
+
+        snapshot.setPartitionId( partition.getId() );
+        snapshot.setSuffix( baseDn.getName() );
+        snapshot.setContextCsn( contextCsn );
+        snapshot.setCookie( Strings.utf8ToString( LdapProtocolUtils.createCookie( replicaLog.getId(), contextCsn ) ) );
+        snapshot.write();
+
+        // if all is well then store the consumer information
+        replicaUtil.addConsumerEntry( replicaLog );
+        replicaLogMap.put( replicaLog.getId(), replicaLog );
+
+        PROVIDER_LOG.info( "Created the snapshot {}", snapshot );
+
+        return snapshot;
+    }
+
+
     /**
      * Process a search on the provider to get all the modified entries. We then send all
      * of them to the consumer
@@ -698,6 +880,40 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     }
 
 
+    /**
+     * Send all the entries to the consumer, searching the subtrees below the base
+     * in parallel.
+     */
+    private SearchResultDone doParallelSearch( LdapSession session, SearchRequest req, ReplicaEventLog replicaLog )
+        throws Exception
+    {
+        PROVIDER_LOG.debug( "Parallel Search {} for {}", req, session );
+        SearchResultDone searchDoneResp = ( SearchResultDone ) req.getResultResponse();
+
+        long serverLimit = getServerSizeLimit( session, req );
+        long requestLimit = req.getSizeLimit() == 0L ? Long.MAX_VALUE : req.getSizeLimit();
+        long sizeLimit = min( requestLimit, serverLimit );
+
+        InitialRefreshPipeline pipeline = new InitialRefreshPipeline( this, session, req, csnAT, objectClassAT,
+            sizeLimit, refreshThreads, refreshMaxPendingWrites );
+        lastInitialRefresh = pipeline;
+
+        ResultCodeEnum resultCode = pipeline.run();
+
+        if ( pipeline.getLastSentCsn() != null )
+        {
+            replicaLog.setLastSentCsn( pipeline.getLastSentCsn() );
+        }
+
+        PROVIDER_LOG.debug( "Sent {} entries for {}", pipeline.getEntriesSent(), replicaLog );
+
+        // DO NOT WRITE THE RESPONSE - JUST RETURN IT
+        searchDoneResp.getLdapResult().setResultCode( resultCode );
+
+        return searchDoneResp;
+    }
+
+
     /**
      * Process the results get from a search request. We will send them to the client.
      */
@@ -755,7 +971,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
      * Prepare and send a search result entry response, with the associated
      * SyncState control.
      */
-    private void sendSearchResultEntry( LdapSession session, SearchRequest req, Entry entry,
+    WriteFuture sendSearchResultEntry( LdapSession session, SearchRequest req, Entry entry,
         SyncStateTypeEnum syncStateType ) throws Exception
     {
         Attribute uuid = entry.get( SchemaConstants.ENTRY_UUID_AT );
@@ -776,7 +992,8 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         resp.addControl( syncStateControl );
 
         PROVIDER_LOG.debug( "Sending the entry:\n {}", resp );
-        session.getIoSession().write( resp );
+
+        return session.getIoSession().write( resp );
     }
 
 
@@ -878,7 +1095,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     }
 
 
-    private void setTimeLimitsOnCursor( SearchRequest req, LdapSession session,
+    void setTimeLimitsOnCursor( SearchRequest req, LdapSession session,
         final Cursor<Entry> cursor )
     {
         // Don't bother setting time limits for administrators
@@ -964,6 +1181,90 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     }
 
 
+    /**
+     * @return The number of threads used to send the initial content to a new consumer
+     */
+    public int getRefreshThreads()
+    {
+        return refreshThreads;
+    }
+
+
+    /**
+     * Sets the number of threads used to send the initial content to a new consumer.
+     * With more than one thread, the subtrees below the replicated base are searched
+     * and sent in parallel.
+     *
+     * @param refreshThreads The number of threads, 1 to send the entries sequentially
+     */
+    public void setRefreshThreads( int refreshThreads )
+    {
+        if ( refreshThreads < 1 )
+        {
+            throw new IllegalArgumentException( "The number of initial refresh threads must be at least 1" );
+        }
+
+        this.refreshThreads = refreshThreads;
+    }
+
+
+    /**
+     * @return The maximum number of initial content responses waiting to be sent to the consumer
+     */
+    public int getRefreshMaxPendingWrites()
+    {
+        return refreshMaxPendingWrites;
+    }
+
+
+    /**
+     * Sets the maximum number of initial content responses waiting to be sent to the
+     * consumer. The threads wait when this number is reached.
+     *
+     * @param refreshMaxPendingWrites The maximum number of pending responses
+     */
+    public void setRefreshMaxPendingWrites( int refreshMaxPendingWrites )
+    {
+        if ( refreshMaxPendingWrites < 1 )
+        {
+            throw new IllegalArgumentException( "The maximum number of pending writes must be at least 1" );
+        }
+
+        this.refreshMaxPendingWrites = refreshMaxPendingWrites;
+    }
+
+
+    /**
+     * @return The directory the partition snapshots are created into when the provider starts
+     */
+    public String getSnapshotDirectory()
+    {
+        return snapshotDirectory;
+    }
+
+
+    /**
+     * Sets the directory the partition snapshots are created into when the provider starts.
+     * Each snapshot is then copied to a new consumer, which installs it instead of getting
+     * all the entries on its first synchronization.
+     *
+     * @param snapshotDirectory The snapshot directory, or null to create no snapshot
+     */
+    public void setSnapshotDirectory( String snapshotDirectory )
+    {
+        this.snapshotDirectory = snapshotDirectory;
+    }
+
+
+    /**
+     * @return The last parallel initial refresh, with its counters, or null if none was done
+     */
+    public InitialRefreshPipeline getLastInitialRefresh()
+    {
+        return lastInitialRefresh;
+    }
+
+
     public ReplicaEventLogJanitor getLogJanitor()
     {
         return logJanitor;
@@ -1043,7 +1344,16 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
             // remove unused logs
             for ( File f : getAllReplJournalNames() )
             {
-                if ( !eventLogNames.contains( f.getName() ) )
+                // Strip the file extension to get the log name
+                String logName = f.getName();
+                int pos = logName.indexOf( '.', ReplicaEventLog.REPLICA_EVENT_LOG_NAME_PREFIX.length() );
+
+                if ( pos > 0 )
+                {
+                    logName = logName.substring( 0, pos );
+                }
+
+                if ( !eventLogNames.contains( logName ) )
                 {
                     f.delete();
                     PROVIDER_LOG.info( "removed unused replication event log {}", f );
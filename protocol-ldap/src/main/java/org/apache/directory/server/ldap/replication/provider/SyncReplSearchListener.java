@@ -49,6 +49,7 @@ import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.ldap.LdapProtocolUtils;
 import org.apache.directory.server.ldap.LdapSession;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.mina.core.future.IoFutureListener;
 import org.apache.mina.core.future.WriteFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -134,6 +135,15 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
             }
 
 
+    /**
+     * Never called : a synchronous listener has no mailbox, so it can't be dropped.
+     */
+    @Override
+    public void listenerDropped()
+    {
+    }
+
+
     /**
      * Abandon a SearchRequest
      * 
@@ -188,10 +198,24 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
     
     /**
      * Send the result to the consumer. If the consumer has disconnected, we fail back to the queue.
+     * If the consumer does not read the entries fast enough, we stop pushing them and close the
+     * connection : the consumer will get the changes from its queue when it reconnects.
      */
     private void sendResult( SearchResultEntry searchResultEntry, Entry entry, EventType eventType, 
         SyncStateValue syncStateValue )
     {
+        if ( session.isNotificationBacklogFull() )
+        {
+            LOG.warn( "The consumer {} does not keep up with the changes, the connection is closed",
+                consumerMsgLog.getId() );
+
+            // The change is already stored in the consumer's queue
+            pushInRealTime = false;
+            session.getIoSession().closeNow();
+
+            return;
+        }
+
         searchResultEntry.addControl( syncStateValue );
 
         LOG.debug( "sending event {} of entry {}", eventType, entry.getDn() );
@@ -498,37 +522,41 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
 
 
     /**
-     * Process the writing of the replicated entry to the consumer
+     * Process the writing of the replicated entry to the consumer. We don't wait for the
+     * entry to be written, as the operation which triggered the event still holds its locks.
      */
-    private void handleWriteFuture( WriteFuture future, Entry entry, EventType event )
+    private void handleWriteFuture( WriteFuture future, final Entry entry, final EventType event )
     {
-        // Let the operation be executed.
-        // Note : we wait 10 seconds max
-        future.awaitUninterruptibly( 10000L );
-        
-        if ( !future.isWritten() )
+        future.addListener( new IoFutureListener<WriteFuture>()
         {
-            LOG.error( "Failed to write to the consumer {} during the event {} on entry {}", new Object[] { 
-                           consumerMsgLog.getId(), event, entry.getDn() } );
-            LOG.error( "", future.getException() );
-
-            // set realtime push to false, will be set back to true when the client
-            // comes back and sends another request this flag will be set to true
-            pushInRealTime = false;
-        }
-        else
-        {
-            try
+            @Override
+            public void operationComplete( WriteFuture future )
             {
-                // if successful update the last sent CSN
-                consumerMsgLog.setLastSentCsn( entry.get( SchemaConstants.ENTRY_CSN_AT ).getString() );
+                if ( !future.isWritten() )
+                {
+                    LOG.error( "Failed to write to the consumer {} during the event {} on entry {}", new Object[] { 
+                                   consumerMsgLog.getId(), event, entry.getDn() } );
+                    LOG.error( "", future.getException() );
+
+                    // set realtime push to false, will be set back to true when the client
+                    // comes back and sends another request this flag will be set to true
+                    pushInRealTime = false;
+                }
+                else
+                {
+                    try
+                    {
+                        // if successful update the last sent CSN
+                        consumerMsgLog.setLastSentCsn( entry.get( SchemaConstants.ENTRY_CSN_AT ).getString() );
+                    }
+                    catch ( Exception e )
+                    {
+                        //should never happen
+                        LOG.error( "No entry CSN attribute found", e );
+                    }
+                }
             }
-            catch ( Exception e )
-            {
-                //should never happen
-                LOG.error( "No entry CSN attribute found", e );
-            }
-        }
+        } );
     }
     
     
@@ -0,0 +1,206 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoEventType;
+import org.apache.mina.filter.executor.ExecutorFilter;
+import org.apache.mina.filter.executor.UnorderedThreadPoolExecutor;
+import org.junit.Test;
+
+
+/**
+ * Tests the bound on the notifications written on a session, and the suspended searches.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LdapSessionTest
+{
+    @Test
+    public void testNotificationBacklog()
+    {
+        LdapServer server = new LdapServer();
+        DummySession ioSession = new DummySession();
+        LdapSession session = new LdapSession( ioSession );
+
+        // Not bound to a server : no limit
+        ioSession.increaseScheduledWriteBytes( 1000 );
+        assertFalse( session.isNotificationBacklogFull() );
+
+        session.setLdapServer( server );
+        assertTrue( server.getMaxNotificationWriteBytes() > 1000L );
+        assertFalse( session.isNotificationBacklogFull() );
+
+        server.setMaxNotificationWriteBytes( 999L );
+        assertTrue( session.isNotificationBacklogFull() );
+
+        // The client has read the pending messages
+        ioSession.increaseScheduledWriteBytes( -500 );
+        assertFalse( session.isNotificationBacklogFull() );
+
+        // A zero limit disables the check
+        ioSession.increaseScheduledWriteBytes( 10000 );
+        server.setMaxNotificationWriteBytes( 0L );
+        assertFalse( session.isNotificationBacklogFull() );
+    }
+
+
+    /**
+     * A search counting the times it has been resumed
+     */
+    private static class CountingSearch implements Runnable
+    {
+        private final AtomicInteger resumed = new AtomicInteger();
+
+
+        @Override
+        public void run()
+        {
+            resumed.incrementAndGet();
+        }
+    }
+
+
+    @Test
+    public void testSuspendedSearchesResumedOnDrain()
+    {
+        DummySession ioSession = new DummySession();
+        LdapSession session = new LdapSession( ioSession );
+        CountingSearch first = new CountingSearch();
+        CountingSearch second = new CountingSearch();
+
+        ioSession.increaseScheduledWriteBytes( 1000 );
+        session.suspendSearch( 500L, first );
+        session.suspendSearch( 100L, second );
+        assertEquals( 2, session.getSuspendedSearchCount() );
+
+        // Not drained enough
+        ioSession.increaseScheduledWriteBytes( -400 );
+        session.signalWriteQueue();
+        assertEquals( 0, first.resumed.get() );
+        assertEquals( 0, second.resumed.get() );
+
+        // Only the first search has reached its low watermark
+        ioSession.increaseScheduledWriteBytes( -200 );
+        session.signalWriteQueue();
+        assertEquals( 1, first.resumed.get() );
+        assertEquals( 0, second.resumed.get() );
+        assertEquals( 1, session.getSuspendedSearchCount() );
+
+        ioSession.increaseScheduledWriteBytes( -400 );
+        session.signalWriteQueue();
+        session.signalWriteQueue();
+        assertEquals( 1, first.resumed.get() );
+        assertEquals( 1, second.resumed.get() );
+        assertEquals( 0, session.getSuspendedSearchCount() );
+    }
+
+
+    @Test
+    public void testSuspendDrainedQueue()
+    {
+        DummySession ioSession = new DummySession();
+        LdapSession session = new LdapSession( ioSession );
+        CountingSearch search = new CountingSearch();
+
+        // The queue has drained before the search was suspended : it is resumed at once
+        ioSession.increaseScheduledWriteBytes( 100 );
+        session.suspendSearch( 500L, search );
+
+        assertEquals( 1, search.resumed.get() );
+        assertEquals( 0, session.getSuspendedSearchCount() );
+    }
+
+
+    @Test
+    public void testResumeSearch()
+    {
+        DummySession ioSession = new DummySession();
+        LdapSession session = new LdapSession( ioSession );
+        CountingSearch search = new CountingSearch();
+
+        ioSession.increaseScheduledWriteBytes( 1000 );
+        session.suspendSearch( 100L, search );
+        assertEquals( 0, search.resumed.get() );
+
+        // Abandoned or timed out : resumed even though the queue is full
+        session.resumeSearch( search );
+        assertEquals( 1, search.resumed.get() );
+
+        // A search is resumed only once
+        session.resumeSearch( search );
+        ioSession.increaseScheduledWriteBytes( -1000 );
+        session.signalWriteQueue();
+        assertEquals( 1, search.resumed.get() );
+    }
+
+
+    @Test
+    public void testResumedSearchWithExecutorFilter() throws Exception
+    {
+        // The session is processed by the same executor filter as in a running server,
+        // which only accepts I/O events
+        UnorderedThreadPoolExecutor ioExecutor = new UnorderedThreadPoolExecutor( 2 );
+        DummySession ioSession = new DummySession();
+        ioSession.getFilterChain().addLast( LdapServer.EXECUTOR_FILTER_NAME,
+            new ExecutorFilter( ioExecutor, IoEventType.MESSAGE_RECEIVED ) );
+
+        LdapServer server = new LdapServer();
+        LdapSession session = new LdapSession( ioSession );
+        session.setLdapServer( server );
+
+        final CountDownLatch resumed = new CountDownLatch( 1 );
+        Runnable search = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                resumed.countDown();
+            }
+        };
+
+        try
+        {
+            ioSession.increaseScheduledWriteBytes( 1000 );
+            session.suspendSearch( 100L, search );
+            assertEquals( 1, session.getSuspendedSearchCount() );
+
+            ioSession.increaseScheduledWriteBytes( -1000 );
+            session.signalWriteQueue();
+
+            assertTrue( resumed.await( 10L, TimeUnit.SECONDS ) );
+            assertEquals( 0, session.getSuspendedSearchCount() );
+        }
+        finally
+        {
+            ioExecutor.shutdownNow();
+            server.getResumedSearchExecutor().shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers.request;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.cursor.ListCursor;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.ldap.LdapServer;
+import org.apache.directory.server.ldap.LdapSession;
+import org.apache.directory.server.ldap.handlers.SearchTimeLimitingMonitor;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the suspension of the searches when the client does not read the entries fast enough.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SearchRequestHandlerTest
+{
+    /** The number of bytes each written message adds to the write queue */
+    private static final int MESSAGE_SIZE = 100;
+
+    /** The number of entries returned by the search */
+    private static final int NB_ENTRIES = 50;
+
+    /** The server */
+    private LdapServer server;
+
+    /** The handler being tested */
+    private SearchRequestHandler handler;
+
+    /** The MINA session */
+    private DummySession ioSession;
+
+    /** The LDAP session */
+    private LdapSession session;
+
+    /** The search request */
+    private SearchRequest request;
+
+    /** The cursor over the entries */
+    private ListCursor<Entry> cursor;
+
+    /** The messages written on the session, and not read by the client yet */
+    private final List<Object> written = new CopyOnWriteArrayList<>();
+
+
+    /**
+     * A filter keeping the written messages, as a client which does not read them
+     */
+    private class HoldingFilter extends IoFilterAdapter
+    {
+        @Override
+        public void filterWrite( NextFilter nextFilter, IoSession session, WriteRequest writeRequest )
+        {
+            ioSession.increaseScheduledWriteBytes( MESSAGE_SIZE );
+            written.add( writeRequest.getMessage() );
+        }
+    }
+
+
+    /**
+     * A stub returning false or null to everything, but the DirectoryService
+     */
+    private static class Stub implements InvocationHandler
+    {
+        private final Object directoryService;
+
+
+        Stub( Object directoryService )
+        {
+            this.directoryService = directoryService;
+        }
+
+
+        @Override
+        public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable
+        {
+            if ( "getDirectoryService".equals( method.getName() ) )
+            {
+                return directoryService;
+            }
+
+            if ( "toString".equals( method.getName() ) )
+            {
+                return "Stub";
+            }
+
+            if ( method.getReturnType() == boolean.class )
+            {
+                return false;
+            }
+
+            return null;
+        }
+    }
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        server = new LdapServer();
+        server.setWriteHighWatermark( 1000L );
+        server.setWriteLowWatermark( 200L );
+
+        handler = new SearchRequestHandler();
+        handler.setLdapServer( server );
+
+        ioSession = new DummySession();
+        ioSession.getFilterChain().addLast( "holding", new HoldingFilter() );
+
+        Object directoryService = Proxy.newProxyInstance( getClass().getClassLoader(),
+            new Class<?>[]
+                { DirectoryService.class }, new Stub( null ) );
+
+        session = new LdapSession( ioSession );
+        session.setLdapServer( server );
+        session.setCoreSession( ( CoreSession ) Proxy.newProxyInstance( getClass().getClassLoader(),
+            new Class<?>[]
+                { CoreSession.class }, new Stub( directoryService ) ) );
+
+        request = new SearchRequestImpl();
+        request.setMessageId( 1 );
+        request.setBase( new Dn( "ou=system" ) );
+        request.setScope( SearchScope.SUBTREE );
+        request.setFilter( "(objectClass=*)" );
+
+        List<Entry> entries = new ArrayList<>();
+
+        for ( int i = 0; i < NB_ENTRIES; i++ )
+        {
+            entries.add( new DefaultEntry( "cn=entry" + i + ",ou=system", "cn", "entry" + i ) );
+        }
+
+        cursor = new ListCursor<>( entries );
+        cursor.beforeFirst();
+
+        session.registerOutstandingRequest( request );
+    }
+
+
+    @After
+    public void shutdown()
+    {
+        server.getSuspendedSearchTimer().shutdownNow();
+    }
+
+
+    /**
+     * The client reads all the pending messages
+     */
+    private void readMessages()
+    {
+        ioSession.increaseScheduledWriteBytes( -( int ) ioSession.getScheduledWriteBytes() );
+        session.signalWriteQueue();
+    }
+
+
+    private int countEntries()
+    {
+        int count = 0;
+
+        for ( Object message : written )
+        {
+            if ( message instanceof SearchResultEntry )
+            {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+
+    private boolean isDone()
+    {
+        return !written.isEmpty() && ( written.get( written.size() - 1 ) instanceof SearchResultDone );
+    }
+
+
+    @Test
+    public void testSuspendedSearchResumedWhenDrained() throws Exception
+    {
+        boolean done = handler.writeResults( session, request, request.getResultResponse().getLdapResult(),
+            cursor, Long.MAX_VALUE, 0L, null );
+
+        // The search is suspended as soon as the high watermark is exceeded
+        assertFalse( done );
+        assertEquals( 1, session.getSuspendedSearchCount() );
+        assertEquals( 1000 / MESSAGE_SIZE + 1, countEntries() );
+        assertFalse( isDone() );
+        assertFalse( cursor.isClosed() );
+
+        for ( int i = 0; ( i < NB_ENTRIES ) && !isDone(); i++ )
+        {
+            readMessages();
+        }
+
+        // The resumed search has sent the remaining entries and its result
+        assertTrue( isDone() );
+        assertEquals( NB_ENTRIES, countEntries() );
+        SearchResultDone resultDone = ( SearchResultDone ) written.get( written.size() - 1 );
+        assertEquals( ResultCodeEnum.SUCCESS, resultDone.getLdapResult().getResultCode() );
+        assertTrue( cursor.isClosed() );
+        assertTrue( session.getOutstandingRequests().isEmpty() );
+        assertEquals( 0, session.getSuspendedSearchCount() );
+    }
+
+
+    @Test
+    public void testSuspendedSearchAbandoned() throws Exception
+    {
+        assertFalse( handler.writeResults( session, request, request.getResultResponse().getLdapResult(),
+            cursor, Long.MAX_VALUE, 0L, null ) );
+        int nbEntries = countEntries();
+
+        // The abandon resumes the search, which stops without sending its result
+        request.abandon();
+
+        assertEquals( 0, session.getSuspendedSearchCount() );
+        assertEquals( nbEntries, countEntries() );
+        assertFalse( isDone() );
+        assertTrue( cursor.isClosed() );
+        assertTrue( session.getOutstandingRequests().isEmpty() );
+    }
+
+
+    @Test
+    public void testSuspendedSearchTimeLimit() throws Exception
+    {
+        cursor.setClosureMonitor( new SearchTimeLimitingMonitor( 100L, TimeUnit.MILLISECONDS ) );
+
+        assertFalse( handler.writeResults( session, request, request.getResultResponse().getLdapResult(),
+            cursor, Long.MAX_VALUE, 100L, null ) );
+
+        // The client never reads : the search is resumed when its time limit is reached
+        long deadline = System.currentTimeMillis() + 10000L;
+
+        while ( !isDone() && ( System.currentTimeMillis() < deadline ) )
+        {
+            Thread.sleep( 10L );
+        }
+
+        assertTrue( isDone() );
+        SearchResultDone resultDone = ( SearchResultDone ) written.get( written.size() - 1 );
+        assertEquals( ResultCodeEnum.TIME_LIMIT_EXCEEDED, resultDone.getLdapResult().getResultCode() );
+        assertTrue( cursor.isClosed() );
+        assertTrue( session.getOutstandingRequests().isEmpty() );
+        assertEquals( 0, session.getSuspendedSearchCount() );
+    }
+}
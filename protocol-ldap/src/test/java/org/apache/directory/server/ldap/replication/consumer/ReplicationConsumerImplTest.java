@@ -0,0 +1,230 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.ListCursor;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.ldap.replication.SyncReplConfiguration;
+import org.junit.After;
+import org.junit.Test;
+
+
+/**
+ * Tests the storage of the replication cookie and the refreshPresent reconciliation
+ * done by the consumer.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicationConsumerImplTest
+{
+    /** The consumer being tested */
+    private RecordingConsumer consumer;
+
+
+    /**
+     * A consumer recording the stored cookies and the deleted entries instead of
+     * updating the DIT
+     */
+    private static class RecordingConsumer extends ReplicationConsumerImpl
+    {
+        private final List<String> stored = new CopyOnWriteArrayList<>();
+
+        private final List<Entry> localEntries = new ArrayList<>();
+
+        private final List<Dn> deleted = new ArrayList<>();
+
+
+        @Override
+        void writeCookieEntry( byte[] cookie )
+        {
+            stored.add( Strings.utf8ToString( cookie ) );
+        }
+
+
+        @Override
+        Cursor<Entry> searchEntryUuids()
+        {
+            return new ListCursor<>( localEntries );
+        }
+
+
+        @Override
+        void deleteEntry( Dn dn, int replicaId )
+        {
+            deleted.add( dn );
+        }
+    }
+
+
+    private void createConsumer( int batchSize, long interval )
+    {
+        SyncReplConfiguration config = new SyncReplConfiguration();
+        config.setCookieCommitBatchSize( batchSize );
+        config.setCookieCommitInterval( interval );
+
+        consumer = new RecordingConsumer();
+        consumer.setConfig( config );
+    }
+
+
+    private static byte[] cookie( int csn )
+    {
+        return Strings.getBytesUtf8( "rid=001,csn=" + csn );
+    }
+
+
+    private static byte[] uuidBytes( UUID uuid )
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( 16 );
+        buffer.putLong( uuid.getMostSignificantBits() );
+        buffer.putLong( uuid.getLeastSignificantBits() );
+
+        return buffer.array();
+    }
+
+
+    private UUID addLocalEntry( String dn ) throws Exception
+    {
+        UUID uuid = UUID.randomUUID();
+        consumer.localEntries.add( new DefaultEntry( dn, "entryUUID", uuid.toString() ) );
+
+        return uuid;
+    }
+
+
+    @After
+    public void stopConsumer()
+    {
+        consumer.stop();
+    }
+
+
+    @Test
+    public void testBatchedCookie()
+    {
+        createConsumer( 3, 0L );
+
+        consumer.groupCommitCookie( cookie( 1 ) );
+        consumer.groupCommitCookie( cookie( 2 ) );
+        assertTrue( consumer.stored.isEmpty() );
+
+        consumer.groupCommitCookie( cookie( 3 ) );
+        assertEquals( 1, consumer.stored.size() );
+        assertEquals( "rid=001,csn=3", consumer.stored.get( 0 ) );
+    }
+
+
+    @Test
+    public void testPendingCookieFlushedOnIdleLink() throws Exception
+    {
+        createConsumer( 100, 50L );
+        consumer.startCookieFlusher();
+
+        consumer.groupCommitCookie( cookie( 1 ) );
+        consumer.groupCommitCookie( cookie( 2 ) );
+
+        // No more changes arrive : the flush task stores the last cookie
+        long deadline = System.currentTimeMillis() + 10000L;
+
+        while ( consumer.stored.isEmpty() && ( System.currentTimeMillis() < deadline ) )
+        {
+            Thread.sleep( 10L );
+        }
+
+        assertEquals( 1, consumer.stored.size() );
+        assertEquals( "rid=001,csn=2", consumer.stored.get( 0 ) );
+
+        // Nothing is pending anymore
+        Thread.sleep( 200L );
+        assertEquals( 1, consumer.stored.size() );
+    }
+
+
+    @Test
+    public void testPendingCookieFlushedOnStop()
+    {
+        createConsumer( 100, 3600000L );
+        consumer.startCookieFlusher();
+
+        consumer.groupCommitCookie( cookie( 1 ) );
+        assertTrue( consumer.stored.isEmpty() );
+
+        consumer.stop();
+
+        assertEquals( 1, consumer.stored.size() );
+        assertEquals( "rid=001,csn=1", consumer.stored.get( 0 ) );
+    }
+
+
+    @Test
+    public void testRefreshPresentDeletesMissingEntries() throws Exception
+    {
+        createConsumer( 100, 0L );
+
+        UUID base = addLocalEntry( "ou=test" );
+        UUID kept = addLocalEntry( "cn=kept,ou=test" );
+        addLocalEntry( "ou=gone,ou=test" );
+        addLocalEntry( "cn=child,ou=gone,ou=test" );
+        addLocalEntry( "cn=alone,ou=test" );
+
+        List<byte[]> present = new ArrayList<>();
+        present.add( uuidBytes( kept ) );
+        present.add( uuidBytes( base ) );
+        present.add( uuidBytes( UUID.randomUUID() ) );
+
+        consumer.processRefreshPresent( present, 1 );
+
+        assertEquals( 3, consumer.deleted.size() );
+        assertTrue( consumer.deleted.contains( new Dn( "ou=gone,ou=test" ) ) );
+        assertTrue( consumer.deleted.contains( new Dn( "cn=alone,ou=test" ) ) );
+
+        // The children are deleted before their parent
+        assertEquals( new Dn( "cn=child,ou=gone,ou=test" ), consumer.deleted.get( 0 ) );
+    }
+
+
+    @Test
+    public void testRefreshPresentKeepsPresentEntries() throws Exception
+    {
+        createConsumer( 100, 0L );
+
+        List<byte[]> present = new ArrayList<>();
+        present.add( uuidBytes( addLocalEntry( "ou=test" ) ) );
+        present.add( uuidBytes( addLocalEntry( "cn=kept,ou=test" ) ) );
+
+        consumer.processRefreshPresent( present, 1 );
+
+        assertTrue( consumer.deleted.isEmpty() );
+    }
+}
@@ -0,0 +1,510 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateTypeEnum;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.csn.CsnFactory;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.ListCursor;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.ldap.LdapSession;
+import org.apache.mina.core.future.DefaultWriteFuture;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.DummySession;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link InitialRefreshPipeline} ordering, flow control, size limit, failures and
+ * abandon, on an in-memory DIT.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class InitialRefreshPipelineTest
+{
+    /** The number of subtrees below the base */
+    private static final int NB_SUBTREES = 4;
+
+    /** The number of children of each subtree */
+    private static final int NB_CHILDREN = 5;
+
+    /** The maximum time we wait for the refresh, in ms */
+    private static final long TIMEOUT = 10000L;
+
+    /** The SchemaManager instance */
+    private static SchemaManager schemaManager;
+
+    /** The entryCSN and objectClass AttributeTypes */
+    private static AttributeType csnAT;
+    private static AttributeType objectClassAT;
+
+    /** The DIT, the parents before their children */
+    private List<Entry> entries;
+
+    /** The base of the refresh */
+    private Dn base;
+
+    /** The highest CSN of the DIT */
+    private String maxCsn;
+
+    /** The subtree whose search fails, if any */
+    private Dn failingBase;
+
+    /** The handler recording the sent entries */
+    private RecordingHandler handler;
+
+    /** The consumer session */
+    private LdapSession session;
+
+    /** The initial refresh request */
+    private SearchRequest request;
+
+
+    /**
+     * A handler recording the sent entries. The writes complete immediately, or when
+     * flushed, to simulate a slow consumer.
+     */
+    private static class RecordingHandler extends SyncReplRequestHandler
+    {
+        private final List<Entry> sent = new CopyOnWriteArrayList<>();
+
+        private final List<DefaultWriteFuture> pending = new ArrayList<>();
+
+        private boolean completeWrites = true;
+
+
+        @Override
+        WriteFuture sendSearchResultEntry( LdapSession session, SearchRequest req, Entry entry,
+            SyncStateTypeEnum syncStateType )
+        {
+            sent.add( entry );
+            DefaultWriteFuture future = new DefaultWriteFuture( session.getIoSession() );
+
+            synchronized ( pending )
+            {
+                if ( completeWrites )
+                {
+                    future.setWritten();
+                }
+                else
+                {
+                    pending.add( future );
+                }
+            }
+
+            return future;
+        }
+
+
+        @Override
+        void setTimeLimitsOnCursor( SearchRequest req, LdapSession session, Cursor<Entry> cursor )
+        {
+        }
+
+
+        void blockWrites()
+        {
+            synchronized ( pending )
+            {
+                completeWrites = false;
+            }
+        }
+
+
+        void flushWrites()
+        {
+            synchronized ( pending )
+            {
+                completeWrites = true;
+
+                for ( DefaultWriteFuture future : pending )
+                {
+                    future.setWritten();
+                }
+
+                pending.clear();
+            }
+        }
+    }
+
+
+    /**
+     * A CoreSession searching the in-memory DIT
+     */
+    private class StubCoreSession implements InvocationHandler
+    {
+        @Override
+        public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable
+        {
+            if ( "search".equals( method.getName() ) && ( args.length == 1 ) && ( args[0] instanceof SearchRequest ) )
+            {
+                return search( ( SearchRequest ) args[0] );
+            }
+
+            if ( "toString".equals( method.getName() ) )
+            {
+                return "StubCoreSession";
+            }
+
+            throw new UnsupportedOperationException( method.getName() );
+        }
+
+
+        private Cursor<Entry> search( SearchRequest searchRequest ) throws Exception
+        {
+            Dn searchBase = searchRequest.getBase();
+
+            if ( searchBase.equals( failingBase ) )
+            {
+                throw new LdapOtherException( "Cannot search " + searchBase );
+            }
+
+            List<Entry> found = new ArrayList<>();
+
+            for ( Entry entry : entries )
+            {
+                Dn dn = entry.getDn();
+                boolean inScope;
+
+                switch ( searchRequest.getScope() )
+                {
+                    case OBJECT:
+                        inScope = dn.equals( searchBase );
+                        break;
+
+                    case ONELEVEL:
+                        inScope = dn.getParent().equals( searchBase );
+                        break;
+
+                    default:
+                        inScope = dn.equals( searchBase ) || dn.isDescendantOf( searchBase );
+                        break;
+                }
+
+                if ( inScope )
+                {
+                    found.add( entry );
+                }
+            }
+
+            return new ListCursor<Entry>( found );
+        }
+    }
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = InitialRefreshPipelineTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        csnAT = schemaManager.getAttributeType( SchemaConstants.ENTRY_CSN_AT );
+        objectClassAT = schemaManager.getAttributeType( SchemaConstants.OBJECT_CLASS_AT );
+    }
+
+
+    @Before
+    public void createDit() throws Exception
+    {
+        CsnFactory csnFactory = new CsnFactory( 0 );
+        entries = new ArrayList<>();
+        base = new Dn( schemaManager, "dc=example,dc=com" );
+
+        entries.add( new DefaultEntry( schemaManager, base,
+            "ObjectClass: top",
+            "ObjectClass: domain",
+            "dc: example",
+            "entryCSN", csnFactory.newInstance().toString() ) );
+
+        for ( int i = 0; i < NB_SUBTREES; i++ )
+        {
+            String subtree = "ou=sub" + i + "," + base;
+            entries.add( newEntry( subtree, "sub" + i, csnFactory ) );
+
+            for ( int j = 0; j < NB_CHILDREN; j++ )
+            {
+                String child = "ou=child" + j + "," + subtree;
+                entries.add( newEntry( child, "child" + j, csnFactory ) );
+
+                if ( j == 0 )
+                {
+                    entries.add( newEntry( "ou=grandchild," + child, "grandchild", csnFactory ) );
+                }
+            }
+        }
+
+        maxCsn = entries.get( entries.size() - 1 ).get( csnAT ).getString();
+        failingBase = null;
+
+        handler = new RecordingHandler();
+        session = new LdapSession( new DummySession() );
+        session.setCoreSession( ( CoreSession ) Proxy.newProxyInstance( getClass().getClassLoader(),
+            new Class<?>[]
+                { CoreSession.class }, new StubCoreSession() ) );
+
+        request = new SearchRequestImpl();
+        request.setMessageId( 1 );
+        request.setBase( base );
+        request.setScope( SearchScope.SUBTREE );
+        request.setFilter( new PresenceNode( objectClassAT ) );
+        request.setDerefAliases( AliasDerefMode.NEVER_DEREF_ALIASES );
+    }
+
+
+    private static Entry newEntry( String dn, String ou, CsnFactory csnFactory ) throws Exception
+    {
+        return new DefaultEntry( schemaManager, dn,
+            "ObjectClass: top",
+            "ObjectClass: organizationalUnit",
+            "ou", ou,
+            "entryCSN", csnFactory.newInstance().toString() );
+    }
+
+
+    private InitialRefreshPipeline newPipeline( long sizeLimit, int maxPendingWrites )
+    {
+        return new InitialRefreshPipeline( handler, session, request, csnAT, objectClassAT, sizeLimit, 3,
+            maxPendingWrites );
+    }
+
+
+    /**
+     * Runs the pipeline in its own thread
+     */
+    private Thread start( final InitialRefreshPipeline pipeline, final AtomicReference<Object> outcome )
+    {
+        Thread thread = new Thread( "refresh" )
+        {
+            public void run()
+            {
+                try
+                {
+                    outcome.set( pipeline.run() );
+                }
+                catch ( Throwable t )
+                {
+                    outcome.set( t );
+                }
+            }
+        };
+
+        thread.start();
+
+        return thread;
+    }
+
+
+    private void waitForSent( int nbSent ) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while ( ( handler.sent.size() < nbSent ) && ( System.currentTimeMillis() < deadline ) )
+        {
+            Thread.sleep( 10L );
+        }
+
+        assertEquals( nbSent, handler.sent.size() );
+    }
+
+
+    @Test
+    public void testCanSplit()
+    {
+        assertTrue( InitialRefreshPipeline.canSplit( request ) );
+
+        request.setDerefAliases( AliasDerefMode.DEREF_ALWAYS );
+        assertFalse( InitialRefreshPipeline.canSplit( request ) );
+
+        request.setDerefAliases( AliasDerefMode.NEVER_DEREF_ALIASES );
+        request.setScope( SearchScope.ONELEVEL );
+        assertFalse( InitialRefreshPipeline.canSplit( request ) );
+    }
+
+
+    @Test
+    public void testParentsSentBeforeChildren() throws Exception
+    {
+        InitialRefreshPipeline pipeline = newPipeline( Long.MAX_VALUE, 4 );
+
+        assertEquals( ResultCodeEnum.SUCCESS, pipeline.run() );
+
+        // All the entries are sent once, the base first
+        assertEquals( entries.size(), handler.sent.size() );
+        assertEquals( base, handler.sent.get( 0 ).getDn() );
+
+        Set<Dn> sentDns = new HashSet<>();
+
+        for ( Entry entry : handler.sent )
+        {
+            Dn dn = entry.getDn();
+
+            if ( !dn.equals( base ) )
+            {
+                assertTrue( "The parent of " + dn + " has not been sent before it",
+                    sentDns.contains( dn.getParent() ) );
+            }
+
+            assertTrue( sentDns.add( dn ) );
+        }
+
+        assertEquals( NB_SUBTREES, pipeline.getSubtreeCount() );
+        assertEquals( entries.size(), pipeline.getEntriesRead() );
+        assertEquals( entries.size(), pipeline.getEntriesSent() );
+        assertEquals( maxCsn, pipeline.getLastSentCsn() );
+    }
+
+
+    @Test
+    public void testPendingWritesBounded() throws Exception
+    {
+        InitialRefreshPipeline pipeline = newPipeline( Long.MAX_VALUE, 3 );
+        AtomicReference<Object> outcome = new AtomicReference<>();
+
+        handler.blockWrites();
+        Thread thread = start( pipeline, outcome );
+
+        // The consumer doesn't read : the workers stop writing once 3 responses are pending
+        waitForSent( 3 );
+        Thread.sleep( 300L );
+        assertEquals( 3, handler.sent.size() );
+        assertTrue( thread.isAlive() );
+
+        // The consumer reads the responses
+        handler.flushWrites();
+        thread.join( TIMEOUT );
+
+        assertFalse( thread.isAlive() );
+        assertEquals( ResultCodeEnum.SUCCESS, outcome.get() );
+        assertEquals( entries.size(), handler.sent.size() );
+        assertTrue( pipeline.getWaitTime() > 0L );
+    }
+
+
+    @Test
+    public void testSizeLimit() throws Exception
+    {
+        InitialRefreshPipeline pipeline = newPipeline( 5L, 4 );
+
+        assertEquals( ResultCodeEnum.SIZE_LIMIT_EXCEEDED, pipeline.run() );
+        assertTrue( handler.sent.size() <= 5 );
+    }
+
+
+    @Test
+    public void testSubtreeFailurePropagated() throws Exception
+    {
+        failingBase = new Dn( schemaManager, "ou=sub2," + base );
+        InitialRefreshPipeline pipeline = newPipeline( Long.MAX_VALUE, 4 );
+
+        try
+        {
+            pipeline.run();
+            fail( "The failure of a subtree should be reported" );
+        }
+        catch ( LdapOtherException loe )
+        {
+            assertTrue( loe.getMessage().contains( "ou=sub2" ) );
+        }
+
+        // No entry of the failing subtree has been sent
+        for ( Entry entry : handler.sent )
+        {
+            assertFalse( entry.getDn().equals( failingBase ) || entry.getDn().isDescendantOf( failingBase ) );
+        }
+    }
+
+
+    @Test
+    public void testAbandonWhileWaitingForConsumer() throws Exception
+    {
+        InitialRefreshPipeline pipeline = newPipeline( Long.MAX_VALUE, 2 );
+        AtomicReference<Object> outcome = new AtomicReference<>();
+
+        handler.blockWrites();
+        Thread thread = start( pipeline, outcome );
+
+        waitForSent( 2 );
+
+        // The workers waiting for a write permit give up
+        request.abandon();
+        thread.join( TIMEOUT );
+
+        assertFalse( thread.isAlive() );
+        assertEquals( ResultCodeEnum.SUCCESS, outcome.get() );
+        assertEquals( 2, handler.sent.size() );
+        assertTrue( pipeline.getElapsedTime() >= 0L );
+    }
+}
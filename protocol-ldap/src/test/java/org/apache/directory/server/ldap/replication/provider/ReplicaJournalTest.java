@@ -0,0 +1,324 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.apache.directory.api.ldap.model.csn.CsnFactory;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.FileUtils;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link ReplicaJournal} appends, shared messages, purge and reads.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaJournalTest
+{
+    /** A small segment size, so that a few messages fill a segment */
+    private static final long SEGMENT_SIZE = 2048L;
+
+    /** The SchemaManager instance */
+    private static SchemaManager schemaManager;
+
+    /** The CsnFactory */
+    private static CsnFactory csnFactory;
+
+    /** The directory containing the segments */
+    private File directory;
+
+    /** The journal being tested */
+    private ReplicaJournal journal;
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = ReplicaJournalTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        csnFactory = new CsnFactory( 0 );
+    }
+
+
+    @Before
+    public void openJournal() throws Exception
+    {
+        directory = Files.createTempDirectory( getClass().getSimpleName() ).toFile();
+        journal = new ReplicaJournal( directory, schemaManager, SEGMENT_SIZE );
+    }
+
+
+    @After
+    public void deleteJournal() throws Exception
+    {
+        if ( journal != null )
+        {
+            journal.release();
+        }
+
+        FileUtils.deleteDirectory( directory );
+    }
+
+
+    private static ReplicaEventMessage message( int i ) throws Exception
+    {
+        return new ReplicaEventMessage( ChangeType.ADD, new DefaultEntry( schemaManager,
+            "ou=test" + i + ",ou=system",
+            "ObjectClass: top",
+            "ObjectClass: organizationalUnit",
+            "ou", "test" + i,
+            "entryCsn", csnFactory.newInstance().toString() ) );
+    }
+
+
+    private void assertMessage( int i, long position ) throws Exception
+    {
+        ReplicaEventMessage message = journal.read( position );
+
+        assertEquals( ChangeType.ADD, message.getChangeType() );
+        assertEquals( "test" + i, message.getEntry().get( "ou" ).getString() );
+    }
+
+
+    @Test
+    public void testAppendAndRead() throws Exception
+    {
+        long[] positions = new long[50];
+        long lastPosition = -1L;
+
+        for ( int i = 0; i < positions.length; i++ )
+        {
+            positions[i] = journal.append( message( i ), lastPosition );
+            assertTrue( positions[i] > lastPosition );
+            lastPosition = positions[i];
+        }
+
+        // The messages are split in several segments
+        assertTrue( journal.getSegmentCount() > 1 );
+
+        for ( int i = 0; i < positions.length; i++ )
+        {
+            assertMessage( i, positions[i] );
+        }
+    }
+
+
+    @Test
+    public void testMessageSharedForward() throws Exception
+    {
+        ReplicaEventMessage first = message( 1 );
+        ReplicaEventMessage second = message( 2 );
+
+        // Two logs log the same changes, one after the other
+        long log1First = journal.append( first, -1L );
+        long log1Second = journal.append( second, log1First );
+        long log2First = journal.append( first, -1L );
+        long log2Second = journal.append( second, log2First );
+
+        assertEquals( log1First, log2First );
+        assertEquals( log1Second, log2Second );
+
+        // A log which has a later message can't share an earlier one : its positions must increase
+        long log3Second = journal.append( second, -1L );
+        long log3First = journal.append( first, log3Second );
+
+        assertEquals( log1Second, log3Second );
+        assertNotEquals( log1First, log3First );
+        assertTrue( log3First > log3Second );
+        assertMessage( 1, log3First );
+    }
+
+
+    @Test
+    public void testPurge() throws Exception
+    {
+        long[] positions = new long[50];
+        long lastPosition = -1L;
+
+        for ( int i = 0; i < positions.length; i++ )
+        {
+            positions[i] = journal.append( message( i ), lastPosition );
+            lastPosition = positions[i];
+        }
+
+        int nbSegments = journal.getSegmentCount();
+        long end = journal.startPurge();
+
+        assertEquals( journal.getEndPosition(), end );
+
+        // Keep the messages after the 30th
+        int nbPurged = journal.purge( Math.min( end, positions[30] ) );
+
+        assertTrue( nbPurged > 0 );
+        assertEquals( nbSegments - nbPurged, journal.getSegmentCount() );
+        assertNull( journal.read( positions[0] ) );
+
+        for ( int i = 30; i < positions.length; i++ )
+        {
+            assertMessage( i, positions[i] );
+        }
+
+        // Nothing is deleted above the segment we append to
+        assertEquals( 0, journal.purge( Long.MAX_VALUE ) );
+        assertTrue( journal.getSegmentCount() >= 1 );
+    }
+
+
+    @Test
+    public void testNoSharingBelowPurgeStart() throws Exception
+    {
+        ReplicaEventMessage first = message( 1 );
+        long position = journal.append( first, -1L );
+
+        journal.startPurge();
+
+        // A log appending the same change after the purge has started gets a new message,
+        // as the purge may delete the segment of the first one
+        long newPosition = journal.append( first, -1L );
+
+        assertTrue( newPosition > position );
+        assertMessage( 1, newPosition );
+    }
+
+
+    @Test
+    public void testRecoverPartialMessage() throws Exception
+    {
+        long first = journal.append( message( 1 ), -1L );
+        long end = journal.getEndPosition();
+        journal.release();
+        journal = null;
+
+        // A crash while writing a message leaves a partial message at the end of the last segment
+        File segment = new File( directory, ReplicaJournal.SEGMENT_NAME_PREFIX + String.format( "%016x", 0L ) );
+
+        try ( RandomAccessFile file = new RandomAccessFile( segment, "rw" ) )
+        {
+            file.seek( file.length() );
+            file.writeInt( 1000 );
+            file.write( new byte[10] );
+        }
+
+        journal = new ReplicaJournal( directory, schemaManager, SEGMENT_SIZE );
+
+        assertEquals( end, journal.getEndPosition() );
+        assertMessage( 1, first );
+
+        long second = journal.append( message( 2 ), first );
+
+        assertEquals( end, second );
+        assertMessage( 2, second );
+    }
+
+
+    private void writeLength( long position, int length ) throws Exception
+    {
+        File segment = new File( directory, ReplicaJournal.SEGMENT_NAME_PREFIX
+            + String.format( "%016x", position >>> 32 ) );
+
+        try ( RandomAccessFile file = new RandomAccessFile( segment, "rw" ) )
+        {
+            file.seek( position & 0xFFFFFFFFL );
+            file.writeInt( length );
+        }
+    }
+
+
+    @Test
+    public void testRecoverCorruptHeader() throws Exception
+    {
+        long first = journal.append( message( 1 ), -1L );
+        long second = journal.append( message( 2 ), first );
+        journal.append( message( 3 ), second );
+        journal.release();
+        journal = null;
+
+        // A corrupted length is the end of the log : the following messages are dropped
+        writeLength( second, Integer.MAX_VALUE );
+
+        journal = new ReplicaJournal( directory, schemaManager, SEGMENT_SIZE );
+
+        assertEquals( second, journal.getEndPosition() );
+        assertMessage( 1, first );
+        assertNull( journal.read( second ) );
+    }
+
+
+    @Test
+    public void testReadInvalidLength() throws Exception
+    {
+        long first = journal.append( message( 1 ), -1L );
+        long second = journal.append( message( 2 ), first );
+
+        writeLength( first, Integer.MAX_VALUE );
+        assertNull( journal.read( first ) );
+
+        writeLength( first, -1 );
+        assertNull( journal.read( first ) );
+
+        // Positions after the end of the segment
+        assertNull( journal.read( journal.getEndPosition() ) );
+        assertNull( journal.read( journal.getEndPosition() + 1000L ) );
+
+        assertMessage( 2, second );
+    }
+}
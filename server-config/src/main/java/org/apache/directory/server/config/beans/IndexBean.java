@@ -37,6 +37,10 @@ public abstract class IndexBean extends AdsBaseBean
     @ConfigurationElement(attributeType = "ads-indexHasReverse")
     private boolean indexHasReverse;
 
+    /** Tells if the substring filters on this attribute use a trigram index */
+    @ConfigurationElement(attributeType = "ads-indexSubstring", isOptional = true, defaultValue = "false")
+    private boolean indexSubstring;
+
 
     /**
      * Create a new IndexBean instance
@@ -82,6 +86,24 @@ public abstract class IndexBean extends AdsBaseBean
     }
 
 
+    /**
+     * @param indexSubstring tells if the substring filters on this attribute use a trigram index
+     */
+    public void setIndexSubstring( boolean indexSubstring )
+    {
+        this.indexSubstring = indexSubstring;
+    }
+
+
+    /**
+     * @return true if the substring filters on this attribute use a trigram index
+     */
+    public boolean getIndexSubstring()
+    {
+        return indexSubstring;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -93,6 +115,7 @@ public abstract class IndexBean extends AdsBaseBean
         sb.append( super.toString( tabs + "  " ) );
         sb.append( tabs ).append( "  indexed attribute ID : " ).append( indexAttributeId ).append( '\n' );
         sb.append( tabs ).append( "  indexed has reverse : " ).append( indexHasReverse ).append( '\n' );
+        sb.append( tabs ).append( "  indexed substrings : " ).append( indexSubstring ).append( '\n' );
 
         return sb.toString();
     }
@@ -78,6 +78,10 @@ public class LdapServerBean extends DSBasedServerBean
     @ConfigurationElement(attributeType = "ads-replReqHandler", isOptional = true)
     private String replReqHandler;
 
+    /** The directory the replication provider creates the partition snapshots into when it starts */
+    @ConfigurationElement(attributeType = "ads-replSnapshotDirectory", isOptional = true)
+    private String replSnapshotDirectory;
+
     /** The replication consumer Bean */
     @ConfigurationElement(objectClass = "ads-replConsumer", container = "replConsumers", isOptional = true)
     private List<ReplConsumerBean> replConsumers = new ArrayList<>();
@@ -281,6 +285,24 @@ public class LdapServerBean extends DSBasedServerBean
     }
 
 
+    /**
+     * @return the directory the replication provider creates the partition snapshots into
+     */
+    public String getReplSnapshotDirectory()
+    {
+        return replSnapshotDirectory;
+    }
+
+
+    /**
+     * @param replSnapshotDirectory the directory the replication provider creates the partition snapshots into
+     */
+    public void setReplSnapshotDirectory( String replSnapshotDirectory )
+    {
+        this.replSnapshotDirectory = replSnapshotDirectory;
+    }
+
+
     /**
      * @return the saslMechHandlers
      */
@@ -408,6 +430,7 @@ public class LdapServerBean extends DSBasedServerBean
         sb.append( tabs ).append( "  sasl host : " ).append( saslHost ).append( '\n' );
         sb.append( toString( tabs, "  confidentiality required", confidentialityRequired ) );
         sb.append( toString( tabs, "  enable replication provider", replReqHandler ) );
+        sb.append( toString( tabs, "  replication snapshot directory", replSnapshotDirectory ) );
         sb.append( toString( tabs, "  Pinger thread sleep time(in sec.)", replPingerSleep ) );
 
         if ( ( extendedOpHandlers != null ) && !extendedOpHandlers.isEmpty() )
@@ -46,6 +46,10 @@ public abstract class PartitionBean extends AdsBaseBean
     @ConfigurationElement(attributeType = "ads-partitionSyncOnWrite", isOptional = true)
     private boolean partitionSyncOnWrite;
 
+    /** Tells if the index statistics used by the cost based optimizer are maintained */
+    @ConfigurationElement(attributeType = "ads-partitionStatisticsEnabled", isOptional = true, defaultValue = "false")
+    private boolean partitionStatisticsEnabled;
+
     /** The partition's ContextEntry */
     @ConfigurationElement(attributeType = "ads-contextEntry", isOptional = true)
     private String contextEntry;
@@ -117,6 +121,25 @@ public abstract class PartitionBean extends AdsBaseBean
     }
 
 
+    /**
+     * @return true if the index statistics used by the cost based optimizer are maintained
+     */
+    public boolean isPartitionStatisticsEnabled()
+    {
+        return partitionStatisticsEnabled;
+    }
+
+
+    /**
+     * @param partitionStatisticsEnabled tells if the index statistics used by the cost
+     * based optimizer are maintained. Only the JDBM and LMDB partitions use them.
+     */
+    public void setPartitionStatisticsEnabled( boolean partitionStatisticsEnabled )
+    {
+        this.partitionStatisticsEnabled = partitionStatisticsEnabled;
+    }
+
+
     /**
      * @return the indexes
      */
@@ -165,6 +188,7 @@ public abstract class PartitionBean extends AdsBaseBean
         sb.append( tabs ).append( "  partition ID : " ).append( partitionId ).append( '\n' );
         sb.append( tabs ).append( "  suffix : " ).append( partitionSuffix.getName() ).append( '\n' );
         sb.append( toString( tabs, "  sync on write", partitionSyncOnWrite ) );
+        sb.append( toString( tabs, "  statistics enabled", partitionStatisticsEnabled ) );
         sb.append( toString( tabs, "  contextEntry", contextEntry ) );
 
         sb.append( tabs ).append( "  indexes : \n" );
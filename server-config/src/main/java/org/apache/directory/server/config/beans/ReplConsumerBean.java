@@ -106,6 +106,10 @@ public class ReplConsumerBean extends AdsBaseBean
     @ConfigurationElement(attributeType = SchemaConstants.ADS_REPL_CONSUMER_IMPL, isOptional = true)
     private String replConsumerImpl;
 
+    /** The directory of the provider snapshot to install before the first synchronization */
+    @ConfigurationElement(attributeType = "ads-replSnapshotDirectory", isOptional = true)
+    private String replSnapshotDirectory;
+
 
     /**
      * Create a new Replication Consumer instance
@@ -455,6 +459,24 @@ public class ReplConsumerBean extends AdsBaseBean
     }
 
 
+    /**
+     * @return the directory of the provider snapshot to install before the first synchronization
+     */
+    public String getReplSnapshotDirectory()
+    {
+        return replSnapshotDirectory;
+    }
+
+
+    /**
+     * @param replSnapshotDirectory the directory of the provider snapshot to install before the first synchronization
+     */
+    public void setReplSnapshotDirectory( String replSnapshotDirectory )
+    {
+        this.replSnapshotDirectory = replSnapshotDirectory;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -482,6 +504,7 @@ public class ReplConsumerBean extends AdsBaseBean
         sb.append( toString( tabs, "  user password", String.valueOf( replUserPassword ) ) ); // do not reveal the password, just null or not
         sb.append( toString( tabs, "  cookie", replCookie ) );
         sb.append( tabs ).append( "  consumer implementation's FQCN : " ).append( replConsumerImpl ).append( '\n' );
+        sb.append( toString( tabs, "  snapshot directory", replSnapshotDirectory ) );
 
         sb.append( toString( tabs, "  struct certivicate validation", replStrictCertValidation ) );
         sb.append( toString( tabs, "  use TLS", replUseTls ) );
@@ -318,7 +318,7 @@ public class StaleEventLogDetectionIT
         syncreplHandler.getLogJanitor().interrupt();
 
         File replDir = providerServer.getDirectoryService().getInstanceLayout().getReplDirectory();
-        File logFile = new File( replDir, log.getName() + ".db" );
+        File logFile = new File( replDir, log.getName() + ReplicaEventLog.INDEX_FILE_SUFFIX );
 
         // there should be only one log file
         assertTrue( logFile.exists() );
@@ -63,6 +63,8 @@ import org.apache.directory.server.config.beans.JdbmPartitionBean;
 import org.apache.directory.server.config.beans.JournalBean;
 import org.apache.directory.server.config.beans.KdcServerBean;
 import org.apache.directory.server.config.beans.LdapServerBean;
+import org.apache.directory.server.config.beans.LmdbIndexBean;
+import org.apache.directory.server.config.beans.LmdbPartitionBean;
 import org.apache.directory.server.config.beans.MavibotIndexBean;
 import org.apache.directory.server.config.beans.MavibotPartitionBean;
 import org.apache.directory.server.config.beans.NtpServerBean;
@@ -97,6 +99,10 @@ import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmDnIndex;
 import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmIndex;
 import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmPartition;
 import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmRdnIndex;
+import org.apache.directory.server.core.partition.impl.btree.lmdb.LmdbDnIndex;
+import org.apache.directory.server.core.partition.impl.btree.lmdb.LmdbIndex;
+import org.apache.directory.server.core.partition.impl.btree.lmdb.LmdbPartition;
+import org.apache.directory.server.core.partition.impl.btree.lmdb.LmdbRdnIndex;
 import org.apache.directory.server.core.partition.impl.btree.mavibot.MavibotDnIndex;
 import org.apache.directory.server.core.partition.impl.btree.mavibot.MavibotIndex;
 import org.apache.directory.server.core.partition.impl.btree.mavibot.MavibotPartition;
@@ -1124,6 +1130,12 @@ public final class ServiceBuilder
                 ReplicationRequestHandler rp = new SyncReplRequestHandler();
                 ldapServer.setReplicationReqHandler( rp );
             }
+
+            if ( ldapServer.getReplicationReqHandler() instanceof SyncReplRequestHandler )
+            {
+                ( ( SyncReplRequestHandler ) ldapServer.getReplicationReqHandler() )
+                    .setSnapshotDirectory( ldapServerBean.getReplSnapshotDirectory() );
+            }
         }
 
         ldapServer.setReplConsumers( createReplConsumers( ldapServerBean.getReplConsumers() ) );
@@ -1202,6 +1214,7 @@ public final class ServiceBuilder
                 config.setReplUserDn( replBean.getReplUserDn() );
                 config.setReplUserPassword( replBean.getReplUserPassword() );
                 config.setSearchSizeLimit( replBean.getReplSearchSizeLimit() );
+                config.setSnapshotDirectory( replBean.getReplSnapshotDirectory() );
 
                 config.setUseTls( replBean.isReplUseTls() );
                 config.setStrictCertVerification( replBean.isReplStrictCertValidation() );
@@ -1255,6 +1268,7 @@ public final class ServiceBuilder
         else
         {
             index = new JdbmIndex<>( jdbmIndexBean.getIndexAttributeId(), hasReverse );
+            index.setSubstringIndexed( jdbmIndexBean.getIndexSubstring() );
         }
 
         index.setCacheSize( jdbmIndexBean.getIndexCacheSize() );
@@ -1334,6 +1348,7 @@ public final class ServiceBuilder
         }
 
         jdbmPartition.setSyncOnWrite( jdbmPartitionBean.isPartitionSyncOnWrite() );
+        jdbmPartition.setStatisticsEnabled( jdbmPartitionBean.isPartitionStatisticsEnabled() );
         jdbmPartition.setIndexedAttributes( createJdbmIndexes( jdbmPartition, jdbmPartitionBean.getIndexes(),
             directoryService ) );
 
@@ -1367,6 +1382,10 @@ public final class ServiceBuilder
         {
             return createMavibotPartition( directoryService, ( MavibotPartitionBean ) partitionBean );
         }
+        else if ( partitionBean instanceof LmdbPartitionBean )
+        {
+            return createLmdbPartition( directoryService, ( LmdbPartitionBean ) partitionBean );
+        }
         else
         {
             return null;
@@ -1590,6 +1609,111 @@ public final class ServiceBuilder
         else
         {
             index = new MavibotIndex<>( mavibotIndexBean.getIndexAttributeId(), hasReverse );
+            index.setSubstringIndexed( mavibotIndexBean.getIndexSubstring() );
+        }
+
+        index.setWkDirPath( partition.getPartitionPath() );
+
+        return index;
+    }
+
+
+    /**
+     * Create a new instance of a LmdbPartition from an instance of LmdbPartitionBean
+     * 
+     * @param directoryService The DirectoryService instance
+     * @param lmdbPartitionBean The LmdbPartitionBean to convert
+     * @return A LmdbPartition instance
+     * @throws ConfigurationException If the partition can't be configured
+     */
+    public static LmdbPartition createLmdbPartition( DirectoryService directoryService,
+        LmdbPartitionBean lmdbPartitionBean ) throws ConfigurationException
+    {
+        if ( ( lmdbPartitionBean == null ) || lmdbPartitionBean.isDisabled() )
+        {
+            return null;
+        }
+
+        LmdbPartition lmdbPartition = new LmdbPartition( directoryService.getSchemaManager(),
+            directoryService.getDnFactory() );
+
+        lmdbPartition.setId( lmdbPartitionBean.getPartitionId() );
+        File partitionPath = new File( directoryService.getInstanceLayout().getPartitionsDirectory(),
+            lmdbPartitionBean.getPartitionId() );
+        lmdbPartition.setPartitionPath( partitionPath.toURI() );
+
+        try
+        {
+            lmdbPartition.setSuffixDn( lmdbPartitionBean.getPartitionSuffix() );
+        }
+        catch ( LdapInvalidDnException lide )
+        {
+            String message = "Cannot set the Dn " + lmdbPartitionBean.getPartitionSuffix() + ", " + lide.getMessage();
+            LOG.error( message );
+            throw new ConfigurationException( message );
+        }
+
+        lmdbPartition.setSyncOnWrite( lmdbPartitionBean.isPartitionSyncOnWrite() );
+        lmdbPartition.setStatisticsEnabled( lmdbPartitionBean.isPartitionStatisticsEnabled() );
+        lmdbPartition.setIndexedAttributes( createLmdbIndexes( lmdbPartition, lmdbPartitionBean.getIndexes() ) );
+
+        setContextEntry( lmdbPartitionBean, lmdbPartition );
+
+        return lmdbPartition;
+    }
+
+
+    /**
+     * Create the list of LmdbIndex from the configuration
+     */
+    private static Set<Index<?, String>> createLmdbIndexes( LmdbPartition partition, List<IndexBean> indexesBeans )
+    {
+        Set<Index<?, String>> indexes = new HashSet<>();
+
+        for ( IndexBean indexBean : indexesBeans )
+        {
+            if ( indexBean.isEnabled() && ( indexBean instanceof LmdbIndexBean ) )
+            {
+                indexes.add( createLmdbIndex( partition, ( LmdbIndexBean ) indexBean ) );
+            }
+        }
+
+        return indexes;
+    }
+
+
+    /**
+     * Create a new instance of a LmdbIndex from an instance of LmdbIndexBean
+     * 
+     * @param partition The LMDB partition instance
+     * @param lmdbIndexBean The LmdbIndexBean to convert
+     * @return A LmdbIndex instance
+     */
+    public static LmdbIndex<?> createLmdbIndex( LmdbPartition partition, LmdbIndexBean lmdbIndexBean )
+    {
+        if ( ( lmdbIndexBean == null ) || lmdbIndexBean.isDisabled() )
+        {
+            return null;
+        }
+
+        LmdbIndex<?> index = null;
+
+        boolean hasReverse = lmdbIndexBean.getIndexHasReverse();
+
+        if ( lmdbIndexBean.getIndexAttributeId().equalsIgnoreCase( ApacheSchemaConstants.APACHE_RDN_AT )
+            || lmdbIndexBean.getIndexAttributeId().equalsIgnoreCase( ApacheSchemaConstants.APACHE_RDN_AT_OID ) )
+        {
+            index = new LmdbRdnIndex();
+        }
+        else if ( lmdbIndexBean.getIndexAttributeId().equalsIgnoreCase( ApacheSchemaConstants.APACHE_ALIAS_AT )
+            || lmdbIndexBean.getIndexAttributeId().equalsIgnoreCase( ApacheSchemaConstants.APACHE_ALIAS_AT_OID ) )
+        {
+            index = new LmdbDnIndex( ApacheSchemaConstants.APACHE_ALIAS_AT_OID );
+        }
+        else
+        {
+            index = new LmdbIndex<>( lmdbIndexBean.getIndexAttributeId(), hasReverse );
+            index.setSubstringIndexed( lmdbIndexBean.getIndexSubstring() );
         }
 
         index.setWkDirPath( partition.getPartitionPath() );
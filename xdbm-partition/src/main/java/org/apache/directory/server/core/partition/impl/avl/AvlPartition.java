@@ -23,6 +23,7 @@ package org.apache.directory.server.core.partition.impl.avl;
 import java.net.URI;
 
 import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.ldap.model.schema.comparators.UuidComparator;
 import org.apache.directory.server.constants.ApacheSchemaConstants;
@@ -35,6 +36,7 @@ import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.impl.avl.AvlIndex;
 import org.apache.directory.server.xdbm.impl.avl.AvlMasterTable;
 import org.apache.directory.server.xdbm.impl.avl.AvlRdnIndex;
+import org.apache.directory.server.xdbm.search.impl.CostBasedOptimizer;
 import org.apache.directory.server.xdbm.search.impl.CursorBuilder;
 import org.apache.directory.server.xdbm.search.impl.DefaultOptimizer;
 import org.apache.directory.server.xdbm.search.impl.DefaultSearchEngine;
@@ -104,6 +106,10 @@ public class AvlPartition extends AbstractBTreePartition
             {
                 setOptimizer( new NoOpOptimizer() );
             }
+            else if ( statisticsEnabled )
+            {
+                setOptimizer( new CostBasedOptimizer( this ) );
+            }
             else
             {
                 setOptimizer( new DefaultOptimizer( this ) );
@@ -120,6 +126,8 @@ public class AvlPartition extends AbstractBTreePartition
             master = new AvlMasterTable( id, UuidComparator.INSTANCE, null, false );
 
             super.doInit();
+
+            setupStatistics( beginReadTransaction() );
         }
     }
 
@@ -188,6 +196,19 @@ public class AvlPartition extends AbstractBTreePartition
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Index<String, String> createNGramIndex( AttributeType attributeType ) throws LdapException
+    {
+        AvlIndex<String> ngramIndex = new AvlIndex<>( attributeType.getOid(), false );
+        ngramIndex.init( schemaManager, attributeType );
+
+        return ngramIndex;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -20,10 +20,23 @@
 package org.apache.directory.server.core.partition.impl.btree;
 
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -32,7 +45,9 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.ehcache.Cache;
@@ -86,6 +101,7 @@ import org.apache.directory.server.core.api.interceptor.context.SearchOperationC
 import org.apache.directory.server.core.api.interceptor.context.UnbindOperationContext;
 import org.apache.directory.server.core.api.partition.AbstractPartition;
 import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionReadTxn;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.core.api.partition.PartitionWriteTxn;
 import org.apache.directory.server.core.api.partition.Subordinates;
@@ -93,7 +109,9 @@ import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.IndexEntry;
 import org.apache.directory.server.xdbm.IndexNotFoundException;
+import org.apache.directory.server.xdbm.IndexStatistics;
 import org.apache.directory.server.xdbm.MasterTable;
+import org.apache.directory.server.xdbm.NGrams;
 import org.apache.directory.server.xdbm.ParentIdAndRdn;
 import org.apache.directory.server.xdbm.Store;
 import org.apache.directory.server.xdbm.search.Optimizer;
@@ -122,6 +140,21 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     /** Tells if the Optimizer is enabled */
     protected boolean optimizerEnabled = true;
 
+    /** Tells if the cardinality statistics of the user indices are maintained */
+    protected boolean statisticsEnabled = false;
+
+    /** The extension of the files storing the statistics of the user indices */
+    private static final String STATISTICS_FILE_EXTN = ".stats";
+
+    /** The minimum delay between two saves of the statistics, in ms */
+    private static final long STATISTICS_CHECKPOINT_PERIOD = 60000L;
+
+    /** Set when the statistics have changed since they were last saved */
+    private final AtomicBoolean statisticsChanged = new AtomicBoolean( false );
+
+    /** The last time the statistics have been saved */
+    private volatile long lastStatisticsCheckpoint;
+
     /** The default cache size is set to 10 000 objects */
     public static final int DEFAULT_CACHE_SIZE = 10000;
 
@@ -152,6 +185,12 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     /** a map of attributeType numeric UUID to user userIndices */
     protected Map<String, Index<?, String>> userIndices = new HashMap<>();
 
+    /** a map of attributeType numeric UUID to the trigram indices of the substring indexed attributes */
+    protected Map<String, Index<String, String>> ngramIndices = new HashMap<>();
+
+    /** a map of attributeType numeric UUID to the cardinality statistics of the user indices */
+    protected Map<String, IndexStatistics> statistics = new HashMap<>();
+
     /** a map of attributeType numeric UUID to system userIndices */
     protected Map<String, Index<?, String>> systemIndices = new HashMap<>();
 
@@ -203,8 +242,18 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     /** A lock to protect the backend from concurrent reads/writes */
     private ReadWriteLock rwLock;
 
+    /** A lock serializing the modify, move and rename operations */
+    private final Lock writerLock = new ReentrantLock();
+
     /** a cache to hold <entryUUID, Dn> pairs, this is used for speeding up the buildEntryDn() method */
     private Cache<String, Dn> entryDnCache;
+
+    /**
+     * The largest subtree which cached DNs and aliases are refreshed one by one on a rename
+     * or a move. Above this size, walking the subtree costs more than rebuilding the
+     * caches, so the DN cache is cleared and the alias cache reloaded.
+     */
+    private static final int MAX_DN_CACHE_SUBTREE_WALK = 1000;
     
     /** a semaphore to serialize the writes on context entry while updating contextCSN attribute */
     private Semaphore ctxCsnSemaphore = new Semaphore( 1 );
@@ -324,6 +373,29 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * Tells if the cardinality statistics of the user indices are maintained. They are
+     * used by the cost based optimizer. This is disabled by default.
+     * 
+     * @return true if the statistics are maintained
+     */
+    public boolean isStatisticsEnabled()
+    {
+        return statisticsEnabled;
+    }
+
+
+    /**
+     * Set the statistics flag. It must be set before the partition is initialized.
+     * 
+     * @param statisticsEnabled The flag
+     */
+    public void setStatisticsEnabled( boolean statisticsEnabled )
+    {
+        this.statisticsEnabled = statisticsEnabled;
+    }
+
+
     /**
      * Sets the path in which this Partition stores data. This may be an URL to
      * a file or directory, or an JDBC URL.
@@ -470,8 +542,14 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             if ( mr != null )
             {
                 Index<?, String> index = elem.getValue();
+                boolean substringIndexed = index.isSubstringIndexed();
                 index = convertAndInit( index );
                 tmp.put( oid, index );
+
+                if ( substringIndexed )
+                {
+                    setupNGramIndex( attributeType );
+                }
             }
             else
             {
@@ -483,6 +561,459 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * Sets up the trigram index associated with a substring indexed attribute. The
+     * attribute must have a SUBSTR matching rule and a human readable syntax.
+     * 
+     * @param attributeType The substring indexed attributeType
+     * @throws LdapException If the index can't be created
+     */
+    private void setupNGramIndex( AttributeType attributeType ) throws LdapException
+    {
+        if ( ( attributeType.getSubstring() == null ) || !attributeType.getSyntax().isHumanReadable() )
+        {
+            LOG.warn( "Cannot create a substring index for the {} AttributeType, it has no SUBSTR matching rule "
+                + "or its syntax is not human readable", attributeType.getName() );
+            
+            return;
+        }
+
+        Index<String, String> ngramIndex = createNGramIndex( attributeType );
+
+        if ( ngramIndex != null )
+        {
+            ngramIndices.put( attributeType.getOid(), ngramIndex );
+        }
+    }
+
+
+    /**
+     * Creates and initializes the trigram index associated with a substring indexed
+     * attribute. The index keys are the grams, the values the entry IDs. By default,
+     * trigram indexes are not supported, and substring assertions are resolved using
+     * the user index only.
+     * 
+     * @param attributeType The substring indexed attributeType
+     * @return The initialized index, or null if the backend does not support it
+     * @throws LdapException If the index can't be created
+     */
+    protected Index<String, String> createNGramIndex( AttributeType attributeType ) throws LdapException
+    {
+        LOG.warn( "The {} partition does not support substring indexes, ignoring the one on {}", id,
+            attributeType.getName() );
+
+        return null;
+    }
+
+
+    /**
+     * Feeds the trigram indexes which have just been created for existing user indexes,
+     * reading the values from the user index.
+     * 
+     * @param partitionTxn The transaction to use
+     * @throws LdapException If the indexes can't be built
+     */
+    protected void buildNGramIndices( PartitionTxn partitionTxn ) throws LdapException
+    {
+        for ( Map.Entry<String, Index<String, String>> elem : ngramIndices.entrySet() )
+        {
+            Index<String, String> ngramIndex = elem.getValue();
+            Index<?, String> userIndex = userIndices.get( elem.getKey() );
+
+            if ( ( userIndex == null ) || ( ngramIndex.count( partitionTxn ) > 0L ) 
+                || ( userIndex.count( partitionTxn ) == 0L ) )
+            {
+                continue;
+            }
+
+            LOG.info( "Building the substring index for {} in the {} partition", elem.getKey(), id );
+
+            Cursor<? extends IndexEntry<?, String>> cursor = userIndex.forwardCursor( partitionTxn );
+            Set<String> grams = new HashSet<>();
+
+            try
+            {
+                while ( cursor.next() )
+                {
+                    IndexEntry<?, String> indexEntry = cursor.get();
+                    
+                    if ( !( indexEntry.getKey() instanceof String ) )
+                    {
+                        continue;
+                    }
+
+                    grams.clear();
+                    NGrams.collect( ( String ) indexEntry.getKey(), grams );
+
+                    for ( String gram : grams )
+                    {
+                        if ( !ngramIndex.forward( partitionTxn, gram, indexEntry.getId() ) )
+                        {
+                            ngramIndex.add( partitionTxn, gram, indexEntry.getId() );
+                        }
+                    }
+                }
+            }
+            catch ( CursorException ce )
+            {
+                throw new LdapOtherException( ce.getMessage(), ce );
+            }
+            finally
+            {
+                try
+                {
+                    cursor.close();
+                }
+                catch ( IOException ioe )
+                {
+                    LOG.error( ioe.getMessage(), ioe );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Loads the cardinality statistics of the user indices, or computes them when they
+     * have not been saved, when they are too far from the index content (the changes
+     * done since the last checkpoint are lost when the server is not cleanly stopped),
+     * or when the index has changed too much since they were computed.
+     * WARN: MUST be called after the user indices have been built.
+     * 
+     * @param partitionTxn The transaction to use
+     * @throws LdapException If the indices can't be read
+     */
+    protected void setupStatistics( PartitionTxn partitionTxn ) throws LdapException
+    {
+        if ( !statisticsEnabled )
+        {
+            return;
+        }
+
+        for ( Map.Entry<String, Index<?, String>> elem : userIndices.entrySet() )
+        {
+            Index<?, String> index = elem.getValue();
+            AttributeType attributeType = index.getAttribute();
+
+            if ( ( attributeType == null ) || ( attributeType.getEquality() == null )
+                || !attributeType.getSyntax().isHumanReadable() )
+            {
+                continue;
+            }
+
+            IndexStatistics indexStatistics = new IndexStatistics( attributeType );
+
+            if ( !loadStatistics( indexStatistics ) || indexStatistics.needsRebuild( index.count( partitionTxn ) ) )
+            {
+                LOG.debug( "Computing the statistics of the {} index in the {} partition", elem.getKey(), id );
+                indexStatistics.build( partitionTxn, index );
+            }
+
+            statistics.put( elem.getKey(), indexStatistics );
+        }
+    }
+
+
+    /**
+     * @return the file storing the statistics of an index, or null if the partition is not on disk
+     */
+    private File getStatisticsFile( AttributeType attributeType )
+    {
+        URI partitionPath = getPartitionPath();
+
+        if ( ( partitionPath == null ) || !"file".equals( partitionPath.getScheme() ) )
+        {
+            return null;
+        }
+
+        return new File( new File( partitionPath ), attributeType.getOid() + STATISTICS_FILE_EXTN );
+    }
+
+
+    private boolean loadStatistics( IndexStatistics indexStatistics )
+    {
+        File file = getStatisticsFile( indexStatistics.getAttributeType() );
+
+        if ( ( file == null ) || !file.exists() )
+        {
+            return false;
+        }
+
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) )
+        {
+            return indexStatistics.read( in );
+        }
+        catch ( IOException ioe )
+        {
+            LOG.warn( "Cannot read the statistics file {}, they will be computed again", file, ioe );
+
+            return false;
+        }
+    }
+
+
+    /**
+     * Saves the cardinality statistics of the user indices next to the partition files,
+     * so that we don't have to scan the indices on the next startup.
+     */
+    protected void saveStatistics()
+    {
+        statisticsChanged.set( false );
+        lastStatisticsCheckpoint = System.currentTimeMillis();
+
+        for ( IndexStatistics indexStatistics : statistics.values() )
+        {
+            File file = getStatisticsFile( indexStatistics.getAttributeType() );
+
+            if ( file == null )
+            {
+                return;
+            }
+
+            try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ) ) )
+            {
+                indexStatistics.write( out );
+            }
+            catch ( IOException ioe )
+            {
+                LOG.warn( "Cannot write the statistics file {}", file, ioe );
+            }
+        }
+    }
+
+
+    /**
+     * Saves the statistics if they have changed and if they have not been saved for a
+     * while, so that an unclean shutdown does not force a scan of the indices.
+     * Called by the sync thread.
+     */
+    protected void checkpointStatistics()
+    {
+        if ( statisticsChanged.get()
+            && ( System.currentTimeMillis() - lastStatisticsCheckpoint >= STATISTICS_CHECKPOINT_PERIOD ) )
+        {
+            saveStatistics();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sync() throws LdapException
+    {
+        checkpointStatistics();
+    }
+
+
+    /**
+     * Gets the normalized values of the attributes which index has statistics, per
+     * attribute OID. The values are copied, so the entry can be modified afterward.
+     * 
+     * @param entry The entry
+     * @return The indexed keys of each attribute
+     */
+    private Map<String, Set<String>> getIndexedKeys( Entry entry )
+    {
+        if ( statistics.isEmpty() || ( entry == null ) )
+        {
+            return Collections.emptyMap();
+        }
+
+        Map<String, Set<String>> keys = new HashMap<>();
+
+        for ( IndexStatistics indexStatistics : statistics.values() )
+        {
+            AttributeType attributeType = indexStatistics.getAttributeType();
+            Attribute attribute = entry.get( attributeType );
+
+            if ( attribute != null )
+            {
+                Set<String> values = new HashSet<>();
+
+                for ( Value value : attribute )
+                {
+                    values.add( value.getNormalized() );
+                }
+
+                keys.put( attributeType.getOid(), values );
+            }
+        }
+
+        return keys;
+    }
+
+
+    /**
+     * Updates the statistics of the user indices for the keys which have been added to or
+     * removed from an entry. The statistics are updated when the transaction is committed,
+     * so that an aborted write does not change them.
+     * 
+     * @param partitionTxn The transaction to use
+     * @param oldKeys The indexed keys of the entry before the operation
+     * @param newKeys The indexed keys of the entry after the operation
+     */
+    private void updateStatistics( PartitionTxn partitionTxn, Map<String, Set<String>> oldKeys,
+        Map<String, Set<String>> newKeys )
+    {
+        final Map<IndexStatistics, List<String>> added = new HashMap<>();
+        final Map<IndexStatistics, List<String>> dropped = new HashMap<>();
+
+        for ( Map.Entry<String, IndexStatistics> elem : statistics.entrySet() )
+        {
+            IndexStatistics indexStatistics = elem.getValue();
+            Set<String> before = oldKeys.get( elem.getKey() );
+            Set<String> after = newKeys.get( elem.getKey() );
+
+            if ( before != null )
+            {
+                for ( String key : before )
+                {
+                    if ( ( after == null ) || !after.contains( key ) )
+                    {
+                        addKey( dropped, indexStatistics, key );
+                    }
+                }
+            }
+
+            if ( after != null )
+            {
+                for ( String key : after )
+                {
+                    if ( ( before == null ) || !before.contains( key ) )
+                    {
+                        addKey( added, indexStatistics, key );
+                    }
+                }
+            }
+        }
+
+        if ( added.isEmpty() && dropped.isEmpty() )
+        {
+            return;
+        }
+
+        Runnable update = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for ( Map.Entry<IndexStatistics, List<String>> elem : dropped.entrySet() )
+                {
+                    for ( String key : elem.getValue() )
+                    {
+                        elem.getKey().dropped( key );
+                    }
+                }
+
+                for ( Map.Entry<IndexStatistics, List<String>> elem : added.entrySet() )
+                {
+                    for ( String key : elem.getValue() )
+                    {
+                        elem.getKey().added( key );
+                    }
+                }
+
+                statisticsChanged.set( true );
+            }
+        };
+
+        if ( partitionTxn instanceof PartitionWriteTxn )
+        {
+            ( ( PartitionWriteTxn ) partitionTxn ).onCommit( update );
+        }
+        else
+        {
+            update.run();
+        }
+    }
+
+
+    private static void addKey( Map<IndexStatistics, List<String>> keys, IndexStatistics indexStatistics, String key )
+    {
+        List<String> list = keys.get( indexStatistics );
+
+        if ( list == null )
+        {
+            list = new ArrayList<>();
+            keys.put( indexStatistics, list );
+        }
+
+        list.add( key );
+    }
+
+
+    /**
+     * Gets the grams of the substring indexed attributes of an entry, per attribute OID.
+     * The grams are computed right away, so the entry can be modified afterward.
+     * 
+     * @param entry The entry
+     * @return The grams of each substring indexed attribute
+     */
+    private Map<String, Set<String>> getNGrams( Entry entry )
+    {
+        if ( ngramIndices.isEmpty() || ( entry == null ) )
+        {
+            return Collections.emptyMap();
+        }
+
+        Map<String, Set<String>> grams = new HashMap<>();
+
+        for ( Index<String, String> ngramIndex : ngramIndices.values() )
+        {
+            AttributeType attributeType = ngramIndex.getAttribute();
+            grams.put( attributeType.getOid(), NGrams.getGrams( entry.get( attributeType ) ) );
+        }
+
+        return grams;
+    }
+
+
+    /**
+     * Updates the trigram indexes for an entry, dropping the grams it does not contain
+     * anymore and adding the new ones.
+     * 
+     * @param partitionTxn The transaction to use
+     * @param id The entry ID
+     * @param oldGrams The grams of the entry before the operation
+     * @param newGrams The grams of the entry after the operation
+     * @throws LdapException If the indexes can't be updated
+     */
+    private void updateNGramIndices( PartitionTxn partitionTxn, String id, Map<String, Set<String>> oldGrams,
+        Map<String, Set<String>> newGrams ) throws LdapException
+    {
+        for ( Map.Entry<String, Index<String, String>> elem : ngramIndices.entrySet() )
+        {
+            Index<String, String> ngramIndex = elem.getValue();
+            Set<String> before = oldGrams.get( elem.getKey() );
+            Set<String> after = newGrams.get( elem.getKey() );
+
+            if ( before != null )
+            {
+                for ( String gram : before )
+                {
+                    if ( ( after == null ) || !after.contains( gram ) )
+                    {
+                        ngramIndex.drop( partitionTxn, gram, id );
+                    }
+                }
+            }
+
+            if ( after != null )
+            {
+                for ( String gram : after )
+                {
+                    if ( ( before == null ) || !before.contains( gram ) )
+                    {
+                        ngramIndex.add( partitionTxn, gram, id );
+                    }
+                }
+            }
+        }
+    }
+
+
     /**
      * Gets the DefaultSearchEngine used by this ContextPartition to search the
      * Database.
@@ -520,6 +1051,254 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * Copies the partition files into a directory, after having flushed them. The caller
+     * must hold the partition write lock, or its read lock, so that the copy is consistent.
+     *
+     * @param targetDir The directory the files are copied into
+     * @throws LdapException If the partition is not stored in files, or if the copy failed
+     */
+    public void snapshot( File targetDir ) throws LdapException
+    {
+        File partitionDir = getPartitionDirectory();
+
+        sync();
+
+        try
+        {
+            copyFiles( partitionDir, targetDir );
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+
+        LOG.info( "Copied the {} partition files into {}", id, targetDir );
+    }
+
+
+    /**
+     * Replaces the partition content by the files of a snapshot. The snapshot is first
+     * copied into a directory next to the partition one, then the partition is closed,
+     * the two directories are swapped, and the partition is initialized again. The
+     * previous files are kept until the restored partition has been initialized : if
+     * anything fails, the partition is reopened with its previous content. The caller
+     * must hold the partition write lock.
+     *
+     * @param sourceDir The directory containing the snapshot files
+     * @throws LdapException If the partition is not stored in files, or if the copy failed
+     */
+    public void restore( File sourceDir ) throws LdapException
+    {
+        File partitionDir = getPartitionDirectory().getAbsoluteFile();
+        File restoredDir = new File( partitionDir.getParentFile(), partitionDir.getName() + ".restore" );
+        File previousDir = new File( partitionDir.getParentFile(), partitionDir.getName() + ".previous" );
+
+        // Copy the snapshot while the partition is still running : a failed copy changes nothing
+        try
+        {
+            deleteDirectory( restoredDir );
+            deleteDirectory( previousDir );
+            copyFiles( sourceDir, restoredDir );
+        }
+        catch ( IOException ioe )
+        {
+            deleteQuietly( restoredDir );
+
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+
+        closePartition();
+
+        try
+        {
+            swapDirectories( partitionDir, restoredDir, previousDir );
+        }
+        catch ( IOException ioe )
+        {
+            LOG.error( "Cannot swap the {} partition files, the previous content is reopened", id, ioe );
+            deleteQuietly( restoredDir );
+            initialize();
+
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+
+        clearDnCaches();
+
+        try
+        {
+            initialize();
+        }
+        catch ( LdapException le )
+        {
+            LOG.error( "Cannot initialize the restored {} partition, the previous content is reopened", id, le );
+            closePartition();
+
+            try
+            {
+                swapDirectories( partitionDir, previousDir, restoredDir );
+            }
+            catch ( IOException ioe )
+            {
+                throw new LdapOtherException( "Cannot reopen the previous " + id + " partition files, they are in "
+                    + previousDir, ioe );
+            }
+
+            deleteQuietly( restoredDir );
+            clearDnCaches();
+            initialize();
+
+            throw le;
+        }
+
+        deleteQuietly( previousDir );
+
+        LOG.info( "Restored the {} partition from {}", id, sourceDir );
+    }
+
+
+    /**
+     * Closes the partition files before they are swapped
+     */
+    private void closePartition() throws LdapException
+    {
+        try ( PartitionTxn partitionTxn = beginReadTransaction() )
+        {
+            destroy( partitionTxn );
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * Moves the partition directory aside, then moves the new directory in its place.
+     * If the second move fails, the partition directory is moved back.
+     */
+    private static void swapDirectories( File partitionDir, File newDir, File asideDir ) throws IOException
+    {
+        Files.move( partitionDir.toPath(), asideDir.toPath(), StandardCopyOption.ATOMIC_MOVE );
+
+        try
+        {
+            Files.move( newDir.toPath(), partitionDir.toPath(), StandardCopyOption.ATOMIC_MOVE );
+        }
+        catch ( IOException ioe )
+        {
+            Files.move( asideDir.toPath(), partitionDir.toPath(), StandardCopyOption.ATOMIC_MOVE );
+
+            throw ioe;
+        }
+    }
+
+
+    /**
+     * The cached ids may not match the restored entries
+     */
+    private void clearDnCaches()
+    {
+        if ( piarCache != null )
+        {
+            piarCache.clear();
+        }
+
+        if ( aliasCache != null )
+        {
+            aliasCache.clear();
+        }
+    }
+
+
+    /**
+     * Deletes a directory and its content, if it exists
+     */
+    private static void deleteDirectory( File dir ) throws IOException
+    {
+        File[] files = dir.listFiles();
+
+        if ( files != null )
+        {
+            for ( File file : files )
+            {
+                if ( file.isDirectory() )
+                {
+                    deleteDirectory( file );
+                }
+                else if ( !file.delete() )
+                {
+                    throw new IOException( "Cannot delete the file " + file );
+                }
+            }
+        }
+
+        if ( dir.exists() && !dir.delete() )
+        {
+            throw new IOException( "Cannot delete the directory " + dir );
+        }
+    }
+
+
+    /**
+     * Deletes a directory and its content, only logging a failure
+     */
+    private void deleteQuietly( File dir )
+    {
+        try
+        {
+            deleteDirectory( dir );
+        }
+        catch ( IOException ioe )
+        {
+            LOG.warn( "Cannot delete the {} partition directory {}", id, dir, ioe );
+        }
+    }
+
+
+    /**
+     * @return The directory containing the partition files
+     */
+    private File getPartitionDirectory() throws LdapException
+    {
+        if ( partitionPath == null )
+        {
+            throw new LdapUnwillingToPerformException( ResultCodeEnum.UNWILLING_TO_PERFORM,
+                "The partition " + id + " is not stored in files" );
+        }
+
+        return new File( partitionPath );
+    }
+
+
+    /**
+     * Copies the regular files of a directory into another one
+     */
+    private void copyFiles( File fromDir, File toDir ) throws IOException
+    {
+        if ( !toDir.exists() && !toDir.mkdirs() )
+        {
+            throw new IOException( I18n.err( I18n.ERR_112_COULD_NOT_CREATE_DIRECTORY, toDir ) );
+        }
+
+        File[] files = fromDir.listFiles();
+
+        if ( files == null )
+        {
+            throw new IOException( "Cannot list the files of " + fromDir );
+        }
+
+        for ( File file : files )
+        {
+            if ( file.isFile() )
+            {
+                Files.copy( file.toPath(), new File( toDir, file.getName() ).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING );
+            }
+        }
+    }
+
+
     // ------------------------------------------------------------------------
     // Partition Interface Method Implementations
     // ------------------------------------------------------------------------
@@ -543,6 +1322,8 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         
         MultiException errors = new MultiException( I18n.err( I18n.ERR_577 ) );
 
+        saveStatistics();
+
         for ( Index<?, String> index : userIndices.values() )
         {
             try
@@ -557,6 +1338,20 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             }
         }
 
+        for ( Index<String, String> index : ngramIndices.values() )
+        {
+            try
+            {
+                index.close( partitionTxn );
+                LOG.debug( "Closed {} substring index for {} partition.", index.getAttributeId(), suffixDn );
+            }
+            catch ( Throwable t )
+            {
+                LOG.error( I18n.err( I18n.ERR_124 ), t );
+                errors.addThrowable( t );
+            }
+        }
+
         for ( Index<?, String> index : systemIndices.values() )
         {
             try
@@ -737,7 +1532,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             Dn entryDn = entry.getDn();
 
             // check if the entry already exists
-            lockRead();
+            lockRead( partitionTxn );
 
             try
             {
@@ -749,7 +1544,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             }
             finally
             {
-                unlockRead();
+                unlockRead( partitionTxn );
             }
 
             String parentId = null;
@@ -771,7 +1566,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             {
                 parentDn = entryDn.getParent();
 
-                lockRead();
+                lockRead( partitionTxn );
 
                 try
                 {
@@ -779,7 +1574,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 }
                 finally
                 {
-                    unlockRead();
+                    unlockRead( partitionTxn );
                 }
 
                 key = new ParentIdAndRdn( parentId, entryDn.getRdn() );
@@ -890,6 +1685,9 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 }
             }
 
+            updateNGramIndices( partitionTxn, id, Collections.<String, Set<String>>emptyMap(), getNGrams( entry ) );
+            updateStatistics( partitionTxn, Collections.<String, Set<String>>emptyMap(), getIndexedKeys( entry ) );
+
             // Add the parentId in the entry
             entry.put( ApacheSchemaConstants.ENTRY_PARENT_ID_AT, parentId );
 
@@ -949,7 +1747,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         Dn dn = deleteContext.getDn();
         String id = null;
 
-        lockRead();
+        lockRead( partitionTxn );
 
         try
         {
@@ -957,7 +1755,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         }
         finally
         {
-            unlockRead();
+            unlockRead( partitionTxn );
         }
 
         // don't continue if id is null
@@ -1049,7 +1847,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             // First get the entry
             Entry entry = null;
 
-            lockRead();
+            lockRead( partitionTxn );
 
             try
             {
@@ -1057,7 +1855,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             }
             finally
             {
-                unlockRead();
+                unlockRead( partitionTxn );
             }
 
             if ( entry == null )
@@ -1130,6 +1928,9 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 }
             }
 
+            updateNGramIndices( partitionTxn, id, getNGrams( entry ), Collections.<String, Set<String>>emptyMap() );
+            updateStatistics( partitionTxn, getIndexedKeys( entry ), Collections.<String, Set<String>>emptyMap() );
+
             lockWrite();
 
             try
@@ -1139,6 +1940,11 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 ////dumpRdnIdx();
 
                 entryDnCache.remove( id );
+
+                if ( piarCache != null )
+                {
+                    piarCache.remove( id );
+                }
                 
                 Attribute csn = entry.get( entryCsnAT );
                 // can be null while doing subentry deletion
@@ -1283,7 +2089,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     {
         try
         {
-            rwLock.readLock().lock();
+            lockRead( partitionTxn );
 
             if ( id == null )
             {
@@ -1300,7 +2106,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         }
         finally
         {
-            rwLock.readLock().unlock();
+            unlockRead( partitionTxn );
         }
     }
 
@@ -1345,12 +2151,12 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
             try
             {
-                rwLock.readLock().lock();
+                lockRead( partitionTxn );
                 entry = master.get( partitionTxn, id );
             }
             finally
             {
-                rwLock.readLock().unlock();
+                unlockRead( partitionTxn );
             }
 
             if ( entry != null )
@@ -1358,8 +2164,12 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 // We have to store the DN in this entry
                 entry.setDn( dn );
 
-                // always store original entry in the cache
-                addToCache( id, entry );
+                // always store original entry in the cache, unless it has been read from
+                // a snapshot, which may be older than the cached entries
+                if ( canFillCaches( partitionTxn ) )
+                {
+                    addToCache( id, entry );
+                }
 
                 entry = new ClonedServerEntry( entry );
 
@@ -1417,51 +2227,64 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
      * {@inheritDoc}
      */
     @Override
-    public final synchronized Entry modify( PartitionTxn partitionTxn, Dn dn, Modification... mods ) throws LdapException
+    public final Entry modify( PartitionTxn partitionTxn, Dn dn, Modification... mods ) throws LdapException
     {
-        String id = getEntryId( partitionTxn, dn );
-        Entry entry = master.get( partitionTxn, id );
+        writerLock.lock();
 
-        for ( Modification mod : mods )
+        try
         {
-            Attribute attrMods = mod.getAttribute();
+            String id = getEntryId( partitionTxn, dn );
+            Entry entry = master.get( partitionTxn, id );
+            Map<String, Set<String>> oldGrams = getNGrams( entry );
+            Map<String, Set<String>> oldKeys = getIndexedKeys( entry );
 
-            try
-            { 
-                switch ( mod.getOperation() )
-                {
-                    case ADD_ATTRIBUTE:
-                        modifyAdd( partitionTxn, id, entry, attrMods );
-                        break;
+            for ( Modification mod : mods )
+            {
+                Attribute attrMods = mod.getAttribute();
+
+                try
+                { 
+                    switch ( mod.getOperation() )
+                    {
+                        case ADD_ATTRIBUTE:
+                            modifyAdd( partitionTxn, id, entry, attrMods );
+                            break;
     
-                    case REMOVE_ATTRIBUTE:
-                        modifyRemove( partitionTxn, id, entry, attrMods );
-                        break;
+                        case REMOVE_ATTRIBUTE:
+                            modifyRemove( partitionTxn, id, entry, attrMods );
+                            break;
     
-                    case REPLACE_ATTRIBUTE:
-                        modifyReplace( partitionTxn, id, entry, attrMods );
-                        break;
+                        case REPLACE_ATTRIBUTE:
+                            modifyReplace( partitionTxn, id, entry, attrMods );
+                            break;
     
-                    default:
-                        throw new LdapException( I18n.err( I18n.ERR_221 ) );
+                        default:
+                            throw new LdapException( I18n.err( I18n.ERR_221 ) );
+                    }
+                }
+                catch ( IndexNotFoundException infe )
+                {
+                    throw new LdapOtherException( infe.getMessage(), infe );
                 }
             }
-            catch ( IndexNotFoundException infe )
-            {
-                throw new LdapOtherException( infe.getMessage(), infe );
-            }
-        }
 
-        updateCsnIndex( partitionTxn, entry, id );
+            updateCsnIndex( partitionTxn, entry, id );
+            updateNGramIndices( partitionTxn, id, oldGrams, getNGrams( entry ) );
+            updateStatistics( partitionTxn, oldKeys, getIndexedKeys( entry ) );
 
-        // Remove the EntryDN
-        entry.removeAttributes( entryDnAT );
+            // Remove the EntryDN
+            entry.removeAttributes( entryDnAT );
 
-        setContextCsn( entry.get( entryCsnAT ).getString() );
+            setContextCsn( entry.get( entryCsnAT ).getString() );
         
-        master.put( partitionTxn, id, entry );
+            master.put( partitionTxn, id, entry );
 
-        return entry;
+            return entry;
+        }
+        finally
+        {
+            writerLock.unlock();
+        }
     }
 
 
@@ -1920,104 +2743,113 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
      * {@inheritDoc}
      */
     @Override
-    public final synchronized void move( PartitionTxn partitionTxn, Dn oldDn, Dn newSuperiorDn, Dn newDn, Entry modifiedEntry )
+    public final void move( PartitionTxn partitionTxn, Dn oldDn, Dn newSuperiorDn, Dn newDn, Entry modifiedEntry )
         throws LdapException
     {
-        // Check that the parent Dn exists
-        String newParentId = getEntryId( partitionTxn, newSuperiorDn );
+        writerLock.lock();
 
-        if ( newParentId == null )
+        try
         {
-            // This is not allowed : the parent must exist
-            throw new LdapEntryAlreadyExistsException(
-                I18n.err( I18n.ERR_256_NO_SUCH_OBJECT, newSuperiorDn.getName() ) );
-        }
+            // Check that the parent Dn exists
+            String newParentId = getEntryId( partitionTxn, newSuperiorDn );
 
-        // Now check that the new entry does not exist
-        String newId = getEntryId( partitionTxn, newDn );
+            if ( newParentId == null )
+            {
+                // This is not allowed : the parent must exist
+                throw new LdapEntryAlreadyExistsException(
+                    I18n.err( I18n.ERR_256_NO_SUCH_OBJECT, newSuperiorDn.getName() ) );
+            }
 
-        if ( newId != null )
-        {
-            // This is not allowed : we should not be able to move an entry
-            // to an existing position
-            throw new LdapEntryAlreadyExistsException(
-                I18n.err( I18n.ERR_250_ENTRY_ALREADY_EXISTS, newSuperiorDn.getName() ) );
-        }
+            // Now check that the new entry does not exist
+            String newId = getEntryId( partitionTxn, newDn );
+
+            if ( newId != null )
+            {
+                // This is not allowed : we should not be able to move an entry
+                // to an existing position
+                throw new LdapEntryAlreadyExistsException(
+                    I18n.err( I18n.ERR_250_ENTRY_ALREADY_EXISTS, newSuperiorDn.getName() ) );
+            }
 
-        // Get the entry and the old parent IDs
-        String entryId = getEntryId( partitionTxn, oldDn );
-        String oldParentId = getParentId( partitionTxn, entryId );
+            // Get the entry and the old parent IDs
+            String entryId = getEntryId( partitionTxn, oldDn );
+            String oldParentId = getParentId( partitionTxn, entryId );
 
-        /*
-         * All aliases including and below oldChildDn, will be affected by
-         * the move operation with respect to one and subtree userIndices since
-         * their relationship to ancestors above oldChildDn will be
-         * destroyed.  For each alias below and including oldChildDn we will
-         * drop the index tuples mapping ancestor ids above oldChildDn to the
-         * respective target ids of the aliases.
-         */
-        dropMovedAliasIndices( partitionTxn, oldDn );
+            /*
+             * All aliases including and below oldChildDn, will be affected by
+             * the move operation with respect to one and subtree userIndices since
+             * their relationship to ancestors above oldChildDn will be
+             * destroyed.  For each alias below and including oldChildDn we will
+             * drop the index tuples mapping ancestor ids above oldChildDn to the
+             * respective target ids of the aliases.
+             */
+            dropMovedAliasIndices( partitionTxn, oldDn );
 
-        // Update the Rdn index
-        // First drop the old entry
-        ParentIdAndRdn movedEntry = rdnIdx.reverseLookup( partitionTxn, entryId );
+            // Update the Rdn index
+            // First drop the old entry
+            ParentIdAndRdn movedEntry = rdnIdx.reverseLookup( partitionTxn, entryId );
 
-        updateRdnIdx( partitionTxn, oldParentId, REMOVE_CHILD, movedEntry.getNbDescendants() );
+            updateRdnIdx( partitionTxn, oldParentId, REMOVE_CHILD, movedEntry.getNbDescendants() );
 
-        rdnIdx.drop( partitionTxn, entryId );
+            rdnIdx.drop( partitionTxn, entryId );
 
-        // Now, add the new entry at the right position
-        movedEntry.setParentId( newParentId );
-        rdnIdx.add( partitionTxn, movedEntry, entryId );
+            // Now, add the new entry at the right position
+            movedEntry.setParentId( newParentId );
+            rdnIdx.add( partitionTxn, movedEntry, entryId );
 
-        updateRdnIdx( partitionTxn, newParentId, ADD_CHILD, movedEntry.getNbDescendants() );
+            updateRdnIdx( partitionTxn, newParentId, ADD_CHILD, movedEntry.getNbDescendants() );
 
-        /*
-         * Read Alias Index Tuples
-         *
-         * If this is a name change due to a move operation then the one and
-         * subtree userIndices for aliases were purged before the aliases were
-         * moved.  Now we must add them for each alias entry we have moved.
-         *
-         * aliasTarget is used as a marker to tell us if we're moving an
-         * alias.  If it is null then the moved entry is not an alias.
-         */
-        Dn aliasTarget = aliasIdx.reverseLookup( partitionTxn, entryId );
+            /*
+             * Read Alias Index Tuples
+             *
+             * If this is a name change due to a move operation then the one and
+             * subtree userIndices for aliases were purged before the aliases were
+             * moved.  Now we must add them for each alias entry we have moved.
+             *
+             * aliasTarget is used as a marker to tell us if we're moving an
+             * alias.  If it is null then the moved entry is not an alias.
+             */
+            Dn aliasTarget = aliasIdx.reverseLookup( partitionTxn, entryId );
 
-        if ( null != aliasTarget )
-        {
-            if ( !aliasTarget.isSchemaAware() )
+            if ( null != aliasTarget )
             {
-                aliasTarget = new Dn( schemaManager, aliasTarget );
-            }
+                if ( !aliasTarget.isSchemaAware() )
+                {
+                    aliasTarget = new Dn( schemaManager, aliasTarget );
+                }
             
 
-            addAliasIndices( partitionTxn, entryId, buildEntryDn( partitionTxn, entryId ), aliasTarget );
-        }
+                addAliasIndices( partitionTxn, entryId, buildEntryDn( partitionTxn, entryId ), aliasTarget );
+            }
 
-        // the below case arises only when the move( Dn oldDn, Dn newSuperiorDn, Dn newDn  ) is called
-        // directly using the Store API, in this case the value of modified entry will be null
-        // we need to lookup the entry to update the parent UUID
-        if ( modifiedEntry == null )
-        {
-            modifiedEntry = fetch( partitionTxn, entryId );
-        }
+            // the below case arises only when the move( Dn oldDn, Dn newSuperiorDn, Dn newDn  ) is called
+            // directly using the Store API, in this case the value of modified entry will be null
+            // we need to lookup the entry to update the parent UUID
+            if ( modifiedEntry == null )
+            {
+                modifiedEntry = fetch( partitionTxn, entryId );
+            }
 
-        // Update the master table with the modified entry
-        modifiedEntry.put( ApacheSchemaConstants.ENTRY_PARENT_ID_AT, newParentId );
+            // Update the master table with the modified entry
+            modifiedEntry.put( ApacheSchemaConstants.ENTRY_PARENT_ID_AT, newParentId );
 
-        // Remove the EntryDN
-        modifiedEntry.removeAttributes( entryDnAT );
+            // Remove the EntryDN
+            modifiedEntry.removeAttributes( entryDnAT );
 
-        entryDnCache.clear();
+            invalidateDnCaches( partitionTxn, entryId );
         
-        setContextCsn( modifiedEntry.get( entryCsnAT ).getString() );
+            setContextCsn( modifiedEntry.get( entryCsnAT ).getString() );
 
-        master.put( partitionTxn, entryId, modifiedEntry );
+            master.put( partitionTxn, entryId, modifiedEntry );
 
-        if ( isSyncOnWrite.get() )
+            if ( isSyncOnWrite.get() )
+            {
+                sync();
+            }
+        }
+        finally
         {
-            sync();
+            writerLock.unlock();
         }
     }
 
@@ -2113,6 +2945,9 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         }
 
         String newParentId = getEntryId( partitionTxn, newSuperiorDn );
+        Entry originalEntry = master.get( partitionTxn, entryId );
+        Map<String, Set<String>> oldGrams = getNGrams( originalEntry );
+        Map<String, Set<String>> oldKeys = getIndexedKeys( originalEntry );
 
         //Get the info about the moved entry
         ParentIdAndRdn movedEntry = rdnIdx.reverseLookup( partitionTxn, entryId );
@@ -2186,8 +3021,11 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         modifiedEntry.removeAttributes( ApacheSchemaConstants.ENTRY_PARENT_ID_OID );
         modifiedEntry.add( ApacheSchemaConstants.ENTRY_PARENT_ID_OID, newParentId );
         
-        // Doom the DN cache now
-        entryDnCache.clear();
+        updateNGramIndices( partitionTxn, entryId, oldGrams, getNGrams( modifiedEntry ) );
+        updateStatistics( partitionTxn, oldKeys, getIndexedKeys( modifiedEntry ) );
+
+        // Doom the cached DNs of the moved subtree now
+        invalidateDnCaches( partitionTxn, entryId );
 
         setContextCsn( modifiedEntry.get( entryCsnAT ).getString() );
 
@@ -2311,6 +3149,10 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     private void rename( PartitionTxn partitionTxn, String oldId, Rdn newRdn, boolean deleteOldRdn, Entry entry ) 
         throws LdapException, IndexNotFoundException
     {
+        Entry originalEntry = master.get( partitionTxn, oldId );
+        Map<String, Set<String>> oldGrams = getNGrams( originalEntry );
+        Map<String, Set<String>> oldKeys = getIndexedKeys( originalEntry );
+
         if ( entry == null )
         {
             entry = master.get( partitionTxn, oldId );
@@ -2470,6 +3312,9 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             }
         }
 
+        updateNGramIndices( partitionTxn, oldId, oldGrams, getNGrams( entry ) );
+        updateStatistics( partitionTxn, oldKeys, getIndexedKeys( entry ) );
+
         // Remove the EntryDN
         entry.removeAttributes( entryDnAT );
 
@@ -2485,45 +3330,54 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
      */
     @SuppressWarnings("unchecked")
     @Override
-    public final synchronized void rename( PartitionTxn partitionTxn, Dn dn, Rdn newRdn, boolean deleteOldRdn, Entry entry ) 
+    public final void rename( PartitionTxn partitionTxn, Dn dn, Rdn newRdn, boolean deleteOldRdn, Entry entry ) 
         throws LdapException
     {
-        String oldId = getEntryId( partitionTxn, dn );
+        writerLock.lock();
 
         try
         {
-            rename( partitionTxn, oldId, newRdn, deleteOldRdn, entry );
-        }
-        catch ( IndexNotFoundException infe )
-        {
-            throw new LdapOtherException( infe.getMessage(), infe );
-        }
+            String oldId = getEntryId( partitionTxn, dn );
 
-        /*
-         * H A N D L E   D N   C H A N G E
-         * ====================================================================
-         * We only need to update the Rdn index.
-         * No need to calculate the new Dn.
-         */
-        String parentId = getParentId( partitionTxn, oldId );
+            try
+            {
+                rename( partitionTxn, oldId, newRdn, deleteOldRdn, entry );
+            }
+            catch ( IndexNotFoundException infe )
+            {
+                throw new LdapOtherException( infe.getMessage(), infe );
+            }
+
+            /*
+             * H A N D L E   D N   C H A N G E
+             * ====================================================================
+             * We only need to update the Rdn index.
+             * No need to calculate the new Dn.
+             */
+            String parentId = getParentId( partitionTxn, oldId );
 
-        // Get the old parentIdAndRdn to get the nb of children and descendant
-        ParentIdAndRdn parentIdAndRdn = rdnIdx.reverseLookup( partitionTxn, oldId );
+            // Get the old parentIdAndRdn to get the nb of children and descendant
+            ParentIdAndRdn parentIdAndRdn = rdnIdx.reverseLookup( partitionTxn, oldId );
 
-        // Now we can drop it
-        rdnIdx.drop( partitionTxn, oldId );
+            // Now we can drop it
+            rdnIdx.drop( partitionTxn, oldId );
 
-        // Update the descendants
-        parentIdAndRdn.setParentId( parentId );
-        parentIdAndRdn.setRdns( newRdn );
+            // Update the descendants
+            parentIdAndRdn.setParentId( parentId );
+            parentIdAndRdn.setRdns( newRdn );
 
-        rdnIdx.add( partitionTxn, parentIdAndRdn, oldId );
+            rdnIdx.add( partitionTxn, parentIdAndRdn, oldId );
 
-        entryDnCache.clear();
+            invalidateDnCaches( partitionTxn, oldId );
         
-        if ( isSyncOnWrite.get() )
+            if ( isSyncOnWrite.get() )
+            {
+                sync();
+            }
+        }
+        finally
         {
-            sync();
+            writerLock.unlock();
         }
     }
 
@@ -2592,6 +3446,173 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     // ------------------------------------------------------------------------
     // Index and master table Operations
     // ------------------------------------------------------------------------
+    /**
+     * Evicts the cached DNs of a renamed or moved entry and of its descendants, and
+     * refreshes their cached alias targets from the alias index : the alias cache is not
+     * backed by the index when it is read, so its entries can't be simply evicted.
+     * The other cached DNs are still valid, so we keep them. The cached ParentIdAndRdn of
+     * the entry is evicted too, as its parent ID or its RDN has changed : the
+     * ParentIdAndRdn of its descendants are not impacted.
+     * <br>
+     * The descendants are found by walking the subtree with the Rdn index, which is
+     * ordered by parent ID, so the cost depends on the subtree size and not on the cache
+     * size. When the subtree has more than MAX_DN_CACHE_SUBTREE_WALK descendants, we
+     * clear the DN cache and reload the alias cache instead. MUST be called after the Rdn
+     * and alias indexes have been updated.
+     *
+     * @param partitionTxn The transaction to use
+     * @param entryId The renamed or moved entry ID
+     * @throws LdapException If the Rdn index can't be read
+     */
+    private void invalidateDnCaches( PartitionTxn partitionTxn, String entryId ) throws LdapException
+    {
+        if ( piarCache != null )
+        {
+            piarCache.remove( entryId );
+        }
+
+        if ( ( entryDnCache == null ) && ( aliasCache == null ) )
+        {
+            return;
+        }
+
+        evictCachedDn( partitionTxn, entryId );
+
+        ParentIdAndRdn movedEntry = rdnIdx.reverseLookup( partitionTxn, entryId );
+
+        if ( ( movedEntry == null ) || ( movedEntry.getNbDescendants() == 0 ) )
+        {
+            return;
+        }
+
+        if ( movedEntry.getNbDescendants() > MAX_DN_CACHE_SUBTREE_WALK )
+        {
+            if ( entryDnCache != null )
+            {
+                entryDnCache.clear();
+            }
+
+            reloadAliasCache( partitionTxn );
+
+            return;
+        }
+
+        Deque<String> parentIds = new ArrayDeque<>();
+        parentIds.push( entryId );
+
+        while ( !parentIds.isEmpty() )
+        {
+            String parentId = parentIds.pop();
+            Cursor<IndexEntry<ParentIdAndRdn, String>> cursor = rdnIdx.forwardCursor( partitionTxn );
+
+            try
+            {
+                IndexEntry<ParentIdAndRdn, String> startingPos = new IndexEntry<>();
+                startingPos.setKey( new ParentIdAndRdn( parentId, ( Rdn[] ) null ) );
+                cursor.before( startingPos );
+
+                while ( cursor.next() )
+                {
+                    IndexEntry<ParentIdAndRdn, String> child = cursor.get();
+
+                    if ( !parentId.equals( child.getKey().getParentId() ) )
+                    {
+                        break;
+                    }
+
+                    evictCachedDn( partitionTxn, child.getId() );
+
+                    if ( child.getKey().getNbChildren() > 0 )
+                    {
+                        parentIds.push( child.getId() );
+                    }
+                }
+            }
+            catch ( CursorException ce )
+            {
+                throw new LdapOtherException( ce.getMessage(), ce );
+            }
+            finally
+            {
+                try
+                {
+                    cursor.close();
+                }
+                catch ( IOException ioe )
+                {
+                    LOG.error( ioe.getMessage(), ioe );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Evicts the cached Dn of an entry, and refreshes its cached alias target
+     */
+    private void evictCachedDn( PartitionTxn partitionTxn, String entryId ) throws LdapException
+    {
+        if ( entryDnCache != null )
+        {
+            entryDnCache.remove( entryId );
+        }
+
+        if ( aliasCache != null )
+        {
+            Dn aliasTarget = aliasIdx.reverseLookup( partitionTxn, entryId );
+
+            if ( aliasTarget == null )
+            {
+                aliasCache.remove( entryId );
+            }
+            else
+            {
+                aliasCache.put( entryId, aliasTarget );
+            }
+        }
+    }
+
+
+    /**
+     * Reloads the alias cache from the alias index
+     */
+    private void reloadAliasCache( PartitionTxn partitionTxn ) throws LdapException
+    {
+        if ( aliasCache == null )
+        {
+            return;
+        }
+
+        aliasCache.clear();
+
+        Cursor<IndexEntry<Dn, String>> cursor = aliasIdx.forwardCursor( partitionTxn );
+
+        try
+        {
+            while ( cursor.next() )
+            {
+                IndexEntry<Dn, String> alias = cursor.get();
+                aliasCache.put( alias.getId(), alias.getKey() );
+            }
+        }
+        catch ( CursorException ce )
+        {
+            throw new LdapOtherException( ce.getMessage(), ce );
+        }
+        finally
+        {
+            try
+            {
+                cursor.close();
+            }
+            catch ( IOException ioe )
+            {
+                LOG.error( ioe.getMessage(), ioe );
+            }
+        }
+    }
+
+
     /**
      * builds the Dn of the entry identified by the given id
      *
@@ -2613,7 +3634,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         
         try
         {
-            rwLock.readLock().lock();
+            lockRead( partitionTxn );
 
             if ( entryDnCache != null )
             {
@@ -2642,7 +3663,10 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                             return null;
                         }
                         
-                        piarCache.put( parentId, cur );
+                        if ( canFillCaches( partitionTxn ) )
+                        {
+                            piarCache.put( parentId, cur );
+                        }
                     }
                 }
                 else
@@ -2676,12 +3700,16 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             
             dn = new Dn( schemaManager, Arrays.copyOf( rdnArray, pos ) );
             
-            entryDnCache.put( id, dn );
+            if ( canFillCaches( partitionTxn ) )
+            {
+                entryDnCache.put( id, dn );
+            }
+
             return dn;
         }
         finally
         {
-            rwLock.readLock().unlock();
+            unlockRead( partitionTxn );
         }
     }
 
@@ -2743,7 +3771,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             // Check into the Rdn index, starting with the partition Suffix
             try
             {
-                rwLock.readLock().lock();
+                lockRead( partitionTxn );
                 String currentId = rdnIdx.forwardLookup( partitionTxn, suffixKey );
 
                 for ( int i = dn.size() - suffixDn.size(); i > 0; i-- )
@@ -2763,7 +3791,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             }
             finally
             {
-                rwLock.readLock().unlock();
+                unlockRead( partitionTxn );
             }
         }
         catch ( Exception e )
@@ -2781,7 +3809,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     {
         try
         {
-            rwLock.readLock().lock();
+            lockRead( partitionTxn );
             ParentIdAndRdn key = rdnIdx.reverseLookup( partitionTxn, childId );
 
             if ( key == null )
@@ -2793,7 +3821,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         }
         finally
         {
-            rwLock.readLock().unlock();
+            unlockRead( partitionTxn );
         }
     }
 
@@ -2813,12 +3841,12 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
             try
             {
-                rwLock.readLock().lock();
+                lockRead( partitionTxn );
                 suffixId = rdnIdx.forwardLookup( partitionTxn, key );
             }
             finally
             {
-                rwLock.readLock().unlock();
+                unlockRead( partitionTxn );
             }
         }
 
@@ -3087,6 +4115,43 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasNGramIndexOn( AttributeType attributeType )
+    {
+        return ngramIndices.containsKey( attributeType.getOid() );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public IndexStatistics getStatistics( AttributeType attributeType )
+    {
+        return statistics.get( attributeType.getOid() );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Index<String, String> getNGramIndex( AttributeType attributeType ) throws IndexNotFoundException
+    {
+        Index<String, String> ngramIndex = ngramIndices.get( attributeType.getOid() );
+
+        if ( ngramIndex == null )
+        {
+            throw new IndexNotFoundException( I18n.err( I18n.ERR_3, attributeType, attributeType ) );
+        }
+
+        return ngramIndex;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -3436,20 +4501,58 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
 
     /**
-     * Acquire a Read lock
+     * Tells if a transaction reads from a snapshot of the partition, in which case
+     * it does not have to be protected against concurrent writes.
+     * 
+     * @param partitionTxn The transaction to check
+     * @return <tt>true</tt> if the transaction is a snapshot read transaction
+     */
+    private static boolean isSnapshot( PartitionTxn partitionTxn )
+    {
+        return ( partitionTxn instanceof PartitionReadTxn ) && ( ( PartitionReadTxn ) partitionTxn ).isSnapshot();
+    }
+
+
+    /**
+     * Tells if the data read with a transaction can be stored in the shared caches. A
+     * snapshot reader does not hold the partition lock, and its snapshot may predate a
+     * rename or a move which has already invalidated the cached DNs : storing what it
+     * reads would put stale values back in the caches.
+     * 
+     * @param partitionTxn The transaction used to read the data
+     * @return <tt>true</tt> if the data can be cached
+     */
+    private static boolean canFillCaches( PartitionTxn partitionTxn )
+    {
+        return !isSnapshot( partitionTxn );
+    }
+
+
+    /**
+     * Acquire a Read lock, unless the transaction reads from a snapshot
+     * 
+     * @param partitionTxn The transaction to use
      */
-    private void lockRead()
+    private void lockRead( PartitionTxn partitionTxn )
     {
-        rwLock.readLock().lock();
+        if ( !isSnapshot( partitionTxn ) )
+        {
+            rwLock.readLock().lock();
+        }
     }
 
 
     /**
-     * Release a Read lock
+     * Release a Read lock acquired with {@link #lockRead(PartitionTxn)}
+     * 
+     * @param partitionTxn The transaction to use
      */
-    private void unlockRead()
+    private void unlockRead( PartitionTxn partitionTxn )
     {
-        rwLock.readLock().unlock();
+        if ( !isSnapshot( partitionTxn ) )
+        {
+            rwLock.readLock().unlock();
+        }
     }
 
 
@@ -3544,7 +4647,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     {
         if ( operationContext.getSession() != null )
         {
-            rwLock = operationContext.getSession().getDirectoryService().getOperationManager().getRWLock();
+            rwLock = operationContext.getSession().getDirectoryService().getOperationManager().getRWLock( this );
         }
         else
         {
@@ -3699,7 +4802,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             // Check into the Rdn index, starting with the partition Suffix
             try
             {
-                rwLock.readLock().lock();
+                lockRead( partitionTxn );
                 ParentIdAndRdn parentIdAndRdn = rdnIdx.reverseLookup( partitionTxn, entry.get( SchemaConstants.ENTRY_UUID_AT ).getString() );
 
                 subordinates.setNbChildren( parentIdAndRdn.getNbChildren() );
@@ -3707,7 +4810,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             }
             finally
             {
-                rwLock.readLock().unlock();
+                unlockRead( partitionTxn );
             }
         }
         catch ( Exception e )
@@ -49,6 +49,9 @@ public abstract class AbstractIndex<K, E> implements Index<K, E>
     /** Tells if this index has a Reverse table */
     protected boolean withReverse;
 
+    /** Tells if a trigram index is maintained for this attribute */
+    protected boolean substringIndexed;
+
     /** A counter used to differ the commit on disk after N operations */
     protected AtomicInteger commitNumber;
 
@@ -162,4 +165,23 @@ public abstract class AbstractIndex<K, E> implements Index<K, E>
     {
         return withReverse;
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isSubstringIndexed()
+    {
+        return substringIndexed;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setSubstringIndexed( boolean substringIndexed )
+    {
+        protect( "substringIndexed" );
+        this.substringIndexed = substringIndexed;
+    }
 }
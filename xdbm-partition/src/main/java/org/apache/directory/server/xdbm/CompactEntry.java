@@ -0,0 +1,892 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.core.api.entry.LazyEntry;
+
+
+/**
+ * An entry read from the {@link CompactEntryCodec} format. Its attributes stay encoded
+ * until they are accessed : an attribute read by its type is decoded alone, while the
+ * methods returning all the attributes decode all of them. The encoded attributes are
+ * shared by the clones, so that cloning the entry does not decode it.
+ * <br><br>
+ * The entries are stored in the backend caches, and read by many threads : all the
+ * methods are synchronized.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public final class CompactEntry implements LazyEntry
+{
+    private static final long serialVersionUID = 1L;
+
+    /** The SchemaManager */
+    private final transient SchemaManager schemaManager;
+
+    /** The decoded attributes */
+    private final Entry entry;
+
+    /** The buffer containing the encoded attributes. It is never modified */
+    private final byte[] buffer;
+
+    /** The type of each encoded attribute, set to null once it has been decoded or removed */
+    private final AttributeType[] types;
+
+    /** The position of each encoded attribute in the buffer */
+    private final int[] offsets;
+
+    /** The length of each encoded attribute */
+    private final int[] lengths;
+
+    /** The number of attributes still encoded */
+    private int pending;
+
+
+    /**
+     * Creates a new instance of CompactEntry.
+     *
+     * @param schemaManager The SchemaManager
+     * @param dn The entry Dn
+     * @param buffer The buffer containing the encoded attributes
+     * @param types The type of each encoded attribute
+     * @param offsets The position of each encoded attribute in the buffer
+     * @param lengths The length of each encoded attribute
+     */
+    CompactEntry( SchemaManager schemaManager, Dn dn, byte[] buffer, AttributeType[] types, int[] offsets,
+        int[] lengths )
+    {
+        this( schemaManager, new DefaultEntry( schemaManager ), buffer, types, offsets, lengths );
+        entry.setDn( dn );
+    }
+
+
+    private CompactEntry( SchemaManager schemaManager, Entry entry, byte[] buffer, AttributeType[] types,
+        int[] offsets, int[] lengths )
+    {
+        this.schemaManager = schemaManager;
+        this.entry = entry;
+        this.buffer = buffer;
+        this.types = types;
+        this.offsets = offsets;
+        this.lengths = lengths;
+
+        for ( AttributeType type : types )
+        {
+            if ( type != null )
+            {
+                pending++;
+            }
+        }
+    }
+
+
+    /**
+     * Tells if an attribute has been decoded. An attribute which is not present in
+     * the entry is considered as decoded.
+     *
+     * @param attributeType The attribute type
+     * @return <tt>true</tt> if the attribute is not encoded anymore
+     */
+    public synchronized boolean isDecoded( AttributeType attributeType )
+    {
+        return indexOf( attributeType ) < 0;
+    }
+
+
+    /**
+     * Decodes the entry, keeping only some attributes.
+     *
+     * @param attributeOids The OIDs of the attributes to keep, or null to keep all of them
+     * @return The decoded entry
+     */
+    synchronized Entry select( Collection<String> attributeOids ) throws IOException
+    {
+        for ( int i = 0; i < types.length; i++ )
+        {
+            if ( types[i] != null )
+            {
+                if ( ( attributeOids == null ) || attributeOids.contains( types[i].getOid() ) )
+                {
+                    decodeAt( i );
+                }
+                else
+                {
+                    discardAt( i );
+                }
+            }
+        }
+
+        return entry;
+    }
+
+
+    private int indexOf( AttributeType attributeType )
+    {
+        if ( ( pending == 0 ) || ( attributeType == null ) )
+        {
+            return -1;
+        }
+
+        for ( int i = 0; i < types.length; i++ )
+        {
+            if ( attributeType.equals( types[i] ) )
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+
+    private void decodeAt( int i ) throws IOException
+    {
+        Attribute attribute = CompactEntryCodec.decodeAttribute( types[i], buffer, offsets[i], lengths[i] );
+        discardAt( i );
+
+        try
+        {
+            entry.add( attribute );
+        }
+        catch ( LdapException le )
+        {
+            throw new IOException( le.getMessage(), le );
+        }
+    }
+
+
+    private void discardAt( int i )
+    {
+        types[i] = null;
+        pending--;
+    }
+
+
+    /**
+     * Decodes an attribute, if it's still encoded.
+     */
+    private void decode( AttributeType attributeType )
+    {
+        int i = indexOf( attributeType );
+
+        if ( i >= 0 )
+        {
+            try
+            {
+                decodeAt( i );
+            }
+            catch ( IOException ioe )
+            {
+                throw new IllegalStateException( ioe.getMessage(), ioe );
+            }
+        }
+    }
+
+
+    /**
+     * Decodes an attribute given its name, or all of them if the name is unknown.
+     */
+    private void decodeId( String id )
+    {
+        AttributeType attributeType = getAttributeType( id );
+
+        if ( attributeType == null )
+        {
+            decodeAll();
+        }
+        else
+        {
+            decode( attributeType );
+        }
+    }
+
+
+    /**
+     * Decodes the attributes of the given attributes types.
+     */
+    private void decodeTypes( Attribute... attributes )
+    {
+        for ( Attribute attribute : attributes )
+        {
+            if ( attribute.getAttributeType() == null )
+            {
+                decodeAll();
+
+                return;
+            }
+
+            decode( attribute.getAttributeType() );
+        }
+    }
+
+
+    /**
+     * Decodes all the attributes still encoded.
+     */
+    private void decodeAll()
+    {
+        for ( int i = 0; ( i < types.length ) && ( pending > 0 ); i++ )
+        {
+            if ( types[i] != null )
+            {
+                try
+                {
+                    decodeAt( i );
+                }
+                catch ( IOException ioe )
+                {
+                    throw new IllegalStateException( ioe.getMessage(), ioe );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Forgets an encoded attribute, as it's replaced or removed.
+     */
+    private void discard( AttributeType attributeType )
+    {
+        int i = indexOf( attributeType );
+
+        if ( i >= 0 )
+        {
+            discardAt( i );
+        }
+    }
+
+
+    /**
+     * Forgets an encoded attribute given its name, or decodes all of them if the
+     * name is unknown.
+     */
+    private void discardId( String id )
+    {
+        AttributeType attributeType = getAttributeType( id );
+
+        if ( attributeType == null )
+        {
+            decodeAll();
+        }
+        else
+        {
+            discard( attributeType );
+        }
+    }
+
+
+    private AttributeType getAttributeType( String id )
+    {
+        if ( ( id == null ) || ( pending == 0 ) )
+        {
+            return null;
+        }
+
+        // Remove the options, if any
+        int pos = id.indexOf( ';' );
+
+        return schemaManager.getAttributeType( pos < 0 ? id.trim() : id.substring( 0, pos ).trim() );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized Collection<AttributeType> getAttributeTypes()
+    {
+        List<AttributeType> attributeTypes = new ArrayList<>( entry.size() + pending );
+
+        for ( Attribute attribute : entry )
+        {
+            attributeTypes.add( attribute.getAttributeType() );
+        }
+
+        for ( AttributeType type : types )
+        {
+            if ( type != null )
+            {
+                attributeTypes.add( type );
+            }
+        }
+
+        return attributeTypes;
+    }
+
+
+    @Override
+    public synchronized Entry add( AttributeType attributeType, byte[]... values ) throws LdapException
+    {
+        decode( attributeType );
+        entry.add( attributeType, values );
+
+        return this;
+    }
+
+
+    @Override
+    public synchronized Entry add( AttributeType attributeType, String... values ) throws LdapException
+    {
+        decode( attributeType );
+        entry.add( attributeType, values );
+
+        return this;
+    }
+
+
+    @Override
+    public synchronized Entry add( AttributeType attributeType, Value... values ) throws LdapException
+    {
+        decode( attributeType );
+        entry.add( attributeType, values );
+
+        return this;
+    }
+
+
+    @Override
+    public synchronized Entry add( String upId, AttributeType attributeType, byte[]... values ) throws LdapException
+    {
+        decode( attributeType );
+        entry.add( upId, attributeType, values );
+
+        return this;
+    }
+
+
+    @Override
+    public synchronized Entry add( String upId, AttributeType attributeType, String... values ) throws LdapException
+    {
+        decode( attributeType );
+        entry.add( upId, attributeType, values );
+
+        return this;
+    }
+
+
+    @Override
+    public synchronized Entry add( String upId, AttributeType attributeType, Value... values ) throws LdapException
+    {
+        decode( attributeType );
+        entry.add( upId, attributeType, values );
+
+        return this;
+    }
+
+
+    @Override
+    public synchronized Entry add( Attribute... attributes ) throws LdapException
+    {
+        decodeTypes( attributes );
+        entry.add( attributes );
+
+        return this;
+    }
+
+
+    @Override
+    public synchronized Entry add( String upId, String... values ) throws LdapException
+    {
+        decodeId( upId );
+        entry.add( upId, values );
+
+        return this;
+    }
+
+
+    @Override
+    public synchronized Entry add( String upId, byte[]... values ) throws LdapException
+    {
+        decodeId( upId );
+        entry.add( upId, values );
+
+        return this;
+    }
+
+
+    @Override
+    public synchronized Entry add( String upId, Value... values ) throws LdapException
+    {
+        decodeId( upId );
+        entry.add( upId, values );
+
+        return this;
+    }
+
+
+    @Override
+    public synchronized boolean contains( AttributeType attributeType, byte[]... values )
+    {
+        decode( attributeType );
+
+        return entry.contains( attributeType, values );
+    }
+
+
+    @Override
+    public synchronized boolean contains( AttributeType attributeType, String... values )
+    {
+        decode( attributeType );
+
+        return entry.contains( attributeType, values );
+    }
+
+
+    @Override
+    public synchronized boolean contains( AttributeType attributeType, Value... values )
+    {
+        decode( attributeType );
+
+        return entry.contains( attributeType, values );
+    }
+
+
+    @Override
+    public synchronized boolean contains( Attribute... attributes )
+    {
+        decodeTypes( attributes );
+
+        return entry.contains( attributes );
+    }
+
+
+    @Override
+    public synchronized boolean contains( String upId, byte[]... values )
+    {
+        decodeId( upId );
+
+        return entry.contains( upId, values );
+    }
+
+
+    @Override
+    public synchronized boolean contains( String upId, String... values )
+    {
+        decodeId( upId );
+
+        return entry.contains( upId, values );
+    }
+
+
+    @Override
+    public synchronized boolean contains( String upId, Value... values )
+    {
+        decodeId( upId );
+
+        return entry.contains( upId, values );
+    }
+
+
+    @Override
+    public synchronized boolean containsAttribute( AttributeType attributeType )
+    {
+        return ( indexOf( attributeType ) >= 0 ) || entry.containsAttribute( attributeType );
+    }
+
+
+    @Override
+    public synchronized boolean containsAttribute( String... attributes )
+    {
+        for ( String attribute : attributes )
+        {
+            decodeId( attribute );
+        }
+
+        return entry.containsAttribute( attributes );
+    }
+
+
+    @Override
+    public synchronized Attribute get( AttributeType attributeType )
+    {
+        decode( attributeType );
+
+        return entry.get( attributeType );
+    }
+
+
+    @Override
+    public synchronized Attribute get( String alias )
+    {
+        decodeId( alias );
+
+        return entry.get( alias );
+    }
+
+
+    @Override
+    public synchronized Collection<Attribute> getAttributes()
+    {
+        decodeAll();
+
+        return entry.getAttributes();
+    }
+
+
+    @Override
+    public synchronized boolean hasObjectClass( String... objectClasses )
+    {
+        decodeId( SchemaConstants.OBJECT_CLASS_AT );
+
+        return entry.hasObjectClass( objectClasses );
+    }
+
+
+    @Override
+    public synchronized boolean hasObjectClass( Attribute... objectClasses )
+    {
+        decodeId( SchemaConstants.OBJECT_CLASS_AT );
+
+        return entry.hasObjectClass( objectClasses );
+    }
+
+
+    @Override
+    public synchronized Attribute put( AttributeType attributeType, byte[]... values ) throws LdapException
+    {
+        discard( attributeType );
+
+        return entry.put( attributeType, values );
+    }
+
+
+    @Override
+    public synchronized Attribute put( AttributeType attributeType, String... values ) throws LdapException
+    {
+        discard( attributeType );
+
+        return entry.put( attributeType, values );
+    }
+
+
+    @Override
+    public synchronized Attribute put( AttributeType attributeType, Value... values ) throws LdapException
+    {
+        discard( attributeType );
+
+        return entry.put( attributeType, values );
+    }
+
+
+    @Override
+    public synchronized Attribute put( String upId, AttributeType attributeType, byte[]... values )
+        throws LdapException
+    {
+        discard( attributeType );
+
+        return entry.put( upId, attributeType, values );
+    }
+
+
+    @Override
+    public synchronized Attribute put( String upId, AttributeType attributeType, String... values )
+        throws LdapException
+    {
+        discard( attributeType );
+
+        return entry.put( upId, attributeType, values );
+    }
+
+
+    @Override
+    public synchronized Attribute put( String upId, AttributeType attributeType, Value... values )
+        throws LdapException
+    {
+        discard( attributeType );
+
+        return entry.put( upId, attributeType, values );
+    }
+
+
+    @Override
+    public synchronized List<Attribute> put( Attribute... attributes ) throws LdapException
+    {
+        // The replaced attributes are returned
+        decodeTypes( attributes );
+
+        return entry.put( attributes );
+    }
+
+
+    @Override
+    public synchronized Attribute put( String upId, byte[]... values )
+    {
+        discardId( upId );
+
+        return entry.put( upId, values );
+    }
+
+
+    @Override
+    public synchronized Attribute put( String upId, String... values )
+    {
+        discardId( upId );
+
+        return entry.put( upId, values );
+    }
+
+
+    @Override
+    public synchronized Attribute put( String upId, Value... values )
+    {
+        discardId( upId );
+
+        return entry.put( upId, values );
+    }
+
+
+    @Override
+    public synchronized boolean remove( AttributeType attributeType, byte[]... values ) throws LdapException
+    {
+        decode( attributeType );
+
+        return entry.remove( attributeType, values );
+    }
+
+
+    @Override
+    public synchronized boolean remove( AttributeType attributeType, String... values ) throws LdapException
+    {
+        decode( attributeType );
+
+        return entry.remove( attributeType, values );
+    }
+
+
+    @Override
+    public synchronized boolean remove( AttributeType attributeType, Value... values ) throws LdapException
+    {
+        decode( attributeType );
+
+        return entry.remove( attributeType, values );
+    }
+
+
+    @Override
+    public synchronized List<Attribute> remove( Attribute... attributes ) throws LdapException
+    {
+        decodeTypes( attributes );
+
+        return entry.remove( attributes );
+    }
+
+
+    @Override
+    public synchronized boolean remove( String upId, byte[]... values ) throws LdapException
+    {
+        decodeId( upId );
+
+        return entry.remove( upId, values );
+    }
+
+
+    @Override
+    public synchronized boolean remove( String upId, String... values ) throws LdapException
+    {
+        decodeId( upId );
+
+        return entry.remove( upId, values );
+    }
+
+
+    @Override
+    public synchronized boolean remove( String upId, Value... values ) throws LdapException
+    {
+        decodeId( upId );
+
+        return entry.remove( upId, values );
+    }
+
+
+    @Override
+    public synchronized void removeAttributes( AttributeType... attributes )
+    {
+        for ( AttributeType attributeType : attributes )
+        {
+            discard( attributeType );
+        }
+
+        entry.removeAttributes( attributes );
+    }
+
+
+    @Override
+    public synchronized void removeAttributes( String... attributes )
+    {
+        for ( String attribute : attributes )
+        {
+            discardId( attribute );
+        }
+
+        entry.removeAttributes( attributes );
+    }
+
+
+    @Override
+    public synchronized void clear()
+    {
+        for ( int i = 0; i < types.length; i++ )
+        {
+            types[i] = null;
+        }
+
+        pending = 0;
+        entry.clear();
+    }
+
+
+    @Override
+    public synchronized Dn getDn()
+    {
+        return entry.getDn();
+    }
+
+
+    @Override
+    public synchronized void setDn( Dn dn )
+    {
+        entry.setDn( dn );
+    }
+
+
+    @Override
+    public synchronized void setDn( String dn ) throws LdapInvalidDnException
+    {
+        entry.setDn( dn );
+    }
+
+
+    @Override
+    public synchronized boolean isSchemaAware()
+    {
+        return entry.isSchemaAware();
+    }
+
+
+    @Override
+    public synchronized Iterator<Attribute> iterator()
+    {
+        decodeAll();
+
+        return entry.iterator();
+    }
+
+
+    @Override
+    public synchronized int size()
+    {
+        return entry.size() + pending;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     *
+     * The clone shares the encoded attributes, which are decoded separately.
+     */
+    @Override
+    public synchronized Entry clone()
+    {
+        return new CompactEntry( schemaManager, entry.clone(), buffer, types.clone(), offsets, lengths );
+    }
+
+
+    @Override
+    public synchronized Entry shallowClone()
+    {
+        return new CompactEntry( schemaManager, entry.shallowClone(), buffer, types.clone(), offsets, lengths );
+    }
+
+
+    @Override
+    public synchronized void writeExternal( ObjectOutput out ) throws IOException
+    {
+        decodeAll();
+        entry.writeExternal( out );
+    }
+
+
+    @Override
+    public synchronized void readExternal( ObjectInput in ) throws IOException, ClassNotFoundException
+    {
+        clear();
+        entry.readExternal( in );
+    }
+
+
+    @Override
+    public synchronized int hashCode()
+    {
+        decodeAll();
+
+        return entry.hashCode();
+    }
+
+
+    @Override
+    public synchronized boolean equals( Object obj )
+    {
+        if ( this == obj )
+        {
+            return true;
+        }
+
+        decodeAll();
+
+        return entry.equals( obj );
+    }
+
+
+    @Override
+    public synchronized String toString()
+    {
+        decodeAll();
+
+        return entry.toString();
+    }
+
+
+    @Override
+    public synchronized String toString( String tabs )
+    {
+        decodeAll();
+
+        return entry.toString( tabs );
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+
+
+/**
+ * Encodes and decodes the entries stored in the master tables, using a compact binary
+ * format. Only the entry's Rdn is stored, like in the previous format.
+ * <br><br>
+ * The structure is the following :
+ * <ul>
+ *   <li><b>[a byte]</b> : the format marker, {@link #FORMAT_MARKER}</li>
+ *   <li><b>[a byte]</b> : the format version</li>
+ *   <li><b>[an int]</b> : the Rdn length, -1 if the Dn is empty</li>
+ *   <li><b>[Rdn]</b> : the entry's Rdn</li>
+ *   <li><b>[an int]</b> : the number of attributes</li>
+ *   <li>The attribute table. For each attribute :
+ *     <ul>
+ *       <li><b>[a short]</b> : the attribute type ordinal, or 0 if it has none</li>
+ *       <li><b>[attribute's oid]</b> : the attribute type OID, only when the ordinal is 0</li>
+ *       <li><b>[an int]</b> : the length of the attribute</li>
+ *     </ul>
+ *   </li>
+ *   <li>The attributes, in the table order</li>
+ * </ul>
+ * The table gives the offset of each attribute, so that the attributes which are not
+ * needed can be skipped without being decoded. The backends read the entries using
+ * {@link #decodeLazily(SchemaManager, byte[], int)}, which only decodes an attribute
+ * when it's accessed.<br>
+ * The ordinals are assigned to the most common attribute types, so that their OID is not
+ * stored in each entry. The ordinals are part of the format : they can only be appended.
+ * <br><br>
+ * The entries written with an ObjectOutputStream by the previous versions start with the
+ * stream magic number, which is never a valid format marker.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public final class CompactEntryCodec
+{
+    /** The first byte of an entry encoded with this codec */
+    public static final byte FORMAT_MARKER = 0x01;
+
+    /** The current format version */
+    public static final byte VERSION = 1;
+
+    /** The ordinal written for the attribute types having no ordinal */
+    private static final short NO_ORDINAL = 0;
+
+    /** The attribute types OIDs, by ordinal. Only append to this list */
+    private static final String[] ORDINAL_OIDS =
+        {
+            null,
+            // objectClass, cn, sn, ou, o
+            "2.5.4.0",
+            "2.5.4.3",
+            "2.5.4.4",
+            "2.5.4.11",
+            "2.5.4.10",
+            // uid, dc, mail
+            "0.9.2342.19200300.100.1.1",
+            "0.9.2342.19200300.100.1.25",
+            "0.9.2342.19200300.100.1.3",
+            // userPassword, description, givenName, telephoneNumber
+            "2.5.4.35",
+            "2.5.4.13",
+            "2.5.4.42",
+            "2.5.4.20",
+            // member, uniqueMember
+            "2.5.4.31",
+            "2.5.4.50",
+            // entryUUID, entryCSN
+            "1.3.6.1.1.16.4",
+            "1.3.6.1.4.1.4203.666.1.7",
+            // createTimestamp, modifyTimestamp, creatorsName, modifiersName
+            "2.5.18.1",
+            "2.5.18.2",
+            "2.5.18.3",
+            "2.5.18.4",
+            // administrativeRole, subtreeSpecification
+            "2.5.18.5",
+            "2.5.18.6"
+    };
+
+    /** The ordinals, by attribute type OID */
+    private static final Map<String, Short> ORDINALS = new HashMap<>();
+
+    static
+    {
+        for ( short ordinal = 1; ordinal < ORDINAL_OIDS.length; ordinal++ )
+        {
+            ORDINALS.put( ORDINAL_OIDS[ordinal], ordinal );
+        }
+    }
+
+
+    private CompactEntryCodec()
+    {
+    }
+
+
+    /**
+     * Tells if some bytes contain an entry encoded with this codec.
+     *
+     * @param buffer The buffer containing the encoded entry
+     * @param pos The position of the entry in the buffer
+     * @return <tt>true</tt> if the entry has been encoded by this codec, <tt>false</tt>
+     * if it has been written by an ObjectOutputStream
+     */
+    public static boolean isCompact( byte[] buffer, int pos )
+    {
+        return ( buffer.length > pos ) && ( buffer[pos] == FORMAT_MARKER );
+    }
+
+
+    /**
+     * Encodes an entry.
+     *
+     * @param entry The entry to encode
+     * @return The encoded entry
+     * @throws IOException If the entry can't be encoded
+     */
+    public static byte[] encode( Entry entry ) throws IOException
+    {
+        Collection<Attribute> attributes = entry.getAttributes();
+        ByteArrayOutputStream bodies = new ByteArrayOutputStream();
+        DataObjectOutput bodiesOut = new DataObjectOutput( bodies );
+        int[] lengths = new int[attributes.size()];
+        int i = 0;
+
+        for ( Attribute attribute : attributes )
+        {
+            int start = bodiesOut.size();
+            attribute.writeExternal( bodiesOut );
+            lengths[i++] = bodiesOut.size() - start;
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream( bodies.size() + 64 + 8 * lengths.length );
+        DataObjectOutput out = new DataObjectOutput( baos );
+
+        out.writeByte( FORMAT_MARKER );
+        out.writeByte( VERSION );
+
+        // The Rdn, prefixed by its length
+        Dn dn = entry.getDn();
+
+        if ( dn.isEmpty() )
+        {
+            out.writeInt( -1 );
+        }
+        else
+        {
+            ByteArrayOutputStream rdnBytes = new ByteArrayOutputStream();
+            DataObjectOutput rdnOut = new DataObjectOutput( rdnBytes );
+            dn.getRdn().writeExternal( rdnOut );
+            rdnOut.flush();
+
+            out.writeInt( rdnBytes.size() );
+            rdnBytes.writeTo( out );
+        }
+
+        // The attribute table
+        out.writeInt( lengths.length );
+        i = 0;
+
+        for ( Attribute attribute : attributes )
+        {
+            String oid = attribute.getAttributeType().getOid();
+            Short ordinal = ORDINALS.get( oid );
+
+            if ( ordinal == null )
+            {
+                out.writeShort( NO_ORDINAL );
+                out.writeUTF( oid );
+            }
+            else
+            {
+                out.writeShort( ordinal );
+            }
+
+            out.writeInt( lengths[i++] );
+        }
+
+        // The attributes
+        bodiesOut.flush();
+        bodies.writeTo( out );
+        out.flush();
+
+        return baos.toByteArray();
+    }
+
+
+    /**
+     * Decodes an entry.
+     *
+     * @param schemaManager The SchemaManager
+     * @param buffer The buffer containing the encoded entry
+     * @param pos The position of the entry in the buffer
+     * @return The decoded entry, its Dn being its Rdn
+     * @throws IOException If the entry can't be decoded
+     */
+    public static Entry decode( SchemaManager schemaManager, byte[] buffer, int pos ) throws IOException
+    {
+        return decode( schemaManager, buffer, pos, null );
+    }
+
+
+    /**
+     * Decodes an entry, skipping the attributes which are not needed.
+     *
+     * @param schemaManager The SchemaManager
+     * @param buffer The buffer containing the encoded entry
+     * @param pos The position of the entry in the buffer
+     * @param attributeOids The OIDs of the attributes to decode, or null to decode all of them
+     * @return The decoded entry, its Dn being its Rdn
+     * @throws IOException If the entry can't be decoded
+     */
+    public static Entry decode( SchemaManager schemaManager, byte[] buffer, int pos,
+        Collection<String> attributeOids ) throws IOException
+    {
+        return decodeLazily( schemaManager, buffer, pos ).select( attributeOids );
+    }
+
+
+    /**
+     * Decodes an entry's Dn and attribute table only. The attributes are decoded when
+     * they are first accessed, so that the attributes which are never read are never
+     * decoded.
+     *
+     * @param schemaManager The SchemaManager
+     * @param buffer The buffer containing the encoded entry. It must not be modified
+     * afterwards, unless the entry does not span the whole buffer : it's then copied
+     * @param pos The position of the entry in the buffer
+     * @return The entry, its Dn being its Rdn
+     * @throws IOException If the entry can't be decoded
+     */
+    public static CompactEntry decodeLazily( SchemaManager schemaManager, byte[] buffer, int pos )
+        throws IOException
+    {
+        ByteArrayInputStream bais = new ByteArrayInputStream( buffer, pos, buffer.length - pos );
+        DataObjectInput in = new DataObjectInput( bais );
+
+        if ( in.readByte() != FORMAT_MARKER )
+        {
+            throw new IOException( "The entry has not been encoded with the compact format" );
+        }
+
+        byte version = in.readByte();
+
+        if ( version > VERSION )
+        {
+            throw new IOException( "Unsupported entry format version " + version );
+        }
+
+        try
+        {
+            // The Rdn
+            Dn dn;
+            int rdnLength = in.readInt();
+
+            if ( rdnLength >= 0 )
+            {
+                Rdn rdn = new Rdn( schemaManager );
+                rdn.readExternal( in );
+
+                try
+                {
+                    dn = new Dn( schemaManager, rdn );
+                }
+                catch ( LdapInvalidDnException lide )
+                {
+                    throw new IOException( lide.getMessage(), lide );
+                }
+            }
+            else
+            {
+                dn = Dn.EMPTY_DN;
+            }
+
+            // The attribute table
+            int nbAttributes = in.readInt();
+            AttributeType[] types = new AttributeType[nbAttributes];
+            int[] lengths = new int[nbAttributes];
+
+            for ( int i = 0; i < nbAttributes; i++ )
+            {
+                short ordinal = in.readShort();
+                String oid;
+
+                if ( ordinal == NO_ORDINAL )
+                {
+                    oid = in.readUTF();
+                }
+                else if ( ordinal < ORDINAL_OIDS.length )
+                {
+                    oid = ORDINAL_OIDS[ordinal];
+                }
+                else
+                {
+                    throw new IOException( "Unknown attribute type ordinal " + ordinal );
+                }
+
+                try
+                {
+                    types[i] = schemaManager.lookupAttributeTypeRegistry( oid );
+                }
+                catch ( LdapException ne )
+                {
+                    // We weren't able to find the OID
+                    throw new ClassNotFoundException( ne.getMessage(), ne );
+                }
+
+                lengths[i] = in.readInt();
+            }
+
+            // The attributes offsets, from the end of the table
+            int start = buffer.length - bais.available();
+            int end = start;
+            int[] offsets = new int[nbAttributes];
+
+            for ( int i = 0; i < nbAttributes; i++ )
+            {
+                if ( ( lengths[i] < 0 ) || ( lengths[i] > buffer.length - end ) )
+                {
+                    throw new IOException( "The entry is truncated" );
+                }
+
+                offsets[i] = end;
+                end += lengths[i];
+            }
+
+            // Don't keep a reference on a buffer containing more than the entry
+            byte[] attributes = buffer;
+
+            if ( ( start != 0 ) || ( end != buffer.length ) )
+            {
+                attributes = Arrays.copyOfRange( buffer, start, end );
+
+                for ( int i = 0; i < nbAttributes; i++ )
+                {
+                    offsets[i] -= start;
+                }
+            }
+
+            return new CompactEntry( schemaManager, dn, attributes, types, offsets, lengths );
+        }
+        catch ( ClassNotFoundException cnfe )
+        {
+            throw new IOException( cnfe.getLocalizedMessage(), cnfe );
+        }
+    }
+
+
+    /**
+     * Decodes an attribute.
+     *
+     * @param attributeType The attribute type
+     * @param buffer The buffer containing the encoded attribute
+     * @param offset The position of the attribute in the buffer
+     * @param length The length of the encoded attribute
+     * @return The decoded attribute
+     * @throws IOException If the attribute can't be decoded
+     */
+    static Attribute decodeAttribute( AttributeType attributeType, byte[] buffer, int offset, int length )
+        throws IOException
+    {
+        DataObjectInput in = new DataObjectInput( new ByteArrayInputStream( buffer, offset, length ) );
+        Attribute attribute = new DefaultAttribute( attributeType );
+
+        try
+        {
+            attribute.readExternal( in );
+        }
+        catch ( ClassNotFoundException cnfe )
+        {
+            throw new IOException( cnfe.getLocalizedMessage(), cnfe );
+        }
+
+        return attribute;
+    }
+
+
+    /**
+     * An ObjectOutput writing only the primitive types, without the ObjectOutputStream
+     * headers and block markers.
+     */
+    private static final class DataObjectOutput extends DataOutputStream implements ObjectOutput
+    {
+        private DataObjectOutput( OutputStream out )
+        {
+            super( out );
+        }
+
+
+        @Override
+        public void writeObject( Object obj ) throws IOException
+        {
+            throw new IOException( "Objects can't be written in the compact entry format" );
+        }
+    }
+
+
+    /**
+     * An ObjectInput reading only the primitive types.
+     */
+    private static final class DataObjectInput extends DataInputStream implements ObjectInput
+    {
+        private DataObjectInput( InputStream in )
+        {
+            super( in );
+        }
+
+
+        @Override
+        public Object readObject() throws IOException
+        {
+            throw new IOException( "Objects can't be read from the compact entry format" );
+        }
+    }
+}
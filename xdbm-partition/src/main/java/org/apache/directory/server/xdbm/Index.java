@@ -345,4 +345,22 @@ public interface Index<K, E>
      * @return true if the index has a reverse table
      */
     boolean hasReverse();
+
+
+    /**
+     * Tells if the partition maintains a trigram index alongside this index, used
+     * to resolve substring assertions which have no initial component.
+     *
+     * @return true if a trigram index is associated with this index
+     */
+    boolean isSubstringIndexed();
+
+
+    /**
+     * Sets whether or not the partition maintains a trigram index alongside this
+     * index. This must be set before the index is initialized.
+     *
+     * @param substringIndexed true if a trigram index has to be maintained
+     */
+    void setSubstringIndexed( boolean substringIndexed );
 }
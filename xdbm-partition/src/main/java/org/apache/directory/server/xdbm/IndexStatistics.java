@@ -0,0 +1,627 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+
+
+/**
+ * The cardinality statistics of a user index, used by the cost based optimizer to
+ * estimate the number of candidates of a filter without reading the index. We keep :
+ * <ul>
+ *   <li>the number of key/ID tuples and the number of distinct keys</li>
+ *   <li>the most frequent keys, with their exact count</li>
+ *   <li>an equi-depth histogram, for attributes having an ORDERING matching rule</li>
+ * </ul>
+ * The statistics are computed by scanning the index once, then updated on each committed
+ * write without reading the index : the tuple count, the bucket counts and the count of
+ * the frequent keys are maintained, but the histogram boundaries, the set of frequent keys
+ * and the number of distinct keys of the other keys are not. The statistics are rebuilt
+ * when the index has changed too much since they were computed.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class IndexStatistics
+{
+    /** The number of frequent values we keep */
+    public static final int DEFAULT_TOP_N = 16;
+
+    /** The number of buckets in the histogram */
+    public static final int DEFAULT_BUCKETS = 32;
+
+    /** The version of the serialized form */
+    private static final int VERSION = 2;
+
+    /** The number of changes, or the count difference, always tolerated before a rebuild */
+    private static final long MIN_REBUILD_CHANGES = 1000L;
+
+    /** The keys longer than this are not kept in the frequent values nor as boundaries */
+    private static final int MAX_KEY_LENGTH = 1024;
+
+    /** The AttributeType the index is created for */
+    private final AttributeType attributeType;
+
+    /** The comparator used to order the keys, null if the attribute is not ordered */
+    private final Comparator<Object> comparator;
+
+    /** The number of key/ID tuples in the index */
+    private long totalCount;
+
+    /** The number of distinct keys in the index */
+    private long distinctKeys;
+
+    /** The number of tuples added or removed since the statistics have been computed */
+    private long changes;
+
+    /** The most frequent keys, and their count */
+    private Map<String, Long> frequentValues = new HashMap<>();
+
+    /** The upper bound of each bucket of the histogram, in ascending order */
+    private String[] boundaries = new String[0];
+
+    /** The number of tuples in each bucket of the histogram */
+    private long[] bucketCounts = new long[0];
+
+
+    /**
+     * Creates a new, empty, IndexStatistics instance
+     *
+     * @param attributeType The AttributeType the index is created for
+     */
+    @SuppressWarnings("unchecked")
+    public IndexStatistics( AttributeType attributeType )
+    {
+        this.attributeType = attributeType;
+
+        if ( ( attributeType.getOrdering() != null ) && ( attributeType.getEquality() != null ) )
+        {
+            comparator = ( Comparator<Object> ) attributeType.getEquality().getLdapComparator();
+        }
+        else
+        {
+            comparator = null;
+        }
+    }
+
+
+    /**
+     * @return The AttributeType the index is created for
+     */
+    public AttributeType getAttributeType()
+    {
+        return attributeType;
+    }
+
+
+    /**
+     * Computes the statistics by scanning the whole index.
+     *
+     * @param partitionTxn The transaction to use
+     * @param index The index to scan
+     * @throws LdapException If the index can't be read
+     */
+    public synchronized void build( PartitionTxn partitionTxn, Index<?, String> index ) throws LdapException
+    {
+        long total = index.count( partitionTxn );
+        long depth = Math.max( 1L, total / DEFAULT_BUCKETS );
+
+        PriorityQueue<KeyCount> topN = new PriorityQueue<>( DEFAULT_TOP_N + 1, new Comparator<KeyCount>()
+        {
+            @Override
+            public int compare( KeyCount kc1, KeyCount kc2 )
+            {
+                return Long.compare( kc1.count, kc2.count );
+            }
+        } );
+
+        List<String> newBoundaries = new ArrayList<>();
+        List<Long> newCounts = new ArrayList<>();
+        long distinct = 0L;
+        long tuples = 0L;
+        Object currentKey = null;
+        long currentCount = 0L;
+        long bucketCount = 0L;
+
+        Cursor<? extends IndexEntry<?, String>> cursor = index.forwardCursor( partitionTxn );
+
+        try
+        {
+            while ( cursor.next() )
+            {
+                Object key = cursor.get().getKey();
+                tuples++;
+
+                if ( ( currentKey != null ) && currentKey.equals( key ) )
+                {
+                    currentCount++;
+                    bucketCount++;
+                    continue;
+                }
+
+                if ( currentKey != null )
+                {
+                    offer( topN, currentKey, currentCount );
+
+                    // Close the bucket on a key change only, so that a key never spans two buckets
+                    if ( ( comparator != null ) && ( bucketCount >= depth ) && isKeptKey( currentKey ) )
+                    {
+                        newBoundaries.add( ( String ) currentKey );
+                        newCounts.add( bucketCount );
+                        bucketCount = 0L;
+                    }
+                }
+
+                currentKey = key;
+                currentCount = 1L;
+                bucketCount++;
+                distinct++;
+            }
+
+            if ( currentKey != null )
+            {
+                offer( topN, currentKey, currentCount );
+
+                if ( ( comparator != null ) && isKeptKey( currentKey ) )
+                {
+                    newBoundaries.add( ( String ) currentKey );
+                    newCounts.add( bucketCount );
+                }
+                else if ( !newCounts.isEmpty() )
+                {
+                    int last = newCounts.size() - 1;
+                    newCounts.set( last, newCounts.get( last ) + bucketCount );
+                }
+            }
+        }
+        catch ( CursorException ce )
+        {
+            throw new LdapOtherException( ce.getMessage(), ce );
+        }
+        finally
+        {
+            try
+            {
+                cursor.close();
+            }
+            catch ( IOException ioe )
+            {
+                // Nothing we can do
+            }
+        }
+
+        totalCount = tuples;
+        distinctKeys = distinct;
+        changes = 0L;
+        frequentValues = new HashMap<>();
+
+        for ( KeyCount keyCount : topN )
+        {
+            frequentValues.put( keyCount.key, keyCount.count );
+        }
+
+        boundaries = newBoundaries.toArray( new String[newBoundaries.size()] );
+        bucketCounts = new long[newCounts.size()];
+
+        for ( int i = 0; i < bucketCounts.length; i++ )
+        {
+            bucketCounts[i] = newCounts.get( i );
+        }
+    }
+
+
+    private boolean isKeptKey( Object key )
+    {
+        return ( key instanceof String ) && ( ( String ) key ).length() <= MAX_KEY_LENGTH;
+    }
+
+
+    private void offer( PriorityQueue<KeyCount> topN, Object key, long count )
+    {
+        if ( !isKeptKey( key ) )
+        {
+            return;
+        }
+
+        if ( topN.size() < DEFAULT_TOP_N )
+        {
+            topN.add( new KeyCount( ( String ) key, count ) );
+        }
+        else if ( topN.peek().count < count )
+        {
+            topN.poll();
+            topN.add( new KeyCount( ( String ) key, count ) );
+        }
+    }
+
+
+    /**
+     * Updates the statistics after a key/ID tuple has been added to the index.
+     *
+     * @param key The added key
+     */
+    public synchronized void added( String key )
+    {
+        totalCount++;
+        changes++;
+
+        Long keyCount = frequentValues.get( key );
+
+        if ( keyCount != null )
+        {
+            frequentValues.put( key, keyCount + 1L );
+        }
+
+        int bucket = findBucket( key );
+
+        if ( bucket >= 0 )
+        {
+            bucketCounts[bucket]++;
+        }
+    }
+
+
+    /**
+     * Updates the statistics after a key/ID tuple has been removed from the index.
+     *
+     * @param key The removed key
+     */
+    public synchronized void dropped( String key )
+    {
+        totalCount = Math.max( 0L, totalCount - 1L );
+        changes++;
+
+        Long keyCount = frequentValues.get( key );
+
+        if ( keyCount != null )
+        {
+            if ( keyCount <= 1L )
+            {
+                frequentValues.remove( key );
+                distinctKeys = Math.max( 0L, distinctKeys - 1L );
+            }
+            else
+            {
+                frequentValues.put( key, keyCount - 1L );
+            }
+        }
+
+        int bucket = findBucket( key );
+
+        if ( ( bucket >= 0 ) && ( bucketCounts[bucket] > 0L ) )
+        {
+            bucketCounts[bucket]--;
+        }
+    }
+
+
+    /**
+     * Tells if the statistics should be computed again : the number of changes since they
+     * were computed is above a quarter of the index size, or its number of tuples is more than 10%
+     * away from the one we have (some changes have not been saved).
+     *
+     * @param indexCount The number of tuples in the index
+     * @return true if the statistics should be computed again
+     */
+    public synchronized boolean needsRebuild( long indexCount )
+    {
+        if ( changes > Math.max( MIN_REBUILD_CHANGES, totalCount / 4L ) )
+        {
+            return true;
+        }
+
+        return Math.abs( totalCount - indexCount ) > Math.max( MIN_REBUILD_CHANGES, indexCount / 10L );
+    }
+
+
+    /**
+     * Finds the bucket containing a key : the first one which upper bound is above or
+     * equal to the key. The keys above the last boundary are counted in the last bucket.
+     *
+     * @param key The key
+     * @return The bucket position, or -1 if we have no histogram
+     */
+    private int findBucket( String key )
+    {
+        if ( ( comparator == null ) || ( boundaries.length == 0 ) )
+        {
+            return -1;
+        }
+
+        int low = 0;
+        int high = boundaries.length - 1;
+
+        while ( low < high )
+        {
+            int middle = ( low + high ) >>> 1;
+
+            if ( comparator.compare( boundaries[middle], key ) < 0 )
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+
+    /**
+     * @return The number of key/ID tuples in the index
+     */
+    public synchronized long getTotalCount()
+    {
+        return totalCount;
+    }
+
+
+    /**
+     * @return The number of distinct keys in the index
+     */
+    public synchronized long getDistinctKeys()
+    {
+        return distinctKeys;
+    }
+
+
+    /**
+     * @return true if we have a histogram for this index
+     */
+    public synchronized boolean hasHistogram()
+    {
+        return boundaries.length > 0;
+    }
+
+
+    /**
+     * Estimates the number of tuples having a given key. The count is exact for the
+     * frequent keys, otherwise we assume the remaining tuples are evenly spread on the
+     * remaining keys.
+     *
+     * @param key The normalized key
+     * @return The estimated number of tuples, at least 1
+     */
+    public synchronized long estimateEquality( String key )
+    {
+        Long count = frequentValues.get( key );
+
+        if ( count != null )
+        {
+            return Math.max( 1L, count );
+        }
+
+        long frequentTotal = 0L;
+
+        for ( Long frequentCount : frequentValues.values() )
+        {
+            frequentTotal += frequentCount;
+        }
+
+        long otherKeys = distinctKeys - frequentValues.size();
+
+        if ( otherKeys <= 0L )
+        {
+            return 1L;
+        }
+
+        long otherTuples = Math.max( 0L, totalCount - frequentTotal );
+
+        return Math.max( 1L, ( otherTuples + otherKeys - 1L ) / otherKeys );
+    }
+
+
+    /**
+     * Estimates the number of tuples which key is above or equal to the given key.
+     *
+     * @param key The normalized key
+     * @return The estimated number of tuples, at least 1, or -1 if we have no histogram
+     */
+    public synchronized long estimateGreaterThan( String key )
+    {
+        int bucket = findBucket( key );
+
+        if ( bucket < 0 )
+        {
+            return -1L;
+        }
+
+        // We count half of the bucket containing the key
+        long count = ( bucketCounts[bucket] + 1L ) / 2L;
+
+        for ( int i = bucket + 1; i < bucketCounts.length; i++ )
+        {
+            count += bucketCounts[i];
+        }
+
+        return Math.max( 1L, count );
+    }
+
+
+    /**
+     * Estimates the number of tuples which key is below or equal to the given key.
+     *
+     * @param key The normalized key
+     * @return The estimated number of tuples, at least 1, or -1 if we have no histogram
+     */
+    public synchronized long estimateLessThan( String key )
+    {
+        int bucket = findBucket( key );
+
+        if ( bucket < 0 )
+        {
+            return -1L;
+        }
+
+        long count = ( bucketCounts[bucket] + 1L ) / 2L;
+
+        for ( int i = 0; i < bucket; i++ )
+        {
+            count += bucketCounts[i];
+        }
+
+        return Math.max( 1L, count );
+    }
+
+
+    /**
+     * Writes the statistics.
+     *
+     * @param out The output to write to
+     * @throws IOException If the statistics can't be written
+     */
+    public synchronized void write( DataOutput out ) throws IOException
+    {
+        out.writeInt( VERSION );
+        out.writeLong( totalCount );
+        out.writeLong( distinctKeys );
+        out.writeLong( changes );
+        out.writeInt( frequentValues.size() );
+
+        for ( Map.Entry<String, Long> entry : frequentValues.entrySet() )
+        {
+            writeString( out, entry.getKey() );
+            out.writeLong( entry.getValue() );
+        }
+
+        out.writeInt( boundaries.length );
+
+        for ( int i = 0; i < boundaries.length; i++ )
+        {
+            writeString( out, boundaries[i] );
+            out.writeLong( bucketCounts[i] );
+        }
+    }
+
+
+    /**
+     * Reads the statistics previously written with {@link #write(DataOutput)}.
+     *
+     * @param in The input to read from
+     * @return true if the statistics have been read, false if the format is unknown
+     * @throws IOException If the statistics can't be read
+     */
+    public synchronized boolean read( DataInput in ) throws IOException
+    {
+        if ( in.readInt() != VERSION )
+        {
+            return false;
+        }
+
+        totalCount = in.readLong();
+        distinctKeys = in.readLong();
+        changes = in.readLong();
+
+        int nbFrequent = in.readInt();
+        frequentValues = new HashMap<>();
+
+        for ( int i = 0; i < nbFrequent; i++ )
+        {
+            String key = readString( in );
+            frequentValues.put( key, in.readLong() );
+        }
+
+        int nbBuckets = in.readInt();
+        String[] newBoundaries = new String[nbBuckets];
+        long[] newCounts = new long[nbBuckets];
+
+        for ( int i = 0; i < nbBuckets; i++ )
+        {
+            newBoundaries[i] = readString( in );
+            newCounts[i] = in.readLong();
+        }
+
+        if ( comparator == null )
+        {
+            boundaries = new String[0];
+            bucketCounts = new long[0];
+        }
+        else
+        {
+            boundaries = newBoundaries;
+            bucketCounts = newCounts;
+        }
+
+        return true;
+    }
+
+
+    private static void writeString( DataOutput out, String value ) throws IOException
+    {
+        byte[] bytes = Strings.getBytesUtf8( value );
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+
+    private static String readString( DataInput in ) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully( bytes );
+
+        return Strings.utf8ToString( bytes );
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public synchronized String toString()
+    {
+        return "IndexStatistics<" + attributeType.getName() + "> : " + totalCount + " tuples, " + distinctKeys
+            + " distinct keys, " + boundaries.length + " buckets";
+    }
+
+
+    /**
+     * A key and the number of tuples having this key
+     */
+    private static final class KeyCount
+    {
+        private final String key;
+        private final long count;
+
+
+        private KeyCount( String key, long count )
+        {
+            this.key = key;
+            this.count = count;
+        }
+    }
+}
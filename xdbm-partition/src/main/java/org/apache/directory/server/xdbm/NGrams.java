@@ -0,0 +1,305 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.filter.SubstringNode;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.Normalizer;
+import org.apache.directory.api.ldap.model.schema.PrepareString;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+
+
+/**
+ * Helper methods used to maintain and query the trigram indexes associated with the
+ * substring indexed attributes. A trigram index maps every 3 characters long sequence
+ * found in the normalized values of an attribute to the IDs of the entries holding
+ * such a value.
+ * <p>
+ * Grams are only extracted from sequences of non space characters, so that the
+ * space handling done by the normalizers on values and on assertions can't make us
+ * miss a candidate. The candidates computed from a trigram index are a superset of
+ * the matching entries : they must be checked against the filter afterward.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public final class NGrams
+{
+    /** The size of a gram */
+    public static final int SIZE = 3;
+
+    /** The suffix added to the attribute OID to name a trigram index */
+    public static final String INDEX_SUFFIX = "_ngram";
+
+
+    private NGrams()
+    {
+    }
+
+
+    /**
+     * Adds the grams found in a normalized String to the given set
+     *
+     * @param normalized The normalized String
+     * @param grams The set to feed
+     */
+    public static void collect( String normalized, Set<String> grams )
+    {
+        if ( normalized == null )
+        {
+            return;
+        }
+
+        int length = normalized.length();
+        int start = 0;
+
+        while ( start < length )
+        {
+            // Skip the spaces
+            while ( ( start < length ) && ( normalized.charAt( start ) == ' ' ) )
+            {
+                start++;
+            }
+
+            int end = start;
+
+            while ( ( end < length ) && ( normalized.charAt( end ) != ' ' ) )
+            {
+                end++;
+            }
+
+            for ( int pos = start; pos + SIZE <= end; pos++ )
+            {
+                grams.add( normalized.substring( pos, pos + SIZE ) );
+            }
+
+            start = end;
+        }
+    }
+
+
+    /**
+     * Gets all the grams found in the normalized values of an Attribute
+     *
+     * @param attribute The attribute
+     * @return The set of grams, which may be empty
+     */
+    public static Set<String> getGrams( Attribute attribute )
+    {
+        Set<String> grams = new HashSet<>();
+
+        if ( attribute != null )
+        {
+            for ( Value value : attribute )
+            {
+                if ( value.isHumanReadable() )
+                {
+                    collect( value.getNormalized(), grams );
+                }
+            }
+        }
+
+        return grams;
+    }
+
+
+    /**
+     * Gets the grams that any value matching a substring assertion must contain. The
+     * assertion components are normalized the same way the index keys are.
+     *
+     * @param node The substring assertion
+     * @return The set of grams, empty if the assertion is too short to be resolved with
+     * a trigram index
+     * @throws LdapException If the assertion can't be normalized
+     */
+    public static Set<String> getGrams( SubstringNode node ) throws LdapException
+    {
+        Set<String> grams = new HashSet<>();
+        AttributeType attributeType = node.getAttributeType();
+
+        if ( ( attributeType == null ) || ( attributeType.getEquality() == null ) )
+        {
+            return grams;
+        }
+
+        Normalizer normalizer = attributeType.getEquality().getNormalizer();
+
+        if ( node.getInitial() != null )
+        {
+            collect( normalizer.normalize( node.getInitial(), PrepareString.AssertionType.SUBSTRING_INITIAL ), grams );
+        }
+
+        if ( node.getAny() != null )
+        {
+            for ( String any : node.getAny() )
+            {
+                collect( normalizer.normalize( any, PrepareString.AssertionType.SUBSTRING_ANY ), grams );
+            }
+        }
+
+        if ( node.getFinal() != null )
+        {
+            collect( normalizer.normalize( node.getFinal(), PrepareString.AssertionType.SUBSTRING_FINAL ), grams );
+        }
+
+        return grams;
+    }
+
+
+    /**
+     * Gets the number of entries containing the rarest of the given grams. This is an
+     * upper bound of the number of candidates the trigram index will return.
+     *
+     * @param partitionTxn The transaction to use
+     * @param ngramIndex The trigram index
+     * @param grams The grams to look for
+     * @return The smallest count
+     * @throws LdapException If the index can't be read
+     */
+    public static long count( PartitionTxn partitionTxn, Index<String, String> ngramIndex, Set<String> grams )
+        throws LdapException
+    {
+        long min = Long.MAX_VALUE;
+
+        for ( String gram : grams )
+        {
+            min = Math.min( min, ngramIndex.count( partitionTxn, gram ) );
+
+            if ( min == 0L )
+            {
+                break;
+            }
+        }
+
+        return min;
+    }
+
+
+    /**
+     * Gets the IDs of the entries containing all the given grams. We start with the
+     * rarest gram, and check the other grams for each of its IDs, from the rarest to
+     * the most frequent, so that we never read more than one posting list.
+     *
+     * @param partitionTxn The transaction to use
+     * @param ngramIndex The trigram index
+     * @param grams The grams to look for. Must not be empty.
+     * @return The candidate IDs
+     * @throws LdapException If the index can't be read
+     */
+    public static Set<String> getCandidates( PartitionTxn partitionTxn, Index<String, String> ngramIndex,
+        Set<String> grams ) throws LdapException
+    {
+        List<GramCount> counts = new ArrayList<>( grams.size() );
+
+        for ( String gram : grams )
+        {
+            long count = ngramIndex.count( partitionTxn, gram );
+
+            if ( count == 0L )
+            {
+                return Collections.emptySet();
+            }
+
+            counts.add( new GramCount( gram, count ) );
+        }
+
+        Collections.sort( counts, new Comparator<GramCount>()
+        {
+            @Override
+            public int compare( GramCount gc1, GramCount gc2 )
+            {
+                return Long.compare( gc1.count, gc2.count );
+            }
+        } );
+
+        Set<String> candidates = new HashSet<>();
+        Cursor<String> cursor = ngramIndex.forwardValueCursor( partitionTxn, counts.get( 0 ).gram );
+
+        try
+        {
+            while ( cursor.next() )
+            {
+                String id = cursor.get();
+                boolean matches = true;
+
+                for ( int i = 1; i < counts.size(); i++ )
+                {
+                    if ( !ngramIndex.forward( partitionTxn, counts.get( i ).gram, id ) )
+                    {
+                        matches = false;
+                        break;
+                    }
+                }
+
+                if ( matches )
+                {
+                    candidates.add( id );
+                }
+            }
+        }
+        catch ( CursorException ce )
+        {
+            throw new LdapOtherException( ce.getMessage(), ce );
+        }
+        finally
+        {
+            try
+            {
+                cursor.close();
+            }
+            catch ( Exception e )
+            {
+                // Nothing we can do
+            }
+        }
+
+        return candidates;
+    }
+
+
+    /**
+     * A gram and the number of entries containing it
+     */
+    private static final class GramCount
+    {
+        private final String gram;
+        private final long count;
+
+
+        private GramCount( String gram, long count )
+        {
+            this.gram = gram;
+            this.count = count;
+        }
+    }
+}
@@ -295,6 +295,35 @@ public interface Store
     Index<?, String> getSystemIndex( AttributeType attributeType ) throws IndexNotFoundException;
 
 
+    /**
+     * Tells if a trigram index is maintained for the given attributeType
+     * 
+     * @param attributeType The attributeType we are looking for
+     * @return <code>true</code> if a trigram index exists for this attributeType
+     */
+    boolean hasNGramIndexOn( AttributeType attributeType );
+
+
+    /**
+     * Get the trigram index associated with the given attributeType. Its keys are the
+     * trigrams found in the normalized values, and its values the entry IDs.
+     * 
+     * @param attributeType The attributeType we are looking for
+     * @return The associated trigram index
+     * @throws IndexNotFoundException If the index does not exist
+     */
+    Index<String, String> getNGramIndex( AttributeType attributeType ) throws IndexNotFoundException;
+
+
+    /**
+     * Get the cardinality statistics of the user index associated with the given attributeType.
+     * 
+     * @param attributeType The attributeType we are looking for
+     * @return The index statistics, or <code>null</code> if they are not maintained for this index
+     */
+    IndexStatistics getStatistics( AttributeType attributeType );
+
+
     /**
      * Gets the entry's id. Returns <code>null</code> if the Dn doesn't exist in this store.
      * Note that the Dn must be normalized!
@@ -0,0 +1,208 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm.search.impl;
+
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+
+/**
+ * A set of candidate UUIDs stored as a bitmap. The UUIDs are mapped to dense ordinals
+ * by a dictionary which is shared by all the bitmaps computed for the same conjunction,
+ * so that the intersections are done with a few word operations instead of hashing
+ * strings.
+ * <p>
+ * The driving bitmap feeds the dictionary. The other bitmaps only record the UUIDs
+ * which are already known, as the others can't be part of the intersection anyway.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class CandidateBitmap extends AbstractSet<String>
+{
+    /** The UUID to ordinal mapping, shared with the other bitmaps */
+    private final Map<String, Integer> ordinals;
+
+    /** The ordinal to UUID mapping, shared with the other bitmaps */
+    private final List<String> uuids;
+
+    /** The ordinals of the UUIDs present in this set */
+    private final BitSet bits = new BitSet();
+
+    /** Tells if we add the unknown UUIDs to the dictionary, or ignore them */
+    private final boolean driving;
+
+
+    /**
+     * Creates a driving bitmap, with an empty dictionary
+     */
+    CandidateBitmap()
+    {
+        ordinals = new HashMap<>();
+        uuids = new ArrayList<>();
+        driving = true;
+    }
+
+
+    /**
+     * Creates a bitmap sharing the dictionary of a driving bitmap
+     *
+     * @param driver The driving bitmap
+     */
+    CandidateBitmap( CandidateBitmap driver )
+    {
+        ordinals = driver.ordinals;
+        uuids = driver.uuids;
+        driving = false;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean add( String uuid )
+    {
+        Integer ordinal = ordinals.get( uuid );
+
+        if ( ordinal == null )
+        {
+            if ( !driving )
+            {
+                return false;
+            }
+
+            ordinal = uuids.size();
+            ordinals.put( uuid, ordinal );
+            uuids.add( uuid );
+        }
+
+        if ( bits.get( ordinal ) )
+        {
+            return false;
+        }
+
+        bits.set( ordinal );
+
+        return true;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean contains( Object uuid )
+    {
+        Integer ordinal = ordinals.get( uuid );
+
+        return ( ordinal != null ) && bits.get( ordinal );
+    }
+
+
+    /**
+     * Keeps only the UUIDs which are also present in the given bitmap
+     *
+     * @param bitmap A bitmap sharing the same dictionary
+     */
+    void and( CandidateBitmap bitmap )
+    {
+        bits.and( bitmap.bits );
+    }
+
+
+    /**
+     * Removes the UUIDs which are present in the given bitmap
+     *
+     * @param bitmap A bitmap sharing the same dictionary
+     */
+    void andNot( CandidateBitmap bitmap )
+    {
+        bits.andNot( bitmap.bits );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEmpty()
+    {
+        return bits.isEmpty();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size()
+    {
+        return bits.cardinality();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<String> iterator()
+    {
+        return new Iterator<String>()
+        {
+            private int next = bits.nextSetBit( 0 );
+
+
+            @Override
+            public boolean hasNext()
+            {
+                return next >= 0;
+            }
+
+
+            @Override
+            public String next()
+            {
+                if ( next < 0 )
+                {
+                    throw new NoSuchElementException();
+                }
+
+                String uuid = uuids.get( next );
+                next = bits.nextSetBit( next + 1 );
+
+                return uuid;
+            }
+
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
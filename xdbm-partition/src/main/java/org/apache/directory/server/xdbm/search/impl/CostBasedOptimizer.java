@@ -0,0 +1,276 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm.search.impl;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.filter.BranchNode;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.ScopeNode;
+import org.apache.directory.api.ldap.model.filter.SimpleNode;
+import org.apache.directory.api.ldap.model.filter.SubstringNode;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.PrepareString;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.xdbm.IndexNotFoundException;
+import org.apache.directory.server.xdbm.IndexStatistics;
+import org.apache.directory.server.xdbm.Store;
+
+
+/**
+ * An optimizer which estimates the number of candidates of each filter node using the
+ * cardinality statistics of the user indices, instead of reading the indices. The
+ * conjunctions are estimated using the selectivity of their children : we assume the
+ * children are somewhat correlated, so the less selective children are given a lower
+ * weight (exponential backoff), and the estimation is never above the count of the
+ * smallest child.
+ * <p>
+ * When an index has no statistics, we fall back to the {@link DefaultOptimizer} scan
+ * counts.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CostBasedOptimizer extends DefaultOptimizer
+{
+    /** The selectivity of a range filter when we have no histogram */
+    private static final double RANGE_SELECTIVITY = 1d / 3d;
+
+    /** The selectivity of a (attr=ABC*) filter when we have no histogram */
+    private static final double PREFIX_SELECTIVITY = 1d / 10d;
+
+    /** Under this estimation, we read the equality candidates, as they will be reused by the CursorBuilder */
+    private static final long EQUALITY_PREFETCH_THRESHOLD = 100L;
+
+    /** The number of children selectivities we use to estimate a conjunction */
+    private static final int MAX_CONJUNCTION_TERMS = 4;
+
+
+    /**
+     * Creates a cost based optimizer on a database.
+     *
+     * @param db the database this optimizer works for.
+     */
+    public CostBasedOptimizer( Store db )
+    {
+        super( db );
+    }
+
+
+    /**
+     * Normalizes an assertion value the way the index keys are normalized
+     */
+    private <V> String getNormalizedKey( SimpleNode<V> node ) throws LdapException
+    {
+        if ( node.getValue().isSchemaAware() )
+        {
+            return node.getValue().getNormalized();
+        }
+        else
+        {
+            return node.getAttributeType().getEquality().getNormalizer().normalize( node.getValue().getString() );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected long getConjunctionScan( PartitionTxn partitionTxn, BranchNode node ) throws LdapException
+    {
+        long total = db.count( partitionTxn );
+        long count = Long.MAX_VALUE;
+        List<Double> selectivities = new ArrayList<>();
+
+        for ( ExprNode child : node.getChildren() )
+        {
+            if ( ( count == 1 ) && ( child instanceof ScopeNode ) )
+            {
+                // We can stop here
+                break;
+            }
+
+            annotate( partitionTxn, child );
+            long childCount = ( Long ) child.get( COUNT_ANNOTATION );
+            count = Math.min( childCount, count );
+
+            if ( count == 0 )
+            {
+                // No need to continue
+                return 0L;
+            }
+
+            if ( ( childCount != Long.MAX_VALUE ) && ( total > 0L ) )
+            {
+                selectivities.add( ( double ) Math.min( childCount, total ) / total );
+            }
+        }
+
+        if ( ( count == Long.MAX_VALUE ) || ( selectivities.size() < 2 ) )
+        {
+            return count;
+        }
+
+        // The most selective child gets the full weight, the next ones are dampened
+        Collections.sort( selectivities );
+        double estimation = total;
+        double exponent = 1d;
+
+        for ( int i = 0; ( i < selectivities.size() ) && ( i < MAX_CONJUNCTION_TERMS ); i++ )
+        {
+            estimation *= Math.pow( selectivities.get( i ), exponent );
+            exponent /= 2d;
+        }
+
+        return Math.max( 1L, Math.min( count, Math.round( estimation ) ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected long getDisjunctionScan( PartitionTxn partitionTxn, BranchNode node ) throws LdapException
+    {
+        long count = super.getDisjunctionScan( partitionTxn, node );
+
+        if ( count == Long.MAX_VALUE )
+        {
+            return count;
+        }
+
+        // We can't have more candidates than entries
+        return Math.min( count, db.count( partitionTxn ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected <V> long getEqualityScan( PartitionTxn partitionTxn, SimpleNode<V> node )
+        throws LdapException, IndexNotFoundException, IOException
+    {
+        IndexStatistics statistics = db.getStatistics( node.getAttributeType() );
+
+        if ( statistics == null )
+        {
+            return super.getEqualityScan( partitionTxn, node );
+        }
+
+        long estimation = statistics.estimateEquality( getNormalizedKey( node ) );
+
+        if ( estimation < EQUALITY_PREFETCH_THRESHOLD )
+        {
+            // Read the candidates now, they will be used to build the candidate set
+            return super.getEqualityScan( partitionTxn, node );
+        }
+
+        return estimation;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected <V> long getGreaterLessScan( PartitionTxn partitionTxn, SimpleNode<V> node, boolean isGreaterThan )
+        throws LdapException, IndexNotFoundException
+    {
+        IndexStatistics statistics = db.getStatistics( node.getAttributeType() );
+
+        if ( statistics == null )
+        {
+            return super.getGreaterLessScan( partitionTxn, node, isGreaterThan );
+        }
+
+        String key = getNormalizedKey( node );
+        long estimation;
+
+        if ( isGreaterThan )
+        {
+            estimation = statistics.estimateGreaterThan( key );
+        }
+        else
+        {
+            estimation = statistics.estimateLessThan( key );
+        }
+
+        if ( estimation < 0L )
+        {
+            // No histogram
+            estimation = Math.round( statistics.getTotalCount() * RANGE_SELECTIVITY );
+        }
+
+        return Math.max( 1L, estimation );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected long getSubstringScan( PartitionTxn partitionTxn, SubstringNode node )
+        throws LdapException, IndexNotFoundException
+    {
+        AttributeType attributeType = node.getAttributeType();
+        IndexStatistics statistics = db.getStatistics( attributeType );
+
+        if ( statistics == null )
+        {
+            return super.getSubstringScan( partitionTxn, node );
+        }
+
+        String initial = node.getInitial();
+
+        if ( Strings.isEmpty( initial ) )
+        {
+            if ( db.hasNGramIndexOn( attributeType ) )
+            {
+                return super.getSubstringScan( partitionTxn, node );
+            }
+
+            // Full index scan
+            return Math.max( 1L, statistics.getTotalCount() );
+        }
+
+        String prefix = attributeType.getEquality().getNormalizer().normalize( initial,
+            PrepareString.AssertionType.SUBSTRING_INITIAL );
+
+        long from = statistics.estimateGreaterThan( prefix );
+
+        if ( from < 0L )
+        {
+            // No histogram
+            return Math.max( 1L, Math.round( statistics.getTotalCount() * PREFIX_SELECTIVITY ) );
+        }
+
+        long to = statistics.estimateGreaterThan( prefix + Character.MAX_VALUE );
+
+        // Keys sharing a prefix are likely in the same bucket : use the average key count at least
+        return Math.max( from - to, statistics.estimateEquality( prefix ) );
+    }
+}
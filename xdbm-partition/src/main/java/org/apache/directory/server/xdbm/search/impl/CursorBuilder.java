@@ -56,6 +56,7 @@ import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.IndexEntry;
 import org.apache.directory.server.xdbm.IndexNotFoundException;
+import org.apache.directory.server.xdbm.NGrams;
 import org.apache.directory.server.xdbm.ParentIdAndRdn;
 import org.apache.directory.server.xdbm.SingletonIndexCursor;
 import org.apache.directory.server.xdbm.Store;
@@ -73,6 +74,12 @@ import org.apache.directory.server.xdbm.search.evaluator.ApproximateEvaluator;
  */
 public class CursorBuilder
 {
+    /** Under this number of candidates, we don't intersect the conjunction children */
+    private static final long BITMAP_THRESHOLD = 32L;
+
+    /** We don't intersect with a child having more candidates than this ratio times the smallest child count */
+    private static final long BITMAP_MAX_RATIO = 16L;
+
     /** The database used by this builder */
     private Store db = null;
 
@@ -599,7 +606,9 @@ public class CursorBuilder
 
     /**
      * Computes the set of candidates for an Substring filter. We will feed the set only if
-     * we have an index for the AT.
+     * we have an index for the AT. When the filter has no initial component and the AT is
+     * substring indexed, the candidates are fetched from the trigram index instead of doing
+     * a full scan of the user index : they will be checked against the filter later on.
      */
     private long computeSubstring( PartitionTxn partitionTxn, SubstringNode node, PartitionSearchResult searchResult )
         throws LdapException, IndexNotFoundException, CursorException, IOException
@@ -613,6 +622,28 @@ public class CursorBuilder
             return 0L;
         }
 
+        // Use the trigram index if the filter has no initial component
+        if ( ( node.getInitial() == null ) && db.hasNGramIndexOn( attributeType ) )
+        {
+            Set<String> grams = NGrams.getGrams( node );
+
+            if ( !grams.isEmpty() )
+            {
+                Set<String> uuidSet = searchResult.getCandidateSet();
+                int nbResults = 0;
+
+                for ( String uuid : NGrams.getCandidates( partitionTxn, db.getNGramIndex( attributeType ), grams ) )
+                {
+                    if ( uuidSet.add( uuid ) )
+                    {
+                        nbResults++;
+                    }
+                }
+
+                return nbResults;
+            }
+        }
+
         // Fetch all the UUIDs if we have an index
         if ( db.hasIndexOn( attributeType ) )
         {
@@ -821,7 +852,129 @@ public class CursorBuilder
         // Once found we return the number of candidates for this child
         ExprNode minChild = children.get( minIndex );
 
-        return build( partitionTxn, minChild, searchResult );
+        if ( ( minValue < BITMAP_THRESHOLD ) || ( minValue == Long.MAX_VALUE ) || ( children.size() < 2 )
+            || !searchResult.isNeverDeref() )
+        {
+            return build( partitionTxn, minChild, searchResult );
+        }
+
+        return computeAndBitmap( partitionTxn, children, minChild, minValue, searchResult );
+    }
+
+
+    /**
+     * Computes the candidates of a conjunction by intersecting the candidates of its
+     * children, instead of returning all the candidates of the smallest one : each entry
+     * we can exclude here is an entry we won't have to fetch and evaluate.
+     * <p>
+     * The candidates are stored as bitmaps sharing the same dictionary. We only
+     * intersect with the children which are not too big compared to the smallest one,
+     * as reading a large index would cost more than evaluating the candidates. The
+     * (!(attr=value)) and (!(attr=*)) children are subtracted, as their index gives
+     * the exact set of entries to exclude.
+     */
+    private long computeAndBitmap( PartitionTxn partitionTxn, List<ExprNode> children, ExprNode minChild,
+        long minValue, PartitionSearchResult searchResult ) throws LdapException
+    {
+        long maxValue = Long.MAX_VALUE;
+
+        if ( minValue < Long.MAX_VALUE / BITMAP_MAX_RATIO )
+        {
+            maxValue = minValue * BITMAP_MAX_RATIO;
+        }
+
+        Set<String> candidates = searchResult.getCandidateSet();
+        CandidateBitmap result = new CandidateBitmap();
+
+        if ( buildInto( partitionTxn, minChild, searchResult, result ) == Long.MAX_VALUE )
+        {
+            return Long.MAX_VALUE;
+        }
+
+        for ( ExprNode child : children )
+        {
+            if ( result.isEmpty() )
+            {
+                return 0L;
+            }
+
+            if ( child == minChild )
+            {
+                continue;
+            }
+
+            boolean exclude = false;
+            ExprNode operand = child;
+
+            if ( child instanceof NotNode )
+            {
+                operand = ( ( NotNode ) child ).getFirstChild();
+
+                if ( !( operand instanceof EqualityNode ) && !( operand instanceof PresenceNode ) )
+                {
+                    continue;
+                }
+
+                exclude = true;
+            }
+
+            Object count = operand.get( DefaultOptimizer.COUNT_ANNOTATION );
+
+            if ( ( count == null ) || ( ( Long ) count > maxValue ) )
+            {
+                continue;
+            }
+
+            CandidateBitmap bitmap = new CandidateBitmap( result );
+
+            if ( buildInto( partitionTxn, operand, searchResult, bitmap ) == Long.MAX_VALUE )
+            {
+                // We don't know anything about this child candidates
+                continue;
+            }
+
+            if ( exclude )
+            {
+                result.andNot( bitmap );
+            }
+            else
+            {
+                result.and( bitmap );
+            }
+        }
+
+        long nbResults = 0L;
+
+        for ( String uuid : result )
+        {
+            if ( candidates.add( uuid ) )
+            {
+                nbResults++;
+            }
+        }
+
+        return nbResults;
+    }
+
+
+    /**
+     * Computes the candidates of a node into the given set, instead of the search
+     * result candidate set.
+     */
+    private long buildInto( PartitionTxn partitionTxn, ExprNode node, PartitionSearchResult searchResult,
+        Set<String> into ) throws LdapException
+    {
+        Set<String> candidates = searchResult.getCandidateSet();
+        searchResult.setCandidateSet( into );
+
+        try
+        {
+            return build( partitionTxn, node, searchResult );
+        }
+        finally
+        {
+            searchResult.setCandidateSet( candidates );
+        }
     }
 
 
@@ -51,6 +51,7 @@ import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.IndexNotFoundException;
+import org.apache.directory.server.xdbm.NGrams;
 import org.apache.directory.server.xdbm.Store;
 import org.apache.directory.server.xdbm.search.Optimizer;
 
@@ -67,7 +68,7 @@ public class DefaultOptimizer implements Optimizer
     /* Package protected*/ static final String COUNT_ANNOTATION = "count"; 
 
     /** the database this optimizer operates on */
-    private final Store db;
+    protected final Store db;
     private String contextEntryId;
 
 
@@ -248,7 +249,7 @@ public class DefaultOptimizer implements Optimizer
      * @return the calculated scan count
      * @throws Exception if there is an error
      */
-    private long getConjunctionScan( PartitionTxn partitionTxn, BranchNode node ) throws LdapException
+    protected long getConjunctionScan( PartitionTxn partitionTxn, BranchNode node ) throws LdapException
     {
         long count = Long.MAX_VALUE;
         List<ExprNode> children = node.getChildren();
@@ -284,7 +285,7 @@ public class DefaultOptimizer implements Optimizer
      * @return the scan count on the OR node
      * @throws Exception if there is an error
      */
-    private long getDisjunctionScan( PartitionTxn partitionTxn, BranchNode node ) throws LdapException
+    protected long getDisjunctionScan( PartitionTxn partitionTxn, BranchNode node ) throws LdapException
     {
         List<ExprNode> children = node.getChildren();
         long total = 0L;
@@ -314,7 +315,7 @@ public class DefaultOptimizer implements Optimizer
      * @throws Exception if there is an error accessing an index
      */
     @SuppressWarnings("unchecked")
-    private <V> long getEqualityScan( PartitionTxn partitionTxn, SimpleNode<V> node ) throws LdapException, IndexNotFoundException, IOException
+    protected <V> long getEqualityScan( PartitionTxn partitionTxn, SimpleNode<V> node ) throws LdapException, IndexNotFoundException, IOException
     {
         if ( db.hasIndexOn( node.getAttributeType() ) )
         {
@@ -380,7 +381,7 @@ public class DefaultOptimizer implements Optimizer
      * @throws Exception if there is an error accessing an index
      */
     @SuppressWarnings("unchecked")
-    private <V> long getGreaterLessScan( PartitionTxn partitionTxn, SimpleNode<V> node, boolean isGreaterThan ) throws LdapException, IndexNotFoundException
+    protected <V> long getGreaterLessScan( PartitionTxn partitionTxn, SimpleNode<V> node, boolean isGreaterThan ) throws LdapException, IndexNotFoundException
     {
         if ( db.hasIndexOn( node.getAttributeType() ) )
         {
@@ -403,15 +404,15 @@ public class DefaultOptimizer implements Optimizer
 
     /**
      * Get a scan count based on a Substring node : we will count the entries that are greater
-     * than ABC where the filter is (attr=ABC*). Any other filter won't be evaluated (for instance,
-     * a filter like (attr=*ABC) will resolve to a full scan atm - we could have created a reverted
-     * index for such a case -, and filters like (attr=*ABC*) also esolve to a full scan).
+     * than ABC where the filter is (attr=ABC*). Filters like (attr=*ABC) or (attr=*ABC*) are
+     * evaluated using the trigram index if the attribute is substring indexed : the count is
+     * the number of entries containing the rarest gram. Otherwise, they resolve to a full scan.
      * 
      * @param node The substring node
      * @return The number of candidates
      * @throws Exception If there is an error accessing an index
      */
-    private long getSubstringScan( PartitionTxn partitionTxn, SubstringNode node ) throws LdapException, IndexNotFoundException
+    protected long getSubstringScan( PartitionTxn partitionTxn, SubstringNode node ) throws LdapException, IndexNotFoundException
     {
         if ( db.hasIndexOn( node.getAttributeType() ) )
         {
@@ -421,6 +422,16 @@ public class DefaultOptimizer implements Optimizer
 
             if ( Strings.isEmpty( initial ) )
             {
+                if ( db.hasNGramIndexOn( node.getAttributeType() ) )
+                {
+                    Set<String> grams = NGrams.getGrams( node );
+
+                    if ( !grams.isEmpty() )
+                    {
+                        return NGrams.count( partitionTxn, db.getNGramIndex( node.getAttributeType() ), grams );
+                    }
+                }
+
                 // Not a (attr=ABC*) filter : full index scan
                 return idx.count( partitionTxn );
             }
@@ -0,0 +1,240 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.entry.ClonedServerEntry;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link CompactEntryCodec} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CompactEntryCodecTest
+{
+    private static SchemaManager schemaManager;
+
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = CompactEntryCodecTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        if ( !schemaManager.loadAllEnabled() )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+    }
+
+
+    private Entry createEntry() throws Exception
+    {
+        return new DefaultEntry( schemaManager, "cn=test,ou=system",
+            "objectClass: top",
+            "objectClass: person",
+            "objectClass: inetOrgPerson",
+            "cn: test",
+            "sn: Test",
+            "displayName: A test",
+            "jpegPhoto:: AAECAwQFBgcICQ==" );
+    }
+
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        Entry entry = createEntry();
+        byte[] bytes = CompactEntryCodec.encode( entry );
+
+        assertTrue( CompactEntryCodec.isCompact( bytes, 0 ) );
+
+        Entry decoded = CompactEntryCodec.decode( schemaManager, bytes, 0 );
+
+        assertEquals( new Dn( schemaManager, "cn=test" ), decoded.getDn() );
+        assertEquals( entry.size(), decoded.size() );
+        assertTrue( decoded.contains( "objectClass", "top", "person", "inetOrgPerson" ) );
+        assertTrue( decoded.contains( "sn", "Test" ) );
+        assertTrue( decoded.contains( "displayName", "A test" ) );
+        assertTrue( Arrays.equals( entry.get( "jpegPhoto" ).getBytes(), decoded.get( "jpegPhoto" ).getBytes() ) );
+    }
+
+
+    @Test
+    public void testRoundTripEmptyDn() throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager, "",
+            "objectClass: top",
+            "objectClass: extensibleObject" );
+
+        Entry decoded = CompactEntryCodec.decode( schemaManager, CompactEntryCodec.encode( entry ), 0 );
+
+        assertTrue( decoded.getDn().isEmpty() );
+        assertTrue( decoded.contains( "objectClass", "top", "extensibleObject" ) );
+    }
+
+
+    @Test
+    public void testSelectiveDecode() throws Exception
+    {
+        byte[] bytes = CompactEntryCodec.encode( createEntry() );
+
+        Entry decoded = CompactEntryCodec.decode( schemaManager, bytes, 0,
+            Arrays.asList( SchemaConstants.CN_AT_OID, SchemaConstants.OBJECT_CLASS_AT_OID ) );
+
+        assertEquals( 2, decoded.size() );
+        assertNotNull( decoded.get( "cn" ) );
+        assertNotNull( decoded.get( "objectClass" ) );
+        assertNull( decoded.get( "jpegPhoto" ) );
+        assertNull( decoded.get( "displayName" ) );
+    }
+
+
+    @Test
+    public void testIsCompact() throws Exception
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        try ( ObjectOutputStream out = new ObjectOutputStream( baos ) )
+        {
+            out.writeUTF( "legacy" );
+        }
+
+        assertFalse( CompactEntryCodec.isCompact( baos.toByteArray(), 0 ) );
+        assertFalse( CompactEntryCodec.isCompact( new byte[0], 0 ) );
+
+        byte[] bytes = CompactEntryCodec.encode( createEntry() );
+        byte[] shifted = new byte[bytes.length + 3];
+        System.arraycopy( bytes, 0, shifted, 3, bytes.length );
+
+        assertTrue( CompactEntryCodec.isCompact( shifted, 3 ) );
+        assertEquals( createEntry().size(), CompactEntryCodec.decode( schemaManager, shifted, 3 ).size() );
+    }
+
+
+    @Test
+    public void testLazyDecode() throws Exception
+    {
+        Entry entry = createEntry();
+        CompactEntry lazy = CompactEntryCodec.decodeLazily( schemaManager, CompactEntryCodec.encode( entry ), 0 );
+        AttributeType cnAT = schemaManager.lookupAttributeTypeRegistry( "cn" );
+        AttributeType snAT = schemaManager.lookupAttributeTypeRegistry( "sn" );
+        AttributeType jpegPhotoAT = schemaManager.lookupAttributeTypeRegistry( "jpegPhoto" );
+        AttributeType displayNameAT = schemaManager.lookupAttributeTypeRegistry( "displayName" );
+
+        // Nothing is decoded to know the entry's attribute types
+        assertEquals( entry.size(), lazy.size() );
+        assertEquals( entry.size(), lazy.getAttributeTypes().size() );
+        assertTrue( lazy.getAttributeTypes().contains( jpegPhotoAT ) );
+        assertTrue( lazy.containsAttribute( jpegPhotoAT ) );
+        assertFalse( lazy.isDecoded( jpegPhotoAT ) );
+        assertFalse( lazy.isDecoded( cnAT ) );
+
+        // Only the requested attributes are decoded
+        assertTrue( lazy.contains( cnAT, "test" ) );
+        assertTrue( lazy.hasObjectClass( "person" ) );
+        assertTrue( lazy.isDecoded( cnAT ) );
+        assertFalse( lazy.isDecoded( snAT ) );
+        assertFalse( lazy.isDecoded( jpegPhotoAT ) );
+        assertFalse( lazy.isDecoded( displayNameAT ) );
+
+        // A cloned entry shares the encoded attributes, and removes the unrequested ones
+        // without decoding them
+        ClonedServerEntry cloned = new ClonedServerEntry( lazy );
+        CompactEntry clone = ( CompactEntry ) cloned.getClonedEntry();
+        cloned.removeAttributes( jpegPhotoAT, displayNameAT );
+
+        assertEquals( "Test", cloned.get( snAT ).getString() );
+        assertTrue( clone.isDecoded( snAT ) );
+        assertFalse( lazy.isDecoded( snAT ) );
+        assertFalse( lazy.isDecoded( jpegPhotoAT ) );
+        assertFalse( lazy.isDecoded( displayNameAT ) );
+        assertEquals( entry.size() - 2, cloned.size() );
+        assertNull( cloned.get( jpegPhotoAT ) );
+        assertEquals( entry.size(), lazy.size() );
+
+        // Iterating decodes all the attributes
+        assertEquals( entry.size(), lazy.getAttributes().size() );
+        assertTrue( lazy.isDecoded( jpegPhotoAT ) );
+        assertTrue( Arrays.equals( entry.get( "jpegPhoto" ).getBytes(), lazy.get( "jpegPhoto" ).getBytes() ) );
+    }
+
+
+    @Test
+    public void testLazyEntryModification() throws Exception
+    {
+        CompactEntry lazy = CompactEntryCodec.decodeLazily( schemaManager, CompactEntryCodec.encode( createEntry() ),
+            0 );
+
+        // Adding a value keeps the encoded values, replacing an attribute drops them
+        lazy.add( "sn", "Other" );
+        lazy.put( "displayName", "Replaced" );
+        lazy.removeAttributes( "jpegPhoto" );
+
+        Entry expected = createEntry();
+        expected.setDn( new Dn( schemaManager, "cn=test" ) );
+        expected.add( "sn", "Other" );
+        expected.put( "displayName", "Replaced" );
+        expected.removeAttributes( "jpegPhoto" );
+
+        assertEquals( expected.size(), lazy.size() );
+        assertTrue( lazy.contains( "sn", "Test", "Other" ) );
+        assertEquals( 1, lazy.get( "displayName" ).size() );
+        assertEquals( expected, CompactEntryCodec.decode( schemaManager, CompactEntryCodec.encode( lazy ), 0 ) );
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.xdbm;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.xdbm.impl.avl.AvlIndex;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the IndexStatistics class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class IndexStatisticsTest
+{
+    private static SchemaManager schemaManager;
+    private AvlIndex<String> index;
+    private MockPartitionWriteTxn txn;
+    private long nbIds;
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = IndexStatisticsTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        StoreUtils.createdExtraAttributes( schemaManager );
+    }
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        txn = new MockPartitionWriteTxn();
+        nbIds = 0L;
+
+        // testInt has an ORDERING matching rule
+        index = new AvlIndex<>( StoreUtils.TEST_INT_OID, true );
+        index.init( schemaManager, schemaManager.getAttributeType( StoreUtils.TEST_INT_OID ) );
+
+        // 100 distinct values, and 10 more entries with the value 7
+        for ( int i = 1; i <= 100; i++ )
+        {
+            add( Integer.toString( i ) );
+        }
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            add( "7" );
+        }
+    }
+
+
+    private void add( String key ) throws Exception
+    {
+        index.add( txn, key, Strings.getUUID( ++nbIds ) );
+    }
+
+
+    private IndexStatistics build() throws Exception
+    {
+        IndexStatistics statistics = new IndexStatistics( index.getAttribute() );
+        statistics.build( txn, index );
+
+        return statistics;
+    }
+
+
+    @Test
+    public void testBuild() throws Exception
+    {
+        IndexStatistics statistics = build();
+
+        assertEquals( 110L, statistics.getTotalCount() );
+        assertEquals( 100L, statistics.getDistinctKeys() );
+        assertTrue( statistics.hasHistogram() );
+
+        // 7 is a frequent value, its count is exact
+        assertEquals( 11L, statistics.estimateEquality( "7" ) );
+        assertEquals( 1L, statistics.estimateEquality( "42" ) );
+    }
+
+
+    @Test
+    public void testHistogram() throws Exception
+    {
+        IndexStatistics statistics = build();
+
+        long greater = statistics.estimateGreaterThan( "91" );
+        assertTrue( "Unexpected estimation " + greater, ( greater >= 5L ) && ( greater <= 20L ) );
+
+        long less = statistics.estimateLessThan( "10" );
+        assertTrue( "Unexpected estimation " + less, ( less >= 10L ) && ( less <= 30L ) );
+    }
+
+
+    @Test
+    public void testNoHistogramWithoutOrdering() throws Exception
+    {
+        AttributeType ou = schemaManager.getAttributeType( "ou" );
+        IndexStatistics statistics = new IndexStatistics( ou );
+
+        assertFalse( statistics.hasHistogram() );
+        assertEquals( -1L, statistics.estimateGreaterThan( "engineering" ) );
+    }
+
+
+    @Test
+    public void testUpdates() throws Exception
+    {
+        IndexStatistics statistics = build();
+
+        add( "200" );
+        statistics.added( "200" );
+
+        assertEquals( 111L, statistics.getTotalCount() );
+        assertEquals( 101L, statistics.getDistinctKeys() );
+
+        add( "7" );
+        statistics.added( "7" );
+
+        assertEquals( 12L, statistics.estimateEquality( "7" ) );
+
+        index.drop( txn, "200", Strings.getUUID( 111L ) );
+        statistics.dropped( "200" );
+
+        assertEquals( 111L, statistics.getTotalCount() );
+        assertEquals( 100L, statistics.getDistinctKeys() );
+    }
+
+
+    @Test
+    public void testNeedsRebuild() throws Exception
+    {
+        IndexStatistics statistics = build();
+
+        assertFalse( statistics.needsRebuild( 110L ) );
+
+        // A few changes have been lost
+        assertFalse( statistics.needsRebuild( 150L ) );
+
+        // The index does not look like the one the statistics have been computed on
+        assertTrue( statistics.needsRebuild( 5000L ) );
+
+        for ( int i = 0; i < 1001; i++ )
+        {
+            statistics.added( "300" );
+        }
+
+        assertTrue( statistics.needsRebuild( statistics.getTotalCount() ) );
+
+        statistics.build( txn, index );
+
+        assertFalse( statistics.needsRebuild( 110L ) );
+    }
+
+
+    @Test
+    public void testWriteRead() throws Exception
+    {
+        IndexStatistics statistics = build();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        statistics.write( new DataOutputStream( baos ) );
+
+        IndexStatistics read = new IndexStatistics( index.getAttribute() );
+
+        assertTrue( read.read( new DataInputStream( new ByteArrayInputStream( baos.toByteArray() ) ) ) );
+        assertEquals( statistics.getTotalCount(), read.getTotalCount() );
+        assertEquals( statistics.getDistinctKeys(), read.getDistinctKeys() );
+        assertEquals( statistics.estimateEquality( "7" ), read.estimateEquality( "7" ) );
+        assertEquals( statistics.estimateGreaterThan( "50" ), read.estimateGreaterThan( "50" ) );
+    }
+}
@@ -34,12 +34,14 @@ public class MockPartitionWriteTxn extends PartitionWriteTxn
     @Override
     public void commit() throws IOException
     {
+        committed();
     }
 
 
     @Override
     public void abort() throws IOException
     {
+        aborted();
     }
 
 
@@ -389,6 +389,53 @@ public class PartitionTest
     }
 
 
+    /**
+     * The statistics are only updated when the write transaction is committed
+     */
+    @Test
+    public void testStatisticsUpdatedOnCommit() throws Exception
+    {
+        AvlPartition statsPartition = new AvlPartition( schemaManager, dnFactory );
+        statsPartition.setId( "stats" );
+        statsPartition.setSyncOnWrite( false );
+        statsPartition.setStatisticsEnabled( true );
+        statsPartition.addIndex( new AvlIndex<String>( SchemaConstants.OU_AT_OID ) );
+        statsPartition.setSuffixDn( new Dn( schemaManager, "o=Good Times Co." ) );
+        statsPartition.setCacheService( cacheService );
+        statsPartition.initialize();
+
+        try
+        {
+            StoreUtils.loadExampleData( statsPartition, schemaManager );
+
+            IndexStatistics statistics = statsPartition.getStatistics( OU_AT );
+            long count = statistics.getTotalCount();
+            Dn dn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+
+            MockPartitionWriteTxn aborted = new MockPartitionWriteTxn();
+            statsPartition.modify( aborted, dn,
+                new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, OU_AT, "aborted" ) );
+            aborted.abort();
+
+            assertEquals( count, statistics.getTotalCount() );
+
+            MockPartitionWriteTxn committed = new MockPartitionWriteTxn();
+            statsPartition.modify( committed, dn,
+                new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, OU_AT, "committed" ) );
+
+            assertEquals( count, statistics.getTotalCount() );
+
+            committed.commit();
+
+            assertEquals( count + 1L, statistics.getTotalCount() );
+        }
+        finally
+        {
+            statsPartition.destroy( null );
+        }
+    }
+
+
     @Test
     public void testEntryParentIdPresence() throws Exception
     {
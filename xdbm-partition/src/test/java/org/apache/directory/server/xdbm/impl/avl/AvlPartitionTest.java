@@ -496,6 +496,72 @@ public class AvlPartitionTest
     }
 
 
+    @Test
+    public void testRenameSubtreeDnCache() throws Exception
+    {
+        Dn salesDn = new Dn( schemaManager, "ou=Sales,o=Good Times Co." );
+        Dn jimDn = new Dn( schemaManager, "cn=JIM BEAN,ou=Sales,o=Good Times Co." );
+        Dn jackDn = new Dn( schemaManager, "cn=Jack Daniels,ou=Engineering,o=Good Times Co." );
+        String jimId = partition.getEntryId( txn, jimDn );
+        String jackId = partition.getEntryId( txn, jackDn );
+
+        // Feed the DN cache
+        assertEquals( jimDn, partition.getEntryDn( txn, jimId ) );
+        assertEquals( jackDn, partition.getEntryDn( txn, jackId ) );
+
+        partition.rename( txn, salesDn, new Rdn( schemaManager, "ou=Marketing" ), false, null );
+
+        assertEquals( new Dn( schemaManager, "cn=JIM BEAN,ou=Marketing,o=Good Times Co." ),
+            partition.getEntryDn( txn, jimId ) );
+        assertEquals( jackDn, partition.getEntryDn( txn, jackId ) );
+    }
+
+
+    @Test
+    public void testRenameNestedSubtreeDnCache() throws Exception
+    {
+        Dn boardDn = new Dn( schemaManager, "ou=Board of Directors,o=Good Times Co." );
+        Dn apacheDn = new Dn( schemaManager, "ou=Apache,ou=Board of Directors,o=Good Times Co." );
+        Dn nestedDn = new Dn( schemaManager, "commonName=Jim Bean,ou=Apache,ou=Board of Directors,o=Good Times Co." );
+        Dn jimDn = new Dn( schemaManager, "cn=JIM BEAN,ou=Sales,o=Good Times Co." );
+        String apacheId = partition.getEntryId( txn, apacheDn );
+        String nestedId = partition.getEntryId( txn, nestedDn );
+        String jimId = partition.getEntryId( txn, jimDn );
+
+        // Feed the DN cache
+        assertEquals( apacheDn, partition.getEntryDn( txn, apacheId ) );
+        assertEquals( nestedDn, partition.getEntryDn( txn, nestedId ) );
+        assertEquals( jimDn, partition.getEntryDn( txn, jimId ) );
+
+        partition.rename( txn, boardDn, new Rdn( schemaManager, "ou=Board" ), false, null );
+
+        // The children and the grand children are evicted
+        assertEquals( new Dn( schemaManager, "ou=Apache,ou=Board,o=Good Times Co." ),
+            partition.getEntryDn( txn, apacheId ) );
+        assertEquals( new Dn( schemaManager, "commonName=Jim Bean,ou=Apache,ou=Board,o=Good Times Co." ),
+            partition.getEntryDn( txn, nestedId ) );
+        assertEquals( jimDn, partition.getEntryDn( txn, jimId ) );
+    }
+
+
+    @Test
+    public void testRenameSubtreeAliasCache() throws Exception
+    {
+        Dn boardDn = new Dn( schemaManager, "ou=Board of Directors,o=Good Times Co." );
+        Dn aliasDn = new Dn( schemaManager, "commonName=Jim Bean,ou=Apache,ou=Board of Directors,o=Good Times Co." );
+        Dn aliasTarget = new Dn( schemaManager, "cn=Jim Bean,ou=Sales,o=Good Times Co." );
+        String aliasId = partition.getEntryId( txn, aliasDn );
+
+        partition.getAliasCache().put( aliasId, new Dn( schemaManager, "cn=Stale,o=Good Times Co." ) );
+
+        partition.rename( txn, boardDn, new Rdn( schemaManager, "ou=Board" ), false, null );
+
+        // The moved alias is refreshed from the alias index, not dropped
+        assertEquals( aliasTarget, partition.getAliasCache().get( aliasId ) );
+        assertEquals( aliasTarget, partition.getAliasIndex().reverseLookup( txn, aliasId ) );
+    }
+
+
     @Test
     public void testMove() throws Exception
     {
@@ -0,0 +1,94 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm.search.impl;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+
+/**
+ * Tests the CandidateBitmap set algebra.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CandidateBitmapTest
+{
+    @Test
+    public void testAdd()
+    {
+        CandidateBitmap bitmap = new CandidateBitmap();
+
+        assertTrue( bitmap.isEmpty() );
+        assertTrue( bitmap.add( "a" ) );
+        assertTrue( bitmap.add( "b" ) );
+        assertFalse( bitmap.add( "a" ) );
+
+        assertEquals( 2, bitmap.size() );
+        assertTrue( bitmap.contains( "a" ) );
+        assertFalse( bitmap.contains( "c" ) );
+        assertEquals( new HashSet<String>( Arrays.asList( "a", "b" ) ), new HashSet<String>( bitmap ) );
+    }
+
+
+    @Test
+    public void testUnknownIgnored()
+    {
+        CandidateBitmap driver = new CandidateBitmap();
+        driver.add( "a" );
+
+        CandidateBitmap bitmap = new CandidateBitmap( driver );
+
+        assertTrue( bitmap.add( "a" ) );
+        assertFalse( bitmap.add( "z" ) );
+        assertEquals( 1, bitmap.size() );
+        assertFalse( bitmap.contains( "z" ) );
+    }
+
+
+    @Test
+    public void testAndAndNot()
+    {
+        CandidateBitmap result = new CandidateBitmap();
+        result.addAll( Arrays.asList( "a", "b", "c", "d" ) );
+
+        CandidateBitmap other = new CandidateBitmap( result );
+        other.addAll( Arrays.asList( "d", "b", "c", "x" ) );
+        result.and( other );
+
+        Set<String> expected = new HashSet<>( Arrays.asList( "b", "c", "d" ) );
+        assertEquals( expected, new HashSet<String>( result ) );
+
+        CandidateBitmap excluded = new CandidateBitmap( result );
+        excluded.add( "c" );
+        result.andNot( excluded );
+
+        expected.remove( "c" );
+        assertEquals( expected, new HashSet<String>( result ) );
+        assertEquals( 2, result.size() );
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.xdbm.search.impl;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.filter.SubstringNode;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.FileUtils;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.CacheService;
+import org.apache.directory.server.core.api.DnFactory;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.partition.impl.avl.AvlPartition;
+import org.apache.directory.server.core.shared.DefaultDnFactory;
+import org.apache.directory.server.xdbm.MockPartitionWriteTxn;
+import org.apache.directory.server.xdbm.NGrams;
+import org.apache.directory.server.xdbm.Store;
+import org.apache.directory.server.xdbm.StoreUtils;
+import org.apache.directory.server.xdbm.impl.avl.AvlIndex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the trigram index maintained for the substring indexed attributes.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class NGramIndexTest
+{
+    File wkdir;
+    Store store;
+    static SchemaManager schemaManager = null;
+    private static DnFactory dnFactory;
+    private static CacheService cacheService;
+
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = NGramIndexTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        loaded = schemaManager.loadWithDeps( loader.getSchema( "collective" ) );
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        cacheService = new CacheService();
+        cacheService.initialize( null );
+        dnFactory = new DefaultDnFactory( schemaManager, 
+            cacheService.getCache( "dnCache", String.class, Dn.class ) );
+    }
+
+
+    @Before
+    public void createStore() throws Exception
+    {
+        // setup the working directory for the store
+        wkdir = File.createTempFile( getClass().getSimpleName(), "db" );
+        wkdir.delete();
+        wkdir = new File( wkdir.getParentFile(), getClass().getSimpleName() );
+        wkdir.mkdirs();
+
+        StoreUtils.createdExtraAttributes( schemaManager );
+        
+        // initialize the store
+        store = new AvlPartition( schemaManager, dnFactory );
+        ( ( Partition ) store ).setId( "example" );
+        store.setCacheSize( 10 );
+        store.setPartitionPath( wkdir.toURI() );
+        store.setSyncOnWrite( false );
+
+        AvlIndex<String> cnIndex = new AvlIndex<>( SchemaConstants.CN_AT_OID );
+        cnIndex.setSubstringIndexed( true );
+
+        store.addIndex( new AvlIndex<String>( SchemaConstants.OU_AT_OID ) );
+        store.addIndex( cnIndex );
+
+        Dn suffixDn = new Dn( schemaManager, "o=Good Times Co." );
+        ( ( Partition ) store ).setSuffixDn( suffixDn );
+
+        ( ( Partition ) store ).setCacheService( cacheService );
+        ( ( Partition ) store ).initialize();
+
+        StoreUtils.loadExampleData( store, schemaManager );
+    }
+
+
+    @After
+    public void destroyStore() throws Exception
+    {
+        if ( store != null )
+        {
+            ( ( Partition ) store ).destroy( null );
+        }
+
+        store = null;
+
+        if ( wkdir != null )
+        {
+            FileUtils.deleteDirectory( wkdir );
+        }
+
+        wkdir = null;
+    }
+
+
+    private Set<String> getCandidates( SubstringNode node ) throws Exception
+    {
+        PartitionTxn txn = ( ( Partition ) store ).beginReadTransaction();
+
+        return NGrams.getCandidates( txn, store.getNGramIndex( node.getAttributeType() ), NGrams.getGrams( node ) );
+    }
+
+
+    private Set<String> uuids( long... indexes )
+    {
+        Set<String> uuids = new HashSet<>();
+
+        for ( long index : indexes )
+        {
+            uuids.add( Strings.getUUID( index ) );
+        }
+
+        return uuids;
+    }
+
+
+    @Test
+    public void testNGramIndexCreated() throws Exception
+    {
+        assertTrue( store.hasNGramIndexOn( schemaManager.getAttributeType( "cn" ) ) );
+        assertEquals( false, store.hasNGramIndexOn( schemaManager.getAttributeType( "ou" ) ) );
+    }
+
+
+    @Test
+    public void testGrams() throws Exception
+    {
+        Set<String> grams = new HashSet<>();
+        NGrams.collect( " jack  daniels ", grams );
+
+        assertEquals( new HashSet<>( Arrays.asList( "jac", "ack", "dan", "ani", "nie", "iel", "els" ) ), grams );
+
+        SubstringNode node = new SubstringNode( schemaManager.getAttributeType( "cn" ), null, "ry" );
+
+        assertTrue( NGrams.getGrams( node ).isEmpty() );
+    }
+
+
+    @Test
+    public void testAnyAssertion() throws Exception
+    {
+        SubstringNode node = new SubstringNode( schemaManager.getAttributeType( "cn" ), null, null );
+        node.setAny( Arrays.asList( "ANIEL" ) );
+
+        assertEquals( uuids( 8 ), getCandidates( node ) );
+    }
+
+
+    @Test
+    public void testFinalAssertion() throws Exception
+    {
+        SubstringNode node = new SubstringNode( schemaManager.getAttributeType( "cn" ), null, "walker" );
+
+        assertEquals( uuids( 5, 11 ), getCandidates( node ) );
+
+        node = new SubstringNode( schemaManager.getAttributeType( "cn" ), null, "xyz" );
+
+        assertTrue( getCandidates( node ).isEmpty() );
+    }
+
+
+    @Test
+    public void testModify() throws Exception
+    {
+        AttributeType cn = schemaManager.getAttributeType( "cn" );
+        Dn dn = new Dn( schemaManager, "cn=Jack Daniels,ou=Engineering,o=Good Times Co." );
+        PartitionTxn txn = new MockPartitionWriteTxn();
+
+        store.modify( txn, dn, new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, cn, "Jack Sparrow" ) );
+
+        SubstringNode sparrow = new SubstringNode( cn, null, "sparrow" );
+        SubstringNode jack = new SubstringNode( cn, null, null );
+        jack.setAny( Arrays.asList( "jack" ) );
+
+        assertEquals( uuids( 8 ), getCandidates( sparrow ) );
+        assertEquals( uuids( 8 ), getCandidates( jack ) );
+
+        store.modify( txn, dn, new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE, cn, "Jack Sparrow" ) );
+
+        // The grams shared with the remaining value must still be indexed
+        assertTrue( getCandidates( sparrow ).isEmpty() );
+        assertEquals( uuids( 8 ), getCandidates( jack ) );
+    }
+}